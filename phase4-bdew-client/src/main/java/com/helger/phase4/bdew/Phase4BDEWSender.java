@@ -251,6 +251,9 @@ public final class Phase4BDEWSender
         for (final AS4OutgoingAttachment aAttachment : m_aAttachments)
           aUserMsg.addAttachment (WSS4JAttachment.createOutgoingFileAttachment (aAttachment, aResHelper));
 
+        if (enqueueInOutbox (aUserMsg))
+          return;
+
         // Main sending
         AS4BidirectionalClientHelper.sendAS4UserMessageAndReceiveAS4SignalMessage (m_aCryptoFactory,
                                                                                    pmodeResolver (),
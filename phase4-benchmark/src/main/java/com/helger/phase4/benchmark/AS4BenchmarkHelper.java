@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.benchmark;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.helger.phase4.CAS4;
+import com.helger.phase4.client.AS4ClientUserMessage;
+import com.helger.phase4.crypto.AS4CryptoFactoryInMemoryKeyStore;
+import com.helger.phase4.crypto.IAS4CryptoFactory;
+import com.helger.phase4.messaging.domain.MessageHelperMethods;
+import com.helger.phase4.mgr.AS4ManagerFactoryInMemory;
+import com.helger.phase4.mgr.MetaAS4Manager;
+import com.helger.phase4.soap.ESoapVersion;
+import com.helger.phase4.util.AS4ResourceHelper;
+import com.helger.scope.mgr.ScopeManager;
+import com.helger.security.keystore.EKeyStoreType;
+import com.helger.security.keystore.KeyStoreHelper;
+import com.helger.xml.XMLFactory;
+
+/**
+ * Shared setup code for all benchmarks. Everything is kept in memory, so that
+ * the benchmarks run offline and without file system persistence.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@Immutable
+public final class AS4BenchmarkHelper
+{
+  /** The key store on the class path, that is loaded into memory once */
+  public static final String KEY_STORE_PATH = "keys/dummy-pw-test.jks";
+  public static final String KEY_STORE_PASSWORD = "test";
+  public static final String KEY_ALIAS = "ph-as4";
+  public static final String KEY_PASSWORD = "test";
+
+  public static final String SENDER_ID = "BenchmarkSender";
+  public static final String RECEIVER_ID = "BenchmarkReceiver";
+
+  private static final String PAYLOAD_NS = "urn:com:helger:phase4:benchmark";
+
+  private AS4BenchmarkHelper ()
+  {}
+
+  /**
+   * Start the global scope and use the in-memory managers. Must be called
+   * from each <code>@Setup</code> method that uses {@link MetaAS4Manager}.
+   */
+  public static void beginGlobalScope ()
+  {
+    MetaAS4Manager.setFactory (new AS4ManagerFactoryInMemory ());
+    if (!ScopeManager.isGlobalScopePresent ())
+      ScopeManager.onGlobalBegin ("phase4-benchmark");
+  }
+
+  /**
+   * End the global scope started with {@link #beginGlobalScope()}.
+   */
+  public static void endGlobalScope ()
+  {
+    if (ScopeManager.isGlobalScopePresent ())
+      ScopeManager.onGlobalEnd ();
+  }
+
+  /**
+   * @return A new crypto factory, using the same in-memory key store as the
+   *         key store and the trust store. Never <code>null</code>.
+   * @throws GeneralSecurityException
+   *         If the key store cannot be read
+   * @throws IOException
+   *         If the key store cannot be read
+   */
+  @Nonnull
+  public static IAS4CryptoFactory createCryptoFactory () throws GeneralSecurityException, IOException
+  {
+    final KeyStore aKeyStore = KeyStoreHelper.loadKeyStoreDirect (EKeyStoreType.JKS,
+                                                                  KEY_STORE_PATH,
+                                                                  KEY_STORE_PASSWORD);
+    return new AS4CryptoFactoryInMemoryKeyStore (aKeyStore, KEY_ALIAS, KEY_PASSWORD, aKeyStore);
+  }
+
+  /**
+   * Create an XML payload of approximately the provided size. The content is
+   * made of repeated, slightly varying lines, so that it compresses like a
+   * real business document.
+   *
+   * @param nBytes
+   *        The approximate payload size in bytes. Must be &ge; 0.
+   * @return The UTF-8 encoded XML payload. Never <code>null</code>.
+   */
+  @Nonnull
+  public static byte [] createPayloadBytes (@Nonnegative final int nBytes)
+  {
+    final StringBuilder aSB = new StringBuilder (nBytes + 128);
+    aSB.append ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Payload xmlns=\"").append (PAYLOAD_NS).append ("\">");
+    int nLine = 0;
+    while (aSB.length () < nBytes)
+    {
+      aSB.append ("<Line><ID>")
+         .append (nLine)
+         .append ("</ID><Note>Benchmark line ")
+         .append (nLine)
+         .append (" of the phase4 payload</Note><Amount>")
+         .append (nLine * 17 % 1000)
+         .append (".00</Amount></Line>");
+      nLine++;
+    }
+    aSB.append ("</Payload>");
+    return aSB.toString ().getBytes (StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Create an XML payload document of approximately the provided size, to be
+   * used as the SOAP body payload.
+   *
+   * @param nBytes
+   *        The approximate text content size in bytes. Must be &ge; 0.
+   * @return The new document. Never <code>null</code>.
+   */
+  @Nonnull
+  public static Document createPayloadDocument (@Nonnegative final int nBytes)
+  {
+    final Document aDoc = XMLFactory.newDocument ();
+    final Element eRoot = (Element) aDoc.appendChild (aDoc.createElementNS (PAYLOAD_NS, "Payload"));
+    int nLine = 0;
+    int nSize = 0;
+    while (nSize < nBytes)
+    {
+      final Element eLine = (Element) eRoot.appendChild (aDoc.createElementNS (PAYLOAD_NS, "Line"));
+      eLine.appendChild (aDoc.createElementNS (PAYLOAD_NS, "ID")).setTextContent (Integer.toString (nLine));
+      final String sNote = "Benchmark line " + nLine + " of the phase4 payload";
+      eLine.appendChild (aDoc.createElementNS (PAYLOAD_NS, "Note")).setTextContent (sNote);
+      nSize += sNote.length () + 40;
+      nLine++;
+    }
+    return aDoc;
+  }
+
+  /**
+   * Create a new user message client with all mandatory fields set, but
+   * without payload, signing and encryption.
+   *
+   * @param aResHelper
+   *        The resource helper to use. May not be <code>null</code>.
+   * @param aCryptoFactory
+   *        The crypto factory to use. May not be <code>null</code>.
+   * @return The new client. Never <code>null</code>.
+   */
+  @Nonnull
+  public static AS4ClientUserMessage createUserMessageClient (@Nonnull final AS4ResourceHelper aResHelper,
+                                                              @Nonnull final IAS4CryptoFactory aCryptoFactory)
+  {
+    final AS4ClientUserMessage aClient = new AS4ClientUserMessage (aResHelper);
+    aClient.setSoapVersion (ESoapVersion.AS4_DEFAULT);
+    aClient.setAS4CryptoFactory (aCryptoFactory);
+    aClient.setAction ("BenchmarkAction");
+    aClient.setServiceType ("BenchmarkServiceType");
+    aClient.setServiceValue ("BenchmarkService");
+    aClient.setConversationID (MessageHelperMethods.createRandomConversationID ());
+    aClient.setAgreementRefValue ("urn:as4:agreement");
+    aClient.setFromRole (CAS4.DEFAULT_ROLE);
+    aClient.setFromPartyID (SENDER_ID);
+    aClient.setToRole (CAS4.DEFAULT_ROLE);
+    aClient.setToPartyID (RECEIVER_ID);
+    return aClient;
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.helger.phase4.crypto.IAS4CryptoFactory;
+
+/**
+ * Variant of {@link AS4BuildUserMessageBenchmark} for very large payloads.
+ * These are only sent as compressed MIME attachments, as a SOAP body of that
+ * size is not realistic. Each build takes long enough to be measured as a
+ * single shot, and the forked JVM gets enough heap for the payload.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.SingleShotTime)
+@OutputTimeUnit (TimeUnit.MILLISECONDS)
+@Warmup (iterations = 2)
+@Measurement (iterations = 5)
+@Fork (value = 1, jvmArgs = { "-Xms2g", "-Xmx2g" })
+public class AS4BuildLargeUserMessageBenchmark
+{
+  @Param ({ "SIGN", "SIGN_ENCRYPT" })
+  public AS4BuildUserMessageBenchmark.ESecurity m_eSecurity;
+
+  @Param ({ "104857600" })
+  public int m_nPayloadSize;
+
+  private IAS4CryptoFactory m_aCryptoFactory;
+  private byte [] m_aPayloadBytes;
+
+  @Setup (Level.Trial)
+  public void setupTrial () throws Exception
+  {
+    AS4BenchmarkHelper.beginGlobalScope ();
+    m_aCryptoFactory = AS4BenchmarkHelper.createCryptoFactory ();
+    m_aPayloadBytes = AS4BenchmarkHelper.createPayloadBytes (m_nPayloadSize);
+  }
+
+  @TearDown (Level.Trial)
+  public void tearDownTrial ()
+  {
+    AS4BenchmarkHelper.endGlobalScope ();
+  }
+
+  @Benchmark
+  public long buildAndWrite () throws Exception
+  {
+    return AS4BuildUserMessageBenchmark.buildAndWrite (m_aCryptoFactory, m_eSecurity, null, m_aPayloadBytes);
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.hc.core5.http.HttpEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.helger.commons.io.stream.CountingOutputStream;
+import com.helger.commons.io.stream.NullOutputStream;
+import com.helger.commons.mime.CMimeType;
+import com.helger.phase4.attachment.EAS4CompressionMode;
+import com.helger.phase4.attachment.WSS4JAttachment;
+import com.helger.phase4.client.AS4ClientBuiltMessage;
+import com.helger.phase4.client.AS4ClientUserMessage;
+import com.helger.phase4.crypto.ECryptoAlgorithmCrypt;
+import com.helger.phase4.crypto.ECryptoAlgorithmSign;
+import com.helger.phase4.crypto.ECryptoAlgorithmSignDigest;
+import com.helger.phase4.crypto.IAS4CryptoFactory;
+import com.helger.phase4.messaging.domain.MessageHelperMethods;
+import com.helger.phase4.util.AS4ResourceHelper;
+
+/**
+ * Benchmark for {@link AS4ClientUserMessage#buildMessage(String,
+ * com.helger.phase4.client.IAS4ClientBuildMessageCallback)} including the
+ * creation of the client and the attachment and writing the resulting HTTP
+ * entity, for different security settings, payload placements and payload
+ * sizes. Very large payloads are only realistic as MIME attachments and are
+ * covered by {@link AS4BuildLargeUserMessageBenchmark}.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MILLISECONDS)
+@Warmup (iterations = 3, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (value = 1, jvmArgs = { "-Xms1g", "-Xmx1g" })
+public class AS4BuildUserMessageBenchmark
+{
+  public enum ESecurity
+  {
+    SIGN,
+    SIGN_ENCRYPT;
+  }
+
+  public enum EPayloadMode
+  {
+    /** Payload in the SOAP body */
+    SOAP,
+    /** Payload as a compressed MIME attachment */
+    MIME;
+  }
+
+  @Param ({ "SIGN", "SIGN_ENCRYPT" })
+  public ESecurity m_eSecurity;
+
+  @Param ({ "SOAP", "MIME" })
+  public EPayloadMode m_ePayloadMode;
+
+  @Param ({ "1024", "1048576" })
+  public int m_nPayloadSize;
+
+  private IAS4CryptoFactory m_aCryptoFactory;
+  private byte [] m_aPayloadBytes;
+  private Document m_aPayloadDoc;
+
+  @Setup (Level.Trial)
+  public void setupTrial () throws Exception
+  {
+    AS4BenchmarkHelper.beginGlobalScope ();
+    m_aCryptoFactory = AS4BenchmarkHelper.createCryptoFactory ();
+    if (m_ePayloadMode == EPayloadMode.SOAP)
+      m_aPayloadDoc = AS4BenchmarkHelper.createPayloadDocument (m_nPayloadSize);
+    else
+      m_aPayloadBytes = AS4BenchmarkHelper.createPayloadBytes (m_nPayloadSize);
+  }
+
+  @TearDown (Level.Trial)
+  public void tearDownTrial ()
+  {
+    AS4BenchmarkHelper.endGlobalScope ();
+  }
+
+  /**
+   * Build a complete user message and write it to a null stream. Exactly one
+   * of the payload parameters must be provided.
+   *
+   * @param aCryptoFactory
+   *        The crypto factory to use. May not be <code>null</code>.
+   * @param eSecurity
+   *        The security settings to apply. May not be <code>null</code>.
+   * @param ePayload
+   *        The SOAP body payload. May be <code>null</code>.
+   * @param aAttachmentBytes
+   *        The bytes of the compressed MIME attachment. May be
+   *        <code>null</code>.
+   * @return The number of bytes written.
+   * @throws Exception
+   *         In case of error
+   */
+  static long buildAndWrite (@Nonnull final IAS4CryptoFactory aCryptoFactory,
+                             @Nonnull final ESecurity eSecurity,
+                             @Nullable final Element ePayload,
+                             @Nullable final byte [] aAttachmentBytes) throws Exception
+  {
+    try (final AS4ResourceHelper aResHelper = new AS4ResourceHelper ())
+    {
+      final AS4ClientUserMessage aClient = AS4BenchmarkHelper.createUserMessageClient (aResHelper, aCryptoFactory);
+      aClient.signingParams ()
+             .setAlgorithmSign (ECryptoAlgorithmSign.SIGN_ALGORITHM_DEFAULT)
+             .setAlgorithmSignDigest (ECryptoAlgorithmSignDigest.SIGN_DIGEST_ALGORITHM_DEFAULT);
+      if (eSecurity == ESecurity.SIGN_ENCRYPT)
+        aClient.cryptParams ()
+               .setAlgorithmCrypt (ECryptoAlgorithmCrypt.ENCRPYTION_ALGORITHM_DEFAULT)
+               .setAlias (AS4BenchmarkHelper.KEY_ALIAS);
+
+      if (ePayload != null)
+        aClient.setPayload (ePayload);
+      if (aAttachmentBytes != null)
+        aClient.addAttachment (WSS4JAttachment.createOutgoingFileAttachment (aAttachmentBytes,
+                                                                             null,
+                                                                             "payload.xml",
+                                                                             CMimeType.APPLICATION_XML,
+                                                                             EAS4CompressionMode.GZIP,
+                                                                             null,
+                                                                             aResHelper));
+
+      final AS4ClientBuiltMessage aBuiltMsg = aClient.buildMessage (MessageHelperMethods.createRandomMessageID (),
+                                                                    null);
+      final HttpEntity aEntity = aBuiltMsg.getHttpEntity ();
+      final CountingOutputStream aOS = new CountingOutputStream (new NullOutputStream ());
+      aEntity.writeTo (aOS);
+      return aOS.getBytesWritten ();
+    }
+  }
+
+  @Benchmark
+  public long buildAndWrite () throws Exception
+  {
+    // The client is created per call, as it is in real life. A per invocation
+    // setup would distort the results of the small payloads.
+    if (m_ePayloadMode == EPayloadMode.SOAP)
+      return buildAndWrite (m_aCryptoFactory, m_eSecurity, m_aPayloadDoc.getDocumentElement (), null);
+    return buildAndWrite (m_aCryptoFactory, m_eSecurity, null, m_aPayloadBytes);
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.benchmark;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.helger.commons.io.stream.CountingOutputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.NullOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.phase4.attachment.EAS4CompressionMode;
+
+/**
+ * Benchmark for the attachment compression codecs of
+ * {@link EAS4CompressionMode}.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+@Warmup (iterations = 3, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (1)
+public class AS4CompressionBenchmark
+{
+  @Param ({ "GZIP" })
+  public EAS4CompressionMode m_eCompressionMode;
+
+  @Param ({ "1024", "1048576", "104857600" })
+  public int m_nPayloadSize;
+
+  private byte [] m_aPayload;
+  private byte [] m_aCompressedPayload;
+
+  @Setup (Level.Trial)
+  public void setupTrial () throws Exception
+  {
+    m_aPayload = AS4BenchmarkHelper.createPayloadBytes (m_nPayloadSize);
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+    {
+      try (final OutputStream aOS = m_eCompressionMode.getCompressStream (aBAOS))
+      {
+        aOS.write (m_aPayload);
+      }
+      m_aCompressedPayload = aBAOS.toByteArray ();
+    }
+  }
+
+  @Benchmark
+  public long compress () throws Exception
+  {
+    final CountingOutputStream aCOS = new CountingOutputStream (new NullOutputStream ());
+    try (final OutputStream aOS = m_eCompressionMode.getCompressStream (aCOS))
+    {
+      aOS.write (m_aPayload);
+    }
+    return aCOS.getBytesWritten ();
+  }
+
+  @Benchmark
+  public long decompress () throws Exception
+  {
+    final CountingOutputStream aCOS = new CountingOutputStream (new NullOutputStream ());
+    try (final InputStream aIS = m_eCompressionMode.getDecompressStream (new NonBlockingByteArrayInputStream (m_aCompressedPayload)))
+    {
+      StreamHelper.copyInputStreamToOutputStream (aIS, aCOS);
+    }
+    return aCOS.getBytesWritten ();
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.helger.commons.state.EContinue;
+import com.helger.phase4.duplicate.AS4DuplicateManagerInMemory;
+import com.helger.phase4.messaging.domain.MessageHelperMethods;
+
+/**
+ * Benchmark for the duplicate detection in {@link AS4DuplicateManagerInMemory},
+ * both for new message IDs and for duplicates. The manager is pre-filled with
+ * a configurable number of entries and recreated for every iteration.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 3, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class AS4DuplicateManagerBenchmark
+{
+  private static final String PROFILE_ID = "benchmark";
+  private static final String PMODE_ID = "default-" + AS4BenchmarkHelper.SENDER_ID + "-" + AS4BenchmarkHelper.RECEIVER_ID;
+
+  @Param ({ "1000", "100000" })
+  public int m_nExistingEntries;
+
+  private AS4DuplicateManagerInMemory m_aMgr;
+  private String m_sExistingMessageID;
+
+  @Setup (Level.Iteration)
+  public void setupIteration ()
+  {
+    m_aMgr = new AS4DuplicateManagerInMemory ();
+    for (int i = 0; i < m_nExistingEntries; ++i)
+    {
+      m_sExistingMessageID = MessageHelperMethods.createRandomMessageID ();
+      m_aMgr.registerAndCheck (m_sExistingMessageID, PROFILE_ID, PMODE_ID);
+    }
+  }
+
+  @Benchmark
+  public EContinue registerNewMessageID ()
+  {
+    return m_aMgr.registerAndCheck (MessageHelperMethods.createRandomMessageID (), PROFILE_ID, PMODE_ID);
+  }
+
+  @Benchmark
+  public EContinue registerDuplicateMessageID ()
+  {
+    return m_aMgr.registerAndCheck (m_sExistingMessageID, PROFILE_ID, PMODE_ID);
+  }
+}
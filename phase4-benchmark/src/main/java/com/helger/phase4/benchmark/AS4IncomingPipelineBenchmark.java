@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.benchmark;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hc.core5.http.HttpEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.http.CHttpHeader;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.wrapper.Wrapper;
+import com.helger.phase4.attachment.IAS4IncomingAttachmentFactory;
+import com.helger.phase4.client.AS4ClientBuiltMessage;
+import com.helger.phase4.client.AS4ClientUserMessage;
+import com.helger.phase4.crypto.ECryptoAlgorithmCrypt;
+import com.helger.phase4.crypto.ECryptoAlgorithmSign;
+import com.helger.phase4.crypto.ECryptoAlgorithmSignDigest;
+import com.helger.phase4.crypto.IAS4CryptoFactory;
+import com.helger.phase4.ebms3header.Ebms3Error;
+import com.helger.phase4.messaging.domain.MessageHelperMethods;
+import com.helger.phase4.model.pmode.resolve.DefaultPModeResolver;
+import com.helger.phase4.servlet.AS4IncomingHandler;
+import com.helger.phase4.servlet.AS4IncomingMessageMetadata;
+import com.helger.phase4.servlet.AS4IncomingProfileSelectorFromGlobal;
+import com.helger.phase4.servlet.IAS4MessageState;
+import com.helger.phase4.servlet.soap.SOAPHeaderElementProcessorRegistry;
+import com.helger.phase4.util.AS4ResourceHelper;
+
+/**
+ * Benchmark for the receiving side: parsing an incoming AS4 message with
+ * {@link AS4IncomingHandler#parseAS4Message} followed by the SOAP header
+ * processing (signature verification, decryption, PMode resolution) in
+ * {@link AS4IncomingHandler#processEbmsMessage}. The message is created once
+ * per trial.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MILLISECONDS)
+@Warmup (iterations = 3, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (1)
+public class AS4IncomingPipelineBenchmark
+{
+  @Param ({ "SIGN", "SIGN_ENCRYPT" })
+  public AS4BuildUserMessageBenchmark.ESecurity m_eSecurity;
+
+  @Param ({ "1024", "1048576" })
+  public int m_nPayloadSize;
+
+  private IAS4CryptoFactory m_aCryptoFactory;
+  private byte [] m_aMessageBytes;
+  private HttpHeaderMap m_aHttpHeaders;
+
+  @Setup (Level.Trial)
+  public void setupTrial () throws Exception
+  {
+    AS4BenchmarkHelper.beginGlobalScope ();
+    m_aCryptoFactory = AS4BenchmarkHelper.createCryptoFactory ();
+
+    try (final AS4ResourceHelper aResHelper = new AS4ResourceHelper ())
+    {
+      final AS4ClientUserMessage aClient = AS4BenchmarkHelper.createUserMessageClient (aResHelper, m_aCryptoFactory);
+      aClient.signingParams ()
+             .setAlgorithmSign (ECryptoAlgorithmSign.SIGN_ALGORITHM_DEFAULT)
+             .setAlgorithmSignDigest (ECryptoAlgorithmSignDigest.SIGN_DIGEST_ALGORITHM_DEFAULT);
+      if (m_eSecurity == AS4BuildUserMessageBenchmark.ESecurity.SIGN_ENCRYPT)
+        aClient.cryptParams ()
+               .setAlgorithmCrypt (ECryptoAlgorithmCrypt.ENCRPYTION_ALGORITHM_DEFAULT)
+               .setAlias (AS4BenchmarkHelper.KEY_ALIAS);
+      aClient.setPayload (AS4BenchmarkHelper.createPayloadDocument (m_nPayloadSize).getDocumentElement ());
+
+      final AS4ClientBuiltMessage aBuiltMsg = aClient.buildMessage (MessageHelperMethods.createRandomMessageID (),
+                                                                    null);
+      final HttpEntity aEntity = aBuiltMsg.getHttpEntity ();
+      try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+      {
+        aEntity.writeTo (aBAOS);
+        m_aMessageBytes = aBAOS.toByteArray ();
+      }
+
+      m_aHttpHeaders = new HttpHeaderMap ();
+      if (aBuiltMsg.getCustomHeaders () != null)
+        m_aHttpHeaders.addAllHeaders (aBuiltMsg.getCustomHeaders ());
+      m_aHttpHeaders.setHeader (CHttpHeader.CONTENT_TYPE, aEntity.getContentType ());
+    }
+  }
+
+  @TearDown (Level.Trial)
+  public void tearDownTrial ()
+  {
+    AS4BenchmarkHelper.endGlobalScope ();
+  }
+
+  @Benchmark
+  public IAS4MessageState parseAndProcess () throws Exception
+  {
+    try (final AS4ResourceHelper aResHelper = new AS4ResourceHelper ())
+    {
+      final SOAPHeaderElementProcessorRegistry aRegistry = SOAPHeaderElementProcessorRegistry.createDefault (new DefaultPModeResolver (true),
+                                                                                                             m_aCryptoFactory,
+                                                                                                             null);
+      final ICommonsList <Ebms3Error> aErrors = new CommonsArrayList <> ();
+      final Wrapper <IAS4MessageState> aState = new Wrapper <> ();
+      AS4IncomingHandler.parseAS4Message (IAS4IncomingAttachmentFactory.DEFAULT_INSTANCE,
+                                          aResHelper,
+                                          AS4IncomingMessageMetadata.createForRequest (),
+                                          new NonBlockingByteArrayInputStream (m_aMessageBytes),
+                                          m_aHttpHeaders,
+                                          (aHttpHeaders, aSoapDocument, eSoapVersion, aIncomingAttachments) -> {
+                                            aState.set (AS4IncomingHandler.processEbmsMessage (aResHelper,
+                                                                                               Locale.US,
+                                                                                               aRegistry,
+                                                                                               aHttpHeaders,
+                                                                                               aSoapDocument,
+                                                                                               eSoapVersion,
+                                                                                               aIncomingAttachments,
+                                                                                               AS4IncomingProfileSelectorFromGlobal.INSTANCE,
+                                                                                               aErrors));
+                                          },
+                                          null);
+      if (aErrors.isNotEmpty ())
+        throw new IllegalStateException ("Processing the incoming message failed: " + aErrors);
+      return aState.get ();
+    }
+  }
+}
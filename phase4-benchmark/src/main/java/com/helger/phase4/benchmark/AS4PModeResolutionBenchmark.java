@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.helger.phase4.model.pmode.DefaultPMode;
+import com.helger.phase4.model.pmode.IPMode;
+import com.helger.phase4.model.pmode.resolve.DefaultPModeResolver;
+import com.helger.phase4.model.pmode.resolve.IPModeResolver;
+
+/**
+ * Benchmark for the PMode resolution of {@link DefaultPModeResolver} with a
+ * configurable number of registered PModes.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 3, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class AS4PModeResolutionBenchmark
+{
+  private static final String SERVICE = "BenchmarkService";
+  private static final String ACTION = "BenchmarkAction";
+
+  @Param ({ "10", "1000" })
+  public int m_nPModeCount;
+
+  private IPModeResolver m_aResolver;
+  private String m_sExistingPModeID;
+
+  @Setup (Level.Trial)
+  public void setupTrial ()
+  {
+    AS4BenchmarkHelper.beginGlobalScope ();
+    for (int i = 0; i < m_nPModeCount; ++i)
+      m_sExistingPModeID = DefaultPMode.getOrCreateDefaultPMode (AS4BenchmarkHelper.SENDER_ID + i,
+                                                                 AS4BenchmarkHelper.RECEIVER_ID,
+                                                                 null,
+                                                                 true)
+                                       .getID ();
+    m_aResolver = new DefaultPModeResolver (true);
+  }
+
+  @TearDown (Level.Trial)
+  public void tearDownTrial ()
+  {
+    AS4BenchmarkHelper.endGlobalScope ();
+  }
+
+  @Benchmark
+  public IPMode resolveByID ()
+  {
+    return m_aResolver.getPModeOfID (m_sExistingPModeID,
+                                     SERVICE,
+                                     ACTION,
+                                     AS4BenchmarkHelper.SENDER_ID,
+                                     AS4BenchmarkHelper.RECEIVER_ID,
+                                     null,
+                                     null);
+  }
+
+  @Benchmark
+  public IPMode resolveFallback ()
+  {
+    // Unknown ID, so the service/action lookup and the default PMode are used
+    return m_aResolver.getPModeOfID ("unknown",
+                                     SERVICE,
+                                     ACTION,
+                                     AS4BenchmarkHelper.SENDER_ID,
+                                     AS4BenchmarkHelper.RECEIVER_ID,
+                                     null,
+                                     null);
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import com.helger.commons.wrapper.Wrapper;
+import com.helger.phase4.client.AS4ClientUserMessage;
+import com.helger.phase4.client.IAS4ClientBuildMessageCallback;
+import com.helger.phase4.crypto.AS4CryptParams;
+import com.helger.phase4.crypto.AS4SigningParams;
+import com.helger.phase4.crypto.IAS4CryptoFactory;
+import com.helger.phase4.messaging.crypto.AS4Encryptor;
+import com.helger.phase4.messaging.crypto.AS4Signer;
+import com.helger.phase4.messaging.domain.AbstractAS4Message;
+import com.helger.phase4.messaging.domain.MessageHelperMethods;
+import com.helger.phase4.soap.ESoapVersion;
+import com.helger.phase4.util.AS4ResourceHelper;
+
+/**
+ * Benchmark for the WS-Security primitives {@link AS4Signer} and
+ * {@link AS4Encryptor} on an already created SOAP document, independent of the
+ * message building.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MILLISECONDS)
+@Warmup (iterations = 3, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (1)
+public class AS4SignEncryptBenchmark
+{
+  @Param ({ "1024", "1048576" })
+  public int m_nPayloadSize;
+
+  private IAS4CryptoFactory m_aCryptoFactory;
+  private AS4SigningParams m_aSigningParams;
+  private AS4CryptParams m_aCryptParams;
+  private Document m_aSoapDoc;
+  private String m_sMessagingID;
+
+  private AS4ResourceHelper m_aResHelper;
+  private Document m_aWorkingDoc;
+
+  @Setup (Level.Trial)
+  public void setupTrial () throws Exception
+  {
+    AS4BenchmarkHelper.beginGlobalScope ();
+    m_aCryptoFactory = AS4BenchmarkHelper.createCryptoFactory ();
+    m_aSigningParams = AS4SigningParams.createDefault ();
+    m_aCryptParams = AS4CryptParams.createDefault ().setAlias (AS4BenchmarkHelper.KEY_ALIAS);
+
+    // Build an unsigned message once, and remember the SOAP document
+    try (final AS4ResourceHelper aResHelper = new AS4ResourceHelper ())
+    {
+      final AS4ClientUserMessage aClient = AS4BenchmarkHelper.createUserMessageClient (aResHelper, m_aCryptoFactory);
+      aClient.setPayload (AS4BenchmarkHelper.createPayloadDocument (m_nPayloadSize).getDocumentElement ());
+
+      final Wrapper <Document> aDocKeeper = new Wrapper <> ();
+      final Wrapper <String> aMessagingIDKeeper = new Wrapper <> ();
+      aClient.buildMessage (MessageHelperMethods.createRandomMessageID (), new IAS4ClientBuildMessageCallback ()
+      {
+        @Override
+        public void onAS4Message (final AbstractAS4Message <?> aMsg)
+        {
+          aMessagingIDKeeper.set (aMsg.getMessagingID ());
+        }
+
+        @Override
+        public void onSoapDocument (final Document aDoc)
+        {
+          aDocKeeper.set (aDoc);
+        }
+      });
+      m_aSoapDoc = aDocKeeper.get ();
+      m_sMessagingID = aMessagingIDKeeper.get ();
+    }
+  }
+
+  @TearDown (Level.Trial)
+  public void tearDownTrial ()
+  {
+    AS4BenchmarkHelper.endGlobalScope ();
+  }
+
+  @Setup (Level.Invocation)
+  public void setupInvocation ()
+  {
+    m_aResHelper = new AS4ResourceHelper ();
+    // Signing and encryption modify the document in place
+    m_aWorkingDoc = (Document) m_aSoapDoc.cloneNode (true);
+  }
+
+  @TearDown (Level.Invocation)
+  public void tearDownInvocation ()
+  {
+    m_aResHelper.close ();
+  }
+
+  @Benchmark
+  public Document sign () throws Exception
+  {
+    return AS4Signer.createSignedMessage (m_aCryptoFactory,
+                                          m_aWorkingDoc,
+                                          ESoapVersion.AS4_DEFAULT,
+                                          m_sMessagingID,
+                                          null,
+                                          m_aResHelper,
+                                          false,
+                                          m_aSigningParams);
+  }
+
+  @Benchmark
+  public Document encrypt () throws Exception
+  {
+    return AS4Encryptor.encryptSoapBodyPayload (m_aCryptoFactory,
+                                                ESoapVersion.AS4_DEFAULT,
+                                                m_aWorkingDoc,
+                                                false,
+                                                m_aCryptParams);
+  }
+
+  @Benchmark
+  public Document signAndEncrypt () throws Exception
+  {
+    final Document aSignedDoc = AS4Signer.createSignedMessage (m_aCryptoFactory,
+                                                               m_aWorkingDoc,
+                                                               ESoapVersion.AS4_DEFAULT,
+                                                               m_sMessagingID,
+                                                               null,
+                                                               m_aResHelper,
+                                                               false,
+                                                               m_aSigningParams);
+    return AS4Encryptor.encryptSoapBodyPayload (m_aCryptoFactory,
+                                                ESoapVersion.AS4_DEFAULT,
+                                                aSignedDoc,
+                                                false,
+                                                m_aCryptParams);
+  }
+}
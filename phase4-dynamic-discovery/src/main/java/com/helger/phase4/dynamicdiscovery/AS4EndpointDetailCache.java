@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2020-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dynamicdiscovery;
+
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.commons.state.EChange;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A thread-safe cache for resolved endpoint details (AP certificate and AP
+ * endpoint URL), keyed by {@link AS4EndpointLookupKey}. It is meant to be
+ * shared between many senders and can be pre-filled in bulk with
+ * {@link AS4EndpointDetailPrefetcherPeppol}. A single cache should only contain
+ * entries for a single transport profile.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@ThreadSafe
+public class AS4EndpointDetailCache
+{
+  /**
+   * A single resolved cache entry.
+   *
+   * @author Philip Helger
+   */
+  @Immutable
+  public static final class Entry
+  {
+    private final X509Certificate m_aReceiverCert;
+    private final String m_sDestURL;
+    private final OffsetDateTime m_aResolutionDT;
+
+    public Entry (@Nullable final X509Certificate aReceiverCert,
+                  @Nonnull @Nonempty final String sDestURL,
+                  @Nonnull final OffsetDateTime aResolutionDT)
+    {
+      ValueEnforcer.notEmpty (sDestURL, "DestURL");
+      ValueEnforcer.notNull (aResolutionDT, "ResolutionDT");
+      m_aReceiverCert = aReceiverCert;
+      m_sDestURL = sDestURL;
+      m_aResolutionDT = aResolutionDT;
+    }
+
+    /**
+     * @return The receiver AP certificate. May be <code>null</code>.
+     */
+    @Nullable
+    public X509Certificate getReceiverAPCertificate ()
+    {
+      return m_aReceiverCert;
+    }
+
+    /**
+     * @return The receiver AP endpoint URL. Neither <code>null</code> nor
+     *         empty.
+     */
+    @Nonnull
+    @Nonempty
+    public String getReceiverAPEndpointURL ()
+    {
+      return m_sDestURL;
+    }
+
+    /**
+     * @return The date and time when the entry was resolved. Never
+     *         <code>null</code>.
+     */
+    @Nonnull
+    public OffsetDateTime getResolutionDateTime ()
+    {
+      return m_aResolutionDT;
+    }
+
+    @Override
+    public String toString ()
+    {
+      return new ToStringGenerator (null).append ("ReceiverCert", m_aReceiverCert != null)
+                                         .append ("DestURL", m_sDestURL)
+                                         .append ("ResolutionDT", m_aResolutionDT)
+                                         .getToString ();
+    }
+  }
+
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  @GuardedBy ("m_aRWLock")
+  private final ICommonsMap <AS4EndpointLookupKey, Entry> m_aMap = new CommonsHashMap <> ();
+  private final Duration m_aMaxAge;
+
+  /**
+   * Constructor for a cache with entries that never expire.
+   */
+  public AS4EndpointDetailCache ()
+  {
+    this (null);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aMaxAge
+   *        The maximum age of a cache entry, after which it is considered
+   *        stale and is no longer returned. May be <code>null</code> to
+   *        indicate that entries never expire.
+   */
+  public AS4EndpointDetailCache (@Nullable final Duration aMaxAge)
+  {
+    ValueEnforcer.isTrue (aMaxAge == null || !aMaxAge.isNegative (), "MaxAge may not be negative");
+    m_aMaxAge = aMaxAge;
+  }
+
+  /**
+   * @return The maximum age of cache entries. May be <code>null</code> if
+   *         entries never expire.
+   */
+  @Nullable
+  public final Duration getMaxAge ()
+  {
+    return m_aMaxAge;
+  }
+
+  private boolean _isExpired (@Nonnull final Entry aEntry, @Nonnull final OffsetDateTime aNow)
+  {
+    return m_aMaxAge != null && aEntry.getResolutionDateTime ().plus (m_aMaxAge).isBefore (aNow);
+  }
+
+  /**
+   * Add or replace an entry in the cache.
+   *
+   * @param aKey
+   *        The lookup key. May not be <code>null</code>.
+   * @param aReceiverCert
+   *        The receiver AP certificate. May be <code>null</code>.
+   * @param sDestURL
+   *        The receiver AP endpoint URL. May neither be <code>null</code> nor
+   *        empty.
+   * @return The created cache entry. Never <code>null</code>.
+   */
+  @Nonnull
+  public Entry put (@Nonnull final AS4EndpointLookupKey aKey,
+                    @Nullable final X509Certificate aReceiverCert,
+                    @Nonnull @Nonempty final String sDestURL)
+  {
+    ValueEnforcer.notNull (aKey, "Key");
+    final Entry aEntry = new Entry (aReceiverCert, sDestURL, PDTFactory.getCurrentOffsetDateTime ());
+    m_aRWLock.writeLocked ( () -> m_aMap.put (aKey, aEntry));
+    return aEntry;
+  }
+
+  /**
+   * Get the cache entry for the provided key.
+   *
+   * @param aKey
+   *        The lookup key. May be <code>null</code>.
+   * @return <code>null</code> if no such entry is present or if the entry is
+   *         expired.
+   */
+  @Nullable
+  public Entry get (@Nullable final AS4EndpointLookupKey aKey)
+  {
+    if (aKey == null)
+      return null;
+
+    final Entry aEntry = m_aRWLock.readLockedGet ( () -> m_aMap.get (aKey));
+    if (aEntry == null || _isExpired (aEntry, PDTFactory.getCurrentOffsetDateTime ()))
+      return null;
+    return aEntry;
+  }
+
+  /**
+   * Check if a non-expired entry is present for the provided key.
+   *
+   * @param aKey
+   *        The lookup key. May be <code>null</code>.
+   * @return <code>true</code> if a usable entry is present.
+   */
+  public boolean containsKey (@Nullable final AS4EndpointLookupKey aKey)
+  {
+    return get (aKey) != null;
+  }
+
+  /**
+   * Remove a single entry from the cache.
+   *
+   * @param aKey
+   *        The lookup key. May be <code>null</code>.
+   * @return {@link EChange}
+   */
+  @Nonnull
+  public EChange remove (@Nullable final AS4EndpointLookupKey aKey)
+  {
+    if (aKey == null)
+      return EChange.UNCHANGED;
+    return m_aRWLock.writeLockedGet ( () -> m_aMap.removeObject (aKey));
+  }
+
+  /**
+   * Remove all expired entries from the cache. This is a no-op if no maximum
+   * age is defined.
+   *
+   * @return The number of removed entries. Always &ge; 0.
+   */
+  @Nonnegative
+  public int evictExpiredEntries ()
+  {
+    if (m_aMaxAge == null)
+      return 0;
+
+    final OffsetDateTime aNow = PDTFactory.getCurrentOffsetDateTime ();
+    return m_aRWLock.writeLockedInt ( () -> {
+      final int nOld = m_aMap.size ();
+      m_aMap.removeIfValue (x -> _isExpired (x, aNow));
+      return nOld - m_aMap.size ();
+    });
+  }
+
+  /**
+   * Remove all entries from the cache.
+   *
+   * @return {@link EChange}
+   */
+  @Nonnull
+  public EChange clearCache ()
+  {
+    return m_aRWLock.writeLockedGet (m_aMap::removeAll);
+  }
+
+  /**
+   * @return The number of entries in the cache, including potentially expired
+   *         ones. Always &ge; 0.
+   */
+  @Nonnegative
+  public int size ()
+  {
+    return m_aRWLock.readLockedInt (m_aMap::size);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("Size", size ()).appendIfNotNull ("MaxAge", m_aMaxAge).getToString ();
+  }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2020-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dynamicdiscovery;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.CommonsLinkedHashSet;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.collection.impl.ICommonsOrderedSet;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.timing.StopWatch;
+import com.helger.peppol.sml.ISMLInfo;
+import com.helger.peppol.smp.ISMPTransportProfile;
+import com.helger.smpclient.peppol.SMPClientReadOnly;
+import com.helger.smpclient.url.ISMPURLProvider;
+
+/**
+ * Resolve the endpoint details of many Peppol receivers in parallel and store
+ * the results in an {@link AS4EndpointDetailCache}. This is meant for bulk
+ * outbound runs, where the SMP lookups can be performed upfront, so that the
+ * individual senders only need to consult the cache via
+ * {@link AS4EndpointDetailProviderCached}.<br>
+ * The number of concurrent lookups is bounded both globally (number of
+ * threads) and per SMP host, to avoid overloading single SMPs that serve many
+ * receivers.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@NotThreadSafe
+public class AS4EndpointDetailPrefetcherPeppol
+{
+  public static final int DEFAULT_MAX_THREADS = 16;
+  public static final int DEFAULT_MAX_CONCURRENT_REQUESTS_PER_HOST = 4;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4EndpointDetailPrefetcherPeppol.class);
+
+  private final ISMPURLProvider m_aURLProvider;
+  private final ISMLInfo m_aSMLInfo;
+  private final AS4EndpointDetailCache m_aCache;
+  private ISMPTransportProfile m_aTP = AS4EndpointDetailProviderPeppol.DEFAULT_TRANSPORT_PROFILE;
+  private int m_nMaxThreads = DEFAULT_MAX_THREADS;
+  private int m_nMaxConcurrentRequestsPerHost = DEFAULT_MAX_CONCURRENT_REQUESTS_PER_HOST;
+  private Consumer <? super SMPClientReadOnly> m_aSMPClientCustomizer;
+
+  /**
+   * Constructor
+   *
+   * @param aURLProvider
+   *        The URL provider to determine the SMP of each receiver. May not be
+   *        <code>null</code>.
+   * @param aSMLInfo
+   *        The SML to be used. May not be <code>null</code>.
+   * @param aCache
+   *        The cache to be filled. May not be <code>null</code>.
+   */
+  public AS4EndpointDetailPrefetcherPeppol (@Nonnull final ISMPURLProvider aURLProvider,
+                                            @Nonnull final ISMLInfo aSMLInfo,
+                                            @Nonnull final AS4EndpointDetailCache aCache)
+  {
+    ValueEnforcer.notNull (aURLProvider, "URLProvider");
+    ValueEnforcer.notNull (aSMLInfo, "SMLInfo");
+    ValueEnforcer.notNull (aCache, "Cache");
+    m_aURLProvider = aURLProvider;
+    m_aSMLInfo = aSMLInfo;
+    m_aCache = aCache;
+  }
+
+  /**
+   * @return The cache to be filled. Never <code>null</code>.
+   */
+  @Nonnull
+  public final AS4EndpointDetailCache getCache ()
+  {
+    return m_aCache;
+  }
+
+  /**
+   * @return The transport profile to be used. Defaults to
+   *         {@link AS4EndpointDetailProviderPeppol#DEFAULT_TRANSPORT_PROFILE}.
+   */
+  @Nonnull
+  public final ISMPTransportProfile getTransportProfile ()
+  {
+    return m_aTP;
+  }
+
+  /**
+   * @param aTP
+   *        The transport profile to be used. May not be <code>null</code>.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4EndpointDetailPrefetcherPeppol setTransportProfile (@Nonnull final ISMPTransportProfile aTP)
+  {
+    ValueEnforcer.notNull (aTP, "TransportProfile");
+    m_aTP = aTP;
+    return this;
+  }
+
+  /**
+   * @return The maximum number of threads used for resolving. Always &gt; 0.
+   */
+  @Nonnegative
+  public final int getMaxThreads ()
+  {
+    return m_nMaxThreads;
+  }
+
+  /**
+   * @param nMaxThreads
+   *        The maximum number of threads used for resolving. Must be &gt; 0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4EndpointDetailPrefetcherPeppol setMaxThreads (@Nonnegative final int nMaxThreads)
+  {
+    ValueEnforcer.isGT0 (nMaxThreads, "MaxThreads");
+    m_nMaxThreads = nMaxThreads;
+    return this;
+  }
+
+  /**
+   * @return The maximum number of concurrent requests against a single SMP
+   *         host. Always &gt; 0.
+   */
+  @Nonnegative
+  public final int getMaxConcurrentRequestsPerHost ()
+  {
+    return m_nMaxConcurrentRequestsPerHost;
+  }
+
+  /**
+   * @param nMaxConcurrentRequestsPerHost
+   *        The maximum number of concurrent requests against a single SMP
+   *        host. Must be &gt; 0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4EndpointDetailPrefetcherPeppol setMaxConcurrentRequestsPerHost (@Nonnegative final int nMaxConcurrentRequestsPerHost)
+  {
+    ValueEnforcer.isGT0 (nMaxConcurrentRequestsPerHost, "MaxConcurrentRequestsPerHost");
+    m_nMaxConcurrentRequestsPerHost = nMaxConcurrentRequestsPerHost;
+    return this;
+  }
+
+  /**
+   * @return The optional customizer for each created SMP client. May be
+   *         <code>null</code>.
+   */
+  @Nullable
+  public final Consumer <? super SMPClientReadOnly> getSMPClientCustomizer ()
+  {
+    return m_aSMPClientCustomizer;
+  }
+
+  /**
+   * Set an optional customizer that is invoked for every SMP client created
+   * internally. This can e.g. be used to set proxy or timeout settings.
+   *
+   * @param aSMPClientCustomizer
+   *        The customizer to be used. May be <code>null</code>.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4EndpointDetailPrefetcherPeppol setSMPClientCustomizer (@Nullable final Consumer <? super SMPClientReadOnly> aSMPClientCustomizer)
+  {
+    m_aSMPClientCustomizer = aSMPClientCustomizer;
+    return this;
+  }
+
+  private void _resolve (@Nonnull final AS4EndpointLookupKey aKey,
+                         @Nonnull final Map <String, Semaphore> aHostSemaphores,
+                         @Nonnull final Map <AS4EndpointLookupKey, Exception> aFailures)
+  {
+    try
+    {
+      // DNS lookup of the SMP
+      final URI aSMPURI = m_aURLProvider.getSMPURIOfParticipant (aKey.getReceiverID (), m_aSMLInfo);
+      final String sHost = aSMPURI.getHost () != null ? aSMPURI.getHost () : aSMPURI.toString ();
+
+      final Semaphore aSemaphore = aHostSemaphores.computeIfAbsent (sHost,
+                                                                    k -> new Semaphore (m_nMaxConcurrentRequestsPerHost));
+      aSemaphore.acquire ();
+      try
+      {
+        final SMPClientReadOnly aSMPClient = new SMPClientReadOnly (aSMPURI);
+        if (m_aSMPClientCustomizer != null)
+          m_aSMPClientCustomizer.accept (aSMPClient);
+
+        final AS4EndpointDetailProviderPeppol aEDP = new AS4EndpointDetailProviderPeppol (aSMPClient).setTransportProfile (m_aTP);
+        aEDP.init (aKey.getDocTypeID (), aKey.getProcessID (), aKey.getReceiverID ());
+        m_aCache.put (aKey, aEDP.getReceiverAPCertificate (), aEDP.getReceiverAPEndpointURL ());
+      }
+      finally
+      {
+        aSemaphore.release ();
+      }
+    }
+    catch (final InterruptedException ex)
+    {
+      aFailures.put (aKey, ex);
+      Thread.currentThread ().interrupt ();
+    }
+    catch (final Exception ex)
+    {
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Failed to prefetch endpoint details for " + aKey, ex);
+      aFailures.put (aKey, ex);
+    }
+  }
+
+  /**
+   * Resolve all provided lookup keys in parallel and put the results into the
+   * cache. Keys for which the cache already contains a usable entry are
+   * skipped. This method blocks until all lookups are finished.
+   *
+   * @param aKeys
+   *        The keys to be resolved. May not be <code>null</code>.
+   * @return A map from all keys that could not be resolved to the respective
+   *         exception. Never <code>null</code> but maybe empty if all lookups
+   *         succeeded.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsMap <AS4EndpointLookupKey, Exception> prefetch (@Nonnull final Collection <AS4EndpointLookupKey> aKeys)
+  {
+    ValueEnforcer.noNullValue (aKeys, "Keys");
+
+    // Unify and skip all cached ones
+    final ICommonsOrderedSet <AS4EndpointLookupKey> aOpenKeys = new CommonsLinkedHashSet <> ();
+    for (final AS4EndpointLookupKey aKey : aKeys)
+      if (!m_aCache.containsKey (aKey))
+        aOpenKeys.add (aKey);
+
+    final Map <AS4EndpointLookupKey, Exception> aFailures = new ConcurrentHashMap <> ();
+    if (aOpenKeys.isNotEmpty ())
+    {
+      LOGGER.info ("Starting to prefetch " +
+                   aOpenKeys.size () +
+                   " of " +
+                   aKeys.size () +
+                   " endpoint details using up to " +
+                   m_nMaxThreads +
+                   " threads");
+      final StopWatch aSW = StopWatch.createdStarted ();
+
+      final Map <String, Semaphore> aHostSemaphores = new ConcurrentHashMap <> ();
+      final ExecutorService aES = Executors.newFixedThreadPool (Math.min (m_nMaxThreads, aOpenKeys.size ()),
+                                                                new BasicThreadFactory.Builder ().namingPattern ("phase4-smp-prefetch-%d")
+                                                                                                 .daemon (true)
+                                                                                                 .build ());
+      try
+      {
+        for (final AS4EndpointLookupKey aKey : aOpenKeys)
+          aES.submit ( () -> _resolve (aKey, aHostSemaphores, aFailures));
+      }
+      finally
+      {
+        ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (aES);
+      }
+
+      aSW.stop ();
+      LOGGER.info ("Finished prefetching " +
+                   aOpenKeys.size () +
+                   " endpoint details from " +
+                   aHostSemaphores.size () +
+                   " SMP hosts in " +
+                   aSW.getMillis () +
+                   " ms; " +
+                   aFailures.size () +
+                   " failed");
+    }
+    return new CommonsHashMap <> (aFailures);
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2020-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dynamicdiscovery;
+
+import java.security.cert.X509Certificate;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.phase4.util.Phase4Exception;
+
+/**
+ * Implementation of {@link IAS4EndpointDetailProvider} that first consults a
+ * shared {@link AS4EndpointDetailCache} and only in case of a cache miss falls
+ * back to another endpoint detail provider. Results of the fallback provider
+ * are put into the cache.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+public class AS4EndpointDetailProviderCached implements IAS4EndpointDetailProvider
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4EndpointDetailProviderCached.class);
+
+  private final AS4EndpointDetailCache m_aCache;
+  private final IAS4EndpointDetailProvider m_aFallback;
+  private AS4EndpointDetailCache.Entry m_aEntry;
+
+  /**
+   * Constructor
+   *
+   * @param aCache
+   *        The cache to be used. May not be <code>null</code>.
+   * @param aFallback
+   *        The endpoint detail provider to be used in case of a cache miss. May
+   *        be <code>null</code> in which case a cache miss results in a
+   *        {@link Phase4SMPException}.
+   */
+  public AS4EndpointDetailProviderCached (@Nonnull final AS4EndpointDetailCache aCache,
+                                          @Nullable final IAS4EndpointDetailProvider aFallback)
+  {
+    ValueEnforcer.notNull (aCache, "Cache");
+    m_aCache = aCache;
+    m_aFallback = aFallback;
+  }
+
+  /**
+   * @return The cache passed in the constructor. Never <code>null</code>.
+   */
+  @Nonnull
+  public final AS4EndpointDetailCache getCache ()
+  {
+    return m_aCache;
+  }
+
+  /**
+   * @return The fallback provider passed in the constructor. May be
+   *         <code>null</code>.
+   */
+  @Nullable
+  public final IAS4EndpointDetailProvider getFallback ()
+  {
+    return m_aFallback;
+  }
+
+  public void init (@Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                    @Nonnull final IProcessIdentifier aProcID,
+                    @Nonnull final IParticipantIdentifier aReceiverID) throws Phase4Exception
+  {
+    ValueEnforcer.notNull (aDocTypeID, "DocTypeID");
+    ValueEnforcer.notNull (aProcID, "ProcID");
+    ValueEnforcer.notNull (aReceiverID, "ReceiverID");
+
+    if (m_aEntry == null)
+    {
+      final AS4EndpointLookupKey aKey = new AS4EndpointLookupKey (aReceiverID, aDocTypeID, aProcID);
+      m_aEntry = m_aCache.get (aKey);
+      if (m_aEntry != null)
+      {
+        if (LOGGER.isDebugEnabled ())
+          LOGGER.debug ("Using cached endpoint details for " + aKey);
+      }
+      else
+      {
+        if (m_aFallback == null)
+          throw new Phase4SMPException ("No cached endpoint details present for " + aKey + " and no fallback is configured");
+
+        if (LOGGER.isDebugEnabled ())
+          LOGGER.debug ("No cached endpoint details present for " + aKey + " - using fallback");
+
+        m_aFallback.init (aDocTypeID, aProcID, aReceiverID);
+        m_aEntry = m_aCache.put (aKey, m_aFallback.getReceiverAPCertificate (), m_aFallback.getReceiverAPEndpointURL ());
+      }
+    }
+  }
+
+  @Nullable
+  public X509Certificate getReceiverAPCertificate () throws Phase4Exception
+  {
+    if (m_aEntry == null)
+      throw new Phase4Exception ("init was not called");
+    return m_aEntry.getReceiverAPCertificate ();
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getReceiverAPEndpointURL () throws Phase4Exception
+  {
+    if (m_aEntry == null)
+      throw new Phase4Exception ("init was not called");
+    return m_aEntry.getReceiverAPEndpointURL ();
+  }
+}
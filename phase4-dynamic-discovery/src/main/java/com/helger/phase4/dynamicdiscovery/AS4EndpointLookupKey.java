@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2020-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dynamicdiscovery;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.hashcode.HashCodeGenerator;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+
+/**
+ * The tuple of receiver, document type and process that uniquely identifies a
+ * single endpoint lookup. Equality is based on the URI encoded form of the
+ * identifiers so that identifiers created by different factories can be used
+ * interchangeably.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@Immutable
+public final class AS4EndpointLookupKey
+{
+  private final IParticipantIdentifier m_aReceiverID;
+  private final IDocumentTypeIdentifier m_aDocTypeID;
+  private final IProcessIdentifier m_aProcessID;
+  // Status vars
+  private final String m_sReceiverID;
+  private final String m_sDocTypeID;
+  private final String m_sProcessID;
+
+  public AS4EndpointLookupKey (@Nonnull final IParticipantIdentifier aReceiverID,
+                               @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                               @Nonnull final IProcessIdentifier aProcessID)
+  {
+    ValueEnforcer.notNull (aReceiverID, "ReceiverID");
+    ValueEnforcer.notNull (aDocTypeID, "DocTypeID");
+    ValueEnforcer.notNull (aProcessID, "ProcessID");
+    m_aReceiverID = aReceiverID;
+    m_aDocTypeID = aDocTypeID;
+    m_aProcessID = aProcessID;
+    m_sReceiverID = aReceiverID.getURIEncoded ();
+    m_sDocTypeID = aDocTypeID.getURIEncoded ();
+    m_sProcessID = aProcessID.getURIEncoded ();
+  }
+
+  /**
+   * @return The receiver participant ID as provided in the constructor. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public IParticipantIdentifier getReceiverID ()
+  {
+    return m_aReceiverID;
+  }
+
+  /**
+   * @return The document type ID as provided in the constructor. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public IDocumentTypeIdentifier getDocTypeID ()
+  {
+    return m_aDocTypeID;
+  }
+
+  /**
+   * @return The process ID as provided in the constructor. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public IProcessIdentifier getProcessID ()
+  {
+    return m_aProcessID;
+  }
+
+  @Override
+  public boolean equals (final Object o)
+  {
+    if (o == this)
+      return true;
+    if (o == null || !getClass ().equals (o.getClass ()))
+      return false;
+    final AS4EndpointLookupKey rhs = (AS4EndpointLookupKey) o;
+    return m_sReceiverID.equals (rhs.m_sReceiverID) &&
+           m_sDocTypeID.equals (rhs.m_sDocTypeID) &&
+           m_sProcessID.equals (rhs.m_sProcessID);
+  }
+
+  @Override
+  public int hashCode ()
+  {
+    return new HashCodeGenerator (this).append (m_sReceiverID).append (m_sDocTypeID).append (m_sProcessID).getHashCode ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("ReceiverID", m_sReceiverID)
+                                       .append ("DocTypeID", m_sDocTypeID)
+                                       .append ("ProcessID", m_sProcessID)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dynamicdiscovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.http.CHttp;
+import com.helger.commons.http.CHttpHeader;
+import com.helger.commons.mime.CMimeType;
+import com.helger.peppol.sml.ESML;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+import com.helger.phase4.util.Phase4Exception;
+import com.helger.smpclient.peppol.SMPClientReadOnly;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test class for class {@link AS4EndpointDetailPrefetcherPeppol}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4EndpointDetailPrefetcherPeppolTest
+{
+  private static final IParticipantIdentifier RECEIVER = PeppolIdentifierFactory.INSTANCE.createParticipantIdentifierWithDefaultScheme ("9915:test");
+  private static final IDocumentTypeIdentifier DOCTYPE = PeppolIdentifierFactory.INSTANCE.createDocumentTypeIdentifierWithDefaultScheme ("urn:doctype");
+  private static final IProcessIdentifier PROCESS = PeppolIdentifierFactory.INSTANCE.createProcessIdentifierWithDefaultScheme ("urn:process");
+  private static final String ENDPOINT_URL = "http://localhost/as4";
+
+  // A minimal, unsigned SMP response
+  private static final String SERVICE_METADATA = "<smp:SignedServiceMetadata xmlns:smp=\"http://busdox.org/serviceMetadata/publishing/1.0/\"" +
+                                                 " xmlns:id=\"http://busdox.org/transport/identifiers/1.0/\"" +
+                                                 " xmlns:wsa=\"http://www.w3.org/2005/08/addressing\">" +
+                                                 "<smp:ServiceMetadata><smp:ServiceInformation>" +
+                                                 "<id:ParticipantIdentifier scheme=\"" +
+                                                 RECEIVER.getScheme () +
+                                                 "\">" +
+                                                 RECEIVER.getValue () +
+                                                 "</id:ParticipantIdentifier>" +
+                                                 "<id:DocumentIdentifier scheme=\"" +
+                                                 DOCTYPE.getScheme () +
+                                                 "\">" +
+                                                 DOCTYPE.getValue () +
+                                                 "</id:DocumentIdentifier>" +
+                                                 "<smp:ProcessList><smp:Process>" +
+                                                 "<id:ProcessIdentifier scheme=\"" +
+                                                 PROCESS.getScheme () +
+                                                 "\">" +
+                                                 PROCESS.getValue () +
+                                                 "</id:ProcessIdentifier>" +
+                                                 "<smp:ServiceEndpointList><smp:Endpoint transportProfile=\"" +
+                                                 AS4EndpointDetailProviderPeppol.DEFAULT_TRANSPORT_PROFILE.getID () +
+                                                 "\">" +
+                                                 "<wsa:EndpointReference><wsa:Address>" +
+                                                 ENDPOINT_URL +
+                                                 "</wsa:Address></wsa:EndpointReference>" +
+                                                 "<smp:RequireBusinessLevelSignature>false</smp:RequireBusinessLevelSignature>" +
+                                                 "<smp:Certificate></smp:Certificate>" +
+                                                 "<smp:ServiceDescription>Test</smp:ServiceDescription>" +
+                                                 "<smp:TechnicalContactUrl>http://localhost</smp:TechnicalContactUrl>" +
+                                                 "</smp:Endpoint></smp:ServiceEndpointList>" +
+                                                 "</smp:Process></smp:ProcessList>" +
+                                                 "</smp:ServiceInformation></smp:ServiceMetadata>" +
+                                                 "</smp:SignedServiceMetadata>";
+
+  private HttpServer m_aSMP;
+  private URI m_aSMPURI;
+  private final AtomicInteger m_aSMPRequests = new AtomicInteger (0);
+  private final AtomicInteger m_aSMPFailures = new AtomicInteger (0);
+
+  private void _handleSMPRequest (@Nonnull final HttpExchange aExchange) throws IOException
+  {
+    try
+    {
+      m_aSMPRequests.incrementAndGet ();
+      if (m_aSMPFailures.getAndUpdate (x -> Math.max (0, x - 1)) > 0)
+      {
+        aExchange.sendResponseHeaders (CHttp.HTTP_INTERNAL_SERVER_ERROR, -1);
+        return;
+      }
+
+      final byte [] aBytes = SERVICE_METADATA.getBytes (StandardCharsets.UTF_8);
+      aExchange.getResponseHeaders ().set (CHttpHeader.CONTENT_TYPE, CMimeType.APPLICATION_XML.getAsString ());
+      aExchange.sendResponseHeaders (CHttp.HTTP_OK, aBytes.length);
+      aExchange.getResponseBody ().write (aBytes);
+    }
+    finally
+    {
+      aExchange.close ();
+    }
+  }
+
+  @Before
+  public void startSMP () throws IOException
+  {
+    m_aSMP = HttpServer.create (new InetSocketAddress ("127.0.0.1", 0), 0);
+    m_aSMP.createContext ("/", this::_handleSMPRequest);
+    m_aSMP.start ();
+    m_aSMPURI = URI.create ("http://127.0.0.1:" + m_aSMP.getAddress ().getPort () + "/");
+  }
+
+  @After
+  public void stopSMP ()
+  {
+    m_aSMP.stop (0);
+  }
+
+  private static void _customizeSMPClient (@Nonnull final SMPClientReadOnly aSMPClient)
+  {
+    // The test SMP response is not signed
+    aSMPClient.setVerifySignature (false).setXMLSchemaValidation (false);
+  }
+
+  @Nonnull
+  private AS4EndpointDetailPrefetcherPeppol _createPrefetcher (@Nonnull final AS4EndpointDetailCache aCache)
+  {
+    return new AS4EndpointDetailPrefetcherPeppol ( (aPID, sSMLZoneName) -> m_aSMPURI,
+                                                  ESML.DIGIT_TEST,
+                                                  aCache).setSMPClientCustomizer (AS4EndpointDetailPrefetcherPeppolTest::_customizeSMPClient);
+  }
+
+  @Test
+  public void testPrefetchedLookupIsReused () throws Phase4Exception
+  {
+    final AS4EndpointDetailCache aCache = new AS4EndpointDetailCache ();
+    final AS4EndpointLookupKey aKey = new AS4EndpointLookupKey (RECEIVER, DOCTYPE, PROCESS);
+    final AS4EndpointDetailPrefetcherPeppol aPrefetcher = _createPrefetcher (aCache);
+
+    // Duplicate keys are only resolved once
+    final ICommonsMap <AS4EndpointLookupKey, Exception> aFailures = aPrefetcher.prefetch (new CommonsArrayList <> (aKey,
+                                                                                                                  aKey));
+    assertTrue (aFailures.toString (), aFailures.isEmpty ());
+    assertEquals (1, m_aSMPRequests.get ());
+    assertNotNull (aCache.get (aKey));
+    assertEquals (ENDPOINT_URL, aCache.get (aKey).getReceiverAPEndpointURL ());
+
+    // Prefetching again does not query the SMP
+    assertTrue (aPrefetcher.prefetch (new CommonsArrayList <> (aKey)).isEmpty ());
+    assertEquals (1, m_aSMPRequests.get ());
+
+    // The sender uses the cached value without any lookup
+    final AS4EndpointDetailProviderCached aEDP = new AS4EndpointDetailProviderCached (aCache, null);
+    aEDP.init (DOCTYPE, PROCESS, RECEIVER);
+    assertEquals (ENDPOINT_URL, aEDP.getReceiverAPEndpointURL ());
+    assertEquals (1, m_aSMPRequests.get ());
+  }
+
+  @Test
+  public void testFailedPrefetchFallsBackToSynchronousLookup () throws Phase4Exception
+  {
+    final AS4EndpointDetailCache aCache = new AS4EndpointDetailCache ();
+    final AS4EndpointLookupKey aKey = new AS4EndpointLookupKey (RECEIVER, DOCTYPE, PROCESS);
+
+    // The SMP fails during the prefetch
+    m_aSMPFailures.set (1);
+    final ICommonsMap <AS4EndpointLookupKey, Exception> aFailures = _createPrefetcher (aCache).prefetch (new CommonsArrayList <> (aKey));
+    assertEquals (1, aFailures.size ());
+    assertTrue (aFailures.containsKey (aKey));
+    assertFalse (aCache.containsKey (aKey));
+    assertEquals (1, m_aSMPRequests.get ());
+
+    // Without a fallback, the sender cannot resolve it
+    try
+    {
+      new AS4EndpointDetailProviderCached (aCache, null).init (DOCTYPE, PROCESS, RECEIVER);
+      fail ();
+    }
+    catch (final Phase4SMPException ex)
+    {
+      // expected
+    }
+
+    // The fallback resolves it synchronously and fills the cache
+    final SMPClientReadOnly aSMPClient = new SMPClientReadOnly (m_aSMPURI);
+    _customizeSMPClient (aSMPClient);
+    final AS4EndpointDetailProviderCached aEDP = new AS4EndpointDetailProviderCached (aCache,
+                                                                                      new AS4EndpointDetailProviderPeppol (aSMPClient));
+    aEDP.init (DOCTYPE, PROCESS, RECEIVER);
+    assertEquals (ENDPOINT_URL, aEDP.getReceiverAPEndpointURL ());
+    assertEquals (2, m_aSMPRequests.get ());
+    assertTrue (aCache.containsKey (aKey));
+
+    // Subsequent senders use the cache
+    final AS4EndpointDetailProviderCached aEDP2 = new AS4EndpointDetailProviderCached (aCache, null);
+    aEDP2.init (DOCTYPE, PROCESS, RECEIVER);
+    assertEquals (ENDPOINT_URL, aEDP2.getReceiverAPEndpointURL ());
+    assertEquals (2, m_aSMPRequests.get ());
+  }
+}
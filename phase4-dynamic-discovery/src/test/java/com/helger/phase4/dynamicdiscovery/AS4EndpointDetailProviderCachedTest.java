@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2020-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dynamicdiscovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.Duration;
+
+import org.junit.Test;
+
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+import com.helger.phase4.util.Phase4Exception;
+
+/**
+ * Test class for class {@link AS4EndpointDetailProviderCached}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4EndpointDetailProviderCachedTest
+{
+  private static final IParticipantIdentifier RECEIVER = PeppolIdentifierFactory.INSTANCE.createParticipantIdentifierWithDefaultScheme ("9915:test");
+  private static final IDocumentTypeIdentifier DOCTYPE = PeppolIdentifierFactory.INSTANCE.createDocumentTypeIdentifierWithDefaultScheme ("urn:doctype");
+  private static final IProcessIdentifier PROCESS = PeppolIdentifierFactory.INSTANCE.createProcessIdentifierWithDefaultScheme ("urn:process");
+
+  @Test
+  public void testKeyEquality ()
+  {
+    final AS4EndpointLookupKey aKey1 = new AS4EndpointLookupKey (RECEIVER, DOCTYPE, PROCESS);
+    final AS4EndpointLookupKey aKey2 = new AS4EndpointLookupKey (PeppolIdentifierFactory.INSTANCE.createParticipantIdentifierWithDefaultScheme ("9915:test"),
+                                                                 DOCTYPE,
+                                                                 PROCESS);
+    assertEquals (aKey1, aKey2);
+    assertEquals (aKey1.hashCode (), aKey2.hashCode ());
+  }
+
+  @Test
+  public void testCacheHitAndFallback () throws Phase4Exception
+  {
+    final AS4EndpointDetailCache aCache = new AS4EndpointDetailCache ();
+    final AS4EndpointLookupKey aKey = new AS4EndpointLookupKey (RECEIVER, DOCTYPE, PROCESS);
+    assertNull (aCache.get (aKey));
+
+    // Cache miss without fallback
+    try
+    {
+      new AS4EndpointDetailProviderCached (aCache, null).init (DOCTYPE, PROCESS, RECEIVER);
+      fail ();
+    }
+    catch (final Phase4SMPException ex)
+    {
+      // expected
+    }
+
+    // Cache miss with fallback
+    final AS4EndpointDetailProviderCached aEDP = new AS4EndpointDetailProviderCached (aCache,
+                                                                                      new AS4EndpointDetailProviderConstant (null,
+                                                                                                                             "http://localhost/as4"));
+    aEDP.init (DOCTYPE, PROCESS, RECEIVER);
+    assertEquals ("http://localhost/as4", aEDP.getReceiverAPEndpointURL ());
+    assertNull (aEDP.getReceiverAPCertificate ());
+    assertEquals (1, aCache.size ());
+    assertTrue (aCache.containsKey (aKey));
+
+    // Cache hit without fallback
+    final AS4EndpointDetailProviderCached aEDP2 = new AS4EndpointDetailProviderCached (aCache, null);
+    aEDP2.init (DOCTYPE, PROCESS, RECEIVER);
+    assertEquals ("http://localhost/as4", aEDP2.getReceiverAPEndpointURL ());
+  }
+
+  @Test
+  public void testExpiry ()
+  {
+    final AS4EndpointLookupKey aKey = new AS4EndpointLookupKey (RECEIVER, DOCTYPE, PROCESS);
+    final AS4EndpointDetailCache aCache = new AS4EndpointDetailCache (Duration.ofDays (1));
+    assertNotNull (aCache.put (aKey, null, "http://localhost/as4"));
+    assertNotNull (aCache.get (aKey));
+    assertEquals (0, aCache.evictExpiredEntries ());
+    assertEquals (1, aCache.size ());
+  }
+}
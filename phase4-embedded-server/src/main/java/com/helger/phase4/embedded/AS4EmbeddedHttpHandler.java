@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.embedded;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.OverrideOnDemand;
+import com.helger.commons.http.CHttp;
+import com.helger.commons.http.CHttpHeader;
+import com.helger.commons.http.EHttpMethod;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.phase4.attachment.IAS4IncomingAttachmentFactory;
+import com.helger.phase4.crypto.AS4CryptoFactoryProperties;
+import com.helger.phase4.crypto.IAS4CryptoFactory;
+import com.helger.phase4.model.pmode.resolve.DefaultPModeResolver;
+import com.helger.phase4.model.pmode.resolve.IPModeResolver;
+import com.helger.phase4.servlet.AS4IncomingMessageMetadata;
+import com.helger.phase4.servlet.AS4RequestHandler;
+import com.helger.phase4.util.Phase4Exception;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * The {@link HttpHandler} that receives AS4 messages within the
+ * {@link AS4EmbeddedServer}. It is the counterpart of the
+ * <code>AS4Servlet</code>, but does not require a servlet container and does
+ * not create any request scopes. Only <code>POST</code> requests are
+ * accepted.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+public class AS4EmbeddedHttpHandler implements HttpHandler
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4EmbeddedHttpHandler.class);
+
+  private Supplier <? extends IAS4CryptoFactory> m_aCryptoFactorySupplier = AS4CryptoFactoryProperties::getDefaultInstance;
+  private IPModeResolver m_aPModeResolver = DefaultPModeResolver.DEFAULT_PMODE_RESOLVER;
+  private IAS4IncomingAttachmentFactory m_aIAF = IAS4IncomingAttachmentFactory.DEFAULT_INSTANCE;
+
+  public AS4EmbeddedHttpHandler ()
+  {}
+
+  /**
+   * @return The supplier for the {@link IAS4CryptoFactory}. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final Supplier <? extends IAS4CryptoFactory> getCryptoFactorySupplier ()
+  {
+    return m_aCryptoFactorySupplier;
+  }
+
+  /**
+   * @param aCryptoFactorySupplier
+   *        Crypto factory supplier. May not be <code>null</code>.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4EmbeddedHttpHandler setCryptoFactorySupplier (@Nonnull final Supplier <? extends IAS4CryptoFactory> aCryptoFactorySupplier)
+  {
+    ValueEnforcer.notNull (aCryptoFactorySupplier, "CryptoFactorySupplier");
+    m_aCryptoFactorySupplier = aCryptoFactorySupplier;
+    return this;
+  }
+
+  /**
+   * @return The {@link IPModeResolver} to be used. Never <code>null</code>.
+   */
+  @Nonnull
+  public final IPModeResolver getPModeResolver ()
+  {
+    return m_aPModeResolver;
+  }
+
+  /**
+   * @param aPModeResolver
+   *        PMode resolved to be used. May not be <code>null</code>.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4EmbeddedHttpHandler setPModeResolver (@Nonnull final IPModeResolver aPModeResolver)
+  {
+    ValueEnforcer.notNull (aPModeResolver, "PModeResolver");
+    m_aPModeResolver = aPModeResolver;
+    return this;
+  }
+
+  /**
+   * @return The {@link IAS4IncomingAttachmentFactory} to be used. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final IAS4IncomingAttachmentFactory getIncomingAttachmentFactory ()
+  {
+    return m_aIAF;
+  }
+
+  /**
+   * @param aIAF
+   *        The attachment factory for incoming attachments. May not be
+   *        <code>null</code>.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4EmbeddedHttpHandler setIncomingAttachmentFactory (@Nonnull final IAS4IncomingAttachmentFactory aIAF)
+  {
+    ValueEnforcer.notNull (aIAF, "IAF");
+    m_aIAF = aIAF;
+    return this;
+  }
+
+  /**
+   * Create the incoming message metadata based on the provided exchange. This
+   * method may be overridden by sub-classes to customize the header generation
+   * e.g. when sitting behind a proxy or the like.
+   *
+   * @param aExchange
+   *        The HTTP exchange to use.
+   * @return New {@link AS4IncomingMessageMetadata} and never <code>null</code>.
+   */
+  @Nonnull
+  @OverrideOnDemand
+  protected AS4IncomingMessageMetadata createIncomingMessageMetadata (@Nonnull final HttpExchange aExchange)
+  {
+    final AS4IncomingMessageMetadata ret = AS4IncomingMessageMetadata.createForRequest ();
+    final InetSocketAddress aRemoteAddr = aExchange.getRemoteAddress ();
+    if (aRemoteAddr != null)
+    {
+      if (aRemoteAddr.getAddress () != null)
+        ret.setRemoteAddr (aRemoteAddr.getAddress ().getHostAddress ());
+      ret.setRemoteHost (aRemoteAddr.getHostString ());
+      ret.setRemotePort (aRemoteAddr.getPort ());
+    }
+    if (aExchange.getPrincipal () != null)
+      ret.setRemoteUser (aExchange.getPrincipal ().getUsername ());
+    return ret;
+  }
+
+  /**
+   * Customize the request handler before the message is handled. This is
+   * called in a worker thread.
+   *
+   * @param aHandler
+   *        The main handler doing the hard work. Never <code>null</code>.
+   */
+  @OverrideOnDemand
+  protected void customizeBeforeHandling (@Nonnull final AS4RequestHandler aHandler)
+  {}
+
+  @Nonnull
+  private static HttpHeaderMap _getRequestHeaderMap (@Nonnull final HttpExchange aExchange)
+  {
+    final HttpHeaderMap ret = new HttpHeaderMap ();
+    for (final Map.Entry <String, List <String>> aEntry : aExchange.getRequestHeaders ().entrySet ())
+      for (final String sValue : aEntry.getValue ())
+        ret.addHeader (aEntry.getKey (), sValue);
+    return ret;
+  }
+
+  @Nonnull
+  private AS4EmbeddedResponse _process (@Nonnull final HttpExchange aExchange)
+  {
+    final AS4EmbeddedResponse aResponse = new AS4EmbeddedResponse ();
+    try
+    {
+      // Resolved once per request
+      final IAS4CryptoFactory aCF = m_aCryptoFactorySupplier.get ();
+      if (aCF == null)
+        throw new IllegalStateException ("Failed to get an AS4 CryptoFactory");
+
+      try (final AS4RequestHandler aHandler = new AS4RequestHandler (aCF,
+                                                                     m_aPModeResolver,
+                                                                     m_aIAF,
+                                                                     createIncomingMessageMetadata (aExchange)))
+      {
+        customizeBeforeHandling (aHandler);
+
+        // Main handling - the request body is read while processing
+        aHandler.handleRequest (aExchange.getRequestBody (), _getRequestHeaderMap (aExchange), aResponse);
+      }
+    }
+    catch (final Phase4Exception ex)
+    {
+      // Logged inside
+      aResponse.setResponseError (CHttp.HTTP_BAD_REQUEST, "Bad Request: " + ex.getMessage (), ex.getCause ());
+    }
+    catch (final Exception ex)
+    {
+      // Logged inside
+      aResponse.setResponseError (CHttp.HTTP_INTERNAL_SERVER_ERROR, "Internal error processing AS4 request", ex);
+    }
+    return aResponse;
+  }
+
+  public void handle (@Nonnull final HttpExchange aExchange) throws IOException
+  {
+    try
+    {
+      if (EHttpMethod.POST.getName ().equals (aExchange.getRequestMethod ()))
+        _process (aExchange).writeTo (aExchange);
+      else
+      {
+        if (LOGGER.isDebugEnabled ())
+          LOGGER.debug ("Rejecting HTTP " + aExchange.getRequestMethod () + " request to AS4 endpoint");
+        aExchange.getResponseHeaders ().set (CHttpHeader.ALLOW, EHttpMethod.POST.getName ());
+        aExchange.sendResponseHeaders (CHttp.HTTP_METHOD_NOT_ALLOWED, -1);
+      }
+    }
+    finally
+    {
+      // Also consumes the remaining request body
+      aExchange.close ();
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.embedded;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.http.CHttp;
+import com.helger.commons.http.CHttpHeader;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.mime.CMimeType;
+import com.helger.commons.mime.IMimeType;
+import com.helger.phase4.servlet.IAS4ResponseAbstraction;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * The response collected while processing an AS4 message, that is written to
+ * the {@link HttpExchange} afterwards.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+final class AS4EmbeddedResponse implements IAS4ResponseAbstraction
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4EmbeddedResponse.class);
+
+  private int m_nStatusCode = CHttp.HTTP_OK;
+  private IMimeType m_aMimeType;
+  private Charset m_aCharset;
+  private final HttpHeaderMap m_aHeaders = new HttpHeaderMap ();
+  private byte [] m_aBytes;
+  private IHasInputStream m_aHasIS;
+
+  public void setContent (@Nonnull final byte [] aBytes, @Nonnull final Charset aCharset)
+  {
+    m_aBytes = aBytes;
+    m_aCharset = aCharset;
+    m_aHasIS = null;
+  }
+
+  public void setContent (@Nonnull final HttpHeaderMap aHeaderMap, @Nonnull final IHasInputStream aHasIS)
+  {
+    m_aHeaders.setAllHeaders (aHeaderMap);
+    m_aHasIS = aHasIS;
+    m_aBytes = null;
+  }
+
+  public void setMimeType (@Nonnull final IMimeType aMimeType)
+  {
+    m_aMimeType = aMimeType;
+  }
+
+  public void setStatus (final int nStatusCode)
+  {
+    m_nStatusCode = nStatusCode;
+  }
+
+  void setResponseError (final int nStatusCode, @Nonnull final String sMsg, @Nullable final Throwable t)
+  {
+    LOGGER.error ("HTTP " + nStatusCode + ": " + sMsg, t);
+
+    // Only the log contains the technical details - don't expose them
+    m_aHeaders.removeAll ();
+    setContent (sMsg.getBytes (StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+    setMimeType (CMimeType.TEXT_PLAIN);
+    setStatus (nStatusCode);
+  }
+
+  /**
+   * Write status, headers and content to the provided exchange.
+   *
+   * @param aExchange
+   *        The exchange to write to. May not be <code>null</code>.
+   * @throws IOException
+   *         In case writing fails
+   */
+  void writeTo (@Nonnull final HttpExchange aExchange) throws IOException
+  {
+    final Headers aResponseHeaders = aExchange.getResponseHeaders ();
+    // Never cache the responses on client side
+    aResponseHeaders.set (CHttpHeader.CACHE_CONTROL, "no-cache, no-store, must-revalidate");
+    m_aHeaders.forEachSingleHeader (aResponseHeaders::add, true);
+    // A MIME response brings its own Content-Type with the boundary
+    if (m_aMimeType != null && !m_aHeaders.containsHeaders (CHttpHeader.CONTENT_TYPE))
+    {
+      String sContentType = m_aMimeType.getAsString ();
+      if (m_aCharset != null)
+        sContentType += "; charset=" + m_aCharset.name ();
+      aResponseHeaders.set (CHttpHeader.CONTENT_TYPE, sContentType);
+    }
+
+    if (m_aBytes != null)
+    {
+      // An empty body is indicated by -1
+      aExchange.sendResponseHeaders (m_nStatusCode, m_aBytes.length == 0 ? -1 : m_aBytes.length);
+      if (m_aBytes.length > 0)
+        try (final OutputStream aOS = aExchange.getResponseBody ())
+        {
+          aOS.write (m_aBytes);
+        }
+    }
+    else
+      if (m_aHasIS != null)
+      {
+        // Length is unknown - use chunked encoding
+        aExchange.sendResponseHeaders (m_nStatusCode, 0);
+        try (final InputStream aIS = m_aHasIS.getBufferedInputStream ();
+            final OutputStream aOS = aExchange.getResponseBody ())
+        {
+          if (StreamHelper.copyByteStream ().from (aIS).closeFrom (false).to (aOS).closeTo (false).build ().isFailure ())
+            throw new IOException ("Failed to write AS4 response content");
+        }
+      }
+      else
+        aExchange.sendResponseHeaders (m_nStatusCode, -1);
+  }
+}
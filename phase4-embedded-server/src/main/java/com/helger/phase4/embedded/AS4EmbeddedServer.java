@@ -0,0 +1,603 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.embedded;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.net.ssl.SSLContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.http.CHttp;
+import com.helger.commons.http.CHttpHeader;
+import com.helger.commons.mime.CMimeType;
+import com.helger.commons.string.StringHelper;
+import com.helger.phase4.config.AS4Configuration;
+import com.helger.phase4.servlet.AS4ServerInitializer;
+import com.helger.photon.app.io.WebFileIO;
+import com.helger.scope.mgr.ScopeManager;
+import com.helger.servlet.mock.MockServletContext;
+import com.helger.web.scope.mgr.WebScopeManager;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+/**
+ * A lightweight AS4 receiver based on the HTTP server built into the JDK. It
+ * is meant for edge nodes that need a fast startup and a small memory
+ * footprint and don't want to run a full servlet container.<br>
+ * The threading model can be tuned: a single acceptor thread accepts the
+ * connections (with a configurable backlog) and hands them over to a bounded
+ * pool of worker threads that read, process and answer the requests. If all
+ * workers are busy and the queue is full, the request is answered with HTTP
+ * 503 and a <code>Retry-After</code> header.<br>
+ * If no global scope is present when the server is started, a global scope is
+ * created, the data path is initialized from {@link AS4Configuration} and the
+ * AS4 server is initialized. All of that is cleaned up again in
+ * {@link #stop()}. No request scopes are created.
+ *
+ * <pre>
+ * try (AS4EmbeddedServer aServer = new AS4EmbeddedServer ().setPort (8080).setWorkerCount (4).start ())
+ * {
+ *   ...
+ * }
+ * </pre>
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@NotThreadSafe
+public class AS4EmbeddedServer implements AutoCloseable
+{
+  public static final String DEFAULT_CONTEXT_PATH = "/as4";
+  public static final int DEFAULT_PORT = 8080;
+  public static final int DEFAULT_BACKLOG = 128;
+  public static final int DEFAULT_WORKER_COUNT = Math.max (2, Runtime.getRuntime ().availableProcessors ());
+  public static final int DEFAULT_QUEUE_SIZE = 100;
+  public static final int DEFAULT_RETRY_AFTER_SECONDS = 30;
+  public static final int DEFAULT_STOP_DELAY_SECONDS = 1;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4EmbeddedServer.class);
+
+  // Set if a request is executed in the acceptor thread, because the worker
+  // pool rejected it
+  private static final ThreadLocal <Boolean> OVERLOADED = new ThreadLocal <> ();
+
+  private String m_sHost;
+  private int m_nPort = DEFAULT_PORT;
+  private String m_sContextPath = DEFAULT_CONTEXT_PATH;
+  private int m_nBacklog = DEFAULT_BACKLOG;
+  private int m_nWorkerCount = DEFAULT_WORKER_COUNT;
+  private int m_nQueueSize = DEFAULT_QUEUE_SIZE;
+  private int m_nRetryAfterSeconds = DEFAULT_RETRY_AFTER_SECONDS;
+  private int m_nStopDelaySeconds = DEFAULT_STOP_DELAY_SECONDS;
+  private SSLContext m_aSSLContext;
+  private AS4EmbeddedHttpHandler m_aHandler = new AS4EmbeddedHttpHandler ();
+
+  private HttpServer m_aServer;
+  private ThreadPoolExecutor m_aExecutor;
+  private boolean m_bOwnsGlobalScope;
+  private boolean m_bOwnsFileIO;
+  private final AtomicLong m_aRejected = new AtomicLong (0);
+
+  public AS4EmbeddedServer ()
+  {}
+
+  private void _checkNotStarted ()
+  {
+    if (m_aServer != null)
+      throw new IllegalStateException ("The embedded AS4 server is already started");
+  }
+
+  /**
+   * @return The host name or IP address to bind to. May be <code>null</code>
+   *         to indicate all local addresses.
+   */
+  @Nullable
+  public final String getHost ()
+  {
+    return m_sHost;
+  }
+
+  /**
+   * @param sHost
+   *        The host name or IP address to bind to. May be <code>null</code> to
+   *        bind to all local addresses.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4EmbeddedServer setHost (@Nullable final String sHost)
+  {
+    _checkNotStarted ();
+    m_sHost = sHost;
+    return this;
+  }
+
+  /**
+   * @return The port to listen on. If the server is started and the port was
+   *         configured as 0, the effectively used port is returned.
+   */
+  @Nonnegative
+  public final int getPort ()
+  {
+    final HttpServer aServer = m_aServer;
+    return aServer != null ? aServer.getAddress ().getPort () : m_nPort;
+  }
+
+  /**
+   * @param nPort
+   *        The port to listen on. Must be between 0 and 65535. Use 0 to use an
+   *        arbitrary free port.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4EmbeddedServer setPort (@Nonnegative final int nPort)
+  {
+    ValueEnforcer.isBetweenInclusive (nPort, "Port", 0, 65535);
+    _checkNotStarted ();
+    m_nPort = nPort;
+    return this;
+  }
+
+  /**
+   * @return The context path on which AS4 messages are received. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  @Nonempty
+  public final String getContextPath ()
+  {
+    return m_sContextPath;
+  }
+
+  /**
+   * @param sContextPath
+   *        The context path on which AS4 messages are received. Must start
+   *        with a slash.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4EmbeddedServer setContextPath (@Nonnull @Nonempty final String sContextPath)
+  {
+    ValueEnforcer.notEmpty (sContextPath, "ContextPath");
+    ValueEnforcer.isTrue (sContextPath.startsWith ("/"), "ContextPath must start with a slash");
+    _checkNotStarted ();
+    m_sContextPath = sContextPath;
+    return this;
+  }
+
+  /**
+   * @return The maximum number of pending connections the acceptor keeps.
+   */
+  @Nonnegative
+  public final int getBacklog ()
+  {
+    return m_nBacklog;
+  }
+
+  /**
+   * @param nBacklog
+   *        The maximum number of pending connections the acceptor keeps. Use 0
+   *        to use the system default.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4EmbeddedServer setBacklog (@Nonnegative final int nBacklog)
+  {
+    ValueEnforcer.isGE0 (nBacklog, "Backlog");
+    _checkNotStarted ();
+    m_nBacklog = nBacklog;
+    return this;
+  }
+
+  /**
+   * @return The number of worker threads processing the requests.
+   */
+  @Nonnegative
+  public final int getWorkerCount ()
+  {
+    return m_nWorkerCount;
+  }
+
+  /**
+   * @param nWorkerCount
+   *        The number of worker threads processing the requests. Must be &gt;
+   *        0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4EmbeddedServer setWorkerCount (@Nonnegative final int nWorkerCount)
+  {
+    ValueEnforcer.isGT0 (nWorkerCount, "WorkerCount");
+    _checkNotStarted ();
+    m_nWorkerCount = nWorkerCount;
+    return this;
+  }
+
+  /**
+   * @return The number of requests that may wait for a free worker thread.
+   */
+  @Nonnegative
+  public final int getQueueSize ()
+  {
+    return m_nQueueSize;
+  }
+
+  /**
+   * @param nQueueSize
+   *        The number of requests that may wait for a free worker thread. Must
+   *        be &gt; 0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4EmbeddedServer setQueueSize (@Nonnegative final int nQueueSize)
+  {
+    ValueEnforcer.isGT0 (nQueueSize, "QueueSize");
+    _checkNotStarted ();
+    m_nQueueSize = nQueueSize;
+    return this;
+  }
+
+  /**
+   * @return The number of seconds sent in the <code>Retry-After</code> header
+   *         when the server is overloaded.
+   */
+  @Nonnegative
+  public final int getRetryAfterSeconds ()
+  {
+    return m_nRetryAfterSeconds;
+  }
+
+  /**
+   * @param nRetryAfterSeconds
+   *        The number of seconds sent in the <code>Retry-After</code> header
+   *        when the server is overloaded. Must be &ge; 0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4EmbeddedServer setRetryAfterSeconds (@Nonnegative final int nRetryAfterSeconds)
+  {
+    ValueEnforcer.isGE0 (nRetryAfterSeconds, "RetryAfterSeconds");
+    m_nRetryAfterSeconds = nRetryAfterSeconds;
+    return this;
+  }
+
+  /**
+   * @return The maximum number of seconds to wait for running exchanges upon
+   *         {@link #stop()}.
+   */
+  @Nonnegative
+  public final int getStopDelaySeconds ()
+  {
+    return m_nStopDelaySeconds;
+  }
+
+  /**
+   * @param nStopDelaySeconds
+   *        The maximum number of seconds to wait for running exchanges upon
+   *        {@link #stop()}. Must be &ge; 0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4EmbeddedServer setStopDelaySeconds (@Nonnegative final int nStopDelaySeconds)
+  {
+    ValueEnforcer.isGE0 (nStopDelaySeconds, "StopDelaySeconds");
+    m_nStopDelaySeconds = nStopDelaySeconds;
+    return this;
+  }
+
+  /**
+   * @return The SSL context to use. If <code>null</code> plain HTTP is used.
+   */
+  @Nullable
+  public final SSLContext getSSLContext ()
+  {
+    return m_aSSLContext;
+  }
+
+  /**
+   * @param aSSLContext
+   *        The SSL context to use for HTTPS. May be <code>null</code> to use
+   *        plain HTTP.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4EmbeddedServer setSSLContext (@Nullable final SSLContext aSSLContext)
+  {
+    _checkNotStarted ();
+    m_aSSLContext = aSSLContext;
+    return this;
+  }
+
+  /**
+   * @return The HTTP handler that processes the AS4 messages. Use it to
+   *         customize the crypto factory, the PMode resolver etc. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final AS4EmbeddedHttpHandler getHandler ()
+  {
+    return m_aHandler;
+  }
+
+  /**
+   * @param aHandler
+   *        The HTTP handler that processes the AS4 messages. May not be
+   *        <code>null</code>.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4EmbeddedServer setHandler (@Nonnull final AS4EmbeddedHttpHandler aHandler)
+  {
+    ValueEnforcer.notNull (aHandler, "Handler");
+    _checkNotStarted ();
+    m_aHandler = aHandler;
+    return this;
+  }
+
+  /**
+   * @return <code>true</code> if the server is started, <code>false</code> if
+   *         not.
+   */
+  public final boolean isStarted ()
+  {
+    return m_aServer != null;
+  }
+
+  /**
+   * @return The number of requests rejected with HTTP 503 so far.
+   */
+  @Nonnegative
+  public final long getRejectedCount ()
+  {
+    return m_aRejected.get ();
+  }
+
+  /**
+   * @return The number of requests waiting for a free worker thread.
+   */
+  @Nonnegative
+  public final int getQueueDepth ()
+  {
+    final ThreadPoolExecutor aExecutor = m_aExecutor;
+    return aExecutor == null ? 0 : aExecutor.getQueue ().size ();
+  }
+
+  private void _initGlobalState ()
+  {
+    if (ScopeManager.isGlobalScopePresent ())
+    {
+      // Someone else is responsible for the lifecycle
+      return;
+    }
+
+    WebScopeManager.onGlobalBegin (MockServletContext.create ());
+    m_bOwnsGlobalScope = true;
+
+    if (!WebFileIO.isInited ())
+    {
+      final String sDataPath = AS4Configuration.getDataPath ();
+      if (StringHelper.hasNoText (sDataPath))
+        throw new IllegalStateException ("No data path was provided!");
+      final File aDataPath = new File (sDataPath).getAbsoluteFile ();
+      WebFileIO.initPaths (aDataPath, aDataPath.getAbsolutePath (), false);
+      m_bOwnsFileIO = true;
+    }
+
+    AS4ServerInitializer.initAS4Server ();
+  }
+
+  private void _shutdownGlobalState ()
+  {
+    if (m_bOwnsGlobalScope)
+    {
+      AS4ServerInitializer.shutdownAS4Server ();
+      if (m_bOwnsFileIO)
+      {
+        WebFileIO.resetPaths ();
+        m_bOwnsFileIO = false;
+      }
+      WebScopeManager.onGlobalEnd ();
+      m_bOwnsGlobalScope = false;
+    }
+  }
+
+  /**
+   * Start the server. Subsequent calls have no effect.
+   *
+   * @return this for chaining
+   * @throws IOException
+   *         If the server socket could not be bound
+   */
+  @Nonnull
+  public final AS4EmbeddedServer start () throws IOException
+  {
+    if (m_aServer != null)
+      return this;
+
+    final InetSocketAddress aAddr = m_sHost == null ? new InetSocketAddress (m_nPort)
+                                                    : new InetSocketAddress (m_sHost, m_nPort);
+    final HttpServer aServer;
+    if (m_aSSLContext != null)
+    {
+      final HttpsServer aHttpsServer = HttpsServer.create (aAddr, m_nBacklog);
+      aHttpsServer.setHttpsConfigurator (new HttpsConfigurator (m_aSSLContext));
+      aServer = aHttpsServer;
+    }
+    else
+      aServer = HttpServer.create (aAddr, m_nBacklog);
+
+    _initGlobalState ();
+
+    // Bounded pool with a bounded queue - rejections are answered with 503
+    final ThreadPoolExecutor aExecutor = new ThreadPoolExecutor (m_nWorkerCount,
+                                                                 m_nWorkerCount,
+                                                                 60,
+                                                                 TimeUnit.SECONDS,
+                                                                 new ArrayBlockingQueue <> (m_nQueueSize),
+                                                                 new BasicThreadFactory.Builder ().namingPattern ("phase4-embedded-%d")
+                                                                                                  .daemon (false)
+                                                                                                  .build (),
+                                                                 new ThreadPoolExecutor.AbortPolicy ());
+    aExecutor.allowCoreThreadTimeOut (true);
+    aServer.setExecutor (new LoadSheddingExecutor (aExecutor));
+
+    final HttpContext aContext = aServer.createContext (m_sContextPath, m_aHandler);
+    aContext.getFilters ().add (new LoadSheddingFilter ());
+
+    aServer.start ();
+    m_aServer = aServer;
+    m_aExecutor = aExecutor;
+
+    LOGGER.info ("Started embedded AS4 server on " +
+                 (m_aSSLContext != null ? "https" : "http") +
+                 "://" +
+                 aServer.getAddress ().getHostString () +
+                 ":" +
+                 aServer.getAddress ().getPort () +
+                 m_sContextPath +
+                 " with " +
+                 m_nWorkerCount +
+                 " workers and a queue size of " +
+                 m_nQueueSize);
+    return this;
+  }
+
+  /**
+   * Stop the server, if it is started. Running exchanges are given
+   * {@link #getStopDelaySeconds()} seconds to finish.
+   */
+  public final void stop ()
+  {
+    final HttpServer aServer = m_aServer;
+    if (aServer == null)
+      return;
+
+    aServer.stop (m_nStopDelaySeconds);
+    ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aExecutor);
+    m_aServer = null;
+    m_aExecutor = null;
+
+    _shutdownGlobalState ();
+    LOGGER.info ("Stopped embedded AS4 server");
+  }
+
+  public void close ()
+  {
+    stop ();
+  }
+
+  /**
+   * Dispatches the exchanges to the worker pool. If the pool rejects an
+   * exchange, it is executed in the calling acceptor thread, but only to
+   * answer it with HTTP 503.
+   *
+   * @author Philip Helger
+   */
+  private static final class LoadSheddingExecutor implements Executor
+  {
+    private final ThreadPoolExecutor m_aWorkers;
+
+    LoadSheddingExecutor (@Nonnull final ThreadPoolExecutor aWorkers)
+    {
+      m_aWorkers = aWorkers;
+    }
+
+    public void execute (@Nonnull final Runnable aRunnable)
+    {
+      try
+      {
+        m_aWorkers.execute (aRunnable);
+      }
+      catch (final RejectedExecutionException ex)
+      {
+        OVERLOADED.set (Boolean.TRUE);
+        try
+        {
+          aRunnable.run ();
+        }
+        finally
+        {
+          OVERLOADED.remove ();
+        }
+      }
+    }
+  }
+
+  /**
+   * Answers the exchange with HTTP 503 if it is executed because of an
+   * overload.
+   *
+   * @author Philip Helger
+   */
+  private final class LoadSheddingFilter extends Filter
+  {
+    @Override
+    public void doFilter (@Nonnull final HttpExchange aExchange, @Nonnull final Chain aChain) throws IOException
+    {
+      if (OVERLOADED.get () == null)
+      {
+        aChain.doFilter (aExchange);
+        return;
+      }
+
+      m_aRejected.incrementAndGet ();
+      LOGGER.warn ("Rejecting AS4 request, because all " + m_nWorkerCount + " workers are busy and the queue is full");
+      try
+      {
+        final byte [] aBody = "AS4 server is overloaded".getBytes (StandardCharsets.ISO_8859_1);
+        aExchange.getResponseHeaders ().set (CHttpHeader.RETRY_AFTER, Integer.toString (m_nRetryAfterSeconds));
+        aExchange.getResponseHeaders ().set (CHttpHeader.CONTENT_TYPE, CMimeType.TEXT_PLAIN.getAsString ());
+        // Don't keep the connection, as the request body is not read
+        aExchange.getResponseHeaders ().set (CHttpHeader.CONNECTION, "close");
+        aExchange.sendResponseHeaders (CHttp.HTTP_SERVICE_UNAVAILABLE, aBody.length);
+        aExchange.getResponseBody ().write (aBody);
+      }
+      finally
+      {
+        aExchange.close ();
+      }
+    }
+
+    @Override
+    public String description ()
+    {
+      return "Rejects requests when the AS4 server is overloaded";
+    }
+  }
+}
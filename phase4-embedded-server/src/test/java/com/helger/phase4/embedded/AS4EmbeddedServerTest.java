@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.embedded;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import com.helger.commons.http.CHttp;
+import com.helger.commons.http.CHttpHeader;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.scope.mock.ScopeTestRule;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Test class for class {@link AS4EmbeddedServer}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4EmbeddedServerTest
+{
+  @Rule
+  public final TestRule m_aTestRule = new ScopeTestRule ();
+
+  /**
+   * A handler that does not process AS4 messages, but blocks until it is
+   * released.
+   *
+   * @author Philip Helger
+   */
+  private static final class BlockingHandler extends AS4EmbeddedHttpHandler
+  {
+    private final CountDownLatch m_aStarted = new CountDownLatch (1);
+    private final CountDownLatch m_aRelease = new CountDownLatch (1);
+
+    @Override
+    public void handle (@Nonnull final HttpExchange aExchange) throws IOException
+    {
+      m_aStarted.countDown ();
+      try
+      {
+        m_aRelease.await (30, TimeUnit.SECONDS);
+        aExchange.sendResponseHeaders (CHttp.HTTP_NO_CONTENT, -1);
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+      }
+      finally
+      {
+        aExchange.close ();
+      }
+    }
+  }
+
+  @Nonnull
+  private static HttpURLConnection _post (@Nonnull final AS4EmbeddedServer aServer) throws IOException
+  {
+    final URL aURL = new URL ("http://127.0.0.1:" + aServer.getPort () + aServer.getContextPath ());
+    final HttpURLConnection aConn = (HttpURLConnection) aURL.openConnection ();
+    aConn.setRequestMethod ("POST");
+    aConn.setDoOutput (true);
+    aConn.setConnectTimeout (10_000);
+    aConn.setReadTimeout (30_000);
+    try (final OutputStream aOS = aConn.getOutputStream ())
+    {
+      aOS.write ("<dummy/>".getBytes (StandardCharsets.UTF_8));
+    }
+    return aConn;
+  }
+
+  @Test (timeout = 60_000)
+  public void testRejectWhenQueueIsFull () throws Exception
+  {
+    final BlockingHandler aHandler = new BlockingHandler ();
+    final ExecutorService aClients = Executors.newFixedThreadPool (2);
+    try (final AS4EmbeddedServer aServer = new AS4EmbeddedServer ().setHost ("127.0.0.1")
+                                                                   .setPort (0)
+                                                                   .setWorkerCount (1)
+                                                                   .setQueueSize (1)
+                                                                   .setRetryAfterSeconds (7)
+                                                                   .setStopDelaySeconds (0)
+                                                                   .setHandler (aHandler)
+                                                                   .start ())
+    {
+      // Occupy the only worker
+      final Future <Integer> aFirst = aClients.submit ( () -> _post (aServer).getResponseCode ());
+      assertTrue (aHandler.m_aStarted.await (10, TimeUnit.SECONDS));
+
+      // Fill the queue
+      final Future <Integer> aSecond = aClients.submit ( () -> _post (aServer).getResponseCode ());
+      while (aServer.getQueueDepth () < 1)
+        Thread.sleep (10);
+
+      // The next one is shed
+      final HttpURLConnection aConn = _post (aServer);
+      assertEquals (CHttp.HTTP_SERVICE_UNAVAILABLE, aConn.getResponseCode ());
+      assertEquals ("7", aConn.getHeaderField (CHttpHeader.RETRY_AFTER));
+      try (final InputStream aIS = aConn.getErrorStream ())
+      {
+        final String sBody = new String (StreamHelper.getAllBytes (aIS), StandardCharsets.ISO_8859_1);
+        assertEquals ("AS4 server is overloaded", sBody);
+      }
+      assertEquals (1, aServer.getRejectedCount ());
+      assertFalse (aFirst.isDone ());
+
+      // The accepted requests are still answered
+      aHandler.m_aRelease.countDown ();
+      assertEquals (CHttp.HTTP_NO_CONTENT, aFirst.get ().intValue ());
+      assertEquals (CHttp.HTTP_NO_CONTENT, aSecond.get ().intValue ());
+      assertEquals (1, aServer.getRejectedCount ());
+    }
+    finally
+    {
+      aClients.shutdownNow ();
+    }
+  }
+}
@@ -27,6 +27,7 @@ import javax.annotation.concurrent.Immutable;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.builder.IBuilder;
 import com.helger.commons.io.ByteArrayWrapper;
+import com.helger.commons.io.IHasInputStream;
 import com.helger.commons.mime.CMimeType;
 import com.helger.commons.mime.IMimeType;
 import com.helger.commons.string.ToStringGenerator;
@@ -43,6 +44,7 @@ public class AS4OutgoingAttachment
 {
   private final ByteArrayWrapper m_aDataBytes;
   private final File m_aDataFile;
+  private final IHasInputStream m_aDataStreamProvider;
   private final String m_sContentID;
   private final String m_sFilename;
   private final IMimeType m_aMimeType;
@@ -57,12 +59,46 @@ public class AS4OutgoingAttachment
                                    @Nullable final EAS4CompressionMode eCompressionMode,
                                    @Nullable final Charset aCharset)
   {
-    ValueEnforcer.isTrue (aDataBytes != null || aDataFile != null, "SrcData or SrcFile must be present");
-    ValueEnforcer.isFalse (aDataBytes != null && aDataFile != null,
-                           "Either SrcData or SrcFile must be present but not both");
+    this (aDataBytes, aDataFile, null, sContentID, sFilename, aMimeType, eCompressionMode, aCharset);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aDataBytes
+   *        In-memory data. May be <code>null</code>.
+   * @param aDataFile
+   *        File based data. May be <code>null</code>.
+   * @param aDataStreamProvider
+   *        Stream based data. May be <code>null</code>.
+   * @param sContentID
+   *        Content ID. May be <code>null</code>.
+   * @param sFilename
+   *        Filename. May be <code>null</code>.
+   * @param aMimeType
+   *        MIME type. May not be <code>null</code>.
+   * @param eCompressionMode
+   *        Compression mode. May be <code>null</code>.
+   * @param aCharset
+   *        Character set. May be <code>null</code>.
+   * @since 2.1.3
+   */
+  protected AS4OutgoingAttachment (@Nullable final ByteArrayWrapper aDataBytes,
+                                   @Nullable final File aDataFile,
+                                   @Nullable final IHasInputStream aDataStreamProvider,
+                                   @Nullable final String sContentID,
+                                   @Nullable final String sFilename,
+                                   @Nonnull final IMimeType aMimeType,
+                                   @Nullable final EAS4CompressionMode eCompressionMode,
+                                   @Nullable final Charset aCharset)
+  {
+    final int nSources = (aDataBytes != null ? 1 : 0) + (aDataFile != null ? 1 : 0) + (aDataStreamProvider != null ? 1 : 0);
+    ValueEnforcer.isTrue (nSources > 0, "SrcData, SrcFile or SrcStreamProvider must be present");
+    ValueEnforcer.isTrue (nSources == 1, "Only one of SrcData, SrcFile or SrcStreamProvider may be present");
     ValueEnforcer.notNull (aMimeType, "MimeType");
     m_aDataBytes = aDataBytes;
     m_aDataFile = aDataFile;
+    m_aDataStreamProvider = aDataStreamProvider;
     m_sContentID = sContentID;
     m_sFilename = sFilename;
     m_aMimeType = aMimeType;
@@ -114,6 +150,28 @@ public class AS4OutgoingAttachment
     return m_aDataFile != null;
   }
 
+  /**
+   * @return The data to be send as a stream provider. May be <code>null</code>
+   *         in which case {@link #getDataBytes()} or {@link #getDataFile()} has
+   *         the content.
+   * @since 2.1.3
+   */
+  @Nullable
+  public final IHasInputStream getDataStreamProvider ()
+  {
+    return m_aDataStreamProvider;
+  }
+
+  /**
+   * @return <code>true</code> if the data is available as a stream provider,
+   *         <code>false</code> if it is a byte array or a file.
+   * @since 2.1.3
+   */
+  public final boolean hasDataStreamProvider ()
+  {
+    return m_aDataStreamProvider != null;
+  }
+
   /**
    * @return The Content-ID to be used. May be <code>null</code>.
    */
@@ -165,6 +223,7 @@ public class AS4OutgoingAttachment
   {
     return new ToStringGenerator (this).append ("DataBytes", m_aDataBytes)
                                        .append ("DataFile", m_aDataFile)
+                                       .append ("DataStreamProvider", m_aDataStreamProvider)
                                        .append ("ContentID", m_sContentID)
                                        .append ("Filename", m_sFilename)
                                        .append ("MimeType", m_aMimeType)
@@ -194,6 +253,7 @@ public class AS4OutgoingAttachment
   {
     private ByteArrayWrapper m_aDataBytes;
     private File m_aDataFile;
+    private IHasInputStream m_aDataStreamProvider;
     private String m_sContentID;
     private String m_sFilename;
     private IMimeType m_aMimeType;
@@ -214,6 +274,7 @@ public class AS4OutgoingAttachment
     {
       m_aDataBytes = a;
       m_aDataFile = null;
+      m_aDataStreamProvider = null;
       return this;
     }
 
@@ -222,6 +283,26 @@ public class AS4OutgoingAttachment
     {
       m_aDataBytes = null;
       m_aDataFile = a;
+      m_aDataStreamProvider = null;
+      return this;
+    }
+
+    /**
+     * Use a stream provider as the data source. The data is only read when the
+     * message is assembled. If the provider cannot be read multiple times, the
+     * content is spooled to a temporary file when needed.
+     *
+     * @param a
+     *        The stream provider to use. May be <code>null</code>.
+     * @return this for chaining
+     * @since 2.1.3
+     */
+    @Nonnull
+    public Builder data (@Nullable final IHasInputStream a)
+    {
+      m_aDataBytes = null;
+      m_aDataFile = null;
+      m_aDataStreamProvider = a;
       return this;
     }
 
@@ -299,7 +380,7 @@ public class AS4OutgoingAttachment
     @OverridingMethodsMustInvokeSuper
     protected void checkConsistency ()
     {
-      if (m_aDataBytes == null && m_aDataFile == null)
+      if (m_aDataBytes == null && m_aDataFile == null && m_aDataStreamProvider == null)
         throw new IllegalStateException ("Phase4OutgoingAttachment has no 'data' element");
       if (m_aMimeType == null)
         throw new IllegalStateException ("Phase4OutgoingAttachment has no 'mimeType' element");
@@ -311,6 +392,7 @@ public class AS4OutgoingAttachment
       checkConsistency ();
       return new AS4OutgoingAttachment (m_aDataBytes,
                                         m_aDataFile,
+                                        m_aDataStreamProvider,
                                         m_sContentID,
                                         m_sFilename,
                                         m_aMimeType,
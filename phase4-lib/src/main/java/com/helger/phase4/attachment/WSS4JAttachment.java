@@ -25,6 +25,7 @@ import java.nio.charset.Charset;
 import java.util.Enumeration;
 import java.util.Map;
 
+import javax.annotation.CheckForSigned;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.WillNotClose;
@@ -52,6 +53,7 @@ import com.helger.commons.string.ToStringGenerator;
 import com.helger.mail.cte.EContentTransferEncoding;
 import com.helger.mail.datasource.InputStreamProviderDataSource;
 import com.helger.phase4.messaging.domain.MessageHelperMethods;
+import com.helger.phase4.messaging.mime.SoapMimeMultipart;
 import com.helger.phase4.util.AS4ResourceHelper;
 
 import jakarta.activation.DataHandler;
@@ -81,6 +83,7 @@ public class WSS4JAttachment extends Attachment implements IAS4Attachment
 
   private final AS4ResourceHelper m_aResHelper;
   private IHasInputStream m_aISP;
+  private long m_nSourceLength = -1;
   private EContentTransferEncoding m_eCTE = EContentTransferEncoding.BINARY;
   private EAS4CompressionMode m_eCompressionMode;
   private Charset m_aCharset;
@@ -184,9 +187,48 @@ public class WSS4JAttachment extends Attachment implements IAS4Attachment
   }
 
   public void setSourceStreamProvider (@Nonnull final IHasInputStream aISP)
+  {
+    setSourceStreamProvider (aISP, -1);
+  }
+
+  /**
+   * Set the source stream provider together with the number of bytes it
+   * provides.
+   *
+   * @param aISP
+   *        The input stream provider to use. May not be <code>null</code>.
+   * @param nSourceLength
+   *        The number of bytes provided by each input stream. Use a negative
+   *        value if unknown.
+   * @since 2.1.3
+   */
+  public void setSourceStreamProvider (@Nonnull final IHasInputStream aISP, final long nSourceLength)
   {
     ValueEnforcer.notNull (aISP, "InputStreamProvider");
     m_aISP = aISP;
+    m_nSourceLength = nSourceLength < 0 ? -1 : nSourceLength;
+  }
+
+  /**
+   * @return The number of bytes of the source stream as provided to
+   *         {@link #setSourceStreamProvider(IHasInputStream, long)} or -1 if
+   *         unknown.
+   * @since 2.1.3
+   */
+  @CheckForSigned
+  public final long getSourceLength ()
+  {
+    return m_nSourceLength;
+  }
+
+  /**
+   * @return <code>true</code> if the number of bytes of the source stream is
+   *         known, <code>false</code> if not.
+   * @since 2.1.3
+   */
+  public final boolean hasSourceLength ()
+  {
+    return m_nSourceLength >= 0;
   }
 
   @Nonnull
@@ -296,7 +338,15 @@ public class WSS4JAttachment extends Attachment implements IAS4Attachment
     aMimeBodyPart.setHeader (CHttpHeader.CONTENT_TYPE, getMimeType ());
     aMimeBodyPart.setHeader (CHttpHeader.CONTENT_TRANSFER_ENCODING, getContentTransferEncoding ().getID ());
 
-    aMimeMultipart.addBodyPart (aMimeBodyPart);
+    if (aMimeMultipart instanceof SoapMimeMultipart)
+    {
+      // Binary content is written as-is, so the length is known up front
+      final long nContentLength = getContentTransferEncoding () == EContentTransferEncoding.BINARY ? m_nSourceLength
+                                                                                                     : -1;
+      ((SoapMimeMultipart) aMimeMultipart).addBodyPartWithContentLength (aMimeBodyPart, nContentLength);
+    }
+    else
+      aMimeMultipart.addBodyPart (aMimeBodyPart);
   }
 
   @Nonnull
@@ -368,7 +418,19 @@ public class WSS4JAttachment extends Attachment implements IAS4Attachment
                                            aResHelper);
     }
 
-    // Must be one of the 2 variants
+    if (aAttachment.hasDataStreamProvider ())
+    {
+      // Stream based
+      return createOutgoingFileAttachment (aAttachment.getDataStreamProvider (),
+                                           aAttachment.getContentID (),
+                                           aAttachment.getFilename (),
+                                           aAttachment.getMimeType (),
+                                           aAttachment.getCompressionMode (),
+                                           aAttachment.getCharset (),
+                                           aResHelper);
+    }
+
+    // Must be one of the 3 variants
     throw new IllegalStateException ("Unsupported outgoing attachment data provider: " + aAttachment);
   }
 
@@ -435,7 +497,8 @@ public class WSS4JAttachment extends Attachment implements IAS4Attachment
 
     // Set a stream provider that can be read multiple times (opens a new
     // FileInputStream internally)
-    ret.setSourceStreamProvider (HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aRealFile)));
+    ret.setSourceStreamProvider (HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aRealFile)),
+                                 aRealFile.length ());
     return ret;
   }
 
@@ -493,12 +556,94 @@ public class WSS4JAttachment extends Attachment implements IAS4Attachment
       {
         aOS.write (aSrcData);
       }
-      ret.setSourceStreamProvider (HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aRealFile)));
+      ret.setSourceStreamProvider (HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aRealFile)),
+                                   aRealFile.length ());
     }
     else
     {
       // No compression - use data as-is
-      ret.setSourceStreamProvider (HasInputStream.multiple ( () -> new NonBlockingByteArrayInputStream (aSrcData)));
+      ret.setSourceStreamProvider (HasInputStream.multiple ( () -> new NonBlockingByteArrayInputStream (aSrcData)),
+                                   aSrcData.length);
+    }
+    return ret;
+  }
+
+  /**
+   * Quasi constructor. Performs compression internally. The source stream is
+   * copied directly into the compressor, so the uncompressed content is never
+   * materialized. If no compression is used and the source stream can only be
+   * read once, the content is spooled into a temporary file, because signing
+   * and encryption need to read the attachment more than once.
+   *
+   * @param aSrcStreamProvider
+   *        Source stream provider, uncompressed, unencrypted. May not be
+   *        <code>null</code>.
+   * @param sContentID
+   *        Optional content ID or <code>null</code> to create a random one.
+   * @param sFilename
+   *        Optional filename to use in the "Content-Disposition" headers. May
+   *        be <code>null</code>.
+   * @param aMimeType
+   *        Original mime type of the content. May not be <code>null</code>.
+   * @param eCompressionMode
+   *        Optional compression mode to use. May be <code>null</code>.
+   * @param aCharset
+   *        The character set to use. May be <code>null</code>
+   * @param aResHelper
+   *        The resource manager to use. May not be <code>null</code>.
+   * @return The newly created attachment instance. Never <code>null</code>.
+   * @throws IOException
+   *         In case something goes wrong during compression or spooling
+   * @since 2.1.3
+   */
+  @Nonnull
+  public static WSS4JAttachment createOutgoingFileAttachment (@Nonnull final IHasInputStream aSrcStreamProvider,
+                                                              @Nullable final String sContentID,
+                                                              @Nullable final String sFilename,
+                                                              @Nonnull final IMimeType aMimeType,
+                                                              @Nullable final EAS4CompressionMode eCompressionMode,
+                                                              @Nullable final Charset aCharset,
+                                                              @Nonnull @WillNotClose final AS4ResourceHelper aResHelper) throws IOException
+  {
+    ValueEnforcer.notNull (aSrcStreamProvider, "SrcStreamProvider");
+    ValueEnforcer.notNull (aMimeType, "MimeType");
+    ValueEnforcer.notNull (aResHelper, "ResHelper");
+
+    final WSS4JAttachment ret = new WSS4JAttachment (aResHelper, aMimeType.getAsString ());
+    ret.setId (sContentID);
+    ret.setCharset (aCharset);
+    _addOutgoingHeaders (ret, sFilename);
+
+    if (eCompressionMode != null || !aSrcStreamProvider.isReadMultiple ())
+    {
+      final InputStream aSrcIS = aSrcStreamProvider.getBufferedInputStream ();
+      if (aSrcIS == null)
+        throw new IOException ("Failed to open the source InputStream of the outgoing attachment");
+
+      // Create temporary file with the (compressed) content
+      final File aRealFile = aResHelper.createTempFile ();
+      OutputStream aOS = FileHelper.getBufferedOutputStream (aRealFile);
+      if (eCompressionMode != null)
+      {
+        // If the attachment has an compressionMode do it directly, so that
+        // encryption later on works on the compressed content
+        ret.setCompressionMode (eCompressionMode);
+        aOS = eCompressionMode.getCompressStream (aOS);
+      }
+      try (final OutputStream aFinalOS = aOS)
+      {
+        if (StreamHelper.copyInputStreamToOutputStream (aSrcIS, aFinalOS).isFailure ())
+          throw new IOException ("Failed to copy the outgoing attachment content to '" +
+                                 aRealFile.getAbsolutePath () +
+                                 "'");
+      }
+      ret.setSourceStreamProvider (HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aRealFile)),
+                                   aRealFile.length ());
+    }
+    else
+    {
+      // No compression and repeatable - use stream as-is
+      ret.setSourceStreamProvider (aSrcStreamProvider);
     }
     return ret;
   }
@@ -60,6 +60,9 @@ import com.helger.phase4.messaging.domain.EAS4MessageType;
 import com.helger.phase4.messaging.domain.MessageHelperMethods;
 import com.helger.phase4.messaging.mime.AS4MimeMessage;
 import com.helger.phase4.messaging.mime.MimeMessageCreator;
+import com.helger.phase4.metrics.AS4MetricsManager;
+import com.helger.phase4.metrics.AS4MetricsTags;
+import com.helger.phase4.metrics.EAS4MetricsStage;
 import com.helger.phase4.model.pmode.IPMode;
 import com.helger.phase4.model.pmode.leg.PModeLeg;
 import com.helger.phase4.util.AS4ResourceHelper;
@@ -659,19 +662,38 @@ public class AS4ClientUserMessage extends AbstractAS4Client <AS4ClientUserMessag
                                  XMLWriter.getNodeAsString (aPureDoc, AS4HttpDebug.getDebugXMLWriterSettings ()));
 
       final IAS4CryptoFactory aCryptoFactory = internalCreateCryptoFactory ();
+      final AS4MetricsTags aMetricsTags = AS4MetricsManager.isEnabled () ? new AS4MetricsTags (null,
+                                                                                               sAgreementRefPMode,
+                                                                                               null)
+                                                                         : AS4MetricsTags.EMPTY;
 
       // 2a. sign
       if (bSign)
       {
         final boolean bMustUnderstand = true;
-        final Document aSignedDoc = AS4Signer.createSignedMessage (aCryptoFactory,
-                                                                   aDoc,
-                                                                   getSoapVersion (),
-                                                                   aUserMsg.getMessagingID (),
-                                                                   m_aAttachments,
-                                                                   getAS4ResourceHelper (),
-                                                                   bMustUnderstand,
-                                                                   signingParams ().getClone ());
+        final long nSignStart = AS4MetricsManager.startTiming (getStageTimings ());
+        final Document aSignedDoc;
+        boolean bSigned = false;
+        try
+        {
+          aSignedDoc = AS4Signer.createSignedMessage (aCryptoFactory,
+                                                      aDoc,
+                                                      getSoapVersion (),
+                                                      aUserMsg.getMessagingID (),
+                                                      m_aAttachments,
+                                                      getAS4ResourceHelper (),
+                                                      bMustUnderstand,
+                                                      signingParams ().getClone ());
+          bSigned = true;
+        }
+        finally
+        {
+          AS4MetricsManager.recordStage (EAS4MetricsStage.OUTGOING_SIGN,
+                                         nSignStart,
+                                         bSigned,
+                                         aMetricsTags,
+                                         getStageTimings ());
+        }
         aDoc = aSignedDoc;
 
         if (aCallback != null)
@@ -686,26 +708,50 @@ public class AS4ClientUserMessage extends AbstractAS4Client <AS4ClientUserMessag
       {
         // MustUnderstand always set to true
         final boolean bMustUnderstand = true;
+        final long nEncryptStart = AS4MetricsManager.startTiming (getStageTimings ());
         if (bAttachmentsPresent)
         {
-          aMimeMsg = AS4Encryptor.encryptMimeMessage (getSoapVersion (),
-                                                      aDoc,
-                                                      m_aAttachments,
-                                                      aCryptoFactory,
-                                                      bMustUnderstand,
-                                                      getAS4ResourceHelper (),
-                                                      cryptParams ().getClone ());
+          try
+          {
+            aMimeMsg = AS4Encryptor.encryptMimeMessage (getSoapVersion (),
+                                                        aDoc,
+                                                        m_aAttachments,
+                                                        aCryptoFactory,
+                                                        bMustUnderstand,
+                                                        getAS4ResourceHelper (),
+                                                        cryptParams ().getClone ());
+          }
+          finally
+          {
+            AS4MetricsManager.recordStage (EAS4MetricsStage.OUTGOING_ENCRYPT,
+                                           nEncryptStart,
+                                           aMimeMsg != null,
+                                           aMetricsTags,
+                                           getStageTimings ());
+          }
 
           if (aCallback != null)
             aCallback.onEncryptedMimeMessage (aMimeMsg);
         }
         else
         {
-          final Document aEncryptedDoc = AS4Encryptor.encryptSoapBodyPayload (aCryptoFactory,
-                                                                              getSoapVersion (),
-                                                                              aDoc,
-                                                                              bMustUnderstand,
-                                                                              cryptParams ().getClone ());
+          Document aEncryptedDoc = null;
+          try
+          {
+            aEncryptedDoc = AS4Encryptor.encryptSoapBodyPayload (aCryptoFactory,
+                                                                 getSoapVersion (),
+                                                                 aDoc,
+                                                                 bMustUnderstand,
+                                                                 cryptParams ().getClone ());
+          }
+          finally
+          {
+            AS4MetricsManager.recordStage (EAS4MetricsStage.OUTGOING_ENCRYPT,
+                                           nEncryptStart,
+                                           aEncryptedDoc != null,
+                                           aMetricsTags,
+                                           getStageTimings ());
+          }
 
           if (aCallback != null)
             aCallback.onEncryptedSoapDocument (aDoc);
@@ -48,6 +48,10 @@ import com.helger.phase4.http.HttpRetrySettings;
 import com.helger.phase4.http.IHttpPoster;
 import com.helger.phase4.messaging.domain.EAS4MessageType;
 import com.helger.phase4.messaging.domain.MessageHelperMethods;
+import com.helger.phase4.metrics.AS4MetricsManager;
+import com.helger.phase4.metrics.AS4MetricsTags;
+import com.helger.phase4.metrics.AS4StageTimings;
+import com.helger.phase4.metrics.EAS4MetricsStage;
 import com.helger.phase4.mgr.MetaAS4Manager;
 import com.helger.phase4.model.pmode.IPMode;
 import com.helger.phase4.model.pmode.PModeReceptionAwareness;
@@ -95,6 +99,9 @@ public abstract class AbstractAS4Client <IMPLTYPE extends AbstractAS4Client <IMP
   // Retry handling
   private final HttpRetrySettings m_aHttpRetrySettings = new HttpRetrySettings ();
 
+  // Optional per message timing trace
+  private AS4StageTimings m_aStageTimings;
+
   protected AbstractAS4Client (@Nonnull final EAS4MessageType eMessageType,
                                @Nonnull @WillNotClose final AS4ResourceHelper aResHelper)
   {
@@ -356,6 +363,33 @@ public abstract class AbstractAS4Client <IMPLTYPE extends AbstractAS4Client <IMP
     return m_aHttpRetrySettings;
   }
 
+  /**
+   * @return The optional stage timing trace, into which the durations of the
+   *         building, signing, encrypting and sending of the message are
+   *         recorded. May be <code>null</code>.
+   * @since 2.1.3
+   */
+  @Nullable
+  public final AS4StageTimings getStageTimings ()
+  {
+    return m_aStageTimings;
+  }
+
+  /**
+   * Set the optional stage timing trace of the message to be send.
+   *
+   * @param aStageTimings
+   *        The stage timings to record into. May be <code>null</code>.
+   * @return this for chaining
+   * @since 2.1.3
+   */
+  @Nonnull
+  public final IMPLTYPE setStageTimings (@Nullable final AS4StageTimings aStageTimings)
+  {
+    m_aStageTimings = aStageTimings;
+    return thisAsT ();
+  }
+
   @Nonnull
   protected IAS4CryptoFactory internalCreateCryptoFactory ()
   {
@@ -454,7 +488,73 @@ public abstract class AbstractAS4Client <IMPLTYPE extends AbstractAS4Client <IMP
   {
     // Create a new message ID for each build!
     final String sMessageID = createMessageID ();
-    final AS4ClientBuiltMessage aBuiltMsg = buildMessage (sMessageID, aCallback);
+    return sendMessageWithRetries (sMessageID, sURL, aResponseHandler, aCallback, aOutgoingDumper, aRetryCallback);
+  }
+
+  /**
+   * Send the AS4 client message created by
+   * {@link #buildMessage(String, IAS4ClientBuildMessageCallback)} with the
+   * provided message ID to the provided URL. This is helpful, if the response
+   * handler needs to know the message ID in advance, e.g. to parse the
+   * response while it is read. This methods does take retries into account.
+   * It synchronously handles the retries and only returns after the last
+   * retry.
+   *
+   * @param <T>
+   *        The response data type
+   * @param sMessageID
+   *        The message ID to be used. Should be created via
+   *        {@link #createMessageID()}. Neither <code>null</code> nor empty.
+   * @param sURL
+   *        The URL to send the HTTP POST to
+   * @param aResponseHandler
+   *        The response handler that converts the HTTP response to a domain
+   *        object. May not be <code>null</code>.
+   * @param aCallback
+   *        An optional callback for the different stages of building the
+   *        document. May be <code>null</code>.
+   * @param aOutgoingDumper
+   *        An outgoing dumper to be used. Maybe <code>null</code>. If
+   *        <code>null</code> the global outgoing dumper from
+   *        {@link AS4DumpManager} is used.
+   * @param aRetryCallback
+   *        An optional callback to be invoked if a retry happens on HTTP level.
+   *        May be <code>null</code>.
+   * @return The sent message that contains
+   * @throws IOException
+   *         in case of error when building or sending the message
+   * @throws WSSecurityException
+   *         In case there is an issue with signing/encryption
+   * @throws MessagingException
+   *         in case something happens in MIME wrapping
+   * @since 2.1.3
+   */
+  @Nonnull
+  public final <T> AS4ClientSentMessage <T> sendMessageWithRetries (@Nonnull @Nonempty final String sMessageID,
+                                                                    @Nonnull final String sURL,
+                                                                    @Nonnull final HttpClientResponseHandler <? extends T> aResponseHandler,
+                                                                    @Nullable final IAS4ClientBuildMessageCallback aCallback,
+                                                                    @Nullable final IAS4OutgoingDumper aOutgoingDumper,
+                                                                    @Nullable final IAS4RetryCallback aRetryCallback) throws IOException,
+                                                                                                                      WSSecurityException,
+                                                                                                                      MessagingException
+  {
+    ValueEnforcer.notEmpty (sMessageID, "MessageID");
+
+    final long nBuildStart = AS4MetricsManager.startTiming (m_aStageTimings);
+    AS4ClientBuiltMessage aBuiltMsg = null;
+    try
+    {
+      aBuiltMsg = buildMessage (sMessageID, aCallback);
+    }
+    finally
+    {
+      AS4MetricsManager.recordStage (EAS4MetricsStage.OUTGOING_BUILD,
+                                     nBuildStart,
+                                     aBuiltMsg != null,
+                                     AS4MetricsTags.EMPTY,
+                                     m_aStageTimings);
+    }
     HttpEntity aBuiltEntity = aBuiltMsg.getHttpEntity ();
     final HttpHeaderMap aBuiltHttpHeaders = aBuiltMsg.getCustomHeaders ();
 
@@ -462,8 +562,10 @@ public abstract class AbstractAS4Client <IMPLTYPE extends AbstractAS4Client <IMP
         aOutgoingDumper != null ||
         AS4DumpManager.getOutgoingDumper () != null)
     {
-      // Ensure a repeatable entity is provided
-      aBuiltEntity = m_aResHelper.createRepeatableHttpEntity (aBuiltEntity);
+      // Materialize the built message once, so that all tries and the dumper
+      // use the same bytes and the Content-Length is known
+      if (!aBuiltEntity.isRepeatable () || aBuiltEntity.getContentLength () < 0)
+        aBuiltEntity = m_aResHelper.createSpooledHttpEntity (aBuiltEntity);
     }
 
     // Keep the HTTP response status line for external evaluation
@@ -481,14 +583,25 @@ public abstract class AbstractAS4Client <IMPLTYPE extends AbstractAS4Client <IMP
       // Call the original handler
       return aResponseHandler.handleResponse (x);
     };
-    final T aResponseContent = m_aHttpPoster.sendGenericMessageWithRetries (sURL,
-                                                                            aBuiltHttpHeaders,
-                                                                            aBuiltEntity,
-                                                                            sMessageID,
-                                                                            m_aHttpRetrySettings,
-                                                                            aRealResponseHandler,
-                                                                            aOutgoingDumper,
-                                                                            aRetryCallback);
+    // The HTTP poster records the metrics for each try - the trace contains
+    // the overall duration including all retries
+    final long nHttpStart = AS4MetricsManager.startTiming (m_aStageTimings);
+    final T aResponseContent;
+    try
+    {
+      aResponseContent = m_aHttpPoster.sendGenericMessageWithRetries (sURL,
+                                                                      aBuiltHttpHeaders,
+                                                                      aBuiltEntity,
+                                                                      sMessageID,
+                                                                      m_aHttpRetrySettings,
+                                                                      aRealResponseHandler,
+                                                                      aOutgoingDumper,
+                                                                      aRetryCallback);
+    }
+    finally
+    {
+      AS4MetricsManager.recordStageTimings (EAS4MetricsStage.OUTGOING_HTTP, nHttpStart, m_aStageTimings);
+    }
     return new AS4ClientSentMessage <> (aBuiltMsg, aStatusLineKeeper.get (), aResponseHeaders, aResponseContent);
   }
 }
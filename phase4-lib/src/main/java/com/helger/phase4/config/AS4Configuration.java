@@ -30,7 +30,6 @@ import com.helger.commons.concurrent.SimpleReadWriteLock;
 import com.helger.commons.equals.EqualsHelper;
 import com.helger.commons.io.resource.IReadableResource;
 import com.helger.commons.io.resourceprovider.ReadableResourceProviderChain;
-import com.helger.commons.string.StringParser;
 import com.helger.config.Config;
 import com.helger.config.ConfigFactory;
 import com.helger.config.IConfig;
@@ -63,6 +62,53 @@ public final class AS4Configuration
 
   public static final long DEFAULT_PHASE4_INCOMING_DUPLICATEDISPOSAL_MINUTES = 10;
 
+  /**
+   * The boolean WSS4J property to allow the RSA 1.5 key transport algorithm
+   * for incoming messages.
+   *
+   * @since 2.1.3
+   */
+  public static final String PROPERTY_WSS4J_ALLOW_RSA15_KEY_TRANSPORT_ALGORITHM = "org.apache.wss4j.dom.handler.RequestData.allowRSA15KeyTransportAlgorithm";
+  public static final boolean DEFAULT_WSS4J_ALLOW_RSA15_KEY_TRANSPORT_ALGORITHM = false;
+
+  /**
+   * The boolean property to run asynchronous work on virtual threads, if the
+   * runtime supports them.
+   *
+   * @since 2.1.3
+   */
+  public static final String PROPERTY_PHASE4_EXECUTION_VIRTUALTHREADS = "phase4.execution.virtualthreads";
+  public static final boolean DEFAULT_PHASE4_EXECUTION_VIRTUALTHREADS = false;
+
+  /**
+   * The boolean property to compute the length of outgoing MIME messages up
+   * front, so that they can be sent with a <code>Content-Length</code> header
+   * instead of chunked.
+   *
+   * @since 2.1.3
+   */
+  public static final String PROPERTY_PHASE4_HTTP_MIME_CONTENTLENGTH = "phase4.http.mime.contentlength";
+  public static final boolean DEFAULT_PHASE4_HTTP_MIME_CONTENTLENGTH = true;
+
+  /**
+   * The number of milliseconds after which the processing of a single message
+   * is considered slow and its stage timings are logged. A value &le; 0
+   * disables the logging.
+   *
+   * @since 2.1.3
+   */
+  public static final String PROPERTY_PHASE4_TIMING_SLOWMESSAGE_MILLIS = "phase4.timing.slowmessage.millis";
+  public static final long DEFAULT_PHASE4_TIMING_SLOWMESSAGE_MILLIS = 0;
+
+  /**
+   * Track the allocated bytes per stage for every n-th message. A value &le; 0
+   * disables the tracking.
+   *
+   * @since 2.1.3
+   */
+  public static final String PROPERTY_PHASE4_DIAGNOSTICS_ALLOCATION_SAMPLERATE = "phase4.diagnostics.allocation.samplerate";
+  public static final int DEFAULT_PHASE4_DIAGNOSTICS_ALLOCATION_SAMPLERATE = 0;
+
   private static final Logger LOGGER = LoggerFactory.getLogger (AS4Configuration.class);
 
   /**
@@ -110,7 +156,9 @@ public final class AS4Configuration
   private static final MultiConfigurationValueProvider VP = createPhase4ValueProvider ();
   private static final IConfig DEFAULT_INSTANCE = Config.create (VP);
   private static final SimpleReadWriteLock RW_LOCK = new SimpleReadWriteLock ();
-  private static IConfig s_aConfig = DEFAULT_INSTANCE;
+  // The snapshot contains the configuration it was created from, so both are
+  // swapped atomically
+  private static volatile AS4ConfigurationSnapshot s_aSnapshot = new AS4ConfigurationSnapshot (DEFAULT_INSTANCE);
 
   private AS4Configuration ()
   {}
@@ -121,20 +169,38 @@ public final class AS4Configuration
   @Nonnull
   public static IConfig getConfig ()
   {
-    // Inline for performance
-    RW_LOCK.readLock ().lock ();
-    try
-    {
-      return s_aConfig;
-    }
-    finally
-    {
-      RW_LOCK.readLock ().unlock ();
-    }
+    return s_aSnapshot.getConfig ();
   }
 
   /**
-   * Overwrite the global configuration. This is only needed for testing.
+   * @return The typed values of the current global configuration. Never
+   *         <code>null</code>. All values are resolved when the configuration
+   *         is set, so accessing them is cheap.
+   * @see #refreshSnapshot()
+   * @since 2.1.3
+   */
+  @Nonnull
+  public static AS4ConfigurationSnapshot getSnapshot ()
+  {
+    return s_aSnapshot;
+  }
+
+  /**
+   * Resolve all typed values of the current global configuration again. This
+   * is only needed if the underlying configuration sources changed (e.g. after
+   * they were reloaded or a system property was changed at runtime), as this
+   * is not detected automatically.
+   *
+   * @since 2.1.3
+   */
+  public static void refreshSnapshot ()
+  {
+    RW_LOCK.writeLocked ( () -> s_aSnapshot = new AS4ConfigurationSnapshot (s_aSnapshot.getConfig ()));
+  }
+
+  /**
+   * Overwrite the global configuration. This is only needed for testing. All
+   * typed values are resolved again.
    *
    * @param aNewConfig
    *        The configuration to use globally. May not be <code>null</code>.
@@ -144,17 +210,13 @@ public final class AS4Configuration
   public static IConfig setConfig (@Nonnull final IConfig aNewConfig)
   {
     ValueEnforcer.notNull (aNewConfig, "NewConfig");
-    final IConfig ret;
-    RW_LOCK.writeLock ().lock ();
-    try
-    {
-      ret = s_aConfig;
-      s_aConfig = aNewConfig;
-    }
-    finally
-    {
-      RW_LOCK.writeLock ().unlock ();
-    }
+    // Resolve outside of the lock
+    final AS4ConfigurationSnapshot aNewSnapshot = new AS4ConfigurationSnapshot (aNewConfig);
+    final IConfig ret = RW_LOCK.writeLockedGet ( () -> {
+      final IConfig aOldConfig = s_aSnapshot.getConfig ();
+      s_aSnapshot = aNewSnapshot;
+      return aOldConfig;
+    });
 
     if (!EqualsHelper.identityEqual (ret, aNewConfig))
       LOGGER.info ("The phase4 configuration provider was changed to " + aNewConfig);
@@ -166,7 +228,7 @@ public final class AS4Configuration
    */
   public static boolean isGlobalDebug ()
   {
-    return getConfig ().getAsBoolean ("global.debug", false);
+    return s_aSnapshot.isGlobalDebug ();
   }
 
   /**
@@ -174,7 +236,7 @@ public final class AS4Configuration
    */
   public static boolean isGlobalProduction ()
   {
-    return getConfig ().getAsBoolean ("global.production", false);
+    return s_aSnapshot.isGlobalProduction ();
   }
 
   /**
@@ -182,14 +244,13 @@ public final class AS4Configuration
    */
   public static boolean isNoStartupInfo ()
   {
-    return getConfig ().getAsBoolean ("global.nostartupinfo", true);
+    return s_aSnapshot.isNoStartupInfo ();
   }
 
   @Nonnull
   public static String getDataPath ()
   {
-    // "phase4-data" relative to application startup directory
-    return getConfig ().getAsString ("global.datapath", "phase4-data");
+    return s_aSnapshot.getDataPath ();
   }
 
   /**
@@ -199,15 +260,7 @@ public final class AS4Configuration
    */
   public static boolean isUseInMemoryManagers ()
   {
-    if (false)
-    {
-      // This should work, but doesn't
-      return getConfig ().getAsBoolean (PROPERTY_PHASE4_MANAGER_INMEMORY, DEFAULT_PHASE4_MANAGER_INMEMORY);
-    }
-
-    // Parse manually
-    final String sValue = getConfig ().getAsString (PROPERTY_PHASE4_MANAGER_INMEMORY);
-    return StringParser.parseBool (sValue, DEFAULT_PHASE4_MANAGER_INMEMORY);
+    return s_aSnapshot.isUseInMemoryManagers ();
   }
 
   /**
@@ -218,15 +271,67 @@ public final class AS4Configuration
    */
   public static boolean isWSS4JSynchronizedSecurity ()
   {
-    if (false)
-    {
-      // This should work, but doesn't in all cases
-      return getConfig ().getAsBoolean (PROPERTY_PHASE4_WSS4J_SYNCSECURITY, DEFAULT_PHASE4_WSS4J_SYNCSECURITY);
-    }
+    return s_aSnapshot.isWSS4JSynchronizedSecurity ();
+  }
+
+  /**
+   * @return <code>true</code> if the RSA 1.5 key transport algorithm is allowed
+   *         for incoming messages. The configuration item is
+   *         {@value #PROPERTY_WSS4J_ALLOW_RSA15_KEY_TRANSPORT_ALGORITHM}.
+   * @since 2.1.3
+   */
+  public static boolean isAllowRSA15KeyTransportAlgorithm ()
+  {
+    return s_aSnapshot.isAllowRSA15KeyTransportAlgorithm ();
+  }
+
+  /**
+   * @return <code>true</code> if asynchronous processing and asynchronous
+   *         sending should use virtual threads. This only has an effect if the
+   *         Java runtime supports virtual threads. The configuration item is
+   *         <code>phase4.execution.virtualthreads</code>.
+   * @since 2.1.3
+   */
+  public static boolean isUseVirtualThreads ()
+  {
+    return s_aSnapshot.isUseVirtualThreads ();
+  }
+
+  /**
+   * @return <code>true</code> if the length of outgoing MIME messages should be
+   *         computed up front from the known part sizes, so that they are sent
+   *         with a <code>Content-Length</code> header. If the length cannot be
+   *         determined, chunked transfer encoding is used. The configuration
+   *         item is <code>phase4.http.mime.contentlength</code>.
+   * @since 2.1.3
+   */
+  public static boolean isComputeMimeContentLength ()
+  {
+    return s_aSnapshot.isComputeMimeContentLength ();
+  }
 
-    // Parse manually
-    final String sValue = getConfig ().getAsString (PROPERTY_PHASE4_WSS4J_SYNCSECURITY);
-    return StringParser.parseBool (sValue, DEFAULT_PHASE4_WSS4J_SYNCSECURITY);
+  /**
+   * @return The number of milliseconds after which the stage timings of a
+   *         single incoming or outgoing message are logged as a warning. A
+   *         value &le; 0 means disabled. The configuration item is
+   *         <code>phase4.timing.slowmessage.millis</code>.
+   * @since 2.1.3
+   */
+  public static long getSlowMessageThresholdMillis ()
+  {
+    return s_aSnapshot.getSlowMessageThresholdMillis ();
+  }
+
+  /**
+   * @return The sample rate for the allocation tracking per stage: a value of
+   *         n means that every n-th message is tracked. A value &le; 0 means
+   *         disabled. The configuration item is
+   *         <code>phase4.diagnostics.allocation.samplerate</code>.
+   * @since 2.1.3
+   */
+  public static int getAllocationSampleRate ()
+  {
+    return s_aSnapshot.getAllocationSampleRate ();
   }
 
   /**
@@ -236,7 +341,7 @@ public final class AS4Configuration
   @Nullable
   public static String getAS4ProfileID ()
   {
-    return getConfig ().getAsString ("phase4.profile");
+    return s_aSnapshot.getAS4ProfileID ();
   }
 
   /**
@@ -248,8 +353,7 @@ public final class AS4Configuration
    */
   public static long getIncomingDuplicateDisposalMinutes ()
   {
-    return getConfig ().getAsLong ("phase4.incoming.duplicatedisposal.minutes",
-                                   DEFAULT_PHASE4_INCOMING_DUPLICATEDISPOSAL_MINUTES);
+    return s_aSnapshot.getIncomingDuplicateDisposalMinutes ();
   }
 
   /**
@@ -260,8 +364,7 @@ public final class AS4Configuration
   @Nonnull
   public static String getDumpBasePath ()
   {
-    // "phase4-dumps" relative to application startup directory
-    return getConfig ().getAsString ("phase4.dump.path", "phase4-dumps");
+    return s_aSnapshot.getDumpBasePath ();
   }
 
   /**
@@ -284,6 +387,6 @@ public final class AS4Configuration
   @Nullable
   public static String getThisEndpointAddress ()
   {
-    return getConfig ().getAsString ("phase4.endpoint.address");
+    return s_aSnapshot.getThisEndpointAddress ();
   }
 }
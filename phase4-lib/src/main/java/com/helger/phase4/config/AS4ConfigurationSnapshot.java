@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.config;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.StringParser;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.config.IConfig;
+
+/**
+ * An immutable snapshot of the typed phase4 configuration values. All values
+ * are resolved from an {@link IConfig} once when the snapshot is created, so
+ * that reading them on hot paths (e.g. per message) is a plain field access
+ * without string parsing or locking. The current snapshot is maintained by
+ * {@link AS4Configuration}.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@Immutable
+public final class AS4ConfigurationSnapshot
+{
+  private final IConfig m_aConfig;
+  private final boolean m_bGlobalDebug;
+  private final boolean m_bGlobalProduction;
+  private final boolean m_bNoStartupInfo;
+  private final String m_sDataPath;
+  private final boolean m_bUseInMemoryManagers;
+  private final boolean m_bWSS4JSynchronizedSecurity;
+  private final boolean m_bAllowRSA15KeyTransportAlgorithm;
+  private final boolean m_bUseVirtualThreads;
+  private final boolean m_bComputeMimeContentLength;
+  private final long m_nSlowMessageThresholdMillis;
+  private final int m_nAllocationSampleRate;
+  private final String m_sAS4ProfileID;
+  private final long m_nIncomingDuplicateDisposalMinutes;
+  private final String m_sDumpBasePath;
+  private final String m_sThisEndpointAddress;
+
+  /**
+   * Constructor
+   *
+   * @param aConfig
+   *        The configuration to resolve all values from. May not be
+   *        <code>null</code>.
+   */
+  public AS4ConfigurationSnapshot (@Nonnull final IConfig aConfig)
+  {
+    ValueEnforcer.notNull (aConfig, "Config");
+    m_aConfig = aConfig;
+    m_bGlobalDebug = aConfig.getAsBoolean ("global.debug", false);
+    m_bGlobalProduction = aConfig.getAsBoolean ("global.production", false);
+    m_bNoStartupInfo = aConfig.getAsBoolean ("global.nostartupinfo", true);
+    // "phase4-data" relative to application startup directory
+    m_sDataPath = aConfig.getAsString ("global.datapath", "phase4-data");
+    // Parse manually, as getAsBoolean doesn't work in all cases
+    m_bUseInMemoryManagers = StringParser.parseBool (aConfig.getAsString (AS4Configuration.PROPERTY_PHASE4_MANAGER_INMEMORY),
+                                                     AS4Configuration.DEFAULT_PHASE4_MANAGER_INMEMORY);
+    m_bWSS4JSynchronizedSecurity = StringParser.parseBool (aConfig.getAsString (AS4Configuration.PROPERTY_PHASE4_WSS4J_SYNCSECURITY),
+                                                           AS4Configuration.DEFAULT_PHASE4_WSS4J_SYNCSECURITY);
+    m_bAllowRSA15KeyTransportAlgorithm = StringParser.parseBool (aConfig.getAsString (AS4Configuration.PROPERTY_WSS4J_ALLOW_RSA15_KEY_TRANSPORT_ALGORITHM),
+                                                                 AS4Configuration.DEFAULT_WSS4J_ALLOW_RSA15_KEY_TRANSPORT_ALGORITHM);
+    m_bUseVirtualThreads = aConfig.getAsBoolean (AS4Configuration.PROPERTY_PHASE4_EXECUTION_VIRTUALTHREADS,
+                                                 AS4Configuration.DEFAULT_PHASE4_EXECUTION_VIRTUALTHREADS);
+    m_bComputeMimeContentLength = aConfig.getAsBoolean (AS4Configuration.PROPERTY_PHASE4_HTTP_MIME_CONTENTLENGTH,
+                                                        AS4Configuration.DEFAULT_PHASE4_HTTP_MIME_CONTENTLENGTH);
+    m_nSlowMessageThresholdMillis = aConfig.getAsLong (AS4Configuration.PROPERTY_PHASE4_TIMING_SLOWMESSAGE_MILLIS,
+                                                       AS4Configuration.DEFAULT_PHASE4_TIMING_SLOWMESSAGE_MILLIS);
+    m_nAllocationSampleRate = aConfig.getAsInt (AS4Configuration.PROPERTY_PHASE4_DIAGNOSTICS_ALLOCATION_SAMPLERATE,
+                                                AS4Configuration.DEFAULT_PHASE4_DIAGNOSTICS_ALLOCATION_SAMPLERATE);
+    m_sAS4ProfileID = aConfig.getAsString ("phase4.profile");
+    m_nIncomingDuplicateDisposalMinutes = aConfig.getAsLong ("phase4.incoming.duplicatedisposal.minutes",
+                                                             AS4Configuration.DEFAULT_PHASE4_INCOMING_DUPLICATEDISPOSAL_MINUTES);
+    // "phase4-dumps" relative to application startup directory
+    m_sDumpBasePath = aConfig.getAsString ("phase4.dump.path", "phase4-dumps");
+    m_sThisEndpointAddress = aConfig.getAsString ("phase4.endpoint.address");
+  }
+
+  /**
+   * @return The configuration this snapshot was created from. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public IConfig getConfig ()
+  {
+    return m_aConfig;
+  }
+
+  /**
+   * @return <code>true</code> to enable the global debugging mode.
+   */
+  public boolean isGlobalDebug ()
+  {
+    return m_bGlobalDebug;
+  }
+
+  /**
+   * @return <code>true</code> to enable the global production mode.
+   */
+  public boolean isGlobalProduction ()
+  {
+    return m_bGlobalProduction;
+  }
+
+  /**
+   * @return <code>true</code> if no startup info should be logged.
+   */
+  public boolean isNoStartupInfo ()
+  {
+    return m_bNoStartupInfo;
+  }
+
+  @Nonnull
+  public String getDataPath ()
+  {
+    return m_sDataPath;
+  }
+
+  /**
+   * @return Use in-memory managers, taken from the configuration item
+   *         <code>phase4.manager.inmemory</code>.
+   */
+  public boolean isUseInMemoryManagers ()
+  {
+    return m_bUseInMemoryManagers;
+  }
+
+  /**
+   * @return <code>true</code> if all WSS4J actions should be explicitly
+   *         synchronized. The configuration item is
+   *         <code>phase4.wss4j.syncsecurity</code>.
+   */
+  public boolean isWSS4JSynchronizedSecurity ()
+  {
+    return m_bWSS4JSynchronizedSecurity;
+  }
+
+  /**
+   * @return <code>true</code> if the RSA 1.5 key transport algorithm is allowed
+   *         for incoming messages. The configuration item is
+   *         {@value AS4Configuration#PROPERTY_WSS4J_ALLOW_RSA15_KEY_TRANSPORT_ALGORITHM}.
+   */
+  public boolean isAllowRSA15KeyTransportAlgorithm ()
+  {
+    return m_bAllowRSA15KeyTransportAlgorithm;
+  }
+
+  /**
+   * @return <code>true</code> if asynchronous processing and asynchronous
+   *         sending should use virtual threads. The configuration item is
+   *         <code>phase4.execution.virtualthreads</code>.
+   */
+  public boolean isUseVirtualThreads ()
+  {
+    return m_bUseVirtualThreads;
+  }
+
+  /**
+   * @return <code>true</code> if the length of outgoing MIME messages should be
+   *         computed up front. The configuration item is
+   *         <code>phase4.http.mime.contentlength</code>.
+   */
+  public boolean isComputeMimeContentLength ()
+  {
+    return m_bComputeMimeContentLength;
+  }
+
+  /**
+   * @return The number of milliseconds after which the stage timings of a
+   *         message are logged. A value &le; 0 means disabled. The
+   *         configuration item is <code>phase4.timing.slowmessage.millis</code>.
+   */
+  public long getSlowMessageThresholdMillis ()
+  {
+    return m_nSlowMessageThresholdMillis;
+  }
+
+  /**
+   * @return The sample rate for the allocation tracking per stage. A value
+   *         &le; 0 means disabled. The configuration item is
+   *         <code>phase4.diagnostics.allocation.samplerate</code>.
+   */
+  public int getAllocationSampleRate ()
+  {
+    return m_nAllocationSampleRate;
+  }
+
+  /**
+   * @return The AS4 profile to use, taken from the configuration item
+   *         <code>phase4.profile</code>. May be <code>null</code>.
+   */
+  @Nullable
+  public String getAS4ProfileID ()
+  {
+    return m_sAS4ProfileID;
+  }
+
+  /**
+   * @return the number of minutes, the message IDs of incoming messages are
+   *         stored for duplication check. Taken from the configuration item
+   *         <code>phase4.incoming.duplicatedisposal.minutes</code>.
+   */
+  public long getIncomingDuplicateDisposalMinutes ()
+  {
+    return m_nIncomingDuplicateDisposalMinutes;
+  }
+
+  /**
+   * @return The dumping base path. Taken from the configuration item
+   *         <code>phase4.dump.path</code>.
+   */
+  @Nonnull
+  public String getDumpBasePath ()
+  {
+    return m_sDumpBasePath;
+  }
+
+  /**
+   * @return The endpoint address of "our" AP for comparison. Taken from the
+   *         configuration item <code>phase4.endpoint.address</code>.
+   */
+  @Nullable
+  public String getThisEndpointAddress ()
+  {
+    return m_sThisEndpointAddress;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("Config", m_aConfig)
+                                       .append ("GlobalDebug", m_bGlobalDebug)
+                                       .append ("GlobalProduction", m_bGlobalProduction)
+                                       .append ("NoStartupInfo", m_bNoStartupInfo)
+                                       .append ("DataPath", m_sDataPath)
+                                       .append ("UseInMemoryManagers", m_bUseInMemoryManagers)
+                                       .append ("WSS4JSynchronizedSecurity", m_bWSS4JSynchronizedSecurity)
+                                       .append ("AllowRSA15KeyTransportAlgorithm", m_bAllowRSA15KeyTransportAlgorithm)
+                                       .append ("UseVirtualThreads", m_bUseVirtualThreads)
+                                       .append ("ComputeMimeContentLength", m_bComputeMimeContentLength)
+                                       .append ("SlowMessageThresholdMillis", m_nSlowMessageThresholdMillis)
+                                       .append ("AllocationSampleRate", m_nAllocationSampleRate)
+                                       .append ("AS4ProfileID", m_sAS4ProfileID)
+                                       .append ("IncomingDuplicateDisposalMinutes", m_nIncomingDuplicateDisposalMinutes)
+                                       .append ("DumpBasePath", m_sDumpBasePath)
+                                       .append ("ThisEndpointAddress", m_sThisEndpointAddress)
+                                       .getToString ();
+  }
+}
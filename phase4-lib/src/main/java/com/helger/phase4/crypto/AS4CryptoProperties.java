@@ -74,7 +74,7 @@ public class AS4CryptoProperties implements Serializable, ICloneable <AS4CryptoP
   public static final String TRUSTSTORE_PASSWORD = "org.apache.wss4j.crypto.merlin.truststore.password";
 
   /** Allow RSA15 Key Transport Algorithm */
-  public static final String ALLOW_RSA15_KEY_TRANSPORT_ALGORITHM = "org.apache.wss4j.dom.handler.RequestData.allowRSA15KeyTransportAlgorithm";
+  public static final String ALLOW_RSA15_KEY_TRANSPORT_ALGORITHM = AS4Configuration.PROPERTY_WSS4J_ALLOW_RSA15_KEY_TRANSPORT_ALGORITHM;
 
   private NonBlockingProperties m_aProps;
 
@@ -23,6 +23,8 @@ import javax.annotation.Nullable;
 
 import org.apache.wss4j.common.crypto.Crypto;
 
+import com.helger.phase4.config.AS4Configuration;
+
 /**
  * The basic phase4 crypto interface.
  * <ul>
@@ -35,7 +37,7 @@ import org.apache.wss4j.common.crypto.Crypto;
  */
 public interface IAS4CryptoFactory
 {
-  boolean DEFAULT_ALLOW_RSA15_KEY_TRANSPORT_ALGORITHM = false;
+  boolean DEFAULT_ALLOW_RSA15_KEY_TRANSPORT_ALGORITHM = AS4Configuration.DEFAULT_WSS4J_ALLOW_RSA15_KEY_TRANSPORT_ALGORITHM;
 
   /**
    * @return A WSS4J {@link Crypto} instance and never <code>null</code>.
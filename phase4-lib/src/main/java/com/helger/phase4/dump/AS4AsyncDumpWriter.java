@@ -0,0 +1,706 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dump;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.functional.IThrowingSupplier;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A write-behind writer for message dumps. Dump data is collected in chunks on
+ * the producing thread and handed over to a bounded buffer, that is drained by
+ * a single dedicated writer thread. That decouples the latency of the dump
+ * target (e.g. the disk) from the latency of receiving and sending messages.
+ * If the buffer is full, the {@link EAS4DumpOverflowPolicy} decides whether
+ * the producer waits, or whether the dump data is dropped.<br>
+ * All data of a single dump is written in order. Tasks scheduled via
+ * {@link #runAfter(Runnable)} are run after all data that was handed over
+ * before.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@ThreadSafe
+public class AS4AsyncDumpWriter implements AutoCloseable
+{
+  /** The default number of chunks that can be buffered */
+  public static final int DEFAULT_CAPACITY = 1024;
+  /** The default size of a single chunk in bytes */
+  public static final int DEFAULT_CHUNK_SIZE = 16 * CGlobal.BYTES_PER_KILOBYTE;
+  /** The default overflow policy */
+  public static final EAS4DumpOverflowPolicy DEFAULT_OVERFLOW_POLICY = EAS4DumpOverflowPolicy.BLOCK;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4AsyncDumpWriter.class);
+  private static final AtomicInteger THREAD_INDEX = new AtomicInteger (0);
+
+  /**
+   * Base class for all elements of the buffer.
+   */
+  private abstract static class AbstractItem
+  {
+    private final long m_nEnqueuedNanos = System.nanoTime ();
+
+    protected abstract void process ();
+  }
+
+  private static final class DataItem extends AbstractItem
+  {
+    private final DumpOutputStream m_aStream;
+    private final byte [] m_aBytes;
+    private final int m_nLength;
+
+    DataItem (@Nonnull final DumpOutputStream aStream, @Nonnull final byte [] aBytes, @Nonnegative final int nLength)
+    {
+      m_aStream = aStream;
+      m_aBytes = aBytes;
+      m_nLength = nLength;
+    }
+
+    @Override
+    protected void process ()
+    {
+      m_aStream.writeChunk (m_aBytes, m_nLength);
+    }
+  }
+
+  private static final class CloseItem extends AbstractItem
+  {
+    private final DumpOutputStream m_aStream;
+
+    CloseItem (@Nonnull final DumpOutputStream aStream)
+    {
+      m_aStream = aStream;
+    }
+
+    @Override
+    protected void process ()
+    {
+      m_aStream.closeTarget ();
+    }
+  }
+
+  private static final class TaskItem extends AbstractItem
+  {
+    private final Runnable m_aTask;
+
+    TaskItem (@Nonnull final Runnable aTask)
+    {
+      m_aTask = aTask;
+    }
+
+    @Override
+    protected void process ()
+    {
+      try
+      {
+        m_aTask.run ();
+      }
+      catch (final RuntimeException ex)
+      {
+        LOGGER.error ("Error running asynchronous dump task " + m_aTask, ex);
+      }
+    }
+  }
+
+  private static final class StopItem extends AbstractItem
+  {
+    @Override
+    protected void process ()
+    {}
+  }
+
+  /**
+   * The output stream handed out to the dumpers. Writing happens in the
+   * calling thread, opening, writing and closing the real target happens in
+   * the writer thread.
+   *
+   * @author Philip Helger
+   */
+  @NotThreadSafe
+  public final class DumpOutputStream extends OutputStream
+  {
+    private final IThrowingSupplier <? extends OutputStream, IOException> m_aTargetOpener;
+    // Producer side
+    private byte [] m_aBuffer;
+    private int m_nCount;
+    private boolean m_bClosed;
+    private volatile boolean m_bDropped;
+    // Writer thread side
+    private boolean m_bTargetOpenTried;
+    private OutputStream m_aTarget;
+
+    DumpOutputStream (@Nonnull final IThrowingSupplier <? extends OutputStream, IOException> aTargetOpener)
+    {
+      m_aTargetOpener = aTargetOpener;
+      m_aBuffer = new byte [m_nChunkSize];
+    }
+
+    private void _handOver () throws IOException
+    {
+      if (m_nCount == 0)
+        return;
+
+      final byte [] aBytes = m_aBuffer;
+      final int nLength = m_nCount;
+      m_aBuffer = new byte [m_nChunkSize];
+      m_nCount = 0;
+
+      if (m_bDropped)
+      {
+        // The dump is already truncated - ignore the rest
+        m_aDroppedBytes.addAndGet (nLength);
+        return;
+      }
+
+      if (!_enqueueData (new DataItem (this, aBytes, nLength)))
+      {
+        m_bDropped = true;
+        m_aDroppedBytes.addAndGet (nLength);
+        m_aDroppedDumps.incrementAndGet ();
+        LOGGER.warn ("The asynchronous dump buffer is full - truncating the dump");
+      }
+    }
+
+    @Override
+    public void write (final int b) throws IOException
+    {
+      if (m_bClosed)
+        throw new IOException ("Dump stream is already closed");
+      if (m_nCount == m_aBuffer.length)
+        _handOver ();
+      m_aBuffer[m_nCount++] = (byte) b;
+    }
+
+    @Override
+    public void write (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+    {
+      ValueEnforcer.isArrayOfsLen (aBuf, nOfs, nLen);
+      if (m_bClosed)
+        throw new IOException ("Dump stream is already closed");
+
+      int nRealOfs = nOfs;
+      int nRest = nLen;
+      while (nRest > 0)
+      {
+        if (m_nCount == m_aBuffer.length)
+          _handOver ();
+        final int nPart = Math.min (nRest, m_aBuffer.length - m_nCount);
+        System.arraycopy (aBuf, nRealOfs, m_aBuffer, m_nCount, nPart);
+        m_nCount += nPart;
+        nRealOfs += nPart;
+        nRest -= nPart;
+      }
+    }
+
+    /**
+     * Hands over the currently collected bytes to the writer thread. This does
+     * not wait until the bytes are written.
+     */
+    @Override
+    public void flush () throws IOException
+    {
+      if (!m_bClosed)
+        _handOver ();
+    }
+
+    @Override
+    public void close () throws IOException
+    {
+      if (!m_bClosed)
+      {
+        try
+        {
+          _handOver ();
+        }
+        finally
+        {
+          m_bClosed = true;
+          _enqueueControl (new CloseItem (this));
+        }
+      }
+    }
+
+    /**
+     * @return <code>true</code> if at least one part of this dump was dropped,
+     *         because the buffer was full.
+     */
+    public boolean isDropped ()
+    {
+      return m_bDropped;
+    }
+
+    /**
+     * @return <code>true</code> if the real target stream was opened. This
+     *         should only be queried from within tasks scheduled via
+     *         {@link AS4AsyncDumpWriter#runAfter(Runnable)}.
+     */
+    public boolean isTargetOpened ()
+    {
+      return m_aTarget != null;
+    }
+
+    @Nullable
+    private OutputStream _getTarget ()
+    {
+      if (!m_bTargetOpenTried)
+      {
+        m_bTargetOpenTried = true;
+        try
+        {
+          m_aTarget = m_aTargetOpener.get ();
+        }
+        catch (final IOException | RuntimeException ex)
+        {
+          LOGGER.error ("Failed to open the dump target", ex);
+        }
+      }
+      return m_aTarget;
+    }
+
+    void writeChunk (@Nonnull final byte [] aBytes, @Nonnegative final int nLength)
+    {
+      m_aQueuedBytes.addAndGet (-nLength);
+      final OutputStream aTarget = _getTarget ();
+      if (aTarget == null)
+      {
+        // No dumping desired or possible
+        return;
+      }
+      try
+      {
+        aTarget.write (aBytes, 0, nLength);
+        m_aWrittenBytes.addAndGet (nLength);
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.error ("Failed to write " + nLength + " bytes to the dump target - stopping this dump", ex);
+        StreamHelper.close (aTarget);
+        m_aTarget = null;
+      }
+    }
+
+    void closeTarget ()
+    {
+      // Open it, in case the dump is empty
+      final OutputStream aTarget = _getTarget ();
+      if (aTarget != null)
+      {
+        // Leave m_aTarget set, so that isTargetOpened works afterwards
+        StreamHelper.close (aTarget);
+      }
+    }
+  }
+
+  private final int m_nChunkSize;
+  private final EAS4DumpOverflowPolicy m_eOverflowPolicy;
+  private final BlockingQueue <AbstractItem> m_aQueue;
+  private final Thread m_aThread;
+  private final AtomicBoolean m_aClosed = new AtomicBoolean (false);
+  // Set by the writer thread, when it stopped taking elements
+  private final AtomicBoolean m_aTerminated = new AtomicBoolean (false);
+  // Serializes processing outside of the writer thread, once it terminated.
+  // Never held while waiting for space in the buffer.
+  private final Lock m_aDrainLock = new ReentrantLock ();
+
+  // Metrics
+  private final AtomicLong m_aQueuedBytes = new AtomicLong (0);
+  private final AtomicLong m_aWrittenBytes = new AtomicLong (0);
+  private final AtomicLong m_aDroppedBytes = new AtomicLong (0);
+  private final AtomicLong m_aDroppedDumps = new AtomicLong (0);
+  private final AtomicLong m_aLastLagNanos = new AtomicLong (0);
+  private final AtomicLong m_aMaxLagNanos = new AtomicLong (0);
+
+  /**
+   * Constructor using the default settings.
+   */
+  public AS4AsyncDumpWriter ()
+  {
+    this (DEFAULT_CAPACITY, DEFAULT_CHUNK_SIZE, DEFAULT_OVERFLOW_POLICY);
+  }
+
+  /**
+   * Constructor. Starts the writer thread.
+   *
+   * @param nCapacity
+   *        The maximum number of chunks that can be buffered. Must be &gt; 0.
+   * @param nChunkSize
+   *        The size of a single chunk in bytes. Must be &gt; 0. The maximum
+   *        memory used for buffering is capacity * chunk size.
+   * @param eOverflowPolicy
+   *        What to do if the buffer is full. May not be <code>null</code>.
+   */
+  public AS4AsyncDumpWriter (@Nonnegative final int nCapacity,
+                             @Nonnegative final int nChunkSize,
+                             @Nonnull final EAS4DumpOverflowPolicy eOverflowPolicy)
+  {
+    ValueEnforcer.isGT0 (nCapacity, "Capacity");
+    ValueEnforcer.isGT0 (nChunkSize, "ChunkSize");
+    ValueEnforcer.notNull (eOverflowPolicy, "OverflowPolicy");
+    m_nChunkSize = nChunkSize;
+    m_eOverflowPolicy = eOverflowPolicy;
+    m_aQueue = new ArrayBlockingQueue <> (nCapacity);
+    m_aThread = new Thread (this::_run, "phase4-dump-writer-" + THREAD_INDEX.incrementAndGet ());
+    m_aThread.setDaemon (true);
+    m_aThread.start ();
+  }
+
+  private void _process (@Nonnull final AbstractItem aItem)
+  {
+    final long nLagNanos = System.nanoTime () - aItem.m_nEnqueuedNanos;
+    m_aLastLagNanos.set (nLagNanos);
+    m_aMaxLagNanos.accumulateAndGet (nLagNanos, Math::max);
+    aItem.process ();
+  }
+
+  private void _run ()
+  {
+    try
+    {
+      while (true)
+      {
+        final AbstractItem aItem = m_aQueue.take ();
+        if (aItem instanceof StopItem)
+          break;
+        _process (aItem);
+      }
+    }
+    catch (final InterruptedException ex)
+    {
+      LOGGER.warn ("Asynchronous dump writer was interrupted");
+      Thread.currentThread ().interrupt ();
+    }
+    finally
+    {
+      // Producers check this flag after enqueueing, so every element is
+      // drained either here or by the producer
+      m_aTerminated.set (true);
+      _drainRemaining ();
+    }
+  }
+
+  private void _drainRemaining ()
+  {
+    m_aDrainLock.lock ();
+    try
+    {
+      // Write everything that is left
+      AbstractItem aItem;
+      while ((aItem = m_aQueue.poll ()) != null)
+        if (!(aItem instanceof StopItem))
+          _process (aItem);
+    }
+    finally
+    {
+      m_aDrainLock.unlock ();
+    }
+  }
+
+  private boolean _isWriterAlive ()
+  {
+    return !m_aTerminated.get () && m_aThread.isAlive ();
+  }
+
+  /**
+   * Hand over an item to the writer thread. If the writer thread is no longer
+   * alive, the item is processed in the calling thread, after everything that
+   * is still buffered. No monitor is held while waiting.
+   *
+   * @param aItem
+   *        The item to hand over. May not be <code>null</code>.
+   * @param bWait
+   *        <code>true</code> to wait for space in the buffer,
+   *        <code>false</code> to fail if the buffer is full.
+   * @return <code>true</code> if the item was handed over or processed,
+   *         <code>false</code> if the buffer was full and waiting was not
+   *         desired.
+   * @throws InterruptedException
+   *         If interrupted while waiting
+   */
+  private boolean _handOverItem (@Nonnull final AbstractItem aItem, final boolean bWait) throws InterruptedException
+  {
+    while (_isWriterAlive ())
+    {
+      final boolean bEnqueued = bWait ? m_aQueue.offer (aItem, 100, TimeUnit.MILLISECONDS) : m_aQueue.offer (aItem);
+      if (bEnqueued)
+      {
+        // The writer thread may have drained the buffer just before
+        if (m_aTerminated.get ())
+          _drainRemaining ();
+        return true;
+      }
+      if (!bWait)
+        return false;
+    }
+
+    // Writer thread is gone - run inline and keep the order
+    m_aDrainLock.lock ();
+    try
+    {
+      _drainRemaining ();
+      if (!(aItem instanceof StopItem))
+        _process (aItem);
+    }
+    finally
+    {
+      m_aDrainLock.unlock ();
+    }
+    return true;
+  }
+
+  /**
+   * @return <code>true</code> if the item was enqueued, <code>false</code> if
+   *         it was dropped
+   */
+  private boolean _enqueueData (@Nonnull final DataItem aItem) throws IOException
+  {
+    if (m_aClosed.get ())
+      return false;
+
+    m_aQueuedBytes.addAndGet (aItem.m_nLength);
+    boolean bEnqueued;
+    try
+    {
+      bEnqueued = _handOverItem (aItem, m_eOverflowPolicy.isBlock ());
+    }
+    catch (final InterruptedException ex)
+    {
+      m_aQueuedBytes.addAndGet (-aItem.m_nLength);
+      Thread.currentThread ().interrupt ();
+      throw new InterruptedIOException ("Interrupted while waiting for the dump buffer");
+    }
+
+    if (!bEnqueued)
+      m_aQueuedBytes.addAndGet (-aItem.m_nLength);
+    return bEnqueued;
+  }
+
+  private void _enqueueControl (@Nonnull final AbstractItem aItem) throws IOException
+  {
+    // Control items are never dropped, as they release resources
+    try
+    {
+      _handOverItem (aItem, true);
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+      throw new InterruptedIOException ("Interrupted while waiting for the dump buffer");
+    }
+  }
+
+  /**
+   * @return The overflow policy as provided in the constructor. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final EAS4DumpOverflowPolicy getOverflowPolicy ()
+  {
+    return m_eOverflowPolicy;
+  }
+
+  /**
+   * Create a new asynchronous dump stream. The real target stream is opened in
+   * the writer thread when the first data is written or when the stream is
+   * closed.
+   *
+   * @param aTargetOpener
+   *        The supplier for the real target stream. Is invoked in the writer
+   *        thread. May return <code>null</code> to indicate that nothing should
+   *        be dumped. May not be <code>null</code>.
+   * @return A new output stream. Never <code>null</code>. The caller is
+   *         responsible for closing it.
+   */
+  @Nonnull
+  public DumpOutputStream createOutputStream (@Nonnull final IThrowingSupplier <? extends OutputStream, IOException> aTargetOpener)
+  {
+    ValueEnforcer.notNull (aTargetOpener, "TargetOpener");
+    return new DumpOutputStream (aTargetOpener);
+  }
+
+  /**
+   * Run the provided task in the writer thread, after all data handed over
+   * before was processed.
+   *
+   * @param aTask
+   *        The task to run. May not be <code>null</code>.
+   * @throws IOException
+   *         If interrupted while waiting for space in the buffer
+   */
+  public void runAfter (@Nonnull final Runnable aTask) throws IOException
+  {
+    ValueEnforcer.notNull (aTask, "Task");
+    _enqueueControl (new TaskItem (aTask));
+  }
+
+  /**
+   * Wait until all data handed over before this call was written.
+   *
+   * @param aTimeout
+   *        The maximum time to wait. May not be <code>null</code>.
+   * @return <code>true</code> if everything was written, <code>false</code>
+   *         if the timeout elapsed.
+   * @throws IOException
+   *         If interrupted
+   */
+  public boolean waitUntilWritten (@Nonnull final Duration aTimeout) throws IOException
+  {
+    ValueEnforcer.notNull (aTimeout, "Timeout");
+    final CountDownLatch aLatch = new CountDownLatch (1);
+    runAfter (aLatch::countDown);
+    try
+    {
+      return aLatch.await (aTimeout.toMillis (), TimeUnit.MILLISECONDS);
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+      throw new InterruptedIOException ("Interrupted while waiting for the dump writer");
+    }
+  }
+
+  /**
+   * @return The number of bytes that were handed over but not yet written.
+   */
+  @Nonnegative
+  public long getQueuedBytes ()
+  {
+    return m_aQueuedBytes.get ();
+  }
+
+  /**
+   * @return The number of bytes that were written to the real targets.
+   */
+  @Nonnegative
+  public long getWrittenBytes ()
+  {
+    return m_aWrittenBytes.get ();
+  }
+
+  /**
+   * @return The number of bytes that were dropped, because the buffer was full.
+   *         Always 0 for {@link EAS4DumpOverflowPolicy#BLOCK}.
+   */
+  @Nonnegative
+  public long getDroppedBytes ()
+  {
+    return m_aDroppedBytes.get ();
+  }
+
+  /**
+   * @return The number of dumps that were truncated, because the buffer was
+   *         full. Always 0 for {@link EAS4DumpOverflowPolicy#BLOCK}.
+   */
+  @Nonnegative
+  public long getDroppedDumpCount ()
+  {
+    return m_aDroppedDumps.get ();
+  }
+
+  /**
+   * @return The time between handing over and processing of the most recently
+   *         processed buffer element.
+   */
+  @Nonnull
+  public Duration getLastLag ()
+  {
+    return Duration.ofNanos (m_aLastLagNanos.get ());
+  }
+
+  /**
+   * @return The maximum time between handing over and processing of a buffer
+   *         element, since this writer was created.
+   */
+  @Nonnull
+  public Duration getMaxLag ()
+  {
+    return Duration.ofNanos (m_aMaxLagNanos.get ());
+  }
+
+  /**
+   * @return The number of elements currently in the buffer.
+   */
+  @Nonnegative
+  public int getBufferedElementCount ()
+  {
+    return m_aQueue.size ();
+  }
+
+  /**
+   * @return <code>true</code> if this writer was closed.
+   */
+  public boolean isClosed ()
+  {
+    return m_aClosed.get ();
+  }
+
+  /**
+   * Stop accepting new data, write all buffered data and stop the writer
+   * thread.
+   */
+  public void close ()
+  {
+    if (m_aClosed.getAndSet (true))
+      return;
+
+    try
+    {
+      _handOverItem (new StopItem (), true);
+      m_aThread.join ();
+    }
+    catch (final InterruptedException ex)
+    {
+      LOGGER.warn ("Interrupted while stopping the asynchronous dump writer");
+      Thread.currentThread ().interrupt ();
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("ChunkSize", m_nChunkSize)
+                                       .append ("OverflowPolicy", m_eOverflowPolicy)
+                                       .append ("QueuedBytes", m_aQueuedBytes.get ())
+                                       .append ("WrittenBytes", m_aWrittenBytes.get ())
+                                       .append ("DroppedBytes", m_aDroppedBytes.get ())
+                                       .getToString ();
+  }
+}
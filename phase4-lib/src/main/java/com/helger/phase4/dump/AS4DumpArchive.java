@@ -0,0 +1,947 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dump;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.WillNotClose;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.file.FileOperations;
+import com.helger.commons.io.stream.CountingInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.NonClosingOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.StringParser;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.phase4.attachment.EAS4CompressionMode;
+import com.helger.phase4.messaging.EAS4MessageMode;
+import com.helger.phase4.util.AS4RecordBuffer;
+import com.helger.phase4.util.AS4RecordSegment;
+
+/**
+ * An append-only archive for message dumps. Instead of creating one file per
+ * message, all dumps are appended to rolling segment files, that are bounded
+ * by size and age. Each record is framed with length and checksum (see
+ * {@link AS4RecordSegment}) and the dumped content of each record is
+ * optionally compressed on its own. For every segment a sidecar index file is
+ * written, with one {@link AS4DumpArchiveEntry} line per record. The ebMS
+ * message ID, reference message ID and conversation ID are taken from the
+ * SOAP header at the beginning of each dump, and are part of the index. If an
+ * {@link AS4DumpArchiveIndex} is set, all new records are also added to
+ * it.<br>
+ * A new segment is started whenever the archive is opened, so existing
+ * segments are never modified.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@ThreadSafe
+public class AS4DumpArchive implements AutoCloseable
+{
+  /** The default maximum size of a segment in bytes */
+  public static final long DEFAULT_MAX_SEGMENT_BYTES = 256L * CGlobal.BYTES_PER_MEGABYTE;
+  /** The default maximum age of a segment */
+  public static final Duration DEFAULT_MAX_SEGMENT_AGE = Duration.ofDays (1);
+  /** The default compression mode of the records */
+  public static final EAS4CompressionMode DEFAULT_COMPRESSION_MODE = EAS4CompressionMode.GZIP;
+
+  /** The file name prefix of segment files */
+  public static final String SEGMENT_FILE_PREFIX = "dump-";
+  /** The file extension of segment files */
+  public static final String SEGMENT_FILE_EXTENSION = ".as4dump";
+  /** The file extension of the index files, appended to the segment name */
+  public static final String INDEX_FILE_EXTENSION = ".idx";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4DumpArchive.class);
+  private static final byte RECORD_VERSION = 1;
+  private static final int SEGMENT_INDEX_DIGITS = 12;
+  // The ebMS header is expected to be at the beginning of the dump
+  private static final int EBMS_HEADER_SCAN_BYTES = 64 * CGlobal.BYTES_PER_KILOBYTE;
+  private static final Pattern PATTERN_MESSAGE_ID = _createElementPattern ("MessageId");
+  private static final Pattern PATTERN_REF_TO_MESSAGE_ID = _createElementPattern ("RefToMessageId");
+  private static final Pattern PATTERN_CONVERSATION_ID = _createElementPattern ("ConversationId");
+
+  @Nonnull
+  private static Pattern _createElementPattern (@Nonnull final String sLocalName)
+  {
+    // Any namespace prefix, no self-closing element
+    return Pattern.compile ("<(?:[A-Za-z_][\\w.-]*:)?" + sLocalName + "(?:\\s[^>]*)?(?<!/)>([^<]*)<");
+  }
+
+  @Nullable
+  private static String _findElementText (@Nonnull final String sContent, @Nonnull final Pattern aPattern)
+  {
+    final Matcher aMatcher = aPattern.matcher (sContent);
+    if (!aMatcher.find ())
+      return null;
+    final String ret = aMatcher.group (1).trim ();
+    if (ret.isEmpty ())
+      return null;
+    // Resolve the predefined XML entities
+    return ret.replace ("&lt;", "<")
+              .replace ("&gt;", ">")
+              .replace ("&quot;", "\"")
+              .replace ("&apos;", "'")
+              .replace ("&amp;", "&");
+  }
+
+  /**
+   * The decoded content of a single record.
+   *
+   * @author Philip Helger
+   */
+  public static final class Record
+  {
+    private final EAS4DumpDirection m_eDirection;
+    private final EAS4MessageMode m_eMessageMode;
+    private final String m_sID;
+    private final int m_nTry;
+    private final Instant m_aTimestamp;
+    private final String m_sRemoteAddr;
+    private final String m_sMessageID;
+    private final String m_sRefToMessageID;
+    private final String m_sConversationID;
+    private final EAS4CompressionMode m_eCompressionMode;
+    private final long m_nContentLength;
+    private final File m_aSegmentFile;
+    private final long m_nPayloadOffset;
+    private final int m_nPayloadLength;
+    private final int m_nHeaderLength;
+
+    Record (@Nonnull final EAS4DumpDirection eDirection,
+            @Nonnull final EAS4MessageMode eMessageMode,
+            @Nonnull final String sID,
+            final int nTry,
+            @Nonnull final Instant aTimestamp,
+            @Nullable final String sRemoteAddr,
+            @Nullable final String sMessageID,
+            @Nullable final String sRefToMessageID,
+            @Nullable final String sConversationID,
+            @Nullable final EAS4CompressionMode eCompressionMode,
+            final long nContentLength,
+            @Nonnull final File aSegmentFile,
+            final long nPayloadOffset,
+            final int nPayloadLength,
+            final int nHeaderLength)
+    {
+      m_eDirection = eDirection;
+      m_eMessageMode = eMessageMode;
+      m_sID = sID;
+      m_nTry = nTry;
+      m_aTimestamp = aTimestamp;
+      m_sRemoteAddr = sRemoteAddr;
+      m_sMessageID = sMessageID;
+      m_sRefToMessageID = sRefToMessageID;
+      m_sConversationID = sConversationID;
+      m_eCompressionMode = eCompressionMode;
+      m_nContentLength = nContentLength;
+      m_aSegmentFile = aSegmentFile;
+      m_nPayloadOffset = nPayloadOffset;
+      m_nPayloadLength = nPayloadLength;
+      m_nHeaderLength = nHeaderLength;
+    }
+
+    @Nonnull
+    public EAS4DumpDirection getDirection ()
+    {
+      return m_eDirection;
+    }
+
+    @Nonnull
+    public EAS4MessageMode getMessageMode ()
+    {
+      return m_eMessageMode;
+    }
+
+    @Nonnull
+    public String getID ()
+    {
+      return m_sID;
+    }
+
+    public int getTry ()
+    {
+      return m_nTry;
+    }
+
+    @Nonnull
+    public Instant getTimestamp ()
+    {
+      return m_aTimestamp;
+    }
+
+    @Nullable
+    public String getRemoteAddr ()
+    {
+      return m_sRemoteAddr;
+    }
+
+    @Nullable
+    public String getMessageID ()
+    {
+      return m_sMessageID;
+    }
+
+    @Nullable
+    public String getRefToMessageID ()
+    {
+      return m_sRefToMessageID;
+    }
+
+    @Nullable
+    public String getConversationID ()
+    {
+      return m_sConversationID;
+    }
+
+    @Nullable
+    public EAS4CompressionMode getCompressionMode ()
+    {
+      return m_eCompressionMode;
+    }
+
+    /**
+     * @return The number of bytes of the uncompressed dump content.
+     */
+    public long getContentLength ()
+    {
+      return m_nContentLength;
+    }
+
+    /**
+     * @return A new input stream with the uncompressed dump content, exactly
+     *         as it was written by the dumper. Never <code>null</code>. The
+     *         content is streamed from the segment file and the record
+     *         checksum is verified when the end of the record is reached. The
+     *         caller is responsible for closing it.
+     * @throws IOException
+     *         In case of a read error, if decompression fails or if the
+     *         record checksum does not match
+     */
+    @Nonnull
+    public InputStream getContentInputStream () throws IOException
+    {
+      final InputStream aIS = AS4RecordSegment.openRecordStream (m_aSegmentFile, m_nPayloadOffset, m_nPayloadLength);
+      try
+      {
+        // Skipping reads through the checksum calculation
+        StreamHelper.skipFully (aIS, m_nHeaderLength);
+        return m_eCompressionMode == null ? aIS : m_eCompressionMode.getDecompressStream (aIS);
+      }
+      catch (final IOException | RuntimeException ex)
+      {
+        StreamHelper.close (aIS);
+        throw ex;
+      }
+    }
+
+    /**
+     * @return The uncompressed dump content. Never <code>null</code>.
+     * @throws IOException
+     *         In case of a read error, if decompression fails or if the
+     *         record checksum does not match
+     */
+    @Nonnull
+    public byte [] getContentBytes () throws IOException
+    {
+      try (final InputStream aIS = getContentInputStream ();
+           final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+      {
+        // Don't use StreamHelper, as it swallows the checksum exception
+        final byte [] aBuf = new byte [16 * 1024];
+        int nRead;
+        while ((nRead = aIS.read (aBuf)) >= 0)
+          aBAOS.write (aBuf, 0, nRead);
+        return aBAOS.toByteArray ();
+      }
+    }
+
+    @Override
+    public String toString ()
+    {
+      return new ToStringGenerator (null).append ("Direction", m_eDirection)
+                                         .append ("MessageMode", m_eMessageMode)
+                                         .append ("ID", m_sID)
+                                         .append ("Try", m_nTry)
+                                         .append ("Timestamp", m_aTimestamp)
+                                         .appendIfNotNull ("RemoteAddr", m_sRemoteAddr)
+                                         .appendIfNotNull ("MessageID", m_sMessageID)
+                                         .appendIfNotNull ("RefToMessageID", m_sRefToMessageID)
+                                         .appendIfNotNull ("ConversationID", m_sConversationID)
+                                         .append ("CompressionMode", m_eCompressionMode)
+                                         .append ("ContentLength", m_nContentLength)
+                                         .getToString ();
+    }
+  }
+
+  /**
+   * Collects the content of a single dump and appends it to the archive on
+   * close. The (compressed) content is kept in memory only up to
+   * {@link AS4RecordBuffer#DEFAULT_MAX_IN_MEMORY_BYTES} and spilled to a
+   * temporary file afterwards.
+   *
+   * @author Philip Helger
+   */
+  @NotThreadSafe
+  private final class RecordOutputStream extends OutputStream
+  {
+    private final EAS4DumpDirection m_eDirection;
+    private final EAS4MessageMode m_eMessageMode;
+    private final String m_sID;
+    private final int m_nTry;
+    private final Instant m_aTimestamp;
+    private final String m_sRemoteAddr;
+    // Uncompressed copy of the beginning to find the ebMS header
+    private final NonBlockingByteArrayOutputStream m_aHeader = new NonBlockingByteArrayOutputStream ();
+    private final AS4RecordBuffer m_aStored = new AS4RecordBuffer ();
+    private final OutputStream m_aOS;
+    private long m_nContentLength = 0;
+    private boolean m_bClosed = false;
+
+    RecordOutputStream (@Nonnull final EAS4DumpDirection eDirection,
+                        @Nonnull final EAS4MessageMode eMessageMode,
+                        @Nonnull final String sID,
+                        final int nTry,
+                        @Nonnull final Instant aTimestamp,
+                        @Nullable final String sRemoteAddr) throws IOException
+    {
+      m_eDirection = eDirection;
+      m_eMessageMode = eMessageMode;
+      m_sID = sID;
+      m_nTry = nTry;
+      m_aTimestamp = aTimestamp;
+      m_sRemoteAddr = sRemoteAddr;
+      // Closing the compression stream must not discard the collected data
+      m_aOS = m_eCompressionMode == null ? m_aStored
+                                         : m_eCompressionMode.getCompressStream (new NonClosingOutputStream (m_aStored));
+    }
+
+    @Override
+    public void write (final int b) throws IOException
+    {
+      m_aOS.write (b);
+      if (m_aHeader.size () < EBMS_HEADER_SCAN_BYTES)
+        m_aHeader.write (b);
+      m_nContentLength++;
+    }
+
+    @Override
+    public void write (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+    {
+      m_aOS.write (aBuf, nOfs, nLen);
+      final int nHeaderLen = Math.min (nLen, EBMS_HEADER_SCAN_BYTES - m_aHeader.size ());
+      if (nHeaderLen > 0)
+        m_aHeader.write (aBuf, nOfs, nHeaderLen);
+      m_nContentLength += nLen;
+    }
+
+    @Override
+    public void close () throws IOException
+    {
+      if (!m_bClosed)
+      {
+        m_bClosed = true;
+        try
+        {
+          // Finishes the compression
+          if (m_aOS != m_aStored)
+            m_aOS.close ();
+          final String sHeader = m_aHeader.getAsString (StandardCharsets.UTF_8);
+          _appendRecord (m_eDirection,
+                         m_eMessageMode,
+                         m_sID,
+                         m_nTry,
+                         m_aTimestamp,
+                         m_sRemoteAddr,
+                         _findElementText (sHeader, PATTERN_MESSAGE_ID),
+                         _findElementText (sHeader, PATTERN_REF_TO_MESSAGE_ID),
+                         _findElementText (sHeader, PATTERN_CONVERSATION_ID),
+                         m_nContentLength,
+                         m_aStored);
+        }
+        finally
+        {
+          // Deletes the temporary file, if any
+          m_aStored.close ();
+        }
+      }
+    }
+  }
+
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  private final File m_aBaseDir;
+  private final long m_nMaxSegmentBytes;
+  private final Duration m_aMaxSegmentAge;
+  private final EAS4CompressionMode m_eCompressionMode;
+
+  @GuardedBy ("m_aRWLock")
+  private AS4DumpArchiveIndex m_aIndex;
+  @GuardedBy ("m_aRWLock")
+  private long m_nNextSegmentIndex = -1;
+  @GuardedBy ("m_aRWLock")
+  private AS4RecordSegment m_aSegment;
+  @GuardedBy ("m_aRWLock")
+  private Instant m_aSegmentCreation;
+  @GuardedBy ("m_aRWLock")
+  private Writer m_aIndexWriter;
+  @GuardedBy ("m_aRWLock")
+  private long m_nRecordCount = 0;
+  @GuardedBy ("m_aRWLock")
+  private long m_nSegmentCount = 0;
+  @GuardedBy ("m_aRWLock")
+  private boolean m_bClosed = false;
+
+  /**
+   * Constructor using the default segment limits and compression.
+   *
+   * @param aBaseDir
+   *        The directory that contains the segment and index files. May not be
+   *        <code>null</code>. Is created if it does not exist.
+   */
+  public AS4DumpArchive (@Nonnull final File aBaseDir)
+  {
+    this (aBaseDir, DEFAULT_MAX_SEGMENT_BYTES, DEFAULT_MAX_SEGMENT_AGE, DEFAULT_COMPRESSION_MODE);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aBaseDir
+   *        The directory that contains the segment and index files. May not be
+   *        <code>null</code>. Is created if it does not exist.
+   * @param nMaxSegmentBytes
+   *        The size in bytes after which a new segment is started. Must be
+   *        &gt; 0.
+   * @param aMaxSegmentAge
+   *        The age after which a new segment is started. May not be
+   *        <code>null</code>.
+   * @param eCompressionMode
+   *        The compression to use for the content of each record. May be
+   *        <code>null</code> to store the content uncompressed.
+   */
+  public AS4DumpArchive (@Nonnull final File aBaseDir,
+                         @Nonnegative final long nMaxSegmentBytes,
+                         @Nonnull final Duration aMaxSegmentAge,
+                         @Nullable final EAS4CompressionMode eCompressionMode)
+  {
+    ValueEnforcer.notNull (aBaseDir, "BaseDir");
+    ValueEnforcer.isGT0 (nMaxSegmentBytes, "MaxSegmentBytes");
+    ValueEnforcer.notNull (aMaxSegmentAge, "MaxSegmentAge");
+    ValueEnforcer.isFalse (aMaxSegmentAge.isNegative () || aMaxSegmentAge.isZero (), "MaxSegmentAge must be positive");
+    m_aBaseDir = aBaseDir;
+    m_nMaxSegmentBytes = nMaxSegmentBytes;
+    m_aMaxSegmentAge = aMaxSegmentAge;
+    m_eCompressionMode = eCompressionMode;
+  }
+
+  /**
+   * @return The directory containing the segments. Never <code>null</code>.
+   */
+  @Nonnull
+  public final File getBaseDir ()
+  {
+    return m_aBaseDir;
+  }
+
+  /**
+   * @return The compression mode of new records. May be <code>null</code>.
+   */
+  @Nullable
+  public final EAS4CompressionMode getCompressionMode ()
+  {
+    return m_eCompressionMode;
+  }
+
+  /**
+   * @return The index that new records are added to. May be
+   *         <code>null</code>.
+   */
+  @Nullable
+  public AS4DumpArchiveIndex getIndex ()
+  {
+    return m_aRWLock.readLockedGet ( () -> m_aIndex);
+  }
+
+  /**
+   * Set the index that all new records should be added to. To include the
+   * existing records as well, use {@link AS4DumpArchiveIndex#load(File)} on
+   * the base directory before any record is appended.
+   *
+   * @param aIndex
+   *        The index to use. May be <code>null</code>.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4DumpArchive setIndex (@Nullable final AS4DumpArchiveIndex aIndex)
+  {
+    m_aRWLock.writeLocked ( () -> m_aIndex = aIndex);
+    return this;
+  }
+
+  /**
+   * @return The number of records appended since this archive was created.
+   */
+  @Nonnegative
+  public long getRecordCount ()
+  {
+    return m_aRWLock.readLockedLong ( () -> m_nRecordCount);
+  }
+
+  /**
+   * @return The number of segments started since this archive was created.
+   */
+  @Nonnegative
+  public long getSegmentCount ()
+  {
+    return m_aRWLock.readLockedLong ( () -> m_nSegmentCount);
+  }
+
+  /**
+   * @return The segment file currently written to, or <code>null</code> if no
+   *         record was appended yet.
+   */
+  @Nullable
+  public File getCurrentSegmentFile ()
+  {
+    return m_aRWLock.readLockedGet ( () -> m_aSegment == null ? null : m_aSegment.getFile ());
+  }
+
+  /**
+   * Get the segment file name for the provided index.
+   *
+   * @param nSegmentIndex
+   *        The segment index. Must be &ge; 0.
+   * @return The file name. Never <code>null</code>.
+   */
+  @Nonnull
+  @Nonempty
+  public static String getSegmentFilename (@Nonnegative final long nSegmentIndex)
+  {
+    return SEGMENT_FILE_PREFIX + StringHelper.getLeadingZero (nSegmentIndex, SEGMENT_INDEX_DIGITS) + SEGMENT_FILE_EXTENSION;
+  }
+
+  /**
+   * Get the index of a segment from its file name.
+   *
+   * @param sFilename
+   *        The file name to parse. May be <code>null</code>.
+   * @return -1 if the file name is not a segment file name.
+   */
+  public static long getSegmentIndex (@Nullable final String sFilename)
+  {
+    if (sFilename == null ||
+        !sFilename.startsWith (SEGMENT_FILE_PREFIX) ||
+        !sFilename.endsWith (SEGMENT_FILE_EXTENSION))
+      return -1;
+    return StringParser.parseLong (sFilename.substring (SEGMENT_FILE_PREFIX.length (),
+                                                        sFilename.length () - SEGMENT_FILE_EXTENSION.length ()),
+                                   -1);
+  }
+
+  /**
+   * Get the sidecar index file of a segment.
+   *
+   * @param aSegmentFile
+   *        The segment file. May not be <code>null</code>.
+   * @return The index file. Never <code>null</code>.
+   */
+  @Nonnull
+  public static File getIndexFile (@Nonnull final File aSegmentFile)
+  {
+    return new File (aSegmentFile.getParentFile (), aSegmentFile.getName () + INDEX_FILE_EXTENSION);
+  }
+
+  @GuardedBy ("m_aRWLock")
+  private void _closeSegment () throws IOException
+  {
+    try
+    {
+      if (m_aIndexWriter != null)
+        m_aIndexWriter.close ();
+    }
+    finally
+    {
+      m_aIndexWriter = null;
+      if (m_aSegment != null)
+      {
+        m_aSegment.close ();
+        m_aSegment = null;
+      }
+    }
+  }
+
+  @GuardedBy ("m_aRWLock")
+  private void _startNewSegment (@Nonnull final Instant aNow) throws IOException
+  {
+    _closeSegment ();
+
+    if (m_nNextSegmentIndex < 0)
+    {
+      // Continue after the highest existing segment
+      FileOperations.createDirRecursiveIfNotExisting (m_aBaseDir);
+      long nMax = -1;
+      final File [] aFiles = m_aBaseDir.listFiles ();
+      if (aFiles != null)
+        for (final File aFile : aFiles)
+          nMax = Math.max (nMax, getSegmentIndex (aFile.getName ()));
+      m_nNextSegmentIndex = nMax + 1;
+    }
+
+    final File aSegmentFile = new File (m_aBaseDir, getSegmentFilename (m_nNextSegmentIndex));
+    final AS4RecordSegment aSegment = new AS4RecordSegment (m_nNextSegmentIndex, aSegmentFile);
+    aSegment.open ( (nPayloadOffset, nPayloadLength, aPayloadIS) -> {
+      // A new segment is empty
+    });
+    final Writer aIndexWriter = FileHelper.getBufferedWriter (getIndexFile (aSegmentFile), StandardCharsets.UTF_8);
+    if (aIndexWriter == null)
+    {
+      aSegment.close ();
+      throw new IOException ("Failed to open the index of dump archive segment '" + aSegmentFile.getAbsolutePath () + "'");
+    }
+
+    m_nNextSegmentIndex++;
+    m_aSegment = aSegment;
+    m_aSegmentCreation = aNow;
+    m_aIndexWriter = aIndexWriter;
+    m_nSegmentCount++;
+    LOGGER.info ("Started dump archive segment '" + aSegmentFile.getAbsolutePath () + "'");
+  }
+
+  @Nonnull
+  private AS4DumpArchiveEntry _appendRecord (@Nonnull final EAS4DumpDirection eDirection,
+                                             @Nonnull final EAS4MessageMode eMessageMode,
+                                             @Nonnull final String sID,
+                                             final int nTry,
+                                             @Nonnull final Instant aTimestamp,
+                                             @Nullable final String sRemoteAddr,
+                                             @Nullable final String sMessageID,
+                                             @Nullable final String sRefToMessageID,
+                                             @Nullable final String sConversationID,
+                                             final long nContentLength,
+                                             @Nonnull final AS4RecordBuffer aStoredContent) throws IOException
+  {
+    // Build the record header outside of the lock
+    final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream (256);
+    try (final DataOutputStream aDOS = new DataOutputStream (aBAOS))
+    {
+      aDOS.writeByte (RECORD_VERSION);
+      aDOS.writeUTF (eDirection.getID ());
+      aDOS.writeUTF (eMessageMode.getID ());
+      aDOS.writeUTF (sID);
+      aDOS.writeInt (nTry);
+      aDOS.writeLong (aTimestamp.toEpochMilli ());
+      aDOS.writeUTF (StringHelper.getNotNull (sRemoteAddr));
+      aDOS.writeUTF (StringHelper.getNotNull (sMessageID));
+      aDOS.writeUTF (StringHelper.getNotNull (sRefToMessageID));
+      aDOS.writeUTF (StringHelper.getNotNull (sConversationID));
+      aDOS.writeUTF (m_eCompressionMode == null ? "" : m_eCompressionMode.getID ());
+      aDOS.writeLong (nContentLength);
+    }
+    final long nPayloadLength = aBAOS.size () + aStoredContent.getLength ();
+
+    return m_aRWLock.writeLockedGetThrowing ( () -> {
+      if (m_bClosed)
+        throw new IOException ("The dump archive is already closed");
+
+      final Instant aNow = Instant.now ();
+      if (m_aSegment == null ||
+          m_aSegment.getSize () >= m_nMaxSegmentBytes ||
+          !aNow.isBefore (m_aSegmentCreation.plus (m_aMaxSegmentAge)))
+        _startNewSegment (aNow);
+
+      // Only copying from memory or a local file happens inside the lock
+      final long nPayloadOffset;
+      try (final InputStream aIS = new SequenceInputStream (new NonBlockingByteArrayInputStream (aBAOS.directGetBuffer (),
+                                                                                                0,
+                                                                                                aBAOS.size ()),
+                                                            aStoredContent.getInputStream ()))
+      {
+        nPayloadOffset = m_aSegment.append (aIS, nPayloadLength, false);
+      }
+      final AS4DumpArchiveEntry ret = new AS4DumpArchiveEntry (m_aSegment.getFile ().getName (),
+                                                               nPayloadOffset,
+                                                               (int) nPayloadLength,
+                                                               aTimestamp,
+                                                               eDirection,
+                                                               eMessageMode,
+                                                               nTry,
+                                                               sMessageID,
+                                                               sRefToMessageID,
+                                                               sConversationID,
+                                                               sRemoteAddr,
+                                                               sID);
+      m_aIndexWriter.write (ret.getAsIndexLine ());
+      m_aIndexWriter.write ('\n');
+      m_aIndexWriter.flush ();
+      m_nRecordCount++;
+      if (m_aIndex != null)
+        m_aIndex.add (ret);
+      return ret;
+    });
+  }
+
+  /**
+   * Create a new output stream for a single dump. The content is collected
+   * (compressed if enabled) in memory or in a temporary file for large dumps,
+   * and appended to the archive as a single record, when the stream is
+   * closed.
+   *
+   * @param eDirection
+   *        The direction of the message. May not be <code>null</code>.
+   * @param eMessageMode
+   *        Request or response. May not be <code>null</code>.
+   * @param sID
+   *        The ID of the message. May neither be <code>null</code> nor empty.
+   * @param nTry
+   *        The index of the sending try. Must be &ge; 0.
+   * @param aTimestamp
+   *        The timestamp of the message. May not be <code>null</code>.
+   * @return A new output stream. Never <code>null</code>. The caller is
+   *         responsible for closing it.
+   * @throws IOException
+   *         In case the compression stream cannot be created
+   */
+  @Nonnull
+  public OutputStream createRecordStream (@Nonnull final EAS4DumpDirection eDirection,
+                                          @Nonnull final EAS4MessageMode eMessageMode,
+                                          @Nonnull @Nonempty final String sID,
+                                          @Nonnegative final int nTry,
+                                          @Nonnull final Instant aTimestamp) throws IOException
+  {
+    return createRecordStream (eDirection, eMessageMode, sID, nTry, aTimestamp, null);
+  }
+
+  /**
+   * Create a new output stream for a single dump. The content is collected
+   * (compressed if enabled) in memory or in a temporary file for large dumps,
+   * and appended to the archive as a single record, when the stream is
+   * closed.
+   *
+   * @param eDirection
+   *        The direction of the message. May not be <code>null</code>.
+   * @param eMessageMode
+   *        Request or response. May not be <code>null</code>.
+   * @param sID
+   *        The ID of the message. May neither be <code>null</code> nor empty.
+   * @param nTry
+   *        The index of the sending try. Must be &ge; 0.
+   * @param aTimestamp
+   *        The timestamp of the message. May not be <code>null</code>.
+   * @param sRemoteAddr
+   *        The remote address of the incoming message. May be
+   *        <code>null</code>.
+   * @return A new output stream. Never <code>null</code>. The caller is
+   *         responsible for closing it.
+   * @throws IOException
+   *         In case the compression stream cannot be created
+   */
+  @Nonnull
+  public OutputStream createRecordStream (@Nonnull final EAS4DumpDirection eDirection,
+                                          @Nonnull final EAS4MessageMode eMessageMode,
+                                          @Nonnull @Nonempty final String sID,
+                                          @Nonnegative final int nTry,
+                                          @Nonnull final Instant aTimestamp,
+                                          @Nullable final String sRemoteAddr) throws IOException
+  {
+    ValueEnforcer.notNull (eDirection, "Direction");
+    ValueEnforcer.notNull (eMessageMode, "MessageMode");
+    ValueEnforcer.notEmpty (sID, "ID");
+    ValueEnforcer.isGE0 (nTry, "Try");
+    ValueEnforcer.notNull (aTimestamp, "Timestamp");
+    return new RecordOutputStream (eDirection, eMessageMode, sID, nTry, aTimestamp, sRemoteAddr);
+  }
+
+  /**
+   * Decode the header of a single record, as stored in a segment. The stored
+   * content is not read but only referenced, so that it can be streamed later
+   * on.
+   */
+  @Nonnull
+  private static Record _decodeRecord (@Nonnull final File aSegmentFile,
+                                       final long nPayloadOffset,
+                                       final int nPayloadLength,
+                                       @Nonnull @WillNotClose final InputStream aPayloadIS) throws IOException
+  {
+    final CountingInputStream aCIS = new CountingInputStream (aPayloadIS);
+    final DataInputStream aDIS = new DataInputStream (aCIS);
+    final byte nVersion = aDIS.readByte ();
+    if (nVersion != RECORD_VERSION)
+      throw new IOException ("Unsupported dump archive record version " + nVersion);
+    final EAS4DumpDirection eDirection = EAS4DumpDirection.getFromIDOrNull (aDIS.readUTF ());
+    final EAS4MessageMode eMessageMode = EAS4MessageMode.getFromIDOrNull (aDIS.readUTF ());
+    final String sID = aDIS.readUTF ();
+    final int nTry = aDIS.readInt ();
+    final Instant aTimestamp = Instant.ofEpochMilli (aDIS.readLong ());
+    final String sRemoteAddr = aDIS.readUTF ();
+    final String sMessageID = aDIS.readUTF ();
+    final String sRefToMessageID = aDIS.readUTF ();
+    final String sConversationID = aDIS.readUTF ();
+    final String sCompressionMode = aDIS.readUTF ();
+    final EAS4CompressionMode eCompressionMode = sCompressionMode.isEmpty () ? null
+                                                                               : EAS4CompressionMode.getFromIDOrNull (sCompressionMode);
+    final long nContentLength = aDIS.readLong ();
+    if (eDirection == null || eMessageMode == null || (!sCompressionMode.isEmpty () && eCompressionMode == null))
+      throw new IOException ("Invalid dump archive record header");
+    return new Record (eDirection,
+                       eMessageMode,
+                       sID,
+                       nTry,
+                       aTimestamp,
+                       StringHelper.hasText (sRemoteAddr) ? sRemoteAddr : null,
+                       StringHelper.hasText (sMessageID) ? sMessageID : null,
+                       StringHelper.hasText (sRefToMessageID) ? sRefToMessageID : null,
+                       StringHelper.hasText (sConversationID) ? sConversationID : null,
+                       eCompressionMode,
+                       nContentLength,
+                       aSegmentFile,
+                       nPayloadOffset,
+                       nPayloadLength,
+                       (int) aCIS.getBytesRead ());
+  }
+
+  /**
+   * Read and decode a single record that is referenced by an index entry.
+   *
+   * @param aBaseDir
+   *        The base directory of the archive. May not be <code>null</code>.
+   * @param aEntry
+   *        The index entry of the record. May not be <code>null</code>.
+   * @return The decoded record. Never <code>null</code>. Only the record
+   *         header is read - the content is streamed from the segment via
+   *         {@link Record#getContentInputStream()}.
+   * @throws IOException
+   *         In case of a read error or if the record header is corrupt
+   */
+  @Nonnull
+  public static Record readRecord (@Nonnull final File aBaseDir, @Nonnull final AS4DumpArchiveEntry aEntry) throws IOException
+  {
+    ValueEnforcer.notNull (aBaseDir, "BaseDir");
+    ValueEnforcer.notNull (aEntry, "Entry");
+    final File aSegmentFile = new File (aBaseDir, aEntry.getSegmentName ());
+    try (final InputStream aIS = AS4RecordSegment.openRecordStream (aSegmentFile,
+                                                                    aEntry.getPayloadOffset (),
+                                                                    aEntry.getPayloadLength ()))
+    {
+      return _decodeRecord (aSegmentFile, aEntry.getPayloadOffset (), aEntry.getPayloadLength (), aIS);
+    }
+  }
+
+  /**
+   * Read all records of a single segment in the order they were written. This
+   * works independent of the index and can e.g. be used to recreate a lost
+   * index.
+   *
+   * @param aSegmentFile
+   *        The segment file to read. May not be <code>null</code>.
+   * @param aConsumer
+   *        The consumer invoked for each valid record with the index entry and
+   *        the record. May not be <code>null</code>.
+   * @throws IOException
+   *         In case of a read error
+   */
+  public static void readSegment (@Nonnull final File aSegmentFile,
+                                  @Nonnull @WillNotClose final IRecordConsumer aConsumer) throws IOException
+  {
+    ValueEnforcer.notNull (aSegmentFile, "SegmentFile");
+    ValueEnforcer.notNull (aConsumer, "Consumer");
+
+    // Read only, so that an incomplete trailing record is not cut off
+    final String sSegmentName = aSegmentFile.getName ();
+    AS4RecordSegment.readAll (aSegmentFile, (nPayloadOffset, nPayloadLength, aPayloadIS) -> {
+      final Record aRecord = _decodeRecord (aSegmentFile, nPayloadOffset, nPayloadLength, aPayloadIS);
+      aConsumer.onRecord (new AS4DumpArchiveEntry (sSegmentName,
+                                                   nPayloadOffset,
+                                                   nPayloadLength,
+                                                   aRecord.getTimestamp (),
+                                                   aRecord.getDirection (),
+                                                   aRecord.getMessageMode (),
+                                                   aRecord.getTry (),
+                                                   aRecord.getMessageID (),
+                                                   aRecord.getRefToMessageID (),
+                                                   aRecord.getConversationID (),
+                                                   aRecord.getRemoteAddr (),
+                                                   aRecord.getID ()),
+                        aRecord);
+    });
+  }
+
+  /**
+   * Callback for {@link AS4DumpArchive#readSegment(File, IRecordConsumer)}.
+   *
+   * @author Philip Helger
+   */
+  @FunctionalInterface
+  public interface IRecordConsumer
+  {
+    void onRecord (@Nonnull AS4DumpArchiveEntry aEntry, @Nonnull Record aRecord) throws IOException;
+  }
+
+  /**
+   * Close the current segment. No more records can be appended afterwards.
+   *
+   * @throws IOException
+   *         In case of an error on closing
+   */
+  public void close () throws IOException
+  {
+    m_aRWLock.writeLockedThrowing ( () -> {
+      if (!m_bClosed)
+      {
+        m_bClosed = true;
+        _closeSegment ();
+      }
+    });
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("BaseDir", m_aBaseDir)
+                                       .append ("MaxSegmentBytes", m_nMaxSegmentBytes)
+                                       .append ("MaxSegmentAge", m_aMaxSegmentAge)
+                                       .append ("CompressionMode", m_eCompressionMode)
+                                       .getToString ();
+  }
+}
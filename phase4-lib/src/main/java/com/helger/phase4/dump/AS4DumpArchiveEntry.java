@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dump;
+
+import java.time.Instant;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.StringParser;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.phase4.messaging.EAS4MessageMode;
+
+/**
+ * A single entry of the sidecar index of an {@link AS4DumpArchive} segment. It
+ * describes where a dumped message is stored inside the segment, together
+ * with the ebMS message IDs found in the dump, so that dumps can be looked up
+ * without scanning the segments (see {@link AS4DumpArchiveIndex}). The index
+ * is a UTF-8 text file with one tab separated line per record.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@Immutable
+public final class AS4DumpArchiveEntry
+{
+  private static final char SEPARATOR = '\t';
+  private static final int FIELD_COUNT = 11;
+
+  private final String m_sSegmentName;
+  private final long m_nPayloadOffset;
+  private final int m_nPayloadLength;
+  private final Instant m_aTimestamp;
+  private final EAS4DumpDirection m_eDirection;
+  private final EAS4MessageMode m_eMessageMode;
+  private final int m_nTry;
+  private final String m_sMessageID;
+  private final String m_sRefToMessageID;
+  private final String m_sConversationID;
+  private final String m_sRemoteAddr;
+  private final String m_sID;
+
+  @Nullable
+  private static String _getCleaned (@Nullable final String s)
+  {
+    // Separator and line breaks would break the index
+    if (StringHelper.hasNoText (s))
+      return null;
+    return s.replace (SEPARATOR, ' ').replace ('\r', ' ').replace ('\n', ' ');
+  }
+
+  public AS4DumpArchiveEntry (@Nonnull @Nonempty final String sSegmentName,
+                              @Nonnegative final long nPayloadOffset,
+                              @Nonnegative final int nPayloadLength,
+                              @Nonnull final Instant aTimestamp,
+                              @Nonnull final EAS4DumpDirection eDirection,
+                              @Nonnull final EAS4MessageMode eMessageMode,
+                              @Nonnegative final int nTry,
+                              @Nullable final String sMessageID,
+                              @Nullable final String sRefToMessageID,
+                              @Nullable final String sConversationID,
+                              @Nullable final String sRemoteAddr,
+                              @Nonnull @Nonempty final String sID)
+  {
+    ValueEnforcer.notEmpty (sSegmentName, "SegmentName");
+    ValueEnforcer.isGE0 (nPayloadOffset, "PayloadOffset");
+    ValueEnforcer.isGT0 (nPayloadLength, "PayloadLength");
+    ValueEnforcer.notNull (aTimestamp, "Timestamp");
+    ValueEnforcer.notNull (eDirection, "Direction");
+    ValueEnforcer.notNull (eMessageMode, "MessageMode");
+    ValueEnforcer.isGE0 (nTry, "Try");
+    ValueEnforcer.notEmpty (sID, "ID");
+    m_sSegmentName = sSegmentName;
+    m_nPayloadOffset = nPayloadOffset;
+    m_nPayloadLength = nPayloadLength;
+    m_aTimestamp = aTimestamp;
+    m_eDirection = eDirection;
+    m_eMessageMode = eMessageMode;
+    m_nTry = nTry;
+    m_sMessageID = _getCleaned (sMessageID);
+    m_sRefToMessageID = _getCleaned (sRefToMessageID);
+    m_sConversationID = _getCleaned (sConversationID);
+    m_sRemoteAddr = _getCleaned (sRemoteAddr);
+    m_sID = sID.replace ('\r', ' ').replace ('\n', ' ');
+  }
+
+  /**
+   * @return The file name of the segment containing the record. Neither
+   *         <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  public String getSegmentName ()
+  {
+    return m_sSegmentName;
+  }
+
+  /**
+   * @return The offset of the record payload inside the segment.
+   */
+  @Nonnegative
+  public long getPayloadOffset ()
+  {
+    return m_nPayloadOffset;
+  }
+
+  /**
+   * @return The length of the record payload inside the segment.
+   */
+  @Nonnegative
+  public int getPayloadLength ()
+  {
+    return m_nPayloadLength;
+  }
+
+  /**
+   * @return The point in time the message was dumped. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public Instant getTimestamp ()
+  {
+    return m_aTimestamp;
+  }
+
+  /**
+   * @return Whether the message was received or sent. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public EAS4DumpDirection getDirection ()
+  {
+    return m_eDirection;
+  }
+
+  /**
+   * @return Whether the message is a request or a response. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public EAS4MessageMode getMessageMode ()
+  {
+    return m_eMessageMode;
+  }
+
+  /**
+   * @return The index of the sending try. Always 0 for incoming messages.
+   */
+  @Nonnegative
+  public int getTry ()
+  {
+    return m_nTry;
+  }
+
+  /**
+   * @return The ebMS message ID found in the dump. May be <code>null</code>
+   *         if the dump contains no ebMS header (e.g. because it could not be
+   *         read).
+   */
+  @Nullable
+  public String getMessageID ()
+  {
+    return m_sMessageID;
+  }
+
+  /**
+   * @return The ebMS message ID this message refers to. May be
+   *         <code>null</code>.
+   */
+  @Nullable
+  public String getRefToMessageID ()
+  {
+    return m_sRefToMessageID;
+  }
+
+  /**
+   * @return The ebMS conversation ID found in the dump. May be
+   *         <code>null</code>, e.g. for signal messages.
+   */
+  @Nullable
+  public String getConversationID ()
+  {
+    return m_sConversationID;
+  }
+
+  /**
+   * @return The remote address of the incoming message. May be
+   *         <code>null</code>, e.g. for outgoing requests.
+   */
+  @Nullable
+  public String getRemoteAddr ()
+  {
+    return m_sRemoteAddr;
+  }
+
+  /**
+   * @return The ID of the message. For incoming messages this is the incoming
+   *         unique ID, for outgoing messages it is the AS4 message ID. Neither
+   *         <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  /**
+   * @return This entry as a single index line without the trailing line break.
+   *         The segment name is not part of the line.
+   */
+  @Nonnull
+  @Nonempty
+  public String getAsIndexLine ()
+  {
+    // The ID is the last field, so that it may contain the separator
+    return new StringBuilder ().append (m_nPayloadOffset)
+                               .append (SEPARATOR)
+                               .append (m_nPayloadLength)
+                               .append (SEPARATOR)
+                               .append (m_aTimestamp.toEpochMilli ())
+                               .append (SEPARATOR)
+                               .append (m_eDirection.getID ())
+                               .append (SEPARATOR)
+                               .append (m_eMessageMode.getID ())
+                               .append (SEPARATOR)
+                               .append (m_nTry)
+                               .append (SEPARATOR)
+                               .append (StringHelper.getNotNull (m_sMessageID))
+                               .append (SEPARATOR)
+                               .append (StringHelper.getNotNull (m_sRefToMessageID))
+                               .append (SEPARATOR)
+                               .append (StringHelper.getNotNull (m_sConversationID))
+                               .append (SEPARATOR)
+                               .append (StringHelper.getNotNull (m_sRemoteAddr))
+                               .append (SEPARATOR)
+                               .append (m_sID)
+                               .toString ();
+  }
+
+  @Override
+  public boolean equals (final Object o)
+  {
+    if (o == this)
+      return true;
+    if (o == null || !getClass ().equals (o.getClass ()))
+      return false;
+    final AS4DumpArchiveEntry rhs = (AS4DumpArchiveEntry) o;
+    return m_sSegmentName.equals (rhs.m_sSegmentName) && m_nPayloadOffset == rhs.m_nPayloadOffset;
+  }
+
+  @Override
+  public int hashCode ()
+  {
+    return m_sSegmentName.hashCode () * 31 + Long.hashCode (m_nPayloadOffset);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("SegmentName", m_sSegmentName)
+                                       .append ("PayloadOffset", m_nPayloadOffset)
+                                       .append ("PayloadLength", m_nPayloadLength)
+                                       .append ("Timestamp", m_aTimestamp)
+                                       .append ("Direction", m_eDirection)
+                                       .append ("MessageMode", m_eMessageMode)
+                                       .append ("Try", m_nTry)
+                                       .appendIfNotNull ("MessageID", m_sMessageID)
+                                       .appendIfNotNull ("RefToMessageID", m_sRefToMessageID)
+                                       .appendIfNotNull ("ConversationID", m_sConversationID)
+                                       .appendIfNotNull ("RemoteAddr", m_sRemoteAddr)
+                                       .append ("ID", m_sID)
+                                       .getToString ();
+  }
+
+  /**
+   * Parse a single index line.
+   *
+   * @param sSegmentName
+   *        The name of the segment the index belongs to. May neither be
+   *        <code>null</code> nor empty.
+   * @param sLine
+   *        The line to parse. May be <code>null</code>.
+   * @return <code>null</code> if the line cannot be parsed, e.g. because it
+   *         was only partially written.
+   */
+  @Nullable
+  public static AS4DumpArchiveEntry parseIndexLine (@Nonnull @Nonempty final String sSegmentName,
+                                                    @Nullable final String sLine)
+  {
+    if (StringHelper.hasNoText (sLine))
+      return null;
+
+    final String [] aParts = StringHelper.getExplodedArray (SEPARATOR, sLine, FIELD_COUNT);
+    if (aParts.length != FIELD_COUNT)
+      return null;
+
+    final long nPayloadOffset = StringParser.parseLong (aParts[0], -1);
+    final int nPayloadLength = StringParser.parseInt (aParts[1], -1);
+    final long nTimestamp = StringParser.parseLong (aParts[2], -1);
+    final EAS4DumpDirection eDirection = EAS4DumpDirection.getFromIDOrNull (aParts[3]);
+    final EAS4MessageMode eMessageMode = EAS4MessageMode.getFromIDOrNull (aParts[4]);
+    final int nTry = StringParser.parseInt (aParts[5], -1);
+    final String sID = aParts[10];
+    if (nPayloadOffset < 0 ||
+        nPayloadLength <= 0 ||
+        nTimestamp < 0 ||
+        eDirection == null ||
+        eMessageMode == null ||
+        nTry < 0 ||
+        sID.isEmpty ())
+      return null;
+
+    return new AS4DumpArchiveEntry (sSegmentName,
+                                    nPayloadOffset,
+                                    nPayloadLength,
+                                    Instant.ofEpochMilli (nTimestamp),
+                                    eDirection,
+                                    eMessageMode,
+                                    nTry,
+                                    aParts[6],
+                                    aParts[7],
+                                    aParts[8],
+                                    aParts[9],
+                                    sID);
+  }
+}
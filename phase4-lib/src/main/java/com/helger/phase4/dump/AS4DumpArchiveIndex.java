@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dump;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.function.Predicate;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.stream.NonBlockingBufferedReader;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * An in-memory lookup index over the records of an {@link AS4DumpArchive}. It
+ * allows to find dumps by ebMS message ID, reference message ID and
+ * conversation ID as well as by arbitrary criteria like time range or remote
+ * address, without scanning the segments. Use {@link #load(File)} to build the
+ * index from the sidecar index files of an existing archive, and
+ * {@link AS4DumpArchive#setIndex(AS4DumpArchiveIndex)} to keep it up to date
+ * with new records.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@ThreadSafe
+public class AS4DumpArchiveIndex
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4DumpArchiveIndex.class);
+
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  private final File m_aBaseDir;
+  @GuardedBy ("m_aRWLock")
+  private final ICommonsList <AS4DumpArchiveEntry> m_aEntries = new CommonsArrayList <> ();
+  @GuardedBy ("m_aRWLock")
+  private final ICommonsMap <String, ICommonsList <AS4DumpArchiveEntry>> m_aByMessageID = new CommonsHashMap <> ();
+  @GuardedBy ("m_aRWLock")
+  private final ICommonsMap <String, ICommonsList <AS4DumpArchiveEntry>> m_aByRefToMessageID = new CommonsHashMap <> ();
+  @GuardedBy ("m_aRWLock")
+  private final ICommonsMap <String, ICommonsList <AS4DumpArchiveEntry>> m_aByConversationID = new CommonsHashMap <> ();
+
+  /**
+   * Constructor for an empty index.
+   *
+   * @param aBaseDir
+   *        The base directory of the archive the entries belong to. May not be
+   *        <code>null</code>.
+   */
+  public AS4DumpArchiveIndex (@Nonnull final File aBaseDir)
+  {
+    ValueEnforcer.notNull (aBaseDir, "BaseDir");
+    m_aBaseDir = aBaseDir;
+  }
+
+  /**
+   * @return The base directory of the archive as provided in the constructor.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  public final File getBaseDir ()
+  {
+    return m_aBaseDir;
+  }
+
+  private static void _addToMap (@Nonnull final ICommonsMap <String, ICommonsList <AS4DumpArchiveEntry>> aMap,
+                                 @Nullable final String sKey,
+                                 @Nonnull final AS4DumpArchiveEntry aEntry)
+  {
+    if (sKey != null)
+      aMap.computeIfAbsent (sKey, k -> new CommonsArrayList <> (1)).add (aEntry);
+  }
+
+  /**
+   * Add a new entry to the index.
+   *
+   * @param aEntry
+   *        The entry to add. May not be <code>null</code>.
+   */
+  public void add (@Nonnull final AS4DumpArchiveEntry aEntry)
+  {
+    ValueEnforcer.notNull (aEntry, "Entry");
+    m_aRWLock.writeLocked ( () -> {
+      m_aEntries.add (aEntry);
+      _addToMap (m_aByMessageID, aEntry.getMessageID (), aEntry);
+      _addToMap (m_aByRefToMessageID, aEntry.getRefToMessageID (), aEntry);
+      _addToMap (m_aByConversationID, aEntry.getConversationID (), aEntry);
+    });
+  }
+
+  /**
+   * @return The number of indexed records.
+   */
+  @Nonnegative
+  public int getEntryCount ()
+  {
+    return m_aRWLock.readLockedInt (m_aEntries::size);
+  }
+
+  @Nonnull
+  @ReturnsMutableCopy
+  private ICommonsList <AS4DumpArchiveEntry> _getAll (@Nonnull final ICommonsMap <String, ICommonsList <AS4DumpArchiveEntry>> aMap,
+                                                      @Nullable final String sKey)
+  {
+    return m_aRWLock.readLockedGet ( () -> {
+      final ICommonsList <AS4DumpArchiveEntry> ret = sKey == null ? null : aMap.get (sKey);
+      return ret == null ? new CommonsArrayList <> () : ret.getClone ();
+    });
+  }
+
+  /**
+   * Get all dumps of the provided ebMS message ID, in the order they were
+   * written. For outgoing messages there is one entry per try.
+   *
+   * @param sMessageID
+   *        The ebMS message ID to search. May be <code>null</code>.
+   * @return A non-<code>null</code> but maybe empty list.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <AS4DumpArchiveEntry> getAllEntriesOfMessageID (@Nullable final String sMessageID)
+  {
+    return _getAll (m_aByMessageID, sMessageID);
+  }
+
+  /**
+   * Get all dumps referring to the provided ebMS message ID, e.g. the receipts
+   * or errors of a user message.
+   *
+   * @param sRefToMessageID
+   *        The referenced ebMS message ID to search. May be <code>null</code>.
+   * @return A non-<code>null</code> but maybe empty list.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <AS4DumpArchiveEntry> getAllEntriesOfRefToMessageID (@Nullable final String sRefToMessageID)
+  {
+    return _getAll (m_aByRefToMessageID, sRefToMessageID);
+  }
+
+  /**
+   * Get all dumps of the provided ebMS conversation ID.
+   *
+   * @param sConversationID
+   *        The conversation ID to search. May be <code>null</code>.
+   * @return A non-<code>null</code> but maybe empty list.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <AS4DumpArchiveEntry> getAllEntriesOfConversationID (@Nullable final String sConversationID)
+  {
+    return _getAll (m_aByConversationID, sConversationID);
+  }
+
+  /**
+   * Get all dumps matching the provided filter, in the order they were written.
+   *
+   * @param aFilter
+   *        The filter to apply. May not be <code>null</code>.
+   * @return A non-<code>null</code> but maybe empty list.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <AS4DumpArchiveEntry> getAllEntries (@Nonnull final Predicate <? super AS4DumpArchiveEntry> aFilter)
+  {
+    ValueEnforcer.notNull (aFilter, "Filter");
+    return m_aRWLock.readLockedGet ( () -> m_aEntries.getAll (aFilter));
+  }
+
+  /**
+   * Get all dumps with a timestamp in the provided range.
+   *
+   * @param aFrom
+   *        The inclusive start of the range. May not be <code>null</code>.
+   * @param aTo
+   *        The exclusive end of the range. May not be <code>null</code>.
+   * @return A non-<code>null</code> but maybe empty list.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <AS4DumpArchiveEntry> getAllEntriesInRange (@Nonnull final Instant aFrom,
+                                                                  @Nonnull final Instant aTo)
+  {
+    ValueEnforcer.notNull (aFrom, "From");
+    ValueEnforcer.notNull (aTo, "To");
+    return getAllEntries (x -> !x.getTimestamp ().isBefore (aFrom) && x.getTimestamp ().isBefore (aTo));
+  }
+
+  /**
+   * Read and decode the record of the provided entry. This method may be
+   * called concurrently.
+   *
+   * @param aEntry
+   *        The entry to read. May not be <code>null</code>.
+   * @return The decoded record. Never <code>null</code>.
+   * @throws IOException
+   *         In case of a read error or if the record is corrupt
+   */
+  @Nonnull
+  public AS4DumpArchive.Record readRecord (@Nonnull final AS4DumpArchiveEntry aEntry) throws IOException
+  {
+    return AS4DumpArchive.readRecord (m_aBaseDir, aEntry);
+  }
+
+  private void _loadSegment (@Nonnull final File aSegmentFile) throws IOException
+  {
+    final String sSegmentName = aSegmentFile.getName ();
+    final File aIndexFile = AS4DumpArchive.getIndexFile (aSegmentFile);
+    if (aIndexFile.isFile ())
+    {
+      try (final NonBlockingBufferedReader aReader = FileHelper.getBufferedReader (aIndexFile, StandardCharsets.UTF_8))
+      {
+        if (aReader == null)
+          throw new IOException ("Failed to open dump archive index '" + aIndexFile.getAbsolutePath () + "'");
+        String sLine;
+        while ((sLine = aReader.readLine ()) != null)
+        {
+          final AS4DumpArchiveEntry aEntry = AS4DumpArchiveEntry.parseIndexLine (sSegmentName, sLine);
+          if (aEntry != null)
+            add (aEntry);
+          else
+            LOGGER.warn ("Ignoring invalid line in dump archive index '" + aIndexFile.getAbsolutePath () + "'");
+        }
+      }
+    }
+    else
+    {
+      // Fall back to scanning the segment itself
+      LOGGER.warn ("Dump archive index '" + aIndexFile.getAbsolutePath () + "' is missing - scanning the segment");
+      AS4DumpArchive.readSegment (aSegmentFile, (aEntry, aRecord) -> add (aEntry));
+    }
+  }
+
+  /**
+   * Build the index of all existing segments of an archive. The sidecar index
+   * files are used, and only if one is missing the segment itself is scanned.
+   *
+   * @param aBaseDir
+   *        The base directory of the archive. May not be <code>null</code>.
+   * @return The filled index. Never <code>null</code>.
+   * @throws IOException
+   *         In case of a read error
+   */
+  @Nonnull
+  public static AS4DumpArchiveIndex load (@Nonnull final File aBaseDir) throws IOException
+  {
+    final AS4DumpArchiveIndex ret = new AS4DumpArchiveIndex (aBaseDir);
+    final ICommonsList <File> aSegmentFiles = new CommonsArrayList <> ();
+    final File [] aFiles = aBaseDir.listFiles ();
+    if (aFiles != null)
+      for (final File aFile : aFiles)
+        if (aFile.isFile () && AS4DumpArchive.getSegmentIndex (aFile.getName ()) >= 0)
+          aSegmentFiles.add (aFile);
+    aSegmentFiles.getSortedInline ( (x, y) -> Long.compare (AS4DumpArchive.getSegmentIndex (x.getName ()),
+                                                            AS4DumpArchive.getSegmentIndex (y.getName ())));
+
+    for (final File aSegmentFile : aSegmentFiles)
+      ret._loadSegment (aSegmentFile);
+
+    LOGGER.info ("Loaded " +
+                 ret.getEntryCount () +
+                 " dump archive entries from " +
+                 aSegmentFiles.size () +
+                 " segments in '" +
+                 aBaseDir.getAbsolutePath () +
+                 "'");
+    return ret;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("BaseDir", m_aBaseDir)
+                                       .append ("EntryCount", getEntryCount ())
+                                       .getToString ();
+  }
+}
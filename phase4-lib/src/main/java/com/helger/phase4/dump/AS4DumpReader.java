@@ -17,6 +17,7 @@
 package com.helger.phase4.dump;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.function.Consumer;
@@ -25,6 +26,7 @@ import java.util.function.IntConsumer;
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.annotation.WillNotClose;
 
 import org.apache.wss4j.common.ext.WSSecurityException;
 import org.slf4j.Logger;
@@ -32,11 +34,13 @@ import org.slf4j.LoggerFactory;
 import org.w3c.dom.Node;
 
 import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
 import com.helger.commons.collection.impl.CommonsArrayList;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.http.HttpHeaderMap;
 import com.helger.commons.io.IHasInputStream;
 import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
 import com.helger.commons.io.stream.StreamHelper;
 import com.helger.commons.mime.IMimeType;
 import com.helger.commons.mutable.MutableInt;
@@ -201,7 +205,174 @@ public final class AS4DumpReader
 
     LOGGER.info ("Now at byte " + nHttpEnd + " having " + hm.getCount () + " HTTP headers");
 
-    WebScopeManager.onGlobalBegin (MockServletContext.create ());
+    _decryptAS4In (new NonBlockingByteArrayInputStream (aAS4InData, nHttpEnd, aAS4InData.length - nHttpEnd),
+                   hm,
+                   aCF,
+                   aDecryptedConsumer);
+  }
+
+  /**
+   * Read the leading HTTP headers of a dump from a stream. After this method
+   * returns, the stream is positioned directly after the empty line that
+   * terminates the HTTP headers. The stream is read byte by byte, so it should
+   * be buffered.
+   *
+   * @param aIS
+   *        The input stream to read from. May not be <code>null</code>.
+   * @return The read HTTP headers. Never <code>null</code>.
+   * @throws IOException
+   *         In case of a read error
+   * @since 2.1.3
+   */
+  @Nonnull
+  public static HttpHeaderMap readHttpHeaders (@Nonnull @WillNotClose final InputStream aIS) throws IOException
+  {
+    ValueEnforcer.notNull (aIS, "InputStream");
+
+    final HttpHeaderMap ret = new HttpHeaderMap ();
+    final NonBlockingByteArrayOutputStream aLine = new NonBlockingByteArrayOutputStream (256);
+    int b;
+    while ((b = aIS.read ()) >= 0)
+    {
+      if (b == '\n')
+      {
+        final String sLine = aLine.getAsString (StandardCharsets.ISO_8859_1);
+        aLine.reset ();
+        if (sLine.isEmpty ())
+        {
+          // End of HTTP headers
+          break;
+        }
+
+        // Split in name and value
+        final String [] aParts = StringHelper.getExplodedArray (':', sLine, 2);
+        if (aParts.length == 2)
+          ret.addHeader (aParts[0].trim (), aParts[1].trim ());
+      }
+      else
+        if (b != '\r')
+          aLine.write (b);
+    }
+    return ret;
+  }
+
+  /**
+   * Utility method to decrypt a dumped .as4in message from a stream. The dump
+   * is not read into memory as a whole. In contrast to
+   * {@link #decryptAS4In(byte[], IAS4CryptoFactory, Consumer, IDecryptedPayloadConsumer)}
+   * the global web scope is only created, if none is present. So for bulk
+   * processing of many dumps in parallel, the global scope should be created
+   * once upfront.
+   *
+   * @param aAS4InIS
+   *        The input stream with the dumped data, starting with the HTTP
+   *        headers. May not be <code>null</code>. Is not closed by this method.
+   * @param aCF
+   *        The Crypto factory to be used. This crypto factory must use use the
+   *        private key that can be used to decrypt this particular message. May
+   *        not be <code>null</code>.
+   * @param aHttpHeaderConsumer
+   *        An optional HTTP Header map consumer. May be <code>null</code>.
+   * @param aDecryptedConsumer
+   *        The consumer for the decrypted payload. May not be
+   *        <code>null</code>.
+   * @throws WSSecurityException
+   *         In case of error
+   * @throws Phase4Exception
+   *         In case of error
+   * @throws IOException
+   *         In case of error
+   * @throws MessagingException
+   *         In case of error
+   * @since 2.1.3
+   */
+  public static void decryptAS4In (@Nonnull @WillNotClose final InputStream aAS4InIS,
+                                   @Nonnull final IAS4CryptoFactory aCF,
+                                   @Nullable final Consumer <HttpHeaderMap> aHttpHeaderConsumer,
+                                   @Nonnull final IDecryptedPayloadConsumer aDecryptedConsumer) throws WSSecurityException,
+                                                                                                Phase4Exception,
+                                                                                                IOException,
+                                                                                                MessagingException
+  {
+    ValueEnforcer.notNull (aAS4InIS, "AS4InIS");
+
+    final InputStream aBufferedIS = StreamHelper.getBuffered (aAS4InIS);
+    final HttpHeaderMap hm = readHttpHeaders (aBufferedIS);
+
+    // In case somebody cares about the HTTP headers
+    if (aHttpHeaderConsumer != null)
+      aHttpHeaderConsumer.accept (hm);
+
+    _decryptAS4In (aBufferedIS, hm, aCF, aDecryptedConsumer);
+  }
+
+  /**
+   * Find the incoming dump of the provided ebMS message ID in a dump archive
+   * and decrypt it. The dump is streamed from the archive. This method may be
+   * called concurrently - see
+   * {@link #decryptAS4In(InputStream, IAS4CryptoFactory, Consumer, IDecryptedPayloadConsumer)}
+   * for the prerequisites.
+   *
+   * @param aIndex
+   *        The index of the dump archive. May not be <code>null</code>.
+   * @param sMessageID
+   *        The ebMS message ID to search. May neither be <code>null</code> nor
+   *        empty.
+   * @param aCF
+   *        The Crypto factory to be used. May not be <code>null</code>.
+   * @param aHttpHeaderConsumer
+   *        An optional HTTP Header map consumer. May be <code>null</code>.
+   * @param aDecryptedConsumer
+   *        The consumer for the decrypted payload. May not be
+   *        <code>null</code>.
+   * @return <code>false</code> if no incoming dump with the provided message
+   *         ID is contained in the index, <code>true</code> if it was
+   *         processed.
+   * @throws WSSecurityException
+   *         In case of error
+   * @throws Phase4Exception
+   *         In case of error
+   * @throws IOException
+   *         In case of error
+   * @throws MessagingException
+   *         In case of error
+   * @since 2.1.3
+   */
+  public static boolean decryptArchivedAS4In (@Nonnull final AS4DumpArchiveIndex aIndex,
+                                              @Nonnull @Nonempty final String sMessageID,
+                                              @Nonnull final IAS4CryptoFactory aCF,
+                                              @Nullable final Consumer <HttpHeaderMap> aHttpHeaderConsumer,
+                                              @Nonnull final IDecryptedPayloadConsumer aDecryptedConsumer) throws WSSecurityException,
+                                                                                                           Phase4Exception,
+                                                                                                           IOException,
+                                                                                                           MessagingException
+  {
+    ValueEnforcer.notNull (aIndex, "Index");
+    ValueEnforcer.notEmpty (sMessageID, "MessageID");
+
+    final AS4DumpArchiveEntry aEntry = aIndex.getAllEntriesOfMessageID (sMessageID)
+                                             .findFirst (x -> x.getDirection ().isIncoming ());
+    if (aEntry == null)
+      return false;
+
+    try (final InputStream aIS = aIndex.readRecord (aEntry).getContentInputStream ())
+    {
+      decryptAS4In (aIS, aCF, aHttpHeaderConsumer, aDecryptedConsumer);
+    }
+    return true;
+  }
+
+  private static void _decryptAS4In (@Nonnull final InputStream aBodyIS,
+                                     @Nonnull final HttpHeaderMap hm,
+                                     @Nonnull final IAS4CryptoFactory aCF,
+                                     @Nonnull final IDecryptedPayloadConsumer aDecryptedConsumer) throws WSSecurityException,
+                                                                                                  Phase4Exception,
+                                                                                                  IOException,
+                                                                                                  MessagingException
+  {
+    final boolean bCreateGlobalScope = !WebScopeManager.isGlobalScopePresent ();
+    if (bCreateGlobalScope)
+      WebScopeManager.onGlobalBegin (MockServletContext.create ());
     try (final WebScoped w = new WebScoped ();
         final AS4RequestHandler rh = new AS4RequestHandler (aCF,
                                                             DefaultPModeResolver.DEFAULT_PMODE_RESOLVER,
@@ -256,7 +427,7 @@ public final class AS4DumpReader
         }
       };
       rh.setProcessorSupplier ( () -> new CommonsArrayList <> (aSPI));
-      rh.handleRequest (new NonBlockingByteArrayInputStream (aAS4InData, nHttpEnd, aAS4InData.length - nHttpEnd),
+      rh.handleRequest (aBodyIS,
                         hm,
                         new IAS4ResponseAbstraction ()
                         {
@@ -275,7 +446,8 @@ public final class AS4DumpReader
     }
     finally
     {
-      WebScopeManager.onGlobalEnd ();
+      if (bCreateGlobalScope)
+        WebScopeManager.onGlobalEnd ();
     }
   }
 }
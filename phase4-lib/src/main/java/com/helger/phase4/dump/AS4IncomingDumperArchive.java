@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dump;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.phase4.messaging.IAS4IncomingMessageMetadata;
+
+/**
+ * Implementation of {@link IAS4IncomingDumper} that appends all incoming
+ * messages to an {@link AS4DumpArchive} instead of creating one file per
+ * message. The incoming unique ID is used as the record ID and the remote
+ * address is part of the index.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+public class AS4IncomingDumperArchive extends AbstractAS4IncomingDumperWithHeaders
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4IncomingDumperArchive.class);
+
+  private final AS4DumpArchive m_aArchive;
+
+  /**
+   * Constructor
+   *
+   * @param aArchive
+   *        The archive to write to. May not be <code>null</code>. The caller
+   *        is responsible for closing it.
+   */
+  public AS4IncomingDumperArchive (@Nonnull final AS4DumpArchive aArchive)
+  {
+    ValueEnforcer.notNull (aArchive, "Archive");
+    m_aArchive = aArchive;
+  }
+
+  /**
+   * @return The archive written to, as provided in the constructor. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final AS4DumpArchive getArchive ()
+  {
+    return m_aArchive;
+  }
+
+  @Override
+  protected OutputStream openOutputStream (@Nonnull final IAS4IncomingMessageMetadata aMessageMetadata,
+                                           @Nonnull final HttpHeaderMap aHttpHeaderMap) throws IOException
+  {
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Archiving incoming AS4 message '" + aMessageMetadata.getIncomingUniqueID () + "'");
+    return m_aArchive.createRecordStream (EAS4DumpDirection.INCOMING,
+                                          aMessageMetadata.getMode (),
+                                          aMessageMetadata.getIncomingUniqueID (),
+                                          0,
+                                          aMessageMetadata.getIncomingDT ().toInstant (),
+                                          aMessageMetadata.getRemoteAddr ());
+  }
+}
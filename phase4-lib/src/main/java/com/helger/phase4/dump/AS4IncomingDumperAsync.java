@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dump;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.impl.CommonsConcurrentHashMap;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.phase4.messaging.IAS4IncomingMessageMetadata;
+
+/**
+ * Asynchronous version of {@link IAS4IncomingDumper} that decouples an
+ * existing dumper (e.g. {@link AS4IncomingDumperFileBased}) from the thread
+ * receiving the message. The received bytes are handed over to an
+ * {@link AS4AsyncDumpWriter} and the wrapped dumper is only invoked from the
+ * writer thread.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+public class AS4IncomingDumperAsync implements IAS4IncomingDumper
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4IncomingDumperAsync.class);
+
+  private final IAS4IncomingDumper m_aDelegate;
+  private final AS4AsyncDumpWriter m_aWriter;
+  private final ICommonsMap <String, AS4AsyncDumpWriter.DumpOutputStream> m_aOpenStreams = new CommonsConcurrentHashMap <> ();
+
+  /**
+   * Constructor
+   *
+   * @param aDelegate
+   *        The dumper that performs the real dumping in the writer thread. May
+   *        not be <code>null</code>.
+   * @param aWriter
+   *        The asynchronous writer to use. May not be <code>null</code>. The
+   *        caller is responsible for closing it.
+   */
+  public AS4IncomingDumperAsync (@Nonnull final IAS4IncomingDumper aDelegate, @Nonnull final AS4AsyncDumpWriter aWriter)
+  {
+    ValueEnforcer.notNull (aDelegate, "Delegate");
+    ValueEnforcer.notNull (aWriter, "Writer");
+    m_aDelegate = aDelegate;
+    m_aWriter = aWriter;
+  }
+
+  /**
+   * @return The wrapped dumper. Never <code>null</code>.
+   */
+  @Nonnull
+  public final IAS4IncomingDumper getDelegate ()
+  {
+    return m_aDelegate;
+  }
+
+  /**
+   * @return The asynchronous writer used. Never <code>null</code>.
+   */
+  @Nonnull
+  public final AS4AsyncDumpWriter getWriter ()
+  {
+    return m_aWriter;
+  }
+
+  @Nullable
+  public OutputStream onNewRequest (@Nonnull final IAS4IncomingMessageMetadata aMessageMetadata,
+                                    @Nonnull final HttpHeaderMap aHttpHeaderMap) throws IOException
+  {
+    // The headers may be modified after this call
+    final HttpHeaderMap aHttpHeaderMapCopy = aHttpHeaderMap.getClone ();
+    final AS4AsyncDumpWriter.DumpOutputStream ret = m_aWriter.createOutputStream ( () -> m_aDelegate.onNewRequest (aMessageMetadata,
+                                                                                                                    aHttpHeaderMapCopy));
+    m_aOpenStreams.put (aMessageMetadata.getIncomingUniqueID (), ret);
+    return ret;
+  }
+
+  @Override
+  public void onEndRequest (@Nonnull final IAS4IncomingMessageMetadata aMessageMetadata)
+  {
+    final AS4AsyncDumpWriter.DumpOutputStream aStream = m_aOpenStreams.remove (aMessageMetadata.getIncomingUniqueID ());
+    if (aStream != null)
+      try
+      {
+        m_aWriter.runAfter ( () -> {
+          // Only if the delegate really dumped
+          if (aStream.isTargetOpened ())
+            m_aDelegate.onEndRequest (aMessageMetadata);
+        });
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.error ("Failed to schedule the end of the dump of incoming message '" +
+                      aMessageMetadata.getIncomingUniqueID () +
+                      "'",
+                      ex);
+      }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Delegate", m_aDelegate).append ("Writer", m_aWriter).getToString ();
+  }
+}
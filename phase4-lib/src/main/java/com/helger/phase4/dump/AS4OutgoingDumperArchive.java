@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dump;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.phase4.messaging.EAS4MessageMode;
+import com.helger.phase4.messaging.IAS4IncomingMessageMetadata;
+import com.helger.phase4.mgr.MetaAS4Manager;
+import com.helger.phase4.servlet.IAS4MessageState;
+
+/**
+ * Implementation of {@link IAS4OutgoingDumper} that appends all outgoing
+ * messages to an {@link AS4DumpArchive} instead of creating one file per
+ * message. The AS4 message ID is used as the record ID. For responses the
+ * remote address of the request is part of the index.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+public class AS4OutgoingDumperArchive extends AbstractAS4OutgoingDumperWithHeaders
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4OutgoingDumperArchive.class);
+
+  private final AS4DumpArchive m_aArchive;
+
+  /**
+   * Constructor
+   *
+   * @param aArchive
+   *        The archive to write to. May not be <code>null</code>. The caller
+   *        is responsible for closing it.
+   */
+  public AS4OutgoingDumperArchive (@Nonnull final AS4DumpArchive aArchive)
+  {
+    ValueEnforcer.notNull (aArchive, "Archive");
+    m_aArchive = aArchive;
+  }
+
+  /**
+   * @return The archive written to, as provided in the constructor. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final AS4DumpArchive getArchive ()
+  {
+    return m_aArchive;
+  }
+
+  @Override
+  protected OutputStream openOutputStream (@Nonnull final EAS4MessageMode eMsgMode,
+                                           @Nullable final IAS4IncomingMessageMetadata aMessageMetadata,
+                                           @Nullable final IAS4MessageState aState,
+                                           @Nonnull @Nonempty final String sMessageID,
+                                           @Nullable final HttpHeaderMap aCustomHeaders,
+                                           @Nonnegative final int nTry) throws IOException
+  {
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Archiving outgoing AS4 message '" + sMessageID + "' (try " + nTry + ")");
+    return m_aArchive.createRecordStream (EAS4DumpDirection.OUTGOING,
+                                          eMsgMode,
+                                          sMessageID,
+                                          nTry,
+                                          MetaAS4Manager.getTimestampMgr ().getCurrentDateTime ().toInstant (),
+                                          aMessageMetadata == null ? null : aMessageMetadata.getRemoteAddr ());
+  }
+}
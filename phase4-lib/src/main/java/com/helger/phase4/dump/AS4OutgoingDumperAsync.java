@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dump;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.collection.impl.CommonsConcurrentHashMap;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.phase4.messaging.EAS4MessageMode;
+import com.helger.phase4.messaging.IAS4IncomingMessageMetadata;
+import com.helger.phase4.servlet.IAS4MessageState;
+
+/**
+ * Asynchronous version of {@link IAS4OutgoingDumper} that decouples an
+ * existing dumper (e.g. {@link AS4OutgoingDumperFileBased}) from the thread
+ * sending the message. The sent bytes are handed over to an
+ * {@link AS4AsyncDumpWriter} and the wrapped dumper is only invoked from the
+ * writer thread.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+public class AS4OutgoingDumperAsync implements IAS4OutgoingDumper
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4OutgoingDumperAsync.class);
+
+  private final IAS4OutgoingDumper m_aDelegate;
+  private final AS4AsyncDumpWriter m_aWriter;
+  private final ICommonsMap <String, AS4AsyncDumpWriter.DumpOutputStream> m_aOpenStreams = new CommonsConcurrentHashMap <> ();
+
+  /**
+   * Constructor
+   *
+   * @param aDelegate
+   *        The dumper that performs the real dumping in the writer thread. May
+   *        not be <code>null</code>.
+   * @param aWriter
+   *        The asynchronous writer to use. May not be <code>null</code>. The
+   *        caller is responsible for closing it.
+   */
+  public AS4OutgoingDumperAsync (@Nonnull final IAS4OutgoingDumper aDelegate, @Nonnull final AS4AsyncDumpWriter aWriter)
+  {
+    ValueEnforcer.notNull (aDelegate, "Delegate");
+    ValueEnforcer.notNull (aWriter, "Writer");
+    m_aDelegate = aDelegate;
+    m_aWriter = aWriter;
+  }
+
+  /**
+   * @return The wrapped dumper. Never <code>null</code>.
+   */
+  @Nonnull
+  public final IAS4OutgoingDumper getDelegate ()
+  {
+    return m_aDelegate;
+  }
+
+  /**
+   * @return The asynchronous writer used. Never <code>null</code>.
+   */
+  @Nonnull
+  public final AS4AsyncDumpWriter getWriter ()
+  {
+    return m_aWriter;
+  }
+
+  @Nonnull
+  private static String _getKey (@Nonnull final EAS4MessageMode eMsgMode, @Nonnull final String sMessageID)
+  {
+    return eMsgMode.getID () + ':' + sMessageID;
+  }
+
+  @Nullable
+  public OutputStream onBeginRequest (@Nonnull final EAS4MessageMode eMsgMode,
+                                      @Nullable final IAS4IncomingMessageMetadata aMessageMetadata,
+                                      @Nullable final IAS4MessageState aState,
+                                      @Nonnull @Nonempty final String sMessageID,
+                                      @Nullable final HttpHeaderMap aCustomHeaders,
+                                      @Nonnegative final int nTry) throws IOException
+  {
+    // The headers may be modified after this call
+    final HttpHeaderMap aCustomHeadersCopy = aCustomHeaders == null ? null : aCustomHeaders.getClone ();
+    final AS4AsyncDumpWriter.DumpOutputStream ret = m_aWriter.createOutputStream ( () -> m_aDelegate.onBeginRequest (eMsgMode,
+                                                                                                                      aMessageMetadata,
+                                                                                                                      aState,
+                                                                                                                      sMessageID,
+                                                                                                                      aCustomHeadersCopy,
+                                                                                                                      nTry));
+    m_aOpenStreams.put (_getKey (eMsgMode, sMessageID), ret);
+    return ret;
+  }
+
+  @Override
+  public void onEndRequest (@Nonnull final EAS4MessageMode eMsgMode,
+                            @Nullable final IAS4IncomingMessageMetadata aMessageMetadata,
+                            @Nullable final IAS4MessageState aState,
+                            @Nonnull @Nonempty final String sMessageID)
+  {
+    final AS4AsyncDumpWriter.DumpOutputStream aStream = m_aOpenStreams.remove (_getKey (eMsgMode, sMessageID));
+    if (aStream != null)
+      try
+      {
+        m_aWriter.runAfter ( () -> {
+          // Only if the delegate really dumped
+          if (aStream.isTargetOpened ())
+            m_aDelegate.onEndRequest (eMsgMode, aMessageMetadata, aState, sMessageID);
+        });
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.error ("Failed to schedule the end of the dump of outgoing message '" + sMessageID + "'", ex);
+      }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Delegate", m_aDelegate).append ("Writer", m_aWriter).getToString ();
+  }
+}
@@ -57,7 +57,9 @@ public interface IAS4IncomingDumper
    * belonging to the message. This method may not throw an exception. Since
    * 1.3.0 this method is only called, if
    * {@link #onNewRequest(IAS4IncomingMessageMetadata, HttpHeaderMap)} returned
-   * non-<code>null</code>.
+   * non-<code>null</code>. Since 2.1.3 the stage timings of the processed
+   * message are available via
+   * {@link IAS4IncomingMessageMetadata#getStageTimings()}.
    *
    * @param aMessageMetadata
    *        Message metadata. Never <code>null</code>.
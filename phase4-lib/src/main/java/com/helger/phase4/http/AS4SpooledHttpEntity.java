@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.http;
+
+import java.io.File;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.io.entity.FileEntity;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.phase4.util.AS4ResourceHelper;
+
+/**
+ * A repeatable HTTP entity, whose content was written exactly once to a spool
+ * file. The content is identified by its SHA-256 digest and has a known
+ * length, so that it is sent with a <code>Content-Length</code> header instead
+ * of chunked. All retries and the dumpers use exactly the same bytes. Use
+ * {@link AS4ResourceHelper#createSpooledHttpEntity(org.apache.hc.core5.http.HttpEntity)}
+ * to create instances.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+public class AS4SpooledHttpEntity extends FileEntity
+{
+  private final File m_aFile;
+  private final byte [] m_aDigest;
+
+  public AS4SpooledHttpEntity (@Nonnull final File aFile,
+                               @Nullable final ContentType aContentType,
+                               @Nullable final String sContentEncoding,
+                               @Nonnull @Nonempty final byte [] aDigest)
+  {
+    super (aFile, aContentType, sContentEncoding);
+    ValueEnforcer.notEmpty (aDigest, "Digest");
+    m_aFile = aFile;
+    m_aDigest = aDigest.clone ();
+  }
+
+  /**
+   * @return The spool file. Never <code>null</code>.
+   */
+  @Nonnull
+  public final File getFile ()
+  {
+    return m_aFile;
+  }
+
+  /**
+   * @return The SHA-256 digest of the content. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public final byte [] getDigest ()
+  {
+    return m_aDigest.clone ();
+  }
+
+  /**
+   * @return The SHA-256 digest of the content as a lower case hex string.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  @Nonempty
+  public final String getDigestHex ()
+  {
+    return StringHelper.getHexEncoded (m_aDigest);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("File", m_aFile)
+                                       .append ("ContentType", getContentType ())
+                                       .append ("ContentLength", getContentLength ())
+                                       .append ("Digest", getDigestHex ())
+                                       .getToString ();
+  }
+}
@@ -52,6 +52,13 @@ import com.helger.phase4.client.IAS4RetryCallback;
 import com.helger.phase4.dump.AS4DumpManager;
 import com.helger.phase4.dump.IAS4OutgoingDumper;
 import com.helger.phase4.messaging.EAS4MessageMode;
+import com.helger.phase4.metrics.AS4MetricsManager;
+import com.helger.phase4.metrics.AS4MetricsTags;
+import com.helger.phase4.metrics.EAS4MetricsCounter;
+import com.helger.phase4.metrics.EAS4MetricsStage;
+import com.helger.phase4.tracing.AS4TracingManager;
+import com.helger.phase4.tracing.EAS4SpanKind;
+import com.helger.phase4.tracing.IAS4Span;
 import com.helger.phase4.util.MultiOutputStream;
 
 /**
@@ -156,10 +163,13 @@ public class BasicHttpPoster implements IHttpPoster
     ValueEnforcer.notNull (aHttpEntity, "HttpEntity");
 
     final StopWatch aSW = StopWatch.createdStarted ();
+    final long nHttpStart = AS4MetricsManager.startTiming ();
     LOGGER.info ("Starting to transmit AS4 Message to '" + sURL + "'");
 
     IOException aCaughtException = null;
-    try (final HttpClientManager aClientMgr = new HttpClientManager (m_aHttpClientFactory))
+    try (final IAS4Span aSpan = AS4TracingManager.startSpan (AS4TracingManager.SPAN_HTTP_POST, EAS4SpanKind.CLIENT)
+                                                 .setAttribute (AS4TracingManager.ATTR_URL, sURL);
+        final HttpClientManager aClientMgr = new HttpClientManager (m_aHttpClientFactory))
     {
       final HttpPost aPost = new HttpPost (sURL);
 
@@ -170,6 +180,9 @@ public class BasicHttpPoster implements IHttpPoster
         aCustomHttpHeaders.forEachSingleHeader (aPost::addHeader, true, m_bQuoteHttpHeaders);
       }
 
+      // Propagate the trace context to the receiver
+      AS4TracingManager.injectContext (aPost::setHeader);
+
       aPost.setEntity (aHttpEntity);
 
       // Invoke optional customizer
@@ -198,7 +211,15 @@ public class BasicHttpPoster implements IHttpPoster
         return ret.toString ();
       });
 
-      return aClientMgr.execute (aPost, aResponseHandler);
+      try
+      {
+        return aClientMgr.execute (aPost, aResponseHandler);
+      }
+      catch (final IOException | RuntimeException ex)
+      {
+        aSpan.recordException (ex);
+        throw ex;
+      }
     }
     catch (final IOException ex)
     {
@@ -208,6 +229,10 @@ public class BasicHttpPoster implements IHttpPoster
     finally
     {
       aSW.stop ();
+      AS4MetricsManager.recordStage (EAS4MetricsStage.OUTGOING_HTTP,
+                                     nHttpStart,
+                                     aCaughtException == null,
+                                     AS4MetricsTags.EMPTY);
       LOGGER.info ((aCaughtException != null ? "Failed" : "Finished") +
                    " transmitting AS4 Message to '" +
                    sURL +
@@ -217,6 +242,81 @@ public class BasicHttpPoster implements IHttpPoster
     }
   }
 
+  /**
+   * Write the provided entity to the outgoing dumper exactly once. The entity
+   * must be repeatable, because it is sent afterwards using the very same
+   * bytes.
+   *
+   * @param aOutgoingDumper
+   *        The outgoing dumper to use. May be <code>null</code>.
+   * @param aSrcEntity
+   *        The materialized entity to be dumped. May not be <code>null</code>.
+   * @param sMessageID
+   *        The AS4 message ID. May neither be <code>null</code> nor empty.
+   * @param aCustomHttpHeaders
+   *        The custom HTTP headers. May be <code>null</code>.
+   * @param aDumpOSHolder
+   *        The holder for the dump output stream. Is filled if dumping took
+   *        place. May not be <code>null</code>.
+   * @throws IOException
+   *         on IO error
+   * @since 2.1.3
+   */
+  protected static void dumpHttpEntityOnce (@Nullable final IAS4OutgoingDumper aOutgoingDumper,
+                                            @Nonnull final HttpEntity aSrcEntity,
+                                            @Nonnull @Nonempty final String sMessageID,
+                                            @Nullable final HttpHeaderMap aCustomHttpHeaders,
+                                            @Nonnull final Wrapper <OutputStream> aDumpOSHolder) throws IOException
+  {
+    if (aOutgoingDumper == null)
+    {
+      // No dumper
+      return;
+    }
+
+    // We don't have a message processing state
+    final OutputStream aDumpOS = aOutgoingDumper.onBeginRequest (EAS4MessageMode.REQUEST,
+                                                                 null,
+                                                                 null,
+                                                                 sMessageID,
+                                                                 aCustomHttpHeaders,
+                                                                 0);
+    if (aDumpOS == null)
+    {
+      // No dumping needed
+      return;
+    }
+
+    // Remember the output stream used for dumping (to be able to call
+    // onEndRequest later)
+    aDumpOSHolder.set (aDumpOS);
+
+    // Otherwise the content would be consumed before sending
+    if (!aSrcEntity.isRepeatable ())
+    {
+      StreamHelper.close (aDumpOS);
+      throw new IllegalStateException ("If dumping of outgoing messages is enabled, a repeatable entity must be provided");
+    }
+
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Dumping the outgoing entity once for all tries");
+
+    try
+    {
+      aSrcEntity.writeTo (aDumpOS);
+      aDumpOS.flush ();
+    }
+    finally
+    {
+      StreamHelper.close (aDumpOS);
+    }
+  }
+
+  /**
+   * @deprecated Since 2.1.3; the outgoing entity is now dumped only once via
+   *             {@link #dumpHttpEntityOnce(IAS4OutgoingDumper, HttpEntity, String, HttpHeaderMap, Wrapper)}
+   */
+  @Deprecated (since = "2.1.3", forRemoval = true)
   @Nonnull
   protected static HttpEntity createDumpingHttpEntity (@Nullable final IAS4OutgoingDumper aOutgoingDumper,
                                                        @Nonnull final HttpEntity aSrcEntity,
@@ -294,27 +394,24 @@ public class BasicHttpPoster implements IHttpPoster
         if (!aHttpEntity.isRepeatable ())
           throw new IllegalStateException ("If retry is enabled, a repeatable entity must be provided");
 
+        // Dump exactly once, independent of the number of tries
+        dumpHttpEntityOnce (aRealOutgoingDumper, aHttpEntity, sMessageID, aCustomHttpHeaders, aDumpOSHolder);
+
         final int nMaxRetries = aRetrySettings.getMaxRetries ();
         final int nMaxTries = 1 + nMaxRetries;
         Duration aDurationBeforeRetry = aRetrySettings.getDurationBeforeRetry ();
         for (int nTry = 0; nTry < nMaxTries; nTry++)
         {
           if (nTry > 0)
+          {
             LOGGER.info ("Retry #" + nTry + "/" + nMaxRetries + " for sending message with ID '" + sMessageID + "'");
+            AS4MetricsManager.incrementCounter (EAS4MetricsCounter.OUTGOING_RETRY, null, null);
+          }
 
           try
           {
-            // Create a new one every time (for new filename, new timestamp,
-            // etc.)
-            final HttpEntity aDumpingEntity = createDumpingHttpEntity (aRealOutgoingDumper,
-                                                                       aHttpEntity,
-                                                                       sMessageID,
-                                                                       aCustomHttpHeaders,
-                                                                       nTry,
-                                                                       aDumpOSHolder);
-
-            // Dump only for the first try - the remaining tries
-            return sendGenericMessage (sURL, aCustomHttpHeaders, aDumpingEntity, aResponseHandler);
+            // The same bytes are sent on every try
+            return sendGenericMessage (sURL, aCustomHttpHeaders, aHttpEntity, aResponseHandler);
           }
           catch (final IOException ex)
           {
@@ -361,33 +458,15 @@ public class BasicHttpPoster implements IHttpPoster
             // Sleep and try again afterwards
             ThreadHelper.sleep (aDurationBeforeRetry.toMillis ());
           }
-          finally
-          {
-            // Flush and close the dump output stream (if any)
-            StreamHelper.close (aDumpOSHolder.get ());
-          }
         }
         throw new IllegalStateException ("Should never be reached (after maximum of " + nMaxTries + " tries)!");
       }
       // else non retry
       {
-        final HttpEntity aDumpingEntity = createDumpingHttpEntity (aRealOutgoingDumper,
-                                                                   aHttpEntity,
-                                                                   sMessageID,
-                                                                   aCustomHttpHeaders,
-                                                                   0,
-                                                                   aDumpOSHolder);
+        dumpHttpEntityOnce (aRealOutgoingDumper, aHttpEntity, sMessageID, aCustomHttpHeaders, aDumpOSHolder);
 
-        try
-        {
-          // Send without retry
-          return sendGenericMessage (sURL, aCustomHttpHeaders, aDumpingEntity, aResponseHandler);
-        }
-        finally
-        {
-          // Close the dump output stream (if any)
-          StreamHelper.close (aDumpOSHolder.get ());
-        }
+        // Send without retry
+        return sendGenericMessage (sURL, aCustomHttpHeaders, aHttpEntity, aResponseHandler);
       }
     }
     finally
@@ -23,10 +23,13 @@ import java.io.OutputStream;
 import javax.annotation.Nonnull;
 
 import org.apache.hc.core5.http.io.entity.AbstractHttpEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.Nonempty;
 import com.helger.commons.string.ToStringGenerator;
+import com.helger.phase4.config.AS4Configuration;
 import com.helger.phase4.messaging.mime.AS4MimeMessage;
 
 import jakarta.mail.MessagingException;
@@ -40,6 +43,8 @@ import jakarta.mail.internet.MimeMessage;
  */
 public class HttpMimeMessageEntity extends AbstractHttpEntity
 {
+  private static final Logger LOGGER = LoggerFactory.getLogger (HttpMimeMessageEntity.class);
+
   private final AS4MimeMessage m_aMsg;
 
   protected HttpMimeMessageEntity (@Nonnull @Nonempty final String sContentType, @Nonnull final AS4MimeMessage aMsg)
@@ -72,6 +77,17 @@ public class HttpMimeMessageEntity extends AbstractHttpEntity
 
   public long getContentLength ()
   {
+    if (AS4Configuration.isComputeMimeContentLength ())
+      try
+      {
+        // Negative if unknown
+        return m_aMsg.getContentLength ();
+      }
+      catch (final MessagingException ex)
+      {
+        LOGGER.warn ("Failed to compute the length of the MIME message - using chunked encoding", ex);
+      }
+
     // length unknown - negative number
     return -1;
   }
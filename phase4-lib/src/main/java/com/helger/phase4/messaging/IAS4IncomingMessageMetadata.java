@@ -26,6 +26,7 @@ import com.helger.commons.annotation.Nonempty;
 import com.helger.commons.annotation.ReturnsMutableObject;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.string.StringHelper;
+import com.helger.phase4.metrics.AS4StageTimings;
 
 import jakarta.servlet.http.Cookie;
 
@@ -171,4 +172,16 @@ public interface IAS4IncomingMessageMetadata
    */
   @Nullable
   String getRequestMessageID ();
+
+  /**
+   * @return The stage timings of the processing of this incoming message. May
+   *         be <code>null</code> if the implementation doesn't record stage
+   *         timings.
+   * @since 2.1.3
+   */
+  @Nullable
+  default AS4StageTimings getStageTimings ()
+  {
+    return null;
+  }
 }
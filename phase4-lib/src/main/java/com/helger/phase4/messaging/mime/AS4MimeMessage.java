@@ -16,12 +16,15 @@
  */
 package com.helger.phase4.messaging.mime;
 
+import java.io.IOException;
 import java.io.InputStream;
 
+import javax.annotation.CheckForSigned;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import com.helger.commons.string.ToStringGenerator;
+import com.helger.mail.cte.EContentTransferEncoding;
 
 import jakarta.mail.MessagingException;
 import jakarta.mail.Session;
@@ -60,6 +63,46 @@ public class AS4MimeMessage extends MimeMessage
     return m_bIsRepeatable;
   }
 
+  /**
+   * Compute the number of bytes that {@link #writeTo(java.io.OutputStream)}
+   * writes, without writing the message. This considers the headers that are
+   * present at the time of the call. Call it only after all changes to the
+   * message were saved.
+   *
+   * @return The number of bytes or -1 if the length cannot be determined up
+   *         front, e.g. because the length of an attachment is unknown or a
+   *         transfer encoding other than "binary" is used.
+   * @throws MessagingException
+   *         In case of error
+   * @since 2.1.3
+   */
+  @CheckForSigned
+  public long getContentLength () throws MessagingException
+  {
+    final Object aContent;
+    try
+    {
+      aContent = getDataHandler ().getContent ();
+    }
+    catch (final IOException ex)
+    {
+      throw new MessagingException ("Failed to get the MIME message content", ex);
+    }
+    if (!(aContent instanceof SoapMimeMultipart))
+      return -1;
+
+    // A transfer encoding on the message level would change the length
+    final String sEncoding = getEncoding ();
+    if (sEncoding != null && !EContentTransferEncoding.BINARY.getID ().equalsIgnoreCase (sEncoding))
+      return -1;
+
+    final long nMultipartLength = ((SoapMimeMultipart) aContent).getContentLength ();
+    if (nMultipartLength < 0)
+      return -1;
+
+    return SoapMimeMultipart.getHeaderLength (getAllHeaderLines ()) + nMultipartLength;
+  }
+
   @Override
   public String toString ()
   {
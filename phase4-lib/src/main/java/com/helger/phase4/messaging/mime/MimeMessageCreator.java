@@ -16,6 +16,7 @@
  */
 package com.helger.phase4.messaging.mime;
 
+import java.io.IOException;
 import java.nio.charset.Charset;
 
 import javax.annotation.Nonnull;
@@ -28,6 +29,7 @@ import org.w3c.dom.Document;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.http.CHttpHeader;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
 import com.helger.mail.cte.EContentTransferEncoding;
 import com.helger.phase4.attachment.WSS4JAttachment;
 import com.helger.phase4.soap.ESoapVersion;
@@ -40,6 +42,7 @@ import jakarta.activation.MailcapCommandMap;
 import jakarta.mail.MessagingException;
 import jakarta.mail.Session;
 import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.util.ByteArrayDataSource;
 
 public final class MimeMessageCreator
 {
@@ -103,10 +106,22 @@ public final class MimeMessageCreator
 
     {
       // Message Itself (repeatable)
+      // Serialize it only once, so that the length is known up front
+      final byte [] aSoapBytes;
+      try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+      {
+        new DataHandler (new DOMSource (aSoapEnvelope), sContentType).writeTo (aBAOS);
+        aSoapBytes = aBAOS.toByteArray ();
+      }
+      catch (final IOException ex)
+      {
+        throw new MessagingException ("Failed to serialize the SOAP envelope", ex);
+      }
+
       final MimeBodyPart aMessagePart = new MimeBodyPart ();
-      aMessagePart.setDataHandler (new DataHandler (new DOMSource (aSoapEnvelope), sContentType));
+      aMessagePart.setDataHandler (new DataHandler (new ByteArrayDataSource (aSoapBytes, sContentType)));
       aMessagePart.setHeader (CHttpHeader.CONTENT_TRANSFER_ENCODING, eCTE.getID ());
-      aMimeMultipart.addBodyPart (aMessagePart);
+      aMimeMultipart.addBodyPartWithContentLength (aMessagePart, aSoapBytes.length);
     }
 
     boolean bIsRepeatable = true;
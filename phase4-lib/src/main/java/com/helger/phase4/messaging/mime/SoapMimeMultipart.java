@@ -17,12 +17,21 @@
 package com.helger.phase4.messaging.mime;
 
 import java.nio.charset.Charset;
+import java.util.Enumeration;
 
+import javax.annotation.CheckForSigned;
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.mail.cte.EContentTransferEncoding;
 import com.helger.phase4.soap.ESoapVersion;
 
+import jakarta.mail.BodyPart;
+import jakarta.mail.MessagingException;
 import jakarta.mail.internet.ContentType;
+import jakarta.mail.internet.MimeBodyPart;
 import jakarta.mail.internet.MimeMultipart;
 import jakarta.mail.internet.ParseException;
 
@@ -34,6 +43,13 @@ import jakarta.mail.internet.ParseException;
  */
 public class SoapMimeMultipart extends MimeMultipart
 {
+  private static final int CRLF_LENGTH = 2;
+  private static final String BOUNDARY_PREFIX = "--";
+  private static final String BOUNDARY_SUFFIX = "--";
+
+  // The content length of each body part or -1 if unknown
+  private final ICommonsList <Long> m_aPartContentLengths = new CommonsArrayList <> ();
+
   public SoapMimeMultipart (@Nonnull final ESoapVersion eSoapVersion,
                             @Nonnull final Charset aCharset) throws ParseException
   {
@@ -46,4 +62,118 @@ public class SoapMimeMultipart extends MimeMultipart
     aContentType.setParameter ("charset", aCharset.name ());
     contentType = aContentType.toString ();
   }
+
+  @Override
+  public synchronized void addBodyPart (@Nonnull final BodyPart aPart) throws MessagingException
+  {
+    addBodyPartWithContentLength (aPart, -1);
+  }
+
+  @Override
+  public synchronized void addBodyPart (@Nonnull final BodyPart aPart, final int nIndex) throws MessagingException
+  {
+    super.addBodyPart (aPart, nIndex);
+    m_aPartContentLengths.add (nIndex, Long.valueOf (-1));
+  }
+
+  @Override
+  public synchronized boolean removeBodyPart (@Nonnull final BodyPart aPart) throws MessagingException
+  {
+    final int nIndex = parts.indexOf (aPart);
+    final boolean ret = super.removeBodyPart (aPart);
+    if (ret && nIndex >= 0)
+      m_aPartContentLengths.remove (nIndex);
+    return ret;
+  }
+
+  @Override
+  public synchronized void removeBodyPart (final int nIndex) throws MessagingException
+  {
+    super.removeBodyPart (nIndex);
+    m_aPartContentLengths.remove (nIndex);
+  }
+
+  /**
+   * Add a body part with a known content length.
+   *
+   * @param aPart
+   *        The part to add. May not be <code>null</code>.
+   * @param nContentLength
+   *        The number of bytes of the part content, as written with the
+   *        "binary" transfer encoding. Use a negative value if unknown.
+   * @throws MessagingException
+   *         In case of error
+   * @since 2.1.3
+   */
+  public synchronized void addBodyPartWithContentLength (@Nonnull final BodyPart aPart, final long nContentLength) throws MessagingException
+  {
+    super.addBodyPart (aPart);
+    m_aPartContentLengths.add (Long.valueOf (nContentLength));
+  }
+
+  /**
+   * Get the number of bytes that are needed to write the provided header lines
+   * including the empty line that separates the headers from the body.
+   *
+   * @param aHeaderLines
+   *        The header lines to use. May not be <code>null</code>.
+   * @return The number of bytes.
+   * @since 2.1.3
+   */
+  @Nonnegative
+  public static long getHeaderLength (@Nonnull final Enumeration <String> aHeaderLines)
+  {
+    long ret = 0;
+    while (aHeaderLines.hasMoreElements ())
+    {
+      // Header lines are written as ASCII with one byte per char
+      ret += aHeaderLines.nextElement ().length () + CRLF_LENGTH;
+    }
+    return ret + CRLF_LENGTH;
+  }
+
+  /**
+   * Compute the number of bytes this multipart is written with, without
+   * writing it. This is only possible, if the length of all body parts is
+   * known and all body parts use the "binary" transfer encoding.
+   *
+   * @return The number of bytes or -1 if the length cannot be determined up
+   *         front.
+   * @throws MessagingException
+   *         In case of error
+   * @since 2.1.3
+   */
+  @CheckForSigned
+  public synchronized long getContentLength () throws MessagingException
+  {
+    if (preamble != null || getCount () != m_aPartContentLengths.size ())
+      return -1;
+
+    final String sBoundary = new ContentType (contentType).getParameter ("boundary");
+    if (sBoundary == null)
+      return -1;
+
+    final int nBoundaryLineLength = BOUNDARY_PREFIX.length () + sBoundary.length () + CRLF_LENGTH;
+    long ret = 0;
+    for (int i = 0; i < getCount (); ++i)
+    {
+      final long nPartContentLength = m_aPartContentLengths.get (i).longValue ();
+      if (nPartContentLength < 0)
+        return -1;
+
+      final BodyPart aPart = getBodyPart (i);
+      if (!(aPart instanceof MimeBodyPart))
+        return -1;
+      final MimeBodyPart aMimePart = (MimeBodyPart) aPart;
+      // Any other encoding changes the number of bytes
+      if (!EContentTransferEncoding.BINARY.getID ().equalsIgnoreCase (aMimePart.getEncoding ()))
+        return -1;
+
+      // Boundary, headers, content and the line break after the content
+      ret += nBoundaryLineLength + getHeaderLength (aMimePart.getAllHeaderLines ()) + nPartContentLength + CRLF_LENGTH;
+    }
+    // Closing boundary
+    ret += nBoundaryLineLength + BOUNDARY_SUFFIX.length ();
+    return ret;
+  }
 }
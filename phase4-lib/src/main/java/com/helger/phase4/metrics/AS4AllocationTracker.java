@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForSigned;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.phase4.config.AS4Configuration;
+
+/**
+ * Helper to determine the bytes allocated by the current thread. This is used
+ * by {@link AS4StageTimings} to attribute allocations to the processing
+ * stages of sampled messages. It requires a JVM that supports
+ * <code>com.sun.management.ThreadMXBean</code> (like HotSpot).
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ * @see AS4Configuration#getAllocationSampleRate()
+ */
+@ThreadSafe
+public final class AS4AllocationTracker
+{
+  /** The value returned if the allocated bytes cannot be determined */
+  public static final long ALLOCATION_UNSUPPORTED = -1;
+
+  // null if not supported by the JVM
+  private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN;
+  static
+  {
+    final ThreadMXBean aMXBean = ManagementFactory.getThreadMXBean ();
+    com.sun.management.ThreadMXBean aSunMXBean = null;
+    if (aMXBean instanceof com.sun.management.ThreadMXBean)
+    {
+      aSunMXBean = (com.sun.management.ThreadMXBean) aMXBean;
+      if (!aSunMXBean.isThreadAllocatedMemorySupported () || !aSunMXBean.isThreadAllocatedMemoryEnabled ())
+        aSunMXBean = null;
+    }
+    THREAD_MX_BEAN = aSunMXBean;
+  }
+
+  private static final AtomicLong MESSAGE_COUNTER = new AtomicLong (0);
+
+  private AS4AllocationTracker ()
+  {}
+
+  /**
+   * @return <code>true</code> if the JVM can determine the bytes allocated per
+   *         thread.
+   */
+  public static boolean isSupported ()
+  {
+    return THREAD_MX_BEAN != null;
+  }
+
+  /**
+   * @return The total number of bytes allocated by the current thread so far,
+   *         or {@link #ALLOCATION_UNSUPPORTED} if the JVM does not support it.
+   */
+  @CheckForSigned
+  public static long getCurrentThreadAllocatedBytes ()
+  {
+    if (THREAD_MX_BEAN == null)
+      return ALLOCATION_UNSUPPORTED;
+    return THREAD_MX_BEAN.getThreadAllocatedBytes (Thread.currentThread ().getId ());
+  }
+
+  /**
+   * Decide if the allocations of the next message should be tracked, based on
+   * the configured sample rate. Each call counts as one message.
+   *
+   * @return <code>true</code> if the allocations should be tracked.
+   */
+  public static boolean isSampleNextMessage ()
+  {
+    final int nSampleRate = AS4Configuration.getAllocationSampleRate ();
+    if (nSampleRate <= 0 || THREAD_MX_BEAN == null)
+      return false;
+    return MESSAGE_COUNTER.getAndIncrement () % nSampleRate == 0;
+  }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.metrics;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.phase4.model.pmode.IPMode;
+
+/**
+ * This class holds the global metrics recorder. By default no recorder is
+ * installed and all methods return immediately, so that the instrumentation
+ * of the processing pipeline has no measurable overhead.<br>
+ * Usage pattern:
+ *
+ * <pre>
+ * final long nStart = AS4MetricsManager.startTiming ();
+ * // do the work
+ * AS4MetricsManager.recordStage (EAS4MetricsStage.X, nStart, bSuccess, sProfileID, aPMode);
+ * </pre>
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@ThreadSafe
+public final class AS4MetricsManager
+{
+  /** The start value returned if metrics are disabled */
+  public static final long TIMING_DISABLED = 0;
+
+  // Volatile instead of a lock, because it is read on every stage
+  private static volatile IAS4MetricsRecorder s_aRecorder;
+
+  private AS4MetricsManager ()
+  {}
+
+  /**
+   * @return The metrics recorder currently installed. May be
+   *         <code>null</code>.
+   */
+  @Nullable
+  public static IAS4MetricsRecorder getRecorder ()
+  {
+    return s_aRecorder;
+  }
+
+  /**
+   * Set the metrics recorder to be globally used.
+   *
+   * @param aRecorder
+   *        The new recorder. May be <code>null</code> to disable metrics.
+   */
+  public static void setRecorder (@Nullable final IAS4MetricsRecorder aRecorder)
+  {
+    s_aRecorder = aRecorder;
+  }
+
+  /**
+   * @return <code>true</code> if a metrics recorder is installed.
+   */
+  public static boolean isEnabled ()
+  {
+    return s_aRecorder != null;
+  }
+
+  /**
+   * Start the timing of a stage.
+   *
+   * @return The start time in nanoseconds or {@link #TIMING_DISABLED} if no
+   *         recorder is installed. Must be passed to one of the
+   *         <code>recordStage</code> methods.
+   */
+  public static long startTiming ()
+  {
+    return startTiming (null);
+  }
+
+  /**
+   * Start the timing of a stage that should also be added to the provided
+   * per-message stage timings.
+   *
+   * @param aTimings
+   *        The stage timings of the current message. May be <code>null</code>.
+   * @return The start time in nanoseconds or {@link #TIMING_DISABLED} if
+   *         neither a recorder is installed nor stage timings are provided.
+   *         Must be passed to one of the <code>recordStage</code> methods.
+   */
+  public static long startTiming (@Nullable final AS4StageTimings aTimings)
+  {
+    if (s_aRecorder == null && aTimings == null)
+      return TIMING_DISABLED;
+    long ret = System.nanoTime ();
+    // Avoid the accidental match with the "disabled" value
+    if (ret == TIMING_DISABLED)
+      ret = 1;
+    if (aTimings != null)
+      aTimings.onStageStart (ret);
+    return ret;
+  }
+
+  /**
+   * Record the end of a stage.
+   *
+   * @param eStage
+   *        The stage that was timed. May not be <code>null</code>.
+   * @param nStartNanos
+   *        The value returned by {@link #startTiming()}.
+   * @param bSuccess
+   *        The outcome of the stage.
+   * @param aTags
+   *        The tags to use. May not be <code>null</code>.
+   */
+  public static void recordStage (@Nonnull final EAS4MetricsStage eStage,
+                                  final long nStartNanos,
+                                  final boolean bSuccess,
+                                  @Nonnull final AS4MetricsTags aTags)
+  {
+    recordStage (eStage, nStartNanos, bSuccess, aTags, null);
+  }
+
+  /**
+   * Record the end of a stage.
+   *
+   * @param eStage
+   *        The stage that was timed. May not be <code>null</code>.
+   * @param nStartNanos
+   *        The value returned by {@link #startTiming(AS4StageTimings)}.
+   * @param bSuccess
+   *        The outcome of the stage.
+   * @param aTags
+   *        The tags to use. May not be <code>null</code>.
+   * @param aTimings
+   *        The stage timings of the current message. May be <code>null</code>.
+   */
+  public static void recordStage (@Nonnull final EAS4MetricsStage eStage,
+                                  final long nStartNanos,
+                                  final boolean bSuccess,
+                                  @Nonnull final AS4MetricsTags aTags,
+                                  @Nullable final AS4StageTimings aTimings)
+  {
+    if (nStartNanos == TIMING_DISABLED)
+      return;
+
+    final long nDurationNanos = Math.max (System.nanoTime () - nStartNanos, 0);
+    if (aTimings != null)
+    {
+      aTimings.addStage (eStage, nDurationNanos);
+      aTimings.onStageEnd (eStage, nStartNanos, nDurationNanos);
+    }
+    final IAS4MetricsRecorder aRecorder = s_aRecorder;
+    if (aRecorder != null)
+      aRecorder.recordStage (eStage, aTags, bSuccess, nDurationNanos);
+  }
+
+  /**
+   * Record the end of a stage only in the provided stage timings, but not in
+   * the metrics recorder. This is used when the recorder is fed on a finer
+   * granularity (like once per HTTP try) than the stage timings.
+   *
+   * @param eStage
+   *        The stage that was timed. May not be <code>null</code>.
+   * @param nStartNanos
+   *        The value returned by {@link #startTiming(AS4StageTimings)}.
+   * @param aTimings
+   *        The stage timings of the current message. May be <code>null</code>
+   *        in which case nothing happens.
+   */
+  public static void recordStageTimings (@Nonnull final EAS4MetricsStage eStage,
+                                         final long nStartNanos,
+                                         @Nullable final AS4StageTimings aTimings)
+  {
+    if (nStartNanos == TIMING_DISABLED || aTimings == null)
+      return;
+
+    final long nDurationNanos = Math.max (System.nanoTime () - nStartNanos, 0);
+    aTimings.addStage (eStage, nDurationNanos);
+    aTimings.onStageEnd (eStage, nStartNanos, nDurationNanos);
+  }
+
+  /**
+   * Record the end of a stage. The tags are only created if a recorder is
+   * installed.
+   *
+   * @param eStage
+   *        The stage that was timed. May not be <code>null</code>.
+   * @param nStartNanos
+   *        The value returned by {@link #startTiming()}.
+   * @param bSuccess
+   *        The outcome of the stage.
+   * @param sProfileID
+   *        The AS4 profile ID. May be <code>null</code>.
+   * @param aPMode
+   *        The PMode in use. May be <code>null</code>.
+   */
+  public static void recordStage (@Nonnull final EAS4MetricsStage eStage,
+                                  final long nStartNanos,
+                                  final boolean bSuccess,
+                                  @Nullable final String sProfileID,
+                                  @Nullable final IPMode aPMode)
+  {
+    recordStage (eStage, nStartNanos, bSuccess, sProfileID, aPMode, null);
+  }
+
+  /**
+   * Record the end of a stage. The tags are only created if a recorder is
+   * installed.
+   *
+   * @param eStage
+   *        The stage that was timed. May not be <code>null</code>.
+   * @param nStartNanos
+   *        The value returned by {@link #startTiming(AS4StageTimings)}.
+   * @param bSuccess
+   *        The outcome of the stage.
+   * @param sProfileID
+   *        The AS4 profile ID. May be <code>null</code>.
+   * @param aPMode
+   *        The PMode in use. May be <code>null</code>.
+   * @param aTimings
+   *        The stage timings of the current message. May be <code>null</code>.
+   */
+  public static void recordStage (@Nonnull final EAS4MetricsStage eStage,
+                                  final long nStartNanos,
+                                  final boolean bSuccess,
+                                  @Nullable final String sProfileID,
+                                  @Nullable final IPMode aPMode,
+                                  @Nullable final AS4StageTimings aTimings)
+  {
+    if (nStartNanos == TIMING_DISABLED)
+      return;
+
+    final long nDurationNanos = Math.max (System.nanoTime () - nStartNanos, 0);
+    if (aTimings != null)
+    {
+      aTimings.addStage (eStage, nDurationNanos);
+      aTimings.onStageEnd (eStage, nStartNanos, nDurationNanos);
+    }
+    final IAS4MetricsRecorder aRecorder = s_aRecorder;
+    if (aRecorder != null)
+      aRecorder.recordStage (eStage, AS4MetricsTags.create (sProfileID, aPMode), bSuccess, nDurationNanos);
+  }
+
+  /**
+   * Increment an event counter.
+   *
+   * @param eCounter
+   *        The counter to increment. May not be <code>null</code>.
+   * @param sProfileID
+   *        The AS4 profile ID. May be <code>null</code>.
+   * @param aPMode
+   *        The PMode in use. May be <code>null</code>.
+   */
+  public static void incrementCounter (@Nonnull final EAS4MetricsCounter eCounter,
+                                       @Nullable final String sProfileID,
+                                       @Nullable final IPMode aPMode)
+  {
+    final IAS4MetricsRecorder aRecorder = s_aRecorder;
+    if (aRecorder != null)
+      aRecorder.incrementCounter (eCounter, AS4MetricsTags.create (sProfileID, aPMode));
+  }
+}
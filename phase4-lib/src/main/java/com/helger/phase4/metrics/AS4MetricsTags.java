@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.metrics;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.equals.EqualsHelper;
+import com.helger.commons.hashcode.HashCodeGenerator;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.phase4.model.pmode.IPMode;
+
+/**
+ * The dimensions of a single metrics measurement. All values are optional,
+ * because not all of them are known in every stage of the processing.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@Immutable
+public final class AS4MetricsTags
+{
+  /** Tags without any value */
+  public static final AS4MetricsTags EMPTY = new AS4MetricsTags (null, null, null);
+
+  private final String m_sProfileID;
+  private final String m_sPModeID;
+  private final String m_sMEP;
+
+  public AS4MetricsTags (@Nullable final String sProfileID,
+                         @Nullable final String sPModeID,
+                         @Nullable final String sMEP)
+  {
+    m_sProfileID = sProfileID;
+    m_sPModeID = sPModeID;
+    m_sMEP = sMEP;
+  }
+
+  /**
+   * @return The ID of the AS4 profile used. May be <code>null</code>.
+   */
+  @Nullable
+  public String getProfileID ()
+  {
+    return m_sProfileID;
+  }
+
+  public boolean hasProfileID ()
+  {
+    return StringHelper.hasText (m_sProfileID);
+  }
+
+  /**
+   * @return The ID of the PMode used. May be <code>null</code>.
+   */
+  @Nullable
+  public String getPModeID ()
+  {
+    return m_sPModeID;
+  }
+
+  public boolean hasPModeID ()
+  {
+    return StringHelper.hasText (m_sPModeID);
+  }
+
+  /**
+   * @return The ID of the message exchange pattern of the PMode. May be
+   *         <code>null</code>.
+   */
+  @Nullable
+  public String getMEP ()
+  {
+    return m_sMEP;
+  }
+
+  public boolean hasMEP ()
+  {
+    return StringHelper.hasText (m_sMEP);
+  }
+
+  @Override
+  public boolean equals (final Object o)
+  {
+    if (o == this)
+      return true;
+    if (o == null || !getClass ().equals (o.getClass ()))
+      return false;
+    final AS4MetricsTags rhs = (AS4MetricsTags) o;
+    return EqualsHelper.equals (m_sProfileID, rhs.m_sProfileID) &&
+           EqualsHelper.equals (m_sPModeID, rhs.m_sPModeID) &&
+           EqualsHelper.equals (m_sMEP, rhs.m_sMEP);
+  }
+
+  @Override
+  public int hashCode ()
+  {
+    return new HashCodeGenerator (this).append (m_sProfileID).append (m_sPModeID).append (m_sMEP).getHashCode ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).appendIfNotNull ("ProfileID", m_sProfileID)
+                                       .appendIfNotNull ("PModeID", m_sPModeID)
+                                       .appendIfNotNull ("MEP", m_sMEP)
+                                       .getToString ();
+  }
+
+  /**
+   * Create the tags from the provided profile ID and PMode.
+   *
+   * @param sProfileID
+   *        The AS4 profile ID. May be <code>null</code>.
+   * @param aPMode
+   *        The PMode to take the PMode ID and the MEP from. May be
+   *        <code>null</code>.
+   * @return Never <code>null</code>.
+   */
+  @Nonnull
+  public static AS4MetricsTags create (@Nullable final String sProfileID, @Nullable final IPMode aPMode)
+  {
+    if (sProfileID == null && aPMode == null)
+      return EMPTY;
+    return new AS4MetricsTags (sProfileID,
+                               aPMode == null ? null : aPMode.getID (),
+                               aPMode == null || aPMode.getMEP () == null ? null : aPMode.getMEP ().getID ());
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event that is emitted for every stage of a message whose allocations
+ * are tracked. It allows to correlate the phase4 stages with the JVM
+ * allocation and GC events in a flight recording.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@Name (AS4StageAllocationEvent.NAME)
+@Label ("phase4 Stage Allocation")
+@Category ("phase4")
+@Description ("Bytes allocated by the current thread during a single phase4 processing stage")
+@StackTrace (false)
+final class AS4StageAllocationEvent extends Event
+{
+  static final String NAME = "com.helger.phase4.StageAllocation";
+
+  @Label ("Stage")
+  String stage;
+
+  @Label ("Stage Duration")
+  @Timespan (Timespan.NANOSECONDS)
+  long stageDuration;
+
+  @Label ("Allocated")
+  @DataAmount
+  long allocated;
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Supplier;
+
+import javax.annotation.CheckForSigned;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.phase4.config.AS4Configuration;
+
+/**
+ * The stage timing trace of a single incoming or outgoing message. It contains
+ * the accumulated monotonic duration of each {@link EAS4MetricsStage} that was
+ * executed for the message. Stages may be nested (e.g. the receipt parsing may
+ * happen while the HTTP response is read), so the sum of all stages may exceed
+ * the elapsed time.<br>
+ * The object only allocates a single lock free array upon construction, so it
+ * can be created for every message.<br>
+ * For sampled messages (see {@link AS4AllocationTracker#isSampleNextMessage()})
+ * additionally the bytes allocated by the processing thread are tracked per
+ * stage, and a JFR event is emitted for each stage.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@ThreadSafe
+public final class AS4StageTimings
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4StageTimings.class);
+  private static final EAS4MetricsStage [] STAGES = EAS4MetricsStage.values ();
+
+  private final long m_nStartNanos;
+  private final AtomicLongArray m_aStageNanos = new AtomicLongArray (STAGES.length);
+  // Bit mask of the recorded stage ordinals - there are less than 32 stages
+  private final AtomicInteger m_aRecordedStages = new AtomicInteger (0);
+  // Only present if allocations are tracked
+  private final AtomicLongArray m_aStageAllocatedBytes;
+  // Stage start token to {thread ID, allocated bytes at start}
+  private final Map <Long, long []> m_aOpenAllocations;
+
+  /**
+   * Constructor. Allocations are tracked if the current message is sampled
+   * according to the configuration.
+   */
+  public AS4StageTimings ()
+  {
+    this (AS4AllocationTracker.isSampleNextMessage ());
+  }
+
+  /**
+   * Constructor
+   *
+   * @param bTrackAllocations
+   *        <code>true</code> to track the allocated bytes per stage. This is
+   *        ignored if the JVM does not support it.
+   */
+  public AS4StageTimings (final boolean bTrackAllocations)
+  {
+    m_nStartNanos = System.nanoTime ();
+    if (bTrackAllocations && AS4AllocationTracker.isSupported ())
+    {
+      m_aStageAllocatedBytes = new AtomicLongArray (STAGES.length);
+      m_aOpenAllocations = new ConcurrentHashMap <> ();
+    }
+    else
+    {
+      m_aStageAllocatedBytes = null;
+      m_aOpenAllocations = null;
+    }
+  }
+
+  /**
+   * @return <code>true</code> if the allocated bytes per stage are tracked.
+   */
+  public boolean isTrackAllocations ()
+  {
+    return m_aStageAllocatedBytes != null;
+  }
+
+  /**
+   * @return The {@link System#nanoTime()} when this object was created.
+   */
+  public long getStartNanos ()
+  {
+    return m_nStartNanos;
+  }
+
+  /**
+   * @return The nanoseconds elapsed since this object was created.
+   */
+  @Nonnegative
+  public long getElapsedNanos ()
+  {
+    return Math.max (System.nanoTime () - m_nStartNanos, 0);
+  }
+
+  /**
+   * @return The milliseconds elapsed since this object was created.
+   */
+  @Nonnegative
+  public long getElapsedMillis ()
+  {
+    return TimeUnit.NANOSECONDS.toMillis (getElapsedNanos ());
+  }
+
+  /**
+   * Add the duration of a stage. If the stage was already recorded, the
+   * duration is added to the existing one.
+   *
+   * @param eStage
+   *        The stage. May not be <code>null</code>.
+   * @param nDurationNanos
+   *        The duration in nanoseconds. Must be &ge; 0.
+   */
+  public void addStage (@Nonnull final EAS4MetricsStage eStage, @Nonnegative final long nDurationNanos)
+  {
+    ValueEnforcer.notNull (eStage, "Stage");
+    ValueEnforcer.isGE0 (nDurationNanos, "DurationNanos");
+
+    final int nIndex = eStage.ordinal ();
+    // Add the duration before marking the stage as recorded
+    m_aStageNanos.addAndGet (nIndex, nDurationNanos);
+    final int nMask = 1 << nIndex;
+    m_aRecordedStages.getAndUpdate (x -> x | nMask);
+  }
+
+  /**
+   * Remember the bytes allocated by the current thread at the start of a
+   * stage. Does nothing if allocations are not tracked.
+   *
+   * @param nStartToken
+   *        The value returned by
+   *        {@link AS4MetricsManager#startTiming(AS4StageTimings)}.
+   */
+  void onStageStart (final long nStartToken)
+  {
+    if (m_aOpenAllocations == null)
+      return;
+
+    final long [] aStart = { Thread.currentThread ().getId (), AS4AllocationTracker.getCurrentThreadAllocatedBytes () };
+    m_aOpenAllocations.put (Long.valueOf (nStartToken), aStart);
+  }
+
+  /**
+   * Add the bytes allocated by the current thread since the matching
+   * {@link #onStageStart(long)} call to the provided stage. Does nothing if
+   * allocations are not tracked, or if the stage was started in a different
+   * thread.
+   *
+   * @param eStage
+   *        The stage. May not be <code>null</code>.
+   * @param nStartToken
+   *        The value passed to {@link #onStageStart(long)}.
+   * @param nDurationNanos
+   *        The duration of the stage in nanoseconds.
+   */
+  void onStageEnd (@Nonnull final EAS4MetricsStage eStage, final long nStartToken, final long nDurationNanos)
+  {
+    if (m_aOpenAllocations == null)
+      return;
+
+    final long nAllocatedNow = AS4AllocationTracker.getCurrentThreadAllocatedBytes ();
+    final long [] aStart = m_aOpenAllocations.remove (Long.valueOf (nStartToken));
+    if (aStart == null || aStart[0] != Thread.currentThread ().getId ())
+      return;
+
+    final long nAllocated = Math.max (nAllocatedNow - aStart[1], 0);
+    m_aStageAllocatedBytes.addAndGet (eStage.ordinal (), nAllocated);
+
+    final AS4StageAllocationEvent aEvent = new AS4StageAllocationEvent ();
+    if (aEvent.shouldCommit ())
+    {
+      aEvent.stage = eStage.getID ();
+      aEvent.stageDuration = nDurationNanos;
+      aEvent.allocated = nAllocated;
+      aEvent.commit ();
+    }
+  }
+
+  /**
+   * @param eStage
+   *        The stage to check. May not be <code>null</code>.
+   * @return <code>true</code> if the stage was recorded at least once.
+   */
+  public boolean hasStage (@Nonnull final EAS4MetricsStage eStage)
+  {
+    return (m_aRecordedStages.get () & (1 << eStage.ordinal ())) != 0;
+  }
+
+  /**
+   * @return <code>true</code> if no stage was recorded so far.
+   */
+  public boolean isEmpty ()
+  {
+    return m_aRecordedStages.get () == 0;
+  }
+
+  /**
+   * @param eStage
+   *        The stage to query. May not be <code>null</code>.
+   * @return The accumulated duration of the stage in nanoseconds or -1 if the
+   *         stage was not recorded.
+   */
+  @CheckForSigned
+  public long getStageNanos (@Nonnull final EAS4MetricsStage eStage)
+  {
+    return hasStage (eStage) ? m_aStageNanos.get (eStage.ordinal ()) : -1;
+  }
+
+  /**
+   * @param eStage
+   *        The stage to query. May not be <code>null</code>.
+   * @return The accumulated bytes allocated in the stage or -1 if the stage
+   *         was not recorded or allocations are not tracked.
+   */
+  @CheckForSigned
+  public long getStageAllocatedBytes (@Nonnull final EAS4MetricsStage eStage)
+  {
+    return m_aStageAllocatedBytes != null && hasStage (eStage) ? m_aStageAllocatedBytes.get (eStage.ordinal ()) : -1;
+  }
+
+  /**
+   * Invoke the provided consumer for each recorded stage, in the order of
+   * {@link EAS4MetricsStage}.
+   *
+   * @param aConsumer
+   *        The consumer to invoke with the stage and its duration in
+   *        nanoseconds. May not be <code>null</code>.
+   */
+  public void forEachStage (@Nonnull final ObjLongConsumer <EAS4MetricsStage> aConsumer)
+  {
+    ValueEnforcer.notNull (aConsumer, "Consumer");
+
+    final int nRecorded = m_aRecordedStages.get ();
+    for (final EAS4MetricsStage eStage : STAGES)
+      if ((nRecorded & (1 << eStage.ordinal ())) != 0)
+        aConsumer.accept (eStage, m_aStageNanos.get (eStage.ordinal ()));
+  }
+
+  /**
+   * @return A compact human readable representation of all recorded stages in
+   *         milliseconds, e.g. for logging. If allocations are tracked, the
+   *         allocated bytes are appended to each stage. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public String getAsString ()
+  {
+    final boolean bTrackAllocations = isTrackAllocations ();
+    final StringBuilder aSB = new StringBuilder ();
+    forEachStage ( (eStage, nNanos) -> {
+      if (aSB.length () > 0)
+        aSB.append (", ");
+      aSB.append (eStage.getID ()).append ('=').append (_getMillisString (nNanos)).append ("ms");
+      if (bTrackAllocations)
+        aSB.append ('/').append (getStageAllocatedBytes (eStage)).append ('B');
+    });
+    if (aSB.length () > 0)
+      aSB.append ("; ");
+    return aSB.append ("elapsed=").append (_getMillisString (getElapsedNanos ())).append ("ms").toString ();
+  }
+
+  @Nonnull
+  private static String _getMillisString (final long nNanos)
+  {
+    // Three fraction digits without locale dependent formatting
+    final long nMicros = TimeUnit.NANOSECONDS.toMicros (nNanos);
+    final long nFraction = nMicros % 1000;
+    return (nMicros / 1000) + "." + (nFraction < 10 ? "00" : nFraction < 100 ? "0" : "") + nFraction;
+  }
+
+  /**
+   * Log the stage timings as a warning, if the elapsed time exceeds the
+   * configured threshold.
+   *
+   * @param aContext
+   *        The supplier for the message context (like the message ID) to be
+   *        logged. Only invoked if logging happens. May not be
+   *        <code>null</code>.
+   * @return <code>true</code> if the message was logged, <code>false</code> if
+   *         not.
+   * @see AS4Configuration#getSlowMessageThresholdMillis()
+   */
+  public boolean logIfSlow (@Nonnull final Supplier <String> aContext)
+  {
+    final long nThresholdMillis = AS4Configuration.getSlowMessageThresholdMillis ();
+    if (nThresholdMillis <= 0)
+      return false;
+
+    final long nElapsedMillis = getElapsedMillis ();
+    if (nElapsedMillis < nThresholdMillis)
+      return false;
+
+    LOGGER.warn ("Slow AS4 message " +
+                 aContext.get () +
+                 " took " +
+                 nElapsedMillis +
+                 " ms (threshold " +
+                 nThresholdMillis +
+                 " ms): " +
+                 getAsString ());
+    return true;
+  }
+
+  /**
+   * Log the stage timings including the allocated bytes per stage, if
+   * allocations are tracked for this message.
+   *
+   * @param aContext
+   *        The supplier for the message context (like the message ID) to be
+   *        logged. Only invoked if logging happens. May not be
+   *        <code>null</code>.
+   * @return <code>true</code> if the message was logged, <code>false</code> if
+   *         not.
+   * @see AS4Configuration#getAllocationSampleRate()
+   */
+  public boolean logIfAllocationsTracked (@Nonnull final Supplier <String> aContext)
+  {
+    if (!isTrackAllocations ())
+      return false;
+
+    LOGGER.info ("Allocations of AS4 message " + aContext.get () + ": " + getAsString ());
+    return true;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("Timings", getAsString ()).getToString ();
+  }
+}
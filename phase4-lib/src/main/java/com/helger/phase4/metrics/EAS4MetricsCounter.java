@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.metrics;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.lang.EnumHelper;
+
+/**
+ * The counted events of the AS4 processing pipeline, as reported to an
+ * {@link IAS4MetricsRecorder}.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+public enum EAS4MetricsCounter implements IHasID <String>
+{
+  /** An incoming message was rejected as a duplicate */
+  INCOMING_DUPLICATE ("incoming.duplicate"),
+  /** An outgoing HTTP transmission was retried */
+  OUTGOING_RETRY ("outgoing.retry");
+
+  private final String m_sID;
+
+  EAS4MetricsCounter (@Nonnull @Nonempty final String sID)
+  {
+    m_sID = sID;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  @Nullable
+  public static EAS4MetricsCounter getFromIDOrNull (@Nullable final String sID)
+  {
+    return EnumHelper.getFromIDOrNull (EAS4MetricsCounter.class, sID);
+  }
+}
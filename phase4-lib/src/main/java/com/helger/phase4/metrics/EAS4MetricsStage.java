@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.metrics;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.lang.EnumHelper;
+
+/**
+ * The timed stages of the AS4 processing pipeline, as reported to an
+ * {@link IAS4MetricsRecorder}.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+public enum EAS4MetricsStage implements IHasID <String>
+{
+  /** Parsing of the incoming MIME message or plain SOAP document */
+  INCOMING_MIME_PARSE ("incoming.mime.parse", true),
+  /** WSS4J signature verification and decryption of an incoming message */
+  INCOMING_SECURITY ("incoming.security", true),
+  /** Resolution of the PMode of an incoming message */
+  INCOMING_PMODE_RESOLUTION ("incoming.pmode.resolution", true),
+  /** Duplicate check of an incoming message */
+  INCOMING_DUPLICATE_CHECK ("incoming.duplicate.check", true),
+  /** Profile specific validation of an incoming message */
+  INCOMING_PROFILE_VALIDATION ("incoming.profile.validation", true),
+  /** Invocation of the message processor SPIs */
+  INCOMING_SPI_PROCESSING ("incoming.spi.processing", true),
+  /** Signing of the synchronous response message */
+  INCOMING_RESPONSE_SIGNING ("incoming.response.signing", true),
+  /** Serializing and writing the synchronous response message */
+  INCOMING_RESPONSE_WRITE ("incoming.response.write", true),
+  /** Building of an outgoing message, including signing and encryption */
+  OUTGOING_BUILD ("outgoing.build", false),
+  /** Signing of an outgoing message */
+  OUTGOING_SIGN ("outgoing.sign", false),
+  /** Encryption of an outgoing message */
+  OUTGOING_ENCRYPT ("outgoing.encrypt", false),
+  /** A single HTTP transmission attempt of an outgoing message */
+  OUTGOING_HTTP ("outgoing.http", false),
+  /** Parsing of the synchronous response (e.g. receipt) */
+  OUTGOING_RECEIPT_PARSE ("outgoing.receipt.parse", false);
+
+  private final String m_sID;
+  private final boolean m_bIncoming;
+
+  EAS4MetricsStage (@Nonnull @Nonempty final String sID, final boolean bIncoming)
+  {
+    m_sID = sID;
+    m_bIncoming = bIncoming;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  /**
+   * @return <code>true</code> if this stage is part of the incoming (receiving)
+   *         pipeline, <code>false</code> if it is part of the outgoing
+   *         (sending) pipeline.
+   */
+  public boolean isIncoming ()
+  {
+    return m_bIncoming;
+  }
+
+  @Nullable
+  public static EAS4MetricsStage getFromIDOrNull (@Nullable final String sID)
+  {
+    return EnumHelper.getFromIDOrNull (EAS4MetricsStage.class, sID);
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.metrics;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * Interface for recording the metrics of the AS4 processing pipeline. An
+ * implementation can be installed via
+ * {@link AS4MetricsManager#setRecorder(IAS4MetricsRecorder)}. Implementations
+ * must be thread-safe, as they are invoked concurrently from all processing
+ * threads, and they must be fast, because they are invoked inline.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+public interface IAS4MetricsRecorder
+{
+  /**
+   * Record the duration of a single pipeline stage.
+   *
+   * @param eStage
+   *        The stage that was executed. Never <code>null</code>.
+   * @param aTags
+   *        The tags of the measurement. Never <code>null</code>.
+   * @param bSuccess
+   *        <code>true</code> if the stage finished successfully,
+   *        <code>false</code> if not.
+   * @param nDurationNanos
+   *        The duration of the stage in nanoseconds.
+   */
+  void recordStage (@Nonnull EAS4MetricsStage eStage,
+                    @Nonnull AS4MetricsTags aTags,
+                    boolean bSuccess,
+                    @Nonnegative long nDurationNanos);
+
+  /**
+   * Increment an event counter.
+   *
+   * @param eCounter
+   *        The counter to increment. Never <code>null</code>.
+   * @param aTags
+   *        The tags of the measurement. Never <code>null</code>.
+   */
+  void incrementCounter (@Nonnull EAS4MetricsCounter eCounter, @Nonnull AS4MetricsTags aTags);
+}
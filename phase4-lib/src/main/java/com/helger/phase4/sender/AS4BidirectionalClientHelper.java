@@ -17,11 +17,14 @@
 package com.helger.phase4.sender;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Locale;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.annotation.WillClose;
 
+import org.apache.hc.core5.http.ClassicHttpResponse;
 import org.apache.hc.core5.http.HttpEntity;
 import org.apache.hc.core5.http.HttpResponse;
 import org.apache.hc.core5.http.io.HttpClientResponseHandler;
@@ -30,6 +33,8 @@ import org.apache.wss4j.common.ext.WSSecurityException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingPushbackInputStream;
 import com.helger.commons.wrapper.Wrapper;
 import com.helger.httpclient.response.ResponseHandlerHttpEntity;
 import com.helger.phase4.attachment.IAS4IncomingAttachmentFactory;
@@ -48,11 +53,11 @@ import com.helger.phase4.dump.IAS4OutgoingDumper;
 import com.helger.phase4.ebms3header.Ebms3Property;
 import com.helger.phase4.ebms3header.Ebms3SignalMessage;
 import com.helger.phase4.ebms3header.Ebms3UserMessage;
-import com.helger.phase4.messaging.IAS4IncomingMessageMetadata;
 import com.helger.phase4.model.pmode.resolve.IPModeResolver;
 import com.helger.phase4.servlet.AS4IncomingHandler;
 import com.helger.phase4.servlet.AS4IncomingMessageMetadata;
 import com.helger.phase4.servlet.IAS4IncomingProfileSelector;
+import com.helger.phase4.servlet.IAS4MessageState;
 import com.helger.phase4.util.Phase4Exception;
 
 import jakarta.mail.MessagingException;
@@ -69,6 +74,92 @@ public final class AS4BidirectionalClientHelper
   private AS4BidirectionalClientHelper ()
   {}
 
+  /**
+   * Parses the HTTP response of an AS4 message.
+   *
+   * @param <T>
+   *        The parsed type
+   */
+  @FunctionalInterface
+  private interface IResponseParser <T>
+  {
+    @Nullable
+    T parse (@Nonnull HttpResponse aHttpResponse, @Nonnull @WillClose InputStream aResponseIS) throws Phase4Exception;
+  }
+
+  /**
+   * A response handler that parses the AS4 response directly from the HTTP
+   * entity while it is read, so that it is never held in memory as a whole.
+   * Processing errors are remembered and not thrown, to avoid that they are
+   * considered a transport error and trigger a retry.
+   *
+   * @param <T>
+   *        The parsed type
+   */
+  private static final class StreamingResponseHandler <T> implements HttpClientResponseHandler <T>
+  {
+    private final IResponseParser <T> m_aParser;
+    private boolean m_bHasContent = false;
+    private Phase4Exception m_aParseException;
+
+    StreamingResponseHandler (@Nonnull final IResponseParser <T> aParser)
+    {
+      m_aParser = aParser;
+    }
+
+    @Nullable
+    public T handleResponse (@Nonnull final ClassicHttpResponse aHttpResponse) throws IOException
+    {
+      // Reset the state of a previous attempt
+      m_bHasContent = false;
+      m_aParseException = null;
+
+      // May throw an ExtendedHttpResponseException
+      final HttpEntity aEntity = ResponseHandlerHttpEntity.INSTANCE.handleResponse (aHttpResponse);
+      if (aEntity == null || aEntity.getContentLength () == 0)
+        return null;
+
+      InputStream aContentIS = aEntity.getContent ();
+      if (aContentIS == null)
+        return null;
+      if (aEntity.getContentLength () < 0)
+      {
+        // Unknown length (e.g. chunked) - an empty body is no parse error
+        final NonBlockingPushbackInputStream aPushbackIS = new NonBlockingPushbackInputStream (aContentIS);
+        final int nFirstByte = aPushbackIS.read ();
+        if (nFirstByte < 0)
+          return null;
+        aPushbackIS.unread (nFirstByte);
+        aContentIS = aPushbackIS;
+      }
+
+      m_bHasContent = true;
+      try
+      {
+        return m_aParser.parse (aHttpResponse, aContentIS);
+      }
+      catch (final Phase4Exception ex)
+      {
+        // Connection problems while reading are still transport errors
+        if (ex.getCause () instanceof IOException)
+          throw (IOException) ex.getCause ();
+        m_aParseException = ex;
+        return null;
+      }
+    }
+
+    boolean hasContent ()
+    {
+      return m_bHasContent;
+    }
+
+    void rethrowParseException () throws Phase4Exception
+    {
+      if (m_aParseException != null)
+        throw m_aParseException;
+    }
+  }
+
   public static void sendAS4UserMessageAndReceiveAS4SignalMessage (@Nonnull final IAS4CryptoFactory aCryptoFactory,
                                                                    @Nonnull final IPModeResolver aPModeResolver,
                                                                    @Nonnull final IAS4IncomingAttachmentFactory aIAF,
@@ -118,55 +209,103 @@ public final class AS4BidirectionalClientHelper
       }
     }
 
-    final Wrapper <HttpResponse> aWrappedResponse = new Wrapper <> ();
-    final HttpClientResponseHandler <byte []> aResponseHdl = aHttpResponse -> {
-      // throws an ExtendedHttpResponseException on exception
-      final HttpEntity aEntity = ResponseHandlerHttpEntity.INSTANCE.handleResponse (aHttpResponse);
-      if (aEntity == null)
-        return null;
-      aWrappedResponse.set (aHttpResponse);
-      return EntityUtils.toByteArray (aEntity);
-    };
-
-    final AS4ClientSentMessage <byte []> aResponseEntity = aClientUserMsg.sendMessageWithRetries (sURL,
-                                                                                                  aResponseHdl,
-                                                                                                  aBuildMessageCallback,
-                                                                                                  aOutgoingDumper,
-                                                                                                  aRetryCallback);
-    final String sRequestMessageID = aResponseEntity.getMessageID ();
-    LOGGER.info ("Successfully transmitted AS4 UserMessage with message ID '" +
-                 sRequestMessageID +
-                 "' to '" +
-                 sURL +
-                 "'");
-
-    if (aResponseConsumer != null)
-      aResponseConsumer.handleResponse (aResponseEntity);
+    // Create the message ID in advance, as it is needed for parsing
+    final String sRequestMessageID = aClientUserMsg.createMessageID ();
+    final AS4IncomingMessageMetadata aMessageMetadata = AS4IncomingMessageMetadata.createForResponse (sRequestMessageID)
+                                                                                  .setRemoteAddr (sURL);
+    // Record the response parsing into the trace of the sent message
+    if (aClientUserMsg.getStageTimings () != null)
+      aMessageMetadata.setStageTimings (aClientUserMsg.getStageTimings ());
 
-    // Try interpret result as SignalMessage
-    if (aResponseEntity.hasResponse () && aResponseEntity.getResponse ().length > 0)
+    final Ebms3SignalMessage aSignalMessage;
+    if (aResponseConsumer == null)
     {
-      final IAS4IncomingMessageMetadata aMessageMetadata = AS4IncomingMessageMetadata.createForResponse (sRequestMessageID)
-                                                                                     .setRemoteAddr (sURL);
-
-      // Read response as EBMS3 Signal Message
+      // Parse the response while it is read
       // Read it in any case to ensure signature validation etc. happens
-      final Ebms3SignalMessage aSignalMessage = AS4IncomingHandler.parseSignalMessage (aCryptoFactory,
-                                                                                       aPModeResolver,
-                                                                                       aIAF,
-                                                                                       aIncomingProfileSelector,
-                                                                                       aClientUserMsg.getAS4ResourceHelper (),
-                                                                                       aClientUserMsg.getPMode (),
-                                                                                       aLocale,
-                                                                                       aMessageMetadata,
-                                                                                       aWrappedResponse.get (),
-                                                                                       aResponseEntity.getResponse (),
-                                                                                       aIncomingDumper);
-      if (aSignalMessage != null && aSignalMsgConsumer != null)
-        aSignalMsgConsumer.handleSignalMessage (aSignalMessage);
+      final StreamingResponseHandler <Ebms3SignalMessage> aResponseHdl = new StreamingResponseHandler <> ( (aHttpResponse,
+                                                                                                            aResponseIS) -> {
+        return AS4IncomingHandler.parseSignalMessage (aCryptoFactory,
+                                                      aPModeResolver,
+                                                      aIAF,
+                                                      aIncomingProfileSelector,
+                                                      aClientUserMsg.getAS4ResourceHelper (),
+                                                      aClientUserMsg.getPMode (),
+                                                      aLocale,
+                                                      aMessageMetadata,
+                                                      aHttpResponse,
+                                                      aResponseIS,
+                                                      aIncomingDumper);
+      });
+      final AS4ClientSentMessage <Ebms3SignalMessage> aResponseEntity = aClientUserMsg.sendMessageWithRetries (sRequestMessageID,
+                                                                                                               sURL,
+                                                                                                               aResponseHdl,
+                                                                                                               aBuildMessageCallback,
+                                                                                                               aOutgoingDumper,
+                                                                                                               aRetryCallback);
+      LOGGER.info ("Successfully transmitted AS4 UserMessage with message ID '" +
+                   aResponseEntity.getMessageID () +
+                   "' to '" +
+                   sURL +
+                   "'");
+
+      if (!aResponseHdl.hasContent ())
+        LOGGER.info ("AS4 ResponseEntity is empty");
+      aResponseHdl.rethrowParseException ();
+      aSignalMessage = aResponseEntity.getResponse ();
     }
     else
-      LOGGER.info ("AS4 ResponseEntity is empty");
+    {
+      // The raw response consumer needs the full response in memory
+      final Wrapper <HttpResponse> aWrappedResponse = new Wrapper <> ();
+      final HttpClientResponseHandler <byte []> aResponseHdl = aHttpResponse -> {
+        // throws an ExtendedHttpResponseException on exception
+        final HttpEntity aEntity = ResponseHandlerHttpEntity.INSTANCE.handleResponse (aHttpResponse);
+        if (aEntity == null)
+          return null;
+        aWrappedResponse.set (aHttpResponse);
+        return EntityUtils.toByteArray (aEntity);
+      };
+
+      final AS4ClientSentMessage <byte []> aResponseEntity = aClientUserMsg.sendMessageWithRetries (sRequestMessageID,
+                                                                                                    sURL,
+                                                                                                    aResponseHdl,
+                                                                                                    aBuildMessageCallback,
+                                                                                                    aOutgoingDumper,
+                                                                                                    aRetryCallback);
+      LOGGER.info ("Successfully transmitted AS4 UserMessage with message ID '" +
+                   aResponseEntity.getMessageID () +
+                   "' to '" +
+                   sURL +
+                   "'");
+
+      aResponseConsumer.handleResponse (aResponseEntity);
+
+      // Try interpret result as SignalMessage
+      if (aResponseEntity.hasResponse () && aResponseEntity.getResponse ().length > 0)
+      {
+        // Read response as EBMS3 Signal Message
+        // Read it in any case to ensure signature validation etc. happens
+        aSignalMessage = AS4IncomingHandler.parseSignalMessage (aCryptoFactory,
+                                                                aPModeResolver,
+                                                                aIAF,
+                                                                aIncomingProfileSelector,
+                                                                aClientUserMsg.getAS4ResourceHelper (),
+                                                                aClientUserMsg.getPMode (),
+                                                                aLocale,
+                                                                aMessageMetadata,
+                                                                aWrappedResponse.get (),
+                                                                aResponseEntity.getResponse (),
+                                                                aIncomingDumper);
+      }
+      else
+      {
+        LOGGER.info ("AS4 ResponseEntity is empty");
+        aSignalMessage = null;
+      }
+    }
+
+    if (aSignalMessage != null && aSignalMsgConsumer != null)
+      aSignalMsgConsumer.handleSignalMessage (aSignalMessage);
   }
 
   public static void sendAS4PullRequestAndReceiveAS4UserMessage (@Nonnull final IAS4CryptoFactory aCryptoFactory,
@@ -185,6 +324,85 @@ public final class AS4BidirectionalClientHelper
                                                                                                                            Phase4Exception,
                                                                                                                            WSSecurityException,
                                                                                                                            MessagingException
+  {
+    sendAS4PullRequestAndReceiveAS4UserMessage (aCryptoFactory,
+                                                aPModeResolver,
+                                                aIAF,
+                                                aIncomingProfileSelector,
+                                                aClientPullRequest,
+                                                aLocale,
+                                                sURL,
+                                                aBuildMessageCallback,
+                                                aOutgoingDumper,
+                                                aIncomingDumper,
+                                                aRetryCallback,
+                                                aResponseConsumer,
+                                                aUserMsgConsumer,
+                                                (IAS4SignalMessageConsumer) null);
+  }
+
+  /**
+   * Send a pull request and handle the response. The response may either
+   * contain a user message or a signal message (e.g. an error, if the MPC is
+   * empty).
+   *
+   * @param aCryptoFactory
+   *        Crypto factory to use. May not be <code>null</code>.
+   * @param aPModeResolver
+   *        PMode resolver to use. May not be <code>null</code>.
+   * @param aIAF
+   *        The attachment factory to use. May not be <code>null</code>.
+   * @param aIncomingProfileSelector
+   *        The AS4 profile selector to use. May not be <code>null</code>.
+   * @param aClientPullRequest
+   *        The pull request to send. May not be <code>null</code>.
+   * @param aLocale
+   *        The locale to use. May not be <code>null</code>.
+   * @param sURL
+   *        The URL to send to. May not be <code>null</code>.
+   * @param aBuildMessageCallback
+   *        Optional build message callback. May be <code>null</code>.
+   * @param aOutgoingDumper
+   *        Optional outgoing dumper. May be <code>null</code>.
+   * @param aIncomingDumper
+   *        Optional incoming dumper. May be <code>null</code>.
+   * @param aRetryCallback
+   *        Optional retry callback. May be <code>null</code>.
+   * @param aResponseConsumer
+   *        Optional raw response consumer. May be <code>null</code>.
+   * @param aUserMsgConsumer
+   *        Optional consumer for a returned user message. May be
+   *        <code>null</code>.
+   * @param aSignalMsgConsumer
+   *        Optional consumer for a returned signal message. May be
+   *        <code>null</code>.
+   * @throws IOException
+   *         In case of an IO error
+   * @throws Phase4Exception
+   *         In case of a processing error
+   * @throws WSSecurityException
+   *         In case of a security error
+   * @throws MessagingException
+   *         In case of a MIME error
+   * @since 2.1.3
+   */
+  public static void sendAS4PullRequestAndReceiveAS4UserMessage (@Nonnull final IAS4CryptoFactory aCryptoFactory,
+                                                                 @Nonnull final IPModeResolver aPModeResolver,
+                                                                 @Nonnull final IAS4IncomingAttachmentFactory aIAF,
+                                                                 @Nonnull final IAS4IncomingProfileSelector aIncomingProfileSelector,
+                                                                 @Nonnull final AS4ClientPullRequestMessage aClientPullRequest,
+                                                                 @Nonnull final Locale aLocale,
+                                                                 @Nonnull final String sURL,
+                                                                 @Nullable final IAS4ClientBuildMessageCallback aBuildMessageCallback,
+                                                                 @Nullable final IAS4OutgoingDumper aOutgoingDumper,
+                                                                 @Nullable final IAS4IncomingDumper aIncomingDumper,
+                                                                 @Nullable final IAS4RetryCallback aRetryCallback,
+                                                                 @Nullable final IAS4RawResponseConsumer aResponseConsumer,
+                                                                 @Nullable final IAS4UserMessageConsumer aUserMsgConsumer,
+                                                                 @Nullable final IAS4SignalMessageConsumer aSignalMsgConsumer) throws IOException,
+                                                                                                                           Phase4Exception,
+                                                                                                                           WSSecurityException,
+                                                                                                                           MessagingException
   {
     LOGGER.info ("Sending AS4 PullRequest to '" +
                  sURL +
@@ -195,53 +413,118 @@ public final class AS4BidirectionalClientHelper
     if (LOGGER.isDebugEnabled ())
       LOGGER.debug ("  MPC = '" + aClientPullRequest.getMPC () + "'");
 
-    final Wrapper <HttpResponse> aWrappedResponse = new Wrapper <> ();
-    final HttpClientResponseHandler <byte []> aResponseHdl = aHttpResponse -> {
-      // May throw an ExtendedHttpResponseException
-      final HttpEntity aEntity = ResponseHandlerHttpEntity.INSTANCE.handleResponse (aHttpResponse);
-      if (aEntity == null)
-        return null;
-      aWrappedResponse.set (aHttpResponse);
-      return EntityUtils.toByteArray (aEntity);
-    };
-    final AS4ClientSentMessage <byte []> aResponseEntity = aClientPullRequest.sendMessageWithRetries (sURL,
-                                                                                                      aResponseHdl,
-                                                                                                      aBuildMessageCallback,
-                                                                                                      aOutgoingDumper,
-                                                                                                      aRetryCallback);
-    final String sRequestMessageID = aResponseEntity.getMessageID ();
-    LOGGER.info ("Successfully transmitted AS4 PullRequest with message ID '" +
-                 sRequestMessageID +
-                 "' to '" +
-                 sURL +
-                 "'");
-
-    if (aResponseConsumer != null)
-      aResponseConsumer.handleResponse (aResponseEntity);
+    // Create the message ID in advance, as it is needed for parsing
+    final String sRequestMessageID = aClientPullRequest.createMessageID ();
+    final AS4IncomingMessageMetadata aMessageMetadata = AS4IncomingMessageMetadata.createForResponse (sRequestMessageID)
+                                                                                  .setRemoteAddr (sURL);
+    // Record the response parsing into the trace of the sent message
+    if (aClientPullRequest.getStageTimings () != null)
+      aMessageMetadata.setStageTimings (aClientPullRequest.getStageTimings ());
 
-    // Try interpret result as SignalMessage
-    if (aResponseEntity.hasResponse () && aResponseEntity.getResponse ().length > 0)
+    final IAS4MessageState aState;
+    if (aResponseConsumer == null)
     {
-      final IAS4IncomingMessageMetadata aMessageMetadata = AS4IncomingMessageMetadata.createForResponse (sRequestMessageID)
-                                                                                     .setRemoteAddr (sURL);
-
-      // Read response as EBMS3 User Message
+      // Parse the response while it is read, so that attachments are
+      // written to disk as they arrive
       // Read it in any case to ensure signature validation etc. happens
-      final Ebms3UserMessage aUserMessage = AS4IncomingHandler.parseUserMessage (aCryptoFactory,
-                                                                                 aPModeResolver,
-                                                                                 aIAF,
-                                                                                 aIncomingProfileSelector,
-                                                                                 aClientPullRequest.getAS4ResourceHelper (),
-                                                                                 null,
-                                                                                 aLocale,
-                                                                                 aMessageMetadata,
-                                                                                 aWrappedResponse.get (),
-                                                                                 aResponseEntity.getResponse (),
-                                                                                 aIncomingDumper);
-      if (aUserMessage != null && aUserMsgConsumer != null)
-        aUserMsgConsumer.handleUserMessage (aUserMessage);
+      final StreamingResponseHandler <IAS4MessageState> aResponseHdl = new StreamingResponseHandler <> ( (aHttpResponse,
+                                                                                                          aResponseIS) -> {
+        return AS4IncomingHandler.parseUserOrSignalMessage (aCryptoFactory,
+                                                            aPModeResolver,
+                                                            aIAF,
+                                                            aIncomingProfileSelector,
+                                                            aClientPullRequest.getAS4ResourceHelper (),
+                                                            null,
+                                                            aLocale,
+                                                            aMessageMetadata,
+                                                            aHttpResponse,
+                                                            aResponseIS,
+                                                            aIncomingDumper);
+      });
+      final AS4ClientSentMessage <IAS4MessageState> aResponseEntity = aClientPullRequest.sendMessageWithRetries (sRequestMessageID,
+                                                                                                                 sURL,
+                                                                                                                 aResponseHdl,
+                                                                                                                 aBuildMessageCallback,
+                                                                                                                 aOutgoingDumper,
+                                                                                                                 aRetryCallback);
+      LOGGER.info ("Successfully transmitted AS4 PullRequest with message ID '" +
+                   aResponseEntity.getMessageID () +
+                   "' to '" +
+                   sURL +
+                   "'");
+
+      if (!aResponseHdl.hasContent ())
+        LOGGER.info ("AS4 ResponseEntity is empty");
+      aResponseHdl.rethrowParseException ();
+      aState = aResponseEntity.getResponse ();
     }
     else
-      LOGGER.info ("AS4 ResponseEntity is empty");
+    {
+      // The raw response consumer needs the full response in memory
+      final Wrapper <HttpResponse> aWrappedResponse = new Wrapper <> ();
+      final HttpClientResponseHandler <byte []> aResponseHdl = aHttpResponse -> {
+        // May throw an ExtendedHttpResponseException
+        final HttpEntity aEntity = ResponseHandlerHttpEntity.INSTANCE.handleResponse (aHttpResponse);
+        if (aEntity == null)
+          return null;
+        aWrappedResponse.set (aHttpResponse);
+        return EntityUtils.toByteArray (aEntity);
+      };
+      final AS4ClientSentMessage <byte []> aResponseEntity = aClientPullRequest.sendMessageWithRetries (sRequestMessageID,
+                                                                                                        sURL,
+                                                                                                        aResponseHdl,
+                                                                                                        aBuildMessageCallback,
+                                                                                                        aOutgoingDumper,
+                                                                                                        aRetryCallback);
+      LOGGER.info ("Successfully transmitted AS4 PullRequest with message ID '" +
+                   aResponseEntity.getMessageID () +
+                   "' to '" +
+                   sURL +
+                   "'");
+
+      aResponseConsumer.handleResponse (aResponseEntity);
+
+      // Try interpret result as UserMessage
+      if (aResponseEntity.hasResponse () && aResponseEntity.getResponse ().length > 0)
+      {
+        // Read response as EBMS3 User Message or Signal Message
+        // Read it in any case to ensure signature validation etc. happens
+        aState = AS4IncomingHandler.parseUserOrSignalMessage (aCryptoFactory,
+                                                              aPModeResolver,
+                                                              aIAF,
+                                                              aIncomingProfileSelector,
+                                                              aClientPullRequest.getAS4ResourceHelper (),
+                                                              null,
+                                                              aLocale,
+                                                              aMessageMetadata,
+                                                              aWrappedResponse.get (),
+                                                              new NonBlockingByteArrayInputStream (aResponseEntity.getResponse ()),
+                                                              aIncomingDumper);
+      }
+      else
+      {
+        LOGGER.info ("AS4 ResponseEntity is empty");
+        aState = null;
+      }
+    }
+
+    if (aState != null)
+    {
+      final Ebms3UserMessage aUserMessage = aState.getEbmsUserMessage ();
+      final Ebms3SignalMessage aSignalMessage = aState.getEbmsSignalMessage ();
+      if (aUserMessage != null)
+      {
+        if (aUserMsgConsumer != null)
+          aUserMsgConsumer.handleUserMessage (aUserMessage);
+      }
+      else
+        if (aSignalMessage != null)
+        {
+          if (aSignalMsgConsumer != null)
+            aSignalMsgConsumer.handleSignalMessage (aSignalMessage);
+        }
+        else
+          LOGGER.warn ("A Message state is present, but it contains neither a UserMessage nor a SignalMessage.");
+    }
   }
 }
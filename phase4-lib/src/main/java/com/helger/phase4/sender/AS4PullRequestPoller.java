@@ -0,0 +1,581 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.sender;
+
+import java.time.Duration;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.OverrideOnDemand;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.commons.wrapper.Wrapper;
+import com.helger.phase4.client.IAS4UserMessageConsumer;
+import com.helger.phase4.ebms3header.Ebms3Error;
+import com.helger.phase4.ebms3header.Ebms3SignalMessage;
+import com.helger.phase4.error.EEbmsError;
+
+/**
+ * A scheduler that regularly sends Pull Requests for many (endpoint URL, MPC)
+ * pairs concurrently. The polling interval is adapted per target: as long as
+ * User Messages are returned, the next Pull Request is sent immediately, so
+ * that bursts are drained back-to-back (up to a maximum burst size, to keep
+ * polling fair between the targets). If the MPC is empty
+ * ({@link EEbmsError#EBMS_EMPTY_MESSAGE_PARTITION_CHANNEL}) or an error
+ * occurs, the interval is increased by the backoff factor up to the maximum
+ * interval. The next returned User Message resets the interval to the minimum.
+ * <br>
+ * Each Pull Request is sent with a new builder from the provided factory, so
+ * all settings (crypto factory, HTTP client, dumpers etc.) can be configured
+ * there.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@ThreadSafe
+public class AS4PullRequestPoller implements AutoCloseable
+{
+  public static final int DEFAULT_WORKER_COUNT = 4;
+  public static final Duration DEFAULT_MIN_INTERVAL = Duration.ofSeconds (1);
+  public static final Duration DEFAULT_MAX_INTERVAL = Duration.ofMinutes (5);
+  public static final double DEFAULT_BACKOFF_FACTOR = 2.0;
+  public static final int DEFAULT_MAX_BURST = 100;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4PullRequestPoller.class);
+
+  /**
+   * The result of a single Pull Request.
+   *
+   * @author Philip Helger
+   */
+  public enum EPollResult
+  {
+    /** A User Message was returned */
+    USER_MESSAGE,
+    /** The MPC is empty */
+    EMPTY,
+    /** Something went wrong */
+    ERROR;
+  }
+
+  /**
+   * A single (endpoint URL, MPC) pair that is polled.
+   *
+   * @author Philip Helger
+   */
+  public static final class Target
+  {
+    private final String m_sEndpointURL;
+    private final String m_sMPC;
+    private final IAS4UserMessageConsumer m_aUserMsgConsumer;
+    private volatile boolean m_bActive = true;
+    private volatile long m_nIntervalMillis;
+    private final AtomicLong m_aPollCount = new AtomicLong (0);
+    private final AtomicLong m_aUserMessageCount = new AtomicLong (0);
+    private final AtomicLong m_aEmptyCount = new AtomicLong (0);
+    private final AtomicLong m_aErrorCount = new AtomicLong (0);
+
+    Target (@Nonnull @Nonempty final String sEndpointURL,
+            @Nonnull @Nonempty final String sMPC,
+            @Nonnull final IAS4UserMessageConsumer aUserMsgConsumer,
+            final long nIntervalMillis)
+    {
+      m_sEndpointURL = sEndpointURL;
+      m_sMPC = sMPC;
+      m_aUserMsgConsumer = aUserMsgConsumer;
+      m_nIntervalMillis = nIntervalMillis;
+    }
+
+    @Nonnull
+    @Nonempty
+    public String getEndpointURL ()
+    {
+      return m_sEndpointURL;
+    }
+
+    @Nonnull
+    @Nonempty
+    public String getMPC ()
+    {
+      return m_sMPC;
+    }
+
+    @Nonnull
+    public IAS4UserMessageConsumer getUserMsgConsumer ()
+    {
+      return m_aUserMsgConsumer;
+    }
+
+    /**
+     * @return <code>true</code> if this target was not removed from the
+     *         poller.
+     */
+    public boolean isActive ()
+    {
+      return m_bActive;
+    }
+
+    /**
+     * @return The current delay before the next Pull Request is sent, if the
+     *         last one returned no User Message.
+     */
+    @Nonnull
+    public Duration getCurrentInterval ()
+    {
+      return Duration.ofMillis (m_nIntervalMillis);
+    }
+
+    @Nonnegative
+    public long getPollCount ()
+    {
+      return m_aPollCount.get ();
+    }
+
+    @Nonnegative
+    public long getUserMessageCount ()
+    {
+      return m_aUserMessageCount.get ();
+    }
+
+    @Nonnegative
+    public long getEmptyCount ()
+    {
+      return m_aEmptyCount.get ();
+    }
+
+    @Nonnegative
+    public long getErrorCount ()
+    {
+      return m_aErrorCount.get ();
+    }
+
+    @Override
+    public String toString ()
+    {
+      return new ToStringGenerator (this).append ("EndpointURL", m_sEndpointURL)
+                                         .append ("MPC", m_sMPC)
+                                         .append ("IntervalMillis", m_nIntervalMillis)
+                                         .getToString ();
+    }
+  }
+
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  private final Supplier <? extends AbstractAS4PullRequestBuilder <?>> m_aBuilderFactory;
+
+  @GuardedBy ("m_aRWLock")
+  private int m_nWorkerCount = DEFAULT_WORKER_COUNT;
+  @GuardedBy ("m_aRWLock")
+  private Duration m_aMinInterval = DEFAULT_MIN_INTERVAL;
+  @GuardedBy ("m_aRWLock")
+  private Duration m_aMaxInterval = DEFAULT_MAX_INTERVAL;
+  @GuardedBy ("m_aRWLock")
+  private double m_dBackoffFactor = DEFAULT_BACKOFF_FACTOR;
+  @GuardedBy ("m_aRWLock")
+  private int m_nMaxBurst = DEFAULT_MAX_BURST;
+
+  @GuardedBy ("m_aRWLock")
+  private final ICommonsList <Target> m_aTargets = new CommonsArrayList <> ();
+  @GuardedBy ("m_aRWLock")
+  private ScheduledThreadPoolExecutor m_aExecutor;
+
+  /**
+   * Constructor
+   *
+   * @param aBuilderFactory
+   *        The factory for the Pull Request builders. Called once per Pull
+   *        Request. The endpoint URL, the MPC and the message consumers are
+   *        overwritten by the poller. May not be <code>null</code>.
+   */
+  public AS4PullRequestPoller (@Nonnull final Supplier <? extends AbstractAS4PullRequestBuilder <?>> aBuilderFactory)
+  {
+    ValueEnforcer.notNull (aBuilderFactory, "BuilderFactory");
+    m_aBuilderFactory = aBuilderFactory;
+  }
+
+  /**
+   * @return <code>true</code> if {@link #start()} was called and the poller
+   *         was not yet closed.
+   */
+  public boolean isStarted ()
+  {
+    return m_aRWLock.readLockedBoolean ( () -> m_aExecutor != null);
+  }
+
+  @Nonnegative
+  public final int getWorkerCount ()
+  {
+    return m_aRWLock.readLockedInt ( () -> m_nWorkerCount);
+  }
+
+  /**
+   * Set the number of threads that send Pull Requests concurrently. Can only
+   * be changed before the poller is started.
+   *
+   * @param nWorkerCount
+   *        The number of workers. Must be &gt; 0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4PullRequestPoller setWorkerCount (@Nonnegative final int nWorkerCount)
+  {
+    ValueEnforcer.isGT0 (nWorkerCount, "WorkerCount");
+    m_aRWLock.writeLocked ( () -> {
+      if (m_aExecutor != null)
+        throw new IllegalStateException ("This setting cannot be changed after the poller was started");
+      m_nWorkerCount = nWorkerCount;
+    });
+    return this;
+  }
+
+  @Nonnull
+  public final Duration getMinInterval ()
+  {
+    return m_aRWLock.readLockedGet ( () -> m_aMinInterval);
+  }
+
+  @Nonnull
+  public final Duration getMaxInterval ()
+  {
+    return m_aRWLock.readLockedGet ( () -> m_aMaxInterval);
+  }
+
+  /**
+   * Set the minimum and maximum polling interval for targets without
+   * messages.
+   *
+   * @param aMinInterval
+   *        The interval after the first empty Pull Request. May not be
+   *        <code>null</code> nor negative.
+   * @param aMaxInterval
+   *        The interval is never increased above this value. May not be
+   *        <code>null</code> and must be &ge; the minimum interval.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4PullRequestPoller setInterval (@Nonnull final Duration aMinInterval,
+                                                 @Nonnull final Duration aMaxInterval)
+  {
+    ValueEnforcer.notNull (aMinInterval, "MinInterval");
+    ValueEnforcer.isFalse (aMinInterval.isNegative (), "MinInterval may not be negative");
+    ValueEnforcer.notNull (aMaxInterval, "MaxInterval");
+    ValueEnforcer.isTrue (aMaxInterval.compareTo (aMinInterval) >= 0, "MaxInterval must be >= MinInterval");
+    m_aRWLock.writeLocked ( () -> {
+      m_aMinInterval = aMinInterval;
+      m_aMaxInterval = aMaxInterval;
+    });
+    return this;
+  }
+
+  public final double getBackoffFactor ()
+  {
+    return m_aRWLock.readLockedDouble ( () -> m_dBackoffFactor);
+  }
+
+  /**
+   * Set the factor by which the interval is increased after each Pull Request
+   * without a User Message.
+   *
+   * @param dBackoffFactor
+   *        The factor to use. Must be &ge; 1.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4PullRequestPoller setBackoffFactor (final double dBackoffFactor)
+  {
+    ValueEnforcer.isTrue (dBackoffFactor >= 1, "BackoffFactor must be >= 1");
+    m_aRWLock.writeLocked ( () -> m_dBackoffFactor = dBackoffFactor);
+    return this;
+  }
+
+  @Nonnegative
+  public final int getMaxBurst ()
+  {
+    return m_aRWLock.readLockedInt ( () -> m_nMaxBurst);
+  }
+
+  /**
+   * Set the maximum number of Pull Requests that are sent back-to-back for a
+   * single target, as long as User Messages are returned. Afterwards the
+   * target is queued behind the other due targets.
+   *
+   * @param nMaxBurst
+   *        The maximum burst size. Must be &gt; 0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4PullRequestPoller setMaxBurst (@Nonnegative final int nMaxBurst)
+  {
+    ValueEnforcer.isGT0 (nMaxBurst, "MaxBurst");
+    m_aRWLock.writeLocked ( () -> m_nMaxBurst = nMaxBurst);
+    return this;
+  }
+
+  /**
+   * @return A copy of all active targets. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <Target> getAllTargets ()
+  {
+    return m_aRWLock.readLockedGet (m_aTargets::getClone);
+  }
+
+  /**
+   * Add a new (endpoint URL, MPC) pair to be polled. If the poller is already
+   * started, the first Pull Request is sent immediately.
+   *
+   * @param sEndpointURL
+   *        The endpoint URL to send the Pull Requests to. May neither be
+   *        <code>null</code> nor empty.
+   * @param sMPC
+   *        The MPC to pull from. May neither be <code>null</code> nor empty.
+   * @param aUserMsgConsumer
+   *        The consumer for the returned User Messages. May not be
+   *        <code>null</code>.
+   * @return The created target. Never <code>null</code>.
+   */
+  @Nonnull
+  public Target addTarget (@Nonnull @Nonempty final String sEndpointURL,
+                           @Nonnull @Nonempty final String sMPC,
+                           @Nonnull final IAS4UserMessageConsumer aUserMsgConsumer)
+  {
+    ValueEnforcer.notEmpty (sEndpointURL, "EndpointURL");
+    ValueEnforcer.notEmpty (sMPC, "MPC");
+    ValueEnforcer.notNull (aUserMsgConsumer, "UserMsgConsumer");
+
+    return m_aRWLock.writeLockedGet ( () -> {
+      final Target ret = new Target (sEndpointURL, sMPC, aUserMsgConsumer, m_aMinInterval.toMillis ());
+      m_aTargets.add (ret);
+      _schedule (ret, 0);
+      return ret;
+    });
+  }
+
+  /**
+   * Stop polling the provided target. A Pull Request that is currently in
+   * progress is finished.
+   *
+   * @param aTarget
+   *        The target to remove. May not be <code>null</code>.
+   */
+  public void removeTarget (@Nonnull final Target aTarget)
+  {
+    ValueEnforcer.notNull (aTarget, "Target");
+    aTarget.m_bActive = false;
+    m_aRWLock.writeLocked ( () -> m_aTargets.remove (aTarget));
+  }
+
+  /**
+   * Start polling all targets.
+   */
+  public void start ()
+  {
+    m_aRWLock.writeLocked ( () -> {
+      if (m_aExecutor != null)
+        throw new IllegalStateException ("The poller is already started");
+
+      final ScheduledThreadPoolExecutor aExecutor = new ScheduledThreadPoolExecutor (m_nWorkerCount,
+                                                                                     new BasicThreadFactory.Builder ().namingPattern ("phase4-pull-poller-%d")
+                                                                                                                      .daemon (true)
+                                                                                                                      .build ());
+      // Don't wait for scheduled polls upon shutdown
+      aExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy (false);
+      m_aExecutor = aExecutor;
+      for (final Target aTarget : m_aTargets)
+        _schedule (aTarget, 0);
+
+      LOGGER.info ("Started Pull Request poller with " +
+                   m_nWorkerCount +
+                   " workers and " +
+                   m_aTargets.size () +
+                   " targets");
+    });
+  }
+
+  @GuardedBy ("m_aRWLock")
+  private void _schedule (@Nonnull final Target aTarget, final long nDelayMillis)
+  {
+    // Executor is null if the poller is not started or shutting down
+    if (m_aExecutor != null)
+      m_aExecutor.schedule ( () -> _run (aTarget), nDelayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Send a single Pull Request for the provided target and pass a returned
+   * User Message to the consumer of the target. Override this method to
+   * customize the sending.
+   *
+   * @param aTarget
+   *        The target to poll. Never <code>null</code>.
+   * @return The result of the Pull Request. May not be <code>null</code>.
+   * @throws Exception
+   *         In case of an error. This is handled like {@link EPollResult#ERROR}.
+   */
+  @Nonnull
+  @OverrideOnDemand
+  protected EPollResult poll (@Nonnull final Target aTarget) throws Exception
+  {
+    final Wrapper <EPollResult> aResult = new Wrapper <> ();
+    final boolean bSuccess = m_aBuilderFactory.get ()
+                                              .endpointURL (aTarget.getEndpointURL ())
+                                              .mpc (aTarget.getMPC ())
+                                              .userMsgConsumer (aUserMsg -> {
+                                                aResult.set (EPollResult.USER_MESSAGE);
+                                                aTarget.getUserMsgConsumer ().handleUserMessage (aUserMsg);
+                                              })
+                                              .signalMsgConsumer (aSignalMsg -> aResult.set (isEmptyMPC (aSignalMsg) ? EPollResult.EMPTY
+                                                                                                                    : EPollResult.ERROR))
+                                              .sendMessage ()
+                                              .isSuccess ();
+    if (!bSuccess)
+      return EPollResult.ERROR;
+    // No response at all is considered as "empty"
+    return aResult.isSet () ? aResult.get () : EPollResult.EMPTY;
+  }
+
+  /**
+   * Check if the provided signal message indicates an empty MPC.
+   *
+   * @param aSignalMsg
+   *        The signal message returned on a Pull Request. May not be
+   *        <code>null</code>.
+   * @return <code>true</code> if it contains the
+   *         {@link EEbmsError#EBMS_EMPTY_MESSAGE_PARTITION_CHANNEL} error.
+   */
+  public static boolean isEmptyMPC (@Nonnull final Ebms3SignalMessage aSignalMsg)
+  {
+    final String sErrorCode = EEbmsError.EBMS_EMPTY_MESSAGE_PARTITION_CHANNEL.getErrorCode ();
+    for (final Ebms3Error aError : aSignalMsg.getError ())
+      if (sErrorCode.equals (aError.getErrorCode ()))
+        return true;
+    return false;
+  }
+
+  private void _run (@Nonnull final Target aTarget)
+  {
+    final int nMaxBurst = getMaxBurst ();
+    EPollResult eResult = EPollResult.ERROR;
+    int nPolls = 0;
+    // Drain bursts back-to-back
+    while (aTarget.isActive () && isStarted () && nPolls < nMaxBurst)
+    {
+      nPolls++;
+      aTarget.m_aPollCount.incrementAndGet ();
+      try
+      {
+        eResult = poll (aTarget);
+      }
+      catch (final Exception ex)
+      {
+        LOGGER.error ("Error sending Pull Request for MPC '" +
+                      aTarget.getMPC () +
+                      "' to '" +
+                      aTarget.getEndpointURL () +
+                      "'",
+                      ex);
+        eResult = EPollResult.ERROR;
+      }
+
+      if (eResult != EPollResult.USER_MESSAGE)
+        break;
+      aTarget.m_aUserMessageCount.incrementAndGet ();
+    }
+
+    if (!aTarget.isActive ())
+      return;
+
+    final long nDelayMillis;
+    switch (eResult)
+    {
+      case USER_MESSAGE:
+        // Burst limit reached - continue after the others
+        aTarget.m_nIntervalMillis = getMinInterval ().toMillis ();
+        nDelayMillis = 0;
+        break;
+      case EMPTY:
+      case ERROR:
+      default:
+        // Messages in this run start with the minimum interval again
+        nDelayMillis = nPolls > 1 ? getMinInterval ().toMillis () : aTarget.m_nIntervalMillis;
+        final long nMax = getMaxInterval ().toMillis ();
+        aTarget.m_nIntervalMillis = Math.min (nMax, Math.max (1, (long) (nDelayMillis * getBackoffFactor ())));
+
+        // Count after the interval was updated, so that observers of the
+        // counters see the matching interval
+        if (eResult == EPollResult.EMPTY)
+          aTarget.m_aEmptyCount.incrementAndGet ();
+        else
+          aTarget.m_aErrorCount.incrementAndGet ();
+        break;
+    }
+
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Next Pull Request for MPC '" +
+                    aTarget.getMPC () +
+                    "' to '" +
+                    aTarget.getEndpointURL () +
+                    "' in " +
+                    nDelayMillis +
+                    " milliseconds");
+    m_aRWLock.readLocked ( () -> _schedule (aTarget, nDelayMillis));
+  }
+
+  /**
+   * Stop polling. Pull Requests currently in progress are finished.
+   */
+  public void close ()
+  {
+    final ScheduledThreadPoolExecutor aExecutor = m_aRWLock.writeLockedGet ( () -> {
+      final ScheduledThreadPoolExecutor ret = m_aExecutor;
+      m_aExecutor = null;
+      return ret;
+    });
+    if (aExecutor != null)
+    {
+      // Outside of the lock, because the workers need it
+      ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (aExecutor);
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return m_aRWLock.readLockedGet ( () -> new ToStringGenerator (this).append ("WorkerCount", m_nWorkerCount)
+                                                                       .append ("MinInterval", m_aMinInterval)
+                                                                       .append ("MaxInterval", m_aMaxInterval)
+                                                                       .append ("BackoffFactor", m_dBackoffFactor)
+                                                                       .append ("MaxBurst", m_nMaxBurst)
+                                                                       .getToString ());
+  }
+}
@@ -18,6 +18,9 @@ package com.helger.phase4.sender;
 
 import java.time.OffsetDateTime;
 import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -29,6 +32,7 @@ import org.slf4j.LoggerFactory;
 
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.OverrideOnDemand;
+import com.helger.commons.lang.ClassHelper;
 import com.helger.commons.state.ESuccess;
 import com.helger.commons.traits.IGenericImplTrait;
 import com.helger.httpclient.HttpClientFactory;
@@ -43,11 +47,16 @@ import com.helger.phase4.dump.IAS4IncomingDumper;
 import com.helger.phase4.dump.IAS4OutgoingDumper;
 import com.helger.phase4.http.HttpRetrySettings;
 import com.helger.phase4.http.IHttpPoster;
+import com.helger.phase4.metrics.AS4StageTimings;
 import com.helger.phase4.model.pmode.resolve.DefaultPModeResolver;
 import com.helger.phase4.model.pmode.resolve.IPModeResolver;
 import com.helger.phase4.servlet.AS4IncomingProfileSelectorFromGlobal;
 import com.helger.phase4.servlet.IAS4IncomingProfileSelector;
 import com.helger.phase4.soap.ESoapVersion;
+import com.helger.phase4.tracing.AS4TracingManager;
+import com.helger.phase4.tracing.EAS4SpanKind;
+import com.helger.phase4.tracing.IAS4Span;
+import com.helger.phase4.util.AS4ExecutorHelper;
 import com.helger.phase4.util.Phase4Exception;
 
 /**
@@ -87,6 +96,9 @@ public abstract class AbstractAS4MessageBuilder <IMPLTYPE extends AbstractAS4Mes
   protected IAS4RetryCallback m_aRetryCallback;
   protected IAS4RawResponseConsumer m_aResponseConsumer;
 
+  // Created for each sending
+  protected AS4StageTimings m_aStageTimings;
+
   /**
    * Create a new builder, with the following fields already set:<br>
    * {@link #httpClientFactory(HttpClientFactory)}<br>
@@ -496,6 +508,17 @@ public abstract class AbstractAS4MessageBuilder <IMPLTYPE extends AbstractAS4Mes
     return thisAsT ();
   }
 
+  /**
+   * @return The stage timing trace of the last call to {@link #sendMessage()}.
+   *         May be <code>null</code> if no message was sent so far.
+   * @since 2.1.3
+   */
+  @Nullable
+  public final AS4StageTimings stageTimings ()
+  {
+    return m_aStageTimings;
+  }
+
   @OverridingMethodsMustInvokeSuper
   public boolean isEveryRequiredFieldSet ()
   {
@@ -627,11 +650,70 @@ public abstract class AbstractAS4MessageBuilder <IMPLTYPE extends AbstractAS4Mes
       }
 
     // Main sending
-    mainSendMessage ();
+    m_aStageTimings = new AS4StageTimings ();
+    try (final IAS4Span aSpan = AS4TracingManager.startSpan (AS4TracingManager.SPAN_SEND, EAS4SpanKind.INTERNAL))
+    {
+      try
+      {
+        mainSendMessage ();
+      }
+      catch (final Phase4Exception | RuntimeException ex)
+      {
+        aSpan.recordException (ex);
+        throw ex;
+      }
+    }
 
     if (LOGGER.isDebugEnabled ())
       LOGGER.debug ("Finished main AS4 message sending without exception");
 
+    m_aStageTimings.logIfSlow ( () -> "sent via " + ClassHelper.getClassLocalName (this));
+    m_aStageTimings.logIfAllocationsTracked ( () -> "sent via " + ClassHelper.getClassLocalName (this));
+
     return ESuccess.SUCCESS;
   }
+
+  /**
+   * Asynchronously send the AS4 message by invoking {@link #sendMessage()} in
+   * the provided executor. The builder may not be modified until the returned
+   * future is completed. A {@link Phase4Exception} thrown while sending is
+   * wrapped in a {@link CompletionException}.
+   *
+   * @param aExecutor
+   *        The executor to send the message in. May not be <code>null</code>.
+   * @return The future with the result of {@link #sendMessage()}. Never
+   *         <code>null</code>.
+   * @since 2.1.3
+   */
+  @Nonnull
+  public final CompletableFuture <ESuccess> sendMessageAsync (@Nonnull final Executor aExecutor)
+  {
+    ValueEnforcer.notNull (aExecutor, "Executor");
+    return CompletableFuture.supplyAsync ( () -> {
+      try
+      {
+        return sendMessage ();
+      }
+      catch (final Phase4Exception ex)
+      {
+        throw new CompletionException (ex);
+      }
+    }, AS4TracingManager.wrapExecutor (aExecutor));
+  }
+
+  /**
+   * Asynchronously send the AS4 message in the executor provided by
+   * {@link AS4ExecutorHelper#getExecutor()}. If virtual threads are enabled,
+   * the message is sent on a virtual thread, including all retry waits.
+   *
+   * @return The future with the result of {@link #sendMessage()}. Never
+   *         <code>null</code>.
+   * @see #sendMessageAsync(Executor)
+   * @since 2.1.3
+   */
+  @Nonnull
+  public final CompletableFuture <ESuccess> sendMessageAsync ()
+  {
+    return sendMessageAsync (AS4ExecutorHelper.getExecutor ());
+  }
 }
@@ -26,6 +26,7 @@ import org.slf4j.LoggerFactory;
 
 import com.helger.commons.string.StringHelper;
 import com.helger.phase4.client.AS4ClientPullRequestMessage;
+import com.helger.phase4.client.IAS4SignalMessageConsumer;
 import com.helger.phase4.client.IAS4UserMessageConsumer;
 import com.helger.phase4.util.AS4ResourceHelper;
 import com.helger.phase4.util.Phase4Exception;
@@ -47,6 +48,7 @@ public abstract class AbstractAS4PullRequestBuilder <IMPLTYPE extends AbstractAS
   protected String m_sMPC;
   protected String m_sEndpointURL;
   protected IAS4UserMessageConsumer m_aUserMsgConsumer;
+  protected IAS4SignalMessageConsumer m_aSignalMsgConsumer;
 
   /**
    * Create a new builder, with the following fields already set:<br>
@@ -97,6 +99,24 @@ public abstract class AbstractAS4PullRequestBuilder <IMPLTYPE extends AbstractAS
     return thisAsT ();
   }
 
+  /**
+   * Set an optional Ebms3 Signal Message Consumer. It is invoked if the
+   * response to the Pull Request contains a Signal Message instead of a User
+   * Message (e.g. an error because the MPC is empty). This method is optional
+   * and must not be called prior to sending.
+   *
+   * @param aSignalMsgConsumer
+   *        The optional Signal Message consumer. May be <code>null</code>.
+   * @return this for chaining
+   * @since 2.1.3
+   */
+  @Nonnull
+  public final IMPLTYPE signalMsgConsumer (@Nullable final IAS4SignalMessageConsumer aSignalMsgConsumer)
+  {
+    m_aSignalMsgConsumer = aSignalMsgConsumer;
+    return thisAsT ();
+  }
+
   @Override
   @OverridingMethodsMustInvokeSuper
   public boolean isEveryRequiredFieldSet ()
@@ -117,6 +137,7 @@ public abstract class AbstractAS4PullRequestBuilder <IMPLTYPE extends AbstractAS
     }
 
     // m_aUserMsgConsumer is optional
+    // m_aSignalMsgConsumer is optional
 
     // All valid
     return true;
@@ -170,6 +191,7 @@ public abstract class AbstractAS4PullRequestBuilder <IMPLTYPE extends AbstractAS
       // Start building AS4 User Message
       final AS4ClientPullRequestMessage aPullRequestMsg = new AS4ClientPullRequestMessage (aResHelper);
       applyToPullRequest (aPullRequestMsg);
+      aPullRequestMsg.setStageTimings (m_aStageTimings);
 
       // Main sending
       AS4BidirectionalClientHelper.sendAS4PullRequestAndReceiveAS4UserMessage (m_aCryptoFactory,
@@ -184,7 +206,8 @@ public abstract class AbstractAS4PullRequestBuilder <IMPLTYPE extends AbstractAS
                                                                                m_aIncomingDumper,
                                                                                m_aRetryCallback,
                                                                                m_aResponseConsumer,
-                                                                               m_aUserMsgConsumer);
+                                                                               m_aUserMsgConsumer,
+                                                                               m_aSignalMsgConsumer);
     }
     catch (final Phase4Exception ex)
     {
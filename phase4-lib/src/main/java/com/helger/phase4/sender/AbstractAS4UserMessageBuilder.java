@@ -16,6 +16,7 @@
  */
 package com.helger.phase4.sender;
 
+import java.io.IOException;
 import java.security.cert.X509Certificate;
 import java.util.function.Consumer;
 
@@ -24,6 +25,7 @@ import javax.annotation.Nullable;
 import javax.annotation.OverridingMethodsMustInvokeSuper;
 import javax.annotation.concurrent.NotThreadSafe;
 
+import org.apache.wss4j.common.ext.WSSecurityException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -36,6 +38,7 @@ import com.helger.commons.state.ISuccessIndicator;
 import com.helger.commons.string.StringHelper;
 import com.helger.commons.wrapper.Wrapper;
 import com.helger.phase4.attachment.AS4OutgoingAttachment;
+import com.helger.phase4.client.AS4ClientBuiltMessage;
 import com.helger.phase4.client.AS4ClientUserMessage;
 import com.helger.phase4.client.IAS4SignalMessageConsumer;
 import com.helger.phase4.ebms3header.Ebms3Property;
@@ -43,8 +46,13 @@ import com.helger.phase4.ebms3header.Ebms3SignalMessage;
 import com.helger.phase4.messaging.domain.MessageHelperMethods;
 import com.helger.phase4.model.MessageProperty;
 import com.helger.phase4.model.pmode.IPMode;
+import com.helger.phase4.model.pmode.PModeReceptionAwareness;
+import com.helger.phase4.sender.outbox.AS4Outbox;
+import com.helger.phase4.sender.outbox.AS4OutboxSignalResponseHandler;
 import com.helger.phase4.util.Phase4Exception;
 
+import jakarta.mail.MessagingException;
+
 /**
  * Abstract builder base class for a user message.
  *
@@ -86,6 +94,8 @@ public abstract class AbstractAS4UserMessageBuilder <IMPLTYPE extends AbstractAS
 
   protected IAS4SignalMessageConsumer m_aSignalMsgConsumer;
 
+  protected AS4Outbox m_aOutbox;
+
   /**
    * Create a new builder, with the following fields already set:<br>
    * {@link #pmode(IPMode)}<br>
@@ -492,6 +502,27 @@ public abstract class AbstractAS4UserMessageBuilder <IMPLTYPE extends AbstractAS
     return thisAsT ();
   }
 
+  /**
+   * Set an optional outbox. If an outbox is set, the message is only built and
+   * stored in the outbox when sending. The transmission, the retries and the
+   * receipt handling happen asynchronously in the outbox, so the signal
+   * message consumer is not invoked and
+   * {@link #sendMessageAndCheckForReceipt()} returns
+   * {@link ESimpleUserMessageSendResult#QUEUED}.
+   *
+   * @param aOutbox
+   *        The started outbox to use. May be <code>null</code> to send
+   *        synchronously.
+   * @return this for chaining
+   * @since 2.1.3
+   */
+  @Nonnull
+  public final IMPLTYPE outbox (@Nullable final AS4Outbox aOutbox)
+  {
+    m_aOutbox = aOutbox;
+    return thisAsT ();
+  }
+
   @Override
   @OverridingMethodsMustInvokeSuper
   public boolean isEveryRequiredFieldSet ()
@@ -550,6 +581,8 @@ public abstract class AbstractAS4UserMessageBuilder <IMPLTYPE extends AbstractAS
 
     // m_aSignalMsgConsumer may be null
 
+    // m_aOutbox may be null
+
     // All valid
     return true;
   }
@@ -622,6 +655,53 @@ public abstract class AbstractAS4UserMessageBuilder <IMPLTYPE extends AbstractAS
       aUserMsg.ebms3Properties ().add (aItem.getAsEbms3Property ());
   }
 
+  /**
+   * Store the message in the outbox instead of sending it synchronously, if
+   * an outbox is set. All implementations of {@link #mainSendMessage()} must
+   * call this after the user message was completely set up.<br>
+   * If the outbox has no response handler yet, an
+   * {@link AS4OutboxSignalResponseHandler} using the crypto factory, PMode
+   * resolver, incoming attachment factory and incoming profile selector of
+   * this builder is set, so that synchronous receipts are recognized.
+   *
+   * @param aUserMsg
+   *        The fully set up user message. May not be <code>null</code>.
+   * @return <code>true</code> if the message was stored in the outbox and must
+   *         not be sent synchronously, <code>false</code> if no outbox is set.
+   * @throws WSSecurityException
+   *         In case signing or encryption fails
+   * @throws MessagingException
+   *         In case the MIME message cannot be built
+   * @throws IOException
+   *         In case the message could not be persisted in the outbox
+   * @since 2.1.3
+   */
+  protected final boolean enqueueInOutbox (@Nonnull final AS4ClientUserMessage aUserMsg) throws WSSecurityException,
+                                                                                           MessagingException,
+                                                                                           IOException
+  {
+    if (m_aOutbox == null)
+      return false;
+
+    // Persist and send in the background
+    final AS4ClientBuiltMessage aBuiltMsg = aUserMsg.buildMessage (aUserMsg.createMessageID (), m_aBuildMessageCallback);
+    // Without a response handler, receipts would not be recognized
+    m_aOutbox.setResponseHandlerIfAbsent ( () -> new AS4OutboxSignalResponseHandler (m_aCryptoFactory,
+                                                                                    pmodeResolver (),
+                                                                                    incomingAttachmentFactory (),
+                                                                                    incomingProfileSelector (),
+                                                                                    m_aLocale,
+                                                                                    m_aIncomingDumper));
+
+    final PModeReceptionAwareness aRA = m_aPMode == null ? null : m_aPMode.getReceptionAwareness ();
+    m_aOutbox.enqueue (aBuiltMsg,
+                       m_sEndpointURL,
+                       aUserMsg.httpRetrySettings (),
+                       aRA != null && aRA.isReceptionAwareness (),
+                       m_aPMode);
+    return true;
+  }
+
   /**
    * Specific enumeration with the result error codes of the
    * {@link AbstractAS4UserMessageBuilder#sendMessageAndCheckForReceipt()}
@@ -636,6 +716,13 @@ public abstract class AbstractAS4UserMessageBuilder <IMPLTYPE extends AbstractAS
     NO_SIGNAL_MESSAGE_RECEIVED ("no-signal-msg-received"),
     AS4_ERROR_MESSAGE_RECEIVED ("as4-error-msg-received"),
     INVALID_SIGNAL_MESSAGE_RECEIVED ("invalid-signal-message-received"),
+    /**
+     * The message was stored in the outbox and is sent asynchronously. The
+     * delivery result is reported by the outbox.
+     *
+     * @since 2.1.3
+     */
+    QUEUED ("queued"),
     SUCCESS ("success");
 
     private final String m_sID;
@@ -686,7 +773,8 @@ public abstract class AbstractAS4UserMessageBuilder <IMPLTYPE extends AbstractAS
    *
    * @return {@link ESimpleUserMessageSendResult#SUCCESS} only if all parameters
    *         are correct, HTTP transmission was successful and if a positive AS4
-   *         Receipt was returned. Never <code>null</code>.
+   *         Receipt was returned. {@link ESimpleUserMessageSendResult#QUEUED}
+   *         if an outbox is set. Never <code>null</code>.
    * @since 0.13.0
    */
   @Nonnull
@@ -707,7 +795,8 @@ public abstract class AbstractAS4UserMessageBuilder <IMPLTYPE extends AbstractAS
    *        {@link Phase4Exception}. May be <code>null</code>.
    * @return {@link ESimpleUserMessageSendResult#SUCCESS} only if all parameters
    *         are correct, HTTP transmission was successful and if a positive AS4
-   *         Receipt was returned. Never <code>null</code>.
+   *         Receipt was returned. {@link ESimpleUserMessageSendResult#QUEUED}
+   *         if an outbox is set. Never <code>null</code>.
    * @since 1.0.0-rc1
    */
   @Nonnull
@@ -730,6 +819,12 @@ public abstract class AbstractAS4UserMessageBuilder <IMPLTYPE extends AbstractAS
         return ESimpleUserMessageSendResult.INVALID_PARAMETERS;
       }
 
+      if (m_aOutbox != null)
+      {
+        // The result of the transmission is reported by the outbox
+        return ESimpleUserMessageSendResult.QUEUED;
+      }
+
       final Ebms3SignalMessage aSignalMsg = aSignalMsgKeeper.get ();
       if (aSignalMsg == null)
       {
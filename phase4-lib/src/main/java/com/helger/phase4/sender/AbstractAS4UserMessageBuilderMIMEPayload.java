@@ -107,6 +107,7 @@ public abstract class AbstractAS4UserMessageBuilderMIMEPayload <IMPLTYPE extends
       // Start building AS4 User Message
       final AS4ClientUserMessage aUserMsg = new AS4ClientUserMessage (aResHelper);
       applyToUserMessage (aUserMsg);
+      aUserMsg.setStageTimings (m_aStageTimings);
 
       // No payload - only one attachment
       aUserMsg.setPayload (null);
@@ -118,6 +119,9 @@ public abstract class AbstractAS4UserMessageBuilderMIMEPayload <IMPLTYPE extends
       for (final AS4OutgoingAttachment aAttachment : m_aAttachments)
         aUserMsg.addAttachment (WSS4JAttachment.createOutgoingFileAttachment (aAttachment, aResHelper));
 
+      if (enqueueInOutbox (aUserMsg))
+        return;
+
       // Main sending
       AS4BidirectionalClientHelper.sendAS4UserMessageAndReceiveAS4SignalMessage (m_aCryptoFactory,
                                                                                  pmodeResolver (),
@@ -0,0 +1,1167 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.sender.outbox;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.CommonsLinkedHashMap;
+import com.helger.commons.collection.impl.CommonsTreeMap;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.collection.impl.ICommonsOrderedMap;
+import com.helger.commons.collection.impl.ICommonsSortedMap;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.io.file.FileOperations;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.mutable.MutableInt;
+import com.helger.commons.mutable.MutableLong;
+import com.helger.commons.state.EChange;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.StringParser;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.httpclient.response.ResponseHandlerHttpEntity;
+import com.helger.phase4.client.AS4ClientBuiltMessage;
+import com.helger.phase4.ebms3header.Ebms3SignalMessage;
+import com.helger.phase4.http.BasicHttpPoster;
+import com.helger.phase4.http.HttpRetrySettings;
+import com.helger.phase4.http.IHttpPoster;
+import com.helger.phase4.model.pmode.IPMode;
+import com.helger.phase4.tracing.AS4TracingManager;
+import com.helger.phase4.tracing.EAS4SpanKind;
+import com.helger.phase4.tracing.IAS4Span;
+import com.helger.phase4.util.AS4RecordBuffer;
+import com.helger.phase4.util.AS4RecordSegment;
+import com.helger.phase4.util.Phase4Exception;
+
+/**
+ * A persistent outbox for outgoing AS4 messages. The fully built message is
+ * written to append-only {@link AS4RecordSegment} files in the base directory
+ * before the first transmission attempt. The outbox then sends the message in
+ * its own worker threads and retries according to the
+ * {@link HttpRetrySettings} provided on enqueueing (usually derived from the
+ * PMode reception awareness). A message is finished, when it was either
+ * delivered or finally failed. If a receipt is required, a message is only
+ * considered delivered, if the synchronous response contains a receipt (see
+ * {@link #setResponseHandler(IAS4OutboxResponseHandler)}) or if
+ * {@link #acknowledge(String)} is called, e.g. for an asynchronous receipt.
+ * Otherwise it is resent after the retry interval.<br>
+ * All open messages and their number of attempts are restored on
+ * {@link #start()}, so that sending resumes after a restart. To achieve a high
+ * throughput, concurrently enqueued messages share a single sync to disk.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@ThreadSafe
+public class AS4Outbox implements AutoCloseable
+{
+  public static final int DEFAULT_WORKER_COUNT = 4;
+  public static final long DEFAULT_MAX_SEGMENT_SIZE = 64 * CGlobal.BYTES_PER_MEGABYTE;
+  public static final boolean DEFAULT_SYNC_ON_WRITE = true;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4Outbox.class);
+  private static final byte OP_ATTEMPT = 'T';
+  private static final byte OP_DELIVERED = 'D';
+  private static final byte OP_FAILED = 'F';
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  /**
+   * The in-memory index data of a single message.
+   *
+   * @author Philip Helger
+   */
+  private static final class IndexEntry
+  {
+    private final String m_sMessageID;
+    private final AS4RecordSegment m_aSegment;
+    private final long m_nOffset;
+    private final int m_nLength;
+    // Guarded by the outbox lock
+    private int m_nAttempts;
+    private long m_nNextAttemptMillis;
+
+    IndexEntry (@Nonnull final String sMessageID,
+                @Nonnull final AS4RecordSegment aSegment,
+                final long nOffset,
+                final int nLength)
+    {
+      m_sMessageID = sMessageID;
+      m_aSegment = aSegment;
+      m_nOffset = nOffset;
+      m_nLength = nLength;
+    }
+  }
+
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  private final File m_aBaseDir;
+
+  @GuardedBy ("m_aRWLock")
+  private int m_nWorkerCount = DEFAULT_WORKER_COUNT;
+  @GuardedBy ("m_aRWLock")
+  private long m_nMaxSegmentSize = DEFAULT_MAX_SEGMENT_SIZE;
+  @GuardedBy ("m_aRWLock")
+  private boolean m_bSyncOnWrite = DEFAULT_SYNC_ON_WRITE;
+  @GuardedBy ("m_aRWLock")
+  private IHttpPoster m_aHttpPoster = new BasicHttpPoster ();
+  @GuardedBy ("m_aRWLock")
+  private IAS4OutboxResponseHandler m_aResponseHandler;
+  @GuardedBy ("m_aRWLock")
+  private IAS4OutboxListener m_aListener;
+
+  // All segments in index order, with the number of open messages they contain
+  @GuardedBy ("m_aRWLock")
+  private final ICommonsSortedMap <Long, MutableInt> m_aSegmentOpenCounts = new CommonsTreeMap <> ();
+  @GuardedBy ("m_aRWLock")
+  private final ICommonsMap <Long, AS4RecordSegment> m_aSegments = new CommonsHashMap <> ();
+  @GuardedBy ("m_aRWLock")
+  private AS4RecordSegment m_aActiveSegment;
+  @GuardedBy ("m_aRWLock")
+  private final ICommonsMap <String, IndexEntry> m_aEntries = new CommonsHashMap <> ();
+  @GuardedBy ("m_aRWLock")
+  private long m_nAppendedRecords = 0;
+  @GuardedBy ("m_aRWLock")
+  private ScheduledThreadPoolExecutor m_aExecutor;
+
+  // Group commit: one writer syncs all records appended so far
+  private final Lock m_aSyncLock = new ReentrantLock ();
+  private final Condition m_aSyncDone = m_aSyncLock.newCondition ();
+  @GuardedBy ("m_aSyncLock")
+  private boolean m_bSyncInProgress = false;
+  @GuardedBy ("m_aSyncLock")
+  private long m_nSyncedRecords = 0;
+
+  private final AtomicLong m_aEnqueued = new AtomicLong (0);
+  private final AtomicLong m_aAttempts = new AtomicLong (0);
+  private final AtomicLong m_aDelivered = new AtomicLong (0);
+  private final AtomicLong m_aFailed = new AtomicLong (0);
+  private final AtomicLong m_aSyncs = new AtomicLong (0);
+
+  /**
+   * Constructor
+   *
+   * @param aBaseDir
+   *        The base directory in which the segments are stored. May not be
+   *        <code>null</code>. Should not be shared with other outboxes or
+   *        stores.
+   */
+  public AS4Outbox (@Nonnull final File aBaseDir)
+  {
+    ValueEnforcer.notNull (aBaseDir, "BaseDir");
+    m_aBaseDir = aBaseDir;
+  }
+
+  /**
+   * @return The base directory as provided in the constructor. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final File getBaseDir ()
+  {
+    return m_aBaseDir;
+  }
+
+  /**
+   * @return <code>true</code> if {@link #start()} was called and the outbox
+   *         was not yet closed.
+   */
+  public boolean isStarted ()
+  {
+    return m_aRWLock.readLockedBoolean ( () -> m_aActiveSegment != null);
+  }
+
+  private void _checkNotStarted ()
+  {
+    if (m_aActiveSegment != null)
+      throw new IllegalStateException ("This setting cannot be changed after the outbox was started");
+  }
+
+  @Nonnegative
+  public final int getWorkerCount ()
+  {
+    return m_aRWLock.readLockedInt ( () -> m_nWorkerCount);
+  }
+
+  /**
+   * Set the number of threads sending messages. Can only be changed before
+   * the outbox is started.
+   *
+   * @param nWorkerCount
+   *        The number of worker threads. Must be &gt; 0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4Outbox setWorkerCount (@Nonnegative final int nWorkerCount)
+  {
+    ValueEnforcer.isGT0 (nWorkerCount, "WorkerCount");
+    m_aRWLock.writeLocked ( () -> {
+      _checkNotStarted ();
+      m_nWorkerCount = nWorkerCount;
+    });
+    return this;
+  }
+
+  @Nonnegative
+  public final long getMaxSegmentSize ()
+  {
+    return m_aRWLock.readLockedLong ( () -> m_nMaxSegmentSize);
+  }
+
+  /**
+   * Set the size in bytes after which a new segment is started.
+   *
+   * @param nMaxSegmentSize
+   *        The maximum segment size. Must be &gt; 0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4Outbox setMaxSegmentSize (@Nonnegative final long nMaxSegmentSize)
+  {
+    ValueEnforcer.isGT0 (nMaxSegmentSize, "MaxSegmentSize");
+    m_aRWLock.writeLocked ( () -> m_nMaxSegmentSize = nMaxSegmentSize);
+    return this;
+  }
+
+  public final boolean isSyncOnWrite ()
+  {
+    return m_aRWLock.readLockedBoolean ( () -> m_bSyncOnWrite);
+  }
+
+  /**
+   * Define whether each new message should be forced to disk before
+   * {@link #enqueue(AS4ClientBuiltMessage, String, HttpRetrySettings, boolean)}
+   * returns. Concurrent calls share a single sync. The bookkeeping of attempts
+   * and results is never forced, because losing it only results in a repeated
+   * transmission, which the receiver detects as a duplicate. Can only be
+   * changed before the outbox is started.
+   *
+   * @param bSyncOnWrite
+   *        <code>true</code> to force new messages to disk.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4Outbox setSyncOnWrite (final boolean bSyncOnWrite)
+  {
+    m_aRWLock.writeLocked ( () -> {
+      _checkNotStarted ();
+      m_bSyncOnWrite = bSyncOnWrite;
+    });
+    return this;
+  }
+
+  @Nonnull
+  public final IHttpPoster getHttpPoster ()
+  {
+    return m_aRWLock.readLockedGet ( () -> m_aHttpPoster);
+  }
+
+  /**
+   * Set the HTTP poster used to send the messages.
+   *
+   * @param aHttpPoster
+   *        The HTTP poster to use. May not be <code>null</code>.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4Outbox setHttpPoster (@Nonnull final IHttpPoster aHttpPoster)
+  {
+    ValueEnforcer.notNull (aHttpPoster, "HttpPoster");
+    m_aRWLock.writeLocked ( () -> m_aHttpPoster = aHttpPoster);
+    return this;
+  }
+
+  @Nullable
+  public final IAS4OutboxResponseHandler getResponseHandler ()
+  {
+    return m_aRWLock.readLockedGet ( () -> m_aResponseHandler);
+  }
+
+  /**
+   * Set the handler for the synchronous responses. Without a response handler,
+   * messages that require a receipt can only be finished via
+   * {@link #acknowledge(String)}.
+   *
+   * @param aResponseHandler
+   *        The response handler to use. May be <code>null</code>.
+   * @return this for chaining
+   * @see AS4OutboxSignalResponseHandler
+   */
+  @Nonnull
+  public final AS4Outbox setResponseHandler (@Nullable final IAS4OutboxResponseHandler aResponseHandler)
+  {
+    m_aRWLock.writeLocked ( () -> m_aResponseHandler = aResponseHandler);
+    return this;
+  }
+
+  /**
+   * Set the handler for the synchronous responses, if none is set yet.
+   *
+   * @param aResponseHandlerSupplier
+   *        The supplier for the response handler to use. Only invoked if no
+   *        response handler is set. May not be <code>null</code>.
+   * @return {@link EChange#CHANGED} if the response handler was set,
+   *         {@link EChange#UNCHANGED} if a response handler was already
+   *         present.
+   */
+  @Nonnull
+  public final EChange setResponseHandlerIfAbsent (@Nonnull final Supplier <? extends IAS4OutboxResponseHandler> aResponseHandlerSupplier)
+  {
+    ValueEnforcer.notNull (aResponseHandlerSupplier, "ResponseHandlerSupplier");
+    return m_aRWLock.writeLockedGet ( () -> {
+      if (m_aResponseHandler != null)
+        return EChange.UNCHANGED;
+      m_aResponseHandler = aResponseHandlerSupplier.get ();
+      return EChange.CHANGED;
+    });
+  }
+
+  @Nullable
+  public final IAS4OutboxListener getListener ()
+  {
+    return m_aRWLock.readLockedGet ( () -> m_aListener);
+  }
+
+  /**
+   * Set the listener to be informed about delivered and failed messages.
+   *
+   * @param aListener
+   *        The listener to use. May be <code>null</code>.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4Outbox setListener (@Nullable final IAS4OutboxListener aListener)
+  {
+    m_aRWLock.writeLocked ( () -> m_aListener = aListener);
+    return this;
+  }
+
+  /**
+   * @return The number of messages in the outbox, that are not yet finished.
+   */
+  @Nonnegative
+  public int getMessageCount ()
+  {
+    return m_aRWLock.readLockedInt (m_aEntries::size);
+  }
+
+  /**
+   * Check if a message is contained in the outbox.
+   *
+   * @param sMessageID
+   *        The message ID to check. May be <code>null</code>.
+   * @return <code>true</code> if the message is not yet finished.
+   */
+  public boolean containsMessage (@Nullable final String sMessageID)
+  {
+    return m_aRWLock.readLockedBoolean ( () -> m_aEntries.containsKey (sMessageID));
+  }
+
+  /**
+   * Get the number of transmission attempts of a message.
+   *
+   * @param sMessageID
+   *        The message ID to check. May be <code>null</code>.
+   * @return The number of attempts made so far or -1 if the message is not
+   *         contained.
+   */
+  public int getAttemptCount (@Nullable final String sMessageID)
+  {
+    return m_aRWLock.readLockedInt ( () -> {
+      final IndexEntry aIndexEntry = m_aEntries.get (sMessageID);
+      return aIndexEntry == null ? -1 : aIndexEntry.m_nAttempts;
+    });
+  }
+
+  /**
+   * @return The number of segment files currently in use.
+   */
+  @Nonnegative
+  public int getSegmentCount ()
+  {
+    return m_aRWLock.readLockedInt (m_aSegments::size);
+  }
+
+  /**
+   * @return The number of messages enqueued since this outbox was started.
+   */
+  @Nonnegative
+  public long getEnqueuedCount ()
+  {
+    return m_aEnqueued.get ();
+  }
+
+  /**
+   * @return The number of transmission attempts since this outbox was
+   *         started.
+   */
+  @Nonnegative
+  public long getAttemptCount ()
+  {
+    return m_aAttempts.get ();
+  }
+
+  /**
+   * @return The number of messages delivered since this outbox was started.
+   */
+  @Nonnegative
+  public long getDeliveredCount ()
+  {
+    return m_aDelivered.get ();
+  }
+
+  /**
+   * @return The number of messages that failed since this outbox was started.
+   */
+  @Nonnegative
+  public long getFailedCount ()
+  {
+    return m_aFailed.get ();
+  }
+
+  /**
+   * @return The number of syncs to disk for new messages since this outbox was
+   *         started. If messages are enqueued concurrently, this is less than
+   *         the number of enqueued messages.
+   */
+  @Nonnegative
+  public long getSyncCount ()
+  {
+    return m_aSyncs.get ();
+  }
+
+  @Nonnull
+  private File _getSegmentFile (final long nIndex)
+  {
+    return new File (m_aBaseDir, SEGMENT_PREFIX + StringHelper.getLeadingZero (nIndex, 10) + SEGMENT_SUFFIX);
+  }
+
+  @Nonnull
+  private static byte [] _createRecord (final byte nOp,
+                                        @Nonnull @Nonempty final String sMessageID,
+                                        final int nAttempts,
+                                        final long nNextAttemptMillis)
+  {
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+         final DataOutputStream aDOS = new DataOutputStream (aBAOS))
+    {
+      aDOS.writeByte (nOp);
+      aDOS.writeUTF (sMessageID);
+      if (nOp == OP_ATTEMPT)
+      {
+        aDOS.writeInt (nAttempts);
+        aDOS.writeLong (nNextAttemptMillis);
+      }
+      aDOS.flush ();
+      return aBAOS.toByteArray ();
+    }
+    catch (final IOException ex)
+    {
+      throw new UncheckedIOException (ex);
+    }
+  }
+
+  /**
+   * Start the outbox: replay all segments, build the in-memory index and
+   * resume sending all open messages.
+   *
+   * @throws IOException
+   *         If the segments cannot be read
+   */
+  public void start () throws IOException
+  {
+    m_aRWLock.writeLockedThrowing ( () -> {
+      if (m_aActiveSegment != null)
+        throw new IllegalStateException ("The outbox is already started");
+
+      if (FileOperations.createDirRecursiveIfNotExisting (m_aBaseDir).isFailure ())
+        throw new IOException ("Failed to create directory '" + m_aBaseDir.getAbsolutePath () + "'");
+
+      // Find all existing segments in order
+      final ICommonsSortedMap <Long, File> aSegmentFiles = new CommonsTreeMap <> ();
+      final File [] aFiles = m_aBaseDir.listFiles ();
+      if (aFiles != null)
+        for (final File aFile : aFiles)
+        {
+          final String sName = aFile.getName ();
+          if (aFile.isFile () && sName.startsWith (SEGMENT_PREFIX) && sName.endsWith (SEGMENT_SUFFIX))
+          {
+            final long nIndex = StringParser.parseLong (sName.substring (SEGMENT_PREFIX.length (),
+                                                                         sName.length () - SEGMENT_SUFFIX.length ()),
+                                                        -1);
+            if (nIndex >= 0)
+              aSegmentFiles.put (Long.valueOf (nIndex), aFile);
+          }
+        }
+
+      // Replay in order - the ordered map keeps the enqueue order
+      final ICommonsOrderedMap <String, IndexEntry> aOpenEntries = new CommonsLinkedHashMap <> ();
+      try
+      {
+        for (final Map.Entry <Long, File> aEntry : aSegmentFiles.entrySet ())
+        {
+          final AS4RecordSegment aSegment = new AS4RecordSegment (aEntry.getKey ().longValue (),
+                                                                  aEntry.getValue ());
+          final MutableInt aOpenCount = new MutableInt (0);
+          m_aSegments.put (aEntry.getKey (), aSegment);
+          m_aSegmentOpenCounts.put (aEntry.getKey (), aOpenCount);
+          aSegment.open ( (nOffset, nLength, aPayloadIS) -> {
+            // Only the record header is read - the stream is not closed
+            final DataInputStream aDIS = new DataInputStream (aPayloadIS);
+            final byte nOp = aDIS.readByte ();
+            final String sMessageID = aDIS.readUTF ();
+            switch (nOp)
+            {
+              case AS4OutboxEntry.OP_ENQUEUED:
+                if (!aOpenEntries.containsKey (sMessageID))
+                {
+                  aOpenEntries.put (sMessageID, new IndexEntry (sMessageID, aSegment, nOffset, nLength));
+                  aOpenCount.inc ();
+                }
+                break;
+              case OP_ATTEMPT:
+              {
+                final IndexEntry aIndexEntry = aOpenEntries.get (sMessageID);
+                if (aIndexEntry != null)
+                {
+                  aIndexEntry.m_nAttempts = aDIS.readInt ();
+                  aIndexEntry.m_nNextAttemptMillis = aDIS.readLong ();
+                }
+                break;
+              }
+              case OP_DELIVERED:
+              case OP_FAILED:
+              {
+                final IndexEntry aIndexEntry = aOpenEntries.remove (sMessageID);
+                if (aIndexEntry != null)
+                  m_aSegmentOpenCounts.get (Long.valueOf (aIndexEntry.m_aSegment.getIndex ())).dec ();
+                break;
+              }
+              default:
+                LOGGER.warn ("Ignoring unknown outbox record in segment '" + aSegment.getFile ().getAbsolutePath () + "'");
+                break;
+            }
+          });
+        }
+
+        // Continue writing in the last segment if possible
+        final Long aLastIndex = m_aSegmentOpenCounts.getLastKey ();
+        final AS4RecordSegment aLastSegment = aLastIndex == null ? null : m_aSegments.get (aLastIndex);
+        if (aLastSegment != null && aLastSegment.getSize () < m_nMaxSegmentSize)
+          m_aActiveSegment = aLastSegment;
+        else
+          m_aActiveSegment = _createSegment (aLastSegment == null ? 0 : aLastSegment.getIndex () + 1);
+      }
+      catch (final IOException | RuntimeException ex)
+      {
+        _closeAllSegments ();
+        throw ex;
+      }
+
+      m_aEntries.putAll (aOpenEntries);
+      _deleteUnusedSegments ();
+
+      final ScheduledThreadPoolExecutor aExecutor = new ScheduledThreadPoolExecutor (m_nWorkerCount,
+                                                                                     new BasicThreadFactory.Builder ().namingPattern ("phase4-outbox-%d")
+                                                                                                                      .daemon (true)
+                                                                                                                      .build ());
+      // Don't wait for scheduled retries upon shutdown
+      aExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy (false);
+      m_aExecutor = aExecutor;
+
+      // Resume sending
+      final long nNowMillis = System.currentTimeMillis ();
+      for (final IndexEntry aIndexEntry : aOpenEntries.values ())
+        _schedule (aIndexEntry.m_sMessageID, aIndexEntry.m_nNextAttemptMillis - nNowMillis);
+
+      LOGGER.info ("Started AS4 outbox in '" +
+                   m_aBaseDir.getAbsolutePath () +
+                   "' with " +
+                   m_aEntries.size () +
+                   " open messages");
+    });
+  }
+
+  @GuardedBy ("m_aRWLock")
+  @Nonnull
+  private AS4RecordSegment _createSegment (final long nIndex) throws IOException
+  {
+    final AS4RecordSegment ret = new AS4RecordSegment (nIndex, _getSegmentFile (nIndex));
+    ret.open ( (nOffset, nLength, aPayloadIS) -> {
+      // A new segment has no records
+    });
+    m_aSegments.put (Long.valueOf (nIndex), ret);
+    m_aSegmentOpenCounts.put (Long.valueOf (nIndex), new MutableInt (0));
+    return ret;
+  }
+
+  @GuardedBy ("m_aRWLock")
+  private void _closeAllSegments ()
+  {
+    for (final AS4RecordSegment aSegment : m_aSegments.values ())
+      try
+      {
+        aSegment.close ();
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.error ("Failed to close outbox segment '" + aSegment.getFile ().getAbsolutePath () + "'", ex);
+      }
+    m_aSegments.clear ();
+    m_aSegmentOpenCounts.clear ();
+    m_aActiveSegment = null;
+  }
+
+  /**
+   * Delete all leading segments that contain no open message anymore. Only a
+   * prefix is deleted, so that results stored in newer segments are never lost
+   * while the messages they refer to are still in an older one.
+   */
+  @GuardedBy ("m_aRWLock")
+  private void _deleteUnusedSegments ()
+  {
+    final Iterator <Map.Entry <Long, MutableInt>> it = m_aSegmentOpenCounts.entrySet ().iterator ();
+    while (it.hasNext ())
+    {
+      final Map.Entry <Long, MutableInt> aEntry = it.next ();
+      final AS4RecordSegment aSegment = m_aSegments.get (aEntry.getKey ());
+      if (aSegment == m_aActiveSegment || aEntry.getValue ().intValue () > 0)
+        break;
+
+      try
+      {
+        aSegment.delete ();
+        if (LOGGER.isDebugEnabled ())
+          LOGGER.debug ("Deleted outbox segment '" + aSegment.getFile ().getAbsolutePath () + "'");
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.error ("Failed to delete outbox segment '" + aSegment.getFile ().getAbsolutePath () + "'", ex);
+      }
+      it.remove ();
+      m_aSegments.remove (aEntry.getKey ());
+    }
+  }
+
+  @GuardedBy ("m_aRWLock")
+  @Nonnull
+  private AS4RecordSegment _getWritableSegment () throws IOException
+  {
+    if (m_aActiveSegment.getSize () >= m_nMaxSegmentSize)
+    {
+      // Later syncs only cover the new segment
+      if (m_bSyncOnWrite)
+        m_aActiveSegment.sync ();
+      m_aActiveSegment = _createSegment (m_aActiveSegment.getIndex () + 1);
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Started new outbox segment '" + m_aActiveSegment.getFile ().getAbsolutePath () + "'");
+    }
+    return m_aActiveSegment;
+  }
+
+  @GuardedBy ("m_aRWLock")
+  private void _appendUnsynced (@Nonnull final byte [] aRecord, @Nonnull final String sMessageID)
+  {
+    try
+    {
+      // No need to sync - in the worst case the message is sent again
+      _getWritableSegment ().append (aRecord, false);
+      m_nAppendedRecords++;
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.error ("Failed to record the state of message '" + sMessageID + "' in the AS4 outbox", ex);
+    }
+  }
+
+  /**
+   * Wait until the record with the provided sequence number is synced to disk.
+   * If no other thread is currently syncing, the current thread syncs all
+   * records appended so far.
+   */
+  private void _awaitSync (final long nRecord) throws IOException
+  {
+    m_aSyncLock.lock ();
+    try
+    {
+      while (m_nSyncedRecords < nRecord)
+      {
+        if (m_bSyncInProgress)
+        {
+          try
+          {
+            m_aSyncDone.await ();
+          }
+          catch (final InterruptedException ex)
+          {
+            Thread.currentThread ().interrupt ();
+            throw new InterruptedIOException ("Interrupted while waiting for the AS4 outbox sync");
+          }
+        }
+        else
+        {
+          m_bSyncInProgress = true;
+          final MutableLong aSyncedRecords = new MutableLong (-1);
+          m_aSyncLock.unlock ();
+          try
+          {
+            // Everything appended up to now is covered by this sync
+            final AS4RecordSegment aSegment = m_aRWLock.readLockedGet ( () -> {
+              _checkStarted ();
+              aSyncedRecords.set (m_nAppendedRecords);
+              return m_aActiveSegment;
+            });
+            aSegment.sync ();
+            m_aSyncs.incrementAndGet ();
+          }
+          finally
+          {
+            m_aSyncLock.lock ();
+            m_bSyncInProgress = false;
+            if (aSyncedRecords.longValue () > m_nSyncedRecords)
+              m_nSyncedRecords = aSyncedRecords.longValue ();
+            m_aSyncDone.signalAll ();
+          }
+        }
+      }
+    }
+    finally
+    {
+      m_aSyncLock.unlock ();
+    }
+  }
+
+  private void _checkStarted ()
+  {
+    if (m_aActiveSegment == null)
+      throw new IllegalStateException ("The outbox was not started");
+  }
+
+  @GuardedBy ("m_aRWLock")
+  private void _schedule (@Nonnull final String sMessageID, final long nDelayMillis)
+  {
+    if (m_aExecutor != null && !m_aExecutor.isShutdown ())
+      m_aExecutor.schedule ( () -> {
+        try
+        {
+          _attempt (sMessageID);
+        }
+        catch (final RuntimeException ex)
+        {
+          LOGGER.error ("Internal error sending AS4 message '" + sMessageID + "' from the outbox", ex);
+        }
+      }, Math.max (0, nDelayMillis), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Add a new message to the outbox. When this method returns normally, the
+   * message is persisted and sending is started in the background.
+   *
+   * @param aBuiltMsg
+   *        The fully built message to be sent. May not be <code>null</code>.
+   *        The HTTP entity is read completely. Large entities are spilled to a
+   *        temporary file before they are appended to the outbox segment.
+   * @param sURL
+   *        The URL to send the message to. May neither be <code>null</code>
+   *        nor empty.
+   * @param aRetrySettings
+   *        The retry settings to be used. May not be <code>null</code>.
+   * @param bReceiptRequired
+   *        <code>true</code> if the message is only delivered after a receipt
+   *        was received, <code>false</code> if a successful HTTP transmission
+   *        is sufficient.
+   * @throws IOException
+   *         If the message could not be persisted. In this case the message is
+   *         not contained in the outbox and may be enqueued again.
+   */
+  public void enqueue (@Nonnull final AS4ClientBuiltMessage aBuiltMsg,
+                       @Nonnull @Nonempty final String sURL,
+                       @Nonnull final HttpRetrySettings aRetrySettings,
+                       final boolean bReceiptRequired) throws IOException
+  {
+    enqueue (aBuiltMsg, sURL, aRetrySettings, bReceiptRequired, null);
+  }
+
+  /**
+   * Add a new message to the outbox. When this method returns normally, the
+   * message is persisted and sending is started in the background.
+   *
+   * @param aBuiltMsg
+   *        The fully built message to be sent. May not be <code>null</code>.
+   *        The HTTP entity is read completely. Large entities are spilled to a
+   *        temporary file before they are appended to the outbox segment.
+   * @param sURL
+   *        The URL to send the message to. May neither be <code>null</code>
+   *        nor empty.
+   * @param aRetrySettings
+   *        The retry settings to be used. May not be <code>null</code>.
+   * @param bReceiptRequired
+   *        <code>true</code> if the message is only delivered after a receipt
+   *        was received, <code>false</code> if a successful HTTP transmission
+   *        is sufficient.
+   * @param aSendingPMode
+   *        The PMode used to build the message. It is persisted with the
+   *        message and used to verify signed synchronous responses. May be
+   *        <code>null</code>.
+   * @throws IOException
+   *         If the message could not be persisted. In this case the message is
+   *         not contained in the outbox and may be enqueued again.
+   */
+  public void enqueue (@Nonnull final AS4ClientBuiltMessage aBuiltMsg,
+                       @Nonnull @Nonempty final String sURL,
+                       @Nonnull final HttpRetrySettings aRetrySettings,
+                       final boolean bReceiptRequired,
+                       @Nullable final IPMode aSendingPMode) throws IOException
+  {
+    ValueEnforcer.notNull (aBuiltMsg, "BuiltMsg");
+    ValueEnforcer.notEmpty (sURL, "URL");
+    ValueEnforcer.notNull (aRetrySettings, "RetrySettings");
+
+    final String sMessageID = aBuiltMsg.getMessageID ();
+
+    final MutableLong aRecordNum = new MutableLong (0);
+    final boolean bSync;
+    // Serialize outside of the lock
+    try (final AS4RecordBuffer aRecord = AS4OutboxEntry.createRecord (sURL,
+                                                                      aBuiltMsg,
+                                                                      aRetrySettings,
+                                                                      bReceiptRequired,
+                                                                      aSendingPMode))
+    {
+      bSync = m_aRWLock.writeLockedGetThrowing ( () -> {
+        _checkStarted ();
+        if (m_aEntries.containsKey (sMessageID))
+          throw new IllegalArgumentException ("The AS4 outbox already contains a message with ID '" + sMessageID + "'");
+
+        final AS4RecordSegment aSegment = _getWritableSegment ();
+        final long nOffset = aRecord.appendTo (aSegment, false);
+        aRecordNum.set (++m_nAppendedRecords);
+        m_aEntries.put (sMessageID, new IndexEntry (sMessageID, aSegment, nOffset, (int) aRecord.getLength ()));
+        m_aSegmentOpenCounts.get (Long.valueOf (aSegment.getIndex ())).inc ();
+        return Boolean.valueOf (m_bSyncOnWrite);
+      }).booleanValue ();
+    }
+
+    if (bSync)
+      try
+      {
+        _awaitSync (aRecordNum.longValue ());
+      }
+      catch (final IOException | RuntimeException ex)
+      {
+        // Not persisted - the caller may try again with the same message ID
+        _finish (sMessageID, OP_FAILED);
+        throw ex;
+      }
+
+    m_aEnqueued.incrementAndGet ();
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Stored AS4 message '" + sMessageID + "' in the outbox");
+
+    // Only send after it was persisted
+    m_aRWLock.readLocked ( () -> _schedule (sMessageID, 0));
+  }
+
+  /**
+   * Finish a message and record the result.
+   *
+   * @return <code>true</code> if the message was still contained.
+   */
+  private boolean _finish (@Nonnull final String sMessageID, final byte nOp)
+  {
+    return m_aRWLock.writeLockedBoolean ( () -> {
+      if (m_aActiveSegment == null)
+        return false;
+      final IndexEntry aIndexEntry = m_aEntries.remove (sMessageID);
+      if (aIndexEntry == null)
+        return false;
+
+      _appendUnsynced (_createRecord (nOp, sMessageID, 0, 0), sMessageID);
+
+      final MutableInt aOpenCount = m_aSegmentOpenCounts.get (Long.valueOf (aIndexEntry.m_aSegment.getIndex ()));
+      if (aOpenCount != null)
+        aOpenCount.dec ();
+      _deleteUnusedSegments ();
+      return true;
+    });
+  }
+
+  /**
+   * Mark the message with the provided ID as delivered, because its receipt
+   * was received.
+   *
+   * @param sMessageID
+   *        The ID of the message that was acknowledged. May be
+   *        <code>null</code>.
+   * @return {@link EChange#CHANGED} if the message was contained in the
+   *         outbox.
+   */
+  @Nonnull
+  public EChange acknowledge (@Nullable final String sMessageID)
+  {
+    if (StringHelper.hasNoText (sMessageID) || !_finish (sMessageID, OP_DELIVERED))
+      return EChange.UNCHANGED;
+
+    m_aDelivered.incrementAndGet ();
+    LOGGER.info ("AS4 message '" + sMessageID + "' from the outbox was delivered");
+
+    final IAS4OutboxListener aListener = getListener ();
+    if (aListener != null)
+      aListener.onDelivered (sMessageID);
+    return EChange.CHANGED;
+  }
+
+  private void _fail (@Nonnull final AS4OutboxEntry aEntry,
+                      @Nullable final Ebms3SignalMessage aErrorSignalMsg,
+                      @Nullable final Exception aLastException)
+  {
+    if (!_finish (aEntry.getMessageID (), OP_FAILED))
+      return;
+
+    m_aFailed.incrementAndGet ();
+    final IAS4OutboxListener aListener = getListener ();
+    if (aListener != null)
+      aListener.onFailed (aEntry, aErrorSignalMsg, aLastException);
+  }
+
+  @Nullable
+  private Ebms3SignalMessage _handleResponse (@Nonnull final AS4OutboxEntry aEntry,
+                                              @Nonnull final ClassicHttpResponse aHttpResponse) throws IOException
+  {
+    // May throw an ExtendedHttpResponseException
+    final HttpEntity aEntity = ResponseHandlerHttpEntity.INSTANCE.handleResponse (aHttpResponse);
+    if (aEntity == null)
+      return null;
+
+    final IAS4OutboxResponseHandler aResponseHandler = getResponseHandler ();
+    if (aResponseHandler == null)
+    {
+      EntityUtils.consume (aEntity);
+      return null;
+    }
+
+    try
+    {
+      return aResponseHandler.handleResponse (aEntry, aHttpResponse, aEntity.getContent ());
+    }
+    catch (final Phase4Exception ex)
+    {
+      // Connection problems while reading are still transport errors
+      if (ex.getCause () instanceof IOException)
+        throw (IOException) ex.getCause ();
+
+      LOGGER.warn ("Failed to interpret the response for AS4 message '" + aEntry.getMessageID () + "'", ex);
+      return null;
+    }
+  }
+
+  private void _attempt (@Nonnull final String sMessageID)
+  {
+    final IndexEntry aIndexEntry = m_aRWLock.readLockedGet ( () -> m_aEntries.get (sMessageID));
+    if (aIndexEntry == null)
+    {
+      // Finished in the meantime
+      return;
+    }
+
+    final AS4OutboxEntry aEntry;
+    try
+    {
+      aEntry = AS4OutboxEntry.readRecord (aIndexEntry.m_aSegment.getFile (),
+                                          aIndexEntry.m_nOffset,
+                                          aIndexEntry.m_nLength);
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      LOGGER.error ("Failed to read AS4 message '" + sMessageID + "' from the outbox - giving up", ex);
+      if (_finish (sMessageID, OP_FAILED))
+        m_aFailed.incrementAndGet ();
+      return;
+    }
+
+    final int nAttempt = m_aRWLock.readLockedInt ( () -> aIndexEntry.m_nAttempts);
+    if (nAttempt >= aEntry.getMaxAttempts ())
+    {
+      LOGGER.error ("Giving up on AS4 message '" +
+                    sMessageID +
+                    "' after " +
+                    nAttempt +
+                    " attempts - no receipt was received");
+      _fail (aEntry, null, null);
+      return;
+    }
+
+    // Record the attempt before sending, so that a crash counts as well
+    final long nNextAttemptMillis = System.currentTimeMillis () +
+                                    aEntry.getDurationBeforeNextAttempt (nAttempt).toMillis ();
+    m_aRWLock.writeLocked ( () -> {
+      aIndexEntry.m_nAttempts = nAttempt + 1;
+      aIndexEntry.m_nNextAttemptMillis = nNextAttemptMillis;
+      if (m_aActiveSegment != null)
+        _appendUnsynced (_createRecord (OP_ATTEMPT, sMessageID, nAttempt + 1, nNextAttemptMillis), sMessageID);
+    });
+    m_aAttempts.incrementAndGet ();
+
+    if (nAttempt > 0)
+      LOGGER.info ("Retry #" +
+                   nAttempt +
+                   "/" +
+                   (aEntry.getMaxAttempts () - 1) +
+                   " for sending AS4 message '" +
+                   sMessageID +
+                   "' from the outbox");
+
+    Ebms3SignalMessage aSignalMsg = null;
+    Exception aException = null;
+    // Continue the trace of the enqueuing thread
+    try (final IAS4Span aSpan = AS4TracingManager.startSpan (AS4TracingManager.SPAN_OUTBOX_ATTEMPT,
+                                                             EAS4SpanKind.INTERNAL,
+                                                             aEntry.getTraceHeaders ()))
+    {
+      // Retries are handled here, so each call is a single try
+      aSignalMsg = getHttpPoster ().sendGenericMessageWithRetries (aEntry.getURL (),
+                                                                   aEntry.getHttpHeaders (),
+                                                                   aEntry.getHttpEntity (),
+                                                                   sMessageID,
+                                                                   new HttpRetrySettings (),
+                                                                   x -> _handleResponse (aEntry, x),
+                                                                   null,
+                                                                   null);
+    }
+    catch (final IOException ex)
+    {
+      aException = ex;
+    }
+
+    if (aException == null)
+    {
+      if (aSignalMsg != null && aSignalMsg.hasErrorEntries ())
+      {
+        LOGGER.error ("AS4 message '" + sMessageID + "' from the outbox was rejected with an error signal");
+        _fail (aEntry, aSignalMsg, null);
+        return;
+      }
+      if (!aEntry.isReceiptRequired () || (aSignalMsg != null && aSignalMsg.getReceipt () != null))
+      {
+        acknowledge (sMessageID);
+        return;
+      }
+
+      // Wait for the receipt and resend afterwards (reception awareness)
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("AS4 message '" + sMessageID + "' from the outbox was sent, waiting for the receipt");
+    }
+    else
+    {
+      if (nAttempt + 1 >= aEntry.getMaxAttempts ())
+      {
+        LOGGER.error ("Giving up on AS4 message '" +
+                      sMessageID +
+                      "' to '" +
+                      aEntry.getURL () +
+                      "' after " +
+                      (nAttempt + 1) +
+                      " attempts: " +
+                      aException.getClass ().getSimpleName () +
+                      " - " +
+                      aException.getMessage ());
+        _fail (aEntry, null, aException);
+        return;
+      }
+
+      LOGGER.warn ("Error sending AS4 message '" +
+                   sMessageID +
+                   "' from the outbox to '" +
+                   aEntry.getURL () +
+                   "': " +
+                   aException.getClass ().getSimpleName () +
+                   " - " +
+                   aException.getMessage () +
+                   " - retrying in " +
+                   (nNextAttemptMillis - System.currentTimeMillis ()) +
+                   " ms");
+    }
+
+    m_aRWLock.readLocked ( () -> _schedule (sMessageID, nNextAttemptMillis - System.currentTimeMillis ()));
+  }
+
+  /**
+   * Stop sending and close all segments. All open messages are sent again
+   * after the next {@link #start()}.
+   */
+  public void close ()
+  {
+    final ScheduledThreadPoolExecutor aExecutor = m_aRWLock.writeLockedGet ( () -> {
+      final ScheduledThreadPoolExecutor ret = m_aExecutor;
+      m_aExecutor = null;
+      return ret;
+    });
+    if (aExecutor != null)
+    {
+      // Wait for running attempts
+      ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (aExecutor);
+    }
+
+    m_aRWLock.writeLocked ( () -> {
+      _closeAllSegments ();
+      m_aEntries.clear ();
+    });
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("BaseDir", m_aBaseDir)
+                                       .append ("WorkerCount", m_nWorkerCount)
+                                       .append ("MaxSegmentSize", m_nMaxSegmentSize)
+                                       .append ("SyncOnWrite", m_bSyncOnWrite)
+                                       .append ("HttpPoster", m_aHttpPoster)
+                                       .appendIfNotNull ("ResponseHandler", m_aResponseHandler)
+                                       .appendIfNotNull ("Listener", m_aListener)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,531 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.sender.outbox;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.Map;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.io.entity.AbstractHttpEntity;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.stream.CountingInputStream;
+import com.helger.commons.io.stream.NonClosingOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.phase4.client.AS4ClientBuiltMessage;
+import com.helger.json.IJson;
+import com.helger.json.serialize.JsonReader;
+import com.helger.phase4.http.HttpRetrySettings;
+import com.helger.phase4.model.pmode.IPMode;
+import com.helger.phase4.model.pmode.PModeJsonConverter;
+import com.helger.phase4.tracing.AS4TracingManager;
+import com.helger.phase4.tracing.EAS4SpanKind;
+import com.helger.phase4.util.AS4RecordBuffer;
+import com.helger.phase4.util.AS4RecordSegment;
+
+/**
+ * A single message stored in the {@link AS4Outbox}. It contains the metadata
+ * required to deliver the message and references the fully built HTTP body
+ * (already signed and encrypted) in the outbox segment, from which it is
+ * streamed when sending.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@Immutable
+public final class AS4OutboxEntry
+{
+  static final byte OP_ENQUEUED = 'E';
+
+  private final String m_sMessageID;
+  private final String m_sURL;
+  private final OffsetDateTime m_aCreationDT;
+  private final boolean m_bReceiptRequired;
+  private final int m_nMaxRetries;
+  private final Duration m_aDurationBeforeRetry;
+  private final BigDecimal m_aRetryIncreaseFactor;
+  private final HttpHeaderMap m_aHttpHeaders;
+  private final String m_sContentType;
+  private final IPMode m_aSendingPMode;
+  private final HttpHeaderMap m_aTraceHeaders;
+  private final File m_aSegmentFile;
+  private final long m_nPayloadOffset;
+  private final int m_nPayloadLength;
+  private final int m_nHeaderLength;
+
+  /**
+   * A repeatable HTTP entity, that streams the body from the segment file.
+   *
+   * @author Philip Helger
+   */
+  private final class BodyEntity extends AbstractHttpEntity
+  {
+    BodyEntity ()
+    {
+      super (m_sContentType, null);
+    }
+
+    @Override
+    public boolean isRepeatable ()
+    {
+      return true;
+    }
+
+    public long getContentLength ()
+    {
+      return getBodyLength ();
+    }
+
+    public boolean isStreaming ()
+    {
+      return false;
+    }
+
+    public InputStream getContent () throws IOException
+    {
+      return openBodyStream ();
+    }
+
+    public void close ()
+    {
+      // nothing to do
+    }
+  }
+
+  private AS4OutboxEntry (@Nonnull @Nonempty final String sMessageID,
+                          @Nonnull @Nonempty final String sURL,
+                          @Nonnull final OffsetDateTime aCreationDT,
+                          final boolean bReceiptRequired,
+                          final int nMaxRetries,
+                          @Nonnull final Duration aDurationBeforeRetry,
+                          @Nonnull final BigDecimal aRetryIncreaseFactor,
+                          @Nonnull final HttpHeaderMap aHttpHeaders,
+                          @Nullable final String sContentType,
+                          @Nullable final IPMode aSendingPMode,
+                          @Nonnull final HttpHeaderMap aTraceHeaders,
+                          @Nonnull final File aSegmentFile,
+                          final long nPayloadOffset,
+                          final int nPayloadLength,
+                          final int nHeaderLength)
+  {
+    m_sMessageID = sMessageID;
+    m_sURL = sURL;
+    m_aCreationDT = aCreationDT;
+    m_bReceiptRequired = bReceiptRequired;
+    m_nMaxRetries = nMaxRetries;
+    m_aDurationBeforeRetry = aDurationBeforeRetry;
+    m_aRetryIncreaseFactor = aRetryIncreaseFactor;
+    m_aHttpHeaders = aHttpHeaders;
+    m_sContentType = sContentType;
+    m_aSendingPMode = aSendingPMode;
+    m_aTraceHeaders = aTraceHeaders;
+    m_aSegmentFile = aSegmentFile;
+    m_nPayloadOffset = nPayloadOffset;
+    m_nPayloadLength = nPayloadLength;
+    m_nHeaderLength = nHeaderLength;
+  }
+
+  /**
+   * @return The ID of the AS4 message. Neither <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  public String getMessageID ()
+  {
+    return m_sMessageID;
+  }
+
+  /**
+   * @return The URL the message is sent to. Neither <code>null</code> nor
+   *         empty.
+   */
+  @Nonnull
+  @Nonempty
+  public String getURL ()
+  {
+    return m_sURL;
+  }
+
+  /**
+   * @return The date and time when the message was put into the outbox. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public OffsetDateTime getCreationDateTime ()
+  {
+    return m_aCreationDT;
+  }
+
+  /**
+   * @return <code>true</code> if the message is only considered delivered
+   *         when a receipt was received (reception awareness),
+   *         <code>false</code> if a successful HTTP transmission is sufficient.
+   */
+  public boolean isReceiptRequired ()
+  {
+    return m_bReceiptRequired;
+  }
+
+  /**
+   * @return The retry settings to be used for this message. Never
+   *         <code>null</code>. Each call returns a new object.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public HttpRetrySettings getRetrySettings ()
+  {
+    return new HttpRetrySettings ().setMaxRetries (m_nMaxRetries)
+                                   .setDurationBeforeRetry (m_aDurationBeforeRetry)
+                                   .setRetryIncreaseFactor (m_aRetryIncreaseFactor);
+  }
+
+  /**
+   * @return The maximum number of attempts to deliver this message. Always
+   *         &gt; 0.
+   */
+  @Nonnegative
+  public int getMaxAttempts ()
+  {
+    return 1 + Math.max (0, m_nMaxRetries);
+  }
+
+  /**
+   * Get the duration to wait before the next attempt. This uses the same
+   * semantics as the synchronous retry handling.
+   *
+   * @param nAttempt
+   *        The 0-based index of the attempt that was just performed.
+   * @return The duration to wait. Never <code>null</code>.
+   */
+  @Nonnull
+  public Duration getDurationBeforeNextAttempt (@Nonnegative final int nAttempt)
+  {
+    Duration ret = m_aDurationBeforeRetry;
+    // After the first retry, increase the waiting time
+    for (int i = 2; i <= nAttempt; ++i)
+      ret = HttpRetrySettings.getIncreased (ret, m_aRetryIncreaseFactor);
+    return ret;
+  }
+
+  /**
+   * @return The custom HTTP headers to be sent. Never <code>null</code>. Each
+   *         call returns a new object.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public HttpHeaderMap getHttpHeaders ()
+  {
+    return m_aHttpHeaders.getClone ();
+  }
+
+  /**
+   * @return The PMode that was used to build the message. It is needed to
+   *         verify a signed synchronous response. May be <code>null</code>.
+   */
+  @Nullable
+  public IPMode getSendingPMode ()
+  {
+    return m_aSendingPMode;
+  }
+
+  /**
+   * @return The trace context of the enqueuing thread in the form of HTTP
+   *         headers, so that each sending attempt continues the original
+   *         trace. Never <code>null</code> but maybe empty. Each call returns a
+   *         new object.
+   * @see AS4TracingManager#startSpan(String, EAS4SpanKind, HttpHeaderMap)
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public HttpHeaderMap getTraceHeaders ()
+  {
+    return m_aTraceHeaders.getClone ();
+  }
+
+  /**
+   * Open a new stream on the HTTP body. The body is read from the outbox
+   * segment and the record checksum is verified when the end of the body is
+   * reached.
+   *
+   * @return A new input stream. Never <code>null</code>. The caller is
+   *         responsible for closing it.
+   * @throws IOException
+   *         In case the segment cannot be read
+   */
+  @Nonnull
+  public InputStream openBodyStream () throws IOException
+  {
+    final InputStream aIS = AS4RecordSegment.openRecordStream (m_aSegmentFile, m_nPayloadOffset, m_nPayloadLength);
+    try
+    {
+      // Skipping reads through the checksum calculation
+      StreamHelper.skipFully (aIS, m_nHeaderLength);
+      return aIS;
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      StreamHelper.close (aIS);
+      throw ex;
+    }
+  }
+
+  /**
+   * @return The HTTP entity to be sent. Never <code>null</code>. The entity is
+   *         repeatable and streams the body from the outbox segment, so the
+   *         message is never held in memory completely.
+   */
+  @Nonnull
+  public HttpEntity getHttpEntity ()
+  {
+    return new BodyEntity ();
+  }
+
+  /**
+   * @return The number of bytes of the HTTP body.
+   */
+  @Nonnegative
+  public int getBodyLength ()
+  {
+    return m_nPayloadLength - m_nHeaderLength;
+  }
+
+  private static void _writeString (@Nonnull final DataOutputStream aDOS, @Nullable final String s) throws IOException
+  {
+    aDOS.writeUTF (StringHelper.getNotNull (s));
+  }
+
+  @Nullable
+  private static String _readString (@Nonnull final DataInputStream aDIS) throws IOException
+  {
+    return StringHelper.getNotEmpty (aDIS.readUTF (), (String) null);
+  }
+
+  private static void _writeLongString (@Nonnull final DataOutputStream aDOS, @Nullable final String s) throws IOException
+  {
+    // writeUTF is limited to 64KB
+    final byte [] aBytes = StringHelper.getNotNull (s).getBytes (StandardCharsets.UTF_8);
+    aDOS.writeInt (aBytes.length);
+    aDOS.write (aBytes);
+  }
+
+  @Nullable
+  private static String _readLongString (@Nonnull final DataInputStream aDIS) throws IOException
+  {
+    final int nLength = aDIS.readInt ();
+    if (nLength < 0)
+      throw new IOException ("Invalid string length " + nLength);
+    final byte [] aBytes = new byte [nLength];
+    aDIS.readFully (aBytes);
+    return StringHelper.getNotEmpty (new String (aBytes, StandardCharsets.UTF_8), (String) null);
+  }
+
+  private static void _writeHeaders (@Nonnull final DataOutputStream aDOS,
+                                    @Nullable final HttpHeaderMap aHeaders) throws IOException
+  {
+    aDOS.writeInt (aHeaders == null ? 0 : aHeaders.size ());
+    if (aHeaders != null)
+      for (final Map.Entry <String, ICommonsList <String>> aEntry : aHeaders)
+      {
+        aDOS.writeUTF (aEntry.getKey ());
+        aDOS.writeInt (aEntry.getValue ().size ());
+        for (final String sValue : aEntry.getValue ())
+          aDOS.writeUTF (sValue);
+      }
+  }
+
+  @Nonnull
+  private static HttpHeaderMap _readHeaders (@Nonnull final DataInputStream aDIS) throws IOException
+  {
+    final int nHeaderCount = aDIS.readInt ();
+    final HttpHeaderMap ret = new HttpHeaderMap ();
+    for (int i = 0; i < nHeaderCount; ++i)
+    {
+      final String sName = aDIS.readUTF ();
+      final int nValueCount = aDIS.readInt ();
+      for (int j = 0; j < nValueCount; ++j)
+        ret.addHeader (sName, aDIS.readUTF ());
+    }
+    return ret;
+  }
+
+  /**
+   * Create the journal record for a new entry. The trace context of the
+   * calling thread is stored with the entry.
+   *
+   * @param sURL
+   *        The destination URL. May neither be <code>null</code> nor empty.
+   * @param aBuiltMsg
+   *        The built message. May not be <code>null</code>.
+   * @param aRetrySettings
+   *        The retry settings to use. May not be <code>null</code>.
+   * @param bReceiptRequired
+   *        <code>true</code> if a receipt is required.
+   * @param aSendingPMode
+   *        The PMode used to build the message. May be <code>null</code>.
+   * @return The record payload, that is spilled to a temporary file if it is
+   *         large. Never <code>null</code>. The caller is responsible for
+   *         closing it.
+   * @throws IOException
+   *         In case the HTTP entity cannot be read
+   */
+  @Nonnull
+  static AS4RecordBuffer createRecord (@Nonnull @Nonempty final String sURL,
+                                       @Nonnull final AS4ClientBuiltMessage aBuiltMsg,
+                                       @Nonnull final HttpRetrySettings aRetrySettings,
+                                       final boolean bReceiptRequired,
+                                       @Nullable final IPMode aSendingPMode) throws IOException
+  {
+    final HttpEntity aEntity = aBuiltMsg.getHttpEntity ();
+    final HttpHeaderMap aHeaders = aBuiltMsg.getCustomHeaders ();
+    final HttpHeaderMap aTraceHeaders = new HttpHeaderMap ();
+    AS4TracingManager.injectContext (aTraceHeaders::setHeader);
+
+    final AS4RecordBuffer ret = new AS4RecordBuffer ();
+    try (final DataOutputStream aDOS = new DataOutputStream (new NonClosingOutputStream (ret)))
+    {
+      aDOS.writeByte (OP_ENQUEUED);
+      aDOS.writeUTF (aBuiltMsg.getMessageID ());
+      aDOS.writeUTF (sURL);
+      aDOS.writeLong (System.currentTimeMillis ());
+      aDOS.writeBoolean (bReceiptRequired);
+      aDOS.writeInt (aRetrySettings.getMaxRetries ());
+      aDOS.writeLong (aRetrySettings.getDurationBeforeRetry ().toMillis ());
+      aDOS.writeUTF (aRetrySettings.getRetryIncreaseFactor ().toPlainString ());
+      _writeHeaders (aDOS, aHeaders);
+      _writeString (aDOS, aEntity.getContentType ());
+      _writeLongString (aDOS,
+                        aSendingPMode == null ? null
+                                              : PModeJsonConverter.convertToJson (aSendingPMode).getAsJsonString ());
+      _writeHeaders (aDOS, aTraceHeaders);
+
+      // The body is the last element, so no length is needed
+      aDOS.flush ();
+      aEntity.writeTo (ret);
+      return ret;
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      ret.close ();
+      throw ex;
+    }
+  }
+
+  /**
+   * Restore an entry from the provided record. Only the record header is read
+   * - the body is streamed from the segment file when it is sent.
+   *
+   * @param aSegmentFile
+   *        The segment file containing the record as created by
+   *        {@link #createRecord(String, AS4ClientBuiltMessage, HttpRetrySettings, boolean, IPMode)}.
+   *        May not be <code>null</code>.
+   * @param nPayloadOffset
+   *        The file offset of the record payload.
+   * @param nPayloadLength
+   *        The record payload length.
+   * @return The restored entry. Never <code>null</code>.
+   * @throws IOException
+   *         In case the record is not valid
+   */
+  @Nonnull
+  static AS4OutboxEntry readRecord (@Nonnull final File aSegmentFile,
+                                    final long nPayloadOffset,
+                                    final int nPayloadLength) throws IOException
+  {
+    ValueEnforcer.notNull (aSegmentFile, "SegmentFile");
+
+    try (final InputStream aIS = AS4RecordSegment.openRecordStream (aSegmentFile, nPayloadOffset, nPayloadLength);
+         final CountingInputStream aCIS = new CountingInputStream (aIS);
+         final DataInputStream aDIS = new DataInputStream (aCIS))
+    {
+      if (aDIS.readByte () != OP_ENQUEUED)
+        throw new IOException ("The record is not an outbox entry");
+      final String sMessageID = aDIS.readUTF ();
+      final String sURL = aDIS.readUTF ();
+      final OffsetDateTime aCreationDT = PDTFactory.createOffsetDateTime (aDIS.readLong ());
+      final boolean bReceiptRequired = aDIS.readBoolean ();
+      final int nMaxRetries = aDIS.readInt ();
+      final Duration aDurationBeforeRetry = Duration.ofMillis (aDIS.readLong ());
+      final BigDecimal aRetryIncreaseFactor = new BigDecimal (aDIS.readUTF ());
+      final HttpHeaderMap aHeaders = _readHeaders (aDIS);
+      final String sContentType = _readString (aDIS);
+      final String sSendingPMode = _readLongString (aDIS);
+      IPMode aSendingPMode = null;
+      if (sSendingPMode != null)
+      {
+        final IJson aJson = JsonReader.readFromString (sSendingPMode);
+        if (aJson == null || !aJson.isObject ())
+          throw new IOException ("The sending PMode of the outbox entry is invalid");
+        aSendingPMode = PModeJsonConverter.convertToNative (aJson.getAsObject ());
+      }
+      final HttpHeaderMap aTraceHeaders = _readHeaders (aDIS);
+      return new AS4OutboxEntry (sMessageID,
+                                 sURL,
+                                 aCreationDT,
+                                 bReceiptRequired,
+                                 nMaxRetries,
+                                 aDurationBeforeRetry,
+                                 aRetryIncreaseFactor,
+                                 aHeaders,
+                                 sContentType,
+                                 aSendingPMode,
+                                 aTraceHeaders,
+                                 aSegmentFile,
+                                 nPayloadOffset,
+                                 nPayloadLength,
+                                 (int) aCIS.getBytesRead ());
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("MessageID", m_sMessageID)
+                                       .append ("URL", m_sURL)
+                                       .append ("CreationDT", m_aCreationDT)
+                                       .append ("ReceiptRequired", m_bReceiptRequired)
+                                       .append ("MaxRetries", m_nMaxRetries)
+                                       .append ("DurationBeforeRetry", m_aDurationBeforeRetry)
+                                       .append ("RetryIncreaseFactor", m_aRetryIncreaseFactor)
+                                       .append ("HttpHeaders", m_aHttpHeaders)
+                                       .append ("ContentType", m_sContentType)
+                                       .appendIfNotNull ("SendingPModeID", m_aSendingPMode == null ? null : m_aSendingPMode.getID ())
+                                       .append ("TraceHeaders", m_aTraceHeaders)
+                                       .append ("SegmentFile", m_aSegmentFile)
+                                       .append ("BodyLength", getBodyLength ())
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.sender.outbox;
+
+import java.io.InputStream;
+import java.util.Locale;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.WillClose;
+import javax.annotation.concurrent.Immutable;
+
+import org.apache.hc.core5.http.HttpResponse;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.phase4.attachment.IAS4IncomingAttachmentFactory;
+import com.helger.phase4.crypto.IAS4CryptoFactory;
+import com.helger.phase4.dump.IAS4IncomingDumper;
+import com.helger.phase4.ebms3header.Ebms3SignalMessage;
+import com.helger.phase4.messaging.IAS4IncomingMessageMetadata;
+import com.helger.phase4.model.pmode.resolve.IPModeResolver;
+import com.helger.phase4.servlet.AS4IncomingHandler;
+import com.helger.phase4.servlet.AS4IncomingMessageMetadata;
+import com.helger.phase4.servlet.IAS4IncomingProfileSelector;
+import com.helger.phase4.util.AS4ResourceHelper;
+import com.helger.phase4.util.Phase4Exception;
+
+/**
+ * The default {@link IAS4OutboxResponseHandler} that parses the synchronous
+ * response as an AS4 signal message, including signature verification and
+ * decryption. The sending PMode stored with the outbox entry is used to
+ * verify the response.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@Immutable
+public class AS4OutboxSignalResponseHandler implements IAS4OutboxResponseHandler
+{
+  private final IAS4CryptoFactory m_aCryptoFactory;
+  private final IPModeResolver m_aPModeResolver;
+  private final IAS4IncomingAttachmentFactory m_aIAF;
+  private final IAS4IncomingProfileSelector m_aIncomingProfileSelector;
+  private final Locale m_aLocale;
+  private final IAS4IncomingDumper m_aIncomingDumper;
+
+  /**
+   * Constructor
+   *
+   * @param aCryptoFactory
+   *        The crypto factory to use for verifying the response. May not be
+   *        <code>null</code>.
+   * @param aPModeResolver
+   *        The PMode resolver to be used. May not be <code>null</code>.
+   * @param aIAF
+   *        The incoming attachment factory to be used. May not be
+   *        <code>null</code>.
+   * @param aIncomingProfileSelector
+   *        The incoming profile selector to be used. May not be
+   *        <code>null</code>.
+   * @param aLocale
+   *        The locale for error messages. May not be <code>null</code>.
+   * @param aIncomingDumper
+   *        The incoming dumper to be used. May be <code>null</code> to use the
+   *        global one.
+   */
+  public AS4OutboxSignalResponseHandler (@Nonnull final IAS4CryptoFactory aCryptoFactory,
+                                         @Nonnull final IPModeResolver aPModeResolver,
+                                         @Nonnull final IAS4IncomingAttachmentFactory aIAF,
+                                         @Nonnull final IAS4IncomingProfileSelector aIncomingProfileSelector,
+                                         @Nonnull final Locale aLocale,
+                                         @Nullable final IAS4IncomingDumper aIncomingDumper)
+  {
+    ValueEnforcer.notNull (aCryptoFactory, "CryptoFactory");
+    ValueEnforcer.notNull (aPModeResolver, "PModeResolver");
+    ValueEnforcer.notNull (aIAF, "IAF");
+    ValueEnforcer.notNull (aIncomingProfileSelector, "IncomingProfileSelector");
+    ValueEnforcer.notNull (aLocale, "Locale");
+    m_aCryptoFactory = aCryptoFactory;
+    m_aPModeResolver = aPModeResolver;
+    m_aIAF = aIAF;
+    m_aIncomingProfileSelector = aIncomingProfileSelector;
+    m_aLocale = aLocale;
+    m_aIncomingDumper = aIncomingDumper;
+  }
+
+  @Nullable
+  public Ebms3SignalMessage handleResponse (@Nonnull final AS4OutboxEntry aEntry,
+                                            @Nonnull final HttpResponse aHttpResponse,
+                                            @Nonnull @WillClose final InputStream aResponseIS) throws Phase4Exception
+  {
+    final IAS4IncomingMessageMetadata aMessageMetadata = AS4IncomingMessageMetadata.createForResponse (aEntry.getMessageID ())
+                                                                                   .setRemoteAddr (aEntry.getURL ());
+    try (final AS4ResourceHelper aResHelper = new AS4ResourceHelper ())
+    {
+      return AS4IncomingHandler.parseSignalMessage (m_aCryptoFactory,
+                                                    m_aPModeResolver,
+                                                    m_aIAF,
+                                                    m_aIncomingProfileSelector,
+                                                    aResHelper,
+                                                    aEntry.getSendingPMode (),
+                                                    m_aLocale,
+                                                    aMessageMetadata,
+                                                    aHttpResponse,
+                                                    aResponseIS,
+                                                    m_aIncomingDumper);
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("CryptoFactory", m_aCryptoFactory)
+                                       .append ("PModeResolver", m_aPModeResolver)
+                                       .append ("IAF", m_aIAF)
+                                       .append ("IncomingProfileSelector", m_aIncomingProfileSelector)
+                                       .append ("Locale", m_aLocale)
+                                       .appendIfNotNull ("IncomingDumper", m_aIncomingDumper)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.sender.outbox;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.phase4.ebms3header.Ebms3SignalMessage;
+
+/**
+ * Listener interface for the final state of messages in the
+ * {@link AS4Outbox}. The methods are invoked in the sending threads of the
+ * outbox or in the thread that acknowledged the message.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+public interface IAS4OutboxListener
+{
+  /**
+   * Invoked after a message was delivered, that is either transmitted
+   * successfully or acknowledged with a receipt if reception awareness is
+   * required.
+   *
+   * @param sMessageID
+   *        The ID of the delivered message. Never <code>null</code>.
+   */
+  default void onDelivered (@Nonnull final String sMessageID)
+  {}
+
+  /**
+   * Invoked after a message was finally given up.
+   *
+   * @param aEntry
+   *        The entry that failed. Never <code>null</code>.
+   * @param aErrorSignalMsg
+   *        The signal message with the errors returned by the receiver. May be
+   *        <code>null</code> if the maximum number of attempts was reached.
+   * @param aLastException
+   *        The exception of the last attempt. May be <code>null</code>.
+   */
+  default void onFailed (@Nonnull final AS4OutboxEntry aEntry,
+                         @Nullable final Ebms3SignalMessage aErrorSignalMsg,
+                         @Nullable final Exception aLastException)
+  {}
+}
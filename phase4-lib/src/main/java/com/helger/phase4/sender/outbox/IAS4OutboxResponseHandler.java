@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.sender.outbox;
+
+import java.io.InputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.WillClose;
+
+import org.apache.hc.core5.http.HttpResponse;
+
+import com.helger.phase4.ebms3header.Ebms3SignalMessage;
+import com.helger.phase4.util.Phase4Exception;
+
+/**
+ * Interface to interpret the synchronous HTTP response of a message sent from
+ * the {@link AS4Outbox}.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@FunctionalInterface
+public interface IAS4OutboxResponseHandler
+{
+  /**
+   * Parse the HTTP response of a successful transmission.
+   *
+   * @param aEntry
+   *        The outbox entry that was sent. Never <code>null</code>.
+   * @param aHttpResponse
+   *        The HTTP response. Never <code>null</code>.
+   * @param aResponseIS
+   *        The HTTP response body. Never <code>null</code>.
+   * @return The contained signal message or <code>null</code> if the response
+   *         contains no signal message. A signal message with a receipt marks
+   *         the entry as delivered, a signal message with errors marks the
+   *         entry as failed.
+   * @throws Phase4Exception
+   *         In case the response cannot be parsed
+   */
+  @Nullable
+  Ebms3SignalMessage handleResponse (@Nonnull AS4OutboxEntry aEntry,
+                                     @Nonnull HttpResponse aHttpResponse,
+                                     @Nonnull @WillClose InputStream aResponseIS) throws Phase4Exception;
+}
@@ -0,0 +1,778 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.OverrideOnDemand;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.http.CHttp;
+import com.helger.commons.http.CHttpHeader;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.stream.HasInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.mime.CMimeType;
+import com.helger.commons.mime.IMimeType;
+import com.helger.commons.string.StringParser;
+import com.helger.phase4.attachment.IAS4IncomingAttachmentFactory;
+import com.helger.phase4.crypto.AS4CryptoFactoryProperties;
+import com.helger.phase4.crypto.IAS4CryptoFactory;
+import com.helger.phase4.messaging.IAS4IncomingMessageMetadata;
+import com.helger.phase4.model.pmode.resolve.DefaultPModeResolver;
+import com.helger.phase4.model.pmode.resolve.IPModeResolver;
+import com.helger.phase4.util.AS4ResourceHelper;
+import com.helger.phase4.util.Phase4Exception;
+import com.helger.servlet.request.RequestHelper;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Asynchronous AS4 receiving servlet. Compared to {@link AS4Servlet} the
+ * request body is read with non-blocking I/O, so that slow senders don't block
+ * container threads. After the request was received completely, the message is
+ * processed in a dedicated, bounded thread pool and the response is written
+ * with non-blocking I/O again. If too many requests are pending, or the
+ * processing queue is full, the request is rejected with HTTP 503 and a
+ * <code>Retry-After</code> header.<br>
+ * Use a configuration like the following in your <code>WEB-INF/web.xml</code>
+ * file:
+ *
+ * <pre>
+&lt;servlet&gt;
+  &lt;servlet-name&gt;AS4AsyncServlet&lt;/servlet-name&gt;
+  &lt;servlet-class&gt;com.helger.phase4.servlet.AS4AsyncServlet&lt;/servlet-class&gt;
+  &lt;init-param&gt;
+    &lt;param-name&gt;workerCount&lt;/param-name&gt;
+    &lt;param-value&gt;8&lt;/param-value&gt;
+  &lt;/init-param&gt;
+  &lt;async-supported&gt;true&lt;/async-supported&gt;
+&lt;/servlet&gt;
+&lt;servlet-mapping&gt;
+  &lt;servlet-name&gt;AS4AsyncServlet&lt;/servlet-name&gt;
+  &lt;url-pattern&gt;/as4&lt;/url-pattern&gt;
+&lt;/servlet-mapping&gt;
+ * </pre>
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+public class AS4AsyncServlet extends HttpServlet
+{
+  /** Init parameter for the number of processing threads */
+  public static final String INIT_PARAM_WORKER_COUNT = "workerCount";
+  /** Init parameter for the maximum number of queued requests */
+  public static final String INIT_PARAM_QUEUE_SIZE = "queueSize";
+  /** Init parameter for the maximum number of requests in progress */
+  public static final String INIT_PARAM_MAX_CONCURRENT_REQUESTS = "maxConcurrentRequests";
+  /** Init parameter for the maximum request size to keep in memory */
+  public static final String INIT_PARAM_MAX_IN_MEMORY_BYTES = "maxInMemoryBytes";
+  /** Init parameter for the asynchronous request timeout in milliseconds */
+  public static final String INIT_PARAM_ASYNC_TIMEOUT_MILLIS = "asyncTimeoutMillis";
+  /** Init parameter for the value of the Retry-After header */
+  public static final String INIT_PARAM_RETRY_AFTER_SECONDS = "retryAfterSeconds";
+
+  public static final int DEFAULT_WORKER_COUNT = Math.max (2, Runtime.getRuntime ().availableProcessors ());
+  public static final int DEFAULT_QUEUE_SIZE = 100;
+  public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 200;
+  public static final int DEFAULT_MAX_IN_MEMORY_BYTES = CGlobal.BYTES_PER_MEGABYTE;
+  public static final long DEFAULT_ASYNC_TIMEOUT_MILLIS = 5 * CGlobal.MILLISECONDS_PER_MINUTE;
+  public static final int DEFAULT_RETRY_AFTER_SECONDS = 30;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4AsyncServlet.class);
+  private static final int BUFFER_SIZE = 16 * CGlobal.BYTES_PER_KILOBYTE;
+
+  private Supplier <? extends IAS4CryptoFactory> m_aCryptoFactorySupplier = AS4CryptoFactoryProperties::getDefaultInstance;
+  private IPModeResolver m_aPModeResolver = DefaultPModeResolver.DEFAULT_PMODE_RESOLVER;
+  private IAS4IncomingAttachmentFactory m_aIAF = IAS4IncomingAttachmentFactory.DEFAULT_INSTANCE;
+
+  private int m_nMaxConcurrentRequests;
+  private int m_nMaxInMemoryBytes;
+  private long m_nAsyncTimeoutMillis;
+  private int m_nRetryAfterSeconds;
+  private volatile ThreadPoolExecutor m_aExecutor;
+
+  private final AtomicInteger m_aInFlight = new AtomicInteger (0);
+  private final AtomicLong m_aRejected = new AtomicLong (0);
+
+  public AS4AsyncServlet ()
+  {}
+
+  /**
+   * @return The supplier for the {@link IAS4CryptoFactory}. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final Supplier <? extends IAS4CryptoFactory> getCryptoFactorySupplier ()
+  {
+    return m_aCryptoFactorySupplier;
+  }
+
+  /**
+   * @param aCryptoFactorySupplier
+   *        Crypto factory supplier. May not be <code>null</code>.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4AsyncServlet setCryptoFactorySupplier (@Nonnull final Supplier <? extends IAS4CryptoFactory> aCryptoFactorySupplier)
+  {
+    ValueEnforcer.notNull (aCryptoFactorySupplier, "CryptoFactorySupplier");
+    m_aCryptoFactorySupplier = aCryptoFactorySupplier;
+    return this;
+  }
+
+  /**
+   * @return The {@link IPModeResolver} to be used. Never <code>null</code>.
+   */
+  @Nonnull
+  public final IPModeResolver getPModeResolver ()
+  {
+    return m_aPModeResolver;
+  }
+
+  /**
+   * @param aPModeResolver
+   *        PMode resolved to be used. May not be <code>null</code>.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4AsyncServlet setPModeResolver (@Nonnull final IPModeResolver aPModeResolver)
+  {
+    ValueEnforcer.notNull (aPModeResolver, "PModeResolver");
+    m_aPModeResolver = aPModeResolver;
+    return this;
+  }
+
+  /**
+   * @return The {@link IAS4IncomingAttachmentFactory} to be used. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final IAS4IncomingAttachmentFactory getIncomingAttachmentFactory ()
+  {
+    return m_aIAF;
+  }
+
+  /**
+   * @param aIAF
+   *        The attachment factory for incoming attachments. May not be
+   *        <code>null</code>.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4AsyncServlet setIncomingAttachmentFactory (@Nonnull final IAS4IncomingAttachmentFactory aIAF)
+  {
+    ValueEnforcer.notNull (aIAF, "IAF");
+    m_aIAF = aIAF;
+    return this;
+  }
+
+  /**
+   * @return The number of requests currently in progress (reading,
+   *         processing or writing).
+   */
+  @Nonnegative
+  public final int getInFlightCount ()
+  {
+    return m_aInFlight.get ();
+  }
+
+  /**
+   * @return The number of requests that were rejected because of overload
+   *         since the servlet was started.
+   */
+  @Nonnegative
+  public final long getRejectedCount ()
+  {
+    return m_aRejected.get ();
+  }
+
+  /**
+   * @return The number of requests waiting in the processing queue.
+   */
+  @Nonnegative
+  public final int getQueueDepth ()
+  {
+    final ThreadPoolExecutor aExecutor = m_aExecutor;
+    return aExecutor == null ? 0 : aExecutor.getQueue ().size ();
+  }
+
+  private int _getInitParameter (@Nonnull final String sName, final int nDefault)
+  {
+    return StringParser.parseInt (getInitParameter (sName), nDefault);
+  }
+
+  @Override
+  public void init () throws ServletException
+  {
+    super.init ();
+
+    final int nWorkerCount = _getInitParameter (INIT_PARAM_WORKER_COUNT, DEFAULT_WORKER_COUNT);
+    final int nQueueSize = _getInitParameter (INIT_PARAM_QUEUE_SIZE, DEFAULT_QUEUE_SIZE);
+    if (nWorkerCount <= 0)
+      throw new ServletException ("The init parameter '" + INIT_PARAM_WORKER_COUNT + "' must be > 0");
+    if (nQueueSize <= 0)
+      throw new ServletException ("The init parameter '" + INIT_PARAM_QUEUE_SIZE + "' must be > 0");
+
+    m_nMaxConcurrentRequests = _getInitParameter (INIT_PARAM_MAX_CONCURRENT_REQUESTS, DEFAULT_MAX_CONCURRENT_REQUESTS);
+    m_nMaxInMemoryBytes = Math.max (0, _getInitParameter (INIT_PARAM_MAX_IN_MEMORY_BYTES, DEFAULT_MAX_IN_MEMORY_BYTES));
+    m_nAsyncTimeoutMillis = StringParser.parseLong (getInitParameter (INIT_PARAM_ASYNC_TIMEOUT_MILLIS),
+                                                    DEFAULT_ASYNC_TIMEOUT_MILLIS);
+    m_nRetryAfterSeconds = _getInitParameter (INIT_PARAM_RETRY_AFTER_SECONDS, DEFAULT_RETRY_AFTER_SECONDS);
+
+    // Bounded pool with a bounded queue - rejections are answered with 503
+    m_aExecutor = new ThreadPoolExecutor (nWorkerCount,
+                                          nWorkerCount,
+                                          60,
+                                          TimeUnit.SECONDS,
+                                          new ArrayBlockingQueue <> (nQueueSize),
+                                          new BasicThreadFactory.Builder ().namingPattern ("phase4-async-servlet-%d")
+                                                                           .daemon (true)
+                                                                           .build (),
+                                          new ThreadPoolExecutor.AbortPolicy ());
+    m_aExecutor.allowCoreThreadTimeOut (true);
+
+    LOGGER.info ("Initialized " +
+                 getClass ().getSimpleName () +
+                 " with " +
+                 nWorkerCount +
+                 " workers, a queue size of " +
+                 nQueueSize +
+                 " and at most " +
+                 m_nMaxConcurrentRequests +
+                 " concurrent requests");
+  }
+
+  @Override
+  public void destroy ()
+  {
+    if (m_aExecutor != null)
+    {
+      ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aExecutor);
+      m_aExecutor = null;
+    }
+    super.destroy ();
+  }
+
+  /**
+   * Create the incoming message metadata based on the provided request. This
+   * method may be overridden by sub-classes to customize the header generation
+   * e.g. when sitting behind a proxy or the like.
+   *
+   * @param aHttpRequest
+   *        The HTTP request to use.
+   * @return New {@link AS4IncomingMessageMetadata} and never <code>null</code>.
+   */
+  @Nonnull
+  @OverrideOnDemand
+  protected AS4IncomingMessageMetadata createIncomingMessageMetadata (@Nonnull final HttpServletRequest aHttpRequest)
+  {
+    return AS4IncomingMessageMetadata.createForRequest ()
+                                     .setRemoteAddr (aHttpRequest.getRemoteAddr ())
+                                     .setRemoteHost (aHttpRequest.getRemoteHost ())
+                                     .setRemotePort (aHttpRequest.getRemotePort ())
+                                     .setRemoteUser (aHttpRequest.getRemoteUser ())
+                                     .setCookies (aHttpRequest.getCookies ());
+  }
+
+  /**
+   * Customize the request handler before the message is handled. This is
+   * called in a processing thread.
+   *
+   * @param aHandler
+   *        The main handler doing the hard work. Never <code>null</code>.
+   */
+  @OverrideOnDemand
+  protected void customizeBeforeHandling (@Nonnull final AS4RequestHandler aHandler)
+  {}
+
+  private void _sendOverloaded (@Nonnull final HttpServletResponse aHttpResponse) throws IOException
+  {
+    m_aRejected.incrementAndGet ();
+    aHttpResponse.setStatus (CHttp.HTTP_SERVICE_UNAVAILABLE);
+    aHttpResponse.setHeader (CHttpHeader.RETRY_AFTER, Integer.toString (m_nRetryAfterSeconds));
+    aHttpResponse.setContentType (CMimeType.TEXT_PLAIN.getAsString ());
+    aHttpResponse.getOutputStream ().write ("AS4 server is overloaded".getBytes (StandardCharsets.ISO_8859_1));
+  }
+
+  @Override
+  protected void doPost (@Nonnull final HttpServletRequest aHttpRequest,
+                         @Nonnull final HttpServletResponse aHttpResponse) throws ServletException, IOException
+  {
+    // Shed load as early as possible, before anything is read
+    if (m_aInFlight.incrementAndGet () > m_nMaxConcurrentRequests)
+    {
+      m_aInFlight.decrementAndGet ();
+      LOGGER.warn ("Rejecting AS4 request, because " + m_nMaxConcurrentRequests + " requests are already in progress");
+      _sendOverloaded (aHttpResponse);
+      return;
+    }
+
+    final AsyncExchange aExchange;
+    try
+    {
+      if (!aHttpRequest.isAsyncSupported ())
+        throw new ServletException ("The servlet '" +
+                                    getServletName () +
+                                    "' must be configured with 'async-supported' set to 'true'");
+
+      // Everything from the request that is needed later on
+      final IAS4IncomingMessageMetadata aMessageMetadata = createIncomingMessageMetadata (aHttpRequest);
+      final HttpHeaderMap aHttpHeaders = RequestHelper.getRequestHeaderMap (aHttpRequest);
+
+      final AsyncContext aAsyncCtx = aHttpRequest.startAsync ();
+      aAsyncCtx.setTimeout (m_nAsyncTimeoutMillis);
+      aExchange = new AsyncExchange (aAsyncCtx, aMessageMetadata, aHttpHeaders);
+      aAsyncCtx.addListener (aExchange);
+    }
+    catch (final ServletException | RuntimeException ex)
+    {
+      m_aInFlight.decrementAndGet ();
+      throw ex;
+    }
+
+    // Read without blocking
+    aHttpRequest.getInputStream ().setReadListener (aExchange);
+  }
+
+  static void _complete (@Nonnull final AsyncContext aAsyncCtx)
+  {
+    try
+    {
+      aAsyncCtx.complete ();
+    }
+    catch (final IllegalStateException ex)
+    {
+      // Already completed, e.g. after a timeout
+      LOGGER.debug ("Asynchronous AS4 request was already completed");
+    }
+  }
+
+  /**
+   * An {@link OutputStream} that keeps the data in memory up to a certain size
+   * and moves it to a temporary file afterwards.
+   *
+   * @author Philip Helger
+   */
+  private static final class RequestBuffer extends OutputStream
+  {
+    private final AS4ResourceHelper m_aResHelper;
+    private final int m_nMaxInMemoryBytes;
+    private NonBlockingByteArrayOutputStream m_aBAOS = new NonBlockingByteArrayOutputStream ();
+    private File m_aFile;
+    private OutputStream m_aFileOS;
+
+    RequestBuffer (@Nonnull final AS4ResourceHelper aResHelper, @Nonnegative final int nMaxInMemoryBytes)
+    {
+      m_aResHelper = aResHelper;
+      m_nMaxInMemoryBytes = nMaxInMemoryBytes;
+    }
+
+    @Override
+    public void write (final int b) throws IOException
+    {
+      write (new byte [] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+    {
+      if (m_aFileOS == null && m_aBAOS.size () + nLen > m_nMaxInMemoryBytes)
+      {
+        // Switch to a temporary file
+        m_aFile = m_aResHelper.createTempFile ();
+        m_aFileOS = FileHelper.getBufferedOutputStream (m_aFile);
+        if (m_aFileOS == null)
+          throw new IOException ("Failed to open temporary file '" + m_aFile.getAbsolutePath () + "' for writing");
+        m_aBAOS.writeTo (m_aFileOS);
+        m_aBAOS = null;
+      }
+      if (m_aFileOS != null)
+        m_aFileOS.write (aBuf, nOfs, nLen);
+      else
+        m_aBAOS.write (aBuf, nOfs, nLen);
+    }
+
+    @Override
+    public void close () throws IOException
+    {
+      StreamHelper.close (m_aFileOS);
+    }
+
+    @Nonnull
+    IHasInputStream getContent ()
+    {
+      if (m_aFile != null)
+      {
+        final File aFile = m_aFile;
+        return HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aFile));
+      }
+      final byte [] aBytes = m_aBAOS.getBufferOrCopy ();
+      return HasInputStream.multiple ( () -> new NonBlockingByteArrayInputStream (aBytes));
+    }
+  }
+
+  /**
+   * The response collected while processing in a worker thread.
+   *
+   * @author Philip Helger
+   */
+  private static final class BufferedResponse implements IAS4ResponseAbstraction
+  {
+    private int m_nStatusCode = CHttp.HTTP_OK;
+    private IMimeType m_aMimeType;
+    private Charset m_aCharset;
+    private final HttpHeaderMap m_aHeaders = new HttpHeaderMap ();
+    private byte [] m_aBytes;
+    private IHasInputStream m_aHasIS;
+
+    public void setContent (@Nonnull final byte [] aBytes, @Nonnull final Charset aCharset)
+    {
+      m_aBytes = aBytes;
+      m_aCharset = aCharset;
+      m_aHasIS = null;
+    }
+
+    public void setContent (@Nonnull final HttpHeaderMap aHeaderMap, @Nonnull final IHasInputStream aHasIS)
+    {
+      m_aHeaders.setAllHeaders (aHeaderMap);
+      m_aHasIS = aHasIS;
+      m_aBytes = null;
+    }
+
+    public void setMimeType (@Nonnull final IMimeType aMimeType)
+    {
+      m_aMimeType = aMimeType;
+    }
+
+    public void setStatus (final int nStatusCode)
+    {
+      m_nStatusCode = nStatusCode;
+    }
+
+    void setResponseError (final int nStatusCode, @Nonnull final String sMsg, @Nullable final Throwable t)
+    {
+      LOGGER.error ("HTTP " + nStatusCode + ": " + sMsg, t);
+
+      // Only the log contains the technical details - don't expose them
+      m_aHeaders.removeAll ();
+      setContent (sMsg.getBytes (StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+      setMimeType (CMimeType.TEXT_PLAIN);
+      setStatus (nStatusCode);
+    }
+
+    @Nullable
+    InputStream applyTo (@Nonnull final HttpServletResponse aHttpResponse)
+    {
+      aHttpResponse.setStatus (m_nStatusCode);
+      // Never cache the responses on client side
+      aHttpResponse.setHeader (CHttpHeader.CACHE_CONTROL, "no-cache, no-store, must-revalidate");
+      m_aHeaders.forEachSingleHeader (aHttpResponse::addHeader, true);
+      // A MIME response brings its own Content-Type with the boundary
+      if (m_aMimeType != null && !m_aHeaders.containsHeaders (CHttpHeader.CONTENT_TYPE))
+      {
+        String sContentType = m_aMimeType.getAsString ();
+        if (m_aCharset != null)
+          sContentType += "; charset=" + m_aCharset.name ();
+        aHttpResponse.setContentType (sContentType);
+      }
+      if (m_aBytes != null)
+      {
+        aHttpResponse.setContentLength (m_aBytes.length);
+        return new NonBlockingByteArrayInputStream (m_aBytes);
+      }
+      if (m_aHasIS != null)
+        return m_aHasIS.getBufferedInputStream ();
+      return null;
+    }
+  }
+
+  /**
+   * Writes the response content with non-blocking I/O.
+   *
+   * @author Philip Helger
+   */
+  private static final class ResponseWriter implements WriteListener
+  {
+    private final AsyncContext m_aAsyncCtx;
+    private final ServletOutputStream m_aOS;
+    private final InputStream m_aIS;
+    private final byte [] m_aBuffer = new byte [BUFFER_SIZE];
+
+    ResponseWriter (@Nonnull final AsyncContext aAsyncCtx,
+                    @Nonnull final ServletOutputStream aOS,
+                    @Nonnull final InputStream aIS)
+    {
+      m_aAsyncCtx = aAsyncCtx;
+      m_aOS = aOS;
+      m_aIS = aIS;
+    }
+
+    public void onWritePossible () throws IOException
+    {
+      while (m_aOS.isReady ())
+      {
+        final int nRead = m_aIS.read (m_aBuffer);
+        if (nRead < 0)
+        {
+          StreamHelper.close (m_aIS);
+          _complete (m_aAsyncCtx);
+          return;
+        }
+        m_aOS.write (m_aBuffer, 0, nRead);
+      }
+    }
+
+    public void onError (@Nonnull final Throwable t)
+    {
+      LOGGER.warn ("Error writing AS4 response", t);
+      StreamHelper.close (m_aIS);
+      _complete (m_aAsyncCtx);
+    }
+  }
+
+  /**
+   * The state of a single asynchronous request.
+   *
+   * @author Philip Helger
+   */
+  private final class AsyncExchange implements ReadListener, AsyncListener
+  {
+    private final AsyncContext m_aAsyncCtx;
+    private final IAS4IncomingMessageMetadata m_aMessageMetadata;
+    private final HttpHeaderMap m_aHttpHeaders;
+    private final ServletInputStream m_aIS;
+    private final AS4ResourceHelper m_aResHelper = new AS4ResourceHelper ();
+    private final RequestBuffer m_aBuffer;
+    private final byte [] m_aReadBuffer = new byte [BUFFER_SIZE];
+    private final AtomicBoolean m_aResponded = new AtomicBoolean (false);
+    // Set once either a worker or the container owns the resources
+    private final AtomicBoolean m_aHandedOver = new AtomicBoolean (false);
+    private final AtomicBoolean m_aFinished = new AtomicBoolean (false);
+
+    AsyncExchange (@Nonnull final AsyncContext aAsyncCtx,
+                   @Nonnull final IAS4IncomingMessageMetadata aMessageMetadata,
+                   @Nonnull final HttpHeaderMap aHttpHeaders) throws IOException
+    {
+      m_aAsyncCtx = aAsyncCtx;
+      m_aMessageMetadata = aMessageMetadata;
+      m_aHttpHeaders = aHttpHeaders;
+      m_aIS = aAsyncCtx.getRequest ().getInputStream ();
+      m_aBuffer = new RequestBuffer (m_aResHelper, m_nMaxInMemoryBytes);
+    }
+
+    public void onDataAvailable () throws IOException
+    {
+      int nRead;
+      while (m_aIS.isReady () && (nRead = m_aIS.read (m_aReadBuffer)) >= 0)
+        m_aBuffer.write (m_aReadBuffer, 0, nRead);
+    }
+
+    public void onAllDataRead () throws IOException
+    {
+      m_aBuffer.close ();
+
+      if (!m_aHandedOver.compareAndSet (false, true))
+      {
+        // Already completed, e.g. after a timeout
+        return;
+      }
+
+      final ThreadPoolExecutor aExecutor = m_aExecutor;
+      try
+      {
+        if (aExecutor == null)
+          throw new RejectedExecutionException ("Servlet is shutting down");
+        aExecutor.execute (this::_process);
+      }
+      catch (final RejectedExecutionException ex)
+      {
+        LOGGER.warn ("Rejecting AS4 request, because the processing queue is full");
+        try
+        {
+          if (m_aResponded.compareAndSet (false, true))
+          {
+            _sendOverloaded ((HttpServletResponse) m_aAsyncCtx.getResponse ());
+            _complete (m_aAsyncCtx);
+          }
+        }
+        finally
+        {
+          // No worker will run
+          _finish ();
+        }
+      }
+    }
+
+    public void onError (@Nonnull final Throwable t)
+    {
+      LOGGER.warn ("Error reading AS4 request", t);
+      if (m_aResponded.compareAndSet (false, true))
+      {
+        final BufferedResponse aResponse = new BufferedResponse ();
+        aResponse.setResponseError (CHttp.HTTP_BAD_REQUEST, "Failed to read AS4 request", t);
+        _startWriting (aResponse);
+      }
+    }
+
+    private void _process ()
+    {
+      final BufferedResponse aResponse = new BufferedResponse ();
+      try
+      {
+        // Resolved once per request
+        final IAS4CryptoFactory aCF = m_aCryptoFactorySupplier.get ();
+        if (aCF == null)
+          throw new IllegalStateException ("Failed to get an AS4 CryptoFactory");
+
+        try (final AS4RequestHandler aHandler = new AS4RequestHandler (aCF,
+                                                                       m_aPModeResolver,
+                                                                       m_aIAF,
+                                                                       m_aMessageMetadata))
+        {
+          customizeBeforeHandling (aHandler);
+
+          // Main handling
+          aHandler.handleRequest (m_aBuffer.getContent ().getBufferedInputStream (), m_aHttpHeaders, aResponse);
+        }
+      }
+      catch (final Phase4Exception ex)
+      {
+        // Logged inside
+        aResponse.setResponseError (CHttp.HTTP_BAD_REQUEST, "Bad Request: " + ex.getMessage (), ex.getCause ());
+      }
+      catch (final Exception ex)
+      {
+        // Logged inside
+        aResponse.setResponseError (CHttp.HTTP_INTERNAL_SERVER_ERROR, "Internal error processing AS4 request", ex);
+      }
+
+      try
+      {
+        if (m_aResponded.compareAndSet (false, true))
+          _startWriting (aResponse);
+      }
+      finally
+      {
+        // The request buffer is no longer needed - the request only counts as
+        // in progress until here, even if it timed out before
+        _finish ();
+      }
+    }
+
+    private void _startWriting (@Nonnull final BufferedResponse aResponse)
+    {
+      try
+      {
+        final HttpServletResponse aHttpResponse = (HttpServletResponse) m_aAsyncCtx.getResponse ();
+        final InputStream aContentIS = aResponse.applyTo (aHttpResponse);
+        if (aContentIS == null)
+          _complete (m_aAsyncCtx);
+        else
+          aHttpResponse.getOutputStream ().setWriteListener (new ResponseWriter (m_aAsyncCtx,
+                                                                                 aHttpResponse.getOutputStream (),
+                                                                                 aContentIS));
+      }
+      catch (final IOException | RuntimeException ex)
+      {
+        LOGGER.error ("Failed to write AS4 response", ex);
+        _complete (m_aAsyncCtx);
+      }
+    }
+
+    private void _finish ()
+    {
+      if (m_aFinished.compareAndSet (false, true))
+      {
+        StreamHelper.close (m_aBuffer);
+        m_aResHelper.close ();
+        m_aInFlight.decrementAndGet ();
+      }
+    }
+
+    private void _finishIfNotHandedOver ()
+    {
+      // If a worker was started, it releases everything when it is done
+      if (m_aHandedOver.compareAndSet (false, true))
+        _finish ();
+    }
+
+    public void onComplete (@Nonnull final AsyncEvent aEvent)
+    {
+      _finishIfNotHandedOver ();
+    }
+
+    public void onTimeout (@Nonnull final AsyncEvent aEvent)
+    {
+      LOGGER.warn ("Timeout handling asynchronous AS4 request after " + m_nAsyncTimeoutMillis + " milliseconds");
+      if (m_aResponded.compareAndSet (false, true))
+      {
+        final HttpServletResponse aHttpResponse = (HttpServletResponse) aEvent.getAsyncContext ().getResponse ();
+        aHttpResponse.setStatus (CHttp.HTTP_SERVICE_UNAVAILABLE);
+        aHttpResponse.setHeader (CHttpHeader.RETRY_AFTER, Integer.toString (m_nRetryAfterSeconds));
+      }
+      _complete (aEvent.getAsyncContext ());
+    }
+
+    public void onError (@Nonnull final AsyncEvent aEvent)
+    {
+      LOGGER.warn ("Error handling asynchronous AS4 request", aEvent.getThrowable ());
+      _finishIfNotHandedOver ();
+    }
+
+    public void onStartAsync (@Nonnull final AsyncEvent aEvent)
+    {
+      // Ignore
+    }
+  }
+}
@@ -71,6 +71,10 @@ import com.helger.phase4.ebms3header.Ebms3UserMessage;
 import com.helger.phase4.error.EEbmsError;
 import com.helger.phase4.messaging.IAS4IncomingMessageMetadata;
 import com.helger.phase4.messaging.domain.MessageHelperMethods;
+import com.helger.phase4.metrics.AS4MetricsManager;
+import com.helger.phase4.metrics.AS4MetricsTags;
+import com.helger.phase4.metrics.AS4StageTimings;
+import com.helger.phase4.metrics.EAS4MetricsStage;
 import com.helger.phase4.mgr.MetaAS4Manager;
 import com.helger.phase4.model.AS4Helper;
 import com.helger.phase4.model.pmode.IPMode;
@@ -166,6 +170,9 @@ public class AS4IncomingHandler
       throw new Phase4Exception ("Failed to parse Content-Type '" + sContentType + "'");
     final IMimeType aPlainContentType = aContentType.getCopyWithoutParameters ();
 
+    final AS4StageTimings aStageTimings = aMessageMetadata.getStageTimings ();
+    final long nParseStart = AS4MetricsManager.startTiming (aStageTimings);
+
     // Fallback to global dumper if none is provided
     final IAS4IncomingDumper aRealIncomingDumper = aIncomingDumper != null ? aIncomingDumper
                                                                            : AS4DumpManager.getIncomingDumper ();
@@ -315,6 +322,12 @@ public class AS4IncomingHandler
       }
     }
 
+    AS4MetricsManager.recordStage (EAS4MetricsStage.INCOMING_MIME_PARSE,
+                                   nParseStart,
+                                   aSoapDocument != null && eSoapVersion != null,
+                                   AS4MetricsTags.EMPTY,
+                                   aStageTimings);
+
     try
     {
       if (aSoapDocument == null)
@@ -561,6 +574,62 @@ public class AS4IncomingHandler
                                                      @Nonnull final ICommonsList <WSS4JAttachment> aIncomingAttachments,
                                                      @Nonnull final IAS4IncomingProfileSelector aAS4ProfileSelector,
                                                      @Nonnull final ICommonsList <Ebms3Error> aErrorMessagesTarget) throws Phase4Exception
+  {
+    return processEbmsMessage (aResHelper,
+                               aLocale,
+                               aRegistry,
+                               aHttpHeaders,
+                               aSoapDocument,
+                               eSoapVersion,
+                               aIncomingAttachments,
+                               aAS4ProfileSelector,
+                               aErrorMessagesTarget,
+                               null);
+  }
+
+  /**
+   * Process the parsed ebMS message. The SOAP header elements are processed
+   * and the profile validation is performed.
+   *
+   * @param aResHelper
+   *        The resource helper. May not be <code>null</code>.
+   * @param aLocale
+   *        The locale for error messages. May not be <code>null</code>.
+   * @param aRegistry
+   *        The SOAP header element processor registry. May not be
+   *        <code>null</code>.
+   * @param aHttpHeaders
+   *        The HTTP headers of the message. May not be <code>null</code>.
+   * @param aSoapDocument
+   *        The parsed SOAP document. May not be <code>null</code>.
+   * @param eSoapVersion
+   *        The SOAP version of the document. May not be <code>null</code>.
+   * @param aIncomingAttachments
+   *        The incoming attachments. May not be <code>null</code>.
+   * @param aAS4ProfileSelector
+   *        The AS4 profile selector. May not be <code>null</code>.
+   * @param aErrorMessagesTarget
+   *        The list to add errors to. May not be <code>null</code>.
+   * @param aStageTimings
+   *        The stage timings of the message to record to, usually from the
+   *        incoming message metadata. May be <code>null</code> in which case a
+   *        new object is created.
+   * @return The filled message state. Never <code>null</code>.
+   * @throws Phase4Exception
+   *         in case of a profile validation error
+   * @since 2.1.3
+   */
+  @Nonnull
+  public static IAS4MessageState processEbmsMessage (@Nonnull @WillNotClose final AS4ResourceHelper aResHelper,
+                                                     @Nonnull final Locale aLocale,
+                                                     @Nonnull final SOAPHeaderElementProcessorRegistry aRegistry,
+                                                     @Nonnull final HttpHeaderMap aHttpHeaders,
+                                                     @Nonnull final Document aSoapDocument,
+                                                     @Nonnull final ESoapVersion eSoapVersion,
+                                                     @Nonnull final ICommonsList <WSS4JAttachment> aIncomingAttachments,
+                                                     @Nonnull final IAS4IncomingProfileSelector aAS4ProfileSelector,
+                                                     @Nonnull final ICommonsList <Ebms3Error> aErrorMessagesTarget,
+                                                     @Nullable final AS4StageTimings aStageTimings) throws Phase4Exception
   {
     ValueEnforcer.notNull (aResHelper, "ResHelper");
     ValueEnforcer.notNull (aLocale, "Locale");
@@ -587,7 +656,10 @@ public class AS4IncomingHandler
     }
 
     // This is where all data from the SOAP headers is stored to
-    final AS4MessageState aState = new AS4MessageState (eSoapVersion, aResHelper, aLocale);
+    final AS4MessageState aState = new AS4MessageState (eSoapVersion,
+                                                        aResHelper,
+                                                        aLocale,
+                                                        aStageTimings != null ? aStageTimings : new AS4StageTimings ());
 
     // Handle all headers - modifies the state
     _processSoapHeaderElements (aRegistry, aSoapDocument, aIncomingAttachments, aState, aErrorMessagesTarget);
@@ -659,9 +731,16 @@ public class AS4IncomingHandler
           {
             if (aAS4ProfileSelector.validateAgainstProfile ())
             {
+              final long nValidationStart = AS4MetricsManager.startTiming (aState.getStageTimings ());
               final ErrorList aErrorList = new ErrorList ();
               aValidator.validatePMode (aPMode, aErrorList);
               aValidator.validateUserMessage (aEbmsUserMessage, aErrorList);
+              AS4MetricsManager.recordStage (EAS4MetricsStage.INCOMING_PROFILE_VALIDATION,
+                                             nValidationStart,
+                                             aErrorList.isEmpty (),
+                                             sProfileID,
+                                             aPMode,
+                                             aState.getStageTimings ());
               if (aErrorList.isNotEmpty ())
               {
                 throw new Phase4Exception ("Error validating incoming AS4 message with the profile " +
@@ -734,7 +813,7 @@ public class AS4IncomingHandler
                                                  @Nonnull final Locale aLocale,
                                                  @Nonnull final IAS4IncomingMessageMetadata aMessageMetadata,
                                                  @Nonnull final HttpResponse aHttpResponse,
-                                                 @Nonnull final byte [] aResponsePayload,
+                                                 @Nonnull @WillClose final InputStream aResponsePayloadIS,
                                                  @Nullable final IAS4IncomingDumper aIncomingDumper) throws Phase4Exception
   {
     // This wrapper will take the result
@@ -759,7 +838,8 @@ public class AS4IncomingHandler
                                                           eSoapVersion,
                                                           aIncomingAttachments,
                                                           aAS4ProfileSelector,
-                                                          aErrorMessages);
+                                                          aErrorMessages,
+                                                          aMessageMetadata.getStageTimings ());
 
       if (aState.isSoapHeaderElementProcessingSuccessful ())
       {
@@ -777,10 +857,10 @@ public class AS4IncomingHandler
     for (final Header aHeader : aHttpResponse.getHeaders ())
       aHttpHeaders.addHeader (aHeader.getName (), aHeader.getValue ());
 
-    try (final NonBlockingByteArrayInputStream aPayloadIS = new NonBlockingByteArrayInputStream (aResponsePayload))
+    try
     {
-      // Parse incoming message
-      parseAS4Message (aIAF, aResHelper, aMessageMetadata, aPayloadIS, aHttpHeaders, aCallback, aIncomingDumper);
+      // Parse incoming message - closes the stream
+      parseAS4Message (aIAF, aResHelper, aMessageMetadata, aResponsePayloadIS, aHttpHeaders, aCallback, aIncomingDumper);
     }
     catch (final Phase4Exception ex)
     {
@@ -795,6 +875,64 @@ public class AS4IncomingHandler
     return aRetWrapper.get ();
   }
 
+  /**
+   * Parse an AS4 response that may contain either a user message or a signal
+   * message, like the response to a pull request.
+   *
+   * @param aCryptoFactory
+   *        Crypto factory to use. May not be <code>null</code>.
+   * @param aPModeResolver
+   *        PMode resolver to use. May not be <code>null</code>.
+   * @param aIAF
+   *        The attachment factory to use. May not be <code>null</code>.
+   * @param aAS4ProfileSelector
+   *        The AS4 profile selector to use. May not be <code>null</code>.
+   * @param aResHelper
+   *        The resource helper to use. May not be <code>null</code>.
+   * @param aSendingPMode
+   *        The PMode used for sending. May be <code>null</code>.
+   * @param aLocale
+   *        The locale to use. May not be <code>null</code>.
+   * @param aMessageMetadata
+   *        The metadata of the response. May not be <code>null</code>.
+   * @param aHttpResponse
+   *        The HTTP response. May not be <code>null</code>.
+   * @param aResponsePayloadIS
+   *        The response payload. Is closed by this method. May not be
+   *        <code>null</code>.
+   * @param aIncomingDumper
+   *        The incoming dumper to use. May be <code>null</code>.
+   * @return The state of the parsed message. May be <code>null</code>.
+   * @throws Phase4Exception
+   *         In case of a processing error
+   * @since 2.1.3
+   */
+  @Nullable
+  public static IAS4MessageState parseUserOrSignalMessage (@Nonnull final IAS4CryptoFactory aCryptoFactory,
+                                                           @Nonnull final IPModeResolver aPModeResolver,
+                                                           @Nonnull final IAS4IncomingAttachmentFactory aIAF,
+                                                           @Nonnull final IAS4IncomingProfileSelector aAS4ProfileSelector,
+                                                           @Nonnull @WillNotClose final AS4ResourceHelper aResHelper,
+                                                           @Nullable final IPMode aSendingPMode,
+                                                           @Nonnull final Locale aLocale,
+                                                           @Nonnull final IAS4IncomingMessageMetadata aMessageMetadata,
+                                                           @Nonnull final HttpResponse aHttpResponse,
+                                                           @Nonnull @WillClose final InputStream aResponsePayloadIS,
+                                                           @Nullable final IAS4IncomingDumper aIncomingDumper) throws Phase4Exception
+  {
+    return _parseMessage (aCryptoFactory,
+                          aPModeResolver,
+                          aIAF,
+                          aAS4ProfileSelector,
+                          aResHelper,
+                          aSendingPMode,
+                          aLocale,
+                          aMessageMetadata,
+                          aHttpResponse,
+                          aResponsePayloadIS,
+                          aIncomingDumper);
+  }
+
   @Nullable
   public static Ebms3SignalMessage parseSignalMessage (@Nonnull final IAS4CryptoFactory aCryptoFactory,
                                                        @Nonnull final IPModeResolver aPModeResolver,
@@ -808,17 +946,57 @@ public class AS4IncomingHandler
                                                        @Nonnull final byte [] aResponsePayload,
                                                        @Nullable final IAS4IncomingDumper aIncomingDumper) throws Phase4Exception
   {
-    final IAS4MessageState aState = _parseMessage (aCryptoFactory,
-                                                   aPModeResolver,
-                                                   aIAF,
-                                                   aAS4ProfileSelector,
-                                                   aResHelper,
-                                                   aSendingPMode,
-                                                   aLocale,
-                                                   aMessageMetadata,
-                                                   aHttpResponse,
-                                                   aResponsePayload,
-                                                   aIncomingDumper);
+    return parseSignalMessage (aCryptoFactory,
+                               aPModeResolver,
+                               aIAF,
+                               aAS4ProfileSelector,
+                               aResHelper,
+                               aSendingPMode,
+                               aLocale,
+                               aMessageMetadata,
+                               aHttpResponse,
+                               new NonBlockingByteArrayInputStream (aResponsePayload),
+                               aIncomingDumper);
+  }
+
+  @Nullable
+  public static Ebms3SignalMessage parseSignalMessage (@Nonnull final IAS4CryptoFactory aCryptoFactory,
+                                                       @Nonnull final IPModeResolver aPModeResolver,
+                                                       @Nonnull final IAS4IncomingAttachmentFactory aIAF,
+                                                       @Nonnull final IAS4IncomingProfileSelector aAS4ProfileSelector,
+                                                       @Nonnull @WillNotClose final AS4ResourceHelper aResHelper,
+                                                       @Nullable final IPMode aSendingPMode,
+                                                       @Nonnull final Locale aLocale,
+                                                       @Nonnull final IAS4IncomingMessageMetadata aMessageMetadata,
+                                                       @Nonnull final HttpResponse aHttpResponse,
+                                                       @Nonnull @WillClose final InputStream aResponsePayloadIS,
+                                                       @Nullable final IAS4IncomingDumper aIncomingDumper) throws Phase4Exception
+  {
+    final long nParseStart = AS4MetricsManager.startTiming (aMessageMetadata.getStageTimings ());
+    IAS4MessageState aState = null;
+    try
+    {
+      aState = _parseMessage (aCryptoFactory,
+                              aPModeResolver,
+                              aIAF,
+                              aAS4ProfileSelector,
+                              aResHelper,
+                              aSendingPMode,
+                              aLocale,
+                              aMessageMetadata,
+                              aHttpResponse,
+                              aResponsePayloadIS,
+                              aIncomingDumper);
+    }
+    finally
+    {
+      AS4MetricsManager.recordStage (EAS4MetricsStage.OUTGOING_RECEIPT_PARSE,
+                                     nParseStart,
+                                     aState != null && aState.getEbmsSignalMessage () != null,
+                                     aState == null ? null : aState.getProfileID (),
+                                     aSendingPMode,
+                                     aMessageMetadata.getStageTimings ());
+    }
     if (aState == null)
     {
       // Error message was already logged
@@ -848,6 +1026,32 @@ public class AS4IncomingHandler
                                                    @Nonnull final HttpResponse aHttpResponse,
                                                    @Nonnull final byte [] aResponsePayload,
                                                    @Nullable final IAS4IncomingDumper aIncomingDumper) throws Phase4Exception
+  {
+    return parseUserMessage (aCryptoFactory,
+                             aPModeResolver,
+                             aIAF,
+                             aAS4ProfileSelector,
+                             aResHelper,
+                             aSendingPMode,
+                             aLocale,
+                             aMessageMetadata,
+                             aHttpResponse,
+                             new NonBlockingByteArrayInputStream (aResponsePayload),
+                             aIncomingDumper);
+  }
+
+  @Nullable
+  public static Ebms3UserMessage parseUserMessage (@Nonnull final IAS4CryptoFactory aCryptoFactory,
+                                                   @Nonnull final IPModeResolver aPModeResolver,
+                                                   @Nonnull final IAS4IncomingAttachmentFactory aIAF,
+                                                   @Nonnull final IAS4IncomingProfileSelector aAS4ProfileSelector,
+                                                   @Nonnull @WillNotClose final AS4ResourceHelper aResHelper,
+                                                   @Nullable final IPMode aSendingPMode,
+                                                   @Nonnull final Locale aLocale,
+                                                   @Nonnull final IAS4IncomingMessageMetadata aMessageMetadata,
+                                                   @Nonnull final HttpResponse aHttpResponse,
+                                                   @Nonnull @WillClose final InputStream aResponsePayloadIS,
+                                                   @Nullable final IAS4IncomingDumper aIncomingDumper) throws Phase4Exception
   {
     final IAS4MessageState aState = _parseMessage (aCryptoFactory,
                                                    aPModeResolver,
@@ -858,7 +1062,7 @@ public class AS4IncomingHandler
                                                    aLocale,
                                                    aMessageMetadata,
                                                    aHttpResponse,
-                                                   aResponsePayload,
+                                                   aResponsePayloadIS,
                                                    aIncomingDumper);
     if (aState == null)
     {
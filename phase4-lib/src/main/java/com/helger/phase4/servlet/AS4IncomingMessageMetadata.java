@@ -31,6 +31,7 @@ import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.string.ToStringGenerator;
 import com.helger.phase4.messaging.EAS4MessageMode;
 import com.helger.phase4.messaging.IAS4IncomingMessageMetadata;
+import com.helger.phase4.metrics.AS4StageTimings;
 import com.helger.phase4.mgr.MetaAS4Manager;
 
 import jakarta.servlet.http.Cookie;
@@ -53,6 +54,7 @@ public class AS4IncomingMessageMetadata implements IAS4IncomingMessageMetadata
   private String m_sRemoteUser;
   private final ICommonsList <Cookie> m_aCookies = new CommonsArrayList <> ();
   private String m_sRequestMessageID;
+  private AS4StageTimings m_aStageTimings = new AS4StageTimings ();
 
   /**
    * Default constructor using a UUID as the incoming unique ID and the current
@@ -233,6 +235,30 @@ public class AS4IncomingMessageMetadata implements IAS4IncomingMessageMetadata
     return this;
   }
 
+  @Nonnull
+  @ReturnsMutableObject
+  public AS4StageTimings getStageTimings ()
+  {
+    return m_aStageTimings;
+  }
+
+  /**
+   * Set the stage timings to record to. This can be used to record the
+   * processing of a response into the timings of the request.
+   *
+   * @param aStageTimings
+   *        The stage timings to use. May not be <code>null</code>.
+   * @return this for chaining
+   * @since 2.1.3
+   */
+  @Nonnull
+  public AS4IncomingMessageMetadata setStageTimings (@Nonnull final AS4StageTimings aStageTimings)
+  {
+    ValueEnforcer.notNull (aStageTimings, "StageTimings");
+    m_aStageTimings = aStageTimings;
+    return this;
+  }
+
   @Override
   public String toString ()
   {
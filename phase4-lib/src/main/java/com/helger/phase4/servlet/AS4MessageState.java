@@ -34,6 +34,7 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 
 import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableObject;
 import com.helger.commons.collection.attr.AttributeContainerAny;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.collection.impl.ICommonsMap;
@@ -41,6 +42,7 @@ import com.helger.commons.datetime.XMLOffsetDateTime;
 import com.helger.phase4.attachment.EAS4CompressionMode;
 import com.helger.phase4.attachment.WSS4JAttachment;
 import com.helger.phase4.ebms3header.Ebms3Messaging;
+import com.helger.phase4.metrics.AS4StageTimings;
 import com.helger.phase4.mgr.MetaAS4Manager;
 import com.helger.phase4.model.mpc.IMPC;
 import com.helger.phase4.model.pmode.IPMode;
@@ -89,15 +91,39 @@ public final class AS4MessageState extends AttributeContainerAny <String> implem
   private final ESoapVersion m_eSoapVersion;
   private final AS4ResourceHelper m_aResHelper;
   private final Locale m_aLocale;
+  private final AS4StageTimings m_aStageTimings;
 
   public AS4MessageState (@Nonnull final ESoapVersion eSoapVersion,
                           @Nonnull @WillNotClose final AS4ResourceHelper aResHelper,
                           @Nonnull final Locale aLocale)
+  {
+    this (eSoapVersion, aResHelper, aLocale, new AS4StageTimings ());
+  }
+
+  /**
+   * Constructor
+   *
+   * @param eSoapVersion
+   *        The SOAP version of the message. May not be <code>null</code>.
+   * @param aResHelper
+   *        The resource helper to use. May not be <code>null</code>.
+   * @param aLocale
+   *        The locale for error messages. May not be <code>null</code>.
+   * @param aStageTimings
+   *        The stage timings to record to. Usually the ones of the incoming
+   *        message metadata. May not be <code>null</code>.
+   * @since 2.1.3
+   */
+  public AS4MessageState (@Nonnull final ESoapVersion eSoapVersion,
+                          @Nonnull @WillNotClose final AS4ResourceHelper aResHelper,
+                          @Nonnull final Locale aLocale,
+                          @Nonnull final AS4StageTimings aStageTimings)
   {
     m_aReceiptDT = MetaAS4Manager.getTimestampMgr ().getCurrentDateTime ();
     m_eSoapVersion = ValueEnforcer.notNull (eSoapVersion, "SOAPVersion");
     m_aResHelper = ValueEnforcer.notNull (aResHelper, "ResHelper");
     m_aLocale = ValueEnforcer.notNull (aLocale, "Locale");
+    m_aStageTimings = ValueEnforcer.notNull (aStageTimings, "StageTimings");
   }
 
   @Nonnull
@@ -124,6 +150,13 @@ public final class AS4MessageState extends AttributeContainerAny <String> implem
     return m_aLocale;
   }
 
+  @Nonnull
+  @ReturnsMutableObject
+  public AS4StageTimings getStageTimings ()
+  {
+    return m_aStageTimings;
+  }
+
   @Nullable
   public Ebms3Messaging getMessaging ()
   {
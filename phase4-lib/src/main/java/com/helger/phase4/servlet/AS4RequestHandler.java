@@ -22,6 +22,7 @@ import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.util.Locale;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.Supplier;
 
 import javax.annotation.Nonnull;
@@ -42,13 +43,16 @@ import com.helger.commons.callback.IThrowingRunnable;
 import com.helger.commons.collection.impl.CommonsArrayList;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.http.CHttp;
+import com.helger.commons.http.CHttpHeader;
 import com.helger.commons.http.HttpHeaderMap;
 import com.helger.commons.io.IHasInputStream;
 import com.helger.commons.io.stream.HasInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
 import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
 import com.helger.commons.io.stream.StreamHelper;
 import com.helger.commons.mime.EMimeContentType;
 import com.helger.commons.mime.IMimeType;
+import com.helger.commons.mime.MimeTypeParser;
 import com.helger.commons.state.ISuccessIndicator;
 import com.helger.commons.string.StringHelper;
 import com.helger.httpclient.response.ResponseHandlerXml;
@@ -89,6 +93,11 @@ import com.helger.phase4.messaging.domain.EAS4MessageType;
 import com.helger.phase4.messaging.domain.MessageHelperMethods;
 import com.helger.phase4.messaging.mime.AS4MimeMessage;
 import com.helger.phase4.messaging.mime.MimeMessageCreator;
+import com.helger.phase4.metrics.AS4MetricsManager;
+import com.helger.phase4.metrics.AS4MetricsTags;
+import com.helger.phase4.metrics.AS4StageTimings;
+import com.helger.phase4.metrics.EAS4MetricsCounter;
+import com.helger.phase4.metrics.EAS4MetricsStage;
 import com.helger.phase4.mgr.MetaAS4Manager;
 import com.helger.phase4.model.EMEPBinding;
 import com.helger.phase4.model.MEPHelper;
@@ -97,13 +106,21 @@ import com.helger.phase4.model.pmode.leg.EPModeSendReceiptReplyPattern;
 import com.helger.phase4.model.pmode.leg.PModeLeg;
 import com.helger.phase4.model.pmode.leg.PModeLegSecurity;
 import com.helger.phase4.model.pmode.resolve.IPModeResolver;
+import com.helger.phase4.sender.outbox.AS4Outbox;
 import com.helger.phase4.servlet.AS4IncomingHandler.IAS4ParsedMessageCallback;
 import com.helger.phase4.servlet.mgr.AS4ServletMessageProcessorManager;
+import com.helger.phase4.servlet.pull.AS4MPCMessageStore;
+import com.helger.phase4.servlet.pull.AS4MPCMessageStoreEntry;
+import com.helger.phase4.servlet.queue.AS4InboundQueue;
 import com.helger.phase4.servlet.soap.SOAPHeaderElementProcessorRegistry;
 import com.helger.phase4.servlet.spi.AS4MessageProcessorResult;
 import com.helger.phase4.servlet.spi.AS4SignalMessageProcessorResult;
 import com.helger.phase4.servlet.spi.IAS4ServletMessageProcessorSPI;
 import com.helger.phase4.soap.ESoapVersion;
+import com.helger.phase4.tracing.AS4TracingManager;
+import com.helger.phase4.tracing.EAS4SpanKind;
+import com.helger.phase4.tracing.IAS4Span;
+import com.helger.phase4.util.AS4ExecutorHelper;
 import com.helger.phase4.util.AS4ResourceHelper;
 import com.helger.phase4.util.AS4XMLHelper;
 import com.helger.phase4.util.Phase4Exception;
@@ -130,6 +147,16 @@ public class AS4RequestHandler implements AutoCloseable
     @Nonnull
     HttpEntity getHttpEntityForSending (@Nonnull IMimeType aMimeType);
 
+    /**
+     * @return The rendered response payload. It is rendered only once and the
+     *         same content is used for the SPIs, the outgoing dumper and the
+     *         client response. Never <code>null</code>.
+     * @throws IOException
+     *         In case rendering fails
+     */
+    @Nonnull
+    IHasInputStream getResponsePayload () throws IOException;
+
     void applyToResponse (@Nonnull IAS4ResponseAbstraction aHttpResponse, @Nullable IAS4OutgoingDumper aOutgoingDumper);
   }
 
@@ -140,6 +167,7 @@ public class AS4RequestHandler implements AutoCloseable
     private final String m_sResponseMessageID;
     private final Document m_aDoc;
     private final IMimeType m_aMimeType;
+    private byte [] m_aXMLBytes;
 
     public AS4ResponseFactoryXML (@Nonnull final IAS4IncomingMessageMetadata aIncomingMessageMetadata,
                                   @Nonnull final IAS4MessageState aState,
@@ -165,12 +193,31 @@ public class AS4RequestHandler implements AutoCloseable
       return new HttpXMLEntity (m_aDoc, m_aMimeType);
     }
 
+    @Nonnull
+    private byte [] _getXMLBytes ()
+    {
+      byte [] ret = m_aXMLBytes;
+      if (ret == null)
+      {
+        // Serialize only once
+        final String sXML = AS4XMLHelper.serializeXML (m_aDoc);
+        ret = m_aXMLBytes = sXML.getBytes (AS4XMLHelper.XWS.getCharset ());
+      }
+      return ret;
+    }
+
+    @Nonnull
+    public IHasInputStream getResponsePayload ()
+    {
+      final byte [] aXMLBytes = _getXMLBytes ();
+      return HasInputStream.multiple ( () -> new NonBlockingByteArrayInputStream (aXMLBytes));
+    }
+
     public void applyToResponse (@Nonnull final IAS4ResponseAbstraction aHttpResponse,
                                  @Nullable final IAS4OutgoingDumper aOutgoingDumper)
     {
-      final String sXML = AS4XMLHelper.serializeXML (m_aDoc);
       final Charset aCharset = AS4XMLHelper.XWS.getCharset ();
-      final byte [] aXMLBytes = sXML.getBytes (aCharset);
+      final byte [] aXMLBytes = _getXMLBytes ();
       aHttpResponse.setContent (aXMLBytes, aCharset);
       aHttpResponse.setMimeType (m_aMimeType);
 
@@ -214,6 +261,8 @@ public class AS4RequestHandler implements AutoCloseable
     private final String m_sResponseMessageID;
     private final AS4MimeMessage m_aMimeMsg;
     private final HttpHeaderMap m_aHttpHeaders;
+    private final IMimeType m_aMimeType;
+    private IHasInputStream m_aContent;
 
     public AS4ResponseFactoryMIME (@Nonnull final IAS4IncomingMessageMetadata aIncomingMessageMetadata,
                                    @Nonnull final IAS4MessageState aState,
@@ -229,6 +278,10 @@ public class AS4RequestHandler implements AutoCloseable
       m_sResponseMessageID = sResponseMessageID;
       m_aMimeMsg = aMimeMsg;
       m_aHttpHeaders = MessageHelperMethods.getAndRemoveAllHeaders (m_aMimeMsg);
+      // The Content-Type of the MIME message contains the boundary and must
+      // therefore be used as the response MIME type
+      final IMimeType aMimeType = MimeTypeParser.safeParseMimeType (m_aHttpHeaders.getFirstHeaderValue (CHttpHeader.CONTENT_TYPE));
+      m_aMimeType = aMimeType != null ? aMimeType : MT_MULTIPART_RELATED;
       if (!aMimeMsg.isRepeatable ())
         LOGGER.warn ("The response MIME message is not repeatable");
     }
@@ -240,21 +293,44 @@ public class AS4RequestHandler implements AutoCloseable
       return HttpMimeMessageEntity.create (m_aMimeMsg);
     }
 
-    public void applyToResponse (@Nonnull final IAS4ResponseAbstraction aHttpResponse,
-                                 @Nullable final IAS4OutgoingDumper aOutgoingDumper)
+    @Nonnull
+    public IHasInputStream getResponsePayload () throws IOException
     {
-      final IHasInputStream aContent = HasInputStream.multiple ( () -> {
-        try
+      IHasInputStream ret = m_aContent;
+      if (ret == null)
+      {
+        // Render the MIME message only once. This is kept in memory, because
+        // the response may be written after this handler was closed.
+        try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream (16 *
+                                                                                                  CGlobal.BYTES_PER_KILOBYTE))
         {
-          return m_aMimeMsg.getInputStream ();
+          if (StreamHelper.copyInputStreamToOutputStream (m_aMimeMsg.getInputStream (), aBAOS).isFailure ())
+            throw new IOException ("Failed to read MIME message content");
+          final byte [] aBytes = aBAOS.getBufferOrCopy ();
+          ret = m_aContent = HasInputStream.multiple ( () -> new NonBlockingByteArrayInputStream (aBytes));
         }
-        catch (final IOException | MessagingException ex)
+        catch (final MessagingException ex)
         {
-          throw new IllegalStateException ("Failed to get MIME input stream", ex);
+          throw new IOException ("Failed to render MIME message", ex);
         }
-      });
+      }
+      return ret;
+    }
+
+    public void applyToResponse (@Nonnull final IAS4ResponseAbstraction aHttpResponse,
+                                 @Nullable final IAS4OutgoingDumper aOutgoingDumper)
+    {
+      final IHasInputStream aContent;
+      try
+      {
+        aContent = getResponsePayload ();
+      }
+      catch (final IOException ex)
+      {
+        throw new IllegalStateException ("Failed to render MIME response", ex);
+      }
       aHttpResponse.setContent (m_aHttpHeaders, aContent);
-      aHttpResponse.setMimeType (MT_MULTIPART_RELATED);
+      aHttpResponse.setMimeType (m_aMimeType);
 
       if (aOutgoingDumper != null)
       {
@@ -373,6 +449,10 @@ public class AS4RequestHandler implements AutoCloseable
   /** By default get all message processors from the global SPI registry */
   private Supplier <? extends ICommonsList <IAS4ServletMessageProcessorSPI>> m_aProcessorSupplier = AS4ServletMessageProcessorManager::getAllProcessors;
   private IAS4RequestHandlerErrorConsumer m_aErrorConsumer;
+  private AS4InboundQueue m_aInboundQueue;
+  private AS4MPCMessageStore m_aMPCMessageStore;
+  private AS4Outbox m_aOutbox;
+  private Executor m_aAsyncExecutor;
 
   public AS4RequestHandler (@Nonnull final IAS4CryptoFactory aCryptoFactory,
                             @Nonnull final IPModeResolver aPModeResolver,
@@ -610,6 +690,185 @@ public class AS4RequestHandler implements AutoCloseable
     return this;
   }
 
+  /**
+   * @return The durable inbound queue to be used. <code>null</code> by default.
+   * @since 2.1.3
+   */
+  @Nullable
+  public final AS4InboundQueue getInboundQueue ()
+  {
+    return m_aInboundQueue;
+  }
+
+  /**
+   * Set the durable inbound queue to be used. If a queue is set, incoming
+   * one-way push user messages are persisted in the queue after the security
+   * verification and the duplicate check, and the receipt is returned
+   * immediately. The SPIs are invoked asynchronously by the workers of the
+   * queue. All other messages are processed as usual.
+   *
+   * @param aInboundQueue
+   *        The started queue to be used. May be <code>null</code> to disable
+   *        queuing.
+   * @return this for chaining
+   * @since 2.1.3
+   */
+  @Nonnull
+  public final AS4RequestHandler setInboundQueue (@Nullable final AS4InboundQueue aInboundQueue)
+  {
+    m_aInboundQueue = aInboundQueue;
+    return this;
+  }
+
+  /**
+   * @return The MPC message store used to serve pull requests.
+   *         <code>null</code> by default.
+   * @since 2.1.3
+   */
+  @Nullable
+  public final AS4MPCMessageStore getMPCMessageStore ()
+  {
+    return m_aMPCMessageStore;
+  }
+
+  /**
+   * Set the MPC message store to be used. If a store is set, incoming pull
+   * requests are answered with the oldest message of the requested MPC in the
+   * store. Only if the MPC in the store is empty, the SPIs are invoked as
+   * usual. Incoming receipts acknowledge the messages in the store.
+   *
+   * @param aMPCMessageStore
+   *        The started store to be used. May be <code>null</code> to disable
+   *        it.
+   * @return this for chaining
+   * @since 2.1.3
+   */
+  @Nonnull
+  public final AS4RequestHandler setMPCMessageStore (@Nullable final AS4MPCMessageStore aMPCMessageStore)
+  {
+    m_aMPCMessageStore = aMPCMessageStore;
+    return this;
+  }
+
+  /**
+   * @return The outbox that is informed about incoming receipts.
+   *         <code>null</code> by default.
+   * @since 2.1.3
+   */
+  @Nullable
+  public final AS4Outbox getOutbox ()
+  {
+    return m_aOutbox;
+  }
+
+  /**
+   * Set the outbox to be used. If an outbox is set, incoming (asynchronous)
+   * receipts mark the referenced messages in the outbox as delivered. The SPIs
+   * are still invoked for the receipts.
+   *
+   * @param aOutbox
+   *        The started outbox to be used. May be <code>null</code>.
+   * @return this for chaining
+   * @since 2.1.3
+   */
+  @Nonnull
+  public final AS4RequestHandler setOutbox (@Nullable final AS4Outbox aOutbox)
+  {
+    m_aOutbox = aOutbox;
+    return this;
+  }
+
+  /**
+   * @return The executor used for the asynchronous processing of incoming
+   *         messages. May be <code>null</code>.
+   * @since 2.1.3
+   */
+  @Nullable
+  public final Executor getAsyncExecutor ()
+  {
+    return m_aAsyncExecutor;
+  }
+
+  /**
+   * Set the executor used for the asynchronous processing of incoming messages
+   * (e.g. the asynchronous response of a two-way push-push exchange).
+   *
+   * @param aAsyncExecutor
+   *        The executor to use. May be <code>null</code> to use the one from
+   *        {@link AS4ExecutorHelper#getCustomExecutor()} or the Photon worker
+   *        pool if that is not present.
+   * @return this for chaining
+   * @since 2.1.3
+   */
+  @Nonnull
+  public final AS4RequestHandler setAsyncExecutor (@Nullable final Executor aAsyncExecutor)
+  {
+    m_aAsyncExecutor = aAsyncExecutor;
+    return this;
+  }
+
+  private boolean _isQueueable (@Nullable final IPMode aPMode, @Nullable final Ebms3UserMessage aEbmsUserMessage)
+  {
+    // Only one-way push user messages are queued, as all other MEPs require
+    // the SPI results for the synchronous response
+    return m_aInboundQueue != null &&
+           aEbmsUserMessage != null &&
+           aPMode != null &&
+           aPMode.getMEP ().isOneWay () &&
+           aPMode.getMEPBinding () == EMEPBinding.PUSH;
+  }
+
+  /**
+   * Use the MPC message store for an incoming signal message: a receipt
+   * acknowledges the referenced message and a pull request leases the next
+   * message of the MPC.
+   *
+   * @param aEbmsSignalMessage
+   *        The incoming signal message. May not be <code>null</code>.
+   * @param aErrorMessagesTarget
+   *        The list of error messages to be filled if something goes wrong.
+   *        Never <code>null</code>.
+   * @param aResponseAttachmentsTarget
+   *        The list of attachments to be added to the response. Never
+   *        <code>null</code>.
+   * @param aSPIResult
+   *        The result object to be filled. May not be <code>null</code>.
+   */
+  private void _handleMPCMessageStore (@Nonnull final Ebms3SignalMessage aEbmsSignalMessage,
+                                       @Nonnull final ICommonsList <Ebms3Error> aErrorMessagesTarget,
+                                       @Nonnull final ICommonsList <WSS4JAttachment> aResponseAttachmentsTarget,
+                                       @Nonnull final SPIInvocationResult aSPIResult)
+  {
+    final String sMessageID = aEbmsSignalMessage.getMessageInfo ().getMessageId ();
+    if (aEbmsSignalMessage.getReceipt () != null)
+    {
+      // The SPIs are still invoked for the receipt
+      m_aMPCMessageStore.acknowledge (aEbmsSignalMessage.getMessageInfo ().getRefToMessageId ());
+    }
+    else
+      if (aEbmsSignalMessage.getPullRequest () != null)
+      {
+        final String sMPCID = aEbmsSignalMessage.getPullRequest ().getMpc ();
+        try
+        {
+          final AS4MPCMessageStoreEntry aEntry = m_aMPCMessageStore.lease (sMPCID);
+          if (aEntry != null)
+          {
+            aSPIResult.setPullReturnUserMsg (aEntry.getUserMessage ());
+            aResponseAttachmentsTarget.addAll (aEntry.getAllAttachments (m_aResHelper));
+            aSPIResult.setSuccess (true);
+          }
+        }
+        catch (final IOException ex)
+        {
+          LOGGER.error ("Failed to read the next message of MPC '" + sMPCID + "' from the MPC message store", ex);
+          aErrorMessagesTarget.add (EEbmsError.EBMS_OTHER.getAsEbms3Error (m_aLocale,
+                                                                           sMessageID,
+                                                                           "Failed to read the next message of the MPC"));
+        }
+      }
+  }
+
   /**
    * Invoke custom SPI message processors
    *
@@ -684,25 +943,38 @@ public class AS4RequestHandler implements AutoCloseable
           // Main processing
           final AS4MessageProcessorResult aResult;
           final ICommonsList <Ebms3Error> aProcessingErrorMessages = new CommonsArrayList <> ();
-          if (bIsUserMessage)
+          try (final IAS4Span aSpan = AS4TracingManager.startSpan (AS4TracingManager.SPAN_SPI, EAS4SpanKind.INTERNAL)
+                                                       .setAttribute (AS4TracingManager.ATTR_SPI_CLASS,
+                                                                      aProcessor.getClass ().getName ()))
           {
-            aResult = aProcessor.processAS4UserMessage (m_aMessageMetadata,
-                                                        aHttpHeaders,
-                                                        aEbmsUserMessage,
-                                                        aPMode,
-                                                        aPayloadNode,
-                                                        aDecryptedAttachments,
-                                                        aState,
-                                                        aProcessingErrorMessages);
-          }
-          else
-          {
-            aResult = aProcessor.processAS4SignalMessage (m_aMessageMetadata,
-                                                          aHttpHeaders,
-                                                          aEbmsSignalMessage,
-                                                          aPMode,
-                                                          aState,
-                                                          aProcessingErrorMessages);
+            try
+            {
+              if (bIsUserMessage)
+              {
+                aResult = aProcessor.processAS4UserMessage (m_aMessageMetadata,
+                                                            aHttpHeaders,
+                                                            aEbmsUserMessage,
+                                                            aPMode,
+                                                            aPayloadNode,
+                                                            aDecryptedAttachments,
+                                                            aState,
+                                                            aProcessingErrorMessages);
+              }
+              else
+              {
+                aResult = aProcessor.processAS4SignalMessage (m_aMessageMetadata,
+                                                              aHttpHeaders,
+                                                              aEbmsSignalMessage,
+                                                              aPMode,
+                                                              aState,
+                                                              aProcessingErrorMessages);
+              }
+            }
+            catch (final RuntimeException ex)
+            {
+              aSpan.recordException (ex);
+              throw ex;
+            }
           }
 
           // Result returned?
@@ -870,34 +1142,45 @@ public class AS4RequestHandler implements AutoCloseable
   private void _invokeSPIsForResponse (@Nonnull final IAS4MessageState aState,
                                        @Nullable final IAS4ResponseFactory aResponseFactory,
                                        @Nullable final HttpEntity aHttpEntity,
-                                       @Nonnull final IMimeType aMimeType,
                                        @Nullable final String sResponseMessageID)
   {
-    // Get response payload as byte array for multiple processing by the SPIs
+    // Get a reusable view on the response payload for multiple processing by
+    // the SPIs
     final boolean bResponsePayloadIsAvailable = aResponseFactory != null;
-    byte [] aResponsePayload = null;
+    IHasInputStream aResponsePayload = null;
     if (aResponseFactory != null)
     {
-      final HttpEntity aRealHttpEntity = aHttpEntity != null ? aHttpEntity
-                                                             : aResponseFactory.getHttpEntityForSending (aMimeType);
-      if (aRealHttpEntity.isRepeatable ())
+      if (aHttpEntity != null)
       {
-        int nContentLength = (int) aRealHttpEntity.getContentLength ();
-        if (nContentLength < 0)
-          nContentLength = 16 * CGlobal.BYTES_PER_KILOBYTE;
-
-        try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream (nContentLength))
+        if (aHttpEntity.isRepeatable ())
         {
-          aRealHttpEntity.writeTo (aBAOS);
-          aResponsePayload = aBAOS.getBufferOrCopy ();
+          // Read lazily from the prebuilt entity
+          aResponsePayload = HasInputStream.multiple ( () -> {
+            try
+            {
+              return aHttpEntity.getContent ();
+            }
+            catch (final IOException ex)
+            {
+              throw new IllegalStateException ("Failed to get response entity content", ex);
+            }
+          });
+        }
+        else
+          LOGGER.warn ("AS4 Response entity is not repeatable and therefore not read for SPIs");
+      }
+      else
+      {
+        try
+        {
+          // Rendered only once - shared with the response sent back
+          aResponsePayload = aResponseFactory.getResponsePayload ();
         }
         catch (final IOException ex)
         {
-          LOGGER.error ("Error dumping response entity", ex);
+          LOGGER.error ("Error rendering response payload", ex);
         }
       }
-      else
-        LOGGER.warn ("AS4 Response entity is not repeatable and therefore not read for SPIs");
     }
     else
       LOGGER.info ("No response factory present");
@@ -1062,6 +1345,9 @@ public class AS4RequestHandler implements AutoCloseable
    * If the PModeLegSecurity has set a Sign and Digest Algorithm the message
    * will be signed, else the message will be returned as it is.
    *
+   * @param aState
+   *        The processing state of the incoming message. Never
+   *        <code>null</code>.
    * @param aResponseAttachments
    *        attachment that are added
    * @param aSigningParams
@@ -1078,7 +1364,8 @@ public class AS4RequestHandler implements AutoCloseable
    *         if something in the signing process goes wrong from WSS4j
    */
   @Nonnull
-  private Document _signResponseIfNeeded (@Nullable final ICommonsList <WSS4JAttachment> aResponseAttachments,
+  private Document _signResponseIfNeeded (@Nonnull final IAS4MessageState aState,
+                                          @Nullable final ICommonsList <WSS4JAttachment> aResponseAttachments,
                                           @Nonnull final AS4SigningParams aSigningParams,
                                           @Nonnull final Document aDocToBeSigned,
                                           @Nonnull final ESoapVersion eSoapVersion,
@@ -1089,14 +1376,29 @@ public class AS4RequestHandler implements AutoCloseable
     {
       // Sign
       final boolean bMustUnderstand = true;
-      ret = AS4Signer.createSignedMessage (m_aCryptoFactory,
-                                           aDocToBeSigned,
-                                           eSoapVersion,
-                                           sMessagingID,
-                                           aResponseAttachments,
-                                           m_aResHelper,
-                                           bMustUnderstand,
-                                           aSigningParams.getClone ());
+      final long nSigningStart = AS4MetricsManager.startTiming (aState.getStageTimings ());
+      boolean bSigned = false;
+      try
+      {
+        ret = AS4Signer.createSignedMessage (m_aCryptoFactory,
+                                             aDocToBeSigned,
+                                             eSoapVersion,
+                                             sMessagingID,
+                                             aResponseAttachments,
+                                             m_aResHelper,
+                                             bMustUnderstand,
+                                             aSigningParams.getClone ());
+        bSigned = true;
+      }
+      finally
+      {
+        AS4MetricsManager.recordStage (EAS4MetricsStage.INCOMING_RESPONSE_SIGNING,
+                                       nSigningStart,
+                                       bSigned,
+                                       aState.getProfileID (),
+                                       aState.getPMode (),
+                                       aState.getStageTimings ());
+      }
     }
     else
     {
@@ -1136,8 +1438,6 @@ public class AS4RequestHandler implements AutoCloseable
    * @param aUserMessage
    *        used if no non-repudiation information is needed, prints the
    *        usermessage in receipt. Can be <code>null</code>.
-   * @param aResponseAttachments
-   *        that should be sent back if needed. Can be <code>null</code>.
    * @throws WSSecurityException
    */
   @Nonnull
@@ -1146,8 +1446,7 @@ public class AS4RequestHandler implements AutoCloseable
                                                              @Nonnull final ESoapVersion eSoapVersion,
                                                              @Nonnull @Nonempty final String sResponseMessageID,
                                                              @Nonnull final PModeLeg aEffectiveLeg,
-                                                             @Nullable final Ebms3UserMessage aUserMessage,
-                                                             @Nullable final ICommonsList <WSS4JAttachment> aResponseAttachments) throws WSSecurityException
+                                                             @Nullable final Ebms3UserMessage aUserMessage) throws WSSecurityException
   {
     final AS4ReceiptMessage aReceiptMessage = AS4ReceiptMessage.create (eSoapVersion,
                                                                         sResponseMessageID,
@@ -1159,7 +1458,10 @@ public class AS4RequestHandler implements AutoCloseable
     // We've got our response
     final Document aResponseDoc = aReceiptMessage.getAsSoapDocument ();
     final AS4SigningParams aSigningParams = new AS4SigningParams ().setFromPMode (aEffectiveLeg.getSecurity ());
-    final Document aSignedDoc = _signResponseIfNeeded (aResponseAttachments,
+    // The receipt is sent as plain XML, so the signature must not cover any
+    // attachments
+    final Document aSignedDoc = _signResponseIfNeeded (aState,
+                                                       (ICommonsList <WSS4JAttachment>) null,
                                                        aSigningParams,
                                                        aResponseDoc,
                                                        aEffectiveLeg.getProtocol ().getSoapVersion (),
@@ -1248,7 +1550,8 @@ public class AS4RequestHandler implements AutoCloseable
                                                                                                       MessagingException
   {
     final String sResponseMessageID = aResponseUserMsg.getEbms3UserMessage ().getMessageInfo ().getMessageId ();
-    final Document aSignedDoc = _signResponseIfNeeded (aResponseAttachments,
+    final Document aSignedDoc = _signResponseIfNeeded (aState,
+                                                       aResponseAttachments,
                                                        aSigningParams,
                                                        aResponseUserMsg.getAsSoapDocument (),
                                                        eSoapVersion,
@@ -1296,7 +1599,8 @@ public class AS4RequestHandler implements AutoCloseable
                                                                            eSoapVersion,
                                                                            aIncomingAttachments,
                                                                            m_aIncomingProfileSelector,
-                                                                           aErrorMessagesTarget);
+                                                                           aErrorMessagesTarget,
+                                                                           m_aMessageMetadata.getStageTimings ());
     final IPMode aPMode = aState.getPMode ();
     final PModeLeg aEffectiveLeg = aState.getEffectivePModeLeg ();
     final String sMessageID = aState.getMessageID ();
@@ -1317,13 +1621,21 @@ public class AS4RequestHandler implements AutoCloseable
                       sProfileID +
                       "'");
 
+      final long nDuplicateCheckStart = AS4MetricsManager.startTiming (aState.getStageTimings ());
       final boolean bIsDuplicate = MetaAS4Manager.getIncomingDuplicateMgr ()
                                                  .registerAndCheck (sMessageID,
                                                                     sProfileID,
                                                                     aPMode == null ? null : aPMode.getID ())
                                                  .isBreak ();
+      AS4MetricsManager.recordStage (EAS4MetricsStage.INCOMING_DUPLICATE_CHECK,
+                                     nDuplicateCheckStart,
+                                     true,
+                                     sProfileID,
+                                     aPMode,
+                                     aState.getStageTimings ());
       if (bIsDuplicate)
       {
+        AS4MetricsManager.incrementCounter (EAS4MetricsCounter.INCOMING_DUPLICATE, sProfileID, aPMode);
         LOGGER.error ("Not invoking SPIs, because message with Message ID '" +
                       sMessageID +
                       "' was already handled (this is a duplicate)");
@@ -1360,21 +1672,66 @@ public class AS4RequestHandler implements AutoCloseable
           aPMode.getMEPBinding ().isAsynchronousInitiator () ||
           aState.getEffectivePModeLegNumber () != 1)
       {
-        // Call synchronous
-
-        // Might add to aErrorMessages
-        // Might add to aResponseAttachments
-        // Might add to m_aPullReturnUserMsg
-        _invokeSPIsForIncoming (aHttpHeaders,
-                                aEbmsUserMessage,
-                                aEbmsSignalMessage,
-                                aPayloadNode,
-                                aDecryptedAttachments,
-                                aPMode,
-                                aState,
-                                aErrorMessagesTarget,
-                                aResponseAttachments,
-                                aSPIResult);
+        if (_isQueueable (aPMode, aEbmsUserMessage))
+        {
+          // Persist for later processing - the receipt is created below
+          try
+          {
+            m_aInboundQueue.enqueue (m_aMessageMetadata, aHttpHeaders, aState);
+            aSPIResult.setSuccess (true);
+          }
+          catch (final AS4DecompressException ex)
+          {
+            LOGGER.error ("Failed to decompress AS4 payload", ex);
+            aErrorMessagesTarget.add (EEbmsError.EBMS_DECOMPRESSION_FAILURE.getAsEbms3Error (m_aLocale, sMessageID));
+          }
+          catch (final IOException ex)
+          {
+            LOGGER.error ("Failed to persist AS4 message '" + sMessageID + "' in the inbound queue", ex);
+            aErrorMessagesTarget.add (EEbmsError.EBMS_OTHER.getAsEbms3Error (m_aLocale,
+                                                                             sMessageID,
+                                                                             "Failed to persist the message for processing"));
+          }
+        }
+        else
+        {
+          if (m_aMPCMessageStore != null && aEbmsSignalMessage != null)
+          {
+            // Might add to aErrorMessages
+            // Might add to aResponseAttachments
+            // Might add to m_aPullReturnUserMsg
+            _handleMPCMessageStore (aEbmsSignalMessage, aErrorMessagesTarget, aResponseAttachments, aSPIResult);
+          }
+
+          if (m_aOutbox != null && aEbmsSignalMessage != null && aEbmsSignalMessage.getReceipt () != null)
+            m_aOutbox.acknowledge (aEbmsSignalMessage.getMessageInfo ().getRefToMessageId ());
+
+          if (aErrorMessagesTarget.isEmpty () && !aSPIResult.hasPullReturnUserMsg ())
+          {
+            // Call synchronous
+
+            // Might add to aErrorMessages
+            // Might add to aResponseAttachments
+            // Might add to m_aPullReturnUserMsg
+            final long nSPIStart = AS4MetricsManager.startTiming (aState.getStageTimings ());
+            _invokeSPIsForIncoming (aHttpHeaders,
+                                    aEbmsUserMessage,
+                                    aEbmsSignalMessage,
+                                    aPayloadNode,
+                                    aDecryptedAttachments,
+                                    aPMode,
+                                    aState,
+                                    aErrorMessagesTarget,
+                                    aResponseAttachments,
+                                    aSPIResult);
+            AS4MetricsManager.recordStage (EAS4MetricsStage.INCOMING_SPI_PROCESSING,
+                                           nSPIStart,
+                                           aSPIResult.isSuccess (),
+                                           aState.getProfileID (),
+                                           aPMode,
+                                           aState.getStageTimings ());
+          }
+        }
         if (aSPIResult.isFailure ())
           LOGGER.warn ("Error invoking synchronous SPIs");
         else
@@ -1388,125 +1745,148 @@ public class AS4RequestHandler implements AutoCloseable
       {
         // Call asynchronous
         // Only leg1 can be async!
-        final IThrowingRunnable <Exception> r = () -> {
+        final IThrowingRunnable <Exception> r = AS4TracingManager.wrapThrowing ( () -> {
           // Start async
-          final ICommonsList <Ebms3Error> aLocalErrorMessages = new CommonsArrayList <> ();
-          final ICommonsList <WSS4JAttachment> aLocalResponseAttachments = new CommonsArrayList <> ();
-
-          final SPIInvocationResult aAsyncSPIResult = new SPIInvocationResult ();
-          _invokeSPIsForIncoming (aHttpHeaders,
-                                  aEbmsUserMessage,
-                                  aEbmsSignalMessage,
-                                  aPayloadNode,
-                                  aDecryptedAttachments,
-                                  aPMode,
-                                  aState,
-                                  aLocalErrorMessages,
-                                  aLocalResponseAttachments,
-                                  aAsyncSPIResult);
-
-          final IAS4ResponseFactory aAsyncResponseFactory;
-          final String sResponseMessageID;
-          if (aAsyncSPIResult.isSuccess ())
+          try (final IAS4Span aAsyncSpan = AS4TracingManager.startSpan (AS4TracingManager.SPAN_ASYNC_PROCESSING,
+                                                                        EAS4SpanKind.INTERNAL))
           {
-            // SPI processing succeeded
-            assert aLocalErrorMessages.isEmpty ();
-
-            // The response user message has no explicit payload. All data of
-            // the response user message is in the local attachments
-            sResponseMessageID = MessageHelperMethods.createRandomMessageID ();
-            final AS4UserMessage aResponseUserMsg = _createReversedUserMessage (eSoapVersion,
-                                                                                sResponseMessageID,
-                                                                                aEbmsUserMessage,
-                                                                                aLocalResponseAttachments);
-
-            // Send UserMessage
-            final AS4SigningParams aSigningParams = new AS4SigningParams ().setFromPMode (aEffectiveLeg.getSecurity ());
-            // Use the original receiver ID as the alias into the keystore for
-            // encrypting the response message
-            final String sEncryptionAlias = aEbmsUserMessage.getPartyInfo ().getTo ().getPartyIdAtIndex (0).getValue ();
-            final AS4CryptParams aCryptParams = new AS4CryptParams ().setFromPMode (aEffectiveLeg.getSecurity ())
-                                                                     .setAlias (sEncryptionAlias);
-
-            aAsyncResponseFactory = _createResponseUserMessage (aState,
-                                                                aEffectiveLeg.getProtocol ().getSoapVersion (),
-                                                                aResponseUserMsg,
-                                                                aResponseAttachments,
-                                                                aSigningParams,
-                                                                aCryptParams);
-          }
-          else
-          {
-            // SPI processing failed
-
-            // Send ErrorMessage Undefined - see
-            // https://github.com/phax/phase4/issues/4
-            final AS4ErrorMessage aResponseErrorMsg = AS4ErrorMessage.create (eSoapVersion,
-                                                                              aState.getMessageID (),
-                                                                              aLocalErrorMessages);
-            sResponseMessageID = aResponseErrorMsg.getEbms3SignalMessage ().getMessageInfo ().getMessageId ();
-
-            // Pass error messages to the outside
-            if (m_aErrorConsumer != null && aLocalErrorMessages.isNotEmpty ())
-              m_aErrorConsumer.onAS4ErrorMessage (aState, aLocalErrorMessages, aResponseErrorMsg);
-
-            aAsyncResponseFactory = new AS4ResponseFactoryXML (m_aMessageMetadata,
-                                                               aState,
-                                                               sResponseMessageID,
-                                                               aResponseErrorMsg.getAsSoapDocument (),
-                                                               eSoapVersion.getMimeType ());
-          }
+            final ICommonsList <Ebms3Error> aLocalErrorMessages = new CommonsArrayList <> ();
+            final ICommonsList <WSS4JAttachment> aLocalResponseAttachments = new CommonsArrayList <> ();
+
+            final SPIInvocationResult aAsyncSPIResult = new SPIInvocationResult ();
+            final long nSPIStart = AS4MetricsManager.startTiming (aState.getStageTimings ());
+            _invokeSPIsForIncoming (aHttpHeaders,
+                                    aEbmsUserMessage,
+                                    aEbmsSignalMessage,
+                                    aPayloadNode,
+                                    aDecryptedAttachments,
+                                    aPMode,
+                                    aState,
+                                    aLocalErrorMessages,
+                                    aLocalResponseAttachments,
+                                    aAsyncSPIResult);
+            AS4MetricsManager.recordStage (EAS4MetricsStage.INCOMING_SPI_PROCESSING,
+                                           nSPIStart,
+                                           aAsyncSPIResult.isSuccess (),
+                                           aState.getProfileID (),
+                                           aPMode,
+                                           aState.getStageTimings ());
+
+            final IAS4ResponseFactory aAsyncResponseFactory;
+            final String sResponseMessageID;
+            if (aAsyncSPIResult.isSuccess ())
+            {
+              // SPI processing succeeded
+              assert aLocalErrorMessages.isEmpty ();
 
-          // where to send it back (must be determined by SPI!)
-          final String sAsyncResponseURL = aAsyncSPIResult.getAsyncResponseURL ();
-          if (StringHelper.hasNoText (sAsyncResponseURL))
-            throw new IllegalStateException ("No asynchronous response URL present - please check your SPI implementation");
+              // The response user message has no explicit payload. All data of
+              // the response user message is in the local attachments
+              sResponseMessageID = MessageHelperMethods.createRandomMessageID ();
+              final AS4UserMessage aResponseUserMsg = _createReversedUserMessage (eSoapVersion,
+                                                                                  sResponseMessageID,
+                                                                                  aEbmsUserMessage,
+                                                                                  aLocalResponseAttachments);
+
+              // Send UserMessage
+              final AS4SigningParams aSigningParams = new AS4SigningParams ().setFromPMode (aEffectiveLeg.getSecurity ());
+              // Use the original receiver ID as the alias into the keystore for
+              // encrypting the response message
+              final String sEncryptionAlias = aEbmsUserMessage.getPartyInfo ().getTo ().getPartyIdAtIndex (0).getValue ();
+              final AS4CryptParams aCryptParams = new AS4CryptParams ().setFromPMode (aEffectiveLeg.getSecurity ())
+                                                                       .setAlias (sEncryptionAlias);
 
-          if (LOGGER.isDebugEnabled ())
-            LOGGER.debug ("Responding asynchronous to: " + sAsyncResponseURL);
-
-          // Ensure HttpEntity is repeatable
-          HttpEntity aHttpEntity = aAsyncResponseFactory.getHttpEntityForSending (eSoapVersion.getMimeType ());
-          aHttpEntity = m_aResHelper.createRepeatableHttpEntity (aHttpEntity);
-
-          // Use the prebuilt entity for dumping
-          _invokeSPIsForResponse (aState,
-                                  aAsyncResponseFactory,
-                                  aHttpEntity,
-                                  eSoapVersion.getMimeType (),
-                                  sResponseMessageID);
-
-          // invoke client with new document
-          final BasicHttpPoster aSender = new BasicHttpPoster ();
-          final Document aAsyncResponse;
-          if (true)
-          {
-            final HttpHeaderMap aResponseHttpHeaders = null;
-            // TODO make async send parameters customizable
-            final HttpRetrySettings aRetrySettings = new HttpRetrySettings ();
-            aAsyncResponse = aSender.sendGenericMessageWithRetries (sAsyncResponseURL,
-                                                                    aResponseHttpHeaders,
-                                                                    aHttpEntity,
-                                                                    sMessageID,
-                                                                    aRetrySettings,
-                                                                    new ResponseHandlerXml (),
-                                                                    m_aOutgoingDumper,
-                                                                    m_aRetryCallback);
-          }
-          else
-          {
-            aAsyncResponse = aSender.sendGenericMessage (sAsyncResponseURL,
-                                                         null,
-                                                         aHttpEntity,
-                                                         new ResponseHandlerXml ());
+              aAsyncResponseFactory = _createResponseUserMessage (aState,
+                                                                  aEffectiveLeg.getProtocol ().getSoapVersion (),
+                                                                  aResponseUserMsg,
+                                                                  aResponseAttachments,
+                                                                  aSigningParams,
+                                                                  aCryptParams);
+            }
+            else
+            {
+              // SPI processing failed
+
+              // Send ErrorMessage Undefined - see
+              // https://github.com/phax/phase4/issues/4
+              final AS4ErrorMessage aResponseErrorMsg = AS4ErrorMessage.create (eSoapVersion,
+                                                                                aState.getMessageID (),
+                                                                                aLocalErrorMessages);
+              sResponseMessageID = aResponseErrorMsg.getEbms3SignalMessage ().getMessageInfo ().getMessageId ();
+
+              // Pass error messages to the outside
+              if (m_aErrorConsumer != null && aLocalErrorMessages.isNotEmpty ())
+                m_aErrorConsumer.onAS4ErrorMessage (aState, aLocalErrorMessages, aResponseErrorMsg);
+
+              aAsyncResponseFactory = new AS4ResponseFactoryXML (m_aMessageMetadata,
+                                                                 aState,
+                                                                 sResponseMessageID,
+                                                                 aResponseErrorMsg.getAsSoapDocument (),
+                                                                 eSoapVersion.getMimeType ());
+            }
+
+            // where to send it back (must be determined by SPI!)
+            final String sAsyncResponseURL = aAsyncSPIResult.getAsyncResponseURL ();
+            if (StringHelper.hasNoText (sAsyncResponseURL))
+              throw new IllegalStateException ("No asynchronous response URL present - please check your SPI implementation");
+
+            if (LOGGER.isDebugEnabled ())
+              LOGGER.debug ("Responding asynchronous to: " + sAsyncResponseURL);
+
+            // Ensure HttpEntity is repeatable and has a known length
+            HttpEntity aHttpEntity = aAsyncResponseFactory.getHttpEntityForSending (eSoapVersion.getMimeType ());
+            if (!aHttpEntity.isRepeatable () || aHttpEntity.getContentLength () < 0)
+              aHttpEntity = m_aResHelper.createSpooledHttpEntity (aHttpEntity);
+
+            // Use the prebuilt entity for dumping
+            _invokeSPIsForResponse (aState, aAsyncResponseFactory, aHttpEntity, sResponseMessageID);
+
+            // invoke client with new document
+            final BasicHttpPoster aSender = new BasicHttpPoster ();
+            final Document aAsyncResponse;
+            if (true)
+            {
+              final HttpHeaderMap aResponseHttpHeaders = null;
+              // TODO make async send parameters customizable
+              final HttpRetrySettings aRetrySettings = new HttpRetrySettings ();
+              aAsyncResponse = aSender.sendGenericMessageWithRetries (sAsyncResponseURL,
+                                                                      aResponseHttpHeaders,
+                                                                      aHttpEntity,
+                                                                      sMessageID,
+                                                                      aRetrySettings,
+                                                                      new ResponseHandlerXml (),
+                                                                      m_aOutgoingDumper,
+                                                                      m_aRetryCallback);
+            }
+            else
+            {
+              aAsyncResponse = aSender.sendGenericMessage (sAsyncResponseURL,
+                                                           null,
+                                                           aHttpEntity,
+                                                           new ResponseHandlerXml ());
+            }
+            AS4HttpDebug.debug ( () -> "SEND-RESPONSE [async sent] received: " +
+                                       XMLWriter.getNodeAsString (aAsyncResponse,
+                                                                  AS4HttpDebug.getDebugXMLWriterSettings ()));
           }
-          AS4HttpDebug.debug ( () -> "SEND-RESPONSE [async sent] received: " +
-                                     XMLWriter.getNodeAsString (aAsyncResponse,
-                                                                AS4HttpDebug.getDebugXMLWriterSettings ()));
-        };
+        });
 
-        final CompletableFuture <Void> aFuture = PhotonWorkerPool.getInstance ()
-                                                                 .runThrowing (CAS4.LIB_NAME + " async processing", r);
+        final Executor aExecutor = m_aAsyncExecutor != null ? m_aAsyncExecutor : AS4ExecutorHelper.getCustomExecutor ();
+        final CompletableFuture <Void> aFuture;
+        if (aExecutor != null)
+        {
+          aFuture = CompletableFuture.runAsync ( () -> {
+            try
+            {
+              r.run ();
+            }
+            catch (final Exception ex)
+            {
+              LOGGER.error ("Error in " + CAS4.LIB_NAME + " async processing", ex);
+            }
+          }, aExecutor);
+        }
+        else
+          aFuture = PhotonWorkerPool.getInstance ().runThrowing (CAS4.LIB_NAME + " async processing", r);
 
         if (m_aSoapProcessingFinalizedCB != null)
         {
@@ -1579,16 +1959,23 @@ public class AS4RequestHandler implements AutoCloseable
                 (aPMode.getMEPBinding ().equals (EMEPBinding.PULL_PUSH) && aSPIResult.hasPullReturnUserMsg ()) ||
                 (aPMode.getMEPBinding ().equals (EMEPBinding.PUSH_PULL) && aSPIResult.hasPullReturnUserMsg ()))
             {
-              // TODO would be nice to have attachments here I guess
               final AS4UserMessage aResponseUserMsg = new AS4UserMessage (eSoapVersion,
                                                                           aSPIResult.getPullReturnUserMsg ());
 
               sResponseMessageID = aResponseUserMsg.getEbms3UserMessage ().getMessageInfo ().getMessageId ();
-              ret = new AS4ResponseFactoryXML (m_aMessageMetadata,
-                                               aState,
-                                               sResponseMessageID,
-                                               aResponseUserMsg.getAsSoapDocument (),
-                                               eSoapVersion.getMimeType ());
+              if (aResponseAttachments.isEmpty ())
+                ret = new AS4ResponseFactoryXML (m_aMessageMetadata,
+                                                 aState,
+                                                 sResponseMessageID,
+                                                 aResponseUserMsg.getAsSoapDocument (),
+                                                 eSoapVersion.getMimeType ());
+              else
+                ret = new AS4ResponseFactoryMIME (m_aMessageMetadata,
+                                                  aState,
+                                                  sResponseMessageID,
+                                                  MimeMessageCreator.generateMimeMessage (eSoapVersion,
+                                                                                          aResponseUserMsg.getAsSoapDocument (),
+                                                                                          aResponseAttachments));
             }
             else
               if (aEbmsUserMessage != null)
@@ -1604,8 +1991,7 @@ public class AS4RequestHandler implements AutoCloseable
                                                        eSoapVersion,
                                                        sResponseMessageID,
                                                        aEffectiveLeg,
-                                                       aEbmsUserMessage,
-                                                       aResponseAttachments);
+                                                       aEbmsUserMessage);
                 }
                 else
                 {
@@ -1673,7 +2059,7 @@ public class AS4RequestHandler implements AutoCloseable
     }
 
     // Create the HttpEntity on demand
-    _invokeSPIsForResponse (aState, ret, null, eSoapVersion.getMimeType (), sResponseMessageID);
+    _invokeSPIsForResponse (aState, ret, null, sResponseMessageID);
 
     return ret;
   }
@@ -1707,6 +2093,7 @@ public class AS4RequestHandler implements AutoCloseable
                                                                                    MessagingException,
                                                                                    WSSecurityException
   {
+    final AS4StageTimings aStageTimings = m_aMessageMetadata.getStageTimings ();
     final IAS4ParsedMessageCallback aCallback = (aHttpHeaders, aSoapDocument, eSoapVersion, aIncomingAttachments) -> {
       // SOAP document and SOAP version are determined
       // Collect all runtime errors
@@ -1721,7 +2108,21 @@ public class AS4RequestHandler implements AutoCloseable
         // Response present -> send back
         final IAS4OutgoingDumper aRealOutgoingDumper = m_aOutgoingDumper != null ? m_aOutgoingDumper
                                                                                  : AS4DumpManager.getOutgoingDumper ();
-        aResponder.applyToResponse (aHttpResponse, aRealOutgoingDumper);
+        final long nWriteStart = AS4MetricsManager.startTiming (aStageTimings);
+        boolean bWritten = false;
+        try
+        {
+          aResponder.applyToResponse (aHttpResponse, aRealOutgoingDumper);
+          bWritten = true;
+        }
+        finally
+        {
+          AS4MetricsManager.recordStage (EAS4MetricsStage.INCOMING_RESPONSE_WRITE,
+                                         nWriteStart,
+                                         bWritten,
+                                         AS4MetricsTags.EMPTY,
+                                         aStageTimings);
+        }
       }
       else
       {
@@ -1729,14 +2130,36 @@ public class AS4RequestHandler implements AutoCloseable
         aHttpResponse.setStatus (CHttp.HTTP_NO_CONTENT);
       }
       AS4HttpDebug.debug ( () -> "RECEIVE-END with " + (aResponder != null ? "EBMS message" : "no content"));
+      if (aStageTimings != null)
+      {
+        aStageTimings.logIfSlow ( () -> "received with incoming ID '" + m_aMessageMetadata.getIncomingUniqueID () + "'");
+        aStageTimings.logIfAllocationsTracked ( () -> "received with incoming ID '" +
+                                                      m_aMessageMetadata.getIncomingUniqueID () +
+                                                      "'");
+      }
     };
-    AS4IncomingHandler.parseAS4Message (m_aIAF,
-                                        m_aResHelper,
-                                        m_aMessageMetadata,
-                                        aServletRequestIS,
-                                        aRequestHttpHeaders,
-                                        aCallback,
-                                        m_aIncomingDumper);
+    try (final IAS4Span aSpan = AS4TracingManager.startSpan (AS4TracingManager.SPAN_RECEIVE,
+                                                             EAS4SpanKind.SERVER,
+                                                             aRequestHttpHeaders)
+                                                 .setAttribute (AS4TracingManager.ATTR_INCOMING_ID,
+                                                                m_aMessageMetadata.getIncomingUniqueID ()))
+    {
+      try
+      {
+        AS4IncomingHandler.parseAS4Message (m_aIAF,
+                                            m_aResHelper,
+                                            m_aMessageMetadata,
+                                            aServletRequestIS,
+                                            aRequestHttpHeaders,
+                                            aCallback,
+                                            m_aIncomingDumper);
+      }
+      catch (final Phase4Exception | IOException | MessagingException | WSSecurityException | RuntimeException ex)
+      {
+        aSpan.recordException (ex);
+        throw ex;
+      }
+    }
   }
 
   /**
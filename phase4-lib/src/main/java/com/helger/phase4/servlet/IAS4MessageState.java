@@ -28,6 +28,7 @@ import javax.annotation.Nullable;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 
+import com.helger.commons.annotation.ReturnsMutableObject;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.collection.impl.ICommonsMap;
 import com.helger.commons.datetime.XMLOffsetDateTime;
@@ -40,6 +41,7 @@ import com.helger.phase4.ebms3header.Ebms3PullRequest;
 import com.helger.phase4.ebms3header.Ebms3Receipt;
 import com.helger.phase4.ebms3header.Ebms3SignalMessage;
 import com.helger.phase4.ebms3header.Ebms3UserMessage;
+import com.helger.phase4.metrics.AS4StageTimings;
 import com.helger.phase4.model.mpc.IMPC;
 import com.helger.phase4.model.pmode.IPMode;
 import com.helger.phase4.model.pmode.leg.PModeLeg;
@@ -451,4 +453,14 @@ public interface IAS4MessageState
    * @since v0.9.7
    */
   boolean isSoapHeaderElementProcessingSuccessful ();
+
+  /**
+   * @return The stage timings of the processing of this message. This object
+   *         is mutable and is filled while the message is processed. Never
+   *         <code>null</code>.
+   * @since 2.1.3
+   */
+  @Nonnull
+  @ReturnsMutableObject
+  AS4StageTimings getStageTimings ();
 }
@@ -0,0 +1,943 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.servlet.pull;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.CommonsLinkedHashMap;
+import com.helger.commons.collection.impl.CommonsTreeMap;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.collection.impl.ICommonsOrderedMap;
+import com.helger.commons.collection.impl.ICommonsSortedMap;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.io.file.FileOperations;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.mutable.MutableInt;
+import com.helger.commons.state.EChange;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.StringParser;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.phase4.attachment.WSS4JAttachment;
+import com.helger.phase4.ebms3header.Ebms3UserMessage;
+import com.helger.phase4.util.AS4RecordSegment;
+
+/**
+ * A persistent per-MPC store of outbound user messages that are waiting to be
+ * pulled by a partner. All changes are written to append-only
+ * {@link AS4RecordSegment} files in the base directory, whereas an in-memory
+ * FIFO index per MPC references the position of each message in the
+ * segments. When a pull request is received, the oldest message of the MPC is
+ * leased to the requestor. It is only removed from the store, when the
+ * corresponding receipt is received (see {@link #acknowledge(String)}). If no
+ * receipt is received within the lease duration, the message is handed out
+ * again (at-least-once delivery). Messages that were not acknowledged within
+ * their time to live are discarded. Segments are deleted as soon as they and
+ * all older segments contain no open message anymore.<br>
+ * Leases are not persisted - after a restart all open messages can be pulled
+ * again.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@ThreadSafe
+public class AS4MPCMessageStore implements AutoCloseable
+{
+  public static final Duration DEFAULT_LEASE_DURATION = Duration.ofMinutes (5);
+  public static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofDays (7);
+  public static final long DEFAULT_MAX_SEGMENT_SIZE = 64 * CGlobal.BYTES_PER_MEGABYTE;
+  public static final boolean DEFAULT_SYNC_ON_WRITE = true;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4MPCMessageStore.class);
+  private static final byte OP_ACKNOWLEDGED = 'A';
+  private static final byte OP_EXPIRED = 'X';
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  /**
+   * The in-memory index data of a single message.
+   *
+   * @author Philip Helger
+   */
+  private static final class IndexEntry
+  {
+    private final String m_sMessageID;
+    private final String m_sMPCID;
+    private final AS4RecordSegment m_aSegment;
+    private final long m_nOffset;
+    private final int m_nLength;
+    private final long m_nExpirationMillis;
+
+    IndexEntry (@Nonnull final String sMessageID,
+                @Nonnull final String sMPCID,
+                @Nonnull final AS4RecordSegment aSegment,
+                final long nOffset,
+                final int nLength,
+                final long nExpirationMillis)
+    {
+      m_sMessageID = sMessageID;
+      m_sMPCID = sMPCID;
+      m_aSegment = aSegment;
+      m_nOffset = nOffset;
+      m_nLength = nLength;
+      m_nExpirationMillis = nExpirationMillis;
+    }
+  }
+
+  /**
+   * The in-memory index of a single MPC.
+   *
+   * @author Philip Helger
+   */
+  private static final class MPCIndex
+  {
+    // Messages that can be handed out, oldest first
+    private final ArrayDeque <IndexEntry> m_aReady = new ArrayDeque <> ();
+    // Message ID to lease end; in lease order
+    private final ICommonsOrderedMap <String, Long> m_aLeaseEnd = new CommonsLinkedHashMap <> ();
+
+    boolean isEmpty ()
+    {
+      return m_aReady.isEmpty () && m_aLeaseEnd.isEmpty ();
+    }
+  }
+
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  private final File m_aBaseDir;
+
+  @GuardedBy ("m_aRWLock")
+  private Duration m_aLeaseDuration = DEFAULT_LEASE_DURATION;
+  @GuardedBy ("m_aRWLock")
+  private Duration m_aTimeToLive = DEFAULT_TIME_TO_LIVE;
+  @GuardedBy ("m_aRWLock")
+  private long m_nMaxSegmentSize = DEFAULT_MAX_SEGMENT_SIZE;
+  @GuardedBy ("m_aRWLock")
+  private boolean m_bSyncOnWrite = DEFAULT_SYNC_ON_WRITE;
+
+  // All segments in index order, with the number of open messages they contain
+  @GuardedBy ("m_aRWLock")
+  private final ICommonsSortedMap <Long, MutableInt> m_aSegmentOpenCounts = new CommonsTreeMap <> ();
+  @GuardedBy ("m_aRWLock")
+  private final ICommonsMap <Long, AS4RecordSegment> m_aSegments = new CommonsHashMap <> ();
+  @GuardedBy ("m_aRWLock")
+  private AS4RecordSegment m_aActiveSegment;
+  // The number of records currently read outside of the lock per segment
+  @GuardedBy ("m_aRWLock")
+  private final ICommonsMap <Long, MutableInt> m_aSegmentReaders = new CommonsHashMap <> ();
+  @GuardedBy ("m_aRWLock")
+  private final ICommonsMap <String, IndexEntry> m_aEntries = new CommonsHashMap <> ();
+  @GuardedBy ("m_aRWLock")
+  private final ICommonsMap <String, MPCIndex> m_aMPCs = new CommonsHashMap <> ();
+
+  private final AtomicLong m_aEnqueued = new AtomicLong (0);
+  private final AtomicLong m_aHandedOut = new AtomicLong (0);
+  private final AtomicLong m_aRedelivered = new AtomicLong (0);
+  private final AtomicLong m_aAcknowledged = new AtomicLong (0);
+  private final AtomicLong m_aExpired = new AtomicLong (0);
+
+  /**
+   * Constructor
+   *
+   * @param aBaseDir
+   *        The base directory in which the segments are stored. May not be
+   *        <code>null</code>. Should not be shared with other stores.
+   */
+  public AS4MPCMessageStore (@Nonnull final File aBaseDir)
+  {
+    ValueEnforcer.notNull (aBaseDir, "BaseDir");
+    m_aBaseDir = aBaseDir;
+  }
+
+  /**
+   * @return The base directory as provided in the constructor. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final File getBaseDir ()
+  {
+    return m_aBaseDir;
+  }
+
+  /**
+   * @return <code>true</code> if {@link #start()} was called and the store was
+   *         not yet closed.
+   */
+  public boolean isStarted ()
+  {
+    return m_aRWLock.readLockedBoolean ( () -> m_aActiveSegment != null);
+  }
+
+  private void _checkNotStarted ()
+  {
+    if (m_aActiveSegment != null)
+      throw new IllegalStateException ("This setting cannot be changed after the store was started");
+  }
+
+  @Nonnull
+  public final Duration getLeaseDuration ()
+  {
+    return m_aRWLock.readLockedGet ( () -> m_aLeaseDuration);
+  }
+
+  /**
+   * Set the duration for which a handed out message is reserved for the
+   * receipt of the pulling partner. Afterwards it is handed out again.
+   *
+   * @param aLeaseDuration
+   *        The lease duration. May not be <code>null</code> nor negative.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4MPCMessageStore setLeaseDuration (@Nonnull final Duration aLeaseDuration)
+  {
+    ValueEnforcer.notNull (aLeaseDuration, "LeaseDuration");
+    ValueEnforcer.isFalse (aLeaseDuration.isNegative (), "LeaseDuration may not be negative");
+    m_aRWLock.writeLocked ( () -> m_aLeaseDuration = aLeaseDuration);
+    return this;
+  }
+
+  @Nonnull
+  public final Duration getTimeToLive ()
+  {
+    return m_aRWLock.readLockedGet ( () -> m_aTimeToLive);
+  }
+
+  /**
+   * Set the default time to live of new messages. Messages that were not
+   * acknowledged within that time are discarded.
+   *
+   * @param aTimeToLive
+   *        The time to live. May not be <code>null</code> and must be
+   *        positive.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4MPCMessageStore setTimeToLive (@Nonnull final Duration aTimeToLive)
+  {
+    ValueEnforcer.notNull (aTimeToLive, "TimeToLive");
+    ValueEnforcer.isFalse (aTimeToLive.isNegative () || aTimeToLive.isZero (), "TimeToLive must be positive");
+    m_aRWLock.writeLocked ( () -> m_aTimeToLive = aTimeToLive);
+    return this;
+  }
+
+  @Nonnegative
+  public final long getMaxSegmentSize ()
+  {
+    return m_aRWLock.readLockedLong ( () -> m_nMaxSegmentSize);
+  }
+
+  /**
+   * Set the size in bytes after which a new segment is started.
+   *
+   * @param nMaxSegmentSize
+   *        The maximum segment size. Must be &gt; 0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4MPCMessageStore setMaxSegmentSize (@Nonnegative final long nMaxSegmentSize)
+  {
+    ValueEnforcer.isGT0 (nMaxSegmentSize, "MaxSegmentSize");
+    m_aRWLock.writeLocked ( () -> m_nMaxSegmentSize = nMaxSegmentSize);
+    return this;
+  }
+
+  public final boolean isSyncOnWrite ()
+  {
+    return m_aRWLock.readLockedBoolean ( () -> m_bSyncOnWrite);
+  }
+
+  /**
+   * Define whether each new message should be forced to disk before
+   * {@link #enqueue(String, Ebms3UserMessage, ICommonsList)} returns.
+   * Acknowledgements are never forced, because losing them only results in a
+   * repeated delivery. Can only be changed before the store is started.
+   *
+   * @param bSyncOnWrite
+   *        <code>true</code> to force new messages to disk.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4MPCMessageStore setSyncOnWrite (final boolean bSyncOnWrite)
+  {
+    m_aRWLock.writeLocked ( () -> {
+      _checkNotStarted ();
+      m_bSyncOnWrite = bSyncOnWrite;
+    });
+    return this;
+  }
+
+  /**
+   * @return The number of messages in the store, including the leased ones.
+   */
+  @Nonnegative
+  public int getMessageCount ()
+  {
+    return m_aRWLock.readLockedInt (m_aEntries::size);
+  }
+
+  /**
+   * Get the number of messages of a single MPC.
+   *
+   * @param sMPCID
+   *        The MPC ID to check. May be <code>null</code>.
+   * @return The number of messages of the MPC in the store, including the
+   *         leased ones.
+   */
+  @Nonnegative
+  public int getMessageCount (@Nullable final String sMPCID)
+  {
+    return m_aRWLock.readLockedInt ( () -> {
+      final MPCIndex aIndex = m_aMPCs.get (sMPCID);
+      return aIndex == null ? 0 : aIndex.m_aReady.size () + aIndex.m_aLeaseEnd.size ();
+    });
+  }
+
+  /**
+   * @return The number of messages currently handed out and waiting for a
+   *         receipt.
+   */
+  @Nonnegative
+  public int getLeasedCount ()
+  {
+    return m_aRWLock.readLockedInt ( () -> {
+      int ret = 0;
+      for (final MPCIndex aIndex : m_aMPCs.values ())
+        ret += aIndex.m_aLeaseEnd.size ();
+      return ret;
+    });
+  }
+
+  /**
+   * @return The number of segment files currently in use.
+   */
+  @Nonnegative
+  public int getSegmentCount ()
+  {
+    return m_aRWLock.readLockedInt (m_aSegments::size);
+  }
+
+  /**
+   * @return The number of messages enqueued since this store was started.
+   */
+  @Nonnegative
+  public long getEnqueuedCount ()
+  {
+    return m_aEnqueued.get ();
+  }
+
+  /**
+   * @return The number of messages handed out since this store was started.
+   *         This includes repeated deliveries.
+   */
+  @Nonnegative
+  public long getHandedOutCount ()
+  {
+    return m_aHandedOut.get ();
+  }
+
+  /**
+   * @return The number of leases that ran out without a receipt since this
+   *         store was started.
+   */
+  @Nonnegative
+  public long getRedeliveryCount ()
+  {
+    return m_aRedelivered.get ();
+  }
+
+  /**
+   * @return The number of messages acknowledged since this store was started.
+   */
+  @Nonnegative
+  public long getAcknowledgedCount ()
+  {
+    return m_aAcknowledged.get ();
+  }
+
+  /**
+   * @return The number of messages discarded because of their time to live
+   *         since this store was started.
+   */
+  @Nonnegative
+  public long getExpiredCount ()
+  {
+    return m_aExpired.get ();
+  }
+
+  @Nonnull
+  private File _getSegmentFile (final long nIndex)
+  {
+    return new File (m_aBaseDir, SEGMENT_PREFIX + StringHelper.getLeadingZero (nIndex, 10) + SEGMENT_SUFFIX);
+  }
+
+  @Nonnull
+  private static byte [] _createRecord (final byte nOp, @Nonnull @Nonempty final String sMessageID)
+  {
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+         final DataOutputStream aDOS = new DataOutputStream (aBAOS))
+    {
+      aDOS.writeByte (nOp);
+      aDOS.writeUTF (sMessageID);
+      aDOS.flush ();
+      return aBAOS.toByteArray ();
+    }
+    catch (final IOException ex)
+    {
+      throw new UncheckedIOException (ex);
+    }
+  }
+
+  /**
+   * Start the store: replay all segments and build the in-memory index.
+   *
+   * @throws IOException
+   *         If the segments cannot be read
+   */
+  public void start () throws IOException
+  {
+    m_aRWLock.writeLockedThrowing ( () -> {
+      if (m_aActiveSegment != null)
+        throw new IllegalStateException ("The store is already started");
+
+      if (FileOperations.createDirRecursiveIfNotExisting (m_aBaseDir).isFailure ())
+        throw new IOException ("Failed to create directory '" + m_aBaseDir.getAbsolutePath () + "'");
+
+      // Find all existing segments in order
+      final ICommonsSortedMap <Long, File> aSegmentFiles = new CommonsTreeMap <> ();
+      final File [] aFiles = m_aBaseDir.listFiles ();
+      if (aFiles != null)
+        for (final File aFile : aFiles)
+        {
+          final String sName = aFile.getName ();
+          if (aFile.isFile () && sName.startsWith (SEGMENT_PREFIX) && sName.endsWith (SEGMENT_SUFFIX))
+          {
+            final long nIndex = StringParser.parseLong (sName.substring (SEGMENT_PREFIX.length (),
+                                                                         sName.length () - SEGMENT_SUFFIX.length ()),
+                                                        -1);
+            if (nIndex >= 0)
+              aSegmentFiles.put (Long.valueOf (nIndex), aFile);
+          }
+        }
+
+      // Replay in order - the ordered map keeps the enqueue order
+      final ICommonsOrderedMap <String, IndexEntry> aOpenEntries = new CommonsLinkedHashMap <> ();
+      try
+      {
+        for (final Map.Entry <Long, File> aEntry : aSegmentFiles.entrySet ())
+        {
+          final AS4RecordSegment aSegment = new AS4RecordSegment (aEntry.getKey ().longValue (),
+                                                                  aEntry.getValue ());
+          final MutableInt aOpenCount = new MutableInt (0);
+          m_aSegments.put (aEntry.getKey (), aSegment);
+          m_aSegmentOpenCounts.put (aEntry.getKey (), aOpenCount);
+          aSegment.open ( (nOffset, nLength, aPayloadIS) -> {
+            // Only the record header is read - the stream is not closed
+            final DataInputStream aDIS = new DataInputStream (aPayloadIS);
+            switch (aDIS.readByte ())
+            {
+              case AS4MPCMessageStoreEntry.OP_ENQUEUED:
+              {
+                final String [] aHeader = AS4MPCMessageStoreEntry.readRecordHeader (aDIS);
+                final long nExpirationMillis = aDIS.readLong ();
+                if (!aOpenEntries.containsKey (aHeader[0]))
+                {
+                  aOpenEntries.put (aHeader[0],
+                                    new IndexEntry (aHeader[0], aHeader[1], aSegment, nOffset, nLength, nExpirationMillis));
+                  aOpenCount.inc ();
+                }
+                break;
+              }
+              case OP_ACKNOWLEDGED:
+              case OP_EXPIRED:
+              {
+                final IndexEntry aIndexEntry = aOpenEntries.remove (aDIS.readUTF ());
+                if (aIndexEntry != null)
+                  m_aSegmentOpenCounts.get (Long.valueOf (aIndexEntry.m_aSegment.getIndex ())).dec ();
+                break;
+              }
+              default:
+                LOGGER.warn ("Ignoring unknown MPC message store record in segment '" +
+                             aSegment.getFile ().getAbsolutePath () +
+                             "'");
+                break;
+            }
+          });
+        }
+
+        // Continue writing in the last segment if possible
+        final Long aLastIndex = m_aSegmentOpenCounts.getLastKey ();
+        final AS4RecordSegment aLastSegment = aLastIndex == null ? null : m_aSegments.get (aLastIndex);
+        if (aLastSegment != null && aLastSegment.getSize () < m_nMaxSegmentSize)
+          m_aActiveSegment = aLastSegment;
+        else
+          m_aActiveSegment = _createSegment (aLastSegment == null ? 0 : aLastSegment.getIndex () + 1);
+      }
+      catch (final IOException | RuntimeException ex)
+      {
+        _closeAllSegments ();
+        throw ex;
+      }
+
+      for (final IndexEntry aIndexEntry : aOpenEntries.values ())
+      {
+        m_aEntries.put (aIndexEntry.m_sMessageID, aIndexEntry);
+        m_aMPCs.computeIfAbsent (aIndexEntry.m_sMPCID, k -> new MPCIndex ()).m_aReady.addLast (aIndexEntry);
+      }
+      _deleteUnusedSegments ();
+
+      LOGGER.info ("Started MPC message store in '" +
+                   m_aBaseDir.getAbsolutePath () +
+                   "' with " +
+                   m_aEntries.size () +
+                   " open messages in " +
+                   m_aMPCs.size () +
+                   " MPCs");
+    });
+  }
+
+  @GuardedBy ("m_aRWLock")
+  @Nonnull
+  private AS4RecordSegment _createSegment (final long nIndex) throws IOException
+  {
+    final AS4RecordSegment ret = new AS4RecordSegment (nIndex, _getSegmentFile (nIndex));
+    ret.open ( (nOffset, nLength, aPayloadIS) -> {
+      // A new segment has no records
+    });
+    m_aSegments.put (Long.valueOf (nIndex), ret);
+    m_aSegmentOpenCounts.put (Long.valueOf (nIndex), new MutableInt (0));
+    return ret;
+  }
+
+  @GuardedBy ("m_aRWLock")
+  private void _closeAllSegments ()
+  {
+    for (final AS4RecordSegment aSegment : m_aSegments.values ())
+      try
+      {
+        aSegment.close ();
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.error ("Failed to close MPC message store segment '" + aSegment.getFile ().getAbsolutePath () + "'", ex);
+      }
+    m_aSegments.clear ();
+    m_aSegmentOpenCounts.clear ();
+    m_aActiveSegment = null;
+  }
+
+  /**
+   * Delete all leading segments that contain no open message anymore. Only a
+   * prefix is deleted, so that acknowledgements stored in newer segments are
+   * never lost while the messages they refer to are still in an older one.
+   * Segments that are currently read from are kept until the read finished.
+   */
+  @GuardedBy ("m_aRWLock")
+  private void _deleteUnusedSegments ()
+  {
+    final Iterator <Map.Entry <Long, MutableInt>> it = m_aSegmentOpenCounts.entrySet ().iterator ();
+    while (it.hasNext ())
+    {
+      final Map.Entry <Long, MutableInt> aEntry = it.next ();
+      final AS4RecordSegment aSegment = m_aSegments.get (aEntry.getKey ());
+      if (aSegment == m_aActiveSegment ||
+          aEntry.getValue ().intValue () > 0 ||
+          m_aSegmentReaders.containsKey (aEntry.getKey ()))
+        break;
+
+      try
+      {
+        aSegment.delete ();
+        if (LOGGER.isDebugEnabled ())
+          LOGGER.debug ("Deleted MPC message store segment '" + aSegment.getFile ().getAbsolutePath () + "'");
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.error ("Failed to delete MPC message store segment '" + aSegment.getFile ().getAbsolutePath () + "'",
+                      ex);
+      }
+      it.remove ();
+      m_aSegments.remove (aEntry.getKey ());
+    }
+  }
+
+  @GuardedBy ("m_aRWLock")
+  private void _pinSegment (@Nonnull final AS4RecordSegment aSegment)
+  {
+    m_aSegmentReaders.computeIfAbsent (Long.valueOf (aSegment.getIndex ()), k -> new MutableInt (0)).inc ();
+  }
+
+  @GuardedBy ("m_aRWLock")
+  private void _unpinSegment (@Nonnull final AS4RecordSegment aSegment)
+  {
+    final Long aKey = Long.valueOf (aSegment.getIndex ());
+    final MutableInt aReaders = m_aSegmentReaders.get (aKey);
+    if (aReaders != null && aReaders.dec () <= 0)
+    {
+      m_aSegmentReaders.remove (aKey);
+      // Messages may have been acknowledged during the read
+      if (m_aActiveSegment != null)
+        _deleteUnusedSegments ();
+    }
+  }
+
+  @GuardedBy ("m_aRWLock")
+  private void _checkStarted ()
+  {
+    if (m_aActiveSegment == null)
+      throw new IllegalStateException ("The store was not started");
+  }
+
+  @GuardedBy ("m_aRWLock")
+  @Nonnull
+  private AS4RecordSegment _getWritableSegment () throws IOException
+  {
+    if (m_aActiveSegment.getSize () >= m_nMaxSegmentSize)
+    {
+      m_aActiveSegment = _createSegment (m_aActiveSegment.getIndex () + 1);
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Started new MPC message store segment '" + m_aActiveSegment.getFile ().getAbsolutePath () + "'");
+    }
+    return m_aActiveSegment;
+  }
+
+  /**
+   * Remove an entry from the index and record the removal.
+   */
+  @GuardedBy ("m_aRWLock")
+  private void _remove (@Nonnull final IndexEntry aIndexEntry, final byte nOp)
+  {
+    m_aEntries.remove (aIndexEntry.m_sMessageID);
+    final MPCIndex aMPCIndex = m_aMPCs.get (aIndexEntry.m_sMPCID);
+    if (aMPCIndex != null)
+    {
+      if (aMPCIndex.m_aLeaseEnd.remove (aIndexEntry.m_sMessageID) == null)
+        aMPCIndex.m_aReady.remove (aIndexEntry);
+      if (aMPCIndex.isEmpty ())
+        m_aMPCs.remove (aIndexEntry.m_sMPCID);
+    }
+
+    try
+    {
+      // No need to sync - in the worst case the message is handed out again
+      _getWritableSegment ().append (_createRecord (nOp, aIndexEntry.m_sMessageID), false);
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.error ("Failed to record the removal of message '" +
+                    aIndexEntry.m_sMessageID +
+                    "' in the MPC message store",
+                    ex);
+    }
+
+    final MutableInt aOpenCount = m_aSegmentOpenCounts.get (Long.valueOf (aIndexEntry.m_aSegment.getIndex ()));
+    if (aOpenCount != null)
+      aOpenCount.dec ();
+    _deleteUnusedSegments ();
+  }
+
+  /**
+   * Store a new user message for the provided MPC using the default time to
+   * live.
+   *
+   * @param sMPCID
+   *        The ID of the MPC from which the message should be pulled. May
+   *        neither be <code>null</code> nor empty.
+   * @param aUserMessage
+   *        The user message to be returned to the pulling partner. Must
+   *        contain a message ID. May not be <code>null</code>.
+   * @param aAttachments
+   *        The attachments belonging to the user message. May be
+   *        <code>null</code>.
+   * @throws IOException
+   *         If the message could not be persisted
+   * @see #getTimeToLive()
+   */
+  public void enqueue (@Nonnull @Nonempty final String sMPCID,
+                       @Nonnull final Ebms3UserMessage aUserMessage,
+                       @Nullable final ICommonsList <WSS4JAttachment> aAttachments) throws IOException
+  {
+    enqueue (sMPCID, aUserMessage, aAttachments, getTimeToLive ());
+  }
+
+  /**
+   * Store a new user message for the provided MPC. When this method returns
+   * normally, the message is persisted and can be pulled.
+   *
+   * @param sMPCID
+   *        The ID of the MPC from which the message should be pulled. May
+   *        neither be <code>null</code> nor empty.
+   * @param aUserMessage
+   *        The user message to be returned to the pulling partner. Must
+   *        contain a message ID. May not be <code>null</code>.
+   * @param aAttachments
+   *        The attachments belonging to the user message. May be
+   *        <code>null</code>.
+   * @param aTimeToLive
+   *        The time after which the message is discarded, if it was not
+   *        acknowledged. May not be <code>null</code> and must be positive.
+   * @throws IOException
+   *         If the message could not be persisted
+   */
+  public void enqueue (@Nonnull @Nonempty final String sMPCID,
+                       @Nonnull final Ebms3UserMessage aUserMessage,
+                       @Nullable final ICommonsList <WSS4JAttachment> aAttachments,
+                       @Nonnull final Duration aTimeToLive) throws IOException
+  {
+    ValueEnforcer.notEmpty (sMPCID, "MPCID");
+    ValueEnforcer.notNull (aUserMessage, "UserMessage");
+    ValueEnforcer.notNull (aUserMessage.getMessageInfo (), "UserMessage.MessageInfo");
+    ValueEnforcer.notNull (aTimeToLive, "TimeToLive");
+    ValueEnforcer.isFalse (aTimeToLive.isNegative () || aTimeToLive.isZero (), "TimeToLive must be positive");
+
+    final String sMessageID = aUserMessage.getMessageInfo ().getMessageId ();
+    ValueEnforcer.notEmpty (sMessageID, "UserMessage.MessageInfo.MessageId");
+
+    // Serialize outside of the lock
+    final long nExpirationMillis = System.currentTimeMillis () + aTimeToLive.toMillis ();
+    final byte [] aRecord = AS4MPCMessageStoreEntry.createRecord (sMessageID,
+                                                                  sMPCID,
+                                                                  nExpirationMillis,
+                                                                  aUserMessage,
+                                                                  aAttachments);
+
+    m_aRWLock.writeLockedThrowing ( () -> {
+      _checkStarted ();
+      if (m_aEntries.containsKey (sMessageID))
+        throw new IllegalArgumentException ("The MPC message store already contains a message with ID '" +
+                                            sMessageID +
+                                            "'");
+
+      final AS4RecordSegment aSegment = _getWritableSegment ();
+      final long nOffset = aSegment.append (aRecord, m_bSyncOnWrite);
+      final IndexEntry aIndexEntry = new IndexEntry (sMessageID,
+                                                     sMPCID,
+                                                     aSegment,
+                                                     nOffset,
+                                                     aRecord.length,
+                                                     nExpirationMillis);
+      m_aEntries.put (sMessageID, aIndexEntry);
+      m_aMPCs.computeIfAbsent (sMPCID, k -> new MPCIndex ()).m_aReady.addLast (aIndexEntry);
+      m_aSegmentOpenCounts.get (Long.valueOf (aSegment.getIndex ())).inc ();
+    });
+
+    m_aEnqueued.incrementAndGet ();
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Stored AS4 message '" + sMessageID + "' for MPC '" + sMPCID + "'");
+  }
+
+  /**
+   * Put all messages of the provided MPC, whose lease ended, back at the front
+   * of the queue.
+   */
+  @GuardedBy ("m_aRWLock")
+  private void _returnExpiredLeases (@Nonnull final MPCIndex aMPCIndex, final long nNowMillis)
+  {
+    final ICommonsList <IndexEntry> aReturned = new CommonsArrayList <> ();
+    final Iterator <Map.Entry <String, Long>> it = aMPCIndex.m_aLeaseEnd.entrySet ().iterator ();
+    while (it.hasNext ())
+    {
+      final Map.Entry <String, Long> aEntry = it.next ();
+      // Leases are ordered by their start
+      if (aEntry.getValue ().longValue () > nNowMillis)
+        break;
+      it.remove ();
+      aReturned.add (m_aEntries.get (aEntry.getKey ()));
+    }
+
+    // Keep the original order
+    for (int i = aReturned.size () - 1; i >= 0; --i)
+      aMPCIndex.m_aReady.addFirst (aReturned.get (i));
+    m_aRedelivered.addAndGet (aReturned.size ());
+  }
+
+  /**
+   * Hand out the oldest message of the provided MPC. The message stays in the
+   * store until it is acknowledged, but is not handed out again until the
+   * lease duration is over.
+   *
+   * @param sMPCID
+   *        The ID of the MPC to pull from. May be <code>null</code>.
+   * @return <code>null</code> if the MPC contains no message that can be
+   *         handed out.
+   * @throws IOException
+   *         If the message could not be read
+   */
+  @Nullable
+  public AS4MPCMessageStoreEntry lease (@Nullable final String sMPCID) throws IOException
+  {
+    final long nNowMillis = System.currentTimeMillis ();
+    final IndexEntry aIndexEntry = m_aRWLock.writeLockedGet ( () -> {
+      _checkStarted ();
+      final MPCIndex aMPCIndex = m_aMPCs.get (sMPCID);
+      if (aMPCIndex == null)
+        return null;
+
+      _returnExpiredLeases (aMPCIndex, nNowMillis);
+
+      IndexEntry ret;
+      while ((ret = aMPCIndex.m_aReady.pollFirst ()) != null)
+      {
+        if (ret.m_nExpirationMillis > nNowMillis)
+        {
+          aMPCIndex.m_aLeaseEnd.put (ret.m_sMessageID, Long.valueOf (nNowMillis + m_aLeaseDuration.toMillis ()));
+          // Keep the segment until the record was read
+          _pinSegment (ret.m_aSegment);
+          return ret;
+        }
+
+        LOGGER.warn ("Discarding AS4 message '" + ret.m_sMessageID + "' of MPC '" + sMPCID + "' - it expired");
+        _remove (ret, OP_EXPIRED);
+        m_aExpired.incrementAndGet ();
+      }
+      return null;
+    });
+    if (aIndexEntry == null)
+      return null;
+
+    // Read outside of the lock - the pinned segment is not deleted in the
+    // meantime, even if the message is acknowledged concurrently. The own
+    // file channel is not affected by closing the store.
+    final AS4MPCMessageStoreEntry ret;
+    try (final InputStream aIS = AS4RecordSegment.openRecordStream (aIndexEntry.m_aSegment.getFile (),
+                                                                    aIndexEntry.m_nOffset,
+                                                                    aIndexEntry.m_nLength))
+    {
+      ret = AS4MPCMessageStoreEntry.readRecord (aIS);
+    }
+    finally
+    {
+      m_aRWLock.writeLocked ( () -> _unpinSegment (aIndexEntry.m_aSegment));
+    }
+    m_aHandedOut.incrementAndGet ();
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Handing out AS4 message '" + ret.getMessageID () + "' of MPC '" + sMPCID + "'");
+    return ret;
+  }
+
+  /**
+   * Remove the message with the provided ID from the store, because its
+   * receipt was received.
+   *
+   * @param sMessageID
+   *        The ID of the user message that was acknowledged. May be
+   *        <code>null</code>.
+   * @return {@link EChange#CHANGED} if the message was contained in the store.
+   */
+  @Nonnull
+  public EChange acknowledge (@Nullable final String sMessageID)
+  {
+    if (StringHelper.hasNoText (sMessageID))
+      return EChange.UNCHANGED;
+
+    final EChange ret = m_aRWLock.writeLockedGet ( () -> {
+      if (m_aActiveSegment == null)
+        return EChange.UNCHANGED;
+      final IndexEntry aIndexEntry = m_aEntries.get (sMessageID);
+      if (aIndexEntry == null)
+        return EChange.UNCHANGED;
+      _remove (aIndexEntry, OP_ACKNOWLEDGED);
+      return EChange.CHANGED;
+    });
+    if (ret.isChanged ())
+    {
+      m_aAcknowledged.incrementAndGet ();
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Acknowledged AS4 message '" + sMessageID + "' in the MPC message store");
+    }
+    return ret;
+  }
+
+  /**
+   * Discard all messages, that are not leased and whose time to live is over.
+   * Expired messages are also discarded lazily in {@link #lease(String)}, so
+   * calling this method regularly is only needed to free disk space of MPCs
+   * that are not pulled.
+   *
+   * @return The number of discarded messages.
+   */
+  @Nonnegative
+  public int removeExpired ()
+  {
+    final long nNowMillis = System.currentTimeMillis ();
+    final int ret = m_aRWLock.writeLockedInt ( () -> {
+      if (m_aActiveSegment == null)
+        return 0;
+      final ICommonsList <IndexEntry> aExpired = new CommonsArrayList <> ();
+      for (final MPCIndex aMPCIndex : m_aMPCs.values ())
+        for (final IndexEntry aIndexEntry : aMPCIndex.m_aReady)
+          if (aIndexEntry.m_nExpirationMillis <= nNowMillis)
+            aExpired.add (aIndexEntry);
+      for (final IndexEntry aIndexEntry : aExpired)
+        _remove (aIndexEntry, OP_EXPIRED);
+      return aExpired.size ();
+    });
+    if (ret > 0)
+    {
+      m_aExpired.addAndGet (ret);
+      LOGGER.info ("Discarded " + ret + " expired AS4 messages from the MPC message store");
+    }
+    return ret;
+  }
+
+  /**
+   * Close all segments. All open messages can be pulled again after the next
+   * {@link #start()}.
+   */
+  public void close ()
+  {
+    m_aRWLock.writeLocked ( () -> {
+      _closeAllSegments ();
+      m_aEntries.clear ();
+      m_aMPCs.clear ();
+    });
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("BaseDir", m_aBaseDir)
+                                       .append ("LeaseDuration", m_aLeaseDuration)
+                                       .append ("TimeToLive", m_aTimeToLive)
+                                       .append ("MaxSegmentSize", m_nMaxSegmentSize)
+                                       .append ("SyncOnWrite", m_bSyncOnWrite)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.servlet.pull;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.time.OffsetDateTime;
+import java.util.Map;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.WillNotClose;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.charset.CharsetHelper;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsLinkedHashMap;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsOrderedMap;
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.commons.io.stream.HasInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.phase4.attachment.EAS4CompressionMode;
+import com.helger.phase4.attachment.WSS4JAttachment;
+import com.helger.phase4.ebms3header.Ebms3Messaging;
+import com.helger.phase4.ebms3header.Ebms3UserMessage;
+import com.helger.phase4.marshaller.Ebms3MessagingMarshaller;
+import com.helger.phase4.util.AS4ResourceHelper;
+
+/**
+ * A single user message stored in the {@link AS4MPCMessageStore}, as handed
+ * out to a pulling partner. It contains the user message itself and the
+ * attachments exactly as they should be transmitted (e.g. already compressed).
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@Immutable
+public final class AS4MPCMessageStoreEntry
+{
+  static final byte OP_ENQUEUED = 'E';
+
+  /**
+   * The persisted data of a single attachment.
+   *
+   * @author Philip Helger
+   */
+  private static final class AttachmentData
+  {
+    private final String m_sID;
+    private final String m_sMimeType;
+    private final EAS4CompressionMode m_eCompressionMode;
+    private final Charset m_aCharset;
+    private final ICommonsOrderedMap <String, String> m_aHeaders;
+    private final byte [] m_aData;
+
+    AttachmentData (@Nullable final String sID,
+                    @Nullable final String sMimeType,
+                    @Nullable final EAS4CompressionMode eCompressionMode,
+                    @Nullable final Charset aCharset,
+                    @Nonnull final ICommonsOrderedMap <String, String> aHeaders,
+                    @Nonnull final byte [] aData)
+    {
+      m_sID = sID;
+      m_sMimeType = sMimeType;
+      m_eCompressionMode = eCompressionMode;
+      m_aCharset = aCharset;
+      m_aHeaders = aHeaders;
+      m_aData = aData;
+    }
+  }
+
+  private final String m_sMessageID;
+  private final String m_sMPCID;
+  private final OffsetDateTime m_aExpirationDT;
+  private final Ebms3UserMessage m_aUserMessage;
+  private final ICommonsList <AttachmentData> m_aAttachments;
+
+  private AS4MPCMessageStoreEntry (@Nonnull @Nonempty final String sMessageID,
+                                   @Nonnull @Nonempty final String sMPCID,
+                                   @Nonnull final OffsetDateTime aExpirationDT,
+                                   @Nonnull final Ebms3UserMessage aUserMessage,
+                                   @Nonnull final ICommonsList <AttachmentData> aAttachments)
+  {
+    m_sMessageID = sMessageID;
+    m_sMPCID = sMPCID;
+    m_aExpirationDT = aExpirationDT;
+    m_aUserMessage = aUserMessage;
+    m_aAttachments = aAttachments;
+  }
+
+  /**
+   * @return The ID of the stored user message. Neither <code>null</code> nor
+   *         empty.
+   */
+  @Nonnull
+  @Nonempty
+  public String getMessageID ()
+  {
+    return m_sMessageID;
+  }
+
+  /**
+   * @return The ID of the MPC the message is stored in. Neither
+   *         <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  public String getMPCID ()
+  {
+    return m_sMPCID;
+  }
+
+  /**
+   * @return The date and time after which the message is no longer handed out.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  public OffsetDateTime getExpirationDateTime ()
+  {
+    return m_aExpirationDT;
+  }
+
+  /**
+   * @return The stored user message. Never <code>null</code>. Each call
+   *         returns a new object.
+   */
+  @Nonnull
+  public Ebms3UserMessage getUserMessage ()
+  {
+    return m_aUserMessage.clone ();
+  }
+
+  /**
+   * @return The number of stored attachments.
+   */
+  @Nonnegative
+  public int getAttachmentCount ()
+  {
+    return m_aAttachments.size ();
+  }
+
+  /**
+   * Create the attachments to be sent together with the user message.
+   *
+   * @param aResHelper
+   *        The resource helper to be used for the attachments. May not be
+   *        <code>null</code>.
+   * @return A new list with new attachments objects. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <WSS4JAttachment> getAllAttachments (@Nonnull @WillNotClose final AS4ResourceHelper aResHelper)
+  {
+    ValueEnforcer.notNull (aResHelper, "ResHelper");
+
+    final ICommonsList <WSS4JAttachment> ret = new CommonsArrayList <> (m_aAttachments.size ());
+    for (final AttachmentData aData : m_aAttachments)
+    {
+      final WSS4JAttachment aAttachment = new WSS4JAttachment (aResHelper, aData.m_sMimeType);
+      aAttachment.setId (aData.m_sID);
+      for (final Map.Entry <String, String> aEntry : aData.m_aHeaders.entrySet ())
+        aAttachment.addHeader (aEntry.getKey (), aEntry.getValue ());
+      aAttachment.setCharset (aData.m_aCharset);
+      aAttachment.setSourceStreamProvider (HasInputStream.multiple ( () -> new NonBlockingByteArrayInputStream (aData.m_aData)));
+      if (aData.m_eCompressionMode != null)
+        aAttachment.setCompressionMode (aData.m_eCompressionMode);
+      ret.add (aAttachment);
+    }
+    return ret;
+  }
+
+  private static void _writeString (@Nonnull final DataOutputStream aDOS, @Nullable final String s) throws IOException
+  {
+    aDOS.writeUTF (StringHelper.getNotNull (s));
+  }
+
+  @Nullable
+  private static String _readString (@Nonnull final DataInputStream aDIS) throws IOException
+  {
+    return StringHelper.getNotEmpty (aDIS.readUTF (), (String) null);
+  }
+
+  private static void _writeBytes (@Nonnull final DataOutputStream aDOS, @Nonnull final byte [] aBytes) throws IOException
+  {
+    aDOS.writeInt (aBytes.length);
+    aDOS.write (aBytes);
+  }
+
+  @Nonnull
+  private static byte [] _readBytes (@Nonnull final DataInputStream aDIS) throws IOException
+  {
+    final int nLength = aDIS.readInt ();
+    if (nLength < 0)
+      throw new IOException ("Invalid length " + nLength);
+    final byte [] ret = new byte [nLength];
+    aDIS.readFully (ret);
+    return ret;
+  }
+
+  /**
+   * Create the journal record for a new entry.
+   *
+   * @param sMessageID
+   *        The message ID. May neither be <code>null</code> nor empty.
+   * @param sMPCID
+   *        The MPC ID. May neither be <code>null</code> nor empty.
+   * @param nExpirationMillis
+   *        The expiration time in milliseconds since the epoch.
+   * @param aUserMessage
+   *        The user message to store. May not be <code>null</code>.
+   * @param aAttachments
+   *        The attachments to store. May be <code>null</code>.
+   * @return The record payload. Never <code>null</code>.
+   * @throws IOException
+   *         In case the message or an attachment cannot be serialized
+   */
+  @Nonnull
+  static byte [] createRecord (@Nonnull @Nonempty final String sMessageID,
+                               @Nonnull @Nonempty final String sMPCID,
+                               final long nExpirationMillis,
+                               @Nonnull final Ebms3UserMessage aUserMessage,
+                               @Nullable final ICommonsList <WSS4JAttachment> aAttachments) throws IOException
+  {
+    final Ebms3Messaging aMessaging = new Ebms3Messaging ();
+    aMessaging.addUserMessage (aUserMessage);
+    final byte [] aMessagingBytes = new Ebms3MessagingMarshaller ().getAsBytes (aMessaging);
+    if (aMessagingBytes == null)
+      throw new IOException ("Failed to serialize the user message '" + sMessageID + "'");
+
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+         final DataOutputStream aDOS = new DataOutputStream (aBAOS))
+    {
+      aDOS.writeByte (OP_ENQUEUED);
+      aDOS.writeUTF (sMessageID);
+      aDOS.writeUTF (sMPCID);
+      aDOS.writeLong (nExpirationMillis);
+      _writeBytes (aDOS, aMessagingBytes);
+      aDOS.writeInt (aAttachments == null ? 0 : aAttachments.size ());
+      if (aAttachments != null)
+        for (final WSS4JAttachment aAttachment : aAttachments)
+        {
+          _writeString (aDOS, aAttachment.getId ());
+          _writeString (aDOS, aAttachment.getUncompressedMimeType ());
+          _writeString (aDOS, aAttachment.getCompressionMode () == null ? null : aAttachment.getCompressionMode ().getID ());
+          _writeString (aDOS, aAttachment.hasCharset () ? aAttachment.getCharsetOrDefault (null).name () : null);
+          final Map <String, String> aHeaders = aAttachment.getHeaders ();
+          aDOS.writeInt (aHeaders == null ? 0 : aHeaders.size ());
+          if (aHeaders != null)
+            for (final Map.Entry <String, String> aEntry : aHeaders.entrySet ())
+            {
+              _writeString (aDOS, aEntry.getKey ());
+              _writeString (aDOS, aEntry.getValue ());
+            }
+          try (final InputStream aIS = aAttachment.getSourceStream ())
+          {
+            _writeBytes (aDOS, StreamHelper.getAllBytes (aIS));
+          }
+        }
+      aDOS.flush ();
+      return aBAOS.toByteArray ();
+    }
+  }
+
+  /**
+   * Read the header of an entry record.
+   *
+   * @param aDIS
+   *        The input stream positioned directly after the operation byte. May
+   *        not be <code>null</code>.
+   * @return An array with the message ID and the MPC ID. Never
+   *         <code>null</code>.
+   * @throws IOException
+   *         In case of a read error
+   */
+  @Nonnull
+  static String [] readRecordHeader (@Nonnull final DataInputStream aDIS) throws IOException
+  {
+    return new String [] { aDIS.readUTF (), aDIS.readUTF () };
+  }
+
+  /**
+   * Restore an entry from the provided record.
+   *
+   * @param aRecordIS
+   *        The stream with the record payload as created by
+   *        {@link #createRecord(String, String, long, Ebms3UserMessage, ICommonsList)}.
+   *        May not be <code>null</code>. The stream is not closed.
+   * @return The restored entry. Never <code>null</code>.
+   * @throws IOException
+   *         In case the record is not valid
+   */
+  @Nonnull
+  static AS4MPCMessageStoreEntry readRecord (@Nonnull @WillNotClose final InputStream aRecordIS) throws IOException
+  {
+    ValueEnforcer.notNull (aRecordIS, "RecordIS");
+    final DataInputStream aDIS = new DataInputStream (aRecordIS);
+    if (aDIS.readByte () != OP_ENQUEUED)
+      throw new IOException ("The record is not an MPC message store entry");
+    final String [] aHeader = readRecordHeader (aDIS);
+    final String sMessageID = aHeader[0];
+    final OffsetDateTime aExpirationDT = PDTFactory.createOffsetDateTime (aDIS.readLong ());
+    final Ebms3Messaging aMessaging = new Ebms3MessagingMarshaller ().read (_readBytes (aDIS));
+    if (aMessaging == null || !aMessaging.hasUserMessageEntries ())
+      throw new IOException ("MPC message store entry '" + sMessageID + "' has no valid user message");
+
+    final int nAttachmentCount = aDIS.readInt ();
+    final ICommonsList <AttachmentData> aAttachments = new CommonsArrayList <> (nAttachmentCount);
+    for (int i = 0; i < nAttachmentCount; ++i)
+    {
+      final String sID = _readString (aDIS);
+      final String sMimeType = _readString (aDIS);
+      final EAS4CompressionMode eCompressionMode = EAS4CompressionMode.getFromIDOrNull (_readString (aDIS));
+      final Charset aCharset = CharsetHelper.getCharsetFromNameOrNull (_readString (aDIS));
+      final int nHeaderCount = aDIS.readInt ();
+      final ICommonsOrderedMap <String, String> aHeaders = new CommonsLinkedHashMap <> ();
+      for (int j = 0; j < nHeaderCount; ++j)
+        aHeaders.put (aDIS.readUTF (), aDIS.readUTF ());
+      aAttachments.add (new AttachmentData (sID, sMimeType, eCompressionMode, aCharset, aHeaders, _readBytes (aDIS)));
+    }
+    return new AS4MPCMessageStoreEntry (sMessageID,
+                                        aHeader[1],
+                                        aExpirationDT,
+                                        aMessaging.getUserMessageAtIndex (0),
+                                        aAttachments);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("MessageID", m_sMessageID)
+                                       .append ("MPCID", m_sMPCID)
+                                       .append ("ExpirationDT", m_aExpirationDT)
+                                       .append ("Attachments", m_aAttachments.size ())
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,771 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.servlet.queue;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsLinkedHashMap;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsOrderedMap;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.file.FileOperations;
+import com.helger.commons.state.ESuccess;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.phase4.attachment.WSS4JAttachment;
+import com.helger.phase4.ebms3header.Ebms3Error;
+import com.helger.phase4.messaging.IAS4IncomingMessageMetadata;
+import com.helger.phase4.servlet.IAS4MessageState;
+import com.helger.phase4.servlet.mgr.AS4ServletMessageProcessorManager;
+import com.helger.phase4.servlet.spi.AS4MessageProcessorResult;
+import com.helger.phase4.servlet.spi.IAS4ServletMessageProcessorSPI;
+import com.helger.phase4.tracing.AS4TracingManager;
+import com.helger.phase4.tracing.EAS4SpanKind;
+import com.helger.phase4.tracing.IAS4Span;
+import com.helger.phase4.util.AS4ResourceHelper;
+
+/**
+ * A durable inbound work queue that decouples the reception of AS4 user
+ * messages from their processing. After the security verification and the
+ * duplicate check, the incoming message is persisted in the base directory and
+ * recorded in an append-only {@link AS4InboundQueueJournal}. The receipt can
+ * then be returned immediately, while a configurable pool of workers invokes
+ * the {@link IAS4ServletMessageProcessorSPI} implementations. Failed deliveries
+ * are retried with an increasing delay up to a maximum number of attempts.
+ * Afterwards the entry is moved to the dead letter directory. Open entries are
+ * redelivered after a restart.<br>
+ * Layout of the base directory:
+ * <ul>
+ * <li><code>journal.log</code> - the journal</li>
+ * <li><code>entries/&lt;id&gt;/</code> - the open entries</li>
+ * <li><code>dead/&lt;id&gt;/</code> - the entries that finally failed</li>
+ * </ul>
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@ThreadSafe
+public class AS4InboundQueue implements AutoCloseable
+{
+  public static final int DEFAULT_WORKER_COUNT = 4;
+  public static final int DEFAULT_MAX_ATTEMPTS = 5;
+  public static final Duration DEFAULT_REDELIVERY_DELAY = Duration.ofSeconds (30);
+  public static final boolean DEFAULT_SYNC_ON_WRITE = true;
+  /** The number of journal lines after which the journal is compacted */
+  public static final long COMPACT_THRESHOLD = 10_000;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4InboundQueue.class);
+  private static final String FILENAME_JOURNAL = "journal.log";
+  private static final String DIRNAME_ENTRIES = "entries";
+  private static final String DIRNAME_DEAD = "dead";
+  private static final String TEMP_DIR_SUFFIX = ".tmp";
+
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  private final File m_aBaseDir;
+  private final File m_aEntriesDir;
+  private final File m_aDeadDir;
+
+  @GuardedBy ("m_aRWLock")
+  private int m_nWorkerCount = DEFAULT_WORKER_COUNT;
+  @GuardedBy ("m_aRWLock")
+  private int m_nMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+  @GuardedBy ("m_aRWLock")
+  private Duration m_aRedeliveryDelay = DEFAULT_REDELIVERY_DELAY;
+  @GuardedBy ("m_aRWLock")
+  private boolean m_bSyncOnWrite = DEFAULT_SYNC_ON_WRITE;
+  @GuardedBy ("m_aRWLock")
+  private Supplier <? extends ICommonsList <IAS4ServletMessageProcessorSPI>> m_aProcessorSupplier = AS4ServletMessageProcessorManager::getAllProcessors;
+  @GuardedBy ("m_aRWLock")
+  private Locale m_aLocale = Locale.US;
+
+  @GuardedBy ("m_aRWLock")
+  private AS4InboundQueueJournal m_aJournal;
+  @GuardedBy ("m_aRWLock")
+  private ScheduledThreadPoolExecutor m_aExecutor;
+  // Entry ID to number of failed attempts
+  @GuardedBy ("m_aRWLock")
+  private final ICommonsOrderedMap <String, Integer> m_aOpenEntries = new CommonsLinkedHashMap <> ();
+
+  private final AtomicInteger m_aInFlight = new AtomicInteger (0);
+  private final AtomicLong m_aEnqueued = new AtomicLong (0);
+  private final AtomicLong m_aProcessed = new AtomicLong (0);
+  private final AtomicLong m_aRedelivered = new AtomicLong (0);
+  private final AtomicLong m_aDeadLettered = new AtomicLong (0);
+
+  /**
+   * Constructor
+   *
+   * @param aBaseDir
+   *        The base directory in which the journal and the entries are stored.
+   *        May not be <code>null</code>. Should not be shared with other
+   *        queues.
+   */
+  public AS4InboundQueue (@Nonnull final File aBaseDir)
+  {
+    ValueEnforcer.notNull (aBaseDir, "BaseDir");
+    m_aBaseDir = aBaseDir;
+    m_aEntriesDir = new File (aBaseDir, DIRNAME_ENTRIES);
+    m_aDeadDir = new File (aBaseDir, DIRNAME_DEAD);
+  }
+
+  /**
+   * @return The base directory as provided in the constructor. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final File getBaseDir ()
+  {
+    return m_aBaseDir;
+  }
+
+  /**
+   * @return The directory that contains the entries that finally failed. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final File getDeadLetterDir ()
+  {
+    return m_aDeadDir;
+  }
+
+  /**
+   * @return <code>true</code> if {@link #start()} was called and the queue was
+   *         not yet closed.
+   */
+  public boolean isStarted ()
+  {
+    return m_aRWLock.readLockedBoolean ( () -> m_aExecutor != null);
+  }
+
+  private void _checkNotStarted ()
+  {
+    if (m_aExecutor != null)
+      throw new IllegalStateException ("This setting cannot be changed after the queue was started");
+  }
+
+  @Nonnegative
+  public final int getWorkerCount ()
+  {
+    return m_aRWLock.readLockedInt ( () -> m_nWorkerCount);
+  }
+
+  /**
+   * Set the number of worker threads that invoke the SPIs. Can only be changed
+   * before the queue is started.
+   *
+   * @param nWorkerCount
+   *        The number of workers. Must be &gt; 0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4InboundQueue setWorkerCount (@Nonnegative final int nWorkerCount)
+  {
+    ValueEnforcer.isGT0 (nWorkerCount, "WorkerCount");
+    m_aRWLock.writeLocked ( () -> {
+      _checkNotStarted ();
+      m_nWorkerCount = nWorkerCount;
+    });
+    return this;
+  }
+
+  @Nonnegative
+  public final int getMaxAttempts ()
+  {
+    return m_aRWLock.readLockedInt ( () -> m_nMaxAttempts);
+  }
+
+  /**
+   * Set the maximum number of delivery attempts per entry. After that the entry
+   * is moved to the dead letter directory.
+   *
+   * @param nMaxAttempts
+   *        The maximum number of attempts. Must be &gt; 0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4InboundQueue setMaxAttempts (@Nonnegative final int nMaxAttempts)
+  {
+    ValueEnforcer.isGT0 (nMaxAttempts, "MaxAttempts");
+    m_aRWLock.writeLocked ( () -> m_nMaxAttempts = nMaxAttempts);
+    return this;
+  }
+
+  @Nonnull
+  public final Duration getRedeliveryDelay ()
+  {
+    return m_aRWLock.readLockedGet ( () -> m_aRedeliveryDelay);
+  }
+
+  /**
+   * Set the base redelivery delay. The effective delay is this value
+   * multiplied with the number of failed attempts.
+   *
+   * @param aRedeliveryDelay
+   *        The base delay. May not be <code>null</code> nor negative.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4InboundQueue setRedeliveryDelay (@Nonnull final Duration aRedeliveryDelay)
+  {
+    ValueEnforcer.notNull (aRedeliveryDelay, "RedeliveryDelay");
+    ValueEnforcer.isFalse (aRedeliveryDelay.isNegative (), "RedeliveryDelay may not be negative");
+    m_aRWLock.writeLocked ( () -> m_aRedeliveryDelay = aRedeliveryDelay);
+    return this;
+  }
+
+  public final boolean isSyncOnWrite ()
+  {
+    return m_aRWLock.readLockedBoolean ( () -> m_bSyncOnWrite);
+  }
+
+  /**
+   * Define whether each journal write and all files of a new entry should be
+   * forced to disk. Disabling this increases throughput, but messages may be
+   * lost if the operating system crashes. Can only be changed before the queue
+   * is started.
+   *
+   * @param bSyncOnWrite
+   *        <code>true</code> to force journal writes and entry files to disk.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4InboundQueue setSyncOnWrite (final boolean bSyncOnWrite)
+  {
+    m_aRWLock.writeLocked ( () -> {
+      _checkNotStarted ();
+      m_bSyncOnWrite = bSyncOnWrite;
+    });
+    return this;
+  }
+
+  @Nonnull
+  public final Supplier <? extends ICommonsList <IAS4ServletMessageProcessorSPI>> getProcessorSupplier ()
+  {
+    return m_aRWLock.readLockedGet ( () -> m_aProcessorSupplier);
+  }
+
+  /**
+   * Set the supplier for the SPIs to be invoked by the workers.
+   *
+   * @param aProcessorSupplier
+   *        The processor supplier to be used. May not be <code>null</code>.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4InboundQueue setProcessorSupplier (@Nonnull final Supplier <? extends ICommonsList <IAS4ServletMessageProcessorSPI>> aProcessorSupplier)
+  {
+    ValueEnforcer.notNull (aProcessorSupplier, "ProcessorSupplier");
+    m_aRWLock.writeLocked ( () -> m_aProcessorSupplier = aProcessorSupplier);
+    return this;
+  }
+
+  @Nonnull
+  public final Locale getLocale ()
+  {
+    return m_aRWLock.readLockedGet ( () -> m_aLocale);
+  }
+
+  /**
+   * Set the locale to be used for the restored message states.
+   *
+   * @param aLocale
+   *        The locale to use. May not be <code>null</code>.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final AS4InboundQueue setLocale (@Nonnull final Locale aLocale)
+  {
+    ValueEnforcer.notNull (aLocale, "Locale");
+    m_aRWLock.writeLocked ( () -> m_aLocale = aLocale);
+    return this;
+  }
+
+  /**
+   * @return The number of entries that are not yet processed successfully and
+   *         are not dead lettered. This includes the entries currently in
+   *         processing and the entries waiting for redelivery.
+   */
+  @Nonnegative
+  public int getQueueDepth ()
+  {
+    return m_aRWLock.readLockedInt (m_aOpenEntries::size);
+  }
+
+  /**
+   * @return The number of entries currently being processed by a worker.
+   */
+  @Nonnegative
+  public int getInFlightCount ()
+  {
+    return m_aInFlight.get ();
+  }
+
+  /**
+   * @return The number of entries enqueued since this queue was started.
+   */
+  @Nonnegative
+  public long getEnqueuedCount ()
+  {
+    return m_aEnqueued.get ();
+  }
+
+  /**
+   * @return The number of entries processed successfully since this queue was
+   *         started.
+   */
+  @Nonnegative
+  public long getProcessedCount ()
+  {
+    return m_aProcessed.get ();
+  }
+
+  /**
+   * @return The number of failed delivery attempts that were scheduled for
+   *         redelivery since this queue was started.
+   */
+  @Nonnegative
+  public long getRedeliveryCount ()
+  {
+    return m_aRedelivered.get ();
+  }
+
+  /**
+   * @return The number of entries that were moved to the dead letter directory
+   *         since this queue was started.
+   */
+  @Nonnegative
+  public long getDeadLetterCount ()
+  {
+    return m_aDeadLettered.get ();
+  }
+
+  /**
+   * Start the queue: replay the journal and schedule all open entries for
+   * processing.
+   *
+   * @throws IOException
+   *         If the journal cannot be opened
+   */
+  public void start () throws IOException
+  {
+    m_aRWLock.writeLockedThrowing ( () -> {
+      if (m_aExecutor != null)
+        throw new IllegalStateException ("The queue is already started");
+
+      if (FileOperations.createDirRecursiveIfNotExisting (m_aEntriesDir).isFailure ())
+        throw new IOException ("Failed to create directory '" + m_aEntriesDir.getAbsolutePath () + "'");
+      if (FileOperations.createDirRecursiveIfNotExisting (m_aDeadDir).isFailure ())
+        throw new IOException ("Failed to create directory '" + m_aDeadDir.getAbsolutePath () + "'");
+
+      final AS4InboundQueueJournal aJournal = new AS4InboundQueueJournal (new File (m_aBaseDir, FILENAME_JOURNAL),
+                                                                          m_bSyncOnWrite);
+      final ICommonsOrderedMap <String, Integer> aOpenEntries = aJournal.open ();
+
+      // Remove all entries that are not referenced from the journal (e.g.
+      // partially written ones)
+      final File [] aEntryDirs = m_aEntriesDir.listFiles ();
+      if (aEntryDirs != null)
+        for (final File aEntryDir : aEntryDirs)
+          if (!aOpenEntries.containsKey (aEntryDir.getName ()))
+          {
+            LOGGER.warn ("Deleting unreferenced inbound queue entry '" + aEntryDir.getAbsolutePath () + "'");
+            AS4InboundQueueEntry.delete (aEntryDir);
+          }
+
+      // Remove all journal entries without data
+      for (final String sEntryID : new CommonsArrayList <> (aOpenEntries.keySet ()))
+        if (!_getEntryDir (sEntryID).isDirectory ())
+        {
+          LOGGER.warn ("Inbound queue entry '" + sEntryID + "' has no data and is dropped");
+          aJournal.appendAcknowledged (sEntryID);
+          aOpenEntries.remove (sEntryID);
+        }
+      aJournal.sync ();
+
+      final ScheduledThreadPoolExecutor aExecutor = new ScheduledThreadPoolExecutor (m_nWorkerCount,
+                                                                                     new BasicThreadFactory.Builder ().namingPattern ("phase4-inbound-queue-%d")
+                                                                                                                      .daemon (true)
+                                                                                                                      .build ());
+      // Don't wait for pending redeliveries upon shutdown
+      aExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy (false);
+
+      m_aJournal = aJournal;
+      m_aExecutor = aExecutor;
+      m_aOpenEntries.putAll (aOpenEntries);
+      for (final String sEntryID : aOpenEntries.keySet ())
+        _schedule (sEntryID, 0);
+
+      LOGGER.info ("Started inbound queue in '" +
+                   m_aBaseDir.getAbsolutePath () +
+                   "' with " +
+                   m_nWorkerCount +
+                   " workers and " +
+                   aOpenEntries.size () +
+                   " open entries");
+    });
+  }
+
+  @Nonnull
+  private File _getEntryDir (@Nonnull @Nonempty final String sEntryID)
+  {
+    return new File (m_aEntriesDir, sEntryID);
+  }
+
+  @GuardedBy ("m_aRWLock")
+  private void _schedule (@Nonnull @Nonempty final String sEntryID, final long nDelayMillis)
+  {
+    // Executor is null if the queue is shutting down
+    if (m_aExecutor != null)
+      m_aExecutor.schedule ( () -> _process (sEntryID), nDelayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Persist the provided message and schedule it for processing. When this
+   * method returns normally, the message is durably stored and the receipt can
+   * be sent.
+   *
+   * @param aMessageMetadata
+   *        The incoming message metadata. May not be <code>null</code>.
+   * @param aHttpHeaders
+   *        The incoming HTTP headers. May not be <code>null</code>.
+   * @param aState
+   *        The message state after security verification. Must contain a user
+   *        message. May not be <code>null</code>.
+   * @return The ID of the created queue entry. Neither <code>null</code> nor
+   *         empty.
+   * @throws IOException
+   *         If the message could not be persisted
+   */
+  @Nonnull
+  @Nonempty
+  public String enqueue (@Nonnull final IAS4IncomingMessageMetadata aMessageMetadata,
+                         @Nonnull final HttpHeaderMap aHttpHeaders,
+                         @Nonnull final IAS4MessageState aState) throws IOException
+  {
+    ValueEnforcer.notNull (aMessageMetadata, "MessageMetadata");
+    ValueEnforcer.notNull (aHttpHeaders, "HttpHeaders");
+    ValueEnforcer.notNull (aState, "State");
+    if (!isStarted ())
+      throw new IllegalStateException ("The queue was not started");
+
+    final String sEntryID = UUID.randomUUID ().toString ();
+    final File aTempDir = new File (m_aEntriesDir, sEntryID + TEMP_DIR_SUFFIX);
+    final File aEntryDir = _getEntryDir (sEntryID);
+    try
+    {
+      // Write the data outside of the lock
+      if (FileOperations.createDir (aTempDir).isFailure ())
+        throw new IOException ("Failed to create directory '" + aTempDir.getAbsolutePath () + "'");
+      final boolean bSyncOnWrite = isSyncOnWrite ();
+      AS4InboundQueueEntry.write (aTempDir, aMessageMetadata, aHttpHeaders, aState, bSyncOnWrite);
+      if (FileOperations.renameDir (aTempDir, aEntryDir).isFailure ())
+        throw new IOException ("Failed to rename directory '" + aTempDir.getAbsolutePath () + "'");
+      if (bSyncOnWrite)
+      {
+        // Make the rename durable before the journal references the entry
+        AS4InboundQueueEntry.fsyncDirectory (aEntryDir);
+        AS4InboundQueueEntry.fsyncDirectory (m_aEntriesDir);
+      }
+
+      final AS4InboundQueueJournal aJournal = m_aRWLock.writeLockedGetThrowing ( () -> {
+        if (m_aExecutor == null)
+          throw new IllegalStateException ("The queue was closed");
+        m_aJournal.appendEnqueued (sEntryID);
+        m_aOpenEntries.put (sEntryID, Integer.valueOf (0));
+        _schedule (sEntryID, 0);
+        return m_aJournal;
+      });
+      // Force outside of the queue lock, so that concurrent enqueues share a
+      // single disk force
+      aJournal.sync ();
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      AS4InboundQueueEntry.delete (aTempDir);
+      AS4InboundQueueEntry.delete (aEntryDir);
+      throw ex;
+    }
+
+    m_aEnqueued.incrementAndGet ();
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Enqueued AS4 message '" + aState.getMessageID () + "' as inbound queue entry '" + sEntryID + "'");
+    return sEntryID;
+  }
+
+  @Nonnull
+  private ESuccess _invokeProcessors (@Nonnull final AS4InboundQueueEntry aEntry)
+  {
+    final IAS4MessageState aState = aEntry.getState ();
+    final String sMessageID = aState.getMessageID ();
+    final ICommonsList <WSS4JAttachment> aAttachments = aState.hasDecryptedAttachments () ? aState.getDecryptedAttachments ()
+                                                                                          : aState.getOriginalAttachments ();
+
+    final ICommonsList <IAS4ServletMessageProcessorSPI> aAllProcessors = getProcessorSupplier ().get ();
+    if (aAllProcessors.isEmpty ())
+      LOGGER.error ("No IAS4ServletMessageProcessorSPI is available to process an incoming message");
+
+    for (final IAS4ServletMessageProcessorSPI aProcessor : aAllProcessors)
+      if (aProcessor != null)
+      {
+        if (LOGGER.isDebugEnabled ())
+          LOGGER.debug ("Invoking AS4 message processor " + aProcessor + " for queued message '" + sMessageID + "'");
+
+        final ICommonsList <Ebms3Error> aProcessingErrorMessages = new CommonsArrayList <> ();
+        final AS4MessageProcessorResult aResult;
+        try (final IAS4Span aSpan = AS4TracingManager.startSpan (AS4TracingManager.SPAN_SPI, EAS4SpanKind.INTERNAL)
+                                                     .setAttribute (AS4TracingManager.ATTR_SPI_CLASS,
+                                                                    aProcessor.getClass ().getName ()))
+        {
+          aResult = aProcessor.processAS4UserMessage (aEntry.getMessageMetadata (),
+                                                      aEntry.getHttpHeaders (),
+                                                      aState.getEbmsUserMessage (),
+                                                      aState.getPMode (),
+                                                      aState.getSoapBodyPayloadNode (),
+                                                      aAttachments,
+                                                      aState,
+                                                      aProcessingErrorMessages);
+        }
+        if (aResult == null)
+          throw new IllegalStateException ("No result object present from AS4 message processor " +
+                                           aProcessor +
+                                           " - this is a programming error");
+
+        if (aProcessingErrorMessages.isNotEmpty () || aResult.isFailure ())
+        {
+          LOGGER.warn ("AS4 message processor " +
+                       aProcessor +
+                       " failed on queued message '" +
+                       sMessageID +
+                       "'" +
+                       (aResult.hasErrorMessage () ? ": " + aResult.getErrorMessage () : "") +
+                       (aProcessingErrorMessages.isNotEmpty () ? " - errors: " +
+                                                                 aProcessingErrorMessages.getAllMapped (Ebms3Error::getDescriptionValue)
+                                                               : ""));
+          return ESuccess.FAILURE;
+        }
+      }
+    return ESuccess.SUCCESS;
+  }
+
+  private void _process (@Nonnull @Nonempty final String sEntryID)
+  {
+    ESuccess eSuccess;
+    m_aInFlight.incrementAndGet ();
+    try (final AS4ResourceHelper aResHelper = new AS4ResourceHelper ())
+    {
+      final AS4InboundQueueEntry aEntry = AS4InboundQueueEntry.read (sEntryID,
+                                                                     _getEntryDir (sEntryID),
+                                                                     aResHelper,
+                                                                     getLocale ());
+      // Continue the trace of the original request
+      try (final IAS4Span aSpan = AS4TracingManager.startSpan (AS4TracingManager.SPAN_INBOUND_QUEUE,
+                                                               EAS4SpanKind.CONSUMER,
+                                                               aEntry.getHttpHeaders ()))
+      {
+        eSuccess = _invokeProcessors (aEntry);
+      }
+    }
+    catch (final Exception ex)
+    {
+      LOGGER.error ("Error processing inbound queue entry '" + sEntryID + "'", ex);
+      eSuccess = ESuccess.FAILURE;
+    }
+    finally
+    {
+      m_aInFlight.decrementAndGet ();
+    }
+
+    if (eSuccess.isSuccess ())
+      _onSuccess (sEntryID);
+    else
+      _onFailure (sEntryID);
+  }
+
+  private void _compactIfNecessary ()
+  {
+    if (m_aJournal.getLineCount () > COMPACT_THRESHOLD)
+      try
+      {
+        m_aJournal.compact (m_aOpenEntries);
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.error ("Failed to compact the inbound queue journal", ex);
+      }
+  }
+
+  private void _syncJournal (@Nullable final AS4InboundQueueJournal aJournal, @Nonnull @Nonempty final String sEntryID)
+  {
+    if (aJournal != null)
+      try
+      {
+        aJournal.sync ();
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.error ("Failed to force the inbound queue journal to disk for entry '" + sEntryID + "'", ex);
+      }
+  }
+
+  private void _onSuccess (@Nonnull @Nonempty final String sEntryID)
+  {
+    final AS4InboundQueueJournal aJournal = m_aRWLock.writeLockedGet ( () -> {
+      if (m_aJournal == null)
+        return null;
+      try
+      {
+        m_aJournal.appendAcknowledged (sEntryID);
+      }
+      catch (final IOException ex)
+      {
+        // The entry will be delivered again after a restart
+        LOGGER.error ("Failed to acknowledge inbound queue entry '" + sEntryID + "' in the journal", ex);
+      }
+      m_aOpenEntries.remove (sEntryID);
+      _compactIfNecessary ();
+      return m_aJournal;
+    });
+    // Outside of the queue lock
+    _syncJournal (aJournal, sEntryID);
+    AS4InboundQueueEntry.delete (_getEntryDir (sEntryID));
+    m_aProcessed.incrementAndGet ();
+
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Successfully processed inbound queue entry '" + sEntryID + "'");
+  }
+
+  private void _onFailure (@Nonnull @Nonempty final String sEntryID)
+  {
+    final AS4InboundQueueJournal aJournal = m_aRWLock.writeLockedGet ( () -> {
+      if (m_aJournal == null)
+        return null;
+      final Integer aOldAttempts = m_aOpenEntries.get (sEntryID);
+      final int nAttempts = (aOldAttempts == null ? 0 : aOldAttempts.intValue ()) + 1;
+      try
+      {
+        if (nAttempts >= m_nMaxAttempts)
+        {
+          final File aDeadDir = new File (m_aDeadDir, sEntryID);
+          if (FileOperations.renameDir (_getEntryDir (sEntryID), aDeadDir).isFailure ())
+            LOGGER.error ("Failed to move inbound queue entry '" + sEntryID + "' to the dead letter directory");
+          m_aJournal.appendDeadLettered (sEntryID);
+          m_aOpenEntries.remove (sEntryID);
+          m_aDeadLettered.incrementAndGet ();
+          _compactIfNecessary ();
+          LOGGER.error ("Inbound queue entry '" +
+                        sEntryID +
+                        "' failed " +
+                        nAttempts +
+                        " times and was moved to '" +
+                        aDeadDir.getAbsolutePath () +
+                        "'");
+        }
+        else
+        {
+          m_aJournal.appendFailedAttempt (sEntryID, nAttempts);
+          m_aOpenEntries.put (sEntryID, Integer.valueOf (nAttempts));
+          m_aRedelivered.incrementAndGet ();
+          final long nDelayMillis = m_aRedeliveryDelay.toMillis () * nAttempts;
+          LOGGER.warn ("Inbound queue entry '" +
+                       sEntryID +
+                       "' failed " +
+                       nAttempts +
+                       " times - redelivering in " +
+                       nDelayMillis +
+                       " milliseconds");
+          _schedule (sEntryID, nDelayMillis);
+        }
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.error ("Failed to record failure of inbound queue entry '" + sEntryID + "' in the journal", ex);
+      }
+      return m_aJournal;
+    });
+    // Outside of the queue lock
+    _syncJournal (aJournal, sEntryID);
+  }
+
+  /**
+   * Stop the workers and close the journal. Entries currently in processing
+   * are finished. All open entries are redelivered after the next
+   * {@link #start()}.
+   */
+  public void close ()
+  {
+    final ScheduledThreadPoolExecutor aExecutor = m_aRWLock.writeLockedGet ( () -> {
+      final ScheduledThreadPoolExecutor ret = m_aExecutor;
+      m_aExecutor = null;
+      return ret;
+    });
+    if (aExecutor != null)
+    {
+      // Outside of the lock, because the workers need it
+      ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (aExecutor);
+    }
+
+    m_aRWLock.writeLocked ( () -> {
+      if (m_aJournal != null)
+      {
+        try
+        {
+          m_aJournal.close ();
+        }
+        catch (final IOException ex)
+        {
+          LOGGER.error ("Failed to close the inbound queue journal", ex);
+        }
+        m_aJournal = null;
+      }
+      m_aOpenEntries.clear ();
+    });
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("BaseDir", m_aBaseDir)
+                                       .append ("WorkerCount", m_nWorkerCount)
+                                       .append ("MaxAttempts", m_nMaxAttempts)
+                                       .append ("RedeliveryDelay", m_aRedeliveryDelay)
+                                       .append ("SyncOnWrite", m_bSyncOnWrite)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,576 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.servlet.queue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.time.OffsetDateTime;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.WillNotClose;
+import javax.annotation.concurrent.Immutable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.base64.Base64;
+import com.helger.commons.charset.CharsetHelper;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.file.FileOperations;
+import com.helger.commons.io.resource.FileSystemResource;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.state.ESuccess;
+import com.helger.commons.string.StringHelper;
+import com.helger.phase4.attachment.EAS4CompressionMode;
+import com.helger.phase4.attachment.WSS4JAttachment;
+import com.helger.phase4.ebms3header.Ebms3Messaging;
+import com.helger.phase4.ebms3header.Ebms3PartyInfo;
+import com.helger.phase4.ebms3header.Ebms3UserMessage;
+import com.helger.phase4.marshaller.Ebms3MessagingMarshaller;
+import com.helger.phase4.messaging.EAS4MessageMode;
+import com.helger.phase4.messaging.IAS4IncomingMessageMetadata;
+import com.helger.phase4.mgr.MetaAS4Manager;
+import com.helger.phase4.model.pmode.IPMode;
+import com.helger.phase4.model.pmode.PMode;
+import com.helger.phase4.servlet.AS4IncomingMessageMetadata;
+import com.helger.phase4.servlet.AS4MessageState;
+import com.helger.phase4.servlet.IAS4MessageState;
+import com.helger.phase4.soap.ESoapVersion;
+import com.helger.phase4.util.AS4ResourceHelper;
+import com.helger.phase4.util.AS4XMLHelper;
+import com.helger.xml.XMLHelper;
+import com.helger.xml.microdom.IMicroDocument;
+import com.helger.xml.microdom.IMicroElement;
+import com.helger.xml.microdom.MicroDocument;
+import com.helger.xml.microdom.convert.MicroTypeConverter;
+import com.helger.xml.microdom.serialize.MicroReader;
+import com.helger.xml.microdom.serialize.MicroWriter;
+import com.helger.xml.serialize.read.DOMReader;
+import com.helger.xml.serialize.write.XMLWriter;
+
+/**
+ * A single entry of the {@link AS4InboundQueue}. Each entry is stored in its
+ * own directory and contains everything that is needed to invoke the message
+ * processor SPIs without the original HTTP request: the incoming message
+ * metadata, the HTTP headers, the verified and decrypted SOAP document, the
+ * decrypted and decompressed attachments and the P-Mode that was used.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@Immutable
+public final class AS4InboundQueueEntry
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4InboundQueueEntry.class);
+
+  private static final String FILENAME_ENTRY = "entry.xml";
+  private static final String FILENAME_SOAP = "soap.xml";
+  private static final String FILENAME_MESSAGING = "messaging.xml";
+  private static final String FILENAME_ATTACHMENT_PREFIX = "attachment-";
+
+  private static final String ELEMENT_ROOT = "InboundQueueEntry";
+  private static final String ELEMENT_METADATA = "Metadata";
+  private static final String ELEMENT_HTTP_HEADER = "HttpHeader";
+  private static final String ELEMENT_PMODE = "PMode";
+  private static final String ELEMENT_CERTIFICATE = "Certificate";
+  private static final String ELEMENT_ATTACHMENT = "Attachment";
+  private static final String ELEMENT_HEADER = "Header";
+  private static final String ATTR_ID = "id";
+  private static final String ATTR_INCOMING_DT = "incomingdt";
+  private static final String ATTR_MODE = "mode";
+  private static final String ATTR_REMOTE_ADDR = "remoteaddr";
+  private static final String ATTR_REMOTE_HOST = "remotehost";
+  private static final String ATTR_REMOTE_PORT = "remoteport";
+  private static final String ATTR_REMOTE_USER = "remoteuser";
+  private static final String ATTR_REQUEST_MESSAGE_ID = "requestmessageid";
+  private static final String ATTR_NAME = "name";
+  private static final String ATTR_SOAP_VERSION = "soapversion";
+  private static final String ATTR_DECRYPTED = "decrypted";
+  private static final String ATTR_LEG_NUMBER = "legnumber";
+  private static final String ATTR_PROFILE_ID = "profileid";
+  private static final String ATTR_SECURITY_ACTIONS = "securityactions";
+  private static final String ATTR_MIME_TYPE = "mimetype";
+  private static final String ATTR_COMPRESSION = "compression";
+  private static final String ATTR_CHARSET = "charset";
+  private static final String ATTR_FILENAME = "filename";
+
+  /**
+   * Special metadata implementation to restore persisted metadata.
+   *
+   * @author Philip Helger
+   */
+  private static final class RestoredIncomingMessageMetadata extends AS4IncomingMessageMetadata
+  {
+    RestoredIncomingMessageMetadata (@Nonnull @Nonempty final String sIncomingUniqueID,
+                                     @Nonnull final OffsetDateTime aIncomingDT,
+                                     @Nonnull final EAS4MessageMode eMode)
+    {
+      super (sIncomingUniqueID, aIncomingDT, eMode);
+    }
+  }
+
+  private final String m_sEntryID;
+  private final IAS4IncomingMessageMetadata m_aMessageMetadata;
+  private final HttpHeaderMap m_aHttpHeaders;
+  private final AS4MessageState m_aState;
+
+  private AS4InboundQueueEntry (@Nonnull @Nonempty final String sEntryID,
+                                @Nonnull final IAS4IncomingMessageMetadata aMessageMetadata,
+                                @Nonnull final HttpHeaderMap aHttpHeaders,
+                                @Nonnull final AS4MessageState aState)
+  {
+    m_sEntryID = sEntryID;
+    m_aMessageMetadata = aMessageMetadata;
+    m_aHttpHeaders = aHttpHeaders;
+    m_aState = aState;
+  }
+
+  /**
+   * @return The ID of the queue entry. Neither <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  public String getEntryID ()
+  {
+    return m_sEntryID;
+  }
+
+  /**
+   * @return The restored metadata of the original incoming request. Never
+   *         <code>null</code>. Cookies are not persisted.
+   */
+  @Nonnull
+  public IAS4IncomingMessageMetadata getMessageMetadata ()
+  {
+    return m_aMessageMetadata;
+  }
+
+  /**
+   * @return The HTTP headers of the original request. Never <code>null</code>.
+   */
+  @Nonnull
+  public HttpHeaderMap getHttpHeaders ()
+  {
+    return m_aHttpHeaders;
+  }
+
+  /**
+   * @return The restored message state. Never <code>null</code>.
+   */
+  @Nonnull
+  public IAS4MessageState getState ()
+  {
+    return m_aState;
+  }
+
+  @Nonnull
+  private static File _getAttachmentFile (@Nonnull final File aDir, final int nIndex)
+  {
+    return new File (aDir, FILENAME_ATTACHMENT_PREFIX + nIndex + ".bin");
+  }
+
+  /**
+   * Force the content of the provided file to disk.
+   *
+   * @param aFile
+   *        The file to be forced. May not be <code>null</code>.
+   * @throws IOException
+   *         In case the file cannot be opened or forced
+   */
+  static void fsyncFile (@Nonnull final File aFile) throws IOException
+  {
+    try (final FileChannel aChannel = FileChannel.open (aFile.toPath (), StandardOpenOption.WRITE))
+    {
+      aChannel.force (true);
+    }
+  }
+
+  /**
+   * Force the directory entries of the provided directory to disk, so that
+   * created and renamed files survive an operating system crash. Not all
+   * platforms support this (e.g. Windows), in which case it is silently
+   * skipped.
+   *
+   * @param aDir
+   *        The directory to be forced. May not be <code>null</code>.
+   */
+  static void fsyncDirectory (@Nonnull final File aDir)
+  {
+    try (final FileChannel aChannel = FileChannel.open (aDir.toPath (), StandardOpenOption.READ))
+    {
+      aChannel.force (true);
+    }
+    catch (final IOException ex)
+    {
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Failed to force directory '" + aDir.getAbsolutePath () + "' to disk: " + ex.getMessage ());
+    }
+  }
+
+  /**
+   * Persist all information required for later processing into the provided
+   * directory.
+   *
+   * @param aDir
+   *        The existing, empty target directory. May not be <code>null</code>.
+   * @param aMessageMetadata
+   *        The incoming message metadata. May not be <code>null</code>.
+   * @param aHttpHeaders
+   *        The incoming HTTP headers. May not be <code>null</code>.
+   * @param aState
+   *        The message state after successful security verification. Must
+   *        contain a user message. May not be <code>null</code>.
+   * @param bSyncToDisk
+   *        <code>true</code> to force every written file to disk before
+   *        returning.
+   * @throws IOException
+   *         In case something cannot be persisted
+   */
+  public static void write (@Nonnull final File aDir,
+                            @Nonnull final IAS4IncomingMessageMetadata aMessageMetadata,
+                            @Nonnull final HttpHeaderMap aHttpHeaders,
+                            @Nonnull final IAS4MessageState aState,
+                            final boolean bSyncToDisk) throws IOException
+  {
+    ValueEnforcer.notNull (aDir, "Dir");
+    ValueEnforcer.notNull (aMessageMetadata, "MessageMetadata");
+    ValueEnforcer.notNull (aHttpHeaders, "HttpHeaders");
+    ValueEnforcer.notNull (aState, "State");
+    ValueEnforcer.notNull (aState.getMessaging (), "State.Messaging");
+
+    final ICommonsList <File> aWrittenFiles = new CommonsArrayList <> ();
+    final IMicroDocument aDoc = new MicroDocument ();
+    final IMicroElement eRoot = aDoc.appendElement (ELEMENT_ROOT);
+    eRoot.setAttribute (ATTR_SOAP_VERSION, aState.getSoapVersion ().getVersion ());
+    eRoot.setAttribute (ATTR_DECRYPTED, aState.hasDecryptedSoapDocument ());
+    eRoot.setAttribute (ATTR_LEG_NUMBER, aState.getEffectivePModeLegNumber ());
+    eRoot.setAttribute (ATTR_PROFILE_ID, aState.getProfileID ());
+    eRoot.setAttribute (ATTR_SECURITY_ACTIONS, aState.getSoapWSS4JSecurityActions ());
+
+    // Metadata
+    final IMicroElement eMetadata = eRoot.appendElement (ELEMENT_METADATA);
+    eMetadata.setAttribute (ATTR_ID, aMessageMetadata.getIncomingUniqueID ());
+    eMetadata.setAttributeWithConversion (ATTR_INCOMING_DT, aMessageMetadata.getIncomingDT ());
+    eMetadata.setAttribute (ATTR_MODE, aMessageMetadata.getMode ().getID ());
+    eMetadata.setAttribute (ATTR_REMOTE_ADDR, aMessageMetadata.getRemoteAddr ());
+    eMetadata.setAttribute (ATTR_REMOTE_HOST, aMessageMetadata.getRemoteHost ());
+    if (aMessageMetadata.hasRemotePort ())
+      eMetadata.setAttribute (ATTR_REMOTE_PORT, aMessageMetadata.getRemotePort ());
+    eMetadata.setAttribute (ATTR_REMOTE_USER, aMessageMetadata.getRemoteUser ());
+    eMetadata.setAttribute (ATTR_REQUEST_MESSAGE_ID, aMessageMetadata.getRequestMessageID ());
+
+    // HTTP headers
+    aHttpHeaders.forEachSingleHeader ( (sName, sValue) -> eRoot.appendElement (ELEMENT_HTTP_HEADER)
+                                                                .setAttribute (ATTR_NAME, sName)
+                                                                .appendText (sValue),
+                                      false);
+
+    // PMode - is persisted as is, because it may have been created dynamically
+    final IPMode aPMode = aState.getPMode ();
+    if (aPMode instanceof PMode)
+      eRoot.appendChild (MicroTypeConverter.convertToMicroElement (aPMode, ELEMENT_PMODE));
+
+    // Certificate
+    final X509Certificate aUsedCert = aState.getUsedCertificate ();
+    if (aUsedCert != null)
+      try
+      {
+        eRoot.appendElement (ELEMENT_CERTIFICATE).appendText (Base64.encodeBytes (aUsedCert.getEncoded ()));
+      }
+      catch (final CertificateException ex)
+      {
+        throw new IOException ("Failed to encode the used certificate", ex);
+      }
+
+    // Attachments - stored decrypted and decompressed
+    final ICommonsList <WSS4JAttachment> aAttachments = aState.hasDecryptedAttachments () ? aState.getDecryptedAttachments ()
+                                                                                          : aState.getOriginalAttachments ();
+    if (aAttachments != null)
+    {
+      int nIndex = 0;
+      for (final WSS4JAttachment aAttachment : aAttachments)
+      {
+        final File aFile = _getAttachmentFile (aDir, nIndex++);
+        try (final InputStream aIS = aAttachment.getSourceStream ();
+             final OutputStream aOS = FileHelper.getBufferedOutputStream (aFile))
+        {
+          if (aOS == null)
+            throw new IOException ("Failed to open '" + aFile.getAbsolutePath () + "' for writing");
+          if (StreamHelper.copyInputStreamToOutputStream (aIS, aOS).isFailure ())
+            throw new IOException ("Failed to persist attachment '" + aAttachment.getId () + "'");
+        }
+        aWrittenFiles.add (aFile);
+
+        final IMicroElement eAttachment = eRoot.appendElement (ELEMENT_ATTACHMENT);
+        eAttachment.setAttribute (ATTR_ID, aAttachment.getId ());
+        eAttachment.setAttribute (ATTR_MIME_TYPE, aAttachment.getUncompressedMimeType ());
+        if (aAttachment.getCompressionMode () != null)
+          eAttachment.setAttribute (ATTR_COMPRESSION, aAttachment.getCompressionMode ().getID ());
+        if (aAttachment.hasCharset ())
+          eAttachment.setAttribute (ATTR_CHARSET, aAttachment.getCharsetOrDefault (null).name ());
+        eAttachment.setAttribute (ATTR_FILENAME, aFile.getName ());
+        final Map <String, String> aHeaders = aAttachment.getHeaders ();
+        if (aHeaders != null)
+          for (final Map.Entry <String, String> aEntry : aHeaders.entrySet ())
+            eAttachment.appendElement (ELEMENT_HEADER)
+                       .setAttribute (ATTR_NAME, aEntry.getKey ())
+                       .appendText (aEntry.getValue ());
+      }
+    }
+
+    // The SOAP document that is relevant for processing
+    final Document aSoapDoc = aState.hasDecryptedSoapDocument () ? aState.getDecryptedSoapDocument ()
+                                                                 : aState.getOriginalSoapDocument ();
+    if (aSoapDoc == null)
+      throw new IOException ("The message state contains no SOAP document");
+    final File aSoapFile = new File (aDir, FILENAME_SOAP);
+    try (final OutputStream aOS = FileHelper.getBufferedOutputStream (aSoapFile))
+    {
+      if (XMLWriter.writeToStream (aSoapDoc, aOS, AS4XMLHelper.XWS).isFailure ())
+        throw new IOException ("Failed to persist the SOAP document");
+    }
+    aWrittenFiles.add (aSoapFile);
+
+    // The parsed Ebms3 Messaging header
+    final File aMessagingFile = new File (aDir, FILENAME_MESSAGING);
+    if (new Ebms3MessagingMarshaller ().write (aState.getMessaging (), aMessagingFile).isFailure ())
+      throw new IOException ("Failed to persist the Ebms3 Messaging header");
+    aWrittenFiles.add (aMessagingFile);
+
+    // Write the main file last, as it is the indicator for completeness
+    final File aEntryFile = new File (aDir, FILENAME_ENTRY);
+    if (MicroWriter.writeToFile (aDoc, aEntryFile).isFailure ())
+      throw new IOException ("Failed to persist the inbound queue entry");
+    aWrittenFiles.add (aEntryFile);
+
+    if (bSyncToDisk)
+    {
+      // The writers above close their streams, so force each file separately
+      for (final File aFile : aWrittenFiles)
+        fsyncFile (aFile);
+      fsyncDirectory (aDir);
+    }
+  }
+
+  @Nullable
+  private static String _getFirstPartyID (@Nullable final Ebms3PartyInfo aPartyInfo, final boolean bFrom)
+  {
+    if (aPartyInfo == null)
+      return null;
+    if (bFrom)
+      return aPartyInfo.getFrom () != null && aPartyInfo.getFrom ().hasPartyIdEntries () ? aPartyInfo.getFrom ()
+                                                                                                    .getPartyIdAtIndex (0)
+                                                                                                    .getValue ()
+                                                                                         : null;
+    return aPartyInfo.getTo () != null && aPartyInfo.getTo ().hasPartyIdEntries () ? aPartyInfo.getTo ()
+                                                                                                .getPartyIdAtIndex (0)
+                                                                                                .getValue ()
+                                                                                   : null;
+  }
+
+  /**
+   * Read a previously written entry.
+   *
+   * @param sEntryID
+   *        The entry ID. May neither be <code>null</code> nor empty.
+   * @param aDir
+   *        The directory of the entry. May not be <code>null</code>.
+   * @param aResHelper
+   *        The resource helper to be used for the restored message state. May
+   *        not be <code>null</code>.
+   * @param aLocale
+   *        The locale to be used for the restored message state. May not be
+   *        <code>null</code>.
+   * @return The restored entry and never <code>null</code>.
+   * @throws IOException
+   *         If the entry is incomplete or cannot be read
+   */
+  @Nonnull
+  public static AS4InboundQueueEntry read (@Nonnull @Nonempty final String sEntryID,
+                                           @Nonnull final File aDir,
+                                           @Nonnull @WillNotClose final AS4ResourceHelper aResHelper,
+                                           @Nonnull final Locale aLocale) throws IOException
+  {
+    ValueEnforcer.notEmpty (sEntryID, "EntryID");
+    ValueEnforcer.notNull (aDir, "Dir");
+    ValueEnforcer.notNull (aResHelper, "ResHelper");
+    ValueEnforcer.notNull (aLocale, "Locale");
+
+    final IMicroDocument aDoc = MicroReader.readMicroXML (new File (aDir, FILENAME_ENTRY));
+    if (aDoc == null || aDoc.getDocumentElement () == null)
+      throw new IOException ("Inbound queue entry '" + sEntryID + "' is incomplete");
+    final IMicroElement eRoot = aDoc.getDocumentElement ();
+
+    final ESoapVersion eSoapVersion = ESoapVersion.getFromVersionOrNull (eRoot.getAttributeValue (ATTR_SOAP_VERSION));
+    if (eSoapVersion == null)
+      throw new IOException ("Inbound queue entry '" + sEntryID + "' has an invalid SOAP version");
+
+    // Metadata
+    final IMicroElement eMetadata = eRoot.getFirstChildElement (ELEMENT_METADATA);
+    if (eMetadata == null)
+      throw new IOException ("Inbound queue entry '" + sEntryID + "' has no metadata");
+    final OffsetDateTime aIncomingDT = eMetadata.getAttributeValueWithConversion (ATTR_INCOMING_DT,
+                                                                                 OffsetDateTime.class);
+    final EAS4MessageMode eMode = EAS4MessageMode.getFromIDOrNull (eMetadata.getAttributeValue (ATTR_MODE));
+    final String sIncomingUniqueID = eMetadata.getAttributeValue (ATTR_ID);
+    if (StringHelper.hasNoText (sIncomingUniqueID) || aIncomingDT == null || eMode == null)
+      throw new IOException ("Inbound queue entry '" + sEntryID + "' has invalid metadata");
+    final AS4IncomingMessageMetadata aMessageMetadata = new RestoredIncomingMessageMetadata (sIncomingUniqueID,
+                                                                                             aIncomingDT,
+                                                                                             eMode);
+    aMessageMetadata.setRemoteAddr (eMetadata.getAttributeValue (ATTR_REMOTE_ADDR))
+                    .setRemoteHost (eMetadata.getAttributeValue (ATTR_REMOTE_HOST))
+                    .setRemotePort (eMetadata.getAttributeValueAsInt (ATTR_REMOTE_PORT, -1))
+                    .setRemoteUser (eMetadata.getAttributeValue (ATTR_REMOTE_USER))
+                    .setRequestMessageID (eMetadata.getAttributeValue (ATTR_REQUEST_MESSAGE_ID));
+
+    // HTTP headers
+    final HttpHeaderMap aHttpHeaders = new HttpHeaderMap ();
+    for (final IMicroElement eHeader : eRoot.getAllChildElements (ELEMENT_HTTP_HEADER))
+      aHttpHeaders.addHeader (eHeader.getAttributeValue (ATTR_NAME), eHeader.getTextContent ());
+
+    // Ebms3 Messaging header
+    final Ebms3Messaging aMessaging = new Ebms3MessagingMarshaller ().read (new File (aDir, FILENAME_MESSAGING));
+    if (aMessaging == null || !aMessaging.hasUserMessageEntries ())
+      throw new IOException ("Inbound queue entry '" + sEntryID + "' has no valid Ebms3 Messaging header");
+    final Ebms3UserMessage aUserMessage = aMessaging.getUserMessageAtIndex (0);
+
+    // SOAP document
+    final Document aSoapDoc = DOMReader.readXMLDOM (new File (aDir, FILENAME_SOAP));
+    if (aSoapDoc == null)
+      throw new IOException ("Inbound queue entry '" + sEntryID + "' has no valid SOAP document");
+    final Node aBodyNode = XMLHelper.getFirstChildElementOfName (aSoapDoc.getDocumentElement (),
+                                                                 eSoapVersion.getNamespaceURI (),
+                                                                 eSoapVersion.getBodyElementName ());
+    if (aBodyNode == null)
+      throw new IOException ("Inbound queue entry '" + sEntryID + "' has a SOAP document without a Body");
+
+    // PMode
+    final IMicroElement ePMode = eRoot.getFirstChildElement (ELEMENT_PMODE);
+    final PMode aPMode = ePMode == null ? null : MicroTypeConverter.convertToNative (ePMode, PMode.class);
+
+    // Certificate
+    X509Certificate aUsedCert = null;
+    final IMicroElement eCert = eRoot.getFirstChildElement (ELEMENT_CERTIFICATE);
+    if (eCert != null)
+      try
+      {
+        aUsedCert = (X509Certificate) CertificateFactory.getInstance ("X.509")
+                                                        .generateCertificate (new ByteArrayInputStream (Base64.safeDecode (eCert.getTextContent ())));
+      }
+      catch (final CertificateException | RuntimeException ex)
+      {
+        throw new IOException ("Inbound queue entry '" + sEntryID + "' has an invalid certificate", ex);
+      }
+
+    // Attachments
+    final ICommonsList <WSS4JAttachment> aAttachments = new CommonsArrayList <> ();
+    final ICommonsMap <String, EAS4CompressionMode> aCompressedAttachmentIDs = new CommonsHashMap <> ();
+    for (final IMicroElement eAttachment : eRoot.getAllChildElements (ELEMENT_ATTACHMENT))
+    {
+      final File aFile = new File (aDir, eAttachment.getAttributeValue (ATTR_FILENAME));
+      if (!aFile.isFile ())
+        throw new IOException ("Inbound queue entry '" + sEntryID + "' misses attachment file '" + aFile.getName () + "'");
+
+      final WSS4JAttachment aAttachment = new WSS4JAttachment (aResHelper,
+                                                               eAttachment.getAttributeValue (ATTR_MIME_TYPE));
+      aAttachment.setId (eAttachment.getAttributeValue (ATTR_ID));
+      for (final IMicroElement eHeader : eAttachment.getAllChildElements (ELEMENT_HEADER))
+        aAttachment.addHeader (eHeader.getAttributeValue (ATTR_NAME), eHeader.getTextContent ());
+      final Charset aCharset = CharsetHelper.getCharsetFromNameOrNull (eAttachment.getAttributeValue (ATTR_CHARSET));
+      if (aCharset != null)
+        aAttachment.setCharset (aCharset);
+      // The persisted content is already decompressed
+      aAttachment.setSourceStreamProvider (new FileSystemResource (aFile));
+      final EAS4CompressionMode eCompressionMode = EAS4CompressionMode.getFromIDOrNull (eAttachment.getAttributeValue (ATTR_COMPRESSION));
+      if (eCompressionMode != null)
+      {
+        aAttachment.setCompressionMode (eCompressionMode);
+        aCompressedAttachmentIDs.put (aAttachment.getId (), eCompressionMode);
+      }
+      aAttachments.add (aAttachment);
+    }
+
+    // Restore the state as far as it is relevant for the SPIs
+    final AS4MessageState aState = new AS4MessageState (eSoapVersion, aResHelper, aLocale);
+    aState.setMessaging (aMessaging);
+    aState.setPMode (aPMode);
+    aState.setOriginalSoapDocument (aSoapDoc);
+    aState.setOriginalAttachments (aAttachments);
+    if (eRoot.getAttributeValueAsBool (ATTR_DECRYPTED, false))
+    {
+      aState.setDecryptedSoapDocument (aSoapDoc);
+      aState.setDecryptedAttachments (aAttachments);
+    }
+    aState.setCompressedAttachmentIDs (aCompressedAttachmentIDs);
+    aState.setMPC (MetaAS4Manager.getMPCMgr ().getMPCOrDefaultOfID (aUserMessage.getMpc ()));
+    aState.setSoapBodyPayloadPresent (aBodyNode.getFirstChild () != null);
+    aState.setInitiatorID (_getFirstPartyID (aUserMessage.getPartyInfo (), true));
+    aState.setResponderID (_getFirstPartyID (aUserMessage.getPartyInfo (), false));
+    aState.setUsedCertificate (aUsedCert);
+    if (aPMode != null)
+    {
+      final int nLegNumber = eRoot.getAttributeValueAsInt (ATTR_LEG_NUMBER, 1);
+      aState.setEffectivePModeLeg (nLegNumber, nLegNumber == 2 ? aPMode.getLeg2 () : aPMode.getLeg1 ());
+    }
+    aState.setSoapWSS4JSecurityActions (eRoot.getAttributeValueAsInt (ATTR_SECURITY_ACTIONS, 0));
+    aState.setProfileID (eRoot.getAttributeValue (ATTR_PROFILE_ID));
+    aState.setMessageID (aUserMessage.getMessageInfo ().getMessageId ());
+    aState.setRefToMessageID (aUserMessage.getMessageInfo ().getRefToMessageId ());
+    aState.setMessageTimestamp (aUserMessage.getMessageInfo ().getTimestamp ());
+    aState.setSoapBodyPayloadNode (aBodyNode.getFirstChild ());
+    aState.setPingMessage (false);
+    aState.setSoapHeaderElementProcessingSuccessful (true);
+
+    return new AS4InboundQueueEntry (sEntryID, aMessageMetadata, aHttpHeaders, aState);
+  }
+
+  /**
+   * Delete all files of the provided entry directory.
+   *
+   * @param aDir
+   *        The entry directory. May not be <code>null</code>.
+   * @return {@link ESuccess}
+   */
+  @Nonnull
+  public static ESuccess delete (@Nonnull final File aDir)
+  {
+    ValueEnforcer.notNull (aDir, "Dir");
+    return ESuccess.valueOf (FileOperations.deleteDirRecursiveIfExisting (aDir).isSuccess ());
+  }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.servlet.queue;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsLinkedHashMap;
+import com.helger.commons.collection.impl.ICommonsOrderedMap;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.StringParser;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * An append-only journal for the {@link AS4InboundQueue}. Each state change of
+ * a queue entry is written as a single line. When the journal is opened, all
+ * lines are replayed to determine the entries that were not yet completely
+ * processed. A trailing incomplete line (e.g. after a crash) is ignored.
+ * <p>
+ * Appending a line only writes it to the operating system. If the journal is
+ * synchronized on write, the caller must invoke {@link #sync()} afterwards -
+ * preferably outside of any own lock. Concurrent callers of {@link #sync()}
+ * share a single disk force (group commit).
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@ThreadSafe
+public class AS4InboundQueueJournal implements Closeable
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4InboundQueueJournal.class);
+
+  private static final char OP_ENQUEUED = 'E';
+  private static final char OP_FAILED_ATTEMPT = 'F';
+  private static final char OP_ACKNOWLEDGED = 'A';
+  private static final char OP_DEAD_LETTERED = 'D';
+
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  private final File m_aFile;
+  private final boolean m_bSyncOnWrite;
+  @GuardedBy ("m_aRWLock")
+  private FileOutputStream m_aFOS;
+  @GuardedBy ("m_aRWLock")
+  private long m_nLineCount = 0;
+  @GuardedBy ("m_aRWLock")
+  private long m_nWrittenSeq = 0;
+  // Lock order: first m_aSyncLock, then m_aRWLock
+  private final SimpleLock m_aSyncLock = new SimpleLock ();
+  @GuardedBy ("m_aSyncLock")
+  private long m_nSyncedSeq = 0;
+
+  /**
+   * Constructor
+   *
+   * @param aFile
+   *        The journal file. May not be <code>null</code>. Is created if it
+   *        does not exist.
+   * @param bSyncOnWrite
+   *        <code>true</code> to force every journal line to disk before
+   *        returning, <code>false</code> to rely on the operating system.
+   */
+  public AS4InboundQueueJournal (@Nonnull final File aFile, final boolean bSyncOnWrite)
+  {
+    ValueEnforcer.notNull (aFile, "File");
+    m_aFile = aFile;
+    m_bSyncOnWrite = bSyncOnWrite;
+  }
+
+  /**
+   * @return The journal file as provided in the constructor. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final File getFile ()
+  {
+    return m_aFile;
+  }
+
+  /**
+   * @return <code>true</code> if every journal line is forced to disk.
+   */
+  public final boolean isSyncOnWrite ()
+  {
+    return m_bSyncOnWrite;
+  }
+
+  /**
+   * @return The number of lines written into the current journal file.
+   */
+  @Nonnegative
+  public long getLineCount ()
+  {
+    return m_aRWLock.readLockedLong ( () -> m_nLineCount);
+  }
+
+  /**
+   * Read the existing journal and open it for appending. This method must be
+   * called exactly once before any other method is called.
+   *
+   * @return A map from entry ID to the number of failed delivery attempts of
+   *         all entries, that were enqueued but neither acknowledged nor dead
+   *         lettered. The order is the enqueue order. Never <code>null</code>.
+   * @throws IOException
+   *         In case of a read or write error
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsOrderedMap <String, Integer> open () throws IOException
+  {
+    final ICommonsOrderedMap <String, Integer> ret = new CommonsLinkedHashMap <> ();
+    m_aSyncLock.lockedThrowing ( () -> m_aRWLock.writeLockedThrowing ( () -> {
+      if (m_aFOS != null)
+        throw new IllegalStateException ("The journal is already open");
+
+      if (m_aFile.exists ())
+      {
+        try (final BufferedReader aReader = Files.newBufferedReader (m_aFile.toPath (), StandardCharsets.UTF_8))
+        {
+          String sLine;
+          while ((sLine = aReader.readLine ()) != null)
+          {
+            final String [] aParts = StringHelper.getExplodedArray (' ', sLine);
+            if (aParts.length < 2 || aParts[0].length () != 1 || StringHelper.hasNoText (aParts[1]))
+            {
+              LOGGER.warn ("Ignoring invalid inbound queue journal line '" + sLine + "'");
+              continue;
+            }
+            final String sEntryID = aParts[1];
+            switch (aParts[0].charAt (0))
+            {
+              case OP_ENQUEUED:
+                ret.put (sEntryID, Integer.valueOf (0));
+                break;
+              case OP_FAILED_ATTEMPT:
+                if (ret.containsKey (sEntryID))
+                  ret.put (sEntryID,
+                           Integer.valueOf (aParts.length > 2 ? StringParser.parseInt (aParts[2], 0) : 0));
+                break;
+              case OP_ACKNOWLEDGED:
+              case OP_DEAD_LETTERED:
+                ret.remove (sEntryID);
+                break;
+              default:
+                LOGGER.warn ("Ignoring unknown inbound queue journal line '" + sLine + "'");
+                break;
+            }
+          }
+        }
+      }
+
+      // Rewrite the journal with the open entries only
+      _rewrite (ret);
+    }));
+    return ret;
+  }
+
+  @GuardedBy ("m_aSyncLock, m_aRWLock")
+  private void _rewrite (@Nonnull final Map <String, Integer> aOpenEntries) throws IOException
+  {
+    StreamHelper.close (m_aFOS);
+
+    final File aTempFile = new File (m_aFile.getParentFile (), m_aFile.getName () + ".tmp");
+    long nLineCount = 0;
+    try (final FileOutputStream aFOS = new FileOutputStream (aTempFile, false))
+    {
+      final StringBuilder aSB = new StringBuilder ();
+      for (final Map.Entry <String, Integer> aEntry : aOpenEntries.entrySet ())
+      {
+        aSB.append (OP_ENQUEUED).append (' ').append (aEntry.getKey ()).append ('\n');
+        nLineCount++;
+        if (aEntry.getValue ().intValue () > 0)
+        {
+          aSB.append (OP_FAILED_ATTEMPT)
+             .append (' ')
+             .append (aEntry.getKey ())
+             .append (' ')
+             .append (aEntry.getValue ().intValue ())
+             .append ('\n');
+          nLineCount++;
+        }
+      }
+      aFOS.write (aSB.toString ().getBytes (StandardCharsets.UTF_8));
+      aFOS.getChannel ().force (true);
+    }
+    Files.move (aTempFile.toPath (),
+                m_aFile.toPath (),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+    m_aFOS = new FileOutputStream (m_aFile, true);
+    m_nLineCount = nLineCount;
+    // Everything written so far is superseded by the forced new file
+    m_nSyncedSeq = m_nWrittenSeq;
+  }
+
+  private void _append (final char cOp, @Nonnull @Nonempty final String sEntryID, @Nonnull final String sSuffix) throws IOException
+  {
+    final byte [] aLine = (cOp + " " + sEntryID + sSuffix + "\n").getBytes (StandardCharsets.UTF_8);
+    m_aRWLock.writeLockedThrowing ( () -> {
+      if (m_aFOS == null)
+        throw new IllegalStateException ("The journal is not open");
+      m_aFOS.write (aLine);
+      m_nLineCount++;
+      m_nWrittenSeq++;
+    });
+  }
+
+  /**
+   * Force all lines appended so far to disk, if the journal is synchronized on
+   * write. The disk force happens outside of the journal write lock, so that
+   * other threads can continue appending. If another thread is already forcing,
+   * this method waits for it and only forces again if its own lines were not
+   * yet covered.
+   *
+   * @throws IOException
+   *         In case the force fails
+   */
+  public void sync () throws IOException
+  {
+    if (!m_bSyncOnWrite)
+      return;
+
+    final long nTargetSeq = m_aRWLock.readLockedLong ( () -> m_nWrittenSeq);
+    m_aSyncLock.lockedThrowing ( () -> {
+      if (m_nSyncedSeq >= nTargetSeq)
+      {
+        // Another thread already forced our lines
+        return;
+      }
+
+      // Remember what is covered by this force. The channel cannot be
+      // replaced or closed concurrently, as this requires the sync lock.
+      final long nWrittenSeq = m_aRWLock.readLockedLong ( () -> m_nWrittenSeq);
+      final FileChannel aChannel = m_aRWLock.readLockedGet ( () -> m_aFOS == null ? null : m_aFOS.getChannel ());
+      if (aChannel != null)
+        aChannel.force (false);
+      m_nSyncedSeq = nWrittenSeq;
+    });
+  }
+
+  /**
+   * Remember that a new entry was enqueued.
+   *
+   * @param sEntryID
+   *        Entry ID. May neither be <code>null</code> nor empty.
+   * @throws IOException
+   *         In case of a write error
+   */
+  public void appendEnqueued (@Nonnull @Nonempty final String sEntryID) throws IOException
+  {
+    ValueEnforcer.notEmpty (sEntryID, "EntryID");
+    _append (OP_ENQUEUED, sEntryID, "");
+  }
+
+  /**
+   * Remember that a delivery attempt of an entry failed.
+   *
+   * @param sEntryID
+   *        Entry ID. May neither be <code>null</code> nor empty.
+   * @param nAttempts
+   *        The total number of failed attempts so far. Must be &gt; 0.
+   * @throws IOException
+   *         In case of a write error
+   */
+  public void appendFailedAttempt (@Nonnull @Nonempty final String sEntryID, @Nonnegative final int nAttempts) throws IOException
+  {
+    ValueEnforcer.notEmpty (sEntryID, "EntryID");
+    ValueEnforcer.isGT0 (nAttempts, "Attempts");
+    _append (OP_FAILED_ATTEMPT, sEntryID, " " + nAttempts);
+  }
+
+  /**
+   * Remember that an entry was processed successfully.
+   *
+   * @param sEntryID
+   *        Entry ID. May neither be <code>null</code> nor empty.
+   * @throws IOException
+   *         In case of a write error
+   */
+  public void appendAcknowledged (@Nonnull @Nonempty final String sEntryID) throws IOException
+  {
+    ValueEnforcer.notEmpty (sEntryID, "EntryID");
+    _append (OP_ACKNOWLEDGED, sEntryID, "");
+  }
+
+  /**
+   * Remember that an entry finally failed and was moved to the dead letter
+   * area.
+   *
+   * @param sEntryID
+   *        Entry ID. May neither be <code>null</code> nor empty.
+   * @throws IOException
+   *         In case of a write error
+   */
+  public void appendDeadLettered (@Nonnull @Nonempty final String sEntryID) throws IOException
+  {
+    ValueEnforcer.notEmpty (sEntryID, "EntryID");
+    _append (OP_DEAD_LETTERED, sEntryID, "");
+  }
+
+  /**
+   * Rewrite the journal so that it only contains the provided open entries.
+   * This keeps the journal from growing without limits.
+   *
+   * @param aOpenEntries
+   *        The currently open entries with their number of failed attempts. May
+   *        not be <code>null</code>.
+   * @throws IOException
+   *         In case of a write error
+   */
+  public void compact (@Nonnull final Map <String, Integer> aOpenEntries) throws IOException
+  {
+    ValueEnforcer.notNull (aOpenEntries, "OpenEntries");
+    m_aSyncLock.lockedThrowing ( () -> m_aRWLock.writeLockedThrowing ( () -> {
+      if (m_aFOS == null)
+        throw new IllegalStateException ("The journal is not open");
+      _rewrite (aOpenEntries);
+    }));
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Compacted inbound queue journal '" + m_aFile.getAbsolutePath () + "'");
+  }
+
+  public void close () throws IOException
+  {
+    m_aSyncLock.lockedThrowing ( () -> m_aRWLock.writeLockedThrowing ( () -> {
+      if (m_aFOS != null)
+      {
+        if (m_bSyncOnWrite)
+          m_aFOS.getChannel ().force (false);
+        m_aFOS.close ();
+        m_aFOS = null;
+        m_nSyncedSeq = m_nWrittenSeq;
+      }
+    }));
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("File", m_aFile)
+                                       .append ("SyncOnWrite", m_bSyncOnWrite)
+                                       .getToString ();
+  }
+}
@@ -61,6 +61,8 @@ import com.helger.phase4.ebms3header.Ebms3UserMessage;
 import com.helger.phase4.error.EEbmsError;
 import com.helger.phase4.marshaller.Ebms3MessagingMarshaller;
 import com.helger.phase4.messaging.domain.MessageHelperMethods;
+import com.helger.phase4.metrics.AS4MetricsManager;
+import com.helger.phase4.metrics.EAS4MetricsStage;
 import com.helger.phase4.mgr.MetaAS4Manager;
 import com.helger.phase4.model.mpc.IMPC;
 import com.helger.phase4.model.mpc.IMPCManager;
@@ -320,6 +322,7 @@ public class SOAPHeaderElementProcessorExtractEbms3Messaging implements ISOAPHea
         // Get responder address from properties file (may be null)
         final String sAddress = AS4Configuration.getThisEndpointAddress ();
 
+        final long nResolutionStart = AS4MetricsManager.startTiming (aState.getStageTimings ());
         aPMode = m_aPModeResolver.getPModeOfID (sPModeID,
                                                 aCollaborationInfo.getService ().getValue (),
                                                 aCollaborationInfo.getAction (),
@@ -327,6 +330,12 @@ public class SOAPHeaderElementProcessorExtractEbms3Messaging implements ISOAPHea
                                                 sResponderID,
                                                 sAgreementRef,
                                                 sAddress);
+        AS4MetricsManager.recordStage (EAS4MetricsStage.INCOMING_PMODE_RESOLUTION,
+                                       nResolutionStart,
+                                       aPMode != null,
+                                       aState.getProfileID (),
+                                       aPMode,
+                                       aState.getStageTimings ());
 
         // Should be screened by the XSD conversion already
         if (aPMode == null)
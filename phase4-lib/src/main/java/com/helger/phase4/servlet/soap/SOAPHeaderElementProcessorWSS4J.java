@@ -55,12 +55,13 @@ import com.helger.phase4.CAS4;
 import com.helger.phase4.attachment.WSS4JAttachment;
 import com.helger.phase4.attachment.WSS4JAttachmentCallbackHandler;
 import com.helger.phase4.config.AS4Configuration;
-import com.helger.phase4.crypto.AS4CryptoProperties;
 import com.helger.phase4.crypto.ECryptoAlgorithmSign;
 import com.helger.phase4.crypto.ECryptoAlgorithmSignDigest;
 import com.helger.phase4.crypto.IAS4CryptoFactory;
 import com.helger.phase4.ebms3header.Ebms3UserMessage;
 import com.helger.phase4.error.EEbmsError;
+import com.helger.phase4.metrics.AS4MetricsManager;
+import com.helger.phase4.metrics.EAS4MetricsStage;
 import com.helger.phase4.model.pmode.IPMode;
 import com.helger.phase4.model.pmode.leg.PModeLeg;
 import com.helger.phase4.servlet.AS4MessageState;
@@ -122,8 +123,7 @@ public class SOAPHeaderElementProcessorWSS4J implements ISOAPHeaderElementProces
       aRequestData.setSigVerCrypto (m_aCryptoFactory.getCrypto ());
       aRequestData.setDecCrypto (m_aCryptoFactory.getCrypto ());
       aRequestData.setWssConfig (aWSSConfig);
-      aRequestData.setAllowRSA15KeyTransportAlgorithm (AS4CryptoProperties.createFromConfig ()
-                                                                          .isAllowRSA15KeyTransportAlgorithm ());
+      aRequestData.setAllowRSA15KeyTransportAlgorithm (AS4Configuration.isAllowRSA15KeyTransportAlgorithm ());
 
       // Upon success, the SOAP document contains the decrypted content
       // afterwards!
@@ -414,6 +414,7 @@ public class SOAPHeaderElementProcessorWSS4J implements ISOAPHeaderElementProces
         }
       }
 
+      final long nSecurityStart = AS4MetricsManager.startTiming (aState.getStageTimings ());
       final ESuccess eSuccess;
       if (AS4Configuration.isWSS4JSynchronizedSecurity ())
       {
@@ -433,6 +434,12 @@ public class SOAPHeaderElementProcessorWSS4J implements ISOAPHeaderElementProces
                                       aErrorList,
                                       WSSConfigManager.getInstance ()::createWSSConfig);
       }
+      AS4MetricsManager.recordStage (EAS4MetricsStage.INCOMING_SECURITY,
+                                     nSecurityStart,
+                                     eSuccess.isSuccess (),
+                                     aState.getProfileID (),
+                                     aPMode,
+                                     aState.getStageTimings ());
       if (eSuccess.isFailure ())
         return ESuccess.FAILURE;
     }
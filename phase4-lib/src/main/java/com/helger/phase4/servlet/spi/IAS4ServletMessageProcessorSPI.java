@@ -16,6 +16,7 @@
  */
 package com.helger.phase4.servlet.spi;
 
+import java.io.InputStream;
 import java.io.Serializable;
 
 import javax.annotation.Nonnull;
@@ -27,6 +28,8 @@ import com.helger.commons.annotation.IsSPIInterface;
 import com.helger.commons.annotation.Nonempty;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.stream.StreamHelper;
 import com.helger.phase4.attachment.WSS4JAttachment;
 import com.helger.phase4.ebms3header.Ebms3Error;
 import com.helger.phase4.ebms3header.Ebms3SignalMessage;
@@ -141,6 +144,8 @@ public interface IAS4ServletMessageProcessorSPI extends Serializable
    *        <code>null</code> here in this callback, but non-<code>null</code>
    *        in the originally returned message.
    * @since v0.9.8
+   * @see #processAS4ResponseMessage(IAS4IncomingMessageMetadata,
+   *      IAS4MessageState, String, IHasInputStream, boolean)
    */
   default void processAS4ResponseMessage (@Nonnull final IAS4IncomingMessageMetadata aMessageMetadata,
                                           @Nonnull final IAS4MessageState aState,
@@ -150,4 +155,48 @@ public interface IAS4ServletMessageProcessorSPI extends Serializable
   {
     // Do nothing for backwards compatibility
   }
+
+  /**
+   * Optional callback to process a response message. Compared to
+   * {@link #processAS4ResponseMessage(IAS4IncomingMessageMetadata, IAS4MessageState, String, byte[], boolean)}
+   * the response is not provided as a byte array but as a view on the already
+   * rendered response, that can be read as often as needed. The content is
+   * exactly what is sent back to the client. By default the content is read
+   * once and passed to the byte array based version.
+   *
+   * @param aMessageMetadata
+   *        Incoming message metadata. Never <code>null</code>.
+   * @param aState
+   *        The current message state. Can be used to determine all other things
+   *        potentially necessary for processing the response message. Never
+   *        <code>null</code>.
+   * @param sResponseMessageID
+   *        The AS4 message ID of the response. Neither <code>null</code> nor
+   *        empty.
+   * @param aResponsePayload
+   *        The response payload to be written. May be <code>null</code> for
+   *        several reasons.
+   * @param bResponsePayloadIsAvailable
+   *        This indicates if a response payload is available at all. If this is
+   *        <code>false</code> than the response payload is <code>null</code>.
+   *        Special case: if this is <code>true</code> and the response payload
+   *        is <code>null</code> than the response could not be rendered for the
+   *        SPIs.
+   * @since 2.1.3
+   */
+  default void processAS4ResponseMessage (@Nonnull final IAS4IncomingMessageMetadata aMessageMetadata,
+                                          @Nonnull final IAS4MessageState aState,
+                                          @Nonnull @Nonempty final String sResponseMessageID,
+                                          @Nullable final IHasInputStream aResponsePayload,
+                                          final boolean bResponsePayloadIsAvailable)
+  {
+    byte [] aResponseBytes = null;
+    if (aResponsePayload != null)
+    {
+      final InputStream aIS = aResponsePayload.getInputStream ();
+      if (aIS != null)
+        aResponseBytes = StreamHelper.getAllBytes (aIS);
+    }
+    processAS4ResponseMessage (aMessageMetadata, aState, sResponseMessageID, aResponseBytes, bResponsePayloadIsAvailable);
+  }
 }
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.tracing;
+
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.callback.IThrowingRunnable;
+import com.helger.commons.http.HttpHeaderMap;
+
+/**
+ * This class holds the global tracer. By default no tracer is installed and a
+ * no-op span is returned, so that the instrumentation of the processing
+ * pipeline has no measurable overhead.<br>
+ * Usage pattern:
+ *
+ * <pre>
+ * try (final IAS4Span aSpan = AS4TracingManager.startSpan (AS4TracingManager.SPAN_X, EAS4SpanKind.INTERNAL))
+ * {
+ *   // do the work
+ * }
+ * </pre>
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@ThreadSafe
+public final class AS4TracingManager
+{
+  /** Sending of a message via a sender builder */
+  public static final String SPAN_SEND = "phase4.send";
+  /** A single outgoing HTTP request */
+  public static final String SPAN_HTTP_POST = "phase4.http.post";
+  /** Handling of an incoming message */
+  public static final String SPAN_RECEIVE = "phase4.receive";
+  /** Invocation of a single message processor SPI */
+  public static final String SPAN_SPI = "phase4.spi";
+  /** Asynchronous processing of an incoming message */
+  public static final String SPAN_ASYNC_PROCESSING = "phase4.async.processing";
+  /** Processing of an inbound queue entry */
+  public static final String SPAN_INBOUND_QUEUE = "phase4.inboundqueue.process";
+  /** A single sending attempt of an outbox entry */
+  public static final String SPAN_OUTBOX_ATTEMPT = "phase4.outbox.attempt";
+
+  /** The URL of an outgoing request */
+  public static final String ATTR_URL = "url.full";
+  /** The class name of the invoked SPI */
+  public static final String ATTR_SPI_CLASS = "phase4.spi.class";
+  /** The phase4 internal ID of an incoming message */
+  public static final String ATTR_INCOMING_ID = "phase4.incoming.id";
+
+  private static final class NoOpSpan implements IAS4Span
+  {
+    @Nonnull
+    public IAS4Span setAttribute (@Nonnull @Nonempty final String sKey, @Nullable final String sValue)
+    {
+      return this;
+    }
+
+    public void recordException (@Nonnull final Throwable t)
+    {}
+
+    public void close ()
+    {}
+  }
+
+  /** The span that is used if no tracer is installed */
+  public static final IAS4Span NO_OP_SPAN = new NoOpSpan ();
+
+  // Volatile instead of a lock, because it is read on every span
+  private static volatile IAS4Tracer s_aTracer;
+
+  private AS4TracingManager ()
+  {}
+
+  /**
+   * @return The tracer currently installed. May be <code>null</code>.
+   */
+  @Nullable
+  public static IAS4Tracer getTracer ()
+  {
+    return s_aTracer;
+  }
+
+  /**
+   * Set the tracer to be globally used.
+   *
+   * @param aTracer
+   *        The new tracer. May be <code>null</code> to disable tracing.
+   */
+  public static void setTracer (@Nullable final IAS4Tracer aTracer)
+  {
+    s_aTracer = aTracer;
+  }
+
+  /**
+   * @return <code>true</code> if a tracer is installed.
+   */
+  public static boolean isEnabled ()
+  {
+    return s_aTracer != null;
+  }
+
+  /**
+   * Start a new span that is a child of the current span.
+   *
+   * @param sSpanName
+   *        The name of the span. May neither be <code>null</code> nor empty.
+   * @param eKind
+   *        The span kind. May not be <code>null</code>.
+   * @return The new span or {@link #NO_OP_SPAN} if no tracer is installed.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  public static IAS4Span startSpan (@Nonnull @Nonempty final String sSpanName, @Nonnull final EAS4SpanKind eKind)
+  {
+    final IAS4Tracer aTracer = s_aTracer;
+    if (aTracer == null)
+      return NO_OP_SPAN;
+    return aTracer.startSpan (sSpanName, eKind, null);
+  }
+
+  /**
+   * Start a new span, that is a child of the trace context propagated in the
+   * HTTP headers of the remote caller.
+   *
+   * @param sSpanName
+   *        The name of the span. May neither be <code>null</code> nor empty.
+   * @param eKind
+   *        The span kind. May not be <code>null</code>.
+   * @param aRemoteHttpHeaders
+   *        The HTTP headers of the remote caller. May not be
+   *        <code>null</code>.
+   * @return The new span or {@link #NO_OP_SPAN} if no tracer is installed.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  public static IAS4Span startSpan (@Nonnull @Nonempty final String sSpanName,
+                                    @Nonnull final EAS4SpanKind eKind,
+                                    @Nonnull final HttpHeaderMap aRemoteHttpHeaders)
+  {
+    final IAS4Tracer aTracer = s_aTracer;
+    if (aTracer == null)
+      return NO_OP_SPAN;
+    return aTracer.startSpan (sSpanName, eKind, aRemoteHttpHeaders::getFirstHeaderValue);
+  }
+
+  /**
+   * Inject the current trace context into the HTTP headers of an outgoing
+   * request. Does nothing if no tracer is installed.
+   *
+   * @param aHeaderSetter
+   *        The consumer that sets an HTTP header (name and value). May not be
+   *        <code>null</code>.
+   */
+  public static void injectContext (@Nonnull final BiConsumer <String, String> aHeaderSetter)
+  {
+    final IAS4Tracer aTracer = s_aTracer;
+    if (aTracer != null)
+      aTracer.injectContext (aHeaderSetter);
+  }
+
+  /**
+   * Wrap the provided runnable so that it runs in the trace context that is
+   * current when this method is called.
+   *
+   * @param aRunnable
+   *        The runnable to wrap. May not be <code>null</code>.
+   * @return The wrapped runnable or the original one, if no tracer is
+   *         installed. Never <code>null</code>.
+   */
+  @Nonnull
+  public static Runnable wrap (@Nonnull final Runnable aRunnable)
+  {
+    ValueEnforcer.notNull (aRunnable, "Runnable");
+
+    final IAS4Tracer aTracer = s_aTracer;
+    if (aTracer == null)
+      return aRunnable;
+
+    final IAS4TraceContext aContext = aTracer.getCurrentContext ();
+    return () -> {
+      try (final IAS4TraceScope aScope = aContext.makeCurrent ())
+      {
+        aRunnable.run ();
+      }
+    };
+  }
+
+  /**
+   * Wrap the provided runnable so that it runs in the trace context that is
+   * current when this method is called.
+   *
+   * @param <EXTYPE>
+   *        The exception type that may be thrown
+   * @param aRunnable
+   *        The runnable to wrap. May not be <code>null</code>.
+   * @return The wrapped runnable or the original one, if no tracer is
+   *         installed. Never <code>null</code>.
+   */
+  @Nonnull
+  public static <EXTYPE extends Exception> IThrowingRunnable <EXTYPE> wrapThrowing (@Nonnull final IThrowingRunnable <EXTYPE> aRunnable)
+  {
+    ValueEnforcer.notNull (aRunnable, "Runnable");
+
+    final IAS4Tracer aTracer = s_aTracer;
+    if (aTracer == null)
+      return aRunnable;
+
+    final IAS4TraceContext aContext = aTracer.getCurrentContext ();
+    return () -> {
+      try (final IAS4TraceScope aScope = aContext.makeCurrent ())
+      {
+        aRunnable.run ();
+      }
+    };
+  }
+
+  /**
+   * Wrap the provided executor so that all tasks run in the trace context that
+   * is current when they are submitted.
+   *
+   * @param aExecutor
+   *        The executor to wrap. May not be <code>null</code>.
+   * @return The wrapped executor or the original one, if no tracer is
+   *         installed. Never <code>null</code>.
+   */
+  @Nonnull
+  public static Executor wrapExecutor (@Nonnull final Executor aExecutor)
+  {
+    ValueEnforcer.notNull (aExecutor, "Executor");
+
+    if (s_aTracer == null)
+      return aExecutor;
+    return r -> aExecutor.execute (wrap (r));
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.tracing;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.Nonempty;
+
+/**
+ * A single tracing span, created by
+ * {@link IAS4Tracer#startSpan(String, EAS4SpanKind, java.util.function.Function)}.
+ * The span is the current span of the creating thread until it is closed, so
+ * it should always be used in a try-with-resources block.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+public interface IAS4Span extends AutoCloseable
+{
+  /**
+   * Set a span attribute.
+   *
+   * @param sKey
+   *        The attribute key. May neither be <code>null</code> nor empty.
+   * @param sValue
+   *        The attribute value. May be <code>null</code> in which case the
+   *        attribute is not set.
+   * @return this for chaining
+   */
+  @Nonnull
+  IAS4Span setAttribute (@Nonnull @Nonempty String sKey, @Nullable String sValue);
+
+  /**
+   * Record an exception and mark the span as failed.
+   *
+   * @param t
+   *        The exception that occurred. May not be <code>null</code>.
+   */
+  void recordException (@Nonnull Throwable t);
+
+  /**
+   * End the span and restore the previously current span. Must be called
+   * exactly once on the creating thread.
+   */
+  void close ();
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.tracing;
+
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.Nonempty;
+
+/**
+ * Interface for creating the tracing spans of the AS4 processing pipeline. An
+ * implementation can be installed via
+ * {@link AS4TracingManager#setTracer(IAS4Tracer)}. The methods map directly to
+ * the OpenTelemetry API (<code>Tracer</code>, <code>TextMapPropagator</code>
+ * and <code>Context</code>), so that a binding is only a thin adapter and the
+ * exporter is configured via the OpenTelemetry SDK. Implementations must be
+ * thread-safe.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+public interface IAS4Tracer
+{
+  /**
+   * Start a new span and make it the current span of the calling thread.
+   *
+   * @param sSpanName
+   *        The name of the span. May neither be <code>null</code> nor empty.
+   * @param eKind
+   *        The span kind. May not be <code>null</code>.
+   * @param aRemoteParentHeaderGetter
+   *        If present, the parent context should be extracted from the HTTP
+   *        headers of the remote caller, that are accessible via this function
+   *        (header name to first header value). If <code>null</code> the
+   *        current context is the parent.
+   * @return The new span. Never <code>null</code>.
+   */
+  @Nonnull
+  IAS4Span startSpan (@Nonnull @Nonempty String sSpanName,
+                      @Nonnull EAS4SpanKind eKind,
+                      @Nullable Function <String, String> aRemoteParentHeaderGetter);
+
+  /**
+   * Inject the current context into the HTTP headers of an outgoing request.
+   *
+   * @param aHeaderSetter
+   *        The consumer that sets an HTTP header (name and value). May not be
+   *        <code>null</code>.
+   */
+  void injectContext (@Nonnull BiConsumer <String, String> aHeaderSetter);
+
+  /**
+   * @return The current context of the calling thread, so that it can be made
+   *         current on another thread. Never <code>null</code>.
+   */
+  @Nonnull
+  IAS4TraceContext getCurrentContext ();
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.phase4.config.AS4Configuration;
+
+/**
+ * Central place to determine the {@link Executor} used for asynchronous work
+ * inside phase4, like asynchronous responses and asynchronous sending. If
+ * configured via {@link AS4Configuration#isUseVirtualThreads()} and the Java
+ * runtime supports it (Java 21+), a virtual thread per task executor is used.
+ * Alternatively a custom executor can be set programmatically.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@ThreadSafe
+public final class AS4ExecutorHelper
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4ExecutorHelper.class);
+
+  // Resolved via reflection, because phase4 is compiled for Java 11
+  private static final Method VIRTUAL_EXECUTOR_FACTORY;
+  static
+  {
+    Method aMethod = null;
+    try
+    {
+      aMethod = Executors.class.getMethod ("newVirtualThreadPerTaskExecutor");
+    }
+    catch (final NoSuchMethodException ex)
+    {
+      // Java runtime too old
+    }
+    VIRTUAL_EXECUTOR_FACTORY = aMethod;
+  }
+
+  private static final SimpleReadWriteLock RW_LOCK = new SimpleReadWriteLock ();
+  @GuardedBy ("RW_LOCK")
+  private static boolean s_bCustomExecutorInitialized = false;
+  @GuardedBy ("RW_LOCK")
+  private static Executor s_aCustomExecutor;
+  @GuardedBy ("RW_LOCK")
+  private static ExecutorService s_aFallbackExecutor;
+
+  private AS4ExecutorHelper ()
+  {}
+
+  /**
+   * @return <code>true</code> if the current Java runtime supports virtual
+   *         threads, <code>false</code> if not.
+   */
+  public static boolean isVirtualThreadSupported ()
+  {
+    return VIRTUAL_EXECUTOR_FACTORY != null;
+  }
+
+  /**
+   * Create a new executor that starts a new virtual thread for each task.
+   *
+   * @return <code>null</code> if the current Java runtime doesn't support
+   *         virtual threads.
+   */
+  @Nullable
+  public static ExecutorService createVirtualThreadPerTaskExecutor ()
+  {
+    if (VIRTUAL_EXECUTOR_FACTORY == null)
+      return null;
+    try
+    {
+      return (ExecutorService) VIRTUAL_EXECUTOR_FACTORY.invoke (null);
+    }
+    catch (final ReflectiveOperationException ex)
+    {
+      LOGGER.error ("Failed to create virtual thread executor", ex);
+      return null;
+    }
+  }
+
+  /**
+   * @return The custom executor to be used for asynchronous work. If none was
+   *         set explicitly, and virtual threads are enabled in the
+   *         configuration and supported by the runtime, a virtual thread
+   *         executor is returned. May be <code>null</code> to indicate that the
+   *         built-in defaults should be used.
+   */
+  @Nullable
+  public static Executor getCustomExecutor ()
+  {
+    if (RW_LOCK.readLockedBoolean ( () -> s_bCustomExecutorInitialized))
+      return RW_LOCK.readLockedGet ( () -> s_aCustomExecutor);
+
+    return RW_LOCK.writeLockedGet ( () -> {
+      if (!s_bCustomExecutorInitialized)
+      {
+        s_bCustomExecutorInitialized = true;
+        if (AS4Configuration.isUseVirtualThreads ())
+        {
+          s_aCustomExecutor = createVirtualThreadPerTaskExecutor ();
+          if (s_aCustomExecutor != null)
+            LOGGER.info ("Using virtual threads for asynchronous phase4 processing");
+          else
+            LOGGER.warn ("Virtual threads are enabled in the configuration but not supported by Java " +
+                         System.getProperty ("java.version"));
+        }
+      }
+      return s_aCustomExecutor;
+    });
+  }
+
+  /**
+   * Set the custom executor to be used for asynchronous work. This overrides
+   * the configuration.
+   *
+   * @param aExecutor
+   *        The executor to use. May be <code>null</code> to use the built-in
+   *        defaults. The caller is responsible for shutting it down.
+   */
+  public static void setCustomExecutor (@Nullable final Executor aExecutor)
+  {
+    RW_LOCK.writeLocked ( () -> {
+      s_aCustomExecutor = aExecutor;
+      s_bCustomExecutorInitialized = true;
+    });
+  }
+
+  /**
+   * @return The custom executor if present, or a shared cached thread pool
+   *         with daemon threads otherwise. Never <code>null</code>.
+   * @see #getCustomExecutor()
+   */
+  @Nonnull
+  public static Executor getExecutor ()
+  {
+    final Executor ret = getCustomExecutor ();
+    if (ret != null)
+      return ret;
+
+    final ExecutorService aFallback = RW_LOCK.readLockedGet ( () -> s_aFallbackExecutor);
+    if (aFallback != null)
+      return aFallback;
+
+    return RW_LOCK.writeLockedGet ( () -> {
+      if (s_aFallbackExecutor == null)
+        s_aFallbackExecutor = Executors.newCachedThreadPool (new BasicThreadFactory.Builder ().namingPattern ("phase4-async-%d")
+                                                                                              .daemon (true)
+                                                                                              .build ());
+      return s_aFallbackExecutor;
+    });
+  }
+}
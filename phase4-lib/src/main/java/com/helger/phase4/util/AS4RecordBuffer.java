@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.file.FileOperations;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+
+/**
+ * An {@link OutputStream} that collects the payload of a single
+ * {@link AS4RecordSegment} record. The data is kept in memory up to a
+ * threshold and moved to a temporary file afterwards, so that large records
+ * are never held in memory completely. Use
+ * {@link #appendTo(AS4RecordSegment, boolean)} to append the collected data to
+ * a segment. Closing the buffer deletes the temporary file.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@NotThreadSafe
+public class AS4RecordBuffer extends OutputStream
+{
+  /** The default number of bytes that are kept in memory */
+  public static final int DEFAULT_MAX_IN_MEMORY_BYTES = 256 * CGlobal.BYTES_PER_KILOBYTE;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4RecordBuffer.class);
+
+  private final int m_nMaxInMemoryBytes;
+  private NonBlockingByteArrayOutputStream m_aBAOS = new NonBlockingByteArrayOutputStream ();
+  private File m_aFile;
+  private OutputStream m_aFileOS;
+  private long m_nLength = 0;
+  private boolean m_bClosed = false;
+
+  /**
+   * Constructor using {@link #DEFAULT_MAX_IN_MEMORY_BYTES}.
+   */
+  public AS4RecordBuffer ()
+  {
+    this (DEFAULT_MAX_IN_MEMORY_BYTES);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param nMaxInMemoryBytes
+   *        The maximum number of bytes to keep in memory before switching to a
+   *        temporary file. Must be &ge; 0.
+   */
+  public AS4RecordBuffer (@Nonnegative final int nMaxInMemoryBytes)
+  {
+    ValueEnforcer.isGE0 (nMaxInMemoryBytes, "MaxInMemoryBytes");
+    m_nMaxInMemoryBytes = nMaxInMemoryBytes;
+  }
+
+  private void _checkNotClosed ()
+  {
+    if (m_bClosed)
+      throw new IllegalStateException ("The record buffer is already closed");
+  }
+
+  @Override
+  public void write (final int b) throws IOException
+  {
+    write (new byte [] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+  {
+    _checkNotClosed ();
+    if (m_aFileOS == null && m_aBAOS.size () + nLen > m_nMaxInMemoryBytes)
+    {
+      // Switch to a temporary file
+      m_aFile = File.createTempFile ("phase4-record-", ".tmp", AS4ResourceHelper.getTempDir ());
+      m_aFileOS = FileHelper.getBufferedOutputStream (m_aFile);
+      if (m_aFileOS == null)
+        throw new IOException ("Failed to open temporary file '" + m_aFile.getAbsolutePath () + "' for writing");
+      m_aBAOS.writeTo (m_aFileOS);
+      m_aBAOS = null;
+    }
+    if (m_aFileOS != null)
+      m_aFileOS.write (aBuf, nOfs, nLen);
+    else
+      m_aBAOS.write (aBuf, nOfs, nLen);
+    m_nLength += nLen;
+  }
+
+  @Override
+  public void flush () throws IOException
+  {
+    if (m_aFileOS != null)
+      m_aFileOS.flush ();
+  }
+
+  /**
+   * @return The number of bytes written so far.
+   */
+  @Nonnegative
+  public long getLength ()
+  {
+    return m_nLength;
+  }
+
+  /**
+   * @return <code>true</code> if the data was moved to a temporary file,
+   *         <code>false</code> if it is still in memory.
+   */
+  public boolean isSpilled ()
+  {
+    return m_aFile != null;
+  }
+
+  /**
+   * Get a new input stream on all data written so far. This flushes the
+   * buffer.
+   *
+   * @return A new input stream. Never <code>null</code>. The caller is
+   *         responsible for closing it.
+   * @throws IOException
+   *         In case the temporary file cannot be read
+   */
+  @Nonnull
+  public InputStream getInputStream () throws IOException
+  {
+    _checkNotClosed ();
+    if (m_aFile == null)
+      return new NonBlockingByteArrayInputStream (m_aBAOS.directGetBuffer (), 0, m_aBAOS.size ());
+
+    m_aFileOS.flush ();
+    final InputStream ret = FileHelper.getBufferedInputStream (m_aFile);
+    if (ret == null)
+      throw new IOException ("Failed to open temporary file '" + m_aFile.getAbsolutePath () + "' for reading");
+    return ret;
+  }
+
+  /**
+   * Append all data written so far as a single record to the provided
+   * segment.
+   *
+   * @param aSegment
+   *        The segment to append to. May not be <code>null</code>.
+   * @param bSync
+   *        <code>true</code> to force the record to disk before returning.
+   * @return The file offset of the record payload.
+   * @throws IOException
+   *         In case of a read or write error
+   */
+  public long appendTo (@Nonnull final AS4RecordSegment aSegment, final boolean bSync) throws IOException
+  {
+    ValueEnforcer.notNull (aSegment, "Segment");
+    try (final InputStream aIS = getInputStream ())
+    {
+      return aSegment.append (aIS, m_nLength, bSync);
+    }
+  }
+
+  /**
+   * Release all resources and delete the temporary file, if any. The buffer
+   * cannot be used afterwards.
+   */
+  @Override
+  public void close ()
+  {
+    if (!m_bClosed)
+    {
+      m_bClosed = true;
+      StreamHelper.close (m_aFileOS);
+      m_aFileOS = null;
+      m_aBAOS = null;
+      if (m_aFile != null && FileOperations.deleteFileIfExisting (m_aFile).isFailure ())
+        LOGGER.warn ("Failed to delete temporary record file '" + m_aFile.getAbsolutePath () + "'");
+    }
+  }
+}
@@ -0,0 +1,583 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.util;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.WillNotClose;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.io.file.FileOperations;
+import com.helger.commons.io.stream.NonBlockingBufferedInputStream;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A single append-only segment file of length prefixed, checksummed records.
+ * Each record consists of the payload length (4 bytes), the CRC32 checksum of
+ * the payload (4 bytes) and the payload itself. The payload format is up to
+ * the caller. Records are only appended, never modified. Reading a record at a
+ * known offset (see {@link #openRecordStream(File, long, int)}) is possible
+ * concurrently to appending. A trailing incomplete or corrupt record (e.g.
+ * after a crash) is cut off when the segment is replayed.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@ThreadSafe
+public class AS4RecordSegment implements Closeable
+{
+  /**
+   * Callback interface for replaying the records of a segment.
+   *
+   * @author Philip Helger
+   */
+  @FunctionalInterface
+  public interface IRecordCallback
+  {
+    /**
+     * Invoked for every valid record of the segment, in the order they were
+     * written. The checksum was already verified.
+     *
+     * @param nPayloadOffset
+     *        The file offset of the record payload.
+     * @param nLength
+     *        The payload length. Always &gt; 0.
+     * @param aPayloadIS
+     *        A stream bounded to the record payload. Never <code>null</code>.
+     *        Only valid during the callback. Doesn't need to be read
+     *        completely and must not be closed.
+     * @throws IOException
+     *         In case the record cannot be interpreted
+     */
+    void onRecord (long nPayloadOffset,
+                   @Nonnegative int nLength,
+                   @Nonnull @WillNotClose InputStream aPayloadIS) throws IOException;
+  }
+
+  /**
+   * An input stream that reads exactly the payload of a single record from a
+   * file channel and verifies the checksum when the end of the payload is
+   * reached.
+   *
+   * @author Philip Helger
+   */
+  private static final class RecordInputStream extends InputStream
+  {
+    private final FileChannel m_aChannel;
+    private final boolean m_bCloseChannel;
+    private final int m_nExpectedCRC;
+    private final CRC32 m_aCRC = new CRC32 ();
+    private final String m_sDescription;
+    private long m_nPos;
+    private long m_nRemaining;
+    private boolean m_bClosed = false;
+
+    RecordInputStream (@Nonnull final FileChannel aChannel,
+                       final boolean bCloseChannel,
+                       final long nPayloadOffset,
+                       final int nLength,
+                       final int nExpectedCRC,
+                       @Nonnull final String sDescription)
+    {
+      m_aChannel = aChannel;
+      m_bCloseChannel = bCloseChannel;
+      m_nExpectedCRC = nExpectedCRC;
+      m_sDescription = sDescription;
+      m_nPos = nPayloadOffset;
+      m_nRemaining = nLength;
+    }
+
+    @Override
+    public int read () throws IOException
+    {
+      final byte [] aBuf = new byte [1];
+      final int nRead = read (aBuf, 0, 1);
+      return nRead < 0 ? -1 : aBuf[0] & 0xff;
+    }
+
+    @Override
+    public int read (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+    {
+      ValueEnforcer.isArrayOfsLen (aBuf, nOfs, nLen);
+      if (m_bClosed)
+        throw new IOException ("The record stream is already closed");
+      if (nLen == 0)
+        return 0;
+      if (m_nRemaining == 0)
+        return -1;
+
+      final ByteBuffer aBuffer = ByteBuffer.wrap (aBuf, nOfs, (int) Math.min (nLen, m_nRemaining));
+      final int nRead = m_aChannel.read (aBuffer, m_nPos);
+      if (nRead < 0)
+        throw new EOFException ("Unexpected end of " + m_sDescription + " with " + m_nRemaining + " bytes missing");
+      m_aCRC.update (aBuf, nOfs, nRead);
+      m_nPos += nRead;
+      m_nRemaining -= nRead;
+      if (m_nRemaining == 0 && (int) m_aCRC.getValue () != m_nExpectedCRC)
+        throw new IOException ("Record checksum mismatch of " + m_sDescription);
+      return nRead;
+    }
+
+    @Override
+    public int available ()
+    {
+      return (int) Math.min (m_nRemaining, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void close () throws IOException
+    {
+      if (!m_bClosed)
+      {
+        m_bClosed = true;
+        if (m_bCloseChannel)
+          m_aChannel.close ();
+      }
+    }
+  }
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4RecordSegment.class);
+  private static final int RECORD_HEADER_SIZE = 8;
+  private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  private final long m_nIndex;
+  private final File m_aFile;
+  @GuardedBy ("m_aRWLock")
+  private FileChannel m_aChannel;
+  @GuardedBy ("m_aRWLock")
+  private long m_nSize = 0;
+
+  /**
+   * Constructor
+   *
+   * @param nIndex
+   *        The index of the segment. Segments are replayed in the order of
+   *        their indices.
+   * @param aFile
+   *        The segment file. May not be <code>null</code>. Is created if it
+   *        does not exist.
+   */
+  public AS4RecordSegment (@Nonnegative final long nIndex, @Nonnull final File aFile)
+  {
+    ValueEnforcer.isGE0 (nIndex, "Index");
+    ValueEnforcer.notNull (aFile, "File");
+    m_nIndex = nIndex;
+    m_aFile = aFile;
+  }
+
+  /**
+   * @return The index of the segment as provided in the constructor.
+   */
+  @Nonnegative
+  public final long getIndex ()
+  {
+    return m_nIndex;
+  }
+
+  /**
+   * @return The segment file as provided in the constructor. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final File getFile ()
+  {
+    return m_aFile;
+  }
+
+  /**
+   * @return The number of valid bytes in this segment.
+   */
+  @Nonnegative
+  public long getSize ()
+  {
+    return m_aRWLock.readLockedLong ( () -> m_nSize);
+  }
+
+  @Nonnull
+  private static byte [] _readFully (@Nonnull final FileChannel aChannel, final long nOffset, final int nLength) throws IOException
+  {
+    final ByteBuffer aBuffer = ByteBuffer.allocate (nLength);
+    long nPos = nOffset;
+    while (aBuffer.hasRemaining ())
+    {
+      final int nRead = aChannel.read (aBuffer, nPos);
+      if (nRead < 0)
+        throw new EOFException ("Unexpected end of segment at position " + nPos);
+      nPos += nRead;
+    }
+    return aBuffer.array ();
+  }
+
+  private static int _getCRC (@Nonnull final byte [] aPayload)
+  {
+    final CRC32 aCRC = new CRC32 ();
+    aCRC.update (aPayload);
+    return (int) aCRC.getValue ();
+  }
+
+  /**
+   * Check if the payload of a record matches the checksum, without reading
+   * the payload into memory completely.
+   */
+  private static boolean _isValidPayload (@Nonnull final FileChannel aChannel,
+                                          final long nPayloadOffset,
+                                          final int nLength,
+                                          final int nCRC) throws IOException
+  {
+    final CRC32 aCRC = new CRC32 ();
+    final ByteBuffer aBuffer = ByteBuffer.allocate (Math.min (COPY_BUFFER_SIZE, nLength));
+    long nPos = nPayloadOffset;
+    long nRemaining = nLength;
+    while (nRemaining > 0)
+    {
+      aBuffer.clear ().limit ((int) Math.min (aBuffer.capacity (), nRemaining));
+      final int nRead = aChannel.read (aBuffer, nPos);
+      if (nRead < 0)
+        return false;
+      aCRC.update (aBuffer.array (), 0, nRead);
+      nPos += nRead;
+      nRemaining -= nRead;
+    }
+    return (int) aCRC.getValue () == nCRC;
+  }
+
+  private static long _replay (@Nonnull final FileChannel aChannel,
+                               @Nonnull final File aFile,
+                               final long nFileSize,
+                               @Nonnull final IRecordCallback aCallback) throws IOException
+  {
+    long nPos = 0;
+    while (nPos + RECORD_HEADER_SIZE <= nFileSize)
+    {
+      final ByteBuffer aHeader = ByteBuffer.wrap (_readFully (aChannel, nPos, RECORD_HEADER_SIZE));
+      final int nLength = aHeader.getInt ();
+      final int nCRC = aHeader.getInt ();
+      if (nLength <= 0 || nPos + RECORD_HEADER_SIZE + nLength > nFileSize)
+        break;
+      final long nPayloadOffset = nPos + RECORD_HEADER_SIZE;
+      if (!_isValidPayload (aChannel, nPayloadOffset, nLength, nCRC))
+        break;
+      // The channel stays open for the next record
+      aCallback.onRecord (nPayloadOffset,
+                          nLength,
+                          _openRecordStream (aChannel, false, aFile, nPayloadOffset, nLength));
+      nPos = nPayloadOffset + nLength;
+    }
+    return nPos;
+  }
+
+  /**
+   * Read all valid records of a segment file without opening it for writing.
+   * The checksum of each record is verified before the callback is invoked,
+   * but the payload is never read into memory completely. In
+   * contrast to {@link #open(IRecordCallback)} an incomplete trailing record
+   * is ignored but not cut off, so this may be used on a segment that is
+   * concurrently appended to.
+   *
+   * @param aFile
+   *        The segment file to read. May not be <code>null</code>.
+   * @param aCallback
+   *        The callback to be invoked for every valid record. May not be
+   *        <code>null</code>.
+   * @throws IOException
+   *         In case of a read error
+   */
+  public static void readAll (@Nonnull final File aFile, @Nonnull final IRecordCallback aCallback) throws IOException
+  {
+    ValueEnforcer.notNull (aFile, "File");
+    ValueEnforcer.notNull (aCallback, "Callback");
+    try (final FileChannel aChannel = FileChannel.open (aFile.toPath (), StandardOpenOption.READ))
+    {
+      _replay (aChannel, aFile, aChannel.size (), aCallback);
+    }
+  }
+
+  @Nonnull
+  private static InputStream _openRecordStream (@Nonnull final FileChannel aChannel,
+                                                final boolean bCloseChannel,
+                                                @Nonnull final File aFile,
+                                                final long nPayloadOffset,
+                                                final int nLength) throws IOException
+  {
+    final String sDescription = "record at offset " + nPayloadOffset + " of '" + aFile.getAbsolutePath () + "'";
+    final ByteBuffer aHeader = ByteBuffer.wrap (_readFully (aChannel, nPayloadOffset - RECORD_HEADER_SIZE, RECORD_HEADER_SIZE));
+    final int nStoredLength = aHeader.getInt ();
+    final int nCRC = aHeader.getInt ();
+    if (nStoredLength != nLength)
+      throw new IOException ("Record length mismatch of " + sDescription);
+    return new NonBlockingBufferedInputStream (new RecordInputStream (aChannel,
+                                                                      bCloseChannel,
+                                                                      nPayloadOffset,
+                                                                      nLength,
+                                                                      nCRC,
+                                                                      sDescription));
+  }
+
+  /**
+   * Open a stream on the payload of a single record of a segment file without
+   * opening it for writing. Only the record header is read eagerly. The
+   * payload is read on demand and the checksum is verified when the end of the
+   * payload is reached - an {@link IOException} is thrown from the last read
+   * if it does not match.
+   *
+   * @param aFile
+   *        The segment file to read. May not be <code>null</code>.
+   * @param nPayloadOffset
+   *        The file offset of the record payload.
+   * @param nLength
+   *        The payload length. Must be &gt; 0.
+   * @return A new input stream that is bounded to the record payload. Never
+   *         <code>null</code>. The caller is responsible for closing it.
+   * @throws IOException
+   *         In case of a read error or if the record length does not match
+   */
+  @Nonnull
+  public static InputStream openRecordStream (@Nonnull final File aFile,
+                                              @Nonnegative final long nPayloadOffset,
+                                              @Nonnegative final int nLength) throws IOException
+  {
+    ValueEnforcer.notNull (aFile, "File");
+    ValueEnforcer.isTrue (nPayloadOffset >= RECORD_HEADER_SIZE, "PayloadOffset is too small");
+    ValueEnforcer.isGT0 (nLength, "Length");
+    final FileChannel aChannel = FileChannel.open (aFile.toPath (), StandardOpenOption.READ);
+    try
+    {
+      return _openRecordStream (aChannel, true, aFile, nPayloadOffset, nLength);
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      aChannel.close ();
+      throw ex;
+    }
+  }
+
+  /**
+   * Open the segment and replay all existing records. This method must be
+   * called exactly once before any other method is called.
+   *
+   * @param aCallback
+   *        The callback to be invoked for every valid record. May not be
+   *        <code>null</code>.
+   * @throws IOException
+   *         In case of a read or write error
+   */
+  public void open (@Nonnull final IRecordCallback aCallback) throws IOException
+  {
+    ValueEnforcer.notNull (aCallback, "Callback");
+    m_aRWLock.writeLockedThrowing ( () -> {
+      if (m_aChannel != null)
+        throw new IllegalStateException ("The segment is already open");
+
+      final FileChannel aChannel = FileChannel.open (m_aFile.toPath (),
+                                                     StandardOpenOption.CREATE,
+                                                     StandardOpenOption.READ,
+                                                     StandardOpenOption.WRITE);
+      try
+      {
+        final long nFileSize = aChannel.size ();
+        final long nPos = _replay (aChannel, m_aFile, nFileSize, aCallback);
+        if (nPos < nFileSize)
+        {
+          LOGGER.warn ("Cutting off " +
+                       (nFileSize - nPos) +
+                       " bytes of incomplete records from segment '" +
+                       m_aFile.getAbsolutePath () +
+                       "'");
+          aChannel.truncate (nPos);
+          aChannel.force (true);
+        }
+        m_aChannel = aChannel;
+        m_nSize = nPos;
+      }
+      catch (final IOException | RuntimeException ex)
+      {
+        aChannel.close ();
+        throw ex;
+      }
+    });
+  }
+
+  /**
+   * Append a new record.
+   *
+   * @param aPayload
+   *        The record payload. May neither be <code>null</code> nor empty.
+   * @param bSync
+   *        <code>true</code> to force the record to disk before returning.
+   * @return The file offset of the record payload.
+   * @throws IOException
+   *         In case of a write error
+   */
+  public long append (@Nonnull final byte [] aPayload, final boolean bSync) throws IOException
+  {
+    ValueEnforcer.notEmpty (aPayload, "Payload");
+
+    final ByteBuffer aBuffer = ByteBuffer.allocate (RECORD_HEADER_SIZE + aPayload.length);
+    aBuffer.putInt (aPayload.length).putInt (_getCRC (aPayload)).put (aPayload).flip ();
+
+    return m_aRWLock.writeLockedGetThrowing ( () -> {
+      if (m_aChannel == null)
+        throw new IllegalStateException ("The segment is not open");
+      final long nRecordOffset = m_nSize;
+      long nPos = nRecordOffset;
+      while (aBuffer.hasRemaining ())
+        nPos += m_aChannel.write (aBuffer, nPos);
+      if (bSync)
+        m_aChannel.force (false);
+      m_nSize = nPos;
+      return Long.valueOf (nRecordOffset + RECORD_HEADER_SIZE);
+    }).longValue ();
+  }
+
+  /**
+   * Append a new record, whose payload is read from the provided stream. The
+   * payload is copied to the segment in chunks, so it is never held in memory
+   * completely. The record header is written after the payload, so that an
+   * interrupted append is cut off on the next replay.
+   *
+   * @param aIS
+   *        The stream to read the payload from. May not be <code>null</code>.
+   *        Exactly <code>nLength</code> bytes are read. The stream is not
+   *        closed.
+   * @param nLength
+   *        The payload length. Must be &gt; 0 and &le;
+   *        {@link Integer#MAX_VALUE}.
+   * @param bSync
+   *        <code>true</code> to force the record to disk before returning.
+   * @return The file offset of the record payload.
+   * @throws IOException
+   *         In case of a read or write error
+   */
+  public long append (@Nonnull @WillNotClose final InputStream aIS,
+                      @Nonnegative final long nLength,
+                      final boolean bSync) throws IOException
+  {
+    ValueEnforcer.notNull (aIS, "InputStream");
+    ValueEnforcer.isBetweenInclusive (nLength, "Length", 1, Integer.MAX_VALUE);
+
+    return m_aRWLock.writeLockedGetThrowing ( () -> {
+      if (m_aChannel == null)
+        throw new IllegalStateException ("The segment is not open");
+      final long nRecordOffset = m_nSize;
+      try
+      {
+        final CRC32 aCRC = new CRC32 ();
+        final byte [] aBuf = new byte [(int) Math.min (COPY_BUFFER_SIZE, nLength)];
+        long nPos = nRecordOffset + RECORD_HEADER_SIZE;
+        long nRemaining = nLength;
+        while (nRemaining > 0)
+        {
+          final int nRead = aIS.read (aBuf, 0, (int) Math.min (aBuf.length, nRemaining));
+          if (nRead < 0)
+            throw new EOFException ("The record payload ended " + nRemaining + " bytes too early");
+          aCRC.update (aBuf, 0, nRead);
+          final ByteBuffer aChunk = ByteBuffer.wrap (aBuf, 0, nRead);
+          while (aChunk.hasRemaining ())
+            nPos += m_aChannel.write (aChunk, nPos);
+          nRemaining -= nRead;
+        }
+
+        // Header last
+        final ByteBuffer aHeader = ByteBuffer.allocate (RECORD_HEADER_SIZE);
+        aHeader.putInt ((int) nLength).putInt ((int) aCRC.getValue ()).flip ();
+        long nHeaderPos = nRecordOffset;
+        while (aHeader.hasRemaining ())
+          nHeaderPos += m_aChannel.write (aHeader, nHeaderPos);
+        if (bSync)
+          m_aChannel.force (false);
+        m_nSize = nPos;
+        return Long.valueOf (nRecordOffset + RECORD_HEADER_SIZE);
+      }
+      catch (final IOException | RuntimeException ex)
+      {
+        // Remove the partial record, so that the next append starts clean
+        try
+        {
+          m_aChannel.truncate (nRecordOffset);
+        }
+        catch (final IOException ex2)
+        {
+          ex.addSuppressed (ex2);
+        }
+        throw ex;
+      }
+    }).longValue ();
+  }
+
+  /**
+   * Force all records appended so far to disk. This may be called
+   * concurrently to {@link #append(byte[], boolean)}, so that multiple appends
+   * can share a single sync.
+   *
+   * @throws IOException
+   *         In case of a write error
+   */
+  public void sync () throws IOException
+  {
+    final FileChannel aChannel = m_aRWLock.readLockedGet ( () -> m_aChannel);
+    if (aChannel == null)
+      throw new IllegalStateException ("The segment is not open");
+    aChannel.force (false);
+  }
+
+  /**
+   * Close the segment and delete the underlying file.
+   *
+   * @throws IOException
+   *         In case of an error on closing
+   */
+  public void delete () throws IOException
+  {
+    close ();
+    if (FileOperations.deleteFileIfExisting (m_aFile).isFailure ())
+      throw new IOException ("Failed to delete segment '" + m_aFile.getAbsolutePath () + "'");
+  }
+
+  public void close () throws IOException
+  {
+    m_aRWLock.writeLockedThrowing ( () -> {
+      if (m_aChannel != null)
+      {
+        m_aChannel.close ();
+        m_aChannel = null;
+      }
+    });
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Index", m_nIndex).append ("File", m_aFile).getToString ();
+  }
+}
@@ -20,6 +20,9 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Nonnull;
@@ -35,12 +38,15 @@ import org.slf4j.LoggerFactory;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.ReturnsMutableCopy;
 import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsHashMap;
 import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsMap;
 import com.helger.commons.concurrent.SimpleReadWriteLock;
 import com.helger.commons.io.file.FileHelper;
 import com.helger.commons.io.file.FileIOError;
 import com.helger.commons.io.stream.StreamHelper;
 import com.helger.phase4.CAS4;
+import com.helger.phase4.http.AS4SpooledHttpEntity;
 
 /**
  * A resource manager that keeps track of temporary files and other closables
@@ -91,6 +97,9 @@ public class AS4ResourceHelper implements Closeable
   private final ICommonsList <File> m_aTempFiles = new CommonsArrayList <> ();
   @GuardedBy ("m_aRWLock")
   private final ICommonsList <Closeable> m_aCloseables = new CommonsArrayList <> ();
+  // Spooled entities by the hex digest of their content
+  @GuardedBy ("m_aRWLock")
+  private final ICommonsMap <String, AS4SpooledHttpEntity> m_aSpooledEntities = new CommonsHashMap <> ();
 
   public AS4ResourceHelper ()
   {}
@@ -188,6 +197,7 @@ public class AS4ResourceHelper implements Closeable
       final ICommonsList <File> aFiles = m_aRWLock.writeLockedGet ( () -> {
         final ICommonsList <File> ret = m_aTempFiles.getClone ();
         m_aTempFiles.clear ();
+        m_aSpooledEntities.clear ();
         return ret;
       });
       if (aFiles.isNotEmpty ())
@@ -254,4 +264,68 @@ public class AS4ResourceHelper implements Closeable
                            ContentType.parse (aSrcEntity.getContentType ()),
                            aSrcEntity.getContentEncoding ());
   }
+
+  /**
+   * Write the content of the provided {@link HttpEntity} exactly once to a
+   * spool file and create a repeatable entity with a known content length
+   * from it. Spooled entities are identified by the SHA-256 digest of their
+   * content, so spooling the same content twice reuses the existing spool
+   * file. The spool file is deleted when {@link #close()} is called.
+   *
+   * @param aSrcEntity
+   *        The source Http entity. May not be <code>null</code>. If it is
+   *        already a spooled entity, it is returned unchanged.
+   * @return A non-<code>null</code> Http entity that can be read more than
+   *         once and that always returns the same bytes.
+   * @throws IOException
+   *         on IO error
+   * @since 2.1.3
+   */
+  @Nonnull
+  public AS4SpooledHttpEntity createSpooledHttpEntity (@Nonnull final HttpEntity aSrcEntity) throws IOException
+  {
+    ValueEnforcer.notNull (aSrcEntity, "SrcEntity");
+
+    if (aSrcEntity instanceof AS4SpooledHttpEntity)
+      return (AS4SpooledHttpEntity) aSrcEntity;
+
+    final File aTempFile = createTempFile ();
+    final MessageDigest aMD;
+    try
+    {
+      aMD = MessageDigest.getInstance ("SHA-256");
+    }
+    catch (final NoSuchAlgorithmException ex)
+    {
+      throw new IllegalStateException ("SHA-256 is not supported", ex);
+    }
+
+    try (final OutputStream aOS = new DigestOutputStream (FileHelper.getBufferedOutputStream (aTempFile), aMD))
+    {
+      aSrcEntity.writeTo (aOS);
+    }
+
+    final byte [] aDigest = aMD.digest ();
+    final AS4SpooledHttpEntity aNewEntity = new AS4SpooledHttpEntity (aTempFile,
+                                                                      ContentType.parse (aSrcEntity.getContentType ()),
+                                                                      aSrcEntity.getContentEncoding (),
+                                                                      aDigest);
+    final AS4SpooledHttpEntity ret = m_aRWLock.writeLockedGet ( () -> m_aSpooledEntities.computeIfAbsent (aNewEntity.getDigestHex (),
+                                                                                                           k -> aNewEntity));
+    if (ret != aNewEntity)
+    {
+      // Same content was already spooled
+      AS4IOHelper.getFileOperationManager ().deleteFileIfExisting (aTempFile);
+    }
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Spooled " +
+                    aSrcEntity +
+                    " with " +
+                    ret.getContentLength () +
+                    " bytes to " +
+                    (ret == aNewEntity ? "new" : "existing") +
+                    " file " +
+                    ret.getFile ().getAbsolutePath ());
+    return ret;
+  }
 }
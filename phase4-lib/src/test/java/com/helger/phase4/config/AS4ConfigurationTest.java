@@ -17,12 +17,21 @@
 package com.helger.phase4.config;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.config.Config;
+import com.helger.config.IConfig;
+import com.helger.config.source.EConfigSourceType;
 import com.helger.config.source.IConfigurationSource;
+import com.helger.config.source.MultiConfigurationValueProvider;
+import com.helger.config.source.appl.ConfigurationSourceFunction;
 import com.helger.config.source.res.IConfigurationSourceResource;
 import com.helger.config.value.ConfiguredValue;
 
@@ -48,4 +57,47 @@ public final class AS4ConfigurationTest
     final IConfigurationSourceResource aCSR = (IConfigurationSourceResource) aCS;
     assertEquals ("phase4.properties", aCSR.getResource ().getPath ());
   }
+
+  @Test
+  public void testSnapshot ()
+  {
+    final AS4ConfigurationSnapshot aOldSnapshot = AS4Configuration.getSnapshot ();
+    assertSame (AS4Configuration.getConfig (), aOldSnapshot.getConfig ());
+    assertTrue (aOldSnapshot.isWSS4JSynchronizedSecurity ());
+    assertFalse (aOldSnapshot.isAllowRSA15KeyTransportAlgorithm ());
+
+    final ICommonsMap <String, String> aMap = new CommonsHashMap <> ();
+    aMap.put (AS4Configuration.PROPERTY_PHASE4_WSS4J_SYNCSECURITY, "false");
+    aMap.put (AS4Configuration.PROPERTY_WSS4J_ALLOW_RSA15_KEY_TRANSPORT_ALGORITHM, "true");
+    aMap.put ("phase4.incoming.duplicatedisposal.minutes", "42");
+    final MultiConfigurationValueProvider aVP = AS4Configuration.createPhase4ValueProvider ();
+    aVP.addConfigurationSource (new ConfigurationSourceFunction (aMap::get),
+                                EConfigSourceType.RESOURCE.getDefaultPriority () + 20);
+    final IConfig aNewConfig = new Config (aVP);
+
+    final IConfig aOldConfig = AS4Configuration.setConfig (aNewConfig);
+    try
+    {
+      assertSame (aOldSnapshot.getConfig (), aOldConfig);
+      final AS4ConfigurationSnapshot aNewSnapshot = AS4Configuration.getSnapshot ();
+      assertSame (aNewConfig, aNewSnapshot.getConfig ());
+      assertFalse (AS4Configuration.isWSS4JSynchronizedSecurity ());
+      assertTrue (AS4Configuration.isAllowRSA15KeyTransportAlgorithm ());
+      assertEquals (42, AS4Configuration.getIncomingDuplicateDisposalMinutes ());
+
+      // The old snapshot is unchanged
+      assertTrue (aOldSnapshot.isWSS4JSynchronizedSecurity ());
+
+      // Values are only resolved again on explicit request
+      aMap.put ("phase4.incoming.duplicatedisposal.minutes", "43");
+      assertEquals (42, AS4Configuration.getIncomingDuplicateDisposalMinutes ());
+      AS4Configuration.refreshSnapshot ();
+      assertEquals (43, AS4Configuration.getIncomingDuplicateDisposalMinutes ());
+    }
+    finally
+    {
+      AS4Configuration.setConfig (aOldConfig);
+    }
+    assertTrue (AS4Configuration.isWSS4JSynchronizedSecurity ());
+  }
 }
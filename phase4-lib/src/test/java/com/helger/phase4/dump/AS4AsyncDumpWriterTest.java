@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dump;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.WrappedOutputStream;
+import com.helger.phase4.messaging.EAS4MessageMode;
+import com.helger.phase4.messaging.IAS4IncomingMessageMetadata;
+import com.helger.phase4.servlet.IAS4MessageState;
+
+/**
+ * Test class for class {@link AS4AsyncDumpWriter}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4AsyncDumpWriterTest
+{
+  private static final Duration TIMEOUT = Duration.ofSeconds (10);
+
+  @Test
+  public void testWriteBehind () throws Exception
+  {
+    try (final AS4AsyncDumpWriter aWriter = new AS4AsyncDumpWriter (4, 7, EAS4DumpOverflowPolicy.BLOCK))
+    {
+      final ICommonsList <NonBlockingByteArrayOutputStream> aTargets = new CommonsArrayList <> ();
+      final ICommonsList <String> aExpected = new CommonsArrayList <> ();
+      final ICommonsList <OutputStream> aStreams = new CommonsArrayList <> ();
+      for (int i = 0; i < 5; ++i)
+      {
+        final NonBlockingByteArrayOutputStream aTarget = new NonBlockingByteArrayOutputStream ();
+        aTargets.add (aTarget);
+        aExpected.add ("");
+        aStreams.add (aWriter.createOutputStream ( () -> aTarget));
+      }
+
+      // Interleaved writes
+      long nTotal = 0;
+      for (int nRound = 0; nRound < 50; ++nRound)
+        for (int i = 0; i < aStreams.size (); ++i)
+        {
+          final String s = "Stream " + i + " round " + nRound + ";";
+          if ((nRound & 1) == 0)
+            aStreams.get (i).write (s.getBytes (StandardCharsets.ISO_8859_1));
+          else
+            for (final byte b : s.getBytes (StandardCharsets.ISO_8859_1))
+              aStreams.get (i).write (b);
+          aExpected.set (i, aExpected.get (i) + s);
+          nTotal += s.length ();
+        }
+      for (final OutputStream aOS : aStreams)
+        aOS.close ();
+
+      assertTrue (aWriter.waitUntilWritten (TIMEOUT));
+      for (int i = 0; i < aStreams.size (); ++i)
+        assertEquals (aExpected.get (i), aTargets.get (i).getAsString (StandardCharsets.ISO_8859_1));
+      assertEquals (nTotal, aWriter.getWrittenBytes ());
+      assertEquals (0, aWriter.getQueuedBytes ());
+      assertEquals (0, aWriter.getDroppedBytes ());
+      assertEquals (0, aWriter.getDroppedDumpCount ());
+      assertNotNull (aWriter.getMaxLag ());
+    }
+  }
+
+  @Test
+  public void testDropWhenFull () throws Exception
+  {
+    final CountDownLatch aBlockTarget = new CountDownLatch (1);
+    final NonBlockingByteArrayOutputStream aTarget = new NonBlockingByteArrayOutputStream ();
+    final byte [] aData = new byte [1000];
+    Arrays.fill (aData, (byte) 'x');
+
+    try (final AS4AsyncDumpWriter aWriter = new AS4AsyncDumpWriter (2, 10, EAS4DumpOverflowPolicy.DROP))
+    {
+      final AS4AsyncDumpWriter.DumpOutputStream aOS = aWriter.createOutputStream ( () -> new WrappedOutputStream (aTarget)
+      {
+        @Override
+        public void write (final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+        {
+          try
+          {
+            // Simulate a very slow disk
+            aBlockTarget.await (10, TimeUnit.SECONDS);
+          }
+          catch (final InterruptedException ex)
+          {
+            Thread.currentThread ().interrupt ();
+          }
+          super.write (aBuf, nOfs, nLen);
+        }
+      });
+      // Must not block
+      aOS.write (aData);
+      aOS.close ();
+      assertTrue (aOS.isDropped ());
+      assertEquals (1, aWriter.getDroppedDumpCount ());
+      assertTrue (aWriter.getDroppedBytes () > 0);
+
+      aBlockTarget.countDown ();
+      assertTrue (aWriter.waitUntilWritten (TIMEOUT));
+
+      // The dump is truncated but consistent
+      assertEquals (aData.length, aTarget.size () + aWriter.getDroppedBytes ());
+      assertEquals (aTarget.size (), aWriter.getWrittenBytes ());
+    }
+  }
+
+  @Test
+  public void testOutgoingDumper () throws Exception
+  {
+    final NonBlockingByteArrayOutputStream aTarget = new NonBlockingByteArrayOutputStream ();
+    final AtomicInteger aBegin = new AtomicInteger (0);
+    final AtomicInteger aEnd = new AtomicInteger (0);
+    final IAS4OutgoingDumper aSyncDumper = new IAS4OutgoingDumper ()
+    {
+      public OutputStream onBeginRequest (final EAS4MessageMode eMsgMode,
+                                          final IAS4IncomingMessageMetadata aMessageMetadata,
+                                          final IAS4MessageState aState,
+                                          final String sMessageID,
+                                          final HttpHeaderMap aCustomHeaders,
+                                          final int nTry)
+      {
+        aBegin.incrementAndGet ();
+        // Dump only the first message
+        return sMessageID.equals ("id1") ? aTarget : null;
+      }
+
+      @Override
+      public void onEndRequest (final EAS4MessageMode eMsgMode,
+                                final IAS4IncomingMessageMetadata aMessageMetadata,
+                                final IAS4MessageState aState,
+                                final String sMessageID)
+      {
+        aEnd.incrementAndGet ();
+      }
+    };
+
+    try (final AS4AsyncDumpWriter aWriter = new AS4AsyncDumpWriter ())
+    {
+      final AS4OutgoingDumperAsync aDumper = new AS4OutgoingDumperAsync (aSyncDumper, aWriter);
+      for (final String sID : new String [] { "id1", "id2" })
+      {
+        try (final OutputStream aOS = aDumper.onBeginRequest (EAS4MessageMode.REQUEST, null, null, sID, null, 0))
+        {
+          aOS.write (sID.getBytes (StandardCharsets.ISO_8859_1));
+        }
+        aDumper.onEndRequest (EAS4MessageMode.REQUEST, null, null, sID);
+      }
+      assertTrue (aWriter.waitUntilWritten (TIMEOUT));
+      assertEquals (2, aBegin.get ());
+      // Only for the dump that was really opened
+      assertEquals (1, aEnd.get ());
+      assertArrayEquals ("id1".getBytes (StandardCharsets.ISO_8859_1), aTarget.toByteArray ());
+    }
+  }
+
+  @Test (timeout = 30_000)
+  public void testBlockWhenWriterDied () throws Exception
+  {
+    final NonBlockingByteArrayOutputStream aTarget = new NonBlockingByteArrayOutputStream ();
+    final byte [] aData = new byte [1000];
+    Arrays.fill (aData, (byte) 'x');
+
+    try (final AS4AsyncDumpWriter aWriter = new AS4AsyncDumpWriter (2, 10, EAS4DumpOverflowPolicy.BLOCK))
+    {
+      // Let the writer thread die
+      aWriter.runAfter ( () -> Thread.currentThread ().interrupt ());
+
+      // Must not wait forever for the dead writer thread
+      final OutputStream aOS = aWriter.createOutputStream ( () -> aTarget);
+      aOS.write (aData);
+      aOS.close ();
+      assertTrue (aWriter.waitUntilWritten (TIMEOUT));
+
+      assertArrayEquals (aData, aTarget.toByteArray ());
+      assertEquals (aData.length, aWriter.getWrittenBytes ());
+      assertEquals (0, aWriter.getQueuedBytes ());
+      assertEquals (0, aWriter.getDroppedBytes ());
+    }
+  }
+
+  @Test
+  public void testWriteAfterClose () throws Exception
+  {
+    final NonBlockingByteArrayOutputStream aTarget = new NonBlockingByteArrayOutputStream ();
+    final AS4AsyncDumpWriter aWriter = new AS4AsyncDumpWriter ();
+    final OutputStream aOS = aWriter.createOutputStream ( () -> aTarget);
+    aOS.write ('a');
+    aOS.flush ();
+    aWriter.close ();
+    assertTrue (aWriter.isClosed ());
+
+    // Data is dropped, but closing still works
+    aOS.write ('b');
+    aOS.close ();
+    assertEquals ("a", aTarget.getAsString (StandardCharsets.ISO_8859_1));
+    assertEquals (1, aWriter.getDroppedBytes ());
+    assertFalse (aWriter.getWrittenBytes () == 0);
+  }
+}
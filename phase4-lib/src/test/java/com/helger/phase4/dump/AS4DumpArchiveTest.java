@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.dump;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.file.FileOperations;
+import com.helger.commons.io.file.SimpleFileIO;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.StringHelper;
+import com.helger.phase4.AS4TestRule;
+import com.helger.phase4.attachment.EAS4CompressionMode;
+import com.helger.phase4.messaging.EAS4MessageMode;
+import com.helger.phase4.servlet.AS4IncomingMessageMetadata;
+import com.helger.phase4.util.AS4RecordBuffer;
+
+/**
+ * Test class for class {@link AS4DumpArchive}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4DumpArchiveTest
+{
+  private static final File BASE_DIR = new File ("target/dump-archive-test");
+
+  @Rule
+  public final TestRule m_aTestRule = new AS4TestRule ();
+
+  @Before
+  public void cleanup ()
+  {
+    FileOperations.deleteDirRecursiveIfExisting (BASE_DIR);
+  }
+
+  private static void _write (final AS4DumpArchive aArchive, final String sID, final int nTry, final byte [] aContent) throws Exception
+  {
+    try (final OutputStream aOS = aArchive.createRecordStream (EAS4DumpDirection.OUTGOING,
+                                                               EAS4MessageMode.REQUEST,
+                                                               sID,
+                                                               nTry,
+                                                               Instant.now ()))
+    {
+      aOS.write (aContent);
+    }
+  }
+
+  @Test
+  public void testRoundTripWithIndex () throws Exception
+  {
+    final byte [] aContent = StringHelper.getRepeated ("Compressible dump content\n", 200)
+                                         .getBytes (StandardCharsets.ISO_8859_1);
+    try (final AS4DumpArchive aArchive = new AS4DumpArchive (BASE_DIR))
+    {
+      assertEquals (EAS4CompressionMode.GZIP, aArchive.getCompressionMode ());
+      assertNull (aArchive.getCurrentSegmentFile ());
+      for (int i = 0; i < 3; ++i)
+        _write (aArchive, "msg-" + i, i, aContent);
+      assertEquals (3, aArchive.getRecordCount ());
+      assertEquals (1, aArchive.getSegmentCount ());
+
+      final File aSegmentFile = aArchive.getCurrentSegmentFile ();
+      assertNotNull (aSegmentFile);
+      assertEquals (AS4DumpArchive.getSegmentFilename (0), aSegmentFile.getName ());
+      // Compressed
+      assertTrue (aSegmentFile.length () < aContent.length);
+
+      // Read via the index
+      final ICommonsList <String> aLines = new CommonsArrayList <> (SimpleFileIO.getAllFileLines (AS4DumpArchive.getIndexFile (aSegmentFile),
+                                                                                                   StandardCharsets.UTF_8));
+      assertEquals (3, aLines.size ());
+      for (int i = 0; i < 3; ++i)
+      {
+        final AS4DumpArchiveEntry aEntry = AS4DumpArchiveEntry.parseIndexLine (aSegmentFile.getName (), aLines.get (i));
+        assertNotNull (aEntry);
+        assertEquals ("msg-" + i, aEntry.getID ());
+        assertEquals (i, aEntry.getTry ());
+        assertEquals (EAS4DumpDirection.OUTGOING, aEntry.getDirection ());
+
+        final AS4DumpArchive.Record aRecord = AS4DumpArchive.readRecord (BASE_DIR, aEntry);
+        assertEquals ("msg-" + i, aRecord.getID ());
+        assertEquals (aContent.length, aRecord.getContentLength ());
+        assertArrayEquals (aContent, aRecord.getContentBytes ());
+      }
+
+      // Read sequentially without the index
+      final ICommonsList <AS4DumpArchiveEntry> aEntries = new CommonsArrayList <> ();
+      AS4DumpArchive.readSegment (aSegmentFile, (aEntry, aRecord) -> {
+        assertArrayEquals (aContent, aRecord.getContentBytes ());
+        aEntries.add (aEntry);
+      });
+      assertEquals (3, aEntries.size ());
+      assertEquals (aLines.getLast (), aEntries.getLast ().getAsIndexLine ());
+    }
+  }
+
+  @Test
+  public void testLargeRecordIsSpilled () throws Exception
+  {
+    // Incompressible and larger than the in-memory threshold
+    final byte [] aContent = new byte [AS4RecordBuffer.DEFAULT_MAX_IN_MEMORY_BYTES * 3 + 17];
+    new Random (42).nextBytes (aContent);
+    try (final AS4DumpArchive aArchive = new AS4DumpArchive (BASE_DIR))
+    {
+      _write (aArchive, "large", 0, aContent);
+      _write (aArchive, "small", 0, "small".getBytes (StandardCharsets.ISO_8859_1));
+
+      final ICommonsList <AS4DumpArchive.Record> aRecords = new CommonsArrayList <> ();
+      AS4DumpArchive.readSegment (aArchive.getCurrentSegmentFile (), (aEntry, aRecord) -> aRecords.add (aRecord));
+      assertEquals (2, aRecords.size ());
+      assertEquals ("large", aRecords.get (0).getID ());
+      assertEquals (aContent.length, aRecords.get (0).getContentLength ());
+      assertArrayEquals (aContent, aRecords.get (0).getContentBytes ());
+      assertEquals ("small", aRecords.get (1).getID ());
+    }
+  }
+
+  @Test
+  public void testCorruptRecordIsDetected () throws Exception
+  {
+    final byte [] aContent = new byte [AS4RecordBuffer.DEFAULT_MAX_IN_MEMORY_BYTES + 1];
+    new Random (4711).nextBytes (aContent);
+    final File aSegmentFile;
+    final ICommonsList <AS4DumpArchiveEntry> aEntries = new CommonsArrayList <> ();
+    try (final AS4DumpArchive aArchive = new AS4DumpArchive (BASE_DIR, 10_000_000, Duration.ofDays (1), null))
+    {
+      _write (aArchive, "corrupt", 0, aContent);
+      aSegmentFile = aArchive.getCurrentSegmentFile ();
+      AS4DumpArchive.readSegment (aSegmentFile, (aEntry, aRecord) -> aEntries.add (aEntry));
+    }
+    assertEquals (1, aEntries.size ());
+
+    // Flip the last content byte
+    try (final RandomAccessFile aRAF = new RandomAccessFile (aSegmentFile, "rw"))
+    {
+      aRAF.seek (aRAF.length () - 1);
+      final int nLast = aRAF.read ();
+      aRAF.seek (aRAF.length () - 1);
+      aRAF.write (~nLast);
+    }
+
+    // The header can still be read, but the content fails at the end
+    final AS4DumpArchive.Record aRecord = AS4DumpArchive.readRecord (BASE_DIR, aEntries.getFirst ());
+    assertEquals ("corrupt", aRecord.getID ());
+    try
+    {
+      aRecord.getContentBytes ();
+      fail ();
+    }
+    catch (final IOException ex)
+    {
+      assertTrue (ex.getMessage ().contains ("checksum"));
+    }
+
+    // Sequential reading stops at the corrupt record
+    final ICommonsList <AS4DumpArchiveEntry> aReread = new CommonsArrayList <> ();
+    AS4DumpArchive.readSegment (aSegmentFile, (aEntry, aRec) -> aReread.add (aEntry));
+    assertTrue (aReread.isEmpty ());
+  }
+
+  @Test
+  public void testRollover () throws Exception
+  {
+    final byte [] aContent = new byte [1000];
+    for (int i = 0; i < aContent.length; ++i)
+      aContent[i] = (byte) i;
+
+    try (final AS4DumpArchive aArchive = new AS4DumpArchive (BASE_DIR, 2500, Duration.ofDays (1), null))
+    {
+      for (int i = 0; i < 7; ++i)
+        _write (aArchive, "msg-" + i, 0, aContent);
+      // 3 records per segment
+      assertEquals (3, aArchive.getSegmentCount ());
+      assertEquals (AS4DumpArchive.getSegmentFilename (2), aArchive.getCurrentSegmentFile ().getName ());
+    }
+
+    // Reopening always starts a new segment
+    try (final AS4DumpArchive aArchive = new AS4DumpArchive (BASE_DIR, 2500, Duration.ofDays (1), null))
+    {
+      _write (aArchive, "msg-new", 0, aContent);
+      assertEquals (AS4DumpArchive.getSegmentFilename (3), aArchive.getCurrentSegmentFile ().getName ());
+    }
+
+    int nRecords = 0;
+    for (int i = 0; i < 4; ++i)
+    {
+      final ICommonsList <AS4DumpArchive.Record> aRecords = new CommonsArrayList <> ();
+      AS4DumpArchive.readSegment (new File (BASE_DIR, AS4DumpArchive.getSegmentFilename (i)),
+                                  (aEntry, aRecord) -> aRecords.add (aRecord));
+      for (final AS4DumpArchive.Record aRecord : aRecords)
+      {
+        assertNull (aRecord.getCompressionMode ());
+        assertArrayEquals (aContent, aRecord.getContentBytes ());
+      }
+      nRecords += aRecords.size ();
+    }
+    assertEquals (8, nRecords);
+  }
+
+  private static byte [] _createSoapDump (final String sMessageID, final String sRefToMessageID, final String sConversationID)
+  {
+    return ("Content-Type: application/soap+xml\r\n\r\n" +
+            "<S12:Envelope xmlns:S12=\"http://www.w3.org/2003/05/soap-envelope\"" +
+            " xmlns:eb=\"http://docs.oasis-open.org/ebxml-msg/ebms/v3.0/ns/core/200704/\"><S12:Header>" +
+            "<eb:Messaging S12:mustUnderstand=\"true\"><eb:UserMessage><eb:MessageInfo>" +
+            "<eb:Timestamp>2023-01-01T00:00:00Z</eb:Timestamp>" +
+            "<eb:MessageId>" +
+            sMessageID +
+            "</eb:MessageId>" +
+            (sRefToMessageID == null ? "" : "<eb:RefToMessageId>" + sRefToMessageID + "</eb:RefToMessageId>") +
+            "</eb:MessageInfo><eb:CollaborationInfo><eb:ConversationId>" +
+            sConversationID +
+            "</eb:ConversationId></eb:CollaborationInfo></eb:UserMessage></eb:Messaging></S12:Header>" +
+            "<S12:Body>" +
+            StringHelper.getRepeated ("payload ", 100) +
+            "</S12:Body></S12:Envelope>").getBytes (StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testIndex () throws Exception
+  {
+    try (final AS4DumpArchive aArchive = new AS4DumpArchive (BASE_DIR, 2000, Duration.ofDays (1), null))
+    {
+      aArchive.setIndex (AS4DumpArchiveIndex.load (BASE_DIR));
+      for (int i = 0; i < 10; ++i)
+        _write (aArchive, "id-" + i, 0, _createSoapDump ("msg-" + i, i > 0 ? "msg-" + (i - 1) : null, "conv-" + (i % 2)));
+      _write (aArchive, "no-ebms", 0, "Not a SOAP message".getBytes (StandardCharsets.ISO_8859_1));
+
+      final AS4DumpArchiveIndex aIndex = aArchive.getIndex ();
+      assertEquals (11, aIndex.getEntryCount ());
+      assertTrue (aArchive.getSegmentCount () > 1);
+
+      final ICommonsList <AS4DumpArchiveEntry> aEntries = aIndex.getAllEntriesOfMessageID ("msg-3");
+      assertEquals (1, aEntries.size ());
+      final AS4DumpArchiveEntry aEntry = aEntries.getFirst ();
+      assertEquals ("id-3", aEntry.getID ());
+      assertEquals ("msg-2", aEntry.getRefToMessageID ());
+      assertEquals ("conv-1", aEntry.getConversationID ());
+      assertEquals ("msg-3", aIndex.readRecord (aEntry).getMessageID ());
+
+      assertEquals ("msg-4", aIndex.getAllEntriesOfRefToMessageID ("msg-3").getFirst ().getMessageID ());
+      assertEquals (5, aIndex.getAllEntriesOfConversationID ("conv-0").size ());
+      assertTrue (aIndex.getAllEntriesOfMessageID ("msg-99").isEmpty ());
+      assertEquals (11, aIndex.getAllEntriesInRange (Instant.EPOCH, Instant.now ().plusSeconds (1)).size ());
+      assertEquals (1, aIndex.getAllEntries (x -> x.getMessageID () == null).size ());
+
+      // Streamed read of the dump
+      try (final InputStream aIS = aIndex.readRecord (aEntry).getContentInputStream ())
+      {
+        final HttpHeaderMap aHeaders = AS4DumpReader.readHttpHeaders (aIS);
+        assertEquals ("application/soap+xml", aHeaders.getFirstHeaderValue ("Content-Type"));
+        assertTrue (StreamHelper.getAllBytesAsString (aIS, StandardCharsets.UTF_8).startsWith ("<S12:Envelope"));
+      }
+
+      // Concurrent reads for bulk processing
+      final ICommonsList <AS4DumpArchiveEntry> aAll = aIndex.getAllEntries (x -> x.getMessageID () != null);
+      assertEquals (10, aAll.parallelStream ().filter (x -> {
+        try
+        {
+          return x.getMessageID ().equals (aIndex.readRecord (x).getMessageID ());
+        }
+        catch (final IOException ex)
+        {
+          throw new UncheckedIOException (ex);
+        }
+      }).count ());
+    }
+
+    // Reload from the sidecar files
+    final AS4DumpArchiveIndex aReloaded = AS4DumpArchiveIndex.load (BASE_DIR);
+    assertEquals (11, aReloaded.getEntryCount ());
+    assertEquals ("id-7", aReloaded.getAllEntriesOfMessageID ("msg-7").getFirst ().getID ());
+
+    // Reload with a missing sidecar file
+    final File aIndexFile = AS4DumpArchive.getIndexFile (new File (BASE_DIR, AS4DumpArchive.getSegmentFilename (0)));
+    assertTrue (FileOperations.deleteFile (aIndexFile).isSuccess ());
+    final AS4DumpArchiveIndex aRebuilt = AS4DumpArchiveIndex.load (BASE_DIR);
+    assertEquals (11, aRebuilt.getEntryCount ());
+    assertEquals (aReloaded.getAllEntriesOfMessageID ("msg-0"), aRebuilt.getAllEntriesOfMessageID ("msg-0"));
+  }
+
+  @Test
+  public void testDumpers () throws Exception
+  {
+    try (final AS4DumpArchive aArchive = new AS4DumpArchive (BASE_DIR))
+    {
+      final AS4IncomingMessageMetadata aMetadata = AS4IncomingMessageMetadata.createForRequest ();
+      final HttpHeaderMap aHeaders = new HttpHeaderMap ();
+      aHeaders.addHeader ("Content-Type", "text/plain");
+
+      final AS4IncomingDumperArchive aIncoming = new AS4IncomingDumperArchive (aArchive);
+      try (final OutputStream aOS = aIncoming.onNewRequest (aMetadata, aHeaders))
+      {
+        aOS.write ("incoming".getBytes (StandardCharsets.ISO_8859_1));
+      }
+
+      final AS4OutgoingDumperArchive aOutgoing = new AS4OutgoingDumperArchive (aArchive);
+      try (final OutputStream aOS = aOutgoing.onBeginRequest (EAS4MessageMode.RESPONSE,
+                                                              aMetadata,
+                                                              null,
+                                                              "out-id",
+                                                              aHeaders,
+                                                              2))
+      {
+        aOS.write ("outgoing".getBytes (StandardCharsets.ISO_8859_1));
+      }
+
+      final ICommonsList <AS4DumpArchive.Record> aRecords = new CommonsArrayList <> ();
+      AS4DumpArchive.readSegment (aArchive.getCurrentSegmentFile (), (aEntry, aRecord) -> aRecords.add (aRecord));
+      assertEquals (2, aRecords.size ());
+
+      final AS4DumpArchive.Record aIn = aRecords.get (0);
+      assertEquals (EAS4DumpDirection.INCOMING, aIn.getDirection ());
+      assertEquals (aMetadata.getIncomingUniqueID (), aIn.getID ());
+      assertEquals (aMetadata.getIncomingDT ().toInstant ().truncatedTo (ChronoUnit.MILLIS), aIn.getTimestamp ());
+      assertEquals ("Content-Type: text/plain\r\n\r\nincoming",
+                    new String (aIn.getContentBytes (), StandardCharsets.ISO_8859_1));
+
+      final AS4DumpArchive.Record aOut = aRecords.get (1);
+      assertEquals (EAS4DumpDirection.OUTGOING, aOut.getDirection ());
+      assertEquals (EAS4MessageMode.RESPONSE, aOut.getMessageMode ());
+      assertEquals ("out-id", aOut.getID ());
+      assertEquals (2, aOut.getTry ());
+      assertTrue (new String (aOut.getContentBytes (), StandardCharsets.ISO_8859_1).endsWith ("\r\n\r\noutgoing"));
+    }
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.io.file.SimpleFileIO;
+import com.helger.commons.io.stream.HasInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.mime.CMimeType;
+import com.helger.mail.cte.EContentTransferEncoding;
+import com.helger.phase4.attachment.EAS4CompressionMode;
+import com.helger.phase4.attachment.WSS4JAttachment;
+import com.helger.phase4.messaging.domain.MessageHelperMethods;
+import com.helger.phase4.messaging.mime.AS4MimeMessage;
+import com.helger.phase4.messaging.mime.MimeMessageCreator;
+import com.helger.phase4.soap.ESoapVersion;
+import com.helger.phase4.util.AS4ResourceHelper;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Test class for class {@link HttpMimeMessageEntity}.
+ *
+ * @author Philip Helger
+ */
+public final class HttpMimeMessageEntityTest
+{
+  @Nonnull
+  private static Document _createSoapDoc (@Nonnull final ESoapVersion eSoapVersion)
+  {
+    return DOMReader.readXMLDOM ("<S:Envelope xmlns:S='" +
+                                 eSoapVersion.getNamespaceURI () +
+                                 "'><S:Header/><S:Body><x>Ä</x></S:Body></S:Envelope>");
+  }
+
+  private static long _getWrittenLength (@Nonnull final HttpMimeMessageEntity aEntity) throws Exception
+  {
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+    {
+      aEntity.writeTo (aBAOS);
+      return aBAOS.size ();
+    }
+  }
+
+  private static void _assertLength (@Nonnull final ESoapVersion eSoapVersion,
+                                     @Nonnull final ICommonsList <WSS4JAttachment> aAttachments,
+                                     final boolean bExpectKnown) throws Exception
+  {
+    final AS4MimeMessage aMsg = MimeMessageCreator.generateMimeMessage (eSoapVersion,
+                                                                        _createSoapDoc (eSoapVersion),
+                                                                        aAttachments);
+    final HttpMimeMessageEntity aEntity = HttpMimeMessageEntity.create (aMsg);
+
+    // With MIME headers
+    if (bExpectKnown)
+      assertEquals (_getWrittenLength (aEntity), aEntity.getContentLength ());
+    else
+      assertEquals (-1, aEntity.getContentLength ());
+
+    // Headers moved to HTTP
+    MessageHelperMethods.getAndRemoveAllHeaders (aMsg);
+    if (bExpectKnown)
+    {
+      assertTrue (aEntity.getContentLength () > 0);
+      assertEquals (_getWrittenLength (aEntity), aEntity.getContentLength ());
+    }
+    else
+      assertEquals (-1, aEntity.getContentLength ());
+  }
+
+  @Test
+  public void testContentLength () throws Exception
+  {
+    final byte [] aData = "<root>Attachment content</root>".getBytes (StandardCharsets.UTF_8);
+    try (final AS4ResourceHelper aResHelper = new AS4ResourceHelper ())
+    {
+      final File aFile = aResHelper.createTempFile ();
+      SimpleFileIO.writeFile (aFile, aData);
+
+      for (final ESoapVersion eSoapVersion : ESoapVersion.values ())
+      {
+        // No attachments
+        _assertLength (eSoapVersion, new CommonsArrayList <> (), true);
+
+        // Byte array, file, compressed and spooled attachments
+        final ICommonsList <WSS4JAttachment> aAttachments = new CommonsArrayList <> ();
+        aAttachments.add (WSS4JAttachment.createOutgoingFileAttachment (aData,
+                                                                        null,
+                                                                        "data.xml",
+                                                                        CMimeType.APPLICATION_XML,
+                                                                        null,
+                                                                        StandardCharsets.UTF_8,
+                                                                        aResHelper));
+        aAttachments.add (WSS4JAttachment.createOutgoingFileAttachment (aFile,
+                                                                        null,
+                                                                        null,
+                                                                        CMimeType.APPLICATION_XML,
+                                                                        null,
+                                                                        null,
+                                                                        aResHelper));
+        aAttachments.add (WSS4JAttachment.createOutgoingFileAttachment (aData,
+                                                                        null,
+                                                                        "data.xml.gz",
+                                                                        CMimeType.APPLICATION_XML,
+                                                                        EAS4CompressionMode.GZIP,
+                                                                        null,
+                                                                        aResHelper));
+        aAttachments.add (WSS4JAttachment.createOutgoingFileAttachment (HasInputStream.once ( () -> new NonBlockingByteArrayInputStream (aData)),
+                                                                        null,
+                                                                        null,
+                                                                        CMimeType.APPLICATION_OCTET_STREAM,
+                                                                        null,
+                                                                        null,
+                                                                        aResHelper));
+        _assertLength (eSoapVersion, aAttachments, true);
+
+        // Unknown length
+        final WSS4JAttachment aUnknown = WSS4JAttachment.createOutgoingFileAttachment (aData,
+                                                                                       null,
+                                                                                       null,
+                                                                                       CMimeType.APPLICATION_XML,
+                                                                                       null,
+                                                                                       null,
+                                                                                       aResHelper);
+        aUnknown.setSourceStreamProvider (HasInputStream.multiple ( () -> new NonBlockingByteArrayInputStream (aData)));
+        _assertLength (eSoapVersion, new CommonsArrayList <> (aUnknown), false);
+
+        // Non-binary transfer encoding
+        final WSS4JAttachment aBase64 = WSS4JAttachment.createOutgoingFileAttachment (aData,
+                                                                                      null,
+                                                                                      null,
+                                                                                      CMimeType.APPLICATION_XML,
+                                                                                      null,
+                                                                                      null,
+                                                                                      aResHelper);
+        aBase64.setContentTransferEncoding (EContentTransferEncoding.BASE64);
+        _assertLength (eSoapVersion, new CommonsArrayList <> (aBase64), false);
+      }
+    }
+  }
+}
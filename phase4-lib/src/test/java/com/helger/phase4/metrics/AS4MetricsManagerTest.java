@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+
+/**
+ * Test class for class {@link AS4MetricsManager}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4MetricsManagerTest
+{
+  private static final class MockRecorder implements IAS4MetricsRecorder
+  {
+    private final ICommonsList <String> m_aStages = new CommonsArrayList <> ();
+    private final ICommonsList <AS4MetricsTags> m_aTags = new CommonsArrayList <> ();
+
+    public synchronized void recordStage (final EAS4MetricsStage eStage,
+                                          final AS4MetricsTags aTags,
+                                          final boolean bSuccess,
+                                          final long nDurationNanos)
+    {
+      assertTrue (nDurationNanos >= 0);
+      m_aStages.add (eStage.getID () + (bSuccess ? "+" : "-"));
+      m_aTags.add (aTags);
+    }
+
+    public synchronized void incrementCounter (final EAS4MetricsCounter eCounter, final AS4MetricsTags aTags)
+    {
+      m_aStages.add (eCounter.getID ());
+      m_aTags.add (aTags);
+    }
+  }
+
+  @After
+  public void after ()
+  {
+    AS4MetricsManager.setRecorder (null);
+  }
+
+  @Test
+  public void testTags ()
+  {
+    assertSame (AS4MetricsTags.EMPTY, AS4MetricsTags.create (null, null));
+    final AS4MetricsTags aTags = AS4MetricsTags.create ("profile", null);
+    assertEquals ("profile", aTags.getProfileID ());
+    assertTrue (aTags.hasProfileID ());
+    assertFalse (aTags.hasPModeID ());
+    assertFalse (aTags.hasMEP ());
+  }
+
+  @Test
+  public void testDisabled ()
+  {
+    assertFalse (AS4MetricsManager.isEnabled ());
+    assertNull (AS4MetricsManager.getRecorder ());
+    final long nStart = AS4MetricsManager.startTiming ();
+    assertEquals (AS4MetricsManager.TIMING_DISABLED, nStart);
+
+    // Recorder installed between start and record - must be ignored
+    final MockRecorder aRecorder = new MockRecorder ();
+    AS4MetricsManager.setRecorder (aRecorder);
+    AS4MetricsManager.recordStage (EAS4MetricsStage.INCOMING_MIME_PARSE, nStart, true, AS4MetricsTags.EMPTY);
+    assertTrue (aRecorder.m_aStages.isEmpty ());
+  }
+
+  @Test
+  public void testEnabled ()
+  {
+    final MockRecorder aRecorder = new MockRecorder ();
+    AS4MetricsManager.setRecorder (aRecorder);
+    assertTrue (AS4MetricsManager.isEnabled ());
+    assertSame (aRecorder, AS4MetricsManager.getRecorder ());
+
+    final long nStart = AS4MetricsManager.startTiming ();
+    assertNotEquals (AS4MetricsManager.TIMING_DISABLED, nStart);
+    AS4MetricsManager.recordStage (EAS4MetricsStage.INCOMING_SPI_PROCESSING, nStart, false, "profile", null);
+    AS4MetricsManager.incrementCounter (EAS4MetricsCounter.INCOMING_DUPLICATE, null, null);
+
+    assertEquals (new CommonsArrayList <> ("incoming.spi.processing-", "incoming.duplicate"), aRecorder.m_aStages);
+    assertEquals (new AS4MetricsTags ("profile", null, null), aRecorder.m_aTags.get (0));
+    assertSame (AS4MetricsTags.EMPTY, aRecorder.m_aTags.get (1));
+  }
+}
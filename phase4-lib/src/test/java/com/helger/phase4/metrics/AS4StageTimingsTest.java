@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Test class for class {@link AS4StageTimings}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4StageTimingsTest
+{
+  @Test
+  public void testBasic ()
+  {
+    final AS4StageTimings aTimings = new AS4StageTimings ();
+    assertTrue (aTimings.isEmpty ());
+    assertFalse (aTimings.hasStage (EAS4MetricsStage.INCOMING_MIME_PARSE));
+    assertEquals (-1, aTimings.getStageNanos (EAS4MetricsStage.INCOMING_MIME_PARSE));
+    assertTrue (aTimings.getAsString ().startsWith ("elapsed="));
+
+    aTimings.addStage (EAS4MetricsStage.INCOMING_SECURITY, TimeUnit.MICROSECONDS.toNanos (1500));
+    aTimings.addStage (EAS4MetricsStage.INCOMING_MIME_PARSE, 0);
+    // Accumulated
+    aTimings.addStage (EAS4MetricsStage.INCOMING_SECURITY, TimeUnit.MICROSECONDS.toNanos (1042));
+    assertFalse (aTimings.isEmpty ());
+    assertTrue (aTimings.hasStage (EAS4MetricsStage.INCOMING_MIME_PARSE));
+    assertEquals (0, aTimings.getStageNanos (EAS4MetricsStage.INCOMING_MIME_PARSE));
+    assertEquals (TimeUnit.MICROSECONDS.toNanos (2542), aTimings.getStageNanos (EAS4MetricsStage.INCOMING_SECURITY));
+    assertFalse (aTimings.hasStage (EAS4MetricsStage.OUTGOING_HTTP));
+
+    // Enum order
+    final ICommonsList <EAS4MetricsStage> aStages = new CommonsArrayList <> ();
+    aTimings.forEachStage ( (e, n) -> aStages.add (e));
+    assertEquals (new CommonsArrayList <> (EAS4MetricsStage.INCOMING_MIME_PARSE, EAS4MetricsStage.INCOMING_SECURITY),
+                  aStages);
+
+    assertTrue (aTimings.getAsString ()
+                        .startsWith ("incoming.mime.parse=0.000ms, incoming.security=2.542ms; elapsed="));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void testNegativeDuration ()
+  {
+    new AS4StageTimings ().addStage (EAS4MetricsStage.OUTGOING_HTTP, -1);
+  }
+
+  @Test
+  public void testLogIfSlowDisabledByDefault ()
+  {
+    final AS4StageTimings aTimings = new AS4StageTimings ();
+    aTimings.addStage (EAS4MetricsStage.OUTGOING_HTTP, TimeUnit.SECONDS.toNanos (100));
+    assertFalse (aTimings.logIfSlow ( () -> "test"));
+  }
+
+  @Test
+  public void testAllocationTrackingDisabledByDefault ()
+  {
+    final AS4StageTimings aTimings = new AS4StageTimings ();
+    assertFalse (aTimings.isTrackAllocations ());
+    final long nStart = AS4MetricsManager.startTiming (aTimings);
+    AS4MetricsManager.recordStage (EAS4MetricsStage.OUTGOING_BUILD, nStart, true, AS4MetricsTags.EMPTY, aTimings);
+    assertEquals (-1, aTimings.getStageAllocatedBytes (EAS4MetricsStage.OUTGOING_BUILD));
+    assertFalse (aTimings.logIfAllocationsTracked ( () -> "test"));
+  }
+
+  @Test
+  public void testAllocationTracking ()
+  {
+    Assume.assumeTrue (AS4AllocationTracker.isSupported ());
+
+    final AS4StageTimings aTimings = new AS4StageTimings (true);
+    assertTrue (aTimings.isTrackAllocations ());
+
+    final long nStart = AS4MetricsManager.startTiming (aTimings);
+    final byte [] aData = new byte [1024 * 1024];
+    AS4MetricsManager.recordStage (EAS4MetricsStage.OUTGOING_BUILD, nStart, aData.length > 0, AS4MetricsTags.EMPTY, aTimings);
+
+    assertTrue (aTimings.getStageAllocatedBytes (EAS4MetricsStage.OUTGOING_BUILD) >= aData.length);
+    assertEquals (-1, aTimings.getStageAllocatedBytes (EAS4MetricsStage.OUTGOING_HTTP));
+    assertTrue (aTimings.getAsString (), aTimings.getAsString ().startsWith ("outgoing.build="));
+    assertTrue (aTimings.getAsString (), aTimings.getAsString ().contains ("B; elapsed="));
+    assertTrue (aTimings.logIfAllocationsTracked ( () -> "test"));
+  }
+
+  @Test
+  public void testAllocationJFREvent () throws Exception
+  {
+    Assume.assumeTrue (AS4AllocationTracker.isSupported ());
+
+    final Path aFile = Files.createTempFile ("phase4-", ".jfr");
+    try
+    {
+      try (final Recording aRecording = new Recording ())
+      {
+        aRecording.enable (AS4StageAllocationEvent.NAME);
+        aRecording.start ();
+
+        final AS4StageTimings aTimings = new AS4StageTimings (true);
+        final long nStart = AS4MetricsManager.startTiming (aTimings);
+        AS4MetricsManager.recordStage (EAS4MetricsStage.INCOMING_SECURITY, nStart, true, AS4MetricsTags.EMPTY, aTimings);
+
+        aRecording.stop ();
+        aRecording.dump (aFile);
+      }
+
+      final List <RecordedEvent> aEvents = RecordingFile.readAllEvents (aFile);
+      assertEquals (1, aEvents.size ());
+      assertEquals (AS4StageAllocationEvent.NAME, aEvents.get (0).getEventType ().getName ());
+      assertEquals ("incoming.security", aEvents.get (0).getString ("stage"));
+    }
+    finally
+    {
+      Files.delete (aFile);
+    }
+  }
+}
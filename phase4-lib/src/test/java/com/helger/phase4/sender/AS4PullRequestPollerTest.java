@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.sender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsConcurrentHashMap;
+import com.helger.commons.collection.impl.CommonsCopyOnWriteArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.concurrent.ThreadHelper;
+import com.helger.phase4.ebms3header.Ebms3Error;
+import com.helger.phase4.ebms3header.Ebms3SignalMessage;
+import com.helger.phase4.ebms3header.Ebms3UserMessage;
+import com.helger.phase4.error.EEbmsError;
+
+/**
+ * Test class for class {@link AS4PullRequestPoller}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4PullRequestPollerTest
+{
+  /**
+   * A poller that simulates the remote MPCs instead of sending Pull Requests.
+   *
+   * @author Philip Helger
+   */
+  private static final class MockPoller extends AS4PullRequestPoller
+  {
+    // MPC to number of pending messages
+    private final ICommonsMap <String, AtomicInteger> m_aPending = new CommonsConcurrentHashMap <> ();
+    private final ICommonsList <String> m_aPolledMPCs = new CommonsCopyOnWriteArrayList <> ();
+    // The current interval of the target at the time of each poll
+    private final ICommonsList <Duration> m_aPollIntervals = new CommonsCopyOnWriteArrayList <> ();
+
+    MockPoller ()
+    {
+      super (AS4Sender::builderPullRequest);
+    }
+
+    void setPending (@Nonnull final String sMPC, final int nCount)
+    {
+      m_aPending.computeIfAbsent (sMPC, k -> new AtomicInteger ()).set (nCount);
+    }
+
+    @Override
+    protected EPollResult poll (@Nonnull final Target aTarget) throws Exception
+    {
+      m_aPolledMPCs.add (aTarget.getMPC ());
+      m_aPollIntervals.add (aTarget.getCurrentInterval ());
+      final AtomicInteger aPending = m_aPending.get (aTarget.getMPC ());
+      if (aPending == null)
+        throw new IllegalStateException ("Unknown MPC");
+      if (aPending.getAndUpdate (x -> Math.max (0, x - 1)) <= 0)
+        return EPollResult.EMPTY;
+      aTarget.getUserMsgConsumer ().handleUserMessage (new Ebms3UserMessage ());
+      return EPollResult.USER_MESSAGE;
+    }
+  }
+
+  private static void _waitFor (@Nonnull final BooleanSupplier aCondition)
+  {
+    final long nEnd = System.currentTimeMillis () + 10_000;
+    while (!aCondition.getAsBoolean ())
+    {
+      assertTrue ("Timeout waiting for condition", System.currentTimeMillis () < nEnd);
+      ThreadHelper.sleep (10);
+    }
+  }
+
+  @Test
+  public void testIsEmptyMPC ()
+  {
+    final Ebms3SignalMessage aSignalMsg = new Ebms3SignalMessage ();
+    assertFalse (AS4PullRequestPoller.isEmptyMPC (aSignalMsg));
+
+    final Ebms3Error aError = new Ebms3Error ();
+    aError.setErrorCode (EEbmsError.EBMS_OTHER.getErrorCode ());
+    aSignalMsg.addError (aError);
+    assertFalse (AS4PullRequestPoller.isEmptyMPC (aSignalMsg));
+
+    final Ebms3Error aError2 = new Ebms3Error ();
+    aError2.setErrorCode (EEbmsError.EBMS_EMPTY_MESSAGE_PARTITION_CHANNEL.getErrorCode ());
+    aSignalMsg.addError (aError2);
+    assertTrue (AS4PullRequestPoller.isEmptyMPC (aSignalMsg));
+  }
+
+  @Test
+  public void testDrainBurstAndBackoff ()
+  {
+    final AtomicInteger aReceived = new AtomicInteger (0);
+    try (final MockPoller aPoller = new MockPoller ())
+    {
+      aPoller.setInterval (Duration.ofMillis (20), Duration.ofMillis (80)).setBackoffFactor (2);
+      aPoller.setPending ("mpc", 5);
+      final AS4PullRequestPoller.Target aTarget = aPoller.addTarget ("http://localhost/as4",
+                                                                     "mpc",
+                                                                     x -> aReceived.incrementAndGet ());
+      aPoller.start ();
+
+      // All messages are drained back-to-back, followed by one empty poll
+      _waitFor ( () -> aTarget.getEmptyCount () >= 1);
+      assertEquals (5, aReceived.get ());
+      assertEquals (5, aTarget.getUserMessageCount ());
+      // Further empty polls may already have happened in the meantime
+      assertTrue (aTarget.getPollCount () >= 6);
+      final long nInterval = aTarget.getCurrentInterval ().toMillis ();
+      assertTrue (Long.toString (nInterval), nInterval >= 40 && nInterval <= 80);
+
+      // The interval grows up to the maximum
+      _waitFor ( () -> aTarget.getEmptyCount () >= 4);
+      assertEquals (Duration.ofMillis (80), aTarget.getCurrentInterval ());
+
+      // New messages reset the interval - polls after the reset see it
+      aPoller.m_aPollIntervals.clear ();
+      aPoller.setPending ("mpc", 2);
+      _waitFor ( () -> aReceived.get () == 7 &&
+                       aPoller.m_aPollIntervals.containsAny (x -> x.toMillis () <= 40));
+
+      aPoller.removeTarget (aTarget);
+      assertFalse (aTarget.isActive ());
+      assertTrue (aPoller.getAllTargets ().isEmpty ());
+    }
+  }
+
+  @Test
+  public void testMaxBurstIsFair ()
+  {
+    try (final MockPoller aPoller = new MockPoller ())
+    {
+      aPoller.setWorkerCount (1).setMaxBurst (2).setInterval (Duration.ofSeconds (10), Duration.ofSeconds (10));
+      aPoller.setPending ("busy", 10);
+      aPoller.setPending ("quiet", 0);
+      final AS4PullRequestPoller.Target aBusy = aPoller.addTarget ("http://localhost/as4", "busy", x -> {});
+      final AS4PullRequestPoller.Target aQuiet = aPoller.addTarget ("http://localhost/as4", "quiet", x -> {});
+      aPoller.start ();
+
+      _waitFor ( () -> aBusy.getEmptyCount () >= 1 && aQuiet.getEmptyCount () >= 1);
+      assertEquals (10, aBusy.getUserMessageCount ());
+
+      // The quiet MPC was polled before the busy one was drained
+      final int nQuietIndex = aPoller.m_aPolledMPCs.indexOf ("quiet");
+      assertTrue (nQuietIndex >= 0);
+      assertTrue (nQuietIndex < aPoller.m_aPolledMPCs.lastIndexOf ("busy"));
+    }
+  }
+
+  @Test
+  public void testErrorBacksOff ()
+  {
+    try (final MockPoller aPoller = new MockPoller ())
+    {
+      aPoller.setInterval (Duration.ofMillis (10), Duration.ofMillis (30));
+      final AS4PullRequestPoller.Target aTarget = aPoller.addTarget ("http://localhost/as4", "unknown", x -> {});
+      aPoller.start ();
+
+      _waitFor ( () -> aTarget.getErrorCount () >= 3);
+      assertEquals (0, aTarget.getUserMessageCount ());
+      assertEquals (Duration.ofMillis (30), aTarget.getCurrentInterval ());
+    }
+  }
+}
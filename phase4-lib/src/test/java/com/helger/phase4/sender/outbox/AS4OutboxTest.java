@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.sender.outbox;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.io.HttpClientResponseHandler;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.http.io.entity.StringEntity;
+import org.apache.hc.core5.http.message.BasicClassicHttpResponse;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.helger.commons.collection.impl.CommonsCopyOnWriteArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.concurrent.ThreadHelper;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.file.FileOperations;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.mime.CMimeType;
+import com.helger.phase4.AS4TestRule;
+import com.helger.phase4.client.AS4ClientBuiltMessage;
+import com.helger.phase4.ebms3header.Ebms3Receipt;
+import com.helger.phase4.ebms3header.Ebms3SignalMessage;
+import com.helger.phase4.http.BasicHttpPoster;
+import com.helger.phase4.http.HttpRetrySettings;
+import com.helger.phase4.http.HttpXMLEntity;
+import com.helger.phase4.messaging.domain.MessageHelperMethods;
+import com.helger.phase4.util.AS4RecordBuffer;
+import com.helger.xml.XMLFactory;
+
+/**
+ * Test class for class {@link AS4Outbox}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4OutboxTest
+{
+  private static final File BASE_DIR = new File ("target/outbox-test");
+
+  /**
+   * An HTTP poster that fails a configurable number of times and afterwards
+   * returns an empty HTTP 200 response.
+   *
+   * @author Philip Helger
+   */
+  private static final class MockHttpPoster extends BasicHttpPoster
+  {
+    private final AtomicInteger m_aRemainingFailures;
+    private final ICommonsList <byte []> m_aSentBodies = new CommonsCopyOnWriteArrayList <> ();
+
+    MockHttpPoster (final int nFailures)
+    {
+      m_aRemainingFailures = new AtomicInteger (nFailures);
+    }
+
+    @Override
+    public <T> T sendGenericMessage (@Nonnull final String sURL,
+                                     @Nullable final HttpHeaderMap aCustomHttpHeaders,
+                                     @Nonnull final HttpEntity aHttpEntity,
+                                     @Nonnull final HttpClientResponseHandler <? extends T> aResponseHandler) throws IOException
+    {
+      m_aSentBodies.add (EntityUtils.toByteArray (aHttpEntity));
+      if (m_aRemainingFailures.getAndDecrement () > 0)
+        throw new IOException ("Simulated transport error");
+
+      final BasicClassicHttpResponse aHttpResponse = new BasicClassicHttpResponse (200);
+      aHttpResponse.setEntity (new StringEntity ("OK"));
+      try
+      {
+        return aResponseHandler.handleResponse (aHttpResponse);
+      }
+      catch (final HttpException ex)
+      {
+        throw new IOException (ex);
+      }
+    }
+  }
+
+  /**
+   * Remembers the final states of the messages.
+   *
+   * @author Philip Helger
+   */
+  private static final class MockListener implements IAS4OutboxListener
+  {
+    private final ICommonsList <String> m_aDelivered = new CommonsCopyOnWriteArrayList <> ();
+    private final ICommonsList <String> m_aFailed = new CommonsCopyOnWriteArrayList <> ();
+    private volatile Exception m_aLastException;
+
+    @Override
+    public void onDelivered (@Nonnull final String sMessageID)
+    {
+      m_aDelivered.add (sMessageID);
+    }
+
+    @Override
+    public void onFailed (@Nonnull final AS4OutboxEntry aEntry,
+                          @Nullable final Ebms3SignalMessage aErrorSignalMsg,
+                          @Nullable final Exception aLastException)
+    {
+      m_aFailed.add (aEntry.getMessageID ());
+      m_aLastException = aLastException;
+    }
+  }
+
+  @Rule
+  public final TestRule m_aTestRule = new AS4TestRule ();
+
+  @Before
+  public void cleanup ()
+  {
+    FileOperations.deleteDirRecursiveIfExisting (BASE_DIR);
+  }
+
+  private static void _waitFor (@Nonnull final BooleanSupplier aCondition)
+  {
+    final long nEnd = System.currentTimeMillis () + 10_000;
+    while (!aCondition.getAsBoolean ())
+    {
+      assertTrue ("Timeout waiting for condition", System.currentTimeMillis () < nEnd);
+      ThreadHelper.sleep (10);
+    }
+  }
+
+  @Nonnull
+  private static AS4ClientBuiltMessage _createMessage ()
+  {
+    return _createMessage ("Payload");
+  }
+
+  @Nonnull
+  private static AS4ClientBuiltMessage _createMessage (@Nonnull final String sPayload)
+  {
+    final Document aDoc = XMLFactory.newDocument ();
+    final Element eRoot = aDoc.createElementNS ("urn:test", "Message");
+    eRoot.setTextContent (sPayload);
+    aDoc.appendChild (eRoot);
+    return new AS4ClientBuiltMessage (MessageHelperMethods.createRandomMessageID (),
+                                      new HttpXMLEntity (aDoc, CMimeType.APPLICATION_XML));
+  }
+
+  @Nonnull
+  private static HttpRetrySettings _retries (final int nMaxRetries, final long nMillis)
+  {
+    return new HttpRetrySettings ().setMaxRetries (nMaxRetries).setDurationBeforeRetry (Duration.ofMillis (nMillis));
+  }
+
+  @Test
+  public void testDeliverWithoutReceipt () throws Exception
+  {
+    final MockHttpPoster aPoster = new MockHttpPoster (0);
+    final MockListener aListener = new MockListener ();
+    try (final AS4Outbox aOutbox = new AS4Outbox (BASE_DIR))
+    {
+      aOutbox.setHttpPoster (aPoster).setListener (aListener);
+      aOutbox.start ();
+
+      final AS4ClientBuiltMessage aMsg = _createMessage ();
+      final byte [] aExpectedBody = EntityUtils.toByteArray (aMsg.getHttpEntity ());
+      aOutbox.enqueue (aMsg, "http://localhost/as4", _retries (0, 10), false);
+
+      _waitFor ( () -> aOutbox.getDeliveredCount () == 1);
+      assertEquals (0, aOutbox.getMessageCount ());
+      assertEquals (1, aOutbox.getAttemptCount ());
+      assertEquals (1, aOutbox.getSyncCount ());
+      assertEquals (aMsg.getMessageID (), aListener.m_aDelivered.getFirst ());
+      assertArrayEquals (aExpectedBody, aPoster.m_aSentBodies.getFirst ());
+    }
+  }
+
+  @Test
+  public void testRetryThenFail () throws Exception
+  {
+    final MockHttpPoster aPoster = new MockHttpPoster (Integer.MAX_VALUE);
+    final MockListener aListener = new MockListener ();
+    try (final AS4Outbox aOutbox = new AS4Outbox (BASE_DIR))
+    {
+      aOutbox.setHttpPoster (aPoster).setListener (aListener);
+      aOutbox.start ();
+
+      final AS4ClientBuiltMessage aMsg = _createMessage ();
+      aOutbox.enqueue (aMsg, "http://localhost/as4", _retries (2, 10), false);
+
+      _waitFor ( () -> aOutbox.getFailedCount () == 1);
+      assertEquals (3, aOutbox.getAttemptCount ());
+      assertEquals (3, aPoster.m_aSentBodies.size ());
+      assertEquals (aMsg.getMessageID (), aListener.m_aFailed.getFirst ());
+      assertTrue (aListener.m_aLastException instanceof IOException);
+      assertTrue (aListener.m_aDelivered.isEmpty ());
+      assertFalse (aOutbox.containsMessage (aMsg.getMessageID ()));
+    }
+  }
+
+  @Test
+  public void testReceiptRequired () throws Exception
+  {
+    final MockHttpPoster aPoster = new MockHttpPoster (0);
+    final MockListener aListener = new MockListener ();
+    try (final AS4Outbox aOutbox = new AS4Outbox (BASE_DIR))
+    {
+      aOutbox.setHttpPoster (aPoster).setListener (aListener);
+      aOutbox.start ();
+
+      // Without receipt, the message is resent after the retry interval
+      final AS4ClientBuiltMessage aMsg1 = _createMessage ();
+      aOutbox.enqueue (aMsg1, "http://localhost/as4", _retries (2, 10), true);
+      _waitFor ( () -> aOutbox.getFailedCount () == 1);
+      assertEquals (3, aPoster.m_aSentBodies.size ());
+      assertNull (aListener.m_aLastException);
+
+      // An asynchronous receipt finishes the message
+      final AS4ClientBuiltMessage aMsg2 = _createMessage ();
+      aOutbox.enqueue (aMsg2, "http://localhost/as4", _retries (2, 60_000), true);
+      _waitFor ( () -> aOutbox.getAttemptCount (aMsg2.getMessageID ()) == 1);
+      assertTrue (aOutbox.containsMessage (aMsg2.getMessageID ()));
+      assertTrue (aOutbox.acknowledge (aMsg2.getMessageID ()).isChanged ());
+      assertFalse (aOutbox.acknowledge (aMsg2.getMessageID ()).isChanged ());
+      assertEquals (aMsg2.getMessageID (), aListener.m_aDelivered.getFirst ());
+      assertEquals (0, aOutbox.getMessageCount ());
+    }
+  }
+
+  @Test
+  public void testReceiptFromResponseHandler () throws Exception
+  {
+    final MockHttpPoster aPoster = new MockHttpPoster (0);
+    try (final AS4Outbox aOutbox = new AS4Outbox (BASE_DIR))
+    {
+      aOutbox.setHttpPoster (aPoster).setResponseHandler ( (aEntry, aHttpResponse, aResponseIS) -> {
+        StreamHelper.close (aResponseIS);
+        final Ebms3SignalMessage ret = new Ebms3SignalMessage ();
+        ret.setReceipt (new Ebms3Receipt ());
+        return ret;
+      });
+      aOutbox.start ();
+
+      aOutbox.enqueue (_createMessage (), "http://localhost/as4", _retries (2, 60_000), true);
+      _waitFor ( () -> aOutbox.getDeliveredCount () == 1);
+      assertEquals (1, aPoster.m_aSentBodies.size ());
+    }
+  }
+
+  @Test
+  public void testLargeMessageIsStreamed () throws Exception
+  {
+    // Larger than the in-memory threshold of the record buffer
+    final byte [] aRandom = new byte [AS4RecordBuffer.DEFAULT_MAX_IN_MEMORY_BYTES * 2];
+    new Random (42).nextBytes (aRandom);
+    final AS4ClientBuiltMessage aMsg = _createMessage (Base64.getEncoder ().encodeToString (aRandom));
+    final byte [] aBody = EntityUtils.toByteArray (aMsg.getHttpEntity ());
+
+    // The first attempt fails, so the entity is read twice
+    final MockHttpPoster aPoster = new MockHttpPoster (1);
+    try (final AS4Outbox aOutbox = new AS4Outbox (BASE_DIR))
+    {
+      aOutbox.setHttpPoster (aPoster);
+      aOutbox.start ();
+      aOutbox.enqueue (aMsg, "http://localhost/as4", _retries (2, 10), false);
+
+      _waitFor ( () -> aOutbox.getDeliveredCount () == 1);
+      assertEquals (2, aPoster.m_aSentBodies.size ());
+      for (final byte [] aSentBody : aPoster.m_aSentBodies)
+        assertArrayEquals (aBody, aSentBody);
+    }
+  }
+
+  @Test
+  public void testResumeAfterRestart () throws Exception
+  {
+    final AS4ClientBuiltMessage aMsg = _createMessage ();
+    final byte [] aExpectedBody = EntityUtils.toByteArray (aMsg.getHttpEntity ());
+
+    try (final AS4Outbox aOutbox = new AS4Outbox (BASE_DIR))
+    {
+      aOutbox.setHttpPoster (new MockHttpPoster (Integer.MAX_VALUE));
+      aOutbox.start ();
+      aOutbox.enqueue (aMsg, "http://localhost/as4", _retries (5, 500), false);
+      _waitFor ( () -> aOutbox.getAttemptCount () == 1);
+    }
+
+    final MockHttpPoster aPoster = new MockHttpPoster (0);
+    try (final AS4Outbox aOutbox = new AS4Outbox (BASE_DIR))
+    {
+      aOutbox.setHttpPoster (aPoster);
+      aOutbox.start ();
+      assertTrue (aOutbox.containsMessage (aMsg.getMessageID ()));
+      assertEquals (1, aOutbox.getAttemptCount (aMsg.getMessageID ()));
+
+      _waitFor ( () -> aOutbox.getDeliveredCount () == 1);
+      assertArrayEquals (aExpectedBody, aPoster.m_aSentBodies.getFirst ());
+    }
+
+    // Nothing left to resume
+    try (final AS4Outbox aOutbox = new AS4Outbox (BASE_DIR))
+    {
+      aOutbox.start ();
+      assertEquals (0, aOutbox.getMessageCount ());
+      assertEquals (1, aOutbox.getSegmentCount ());
+    }
+  }
+
+  @Test
+  public void testConcurrentEnqueue () throws Exception
+  {
+    final int nCount = 200;
+    try (final AS4Outbox aOutbox = new AS4Outbox (BASE_DIR))
+    {
+      // Keep all messages waiting for their receipt
+      aOutbox.setHttpPoster (new MockHttpPoster (0)).setMaxSegmentSize (64 * 1024);
+      aOutbox.start ();
+
+      final ExecutorService aES = Executors.newFixedThreadPool (16);
+      for (int i = 0; i < nCount; ++i)
+        aES.submit ( () -> {
+          aOutbox.enqueue (_createMessage (), "http://localhost/as4", _retries (1, 60_000), true);
+          return null;
+        });
+      ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (aES);
+
+      assertEquals (nCount, aOutbox.getEnqueuedCount ());
+      assertTrue (aOutbox.getSyncCount () > 0);
+      assertTrue (aOutbox.getSyncCount () <= nCount);
+      _waitFor ( () -> aOutbox.getAttemptCount () == nCount);
+    }
+
+    try (final AS4Outbox aOutbox = new AS4Outbox (BASE_DIR))
+    {
+      aOutbox.setHttpPoster (new MockHttpPoster (0));
+      aOutbox.start ();
+      assertEquals (nCount, aOutbox.getMessageCount ());
+      assertNotNull (aOutbox.toString ());
+    }
+  }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.servlet.pull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.concurrent.ThreadHelper;
+import com.helger.commons.io.file.FileOperations;
+import com.helger.commons.io.stream.HasInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.mime.CMimeType;
+import com.helger.phase4.AS4TestRule;
+import com.helger.phase4.CAS4;
+import com.helger.phase4.attachment.WSS4JAttachment;
+import com.helger.phase4.ebms3header.Ebms3UserMessage;
+import com.helger.phase4.messaging.domain.AS4UserMessage;
+import com.helger.phase4.messaging.domain.MessageHelperMethods;
+import com.helger.phase4.soap.ESoapVersion;
+import com.helger.phase4.util.AS4ResourceHelper;
+
+/**
+ * Test class for class {@link AS4MPCMessageStore}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4MPCMessageStoreTest
+{
+  private static final File BASE_DIR = new File ("target/mpc-message-store-test");
+  private static final String MPC1 = CAS4.DEFAULT_MPC_ID;
+  private static final String MPC2 = "urn:test:mpc2";
+  private static final String ATTACHMENT_CONTENT = "Attachment content";
+
+  @Rule
+  public final TestRule m_aTestRule = new AS4TestRule ();
+
+  @Before
+  public void cleanup ()
+  {
+    FileOperations.deleteDirRecursiveIfExisting (BASE_DIR);
+  }
+
+  @Nonnull
+  private static Ebms3UserMessage _createUserMessage (@Nonnull final ICommonsList <WSS4JAttachment> aAttachments)
+  {
+    return AS4UserMessage.create (MessageHelperMethods.createEbms3MessageInfo (),
+                                  MessageHelperMethods.createEbms3PayloadInfo (false, aAttachments),
+                                  MessageHelperMethods.createEbms3CollaborationInfo (null,
+                                                                                     null,
+                                                                                     "MyServiceTypes",
+                                                                                     "QuoteToCollect",
+                                                                                     "NewPurchaseOrder",
+                                                                                     "4321"),
+                                  MessageHelperMethods.createEbms3PartyInfo (CAS4.DEFAULT_INITIATOR_URL,
+                                                                             "1234",
+                                                                             CAS4.DEFAULT_RESPONDER_URL,
+                                                                             "5678"),
+                                  null,
+                                  ESoapVersion.AS4_DEFAULT)
+                         .getEbms3UserMessage ();
+  }
+
+  @Nonnull
+  private static String _getID (@Nonnull final Ebms3UserMessage aUserMessage)
+  {
+    return aUserMessage.getMessageInfo ().getMessageId ();
+  }
+
+  @Test
+  public void testFIFOPerMPC () throws Exception
+  {
+    try (final AS4MPCMessageStore aStore = new AS4MPCMessageStore (BASE_DIR))
+    {
+      aStore.start ();
+      assertNull (aStore.lease (MPC1));
+
+      final Ebms3UserMessage aMsg1 = _createUserMessage (new CommonsArrayList <> ());
+      final Ebms3UserMessage aMsg2 = _createUserMessage (new CommonsArrayList <> ());
+      final Ebms3UserMessage aMsg3 = _createUserMessage (new CommonsArrayList <> ());
+      aStore.enqueue (MPC1, aMsg1, null);
+      aStore.enqueue (MPC2, aMsg2, null);
+      aStore.enqueue (MPC1, aMsg3, null);
+      assertEquals (3, aStore.getMessageCount ());
+      assertEquals (2, aStore.getMessageCount (MPC1));
+      assertEquals (1, aStore.getMessageCount (MPC2));
+
+      AS4MPCMessageStoreEntry aEntry = aStore.lease (MPC1);
+      assertNotNull (aEntry);
+      assertEquals (_getID (aMsg1), aEntry.getMessageID ());
+      assertEquals (MPC1, aEntry.getMPCID ());
+      assertEquals (aMsg1.getCollaborationInfo (), aEntry.getUserMessage ().getCollaborationInfo ());
+
+      aEntry = aStore.lease (MPC1);
+      assertNotNull (aEntry);
+      assertEquals (_getID (aMsg3), aEntry.getMessageID ());
+      assertNull (aStore.lease (MPC1));
+      assertEquals (2, aStore.getLeasedCount ());
+
+      aEntry = aStore.lease (MPC2);
+      assertNotNull (aEntry);
+      assertEquals (_getID (aMsg2), aEntry.getMessageID ());
+
+      // Acknowledge all
+      assertTrue (aStore.acknowledge (_getID (aMsg1)).isChanged ());
+      assertTrue (aStore.acknowledge (_getID (aMsg2)).isChanged ());
+      assertTrue (aStore.acknowledge (_getID (aMsg3)).isChanged ());
+      assertTrue (aStore.acknowledge (_getID (aMsg3)).isUnchanged ());
+      assertTrue (aStore.acknowledge ("unknown").isUnchanged ());
+      assertEquals (0, aStore.getMessageCount ());
+      assertEquals (0, aStore.getLeasedCount ());
+      assertEquals (3, aStore.getAcknowledgedCount ());
+    }
+  }
+
+  @Test
+  public void testLeaseTimeout () throws Exception
+  {
+    try (final AS4MPCMessageStore aStore = new AS4MPCMessageStore (BASE_DIR))
+    {
+      aStore.setLeaseDuration (Duration.ofMillis (50)).start ();
+
+      final Ebms3UserMessage aMsg1 = _createUserMessage (new CommonsArrayList <> ());
+      final Ebms3UserMessage aMsg2 = _createUserMessage (new CommonsArrayList <> ());
+      aStore.enqueue (MPC1, aMsg1, null);
+      aStore.enqueue (MPC1, aMsg2, null);
+
+      assertEquals (_getID (aMsg1), aStore.lease (MPC1).getMessageID ());
+      assertEquals (_getID (aMsg2), aStore.lease (MPC1).getMessageID ());
+      assertNull (aStore.lease (MPC1));
+
+      // No receipt in time - handed out again in the original order
+      ThreadHelper.sleep (100);
+      assertEquals (_getID (aMsg1), aStore.lease (MPC1).getMessageID ());
+      assertEquals (_getID (aMsg2), aStore.lease (MPC1).getMessageID ());
+      assertEquals (2, aStore.getRedeliveryCount ());
+      assertEquals (4, aStore.getHandedOutCount ());
+    }
+  }
+
+  @Test
+  public void testExpiry () throws Exception
+  {
+    try (final AS4MPCMessageStore aStore = new AS4MPCMessageStore (BASE_DIR))
+    {
+      aStore.start ();
+
+      final Ebms3UserMessage aMsg1 = _createUserMessage (new CommonsArrayList <> ());
+      final Ebms3UserMessage aMsg2 = _createUserMessage (new CommonsArrayList <> ());
+      final Ebms3UserMessage aMsg3 = _createUserMessage (new CommonsArrayList <> ());
+      aStore.enqueue (MPC1, aMsg1, null, Duration.ofMillis (1));
+      aStore.enqueue (MPC1, aMsg2, null);
+      aStore.enqueue (MPC2, aMsg3, null, Duration.ofMillis (1));
+      ThreadHelper.sleep (20);
+
+      // Expired messages are skipped
+      assertEquals (_getID (aMsg2), aStore.lease (MPC1).getMessageID ());
+      assertEquals (1, aStore.getExpiredCount ());
+
+      assertEquals (1, aStore.removeExpired ());
+      assertEquals (0, aStore.getMessageCount (MPC2));
+      assertEquals (2, aStore.getExpiredCount ());
+    }
+  }
+
+  @Test
+  public void testAttachmentsAndRestart () throws Exception
+  {
+    final Ebms3UserMessage aMsg1;
+    final Ebms3UserMessage aMsg2;
+    try (final AS4ResourceHelper aResHelper = new AS4ResourceHelper ();
+         final AS4MPCMessageStore aStore = new AS4MPCMessageStore (BASE_DIR))
+    {
+      aStore.start ();
+
+      final WSS4JAttachment aAttachment = new WSS4JAttachment (aResHelper, CMimeType.TEXT_PLAIN.getAsString ());
+      aAttachment.setUniqueID ();
+      aAttachment.setCharset (StandardCharsets.UTF_8);
+      aAttachment.setSourceStreamProvider (HasInputStream.multiple ( () -> new NonBlockingByteArrayInputStream (ATTACHMENT_CONTENT.getBytes (StandardCharsets.UTF_8))));
+      final ICommonsList <WSS4JAttachment> aAttachments = new CommonsArrayList <> (aAttachment);
+
+      aMsg1 = _createUserMessage (new CommonsArrayList <> ());
+      aMsg2 = _createUserMessage (aAttachments);
+      aStore.enqueue (MPC1, aMsg1, null);
+      aStore.enqueue (MPC1, aMsg2, aAttachments);
+
+      // Leased but not acknowledged
+      assertEquals (_getID (aMsg1), aStore.lease (MPC1).getMessageID ());
+    }
+
+    // Restart
+    try (final AS4ResourceHelper aResHelper = new AS4ResourceHelper ();
+         final AS4MPCMessageStore aStore = new AS4MPCMessageStore (BASE_DIR))
+    {
+      aStore.start ();
+      assertEquals (2, aStore.getMessageCount (MPC1));
+
+      // Leases are not persisted
+      assertEquals (_getID (aMsg1), aStore.lease (MPC1).getMessageID ());
+      aStore.acknowledge (_getID (aMsg1));
+
+      final AS4MPCMessageStoreEntry aEntry = aStore.lease (MPC1);
+      assertNotNull (aEntry);
+      assertEquals (_getID (aMsg2), aEntry.getMessageID ());
+      assertEquals (1, aEntry.getAttachmentCount ());
+
+      final WSS4JAttachment aAttachment = aEntry.getAllAttachments (aResHelper).getFirst ();
+      assertEquals (aMsg2.getPayloadInfo ().getPartInfoAtIndex (0).getHref (), "cid:" + aAttachment.getId ());
+      assertEquals (CMimeType.TEXT_PLAIN.getAsString (), aAttachment.getMimeType ());
+      assertEquals (StandardCharsets.UTF_8, aAttachment.getCharsetOrDefault (null));
+      assertEquals (ATTACHMENT_CONTENT,
+                    StreamHelper.getAllBytesAsString (aAttachment.getSourceStream (), StandardCharsets.UTF_8));
+    }
+
+    // Restart again - only the unacknowledged message is left
+    try (final AS4MPCMessageStore aStore = new AS4MPCMessageStore (BASE_DIR))
+    {
+      aStore.start ();
+      assertEquals (1, aStore.getMessageCount ());
+      assertEquals (_getID (aMsg2), aStore.lease (MPC1).getMessageID ());
+    }
+  }
+
+  @Test
+  public void testSegmentRollover () throws Exception
+  {
+    final ICommonsList <Ebms3UserMessage> aMsgs = new CommonsArrayList <> ();
+    try (final AS4MPCMessageStore aStore = new AS4MPCMessageStore (BASE_DIR))
+    {
+      // Each message gets its own segment
+      aStore.setMaxSegmentSize (1).start ();
+      for (int i = 0; i < 5; ++i)
+      {
+        final Ebms3UserMessage aMsg = _createUserMessage (new CommonsArrayList <> ());
+        aStore.enqueue (MPC1, aMsg, null);
+        aMsgs.add (aMsg);
+      }
+      assertTrue (aStore.getSegmentCount () >= 5);
+
+      // Acknowledging a message in the middle keeps all segments
+      final int nSegments = aStore.getSegmentCount ();
+      aStore.acknowledge (_getID (aMsgs.get (2)));
+      assertEquals (nSegments + 1, aStore.getSegmentCount ());
+
+      // Acknowledging the first two messages frees the first three segments,
+      // while two new segments are needed for the acknowledgements
+      aStore.acknowledge (_getID (aMsgs.get (0)));
+      aStore.acknowledge (_getID (aMsgs.get (1)));
+      assertEquals (nSegments, aStore.getSegmentCount ());
+      assertEquals (nSegments, BASE_DIR.listFiles ().length);
+    }
+
+    try (final AS4MPCMessageStore aStore = new AS4MPCMessageStore (BASE_DIR))
+    {
+      aStore.start ();
+      assertEquals (2, aStore.getMessageCount ());
+      assertEquals (_getID (aMsgs.get (3)), aStore.lease (MPC1).getMessageID ());
+      assertEquals (_getID (aMsgs.get (4)), aStore.lease (MPC1).getMessageID ());
+    }
+  }
+
+  @Test
+  public void testConcurrentLeaseAndAcknowledge () throws Exception
+  {
+    final int nCount = 200;
+    final ICommonsList <String> aIDs = new CommonsArrayList <> ();
+    try (final AS4MPCMessageStore aStore = new AS4MPCMessageStore (BASE_DIR))
+    {
+      // Each message gets its own segment, that is deleted on acknowledgement
+      aStore.setMaxSegmentSize (1).setSyncOnWrite (false).start ();
+      for (int i = 0; i < nCount; ++i)
+      {
+        final Ebms3UserMessage aMsg = _createUserMessage (new CommonsArrayList <> ());
+        aStore.enqueue (MPC1, aMsg, null);
+        aIDs.add (_getID (aMsg));
+      }
+
+      // Acknowledge while the same messages are leased
+      final ExecutorService aES = Executors.newFixedThreadPool (8);
+      final ICommonsList <Future <?>> aFutures = new CommonsArrayList <> ();
+      for (int t = 0; t < 4; ++t)
+      {
+        aFutures.add (aES.submit ( () -> {
+          while (aStore.lease (MPC1) != null)
+          {}
+          return null;
+        }));
+        aFutures.add (aES.submit ( () -> {
+          for (final String sID : aIDs)
+            aStore.acknowledge (sID);
+        }));
+      }
+      ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (aES);
+      // Propagates any exception
+      for (final Future <?> aFuture : aFutures)
+        aFuture.get ();
+
+      assertEquals (0, aStore.getMessageCount ());
+      assertNull (aStore.lease (MPC1));
+      assertEquals (1, aStore.getSegmentCount ());
+    }
+  }
+
+  @Test
+  public void testCutOffIncompleteRecord () throws Exception
+  {
+    final Ebms3UserMessage aMsg = _createUserMessage (new CommonsArrayList <> ());
+    try (final AS4MPCMessageStore aStore = new AS4MPCMessageStore (BASE_DIR))
+    {
+      aStore.start ();
+      aStore.enqueue (MPC1, aMsg, null);
+    }
+
+    // Simulate a partially written record
+    final File [] aSegmentFiles = BASE_DIR.listFiles ();
+    assertNotNull (aSegmentFiles);
+    assertEquals (1, aSegmentFiles.length);
+    final long nValidSize = aSegmentFiles[0].length ();
+    try (final FileOutputStream aFOS = new FileOutputStream (aSegmentFiles[0], true))
+    {
+      aFOS.write (new byte [] { 0, 0, 1, 0, 1, 2 });
+    }
+
+    try (final AS4MPCMessageStore aStore = new AS4MPCMessageStore (BASE_DIR))
+    {
+      aStore.start ();
+      assertEquals (nValidSize, aSegmentFiles[0].length ());
+      assertEquals (_getID (aMsg), aStore.lease (MPC1).getMessageID ());
+    }
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.servlet.queue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsOrderedMap;
+import com.helger.commons.io.file.FileOperations;
+
+/**
+ * Test class for class {@link AS4InboundQueueJournal}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4InboundQueueJournalTest
+{
+  private static final File BASE_DIR = new File ("target/inbound-queue-journal-test");
+  private static final File JOURNAL_FILE = new File (BASE_DIR, "journal.log");
+
+  @Before
+  public void cleanup ()
+  {
+    FileOperations.deleteDirRecursiveIfExisting (BASE_DIR);
+    FileOperations.createDirRecursive (BASE_DIR);
+  }
+
+  @Test
+  public void testReplay () throws Exception
+  {
+    try (final AS4InboundQueueJournal aJournal = new AS4InboundQueueJournal (JOURNAL_FILE, true))
+    {
+      assertTrue (aJournal.open ().isEmpty ());
+      aJournal.appendEnqueued ("a");
+      aJournal.appendEnqueued ("b");
+      aJournal.appendEnqueued ("c");
+      aJournal.appendFailedAttempt ("b", 2);
+      aJournal.appendAcknowledged ("a");
+      aJournal.appendDeadLettered ("c");
+      aJournal.sync ();
+    }
+
+    try (final AS4InboundQueueJournal aJournal = new AS4InboundQueueJournal (JOURNAL_FILE, true))
+    {
+      final ICommonsOrderedMap <String, Integer> aOpen = aJournal.open ();
+      assertEquals (1, aOpen.size ());
+      assertEquals (Integer.valueOf (2), aOpen.get ("b"));
+      // Only the open entry is left after rewriting
+      assertEquals (2, aJournal.getLineCount ());
+    }
+  }
+
+  @Test
+  public void testConcurrentAppendAndSync () throws Exception
+  {
+    final int nThreads = 8;
+    final int nPerThread = 200;
+    try (final AS4InboundQueueJournal aJournal = new AS4InboundQueueJournal (JOURNAL_FILE, true))
+    {
+      aJournal.open ();
+      final ExecutorService aES = Executors.newFixedThreadPool (nThreads);
+      final ICommonsList <Future <?>> aFutures = new CommonsArrayList <> ();
+      for (int t = 0; t < nThreads; ++t)
+      {
+        final int nThread = t;
+        aFutures.add (aES.submit ( () -> {
+          for (int i = 0; i < nPerThread; ++i)
+          {
+            final String sID = "t" + nThread + "-" + i;
+            aJournal.appendEnqueued (sID);
+            aJournal.sync ();
+            if ((i % 2) == 0)
+            {
+              aJournal.appendAcknowledged (sID);
+              aJournal.sync ();
+            }
+          }
+          return null;
+        }));
+      }
+      aES.shutdown ();
+      for (final Future <?> aFuture : aFutures)
+        aFuture.get (60, TimeUnit.SECONDS);
+    }
+
+    try (final AS4InboundQueueJournal aJournal = new AS4InboundQueueJournal (JOURNAL_FILE, true))
+    {
+      final ICommonsOrderedMap <String, Integer> aOpen = aJournal.open ();
+      assertEquals (nThreads * nPerThread / 2, aOpen.size ());
+      assertTrue (aOpen.containsKey ("t0-1"));
+      assertFalse (aOpen.containsKey ("t0-0"));
+    }
+  }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.servlet.queue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.concurrent.ThreadHelper;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.file.FileOperations;
+import com.helger.commons.io.stream.HasInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.mime.CMimeType;
+import com.helger.phase4.AS4TestRule;
+import com.helger.phase4.CAS4;
+import com.helger.phase4.attachment.WSS4JAttachment;
+import com.helger.phase4.ebms3header.Ebms3Error;
+import com.helger.phase4.ebms3header.Ebms3Messaging;
+import com.helger.phase4.ebms3header.Ebms3SignalMessage;
+import com.helger.phase4.ebms3header.Ebms3UserMessage;
+import com.helger.phase4.messaging.IAS4IncomingMessageMetadata;
+import com.helger.phase4.messaging.domain.AS4UserMessage;
+import com.helger.phase4.messaging.domain.MessageHelperMethods;
+import com.helger.phase4.model.pmode.IPMode;
+import com.helger.phase4.servlet.AS4IncomingMessageMetadata;
+import com.helger.phase4.servlet.AS4MessageState;
+import com.helger.phase4.servlet.IAS4MessageState;
+import com.helger.phase4.servlet.spi.AS4MessageProcessorResult;
+import com.helger.phase4.servlet.spi.AS4SignalMessageProcessorResult;
+import com.helger.phase4.servlet.spi.IAS4ServletMessageProcessorSPI;
+import com.helger.phase4.soap.ESoapVersion;
+import com.helger.phase4.util.AS4ResourceHelper;
+import com.helger.xml.XMLFactory;
+
+/**
+ * Test class for class {@link AS4InboundQueue}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4InboundQueueTest
+{
+  private static final File BASE_DIR = new File ("target/inbound-queue-test");
+  private static final String ATTACHMENT_CONTENT = "Attachment content";
+
+  @Rule
+  public final TestRule m_aTestRule = new AS4TestRule ();
+
+  /**
+   * A mock SPI that fails a configurable number of times.
+   *
+   * @author Philip Helger
+   */
+  private static final class MockSPI implements IAS4ServletMessageProcessorSPI
+  {
+    private final int m_nFailures;
+    private final AtomicInteger m_aCalls = new AtomicInteger (0);
+    private volatile String m_sMessageID;
+    private volatile String m_sRemoteAddr;
+    private volatile String m_sPayloadName;
+    private volatile String m_sAttachmentContent;
+
+    MockSPI (final int nFailures)
+    {
+      m_nFailures = nFailures;
+    }
+
+    public AS4MessageProcessorResult processAS4UserMessage (@Nonnull final IAS4IncomingMessageMetadata aMessageMetadata,
+                                                            @Nonnull final HttpHeaderMap aHttpHeaders,
+                                                            @Nonnull final Ebms3UserMessage aUserMessage,
+                                                            final IPMode aPMode,
+                                                            final Node aPayload,
+                                                            final ICommonsList <WSS4JAttachment> aIncomingAttachments,
+                                                            @Nonnull final IAS4MessageState aState,
+                                                            @Nonnull final ICommonsList <Ebms3Error> aProcessingErrorMessages)
+    {
+      if (m_aCalls.incrementAndGet () <= m_nFailures)
+        return AS4MessageProcessorResult.createFailure ("Mock failure");
+
+      m_sMessageID = aUserMessage.getMessageInfo ().getMessageId ();
+      m_sRemoteAddr = aMessageMetadata.getRemoteAddr ();
+      m_sPayloadName = aPayload == null ? null : aPayload.getLocalName ();
+      m_sAttachmentContent = StreamHelper.getAllBytesAsString (aIncomingAttachments.getFirst ().getSourceStream (),
+                                                               StandardCharsets.UTF_8);
+      return AS4MessageProcessorResult.createSuccess ();
+    }
+
+    public AS4SignalMessageProcessorResult processAS4SignalMessage (@Nonnull final IAS4IncomingMessageMetadata aMessageMetadata,
+                                                                    @Nonnull final HttpHeaderMap aHttpHeaders,
+                                                                    @Nonnull final Ebms3SignalMessage aSignalMessage,
+                                                                    final IPMode aPMode,
+                                                                    @Nonnull final IAS4MessageState aState,
+                                                                    @Nonnull final ICommonsList <Ebms3Error> aProcessingErrorMessages)
+    {
+      throw new UnsupportedOperationException ();
+    }
+  }
+
+  @Before
+  public void cleanup ()
+  {
+    FileOperations.deleteDirRecursiveIfExisting (BASE_DIR);
+  }
+
+  @Nonnull
+  private static AS4MessageState _createState (@Nonnull final AS4ResourceHelper aResHelper)
+  {
+    final Document aPayloadDoc = XMLFactory.newDocument ();
+    final Element ePayload = (Element) aPayloadDoc.appendChild (aPayloadDoc.createElementNS ("urn:test", "Payload"));
+
+    final WSS4JAttachment aAttachment = new WSS4JAttachment (aResHelper, CMimeType.TEXT_PLAIN.getAsString ());
+    aAttachment.setUniqueID ();
+    aAttachment.setSourceStreamProvider (HasInputStream.multiple ( () -> new NonBlockingByteArrayInputStream (ATTACHMENT_CONTENT.getBytes (StandardCharsets.UTF_8))));
+    final ICommonsList <WSS4JAttachment> aAttachments = new CommonsArrayList <> (aAttachment);
+
+    final AS4UserMessage aUserMsg = AS4UserMessage.create (MessageHelperMethods.createEbms3MessageInfo (),
+                                                           MessageHelperMethods.createEbms3PayloadInfo (true, aAttachments),
+                                                           MessageHelperMethods.createEbms3CollaborationInfo (null,
+                                                                                                              null,
+                                                                                                              "MyServiceTypes",
+                                                                                                              "QuoteToCollect",
+                                                                                                              "NewPurchaseOrder",
+                                                                                                              "4321"),
+                                                           MessageHelperMethods.createEbms3PartyInfo (CAS4.DEFAULT_INITIATOR_URL,
+                                                                                                      "1234",
+                                                                                                      CAS4.DEFAULT_RESPONDER_URL,
+                                                                                                      "5678"),
+                                                           null,
+                                                           ESoapVersion.AS4_DEFAULT);
+    final Ebms3Messaging aMessaging = new Ebms3Messaging ();
+    aMessaging.addUserMessage (aUserMsg.getEbms3UserMessage ());
+
+    final AS4MessageState aState = new AS4MessageState (ESoapVersion.AS4_DEFAULT, aResHelper, Locale.US);
+    aState.setMessaging (aMessaging);
+    aState.setOriginalSoapDocument (aUserMsg.getAsSoapDocument (ePayload));
+    aState.setOriginalAttachments (aAttachments);
+    aState.setMessageID (aUserMsg.getEbms3UserMessage ().getMessageInfo ().getMessageId ());
+    return aState;
+  }
+
+  private static void _waitFor (@Nonnull final BooleanSupplier aCondition)
+  {
+    final long nEnd = System.currentTimeMillis () + 10_000;
+    while (!aCondition.getAsBoolean ())
+    {
+      assertTrue ("Timeout waiting for condition", System.currentTimeMillis () < nEnd);
+      ThreadHelper.sleep (10);
+    }
+  }
+
+  @Test
+  public void testProcessWithRedelivery () throws Exception
+  {
+    final MockSPI aSPI = new MockSPI (1);
+    try (final AS4InboundQueue aQueue = new AS4InboundQueue (BASE_DIR);
+         final AS4ResourceHelper aResHelper = new AS4ResourceHelper ())
+    {
+      aQueue.setRedeliveryDelay (Duration.ofMillis (10)).setProcessorSupplier ( () -> new CommonsArrayList <> (aSPI));
+      aQueue.start ();
+
+      final AS4MessageState aState = _createState (aResHelper);
+      final String sEntryID = aQueue.enqueue (AS4IncomingMessageMetadata.createForRequest ().setRemoteAddr ("127.0.0.1"),
+                                              new HttpHeaderMap (),
+                                              aState);
+      assertNotNull (sEntryID);
+
+      _waitFor ( () -> aQueue.getProcessedCount () == 1);
+      assertEquals (0, aQueue.getQueueDepth ());
+      assertEquals (1, aQueue.getEnqueuedCount ());
+      assertEquals (1, aQueue.getRedeliveryCount ());
+      assertEquals (0, aQueue.getDeadLetterCount ());
+      assertEquals (2, aSPI.m_aCalls.get ());
+
+      // Check restored data
+      assertEquals (aState.getMessageID (), aSPI.m_sMessageID);
+      assertEquals ("127.0.0.1", aSPI.m_sRemoteAddr);
+      assertEquals ("Payload", aSPI.m_sPayloadName);
+      assertEquals (ATTACHMENT_CONTENT, aSPI.m_sAttachmentContent);
+    }
+  }
+
+  @Test
+  public void testRedeliveryAfterRestart () throws Exception
+  {
+    try (final AS4ResourceHelper aResHelper = new AS4ResourceHelper ())
+    {
+      // Always failing with a long delay
+      try (final AS4InboundQueue aQueue = new AS4InboundQueue (BASE_DIR))
+      {
+        aQueue.setRedeliveryDelay (Duration.ofHours (1)).setProcessorSupplier ( () -> new CommonsArrayList <> (new MockSPI (Integer.MAX_VALUE)));
+        aQueue.start ();
+        aQueue.enqueue (AS4IncomingMessageMetadata.createForRequest (), new HttpHeaderMap (), _createState (aResHelper));
+        _waitFor ( () -> aQueue.getRedeliveryCount () == 1);
+        assertEquals (1, aQueue.getQueueDepth ());
+      }
+
+      // Restart and succeed
+      final MockSPI aSPI = new MockSPI (0);
+      try (final AS4InboundQueue aQueue = new AS4InboundQueue (BASE_DIR))
+      {
+        aQueue.setProcessorSupplier ( () -> new CommonsArrayList <> (aSPI));
+        aQueue.start ();
+        _waitFor ( () -> aQueue.getProcessedCount () == 1);
+        assertEquals (0, aQueue.getQueueDepth ());
+        assertEquals (ATTACHMENT_CONTENT, aSPI.m_sAttachmentContent);
+      }
+    }
+  }
+
+  @Test
+  public void testDeadLetter () throws Exception
+  {
+    try (final AS4InboundQueue aQueue = new AS4InboundQueue (BASE_DIR);
+         final AS4ResourceHelper aResHelper = new AS4ResourceHelper ())
+    {
+      aQueue.setMaxAttempts (2)
+            .setRedeliveryDelay (Duration.ZERO)
+            .setProcessorSupplier ( () -> new CommonsArrayList <> (new MockSPI (Integer.MAX_VALUE)));
+      aQueue.start ();
+
+      final String sEntryID = aQueue.enqueue (AS4IncomingMessageMetadata.createForRequest (),
+                                              new HttpHeaderMap (),
+                                              _createState (aResHelper));
+      _waitFor ( () -> aQueue.getDeadLetterCount () == 1);
+      assertEquals (0, aQueue.getQueueDepth ());
+      assertEquals (0, aQueue.getProcessedCount ());
+      assertTrue (new File (aQueue.getDeadLetterDir (), sEntryID).isDirectory ());
+    }
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.tracing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.http.HttpHeaderMap;
+
+/**
+ * Test class for class {@link AS4TracingManager}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4TracingManagerTest
+{
+  @After
+  public void after ()
+  {
+    AS4TracingManager.setTracer (null);
+  }
+
+  @Test
+  public void testDisabled ()
+  {
+    assertFalse (AS4TracingManager.isEnabled ());
+    assertNull (AS4TracingManager.getTracer ());
+    assertSame (AS4TracingManager.NO_OP_SPAN, AS4TracingManager.startSpan ("a", EAS4SpanKind.INTERNAL));
+    assertSame (AS4TracingManager.NO_OP_SPAN,
+                AS4TracingManager.startSpan ("a", EAS4SpanKind.SERVER, new HttpHeaderMap ()));
+
+    final Runnable r = () -> {};
+    assertSame (r, AS4TracingManager.wrap (r));
+    final ExecutorService aExecutor = Executors.newSingleThreadExecutor ();
+    try
+    {
+      assertSame (aExecutor, AS4TracingManager.wrapExecutor (aExecutor));
+    }
+    finally
+    {
+      aExecutor.shutdown ();
+    }
+
+    final HttpHeaderMap aHeaders = new HttpHeaderMap ();
+    AS4TracingManager.injectContext (aHeaders::setHeader);
+    assertTrue (aHeaders.isEmpty ());
+  }
+
+  @Test
+  public void testNestedAndPropagated () throws Exception
+  {
+    final MockAS4Tracer aTracer = new MockAS4Tracer ();
+    AS4TracingManager.setTracer (aTracer);
+    assertTrue (AS4TracingManager.isEnabled ());
+
+    final HttpHeaderMap aOutgoingHeaders = new HttpHeaderMap ();
+    final ExecutorService aExecutor = Executors.newSingleThreadExecutor ();
+    try
+    {
+      try (final IAS4Span aOuter = AS4TracingManager.startSpan ("send", EAS4SpanKind.INTERNAL))
+      {
+        try (final IAS4Span aInner = AS4TracingManager.startSpan ("http", EAS4SpanKind.CLIENT))
+        {
+          AS4TracingManager.injectContext (aOutgoingHeaders::setHeader);
+        }
+
+        // Context is captured when submitting
+        CompletableFuture.runAsync ( () -> {
+          try (final IAS4Span aAsync = AS4TracingManager.startSpan ("async", EAS4SpanKind.INTERNAL))
+          {
+            // empty
+          }
+        }, AS4TracingManager.wrapExecutor (aExecutor)).get ();
+
+        // Not wrapped - no parent
+        CompletableFuture.runAsync ( () -> {
+          try (final IAS4Span aAsync = AS4TracingManager.startSpan ("unwrapped", EAS4SpanKind.INTERNAL))
+          {
+            // empty
+          }
+        }, aExecutor).get ();
+      }
+    }
+    finally
+    {
+      aExecutor.shutdown ();
+    }
+
+    // Remote parent
+    try (final IAS4Span aServer = AS4TracingManager.startSpan ("receive", EAS4SpanKind.SERVER, aOutgoingHeaders))
+    {
+      aServer.recordException (new IllegalStateException ());
+    }
+
+    assertEquals ("http", aOutgoingHeaders.getFirstHeaderValue (MockAS4Tracer.HEADER));
+    assertEquals (new CommonsArrayList <> ("send<-null",
+                                           "http<-send",
+                                           "async<-send",
+                                           "unwrapped<-null",
+                                           "receive<-http",
+                                           "receive!IllegalStateException"),
+                  aTracer.getAllSpans ());
+  }
+}
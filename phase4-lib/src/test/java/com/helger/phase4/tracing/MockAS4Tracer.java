@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.tracing;
+
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.collection.impl.CommonsVector;
+import com.helger.commons.collection.impl.ICommonsList;
+
+/**
+ * A simple {@link IAS4Tracer} for testing, that uses the span name as the
+ * context and records each span as "name&lt;-parent".
+ *
+ * @author Philip Helger
+ */
+public final class MockAS4Tracer implements IAS4Tracer
+{
+  public static final String HEADER = "X-Mock-Trace";
+
+  private final ThreadLocal <String> m_aCurrent = new ThreadLocal <> ();
+  private final ICommonsList <String> m_aSpans = new CommonsVector <> ();
+
+  @Nonnull
+  public IAS4Span startSpan (@Nonnull final String sSpanName,
+                             @Nonnull final EAS4SpanKind eKind,
+                             @Nullable final Function <String, String> aRemoteParentHeaderGetter)
+  {
+    final String sPrevious = m_aCurrent.get ();
+    final String sParent = aRemoteParentHeaderGetter != null ? aRemoteParentHeaderGetter.apply (HEADER) : sPrevious;
+    m_aSpans.add (sSpanName + "<-" + sParent);
+    m_aCurrent.set (sSpanName);
+    return new IAS4Span ()
+    {
+      @Nonnull
+      public IAS4Span setAttribute (@Nonnull final String sKey, @Nullable final String sValue)
+      {
+        return this;
+      }
+
+      public void recordException (@Nonnull final Throwable t)
+      {
+        m_aSpans.add (sSpanName + "!" + t.getClass ().getSimpleName ());
+      }
+
+      public void close ()
+      {
+        m_aCurrent.set (sPrevious);
+      }
+    };
+  }
+
+  public void injectContext (@Nonnull final BiConsumer <String, String> aHeaderSetter)
+  {
+    final String sCurrent = m_aCurrent.get ();
+    if (sCurrent != null)
+      aHeaderSetter.accept (HEADER, sCurrent);
+  }
+
+  @Nonnull
+  public IAS4TraceContext getCurrentContext ()
+  {
+    final String sContext = m_aCurrent.get ();
+    return () -> {
+      final String sPrevious = m_aCurrent.get ();
+      m_aCurrent.set (sContext);
+      return () -> m_aCurrent.set (sPrevious);
+    };
+  }
+
+  @Nonnull
+  public ICommonsList <String> getAllSpans ()
+  {
+    return m_aSpans.getClone ();
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.concurrent.ThreadHelper;
+import com.helger.commons.timing.StopWatch;
+
+/**
+ * Test class for class {@link AS4ExecutorHelper}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4ExecutorHelperTest
+{
+  @Test
+  public void testVirtualThreads ()
+  {
+    final boolean bSupported = Runtime.version ().feature () >= 21;
+    assertEquals (Boolean.valueOf (bSupported), Boolean.valueOf (AS4ExecutorHelper.isVirtualThreadSupported ()));
+
+    final ExecutorService aES = AS4ExecutorHelper.createVirtualThreadPerTaskExecutor ();
+    if (bSupported)
+    {
+      assertNotNull (aES);
+      assertEquals ("x", CompletableFuture.supplyAsync ( () -> "x", aES).join ());
+      ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (aES);
+    }
+    else
+      assertNull (aES);
+  }
+
+  @Test
+  public void testCustomExecutor ()
+  {
+    final Executor aExecutor = Runnable::run;
+    AS4ExecutorHelper.setCustomExecutor (aExecutor);
+    try
+    {
+      assertSame (aExecutor, AS4ExecutorHelper.getCustomExecutor ());
+      assertSame (aExecutor, AS4ExecutorHelper.getExecutor ());
+    }
+    finally
+    {
+      AS4ExecutorHelper.setCustomExecutor (null);
+    }
+    assertNull (AS4ExecutorHelper.getCustomExecutor ());
+    assertNotNull (AS4ExecutorHelper.getExecutor ());
+  }
+
+  @Test
+  public void testBlockingTasksRunConcurrently ()
+  {
+    // Blocking tasks (like HTTP I/O or retry waits) must not be serialized
+    final int nTasks = 50;
+    final long nSleepMillis = 100;
+    final StopWatch aSW = StopWatch.createdStarted ();
+    final ICommonsList <CompletableFuture <Void>> aFutures = new CommonsArrayList <> ();
+    for (int i = 0; i < nTasks; ++i)
+      aFutures.add (CompletableFuture.runAsync ( () -> ThreadHelper.sleep (nSleepMillis),
+                                                 AS4ExecutorHelper.getExecutor ()));
+    CompletableFuture.allOf (aFutures.toArray (new CompletableFuture [0])).join ();
+    aSW.stop ();
+    assertTrue ("Took " + aSW.getMillis () + " ms", aSW.getMillis () < nTasks * nSleepMillis / 2);
+  }
+}
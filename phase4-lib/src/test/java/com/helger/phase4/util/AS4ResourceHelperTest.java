@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.io.entity.InputStreamEntity;
+import org.junit.Test;
+
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.phase4.http.AS4SpooledHttpEntity;
+
+/**
+ * Test class for class {@link AS4ResourceHelper}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4ResourceHelperTest
+{
+  private static InputStreamEntity _createStreamingEntity (final byte [] aBytes)
+  {
+    // Not repeatable and unknown length
+    return new InputStreamEntity (new NonBlockingByteArrayInputStream (aBytes), -1, ContentType.TEXT_XML);
+  }
+
+  @Test
+  public void testCreateSpooledHttpEntity () throws Exception
+  {
+    final byte [] aBytes = "<root>spooled</root>".getBytes (StandardCharsets.UTF_8);
+    final File aFile;
+    try (final AS4ResourceHelper aResHelper = new AS4ResourceHelper ())
+    {
+      final AS4SpooledHttpEntity aEntity = aResHelper.createSpooledHttpEntity (_createStreamingEntity (aBytes));
+      aFile = aEntity.getFile ();
+      assertTrue (aFile.exists ());
+      assertTrue (aEntity.isRepeatable ());
+      assertEquals (aBytes.length, aEntity.getContentLength ());
+      assertEquals (ContentType.TEXT_XML.toString (), aEntity.getContentType ());
+      assertEquals (64, aEntity.getDigestHex ().length ());
+
+      // Same bytes on every read
+      for (int i = 0; i < 3; ++i)
+        try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+        {
+          aEntity.writeTo (aBAOS);
+          assertArrayEquals (aBytes, aBAOS.toByteArray ());
+        }
+
+      // Spooling a spooled entity is a no-op
+      assertSame (aEntity, aResHelper.createSpooledHttpEntity (aEntity));
+
+      // Same content is spooled only once
+      final int nTempFiles = aResHelper.getAllTempFiles ().size ();
+      assertSame (aEntity, aResHelper.createSpooledHttpEntity (_createStreamingEntity (aBytes)));
+      assertEquals (1, aResHelper.getAllTempFiles ().stream ().filter (File::exists).count ());
+      assertEquals (nTempFiles + 1, aResHelper.getAllTempFiles ().size ());
+
+      // Different content
+      final AS4SpooledHttpEntity aOther = aResHelper.createSpooledHttpEntity (_createStreamingEntity ("<other/>".getBytes (StandardCharsets.UTF_8)));
+      assertNotSame (aEntity, aOther);
+      assertFalse (aEntity.getDigestHex ().equals (aOther.getDigestHex ()));
+    }
+    // Spool files are deleted on close
+    assertFalse (aFile.exists ());
+  }
+}
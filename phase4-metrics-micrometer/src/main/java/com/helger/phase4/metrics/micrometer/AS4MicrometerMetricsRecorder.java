@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.metrics.micrometer;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.phase4.metrics.AS4MetricsManager;
+import com.helger.phase4.metrics.AS4MetricsTags;
+import com.helger.phase4.metrics.EAS4MetricsCounter;
+import com.helger.phase4.metrics.EAS4MetricsStage;
+import com.helger.phase4.metrics.IAS4MetricsRecorder;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Implementation of {@link IAS4MetricsRecorder} that records all values in a
+ * Micrometer {@link MeterRegistry}. Each stage is recorded as a {@link Timer}
+ * named <code>&lt;prefix&gt;.&lt;stage-id&gt;</code> and each counter as a
+ * {@link Counter} named <code>&lt;prefix&gt;.&lt;counter-id&gt;</code>. All
+ * meters carry the tags {@value #TAG_PROFILE}, {@value #TAG_PMODE},
+ * {@value #TAG_MEP} and timers additionally {@value #TAG_OUTCOME}.<br>
+ * Install it via {@link #install(MeterRegistry)} or
+ * {@link AS4MetricsManager#setRecorder(IAS4MetricsRecorder)}.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@ThreadSafe
+public class AS4MicrometerMetricsRecorder implements IAS4MetricsRecorder
+{
+  public static final String DEFAULT_NAME_PREFIX = "phase4";
+  public static final String TAG_PROFILE = "profile";
+  public static final String TAG_PMODE = "pmode";
+  public static final String TAG_MEP = "mep";
+  public static final String TAG_OUTCOME = "outcome";
+  public static final String OUTCOME_SUCCESS = "success";
+  public static final String OUTCOME_FAILURE = "failure";
+  /** The tag value used if a tag value is not known */
+  public static final String TAG_VALUE_NONE = "none";
+
+  private final MeterRegistry m_aRegistry;
+  private final String m_sNamePrefix;
+
+  public AS4MicrometerMetricsRecorder (@Nonnull final MeterRegistry aRegistry)
+  {
+    this (aRegistry, DEFAULT_NAME_PREFIX);
+  }
+
+  public AS4MicrometerMetricsRecorder (@Nonnull final MeterRegistry aRegistry,
+                                       @Nonnull @Nonempty final String sNamePrefix)
+  {
+    ValueEnforcer.notNull (aRegistry, "Registry");
+    ValueEnforcer.notEmpty (sNamePrefix, "NamePrefix");
+    m_aRegistry = aRegistry;
+    m_sNamePrefix = sNamePrefix;
+  }
+
+  /**
+   * @return The meter registry used. Never <code>null</code>.
+   */
+  @Nonnull
+  public final MeterRegistry getRegistry ()
+  {
+    return m_aRegistry;
+  }
+
+  /**
+   * @return The prefix for all meter names. Neither <code>null</code> nor
+   *         empty.
+   */
+  @Nonnull
+  @Nonempty
+  public final String getNamePrefix ()
+  {
+    return m_sNamePrefix;
+  }
+
+  @Nonnull
+  private static String _getTagValue (@Nullable final String s)
+  {
+    return StringHelper.hasText (s) ? s : TAG_VALUE_NONE;
+  }
+
+  /**
+   * Get the Micrometer tags for the provided phase4 tags.
+   *
+   * @param aTags
+   *        The phase4 tags. May not be <code>null</code>.
+   * @return The Micrometer tags. Never <code>null</code>.
+   */
+  @Nonnull
+  protected Tags getMicrometerTags (@Nonnull final AS4MetricsTags aTags)
+  {
+    return Tags.of (TAG_PROFILE,
+                    _getTagValue (aTags.getProfileID ()),
+                    TAG_PMODE,
+                    _getTagValue (aTags.getPModeID ()),
+                    TAG_MEP,
+                    _getTagValue (aTags.getMEP ()));
+  }
+
+  public void recordStage (@Nonnull final EAS4MetricsStage eStage,
+                           @Nonnull final AS4MetricsTags aTags,
+                           final boolean bSuccess,
+                           @Nonnegative final long nDurationNanos)
+  {
+    // The registry caches the meters by name and tags
+    Timer.builder (m_sNamePrefix + '.' + eStage.getID ())
+         .tags (getMicrometerTags (aTags))
+         .tag (TAG_OUTCOME, bSuccess ? OUTCOME_SUCCESS : OUTCOME_FAILURE)
+         .register (m_aRegistry)
+         .record (nDurationNanos, TimeUnit.NANOSECONDS);
+  }
+
+  public void incrementCounter (@Nonnull final EAS4MetricsCounter eCounter, @Nonnull final AS4MetricsTags aTags)
+  {
+    Counter.builder (m_sNamePrefix + '.' + eCounter.getID ())
+           .tags (getMicrometerTags (aTags))
+           .register (m_aRegistry)
+           .increment ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("Registry", m_aRegistry)
+                                       .append ("NamePrefix", m_sNamePrefix)
+                                       .getToString ();
+  }
+
+  /**
+   * Create a new recorder for the provided registry and install it globally
+   * in the {@link AS4MetricsManager}.
+   *
+   * @param aRegistry
+   *        The meter registry to record to. May not be <code>null</code>.
+   * @return The installed recorder. Never <code>null</code>.
+   */
+  @Nonnull
+  public static AS4MicrometerMetricsRecorder install (@Nonnull final MeterRegistry aRegistry)
+  {
+    final AS4MicrometerMetricsRecorder ret = new AS4MicrometerMetricsRecorder (aRegistry);
+    AS4MetricsManager.setRecorder (ret);
+    return ret;
+  }
+}
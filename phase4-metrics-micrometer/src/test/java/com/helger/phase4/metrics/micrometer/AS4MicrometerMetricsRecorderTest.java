@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.metrics.micrometer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.helger.phase4.metrics.AS4MetricsManager;
+import com.helger.phase4.metrics.AS4MetricsTags;
+import com.helger.phase4.metrics.EAS4MetricsCounter;
+import com.helger.phase4.metrics.EAS4MetricsStage;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Test class for class {@link AS4MicrometerMetricsRecorder}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4MicrometerMetricsRecorderTest
+{
+  @After
+  public void after ()
+  {
+    AS4MetricsManager.setRecorder (null);
+  }
+
+  @Test
+  public void testRecordStage ()
+  {
+    final SimpleMeterRegistry aRegistry = new SimpleMeterRegistry ();
+    final AS4MicrometerMetricsRecorder aRecorder = new AS4MicrometerMetricsRecorder (aRegistry);
+    final AS4MetricsTags aTags = new AS4MetricsTags ("profile1", "pmode1", "oneWay");
+
+    aRecorder.recordStage (EAS4MetricsStage.INCOMING_MIME_PARSE, aTags, true, TimeUnit.MILLISECONDS.toNanos (5));
+    aRecorder.recordStage (EAS4MetricsStage.INCOMING_MIME_PARSE, aTags, true, TimeUnit.MILLISECONDS.toNanos (7));
+    aRecorder.recordStage (EAS4MetricsStage.INCOMING_MIME_PARSE, aTags, false, TimeUnit.MILLISECONDS.toNanos (1));
+
+    final Timer aSuccess = aRegistry.find ("phase4.incoming.mime.parse")
+                                    .tag (AS4MicrometerMetricsRecorder.TAG_PROFILE, "profile1")
+                                    .tag (AS4MicrometerMetricsRecorder.TAG_PMODE, "pmode1")
+                                    .tag (AS4MicrometerMetricsRecorder.TAG_MEP, "oneWay")
+                                    .tag (AS4MicrometerMetricsRecorder.TAG_OUTCOME,
+                                          AS4MicrometerMetricsRecorder.OUTCOME_SUCCESS)
+                                    .timer ();
+    assertNotNull (aSuccess);
+    assertEquals (2, aSuccess.count ());
+    assertEquals (12, aSuccess.totalTime (TimeUnit.MILLISECONDS), 0.001);
+
+    final Timer aFailure = aRegistry.find ("phase4.incoming.mime.parse")
+                                    .tag (AS4MicrometerMetricsRecorder.TAG_OUTCOME,
+                                          AS4MicrometerMetricsRecorder.OUTCOME_FAILURE)
+                                    .timer ();
+    assertNotNull (aFailure);
+    assertEquals (1, aFailure.count ());
+  }
+
+  @Test
+  public void testMissingTags ()
+  {
+    final SimpleMeterRegistry aRegistry = new SimpleMeterRegistry ();
+    final AS4MicrometerMetricsRecorder aRecorder = new AS4MicrometerMetricsRecorder (aRegistry, "as4");
+
+    aRecorder.incrementCounter (EAS4MetricsCounter.OUTGOING_RETRY, AS4MetricsTags.EMPTY);
+    aRecorder.incrementCounter (EAS4MetricsCounter.OUTGOING_RETRY, AS4MetricsTags.EMPTY);
+
+    final Counter aCounter = aRegistry.find ("as4.outgoing.retry")
+                                      .tag (AS4MicrometerMetricsRecorder.TAG_PROFILE,
+                                            AS4MicrometerMetricsRecorder.TAG_VALUE_NONE)
+                                      .tag (AS4MicrometerMetricsRecorder.TAG_PMODE,
+                                            AS4MicrometerMetricsRecorder.TAG_VALUE_NONE)
+                                      .counter ();
+    assertNotNull (aCounter);
+    assertEquals (2, aCounter.count (), 0.001);
+  }
+
+  @Test
+  public void testInstall ()
+  {
+    final SimpleMeterRegistry aRegistry = new SimpleMeterRegistry ();
+    final AS4MicrometerMetricsRecorder aRecorder = AS4MicrometerMetricsRecorder.install (aRegistry);
+    assertSame (aRecorder, AS4MetricsManager.getRecorder ());
+
+    final long nStart = AS4MetricsManager.startTiming ();
+    AS4MetricsManager.recordStage (EAS4MetricsStage.OUTGOING_HTTP, nStart, true, AS4MetricsTags.EMPTY);
+    assertEquals (1, aRegistry.get ("phase4.outgoing.http").timer ().count ());
+
+    AS4MetricsManager.setRecorder (null);
+    assertNull (AS4MetricsManager.getRecorder ());
+  }
+}
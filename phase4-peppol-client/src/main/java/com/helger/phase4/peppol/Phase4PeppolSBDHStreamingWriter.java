@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.Nonnull;
+import javax.annotation.WillClose;
+import javax.annotation.concurrent.Immutable;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.unece.cefact.namespaces.sbdh.StandardBusinessDocumentHeader;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.stream.HasInputStream;
+import com.helger.commons.io.stream.NonBlockingBufferedInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.sbdh.CSBDH;
+import com.helger.sbdh.SBDHMarshaller;
+
+import jakarta.xml.bind.Marshaller;
+import jakarta.xml.bind.PropertyException;
+
+/**
+ * A streaming writer for Standard Business Documents. Instead of building a DOM
+ * of the business document and marshalling the complete SBD, the serialized
+ * SBDH is written first, followed by the unmodified bytes of the business
+ * document (without the XML declaration) and the closing SBD element. This
+ * avoids having the business document in memory more than once.<br>
+ * The business document must be encoded in UTF-8 (as required by Peppol).
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@Immutable
+public final class Phase4PeppolSBDHStreamingWriter
+{
+  /** The maximum number of bytes the XML declaration may span */
+  public static final int MAX_XML_DECLARATION_BYTES = 1024;
+
+  private static final String SBDH_PREFIX = "sh";
+  private static final String ELEMENT_SBD = "StandardBusinessDocument";
+  private static final byte [] UTF8_BOM = { (byte) 0xef, (byte) 0xbb, (byte) 0xbf };
+  private static final byte [] XML_DECL_START = "<?xml".getBytes (StandardCharsets.US_ASCII);
+  private static final byte [] XML_DECL_END = "?>".getBytes (StandardCharsets.US_ASCII);
+  private static final byte [] SBD_START = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<" +
+                                             SBDH_PREFIX +
+                                             ":" +
+                                             ELEMENT_SBD +
+                                             " xmlns:" +
+                                             SBDH_PREFIX +
+                                             "=\"" +
+                                             CSBDH.SBDH_NS +
+                                             "\">").getBytes (StandardCharsets.UTF_8);
+  private static final byte [] SBD_END = ("</" + SBDH_PREFIX + ":" + ELEMENT_SBD + ">").getBytes (StandardCharsets.UTF_8);
+
+  // Factories are thread-safe after configuration
+  private static final XMLInputFactory XML_INPUT_FACTORY = _createXMLInputFactory ();
+
+  private Phase4PeppolSBDHStreamingWriter ()
+  {}
+
+  @Nonnull
+  private static XMLInputFactory _createXMLInputFactory ()
+  {
+    final XMLInputFactory ret = XMLInputFactory.newInstance ();
+    // Avoid XXE attacks
+    ret.setProperty (XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    ret.setProperty (XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    ret.setProperty (XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    return ret;
+  }
+
+  /**
+   * Special marshaller that emits the SBDH as an XML fragment, so that it can be
+   * embedded into an already started document.
+   *
+   * @author Philip Helger
+   */
+  private static final class SBDHFragmentMarshaller extends SBDHMarshaller
+  {
+    @Override
+    protected void customizeMarshaller (@Nonnull final Marshaller aMarshaller)
+    {
+      super.customizeMarshaller (aMarshaller);
+      try
+      {
+        aMarshaller.setProperty (Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+      }
+      catch (final PropertyException ex)
+      {
+        throw new IllegalStateException ("Failed to enable JAXB fragment mode", ex);
+      }
+    }
+  }
+
+  /**
+   * Read the name of the root element of the provided business document,
+   * without reading the whole document. Additionally it is checked that the
+   * document is UTF-8 encoded and does not contain a DOCTYPE.
+   *
+   * @param aIS
+   *        The input stream of the business document. Is closed by this method.
+   *        May not be <code>null</code>.
+   * @return The qualified name of the root element. Never <code>null</code>.
+   * @throws IOException
+   *         If the business document cannot be used for streaming
+   */
+  @Nonnull
+  public static QName readRootElementName (@Nonnull @WillClose final InputStream aIS) throws IOException
+  {
+    ValueEnforcer.notNull (aIS, "InputStream");
+
+    XMLStreamReader aReader = null;
+    try
+    {
+      aReader = XML_INPUT_FACTORY.createXMLStreamReader (aIS);
+
+      // Declared and detected encoding
+      final String sEncoding = aReader.getCharacterEncodingScheme () != null ? aReader.getCharacterEncodingScheme ()
+                                                                             : aReader.getEncoding ();
+      if (sEncoding != null &&
+          !sEncoding.equalsIgnoreCase (StandardCharsets.UTF_8.name ()) &&
+          !sEncoding.equalsIgnoreCase ("UTF8"))
+        throw new IOException ("The business document must be UTF-8 encoded but is '" + sEncoding + "'");
+
+      while (aReader.hasNext ())
+      {
+        final int nEventType = aReader.next ();
+        if (nEventType == XMLStreamConstants.DTD)
+          throw new IOException ("The business document may not contain a DOCTYPE");
+        if (nEventType == XMLStreamConstants.START_ELEMENT)
+        {
+          if (aReader.getNamespaceURI () == null || aReader.getNamespaceURI ().isEmpty ())
+            throw new IOException ("The root element of the business document does not have a namespace URI");
+          return new QName (aReader.getNamespaceURI (), aReader.getLocalName ());
+        }
+      }
+      throw new IOException ("The business document has no root element");
+    }
+    catch (final XMLStreamException ex)
+    {
+      throw new IOException ("Failed to parse the business document", ex);
+    }
+    finally
+    {
+      if (aReader != null)
+        try
+        {
+          aReader.close ();
+        }
+        catch (final XMLStreamException ex)
+        {
+          // Ignore
+        }
+      StreamHelper.close (aIS);
+    }
+  }
+
+  /**
+   * Get the serialized start of the SBD - the XML declaration, the opening SBD
+   * element and the complete SBDH.
+   *
+   * @param aSBDH
+   *        The SBDH to be serialized. May not be <code>null</code>.
+   * @return The UTF-8 encoded bytes. Never <code>null</code>.
+   * @throws IOException
+   *         If serialization fails
+   */
+  @Nonnull
+  public static byte [] getSBDStartBytes (@Nonnull final StandardBusinessDocumentHeader aSBDH) throws IOException
+  {
+    ValueEnforcer.notNull (aSBDH, "SBDH");
+
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+    {
+      aBAOS.write (SBD_START);
+      // The fragment marshaller emits no XML declaration
+      if (new SBDHFragmentMarshaller ().write (aSBDH, aBAOS).isFailure ())
+        throw new IOException ("Failed to serialize the SBDH");
+      return aBAOS.getBufferOrCopy ();
+    }
+  }
+
+  private static boolean _startsWith (@Nonnull final byte [] aBuf,
+                                      final int nOfs,
+                                      final int nLen,
+                                      @Nonnull final byte [] aPrefix)
+  {
+    if (nLen - nOfs < aPrefix.length)
+      return false;
+    for (int i = 0; i < aPrefix.length; ++i)
+      if (aBuf[nOfs + i] != aPrefix[i])
+        return false;
+    return true;
+  }
+
+  /**
+   * Skip an optional UTF-8 BOM and an optional XML declaration at the
+   * beginning of the provided stream.
+   *
+   * @param aIS
+   *        The source input stream. May not be <code>null</code>.
+   * @return The input stream positioned after the XML declaration. Never
+   *         <code>null</code>.
+   * @throws IOException
+   *         In case of a read error or if the XML declaration is not
+   *         terminated
+   */
+  @Nonnull
+  public static InputStream skipXMLDeclaration (@Nonnull final InputStream aIS) throws IOException
+  {
+    ValueEnforcer.notNull (aIS, "InputStream");
+
+    final InputStream ret = aIS.markSupported () ? aIS : new NonBlockingBufferedInputStream (aIS);
+    ret.mark (MAX_XML_DECLARATION_BYTES);
+    final byte [] aBuf = new byte [MAX_XML_DECLARATION_BYTES];
+    final int nRead = ret.readNBytes (aBuf, 0, aBuf.length);
+
+    int nSkip = 0;
+    if (_startsWith (aBuf, nSkip, nRead, UTF8_BOM))
+      nSkip += UTF8_BOM.length;
+    if (_startsWith (aBuf, nSkip, nRead, XML_DECL_START) &&
+        nRead > nSkip + XML_DECL_START.length &&
+        Character.isWhitespace (aBuf[nSkip + XML_DECL_START.length]))
+    {
+      int nEnd = -1;
+      for (int i = nSkip + XML_DECL_START.length; i < nRead; ++i)
+        if (_startsWith (aBuf, i, nRead, XML_DECL_END))
+        {
+          nEnd = i + XML_DECL_END.length;
+          break;
+        }
+      if (nEnd < 0)
+        throw new IOException ("The XML declaration of the business document is not terminated within the first " +
+                               MAX_XML_DECLARATION_BYTES +
+                               " bytes");
+      nSkip = nEnd;
+    }
+
+    ret.reset ();
+    if (nSkip > 0)
+      StreamHelper.skipFully (ret, nSkip);
+    return ret;
+  }
+
+  /**
+   * Create a stream provider for the complete SBD, that consists of the SBDH
+   * and the provided business document. The business document is copied
+   * byte-by-byte and is never parsed.
+   *
+   * @param aSBDH
+   *        The SBDH to be used. May not be <code>null</code>.
+   * @param aBusinessDocument
+   *        The stream provider of the UTF-8 encoded business document. May not
+   *        be <code>null</code>.
+   * @return A stream provider that can be read multiple times, if the business
+   *         document stream provider can be read multiple times. Never
+   *         <code>null</code>.
+   * @throws IOException
+   *         If the SBDH cannot be serialized
+   */
+  @Nonnull
+  public static IHasInputStream createSBDStreamProvider (@Nonnull final StandardBusinessDocumentHeader aSBDH,
+                                                         @Nonnull final IHasInputStream aBusinessDocument) throws IOException
+  {
+    ValueEnforcer.notNull (aSBDH, "SBDH");
+    ValueEnforcer.notNull (aBusinessDocument, "BusinessDocument");
+
+    final byte [] aStartBytes = getSBDStartBytes (aSBDH);
+    return new HasInputStream ( () -> {
+      final InputStream aBusinessIS = aBusinessDocument.getBufferedInputStream ();
+      if (aBusinessIS == null)
+        return null;
+      try
+      {
+        return new SequenceInputStream (new NonBlockingByteArrayInputStream (aStartBytes),
+                                        new SequenceInputStream (skipXMLDeclaration (aBusinessIS),
+                                                                 new NonBlockingByteArrayInputStream (SBD_END)));
+      }
+      catch (final IOException ex)
+      {
+        StreamHelper.close (aBusinessIS);
+        throw new IllegalStateException ("Failed to prepare the business document for streaming", ex);
+      }
+    }, aBusinessDocument.isReadMultiple ());
+  }
+}
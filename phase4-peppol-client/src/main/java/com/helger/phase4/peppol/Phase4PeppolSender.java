@@ -16,6 +16,7 @@
  */
 package com.helger.phase4.peppol;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.security.cert.X509Certificate;
@@ -23,11 +24,13 @@ import java.time.OffsetDateTime;
 import java.util.UUID;
 import java.util.function.Consumer;
 
+import javax.annotation.CheckForSigned;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.OverridingMethodsMustInvokeSuper;
 import javax.annotation.concurrent.Immutable;
 import javax.annotation.concurrent.NotThreadSafe;
+import javax.xml.namespace.QName;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,8 +42,13 @@ import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.Nonempty;
 import com.helger.commons.datetime.XMLOffsetDateTime;
 import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.stream.CountingInputStream;
+import com.helger.commons.io.stream.HasInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.StreamHelper;
 import com.helger.commons.mime.CMimeType;
 import com.helger.commons.mime.IMimeType;
+import com.helger.commons.mutable.MutableLong;
 import com.helger.commons.state.ESuccess;
 import com.helger.commons.state.ETriState;
 import com.helger.commons.string.StringHelper;
@@ -64,6 +72,9 @@ import com.helger.peppolid.peppol.doctype.PeppolDocumentTypeIdentifierParts;
 import com.helger.phase4.CAS4;
 import com.helger.phase4.attachment.AS4OutgoingAttachment;
 import com.helger.phase4.attachment.EAS4CompressionMode;
+import com.helger.phase4.dynamicdiscovery.AS4EndpointDetailCache;
+import com.helger.phase4.dynamicdiscovery.AS4EndpointDetailPrefetcherPeppol;
+import com.helger.phase4.dynamicdiscovery.AS4EndpointDetailProviderCached;
 import com.helger.phase4.dynamicdiscovery.AS4EndpointDetailProviderConstant;
 import com.helger.phase4.dynamicdiscovery.AS4EndpointDetailProviderPeppol;
 import com.helger.phase4.dynamicdiscovery.IAS4EndpointDetailProvider;
@@ -80,6 +91,7 @@ import com.helger.sbdh.SBDMarshaller;
 import com.helger.smpclient.peppol.ISMPServiceMetadataProvider;
 import com.helger.smpclient.url.IPeppolURLProvider;
 import com.helger.smpclient.url.PeppolURLProvider;
+import com.helger.xml.XMLFactory;
 import com.helger.xml.serialize.read.DOMReader;
 
 /**
@@ -249,9 +261,51 @@ public final class Phase4PeppolSender
                        true);
   }
 
+  /**
+   * Parse the payload from the provided stream provider into a DOM element.
+   *
+   * @param aPayloadHasIS
+   *        The payload input stream provider. May not be <code>null</code>.
+   * @param aPayloadBytes
+   *        Optional holder that receives the number of payload bytes read. May
+   *        be <code>null</code>.
+   * @return The root element of the parsed payload. Never <code>null</code>.
+   * @throws Phase4PeppolException
+   *         if the payload cannot be parsed or has no namespace URI
+   */
+  @Nonnull
+  private static Element _readPayloadElement (@Nonnull final IHasInputStream aPayloadHasIS,
+                                              @Nullable final MutableLong aPayloadBytes) throws Phase4PeppolException
+  {
+    final InputStream aIS = aPayloadHasIS.getBufferedInputStream ();
+    if (aIS == null)
+      throw new Phase4PeppolException ("Failed to create payload InputStream from provider");
+    final CountingInputStream aCountingIS = new CountingInputStream (aIS);
+    final Document aDoc = DOMReader.readXMLDOM (aCountingIS);
+    if (aPayloadBytes != null)
+      aPayloadBytes.set (aCountingIS.getBytesRead ());
+    if (aDoc == null)
+      throw new Phase4PeppolException ("Failed to parse payload InputStream to a DOM node");
+    final Element ret = aDoc.getDocumentElement ();
+    if (ret == null)
+      throw new Phase4PeppolException ("The parsed XML document must have a root element");
+    if (ret.getNamespaceURI () == null)
+      throw new Phase4PeppolException ("The root element of the parsed XML document does not have a namespace URI");
+    return ret;
+  }
+
   /**
    * @param aPayloadElement
    *        The payload element to be validated. May not be <code>null</code>.
+   * @param sContentHash
+   *        The content hash of the payload bytes. Only used in combination with
+   *        a validation service. May be <code>null</code>.
+   * @param nPayloadBytes
+   *        The size of the payload in bytes. Only used in combination with a
+   *        validation service. May be &lt; 0 if unknown.
+   * @param aValidationService
+   *        The validation service to be used. If present, it takes precedence
+   *        over the registry. May be <code>null</code>.
    * @param aRegistry
    *        The validation registry to be used. May be <code>null</code> to
    *        indicate to use the default one.
@@ -263,6 +317,9 @@ public final class Phase4PeppolSender
    *         If the validation result handler decides to do so....
    */
   private static void _validatePayload (@Nonnull final Element aPayloadElement,
+                                        @Nullable final String sContentHash,
+                                        @CheckForSigned final long nPayloadBytes,
+                                        @Nullable final Phase4PeppolValidationService aValidationService,
                                         @Nullable final IValidationExecutorSetRegistry <IValidationSourceXML> aRegistry,
                                         @Nullable final VESID aVESID,
                                         @Nullable final IPhase4PeppolValidationResultHandler aValidationResultHandler) throws Phase4PeppolException
@@ -272,19 +329,30 @@ public final class Phase4PeppolSender
     {
       if (aValidationResultHandler != null)
       {
-        if (aRegistry == null)
+        if (aValidationService != null)
         {
-          // Default registry
-          Phase4PeppolValidation.validateOutgoingBusinessDocument (aPayloadElement, aVESID, aValidationResultHandler);
-        }
-        else
-        {
-          // Custom registry
+          // Shared validation service
           Phase4PeppolValidation.validateOutgoingBusinessDocument (aPayloadElement,
-                                                                   aRegistry,
+                                                                   sContentHash,
+                                                                   nPayloadBytes,
+                                                                   aValidationService,
                                                                    aVESID,
                                                                    aValidationResultHandler);
         }
+        else
+          if (aRegistry == null)
+          {
+            // Default registry
+            Phase4PeppolValidation.validateOutgoingBusinessDocument (aPayloadElement, aVESID, aValidationResultHandler);
+          }
+          else
+          {
+            // Custom registry
+            Phase4PeppolValidation.validateOutgoingBusinessDocument (aPayloadElement,
+                                                                     aRegistry,
+                                                                     aVESID,
+                                                                     aValidationResultHandler);
+          }
       }
       else
         LOGGER.warn ("A VES ID is present but no ValidationResultHandler - therefore no validation is performed");
@@ -644,6 +712,29 @@ public final class Phase4PeppolSender
       return endpointDetailProvider (new AS4EndpointDetailProviderConstant (aCert, sDestURL));
     }
 
+    /**
+     * Use a shared endpoint detail cache, that was e.g. filled upfront via
+     * {@link AS4EndpointDetailPrefetcherPeppol}. If an endpoint detail provider
+     * was already set (e.g. via {@link #smpClient(ISMPServiceMetadataProvider)})
+     * it is used as the fallback in case of a cache miss. Otherwise a cache
+     * miss results in an error.
+     *
+     * @param aCache
+     *        The endpoint detail cache to be used. May not be
+     *        <code>null</code>.
+     * @return this for chaining
+     * @see #endpointDetailProvider(IAS4EndpointDetailProvider)
+     * @since 2.1.3
+     */
+    @Nonnull
+    public final IMPLTYPE endpointDetailCache (@Nonnull final AS4EndpointDetailCache aCache)
+    {
+      final IAS4EndpointDetailProvider aFallback = m_aEndpointDetailProvider;
+      // Avoid the warning about overriding
+      m_aEndpointDetailProvider = null;
+      return endpointDetailProvider (new AS4EndpointDetailProviderCached (aCache, aFallback));
+    }
+
     /**
      * Set an optional Consumer for the retrieved certificate from the endpoint
      * details provider, independent of its usability.
@@ -829,8 +920,10 @@ public final class Phase4PeppolSender
     private IHasInputStream m_aPayloadHasIS;
     private Consumer <? super StandardBusinessDocument> m_aSBDDocumentConsumer;
     private Consumer <byte []> m_aSBDBytesConsumer;
+    private boolean m_bStreamingSBD = false;
 
     private IValidationExecutorSetRegistry <IValidationSourceXML> m_aVESRegistry;
+    private Phase4PeppolValidationService m_aValidationService;
     private VESID m_aVESID;
     private IPhase4PeppolValidationResultHandler m_aValidationResultHandler;
 
@@ -1029,6 +1122,35 @@ public final class Phase4PeppolSender
       return this;
     }
 
+    /**
+     * Enable or disable the streaming creation of the Standard Business
+     * Document. If enabled and the payload was provided as bytes or as an
+     * InputStream provider that can be read multiple times, the payload is
+     * never parsed to a DOM. Instead the SBDH is serialized and the raw payload
+     * bytes (without the XML declaration) are copied behind it, directly into
+     * the compressor. This greatly reduces the memory consumption for large
+     * documents. The payload must be UTF-8 encoded.<br>
+     * Client side validation is still performed in a separate parsing pass, if
+     * it is configured. In streaming mode, the consumer set via
+     * {@link #sbdDocumentConsumer(Consumer)} receives an SBD with an empty
+     * placeholder business message, and setting
+     * {@link #sbdBytesConsumer(Consumer)} requires the complete SBD to be
+     * materialized in memory.<br>
+     * By default streaming is disabled.
+     *
+     * @param bStreamingSBD
+     *        <code>true</code> to enable streaming, <code>false</code> to
+     *        disable it.
+     * @return this for chaining
+     * @since 2.1.3
+     */
+    @Nonnull
+    public Builder streamingSBD (final boolean bStreamingSBD)
+    {
+      m_bStreamingSBD = bStreamingSBD;
+      return this;
+    }
+
     /**
      * Set a custom validation registry to use in VESID lookup. This may be
      * needed if other Peppol formats like XRechnung or SimplerInvoicing should
@@ -1049,6 +1171,26 @@ public final class Phase4PeppolSender
       return this;
     }
 
+    /**
+     * Set a shared validation service to be used for the client side
+     * validation. It offers warmed up artefacts, parallel validation of large
+     * documents and result caching. If set, it takes precedence over
+     * {@link #validationRegistry(IValidationExecutorSetRegistry)}. The VESID
+     * and the result handler must still be set via
+     * {@link #validationConfiguration(VESID, IPhase4PeppolValidationResultHandler)}.
+     *
+     * @param aValidationService
+     *        The validation service to use. May be <code>null</code>.
+     * @return this for chaining
+     * @since 2.1.3
+     */
+    @Nonnull
+    public Builder validationService (@Nullable final Phase4PeppolValidationService aValidationService)
+    {
+      m_aValidationService = aValidationService;
+      return this;
+    }
+
     /**
      * Set the client side validation to be used. If this method is not invoked,
      * than it's the responsibility of the caller to validate the document prior
@@ -1107,12 +1249,134 @@ public final class Phase4PeppolSender
       return validationConfiguration (null, null);
     }
 
+    /**
+     * Finish the fields without ever creating a DOM of the payload.
+     *
+     * @param aPayloadHasIS
+     *        The payload stream provider that can be read multiple times. Never
+     *        <code>null</code>.
+     * @return {@link ESuccess}
+     * @throws Phase4Exception
+     *         on error
+     */
+    @Nonnull
+    private ESuccess _finishFieldsStreaming (@Nonnull final IHasInputStream aPayloadHasIS) throws Phase4Exception
+    {
+      // Only peek the root element - this is all that is needed for the SBDH
+      final InputStream aPeekIS = aPayloadHasIS.getBufferedInputStream ();
+      if (aPeekIS == null)
+        throw new Phase4PeppolException ("Failed to create payload InputStream from provider");
+      final QName aRootName;
+      try
+      {
+        aRootName = Phase4PeppolSBDHStreamingWriter.readRootElementName (aPeekIS);
+      }
+      catch (final IOException ex)
+      {
+        throw new Phase4PeppolException ("The payload cannot be used for streaming SBD creation", ex);
+      }
+
+      // Consistency check
+      if (CSBDH.SBDH_NS.equals (aRootName.getNamespaceURI ()))
+        throw new Phase4PeppolException ("You cannot set a Standard Business Document as the payload for the regular builder. The SBD is created automatically inside of this builder. Use Phase4PeppolSender.sbdhBuilder() if you have a pre-build SBD.");
+
+      // Optional payload validation in a separate pass
+      if (m_aVESID != null && m_aValidationResultHandler != null)
+      {
+        if (m_aValidationService != null)
+          Phase4PeppolValidation.validateOutgoingBusinessDocument (aPayloadHasIS,
+                                                                   m_aValidationService,
+                                                                   m_aVESID,
+                                                                   m_aValidationResultHandler);
+        else
+          _validatePayload (_readPayloadElement (aPayloadHasIS, null),
+                            null,
+                            -1,
+                            null,
+                            m_aVESRegistry,
+                            m_aVESID,
+                            m_aValidationResultHandler);
+      }
+      else
+        if (m_aVESID != null || m_aValidationResultHandler != null)
+          LOGGER.warn ("Both a VES ID and a ValidationResultHandler are needed - therefore no validation is performed");
+
+      // Perform SMP lookup
+      if (super.finishFields ().isFailure ())
+        return ESuccess.FAILURE;
+
+      // Created SBDH
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Start creating streaming SBDH for AS4 message");
+
+      // The business message is only an empty placeholder
+      final Element aPlaceholder = XMLFactory.newDocument ()
+                                             .createElementNS (aRootName.getNamespaceURI (), aRootName.getLocalPart ());
+      final StandardBusinessDocument aSBD = _createSBD (m_aSenderID,
+                                                        m_aReceiverID,
+                                                        m_aDocTypeID,
+                                                        m_aProcessID,
+                                                        m_sCountryC1,
+                                                        m_sSBDHInstanceIdentifier,
+                                                        m_sSBDHTypeVersion,
+                                                        aPlaceholder,
+                                                        false);
+      if (aSBD == null)
+      {
+        // A log message was already provided
+        return ESuccess.FAILURE;
+      }
+      if (m_aSBDDocumentConsumer != null)
+        m_aSBDDocumentConsumer.accept (aSBD);
+
+      final IHasInputStream aSBDHasIS;
+      try
+      {
+        aSBDHasIS = Phase4PeppolSBDHStreamingWriter.createSBDStreamProvider (aSBD.getStandardBusinessDocumentHeader (),
+                                                                             aPayloadHasIS);
+      }
+      catch (final IOException ex)
+      {
+        throw new Phase4PeppolException ("Failed to create the streaming SBD", ex);
+      }
+      if (m_aSBDBytesConsumer != null)
+        m_aSBDBytesConsumer.accept (StreamHelper.getAllBytes (aSBDHasIS));
+
+      // Now we have the main payload
+      payload (AS4OutgoingAttachment.builder ()
+                                    .data (aSBDHasIS)
+                                    .mimeType (m_aPayloadMimeType)
+                                    .compression (m_bCompressPayload ? EAS4CompressionMode.GZIP : null)
+                                    .contentID (m_sPayloadContentID));
+
+      return ESuccess.SUCCESS;
+    }
+
     @Override
     protected ESuccess finishFields () throws Phase4Exception
     {
+      if (m_bStreamingSBD && m_aPayloadElement == null)
+      {
+        final IHasInputStream aPayloadHasIS;
+        if (m_aPayloadBytes != null)
+        {
+          final byte [] aPayloadBytes = m_aPayloadBytes;
+          aPayloadHasIS = HasInputStream.multiple ( () -> new NonBlockingByteArrayInputStream (aPayloadBytes));
+        }
+        else
+          aPayloadHasIS = m_aPayloadHasIS;
+
+        if (aPayloadHasIS != null && aPayloadHasIS.isReadMultiple ())
+          return _finishFieldsStreaming (aPayloadHasIS);
+
+        LOGGER.warn ("Streaming SBD creation requires a payload that can be read multiple times - falling back to the DOM based SBD creation");
+      }
+
       // Ensure a DOM element is present
       final Element aPayloadElement;
       final boolean bClonePayloadElement;
+      // The payload size is unknown for provided DOM elements
+      final MutableLong aPayloadBytes = new MutableLong (-1);
       if (m_aPayloadElement != null)
       {
         // Already provided as a DOM element
@@ -1131,23 +1395,14 @@ public final class Phase4PeppolSender
             throw new Phase4PeppolException ("The parsed XML document must have a root element");
           if (aPayloadElement.getNamespaceURI () == null)
             throw new Phase4PeppolException ("The root element of the parsed XML document does not have a namespace URI");
+          aPayloadBytes.set (m_aPayloadBytes.length);
           bClonePayloadElement = false;
         }
         else
           if (m_aPayloadHasIS != null)
           {
             // Parse it
-            final InputStream aIS = m_aPayloadHasIS.getBufferedInputStream ();
-            if (aIS == null)
-              throw new Phase4PeppolException ("Failed to create payload InputStream from provider");
-            final Document aDoc = DOMReader.readXMLDOM (aIS);
-            if (aDoc == null)
-              throw new Phase4PeppolException ("Failed to parse payload InputStream to a DOM node");
-            aPayloadElement = aDoc.getDocumentElement ();
-            if (aPayloadElement == null)
-              throw new Phase4PeppolException ("The parsed XML document must have a root element");
-            if (aPayloadElement.getNamespaceURI () == null)
-              throw new Phase4PeppolException ("The root element of the parsed XML document does not have a namespace URI");
+            aPayloadElement = _readPayloadElement (m_aPayloadHasIS, aPayloadBytes);
             bClonePayloadElement = false;
           }
           else
@@ -1158,7 +1413,18 @@ public final class Phase4PeppolSender
         throw new Phase4PeppolException ("You cannot set a Standard Business Document as the payload for the regular builder. The SBD is created automatically inside of this builder. Use Phase4PeppolSender.sbdhBuilder() if you have a pre-build SBD.");
 
       // Optional payload validation
-      _validatePayload (aPayloadElement, m_aVESRegistry, m_aVESID, m_aValidationResultHandler);
+      // The content hash is only needed for the result cache
+      final String sContentHash = m_aValidationService != null &&
+                                  m_aValidationService.isResultCacheEnabled () &&
+                                  m_aPayloadBytes != null ? Phase4PeppolValidationService.getContentHash (m_aPayloadBytes)
+                                                          : null;
+      _validatePayload (aPayloadElement,
+                        sContentHash,
+                        aPayloadBytes.longValue (),
+                        m_aValidationService,
+                        m_aVESRegistry,
+                        m_aVESID,
+                        m_aValidationResultHandler);
 
       // Perform SMP lookup
       if (super.finishFields ().isFailure ())
@@ -16,7 +16,9 @@
  */
 package com.helger.phase4.peppol;
 
+import javax.annotation.CheckForSigned;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,6 +27,7 @@ import org.w3c.dom.Element;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.ReturnsMutableCopy;
 import com.helger.commons.annotation.ReturnsMutableObject;
+import com.helger.commons.io.IHasInputStream;
 import com.helger.phive.api.execute.ValidationExecutionManager;
 import com.helger.phive.api.executorset.IValidationExecutorSet;
 import com.helger.phive.api.executorset.IValidationExecutorSetRegistry;
@@ -138,6 +141,12 @@ public final class Phase4PeppolValidation
 
     final ValidationResultList aValidationResult = ValidationExecutionManager.executeValidation (aVES,
                                                                                                  ValidationSourceXML.create (null, aXML));
+    _handleValidationResult (aValidationResult, aValidationResultHandler);
+  }
+
+  private static void _handleValidationResult (@Nonnull final ValidationResultList aValidationResult,
+                                               @Nonnull final IPhase4PeppolValidationResultHandler aValidationResultHandler) throws Phase4PeppolException
+  {
     if (aValidationResult.containsAtLeastOneError ())
     {
       aValidationResultHandler.onValidationErrors (aValidationResult);
@@ -146,4 +155,72 @@ public final class Phase4PeppolValidation
     else
       aValidationResultHandler.onValidationSuccess (aValidationResult);
   }
+
+  /**
+   * Validate the passed DOM element using the provided VESID using the provided
+   * validation service.
+   *
+   * @param aXML
+   *        The XML element to be validated. May not be <code>null</code>.
+   * @param sContentHash
+   *        The content hash of the payload bytes for result caching. May be
+   *        <code>null</code>.
+   * @param nPayloadBytes
+   *        The size of the payload in bytes, used to decide whether the layers
+   *        are validated in parallel. May be &lt; 0 if unknown.
+   * @param aValidationService
+   *        The validation service to use. May not be <code>null</code>.
+   * @param aVESID
+   *        The {@link VESID} to be used. Must be contained in the registry of
+   *        the validation service. May not be <code>null</code>.
+   * @param aValidationResultHandler
+   *        The validation result handler to be used. May not be
+   *        <code>null</code>.
+   * @throws Phase4PeppolException
+   *         In case e.g. the validation failed. This usually implies, that the
+   *         document will NOT be send out.
+   * @since 2.1.3
+   */
+  public static void validateOutgoingBusinessDocument (@Nonnull final Element aXML,
+                                                       @Nullable final String sContentHash,
+                                                       @CheckForSigned final long nPayloadBytes,
+                                                       @Nonnull final Phase4PeppolValidationService aValidationService,
+                                                       @Nonnull final VESID aVESID,
+                                                       @Nonnull final IPhase4PeppolValidationResultHandler aValidationResultHandler) throws Phase4PeppolException
+  {
+    ValueEnforcer.notNull (aValidationService, "ValidationService");
+    ValueEnforcer.notNull (aValidationResultHandler, "ValidationResultHandler");
+
+    _handleValidationResult (aValidationService.validate (aXML, sContentHash, nPayloadBytes, aVESID), aValidationResultHandler);
+  }
+
+  /**
+   * Validate the passed payload using the provided VESID using the provided
+   * validation service. The payload is parsed internally.
+   *
+   * @param aPayloadHasIS
+   *        The payload to be validated. May not be <code>null</code>.
+   * @param aValidationService
+   *        The validation service to use. May not be <code>null</code>.
+   * @param aVESID
+   *        The {@link VESID} to be used. Must be contained in the registry of
+   *        the validation service. May not be <code>null</code>.
+   * @param aValidationResultHandler
+   *        The validation result handler to be used. May not be
+   *        <code>null</code>.
+   * @throws Phase4PeppolException
+   *         In case e.g. the validation failed. This usually implies, that the
+   *         document will NOT be send out.
+   * @since 2.1.3
+   */
+  public static void validateOutgoingBusinessDocument (@Nonnull final IHasInputStream aPayloadHasIS,
+                                                       @Nonnull final Phase4PeppolValidationService aValidationService,
+                                                       @Nonnull final VESID aVESID,
+                                                       @Nonnull final IPhase4PeppolValidationResultHandler aValidationResultHandler) throws Phase4PeppolException
+  {
+    ValueEnforcer.notNull (aValidationService, "ValidationService");
+    ValueEnforcer.notNull (aValidationResultHandler, "ValidationResultHandler");
+
+    _handleValidationResult (aValidationService.validate (aPayloadHasIS, aVESID), aValidationResultHandler);
+  }
 }
@@ -0,0 +1,519 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol;
+
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.annotation.CheckForSigned;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.map.LRUMap;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.stream.CountingInputStream;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.commons.timing.StopWatch;
+import com.helger.phive.api.execute.IValidationExecutor;
+import com.helger.phive.api.executorset.IValidationExecutorSet;
+import com.helger.phive.api.executorset.IValidationExecutorSetRegistry;
+import com.helger.phive.api.executorset.VESID;
+import com.helger.phive.api.result.ValidationResult;
+import com.helger.phive.api.result.ValidationResultList;
+import com.helger.phive.engine.source.IValidationSourceXML;
+import com.helger.phive.engine.source.ValidationSourceXML;
+import com.helger.phive.engine.xsd.ValidationExecutorXSD;
+import com.helger.xml.XMLFactory;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * A reusable validation service for outgoing Peppol business documents. Compared
+ * to the plain {@link Phase4PeppolValidation} methods it offers:
+ * <ul>
+ * <li>Warming up of the validation artefacts (XML Schema and Schematron) of
+ * selected VESIDs, so that the first transmission does not pay the compilation
+ * costs.</li>
+ * <li>Parallel execution of the validation layers of a VESID, if an executor
+ * service is provided. Each layer operates on its own copy of the DOM, because
+ * DOM trees are not thread-safe, so this only pays off for large documents.
+ * The result is identical to the sequential execution - layers following a
+ * failed layer that stops the validation are reported as ignored.</li>
+ * <li>An optional result cache keyed by the SHA-256 hash of the payload bytes,
+ * so that byte-identical payloads are not validated again (e.g. on
+ * retries).</li>
+ * </ul>
+ * A single instance should be shared by all sending operations.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@ThreadSafe
+public class Phase4PeppolValidationService
+{
+  /** By default documents with at least 1 MB are validated in parallel */
+  public static final long DEFAULT_PARALLEL_MIN_BYTES = 1024L * 1024L;
+  /** By default no validation results are cached */
+  public static final int DEFAULT_RESULT_CACHE_SIZE = 0;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (Phase4PeppolValidationService.class);
+  private static final String CONTENT_HASH_ALGORITHM = "SHA-256";
+
+  private final IValidationExecutorSetRegistry <IValidationSourceXML> m_aVESRegistry;
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  @GuardedBy ("m_aRWLock")
+  private ExecutorService m_aParallelExecutor;
+  @GuardedBy ("m_aRWLock")
+  private long m_nParallelMinBytes = DEFAULT_PARALLEL_MIN_BYTES;
+  @GuardedBy ("m_aRWLock")
+  private LRUMap <String, ValidationResultList> m_aResultCache;
+
+  /**
+   * Constructor using the default Peppol registry.
+   *
+   * @see Phase4PeppolValidation#getDefaultRegistry()
+   */
+  public Phase4PeppolValidationService ()
+  {
+    this (Phase4PeppolValidation.getDefaultRegistry ());
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aVESRegistry
+   *        The VES registry to use. May not be <code>null</code>.
+   */
+  public Phase4PeppolValidationService (@Nonnull final IValidationExecutorSetRegistry <IValidationSourceXML> aVESRegistry)
+  {
+    ValueEnforcer.notNull (aVESRegistry, "VESRegistry");
+    m_aVESRegistry = aVESRegistry;
+  }
+
+  /**
+   * @return The VES registry used. Never <code>null</code>.
+   */
+  @Nonnull
+  public final IValidationExecutorSetRegistry <IValidationSourceXML> getVESRegistry ()
+  {
+    return m_aVESRegistry;
+  }
+
+  /**
+   * @return The executor service used for parallel layer validation. May be
+   *         <code>null</code> if all layers are validated sequentially.
+   */
+  @Nullable
+  public final ExecutorService getParallelExecutor ()
+  {
+    return m_aRWLock.readLockedGet ( () -> m_aParallelExecutor);
+  }
+
+  /**
+   * Set the executor service to be used for validating the layers of a VESID
+   * in parallel. The executor service is not shut down by this class.
+   *
+   * @param aParallelExecutor
+   *        The executor service to use. May be <code>null</code> to validate
+   *        all layers sequentially on the calling thread.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final Phase4PeppolValidationService setParallelExecutor (@Nullable final ExecutorService aParallelExecutor)
+  {
+    m_aRWLock.writeLocked ( () -> m_aParallelExecutor = aParallelExecutor);
+    return this;
+  }
+
+  /**
+   * @return The minimum payload size in bytes, from which on the layers are
+   *         validated in parallel. Always &ge; 0.
+   */
+  @Nonnegative
+  public final long getParallelMinBytes ()
+  {
+    return m_aRWLock.readLockedLong ( () -> m_nParallelMinBytes);
+  }
+
+  /**
+   * Set the minimum payload size in bytes, from which on the layers are
+   * validated in parallel. For smaller documents the overhead of copying the
+   * DOM outweighs the benefits. If the payload size is unknown (when a DOM
+   * element is validated without a size), parallel validation is only used if
+   * the minimum is 0.
+   *
+   * @param nParallelMinBytes
+   *        The minimum number of bytes. Must be &ge; 0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final Phase4PeppolValidationService setParallelMinBytes (@Nonnegative final long nParallelMinBytes)
+  {
+    ValueEnforcer.isGE0 (nParallelMinBytes, "ParallelMinBytes");
+    m_aRWLock.writeLocked ( () -> m_nParallelMinBytes = nParallelMinBytes);
+    return this;
+  }
+
+  /**
+   * Set the maximum number of validation results to be cached. The cache key
+   * is the combination of the VESID and the SHA-256 hash of the payload bytes.
+   * Changing the size clears the cache.
+   *
+   * @param nMaxSize
+   *        The maximum number of entries. Use 0 to disable caching.
+   * @return this for chaining
+   */
+  @Nonnull
+  public final Phase4PeppolValidationService setResultCacheSize (@Nonnegative final int nMaxSize)
+  {
+    ValueEnforcer.isGE0 (nMaxSize, "MaxSize");
+    m_aRWLock.writeLocked ( () -> m_aResultCache = nMaxSize == 0 ? null : new LRUMap <> (nMaxSize));
+    return this;
+  }
+
+  /**
+   * @return <code>true</code> if validation results are cached.
+   */
+  public final boolean isResultCacheEnabled ()
+  {
+    return m_aRWLock.readLockedBoolean ( () -> m_aResultCache != null);
+  }
+
+  /**
+   * Remove all entries from the result cache.
+   */
+  public final void clearResultCache ()
+  {
+    m_aRWLock.writeLocked ( () -> {
+      if (m_aResultCache != null)
+        m_aResultCache.clear ();
+    });
+  }
+
+  @Nonnull
+  private static MessageDigest _createMessageDigest ()
+  {
+    try
+    {
+      return MessageDigest.getInstance (CONTENT_HASH_ALGORITHM);
+    }
+    catch (final NoSuchAlgorithmException ex)
+    {
+      throw new IllegalStateException ("Message digest " + CONTENT_HASH_ALGORITHM + " is not supported", ex);
+    }
+  }
+
+  /**
+   * Create the content hash of the provided payload bytes, as used for the
+   * result cache.
+   *
+   * @param aPayloadBytes
+   *        The payload bytes. May not be <code>null</code>.
+   * @return The hex encoded hash. Never <code>null</code>.
+   */
+  @Nonnull
+  public static String getContentHash (@Nonnull final byte [] aPayloadBytes)
+  {
+    ValueEnforcer.notNull (aPayloadBytes, "PayloadBytes");
+    return StringHelper.getHexEncoded (_createMessageDigest ().digest (aPayloadBytes));
+  }
+
+  @Nonnull
+  private static String _getCacheKey (@Nonnull final VESID aVESID, @Nonnull final String sContentHash)
+  {
+    return aVESID.getAsSingleID () + '#' + sContentHash;
+  }
+
+  @Nullable
+  private ValidationResultList _getCachedResult (@Nonnull final VESID aVESID, @Nullable final String sContentHash)
+  {
+    if (sContentHash == null)
+      return null;
+    // LRUMap modifies the order upon read
+    return m_aRWLock.writeLockedGet ( () -> m_aResultCache == null ? null
+                                                                    : m_aResultCache.get (_getCacheKey (aVESID,
+                                                                                                        sContentHash)));
+  }
+
+  private void _putCachedResult (@Nonnull final VESID aVESID,
+                                 @Nullable final String sContentHash,
+                                 @Nonnull final ValidationResultList aResult)
+  {
+    if (sContentHash != null)
+      m_aRWLock.writeLocked ( () -> {
+        if (m_aResultCache != null)
+          m_aResultCache.put (_getCacheKey (aVESID, sContentHash), aResult);
+      });
+  }
+
+  @Nonnull
+  private IValidationExecutorSet <IValidationSourceXML> _getVES (@Nonnull final VESID aVESID) throws Phase4PeppolException
+  {
+    final IValidationExecutorSet <IValidationSourceXML> aVES = m_aVESRegistry.getOfID (aVESID);
+    if (aVES == null)
+      throw new Phase4PeppolException ("The validation executor set ID " + aVESID.getAsSingleID () + " is unknown!");
+    return aVES;
+  }
+
+  /**
+   * Pre-compile and cache the validation artefacts of the provided VESIDs.
+   * This should be called once at application startup.
+   *
+   * @param aVESIDs
+   *        The VESIDs to warm up. May not be <code>null</code>.
+   * @throws Phase4PeppolException
+   *         If a VESID is unknown
+   */
+  public void warmUp (@Nonnull final Iterable <? extends VESID> aVESIDs) throws Phase4PeppolException
+  {
+    ValueEnforcer.notNull (aVESIDs, "VESIDs");
+
+    for (final VESID aVESID : aVESIDs)
+    {
+      final StopWatch aSW = StopWatch.createdStarted ();
+      for (final IValidationExecutor <IValidationSourceXML> aExecutor : _getVES (aVESID).getAllExecutors ())
+      {
+        if (aExecutor instanceof IValidationExecutor.ICacheSupport)
+        {
+          // E.g. Schematron
+          final IValidationExecutor.ICacheSupport aCacheSupport = (IValidationExecutor.ICacheSupport) aExecutor;
+          if (aCacheSupport.isCacheArtefact ())
+            aCacheSupport.ensureItemIsInCache ();
+        }
+        else
+          if (aExecutor instanceof ValidationExecutorXSD)
+          {
+            // XML Schemas are cached internally upon first access
+            ((ValidationExecutorXSD) aExecutor).getSchemaProvider ().get ();
+          }
+      }
+      aSW.stop ();
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Warmed up validation artefacts of VESID '" +
+                      aVESID.getAsSingleID () +
+                      "' in " +
+                      aSW.getMillis () +
+                      " milliseconds");
+    }
+  }
+
+  @Nonnull
+  private static Element _copyToNewDocument (@Nonnull final Element aXML)
+  {
+    final Document aDoc = XMLFactory.newDocument ();
+    final Node aCopy = aDoc.importNode (aXML, true);
+    aDoc.appendChild (aCopy);
+    return aDoc.getDocumentElement ();
+  }
+
+  @Nonnull
+  private ValidationResultList _executeValidation (@Nonnull final IValidationExecutorSet <IValidationSourceXML> aVES,
+                                                   @Nonnull final Element aXML,
+                                                   @CheckForSigned final long nPayloadBytes) throws Phase4PeppolException
+  {
+    final ICommonsList <IValidationExecutor <IValidationSourceXML>> aExecutors = aVES.getAllExecutors ();
+    final ExecutorService aParallelExecutor = getParallelExecutor ();
+    final long nParallelMinBytes = getParallelMinBytes ();
+    // An unknown size is only validated in parallel if there is no minimum
+    final boolean bAllowParallel = nPayloadBytes < 0 ? nParallelMinBytes == 0 : nPayloadBytes >= nParallelMinBytes;
+    final ValidationResultList ret = new ValidationResultList ();
+
+    if (!bAllowParallel || aParallelExecutor == null || aExecutors.size () <= 1)
+    {
+      // Sequential validation on the current thread
+      final IValidationSourceXML aSource = ValidationSourceXML.create (null, aXML);
+      boolean bIgnoreRest = false;
+      for (final IValidationExecutor <IValidationSourceXML> aExecutor : aExecutors)
+      {
+        if (bIgnoreRest)
+          ret.add (ValidationResult.createIgnoredResult (aExecutor.getValidationArtefact ()));
+        else
+        {
+          final ValidationResult aResult = aExecutor.applyValidation (aSource);
+          ret.add (aResult);
+          if (aResult.isFailure () && aExecutor.isStopValidationOnError ())
+            bIgnoreRest = true;
+        }
+      }
+      return ret;
+    }
+
+    // Start all layers in parallel - each one with its own DOM copy
+    final ICommonsList <Future <ValidationResult>> aFutures = new CommonsArrayList <> (aExecutors.size ());
+    boolean bFirst = true;
+    for (final IValidationExecutor <IValidationSourceXML> aExecutor : aExecutors)
+    {
+      final IValidationSourceXML aSource = ValidationSourceXML.create (null,
+                                                                       bFirst ? aXML : _copyToNewDocument (aXML));
+      aFutures.add (aParallelExecutor.submit ( () -> aExecutor.applyValidation (aSource)));
+      bFirst = false;
+    }
+
+    // Collect in the original order to get the same semantics as the
+    // sequential execution
+    boolean bIgnoreRest = false;
+    try
+    {
+      for (int i = 0; i < aExecutors.size (); ++i)
+      {
+        final IValidationExecutor <IValidationSourceXML> aExecutor = aExecutors.get (i);
+        if (bIgnoreRest)
+        {
+          aFutures.get (i).cancel (true);
+          ret.add (ValidationResult.createIgnoredResult (aExecutor.getValidationArtefact ()));
+        }
+        else
+        {
+          final ValidationResult aResult = aFutures.get (i).get ();
+          ret.add (aResult);
+          if (aResult.isFailure () && aExecutor.isStopValidationOnError ())
+            bIgnoreRest = true;
+        }
+      }
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+      aFutures.forEach (x -> x.cancel (true));
+      throw new Phase4PeppolException ("Interrupted while waiting for the validation results", ex);
+    }
+    catch (final ExecutionException ex)
+    {
+      aFutures.forEach (x -> x.cancel (true));
+      throw new Phase4PeppolException ("Error validating the business document", ex.getCause ());
+    }
+    return ret;
+  }
+
+  /**
+   * Validate an already parsed DOM element.
+   *
+   * @param aXML
+   *        The XML element to be validated. May not be <code>null</code>.
+   * @param sContentHash
+   *        The content hash of the serialized element as created by
+   *        {@link #getContentHash(byte[])}. May be <code>null</code> if the
+   *        result should not be cached.
+   * @param nPayloadBytes
+   *        The size of the serialized element in bytes, used to decide whether
+   *        the layers are validated in parallel. May be &lt; 0 if unknown.
+   * @param aVESID
+   *        The VESID to validate against. May not be <code>null</code>.
+   * @return The validation results. Never <code>null</code>. Cached results
+   *         are shared and must not be modified.
+   * @throws Phase4PeppolException
+   *         If the VESID is unknown or validation fails technically
+   */
+  @Nonnull
+  public ValidationResultList validate (@Nonnull final Element aXML,
+                                        @Nullable final String sContentHash,
+                                        @CheckForSigned final long nPayloadBytes,
+                                        @Nonnull final VESID aVESID) throws Phase4PeppolException
+  {
+    ValueEnforcer.notNull (aXML, "XMLElement");
+    ValueEnforcer.notNull (aVESID, "VESID");
+
+    final IValidationExecutorSet <IValidationSourceXML> aVES = _getVES (aVESID);
+    ValidationResultList ret = _getCachedResult (aVESID, sContentHash);
+    if (ret != null)
+    {
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Using cached validation result for VESID '" + aVESID.getAsSingleID () + "'");
+      return ret;
+    }
+
+    ret = _executeValidation (aVES, aXML, nPayloadBytes);
+    _putCachedResult (aVESID, sContentHash, ret);
+    return ret;
+  }
+
+  /**
+   * Validate the provided payload. The payload is read exactly once - the
+   * content hash and size are determined while parsing.
+   *
+   * @param aPayloadHasIS
+   *        The payload input stream provider. May not be <code>null</code>.
+   * @param aVESID
+   *        The VESID to validate against. May not be <code>null</code>.
+   * @return The validation results. Never <code>null</code>. Cached results
+   *         are shared and must not be modified.
+   * @throws Phase4PeppolException
+   *         If the payload cannot be parsed, the VESID is unknown or
+   *         validation fails technically
+   */
+  @Nonnull
+  public ValidationResultList validate (@Nonnull final IHasInputStream aPayloadHasIS,
+                                        @Nonnull final VESID aVESID) throws Phase4PeppolException
+  {
+    ValueEnforcer.notNull (aPayloadHasIS, "PayloadHasIS");
+    ValueEnforcer.notNull (aVESID, "VESID");
+
+    final IValidationExecutorSet <IValidationSourceXML> aVES = _getVES (aVESID);
+
+    final InputStream aIS = aPayloadHasIS.getBufferedInputStream ();
+    if (aIS == null)
+      throw new Phase4PeppolException ("Failed to create payload InputStream from provider");
+
+    // Parse and hash in one go
+    final MessageDigest aMD = _createMessageDigest ();
+    final CountingInputStream aCountingIS = new CountingInputStream (new DigestInputStream (aIS, aMD));
+    final Document aDoc = DOMReader.readXMLDOM (aCountingIS);
+    if (aDoc == null || aDoc.getDocumentElement () == null)
+      throw new Phase4PeppolException ("Failed to parse payload InputStream to a DOM node");
+
+    final String sContentHash = isResultCacheEnabled () ? StringHelper.getHexEncoded (aMD.digest ()) : null;
+    ValidationResultList ret = _getCachedResult (aVESID, sContentHash);
+    if (ret != null)
+    {
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Using cached validation result for VESID '" + aVESID.getAsSingleID () + "'");
+      return ret;
+    }
+
+    ret = _executeValidation (aVES, aDoc.getDocumentElement (), aCountingIS.getBytesRead ());
+    _putCachedResult (aVESID, sContentHash, ret);
+    return ret;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return m_aRWLock.readLockedGet ( () -> new ToStringGenerator (this).append ("VESRegistry", m_aVESRegistry)
+                                                                       .append ("ParallelExecutor", m_aParallelExecutor)
+                                                                       .append ("ParallelMinBytes", m_nParallelMinBytes)
+                                                                       .append ("ResultCacheEnabled", m_aResultCache != null)
+                                                                       .getToString ());
+  }
+}
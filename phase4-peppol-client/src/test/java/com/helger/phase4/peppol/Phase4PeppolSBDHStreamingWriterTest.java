@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.namespace.QName;
+
+import org.junit.Test;
+import org.unece.cefact.namespaces.sbdh.StandardBusinessDocument;
+import org.w3c.dom.Element;
+
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.commons.datetime.XMLOffsetDateTime;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.stream.HasInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.peppol.sbdh.PeppolSBDHDocument;
+import com.helger.peppol.sbdh.read.PeppolSBDHDocumentReader;
+import com.helger.peppol.sbdh.write.PeppolSBDHDocumentWriter;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+import com.helger.peppolid.factory.SimpleIdentifierFactory;
+import com.helger.sbdh.SBDMarshaller;
+import com.helger.xml.XMLFactory;
+
+/**
+ * Test class for class {@link Phase4PeppolSBDHStreamingWriter}.
+ *
+ * @author Philip Helger
+ */
+public final class Phase4PeppolSBDHStreamingWriterTest
+{
+  private static final String NS = "urn:oasis:names:specification:ubl:schema:xsd:Invoice-2";
+  private static final String PAYLOAD = "\uFEFF<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                                        "<Invoice xmlns=\"" +
+                                        NS +
+                                        "\"><Note>Grüße</Note></Invoice>";
+
+  @Test
+  public void testReadRootElementName () throws IOException
+  {
+    final QName aName = Phase4PeppolSBDHStreamingWriter.readRootElementName (new NonBlockingByteArrayInputStream (PAYLOAD.getBytes (StandardCharsets.UTF_8)));
+    assertEquals (new QName (NS, "Invoice"), aName);
+
+    try
+    {
+      Phase4PeppolSBDHStreamingWriter.readRootElementName (new NonBlockingByteArrayInputStream ("<?xml version='1.0' encoding='ISO-8859-1'?><a xmlns='urn:x'/>".getBytes (StandardCharsets.ISO_8859_1)));
+      fail ();
+    }
+    catch (final IOException ex)
+    {
+      // expected
+    }
+  }
+
+  @Test
+  public void testSkipXMLDeclaration () throws IOException
+  {
+    assertEquals ("<Invoice/>",
+                  StreamHelper.getAllBytesAsString (Phase4PeppolSBDHStreamingWriter.skipXMLDeclaration (new NonBlockingByteArrayInputStream ("<?xml version=\"1.0\"?><Invoice/>".getBytes (StandardCharsets.UTF_8))),
+                                                    StandardCharsets.UTF_8));
+    assertEquals ("<Invoice/>",
+                  StreamHelper.getAllBytesAsString (Phase4PeppolSBDHStreamingWriter.skipXMLDeclaration (new NonBlockingByteArrayInputStream ("<Invoice/>".getBytes (StandardCharsets.UTF_8))),
+                                                    StandardCharsets.UTF_8));
+    // Processing instruction starting with "xml" is not a declaration
+    assertEquals ("<?xml-stylesheet href='a'?><Invoice/>",
+                  StreamHelper.getAllBytesAsString (Phase4PeppolSBDHStreamingWriter.skipXMLDeclaration (new NonBlockingByteArrayInputStream ("<?xml-stylesheet href='a'?><Invoice/>".getBytes (StandardCharsets.UTF_8))),
+                                                    StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testCreateSBDStreamProvider () throws Exception
+  {
+    final PeppolSBDHDocument aData = new PeppolSBDHDocument (PeppolIdentifierFactory.INSTANCE);
+    aData.setSenderWithDefaultScheme ("9915:sender");
+    aData.setReceiverWithDefaultScheme ("9915:receiver");
+    aData.setDocumentTypeWithBusdoxDocidQns ("urn:oasis:names:specification:ubl:schema:xsd:Invoice-2::Invoice##urn:cen.eu:en16931:2017#compliant#urn:fdc:peppol.eu:2017:poacc:billing:3.0::2.1");
+    aData.setProcessWithDefaultScheme ("urn:fdc:peppol.eu:2017:poacc:billing:01:1.0");
+    aData.setCountryC1 ("AT");
+    aData.setDocumentIdentification (NS,
+                                     "2.1",
+                                     "Invoice",
+                                     "instance-1",
+                                     XMLOffsetDateTime.of (PDTFactory.getCurrentOffsetDateTime ()));
+    aData.setBusinessMessageNoClone (XMLFactory.newDocument ().createElementNS (NS, "Invoice"));
+    final StandardBusinessDocument aPlaceholderSBD = new PeppolSBDHDocumentWriter ().createStandardBusinessDocument (aData);
+
+    final byte [] aPayload = PAYLOAD.getBytes (StandardCharsets.UTF_8);
+    final IHasInputStream aSBDHasIS = Phase4PeppolSBDHStreamingWriter.createSBDStreamProvider (aPlaceholderSBD.getStandardBusinessDocumentHeader (),
+                                                                                               HasInputStream.multiple ( () -> new NonBlockingByteArrayInputStream (aPayload)));
+    assertTrue (aSBDHasIS.isReadMultiple ());
+
+    // Must be a valid SBD
+    final StandardBusinessDocument aSBD = new SBDMarshaller ().read (StreamHelper.getAllBytes (aSBDHasIS));
+    assertNotNull (aSBD);
+    final PeppolSBDHDocument aRead = new PeppolSBDHDocumentReader (SimpleIdentifierFactory.INSTANCE).extractData (aSBD);
+    assertEquals ("9915:receiver", aRead.getReceiverValue ());
+    assertEquals ("instance-1", aRead.getInstanceIdentifier ());
+
+    final Element eInvoice = aRead.getBusinessMessageNoClone ();
+    assertEquals (NS, eInvoice.getNamespaceURI ());
+    assertEquals ("Grüße", eInvoice.getTextContent ());
+  }
+}
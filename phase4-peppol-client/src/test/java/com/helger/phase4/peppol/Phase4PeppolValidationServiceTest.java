@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.phive.api.executorset.VESID;
+import com.helger.phive.api.result.ValidationResultList;
+import com.helger.phive.peppol.PeppolValidation3_15_0;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Test class for class {@link Phase4PeppolValidationService}.
+ *
+ * @author Philip Helger
+ */
+public final class Phase4PeppolValidationServiceTest
+{
+  private static final VESID VESID_INVOICE = PeppolValidation3_15_0.VID_OPENPEPPOL_INVOICE_UBL_V3;
+  private static final IHasInputStream PAYLOAD = new ClassPathResource ("external/examples/base-example.xml");
+
+  @Test
+  public void testSequentialAndParallel () throws Exception
+  {
+    final Phase4PeppolValidationService aService = new Phase4PeppolValidationService ();
+    aService.warmUp (new CommonsArrayList <> (VESID_INVOICE));
+
+    final ValidationResultList aSequential = aService.validate (PAYLOAD, VESID_INVOICE);
+    assertTrue (aSequential.containsNoError ());
+
+    final ExecutorService aES = Executors.newFixedThreadPool (2);
+    try
+    {
+      aService.setParallelExecutor (aES).setParallelMinBytes (0);
+      final ValidationResultList aParallel = aService.validate (PAYLOAD, VESID_INVOICE);
+      assertEquals (aSequential.size (), aParallel.size ());
+      assertEquals (aSequential.getAllErrors ().size (), aParallel.getAllErrors ().size ());
+      for (int i = 0; i < aSequential.size (); ++i)
+        assertEquals (aSequential.get (i).getValidationArtefact (), aParallel.get (i).getValidationArtefact ());
+    }
+    finally
+    {
+      ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (aES);
+    }
+  }
+
+  @Test
+  public void testElementRespectsParallelMinBytes () throws Exception
+  {
+    final Phase4PeppolValidationService aService = new Phase4PeppolValidationService ();
+    final Element aXML = DOMReader.readXMLDOM (PAYLOAD.getInputStream ()).getDocumentElement ();
+
+    final ThreadPoolExecutor aES = (ThreadPoolExecutor) Executors.newFixedThreadPool (2);
+    try
+    {
+      aService.setParallelExecutor (aES).setParallelMinBytes (1024);
+
+      // Too small and unknown size - sequential
+      aService.validate (aXML, null, 1023, VESID_INVOICE);
+      aService.validate (aXML, null, -1, VESID_INVOICE);
+      assertEquals (0, aES.getTaskCount ());
+
+      // Large enough - parallel
+      aService.validate (aXML, null, 1024, VESID_INVOICE);
+      assertTrue (aES.getTaskCount () > 0);
+    }
+    finally
+    {
+      ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (aES);
+    }
+  }
+
+  @Test
+  public void testResultCache () throws Exception
+  {
+    final Phase4PeppolValidationService aService = new Phase4PeppolValidationService ();
+
+    // No cache
+    assertNotSame (aService.validate (PAYLOAD, VESID_INVOICE), aService.validate (PAYLOAD, VESID_INVOICE));
+
+    // With cache
+    aService.setResultCacheSize (10);
+    final ValidationResultList aResult = aService.validate (PAYLOAD, VESID_INVOICE);
+    assertSame (aResult, aService.validate (PAYLOAD, VESID_INVOICE));
+
+    aService.clearResultCache ();
+    assertNotSame (aResult, aService.validate (PAYLOAD, VESID_INVOICE));
+  }
+}
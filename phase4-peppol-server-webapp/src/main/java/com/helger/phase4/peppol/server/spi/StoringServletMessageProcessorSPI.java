@@ -32,6 +32,7 @@ import com.helger.commons.annotation.IsSPIImplementation;
 import com.helger.commons.annotation.Nonempty;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.IHasInputStream;
 import com.helger.commons.io.file.FileHelper;
 import com.helger.commons.io.file.SimpleFileIO;
 import com.helger.commons.io.stream.StreamHelper;
@@ -220,24 +221,32 @@ public class StoringServletMessageProcessorSPI implements IAS4ServletMessageProc
   public void processAS4ResponseMessage (@Nonnull final IAS4IncomingMessageMetadata aMessageMetadata,
                                          @Nonnull final IAS4MessageState aState,
                                          @Nonnull @Nonempty final String sResponseMessageID,
-                                         @Nullable final byte [] aResponseBytes,
+                                         @Nullable final IHasInputStream aResponsePayload,
                                          final boolean bResponsePayloadIsAvailable)
   {
     LOGGER.info ("Processing AS4 response message");
 
-    if (aResponseBytes != null)
+    if (aResponsePayload != null)
     {
       final File aFile = StorageHelper.getStorageFile (aMessageMetadata, ".response");
-      if (SimpleFileIO.writeFile (aFile, aResponseBytes).isFailure ())
+      final MutableLong aCopyCount = new MutableLong (0);
+      if (StreamHelper.copyByteStream ()
+                      .from (aResponsePayload.getInputStream ())
+                      .closeFrom (true)
+                      .to (FileHelper.getOutputStream (aFile))
+                      .closeTo (true)
+                      .copyByteCount (aCopyCount)
+                      .build ()
+                      .isFailure ())
       {
         LOGGER.error ("Failed to write response to '" +
                       aFile.getAbsolutePath () +
                       "' (" +
-                      aResponseBytes.length +
+                      aCopyCount.longValue () +
                       " bytes)");
       }
       else
-        LOGGER.info ("Wrote response to '" + aFile.getAbsolutePath () + "' (" + aResponseBytes.length + " bytes)");
+        LOGGER.info ("Wrote response to '" + aFile.getAbsolutePath () + "' (" + aCopyCount.longValue () + " bytes)");
     }
     else
       LOGGER.warn ("No response bytes are available for writing");
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol.servlet;
+
+import javax.annotation.Nonnull;
+
+import com.helger.commons.annotation.IsSPIInterface;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.peppol.sbdh.PeppolSBDHDocument;
+import com.helger.phase4.ebms3header.Ebms3UserMessage;
+import com.helger.phase4.messaging.IAS4IncomingMessageMetadata;
+import com.helger.phase4.servlet.IAS4MessageState;
+
+/**
+ * This is the streaming variant of {@link IPhase4PeppolIncomingSBDHandlerSPI}.
+ * Instead of the complete SBD in memory (as a byte array and as a JAXB tree),
+ * only the data of the Standard Business Document Header is provided together
+ * with a stream provider for the complete SBD. If only handlers of this type
+ * are registered, incoming payloads are never fully loaded into memory.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@IsSPIInterface
+public interface IPhase4PeppolIncomingSBDStreamingHandlerSPI
+{
+  /**
+   * Handle the provided incoming StandardBusinessDocument
+   *
+   * @param aMessageMetadata
+   *        Message metadata. Includes data when and from whom it was received.
+   *        Never <code>null</code>.
+   * @param aHeaders
+   *        The (HTTP) headers of the incoming request. Never <code>null</code>.
+   * @param aUserMessage
+   *        The received EBMS user message. Never <code>null</code>.
+   * @param aSBDStreamProvider
+   *        The provider for the complete raw SBD (including the SBDH). The
+   *        stream can be read multiple times. It is backed by memory or a
+   *        temporary file that is only valid during the invocation of this
+   *        method. Never <code>null</code>.
+   * @param aPeppolSBDH
+   *        The pre-parsed Peppol Standard Business Document Header data. The
+   *        contained business message is only an empty placeholder element
+   *        carrying the namespace URI and local name of the real business
+   *        message. Never <code>null</code>.
+   * @param aState
+   *        The message state. Can e.g. be used to retrieve information about
+   *        the certificate found in the message. Never <code>null</code>.
+   * @throws Exception
+   *         In case it cannot be processed.
+   */
+  void handleIncomingSBD (@Nonnull IAS4IncomingMessageMetadata aMessageMetadata,
+                          @Nonnull HttpHeaderMap aHeaders,
+                          @Nonnull Ebms3UserMessage aUserMessage,
+                          @Nonnull IHasInputStream aSBDStreamProvider,
+                          @Nonnull PeppolSBDHDocument aPeppolSBDH,
+                          @Nonnull IAS4MessageState aState) throws Exception;
+
+  /**
+   * Define if an exception from
+   * {@link #handleIncomingSBD(IAS4IncomingMessageMetadata, HttpHeaderMap, Ebms3UserMessage, IHasInputStream, PeppolSBDHDocument, IAS4MessageState)}
+   * results in a negative AS4 response or not. By default it is not.
+   *
+   * @return <code>true</code> to convert an Exception into an AS4 Error,
+   *         <code>false</code> if the Exception should simply be logged and
+   *         than processing should continue.
+   */
+  default boolean exceptionTranslatesToAS4Error ()
+  {
+    return false;
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol.servlet;
+
+import java.io.InputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.WillNotClose;
+import javax.annotation.concurrent.Immutable;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.unece.cefact.namespaces.sbdh.StandardBusinessDocument;
+import org.unece.cefact.namespaces.sbdh.StandardBusinessDocumentHeader;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.error.SingleError;
+import com.helger.commons.error.list.ErrorList;
+import com.helger.jaxb.validation.WrappedCollectingValidationEventHandler;
+import com.helger.sbdh.CSBDH;
+import com.helger.sbdh.SBDHMarshaller;
+import com.helger.xml.XMLFactory;
+
+/**
+ * A StAX based reader that only reads the Standard Business Document Header
+ * (SBDH) of a Standard Business Document and skips the business document. This
+ * avoids reading the complete business payload into memory, which is
+ * especially relevant for large documents with embedded attachments.<br>
+ * The returned {@link StandardBusinessDocument} contains the fully read header
+ * and an empty placeholder element as the business message, that carries the
+ * namespace URI and the local name of the real business message. That is
+ * sufficient for the Peppol SBDH consistency checks.
+ *
+ * @author Philip Helger
+ * @since 2.1.3
+ */
+@Immutable
+public final class Phase4PeppolSBDHStreamingReader
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (Phase4PeppolSBDHStreamingReader.class);
+  private static final String ELEMENT_SBD = "StandardBusinessDocument";
+  private static final String ELEMENT_SBDH = "StandardBusinessDocumentHeader";
+  // Factories are thread-safe after configuration
+  private static final XMLInputFactory XML_INPUT_FACTORY = _createXMLInputFactory ();
+
+  private Phase4PeppolSBDHStreamingReader ()
+  {}
+
+  @Nonnull
+  private static XMLInputFactory _createXMLInputFactory ()
+  {
+    final XMLInputFactory ret = XMLInputFactory.newInstance ();
+    // Avoid XXE attacks
+    ret.setProperty (XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    ret.setProperty (XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    ret.setProperty (XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    return ret;
+  }
+
+  private static void _skipToNextStartElement (@Nonnull final XMLStreamReader aReader) throws XMLStreamException
+  {
+    while (aReader.getEventType () != XMLStreamConstants.START_ELEMENT && aReader.hasNext ())
+      aReader.next ();
+  }
+
+  private static boolean _isSBDHElement (@Nonnull final XMLStreamReader aReader, @Nonnull final String sLocalName)
+  {
+    return aReader.getEventType () == XMLStreamConstants.START_ELEMENT &&
+           CSBDH.SBDH_NS.equals (aReader.getNamespaceURI ()) &&
+           sLocalName.equals (aReader.getLocalName ());
+  }
+
+  /**
+   * Read the SBDH from the provided input stream, stopping at the start of the
+   * business message.
+   *
+   * @param aIS
+   *        The input stream to read from. It is not closed by this method. May
+   *        not be <code>null</code>.
+   * @param aErrorList
+   *        The error list to be filled with read errors. May not be
+   *        <code>null</code>.
+   * @return <code>null</code> if the document could not be read. In that case
+   *         the error list contains at least one error.
+   */
+  @Nullable
+  public static StandardBusinessDocument readHeaderOnly (@Nonnull @WillNotClose final InputStream aIS,
+                                                         @Nonnull final ErrorList aErrorList)
+  {
+    ValueEnforcer.notNull (aIS, "InputStream");
+    ValueEnforcer.notNull (aErrorList, "ErrorList");
+
+    XMLStreamReader aReader = null;
+    try
+    {
+      aReader = XML_INPUT_FACTORY.createXMLStreamReader (aIS);
+
+      // Root element
+      _skipToNextStartElement (aReader);
+      if (!_isSBDHElement (aReader, ELEMENT_SBD))
+      {
+        aErrorList.add (SingleError.builderError ()
+                                   .errorText ("The root element is not an SBD but {" +
+                                               aReader.getNamespaceURI () +
+                                               "}" +
+                                               aReader.getLocalName ())
+                                   .build ());
+        return null;
+      }
+
+      // Header element
+      aReader.nextTag ();
+      if (!_isSBDHElement (aReader, ELEMENT_SBDH))
+      {
+        aErrorList.add (SingleError.builderError ().errorText ("The SBD has no SBDH as the first child element").build ());
+        return null;
+      }
+
+      // Read only the header with JAXB - incl. XML Schema validation
+      // The StAX reader is positioned after the end of the header afterwards
+      final XMLStreamReader aHeaderReader = aReader;
+      final StandardBusinessDocumentHeader aSBDH = new SBDHMarshaller ().setValidationEventHandler (new WrappedCollectingValidationEventHandler (aErrorList))
+                                                                        .read ( (u, c) -> u.unmarshal (aHeaderReader, c));
+      if (aSBDH == null)
+      {
+        if (aErrorList.isEmpty ())
+          aErrorList.add (SingleError.builderError ().errorText ("Failed to read the SBDH").build ());
+        return null;
+      }
+
+      // Business message - only the start tag is read
+      _skipToNextStartElement (aReader);
+      if (aReader.getEventType () != XMLStreamConstants.START_ELEMENT)
+      {
+        aErrorList.add (SingleError.builderError ().errorText ("The SBD contains no business message").build ());
+        return null;
+      }
+
+      final Document aDoc = XMLFactory.newDocument ();
+      final Element aBusinessMessage = aDoc.createElementNS (aReader.getNamespaceURI (), aReader.getLocalName ());
+      aDoc.appendChild (aBusinessMessage);
+
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Successfully streamed SBDH with business message {" +
+                      aReader.getNamespaceURI () +
+                      "}" +
+                      aReader.getLocalName ());
+
+      final StandardBusinessDocument ret = new StandardBusinessDocument ();
+      ret.setStandardBusinessDocumentHeader (aSBDH);
+      ret.setAny (aBusinessMessage);
+      return ret;
+    }
+    catch (final XMLStreamException ex)
+    {
+      aErrorList.add (SingleError.builderError ().errorText ("Failed to parse the SBD").linkedException (ex).build ());
+      return null;
+    }
+    finally
+    {
+      if (aReader != null)
+        try
+        {
+          aReader.close ();
+        }
+        catch (final XMLStreamException ex)
+        {
+          // Ignore
+        }
+    }
+  }
+}
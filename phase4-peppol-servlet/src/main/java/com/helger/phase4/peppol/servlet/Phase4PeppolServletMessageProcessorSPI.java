@@ -16,6 +16,7 @@
  */
 package com.helger.phase4.peppol.servlet;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
@@ -43,6 +44,10 @@ import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.error.IError;
 import com.helger.commons.error.list.ErrorList;
 import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.stream.HasInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
 import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
 import com.helger.commons.io.stream.StreamHelper;
 import com.helger.commons.lang.ServiceLoaderHelper;
@@ -98,6 +103,7 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4ServletMessag
     private Charset m_aCharset;
     private EAS4CompressionMode m_eCompressionMode;
     private byte [] m_aPayloadBytes;
+    private IHasInputStream m_aPayloadISP;
     private StandardBusinessDocument m_aSBDH;
 
     private ReadAttachment ()
@@ -133,13 +139,21 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4ServletMessag
       return m_eCompressionMode;
     }
 
-    @Nonnull
+    @Nullable
     @ReturnsMutableObject
     public byte [] payloadBytes ()
     {
       return m_aPayloadBytes;
     }
 
+    @Nonnull
+    public IHasInputStream payloadStreamProvider ()
+    {
+      if (m_aPayloadISP != null)
+        return m_aPayloadISP;
+      return HasInputStream.multiple ( () -> new NonBlockingByteArrayInputStream (m_aPayloadBytes));
+    }
+
     @Nonnull
     @ReturnsMutableObject
     public StandardBusinessDocument standardBusinessDocument ()
@@ -152,17 +166,20 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4ServletMessag
   private static final Logger LOGGER = LoggerFactory.getLogger (Phase4PeppolServletMessageProcessorSPI.class);
 
   private ICommonsList <IPhase4PeppolIncomingSBDHandlerSPI> m_aHandlers;
+  private ICommonsList <IPhase4PeppolIncomingSBDStreamingHandlerSPI> m_aStreamingHandlers;
   private ISMPTransportProfile m_aTransportProfile = DEFAULT_TRANSPORT_PROFILE;
   private Phase4PeppolReceiverCheckData m_aReceiverCheckData;
 
   /**
    * Constructor. Uses all SPI implementations of
-   * {@link IPhase4PeppolIncomingSBDHandlerSPI} as the handlers.
+   * {@link IPhase4PeppolIncomingSBDHandlerSPI} and
+   * {@link IPhase4PeppolIncomingSBDStreamingHandlerSPI} as the handlers.
    */
   @UsedViaReflection
   public Phase4PeppolServletMessageProcessorSPI ()
   {
     m_aHandlers = ServiceLoaderHelper.getAllSPIImplementations (IPhase4PeppolIncomingSBDHandlerSPI.class);
+    m_aStreamingHandlers = ServiceLoaderHelper.getAllSPIImplementations (IPhase4PeppolIncomingSBDStreamingHandlerSPI.class);
   }
 
   /**
@@ -195,6 +212,47 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4ServletMessag
     return this;
   }
 
+  /**
+   * @return A list of all contained Peppol specific streaming SBD handlers.
+   *         Never <code>null</code> but maybe empty.
+   * @since 2.1.3
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public final ICommonsList <IPhase4PeppolIncomingSBDStreamingHandlerSPI> getAllStreamingHandler ()
+  {
+    return m_aStreamingHandlers.getClone ();
+  }
+
+  /**
+   * Set all streaming handler to be used. If only streaming handlers are
+   * present, the incoming payload is not read into memory and only the SBDH is
+   * parsed.
+   *
+   * @param aStreamingHandlers
+   *        The streaming handler to be set. May not be <code>null</code> but
+   *        maybe empty.
+   * @return this for chaining
+   * @since 2.1.3
+   */
+  @Nonnull
+  public final Phase4PeppolServletMessageProcessorSPI setAllStreamingHandler (@Nonnull final Iterable <? extends IPhase4PeppolIncomingSBDStreamingHandlerSPI> aStreamingHandlers)
+  {
+    ValueEnforcer.notNull (aStreamingHandlers, "StreamingHandlers");
+    m_aStreamingHandlers = new CommonsArrayList <> (aStreamingHandlers);
+    return this;
+  }
+
+  /**
+   * @return <code>true</code> if only streaming handlers are present, so that
+   *         the payload does not need to be read into memory.
+   * @since 2.1.3
+   */
+  public final boolean isStreamingOnly ()
+  {
+    return m_aHandlers.isEmpty () && m_aStreamingHandlers.isNotEmpty ();
+  }
+
   /**
    * @return the transport profile to be handled. Never <code>null</code>. By
    *         default it is "Peppol AS4 v2" (see
@@ -365,6 +423,41 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4ServletMessag
       LOGGER.debug (sLogPrefix + "The certificate of the SMP lookup matches our certificate");
   }
 
+  /**
+   * Get a stream provider for the attachment that can be read multiple times.
+   * If the attachment itself is not repeatable, it is copied to a temporary
+   * file, that is deleted together with the message state.
+   *
+   * @param aAttachment
+   *        Attachment to use. May not be <code>null</code>.
+   * @param aState
+   *        Message state to use. May not be <code>null</code>.
+   * @return <code>null</code> if the attachment could not be read.
+   */
+  @Nullable
+  private static IHasInputStream _getRepeatableStreamProvider (@Nonnull final IAS4Attachment aAttachment,
+                                                               @Nonnull final IAS4MessageState aState)
+  {
+    if (aAttachment.isRepeatable ())
+      return aAttachment.getInputStreamProvider ();
+
+    try
+    {
+      final File aTempFile = aState.getResourceHelper ().createTempFile ();
+      try (final InputStream aSIS = aAttachment.getSourceStream ())
+      {
+        if (StreamHelper.copyInputStreamToOutputStreamAndCloseOS (aSIS, FileHelper.getBufferedOutputStream (aTempFile))
+                        .isFailure ())
+          return null;
+      }
+      return HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aTempFile));
+    }
+    catch (final IOException | AS4DecompressException ex)
+    {
+      return null;
+    }
+  }
+
   @Nonnull
   public AS4MessageProcessorResult processAS4UserMessage (@Nonnull final IAS4IncomingMessageMetadata aMessageMetadata,
                                                           @Nonnull final HttpHeaderMap aHttpHeaders,
@@ -414,6 +507,7 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4ServletMessag
     }
 
     // Read all attachments
+    final boolean bStreamingOnly = isStreamingOnly ();
     final ICommonsList <ReadAttachment> aReadAttachments = new CommonsArrayList <> ();
     if (aIncomingAttachments != null)
     {
@@ -426,19 +520,37 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4ServletMessag
         a.m_sUncompressedMimeType = aIncomingAttachment.getUncompressedMimeType ();
         a.m_aCharset = aIncomingAttachment.getCharset ();
         a.m_eCompressionMode = aIncomingAttachment.getCompressionMode ();
-        try (final InputStream aSIS = aIncomingAttachment.getSourceStream ())
+        final ErrorList aSBDHErrors = new ErrorList ();
+        if (bStreamingOnly)
         {
-          final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
-          if (StreamHelper.copyInputStreamToOutputStreamAndCloseOS (aSIS, aBAOS).isSuccess ())
-          {
-            a.m_aPayloadBytes = aBAOS.getBufferOrCopy ();
-          }
+          // Only read the SBDH and leave the payload where it is
+          a.m_aPayloadISP = _getRepeatableStreamProvider (aIncomingAttachment, aState);
+          if (a.m_aPayloadISP != null)
+            try (final InputStream aSIS = a.m_aPayloadISP.getBufferedInputStream ())
+            {
+              a.m_aSBDH = Phase4PeppolSBDHStreamingReader.readHeaderOnly (aSIS, aSBDHErrors);
+            }
+            catch (final IOException | AS4DecompressException ex)
+            {
+              a.m_aPayloadISP = null;
+            }
         }
-        catch (final IOException | AS4DecompressException ex)
+        else
         {
-          // Fall through
+          try (final InputStream aSIS = aIncomingAttachment.getSourceStream ())
+          {
+            final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+            if (StreamHelper.copyInputStreamToOutputStreamAndCloseOS (aSIS, aBAOS).isSuccess ())
+            {
+              a.m_aPayloadBytes = aBAOS.getBufferOrCopy ();
+            }
+          }
+          catch (final IOException | AS4DecompressException ex)
+          {
+            // Fall through
+          }
         }
-        if (a.m_aPayloadBytes == null)
+        if (a.m_aPayloadBytes == null && a.m_aPayloadISP == null)
         {
           LOGGER.error (sLogPrefix + "Failed to decompress the payload");
           aProcessingErrorMessages.add (EEbmsError.EBMS_DECOMPRESSION_FAILURE.getAsEbms3Error (aDisplayLocale,
@@ -446,12 +558,14 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4ServletMessag
           return AS4MessageProcessorResult.createFailure (null);
         }
 
-        // Read data as SBDH
-        // Hint for production systems: this may take a huge amount of memory,
-        // if the payload is large
-        final ErrorList aSBDHErrors = new ErrorList ();
-        a.m_aSBDH = new SBDMarshaller ().setValidationEventHandler (new WrappedCollectingValidationEventHandler (aSBDHErrors))
-                                        .read (a.m_aPayloadBytes);
+        if (!bStreamingOnly)
+        {
+          // Read data as SBDH
+          // Hint for production systems: this may take a huge amount of memory,
+          // if the payload is large
+          a.m_aSBDH = new SBDMarshaller ().setValidationEventHandler (new WrappedCollectingValidationEventHandler (aSBDHErrors))
+                                          .read (a.m_aPayloadBytes);
+        }
         if (a.m_aSBDH == null)
         {
           if (aSBDHErrors.isEmpty ())
@@ -491,7 +605,7 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4ServletMessag
                         "] and [" +
                         StringHelper.getToString (a.m_aCharset, "no charset") +
                         "] and length is " +
-                        (a.m_aPayloadBytes == null ? "<error>" : Integer.toString (a.m_aPayloadBytes.length)) +
+                        (a.m_aPayloadBytes == null ? "<streamed>" : Integer.toString (a.m_aPayloadBytes.length)) +
                         " bytes" +
                         (a.m_eCompressionMode == null ? "" : " of compressed payload"));
         nAttachmentIndex++;
@@ -537,7 +651,7 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4ServletMessag
       return AS4MessageProcessorResult.createFailure (sMsg);
     }
 
-    if (m_aHandlers.isEmpty ())
+    if (m_aHandlers.isEmpty () && m_aStreamingHandlers.isEmpty ())
     {
       LOGGER.error (sLogPrefix + "No SPI handler is present - the message is unhandled and discarded");
     }
@@ -634,6 +748,42 @@ public class Phase4PeppolServletMessageProcessorSPI implements IAS4ServletMessag
           }
         }
       }
+
+      for (final IPhase4PeppolIncomingSBDStreamingHandlerSPI aHandler : m_aStreamingHandlers)
+      {
+        try
+        {
+          if (LOGGER.isDebugEnabled ())
+            LOGGER.debug (sLogPrefix + "Invoking Peppol streaming handler " + aHandler);
+          aHandler.handleIncomingSBD (aMessageMetadata,
+                                      aHttpHeaders.getClone (),
+                                      aUserMessage.clone (),
+                                      aReadAttachment.payloadStreamProvider (),
+                                      aPeppolSBD,
+                                      aState);
+        }
+        catch (final Phase4PeppolClientException ex)
+        {
+          final String sMsg = ex.getMessage ();
+          LOGGER.error (sLogPrefix + "Error invoking Peppol streaming handler " + aHandler + ": " + sMsg);
+
+          // Returned AS4 Error without a custom prefix
+          return AS4MessageProcessorResult.createFailure (sMsg);
+        }
+        catch (final Exception ex)
+        {
+          LOGGER.error (sLogPrefix + "Error invoking Peppol streaming handler " + aHandler, ex);
+          if (aHandler.exceptionTranslatesToAS4Error ())
+          {
+            final String sMsg = "The incoming Peppol message could not be processed. Technical details: " +
+                                ex.getClass ().getName () +
+                                " - " +
+                                ex.getMessage ();
+            LOGGER.error (sLogPrefix + sMsg);
+            return AS4MessageProcessorResult.createFailure (sMsg);
+          }
+        }
+      }
     }
 
     return AS4MessageProcessorResult.createSuccess ();
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.peppol.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import org.unece.cefact.namespaces.sbdh.StandardBusinessDocument;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.commons.datetime.XMLOffsetDateTime;
+import com.helger.commons.error.list.ErrorList;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.peppol.sbdh.PeppolSBDHDocument;
+import com.helger.peppol.sbdh.read.PeppolSBDHDocumentReader;
+import com.helger.peppol.sbdh.write.PeppolSBDHDocumentWriter;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+import com.helger.peppolid.factory.SimpleIdentifierFactory;
+import com.helger.sbdh.SBDMarshaller;
+import com.helger.xml.XMLFactory;
+
+/**
+ * Test class for class {@link Phase4PeppolSBDHStreamingReader}.
+ *
+ * @author Philip Helger
+ */
+public final class Phase4PeppolSBDHStreamingReaderTest
+{
+  private static final String NS = "urn:oasis:names:specification:ubl:schema:xsd:Invoice-2";
+
+  @Test
+  public void testReadHeaderOnly () throws Exception
+  {
+    // Create a business message with some content
+    final Document aDoc = XMLFactory.newDocument ();
+    final Element eRoot = (Element) aDoc.appendChild (aDoc.createElementNS (NS, "Invoice"));
+    for (int i = 0; i < 1000; ++i)
+      eRoot.appendChild (aDoc.createElementNS (NS, "Line")).appendChild (aDoc.createTextNode ("Line " + i));
+
+    final PeppolSBDHDocument aData = new PeppolSBDHDocument (PeppolIdentifierFactory.INSTANCE);
+    aData.setSenderWithDefaultScheme ("9915:sender");
+    aData.setReceiverWithDefaultScheme ("9915:receiver");
+    aData.setDocumentTypeWithBusdoxDocidQns ("urn:oasis:names:specification:ubl:schema:xsd:Invoice-2::Invoice##urn:cen.eu:en16931:2017#compliant#urn:fdc:peppol.eu:2017:poacc:billing:3.0::2.1");
+    aData.setProcessWithDefaultScheme ("urn:fdc:peppol.eu:2017:poacc:billing:01:1.0");
+    aData.setCountryC1 ("AT");
+    aData.setDocumentIdentification (NS, "2.1", "Invoice", "instance-1", XMLOffsetDateTime.of (PDTFactory.getCurrentOffsetDateTime ()));
+    aData.setBusinessMessageNoClone (eRoot);
+    final byte [] aSBDBytes = new SBDMarshaller ().getAsBytes (new PeppolSBDHDocumentWriter ().createStandardBusinessDocument (aData));
+    assertNotNull (aSBDBytes);
+
+    final ErrorList aErrors = new ErrorList ();
+    final StandardBusinessDocument aSBD = Phase4PeppolSBDHStreamingReader.readHeaderOnly (new NonBlockingByteArrayInputStream (aSBDBytes),
+                                                                                           aErrors);
+    assertNotNull (aErrors.toString (), aSBD);
+    assertTrue (aErrors.isEmpty ());
+
+    // The placeholder has no content
+    final Element ePlaceholder = (Element) aSBD.getAny ();
+    assertEquals (NS, ePlaceholder.getNamespaceURI ());
+    assertEquals ("Invoice", ePlaceholder.getLocalName ());
+    assertFalse (ePlaceholder.hasChildNodes ());
+
+    // Peppol checks work as expected
+    final PeppolSBDHDocument aRead = new PeppolSBDHDocumentReader (SimpleIdentifierFactory.INSTANCE).extractData (aSBD);
+    assertEquals ("9915:receiver", aRead.getReceiverValue ());
+    assertEquals ("instance-1", aRead.getInstanceIdentifier ());
+  }
+
+  @Test
+  public void testInvalid ()
+  {
+    final ErrorList aErrors = new ErrorList ();
+    assertNull (Phase4PeppolSBDHStreamingReader.readHeaderOnly (new NonBlockingByteArrayInputStream ("<Invoice xmlns='urn:any'/>".getBytes (StandardCharsets.UTF_8)),
+                                                                aErrors));
+    assertTrue (aErrors.containsAtLeastOneError ());
+  }
+}
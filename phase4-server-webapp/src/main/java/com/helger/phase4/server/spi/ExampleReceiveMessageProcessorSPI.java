@@ -31,6 +31,7 @@ import org.w3c.dom.Node;
 import com.helger.commons.annotation.IsSPIImplementation;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.IHasInputStream;
 import com.helger.commons.io.file.FileHelper;
 import com.helger.commons.io.file.SimpleFileIO;
 import com.helger.commons.io.stream.StreamHelper;
@@ -169,7 +170,7 @@ public class ExampleReceiveMessageProcessorSPI implements IAS4ServletMessageProc
   public void processAS4ResponseMessage (final IAS4IncomingMessageMetadata aMessageMetadata,
                                          final IAS4MessageState aState,
                                          final String sResponseMessageID,
-                                         final byte [] aResponseBytes,
+                                         final IHasInputStream aResponsePayload,
                                          final boolean bResponsePayloadIsAvailable)
   {
     LOGGER.info ("Sending AS4 response with ID '" + sResponseMessageID + "'");
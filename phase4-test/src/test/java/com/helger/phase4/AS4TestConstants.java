@@ -54,6 +54,8 @@ public final class AS4TestConstants
   public static final String ATTACHMENT_SHORTXML_XML = "attachment/shortxml.xml";
   public static final String ATTACHMENT_TEST_XML_GZ = "attachment/test.xml.gz";
   public static final String ATTACHMENT_TEST_IMG2_JPG = "attachment/test-img2.jpg";
+  /** A Peppol UBL invoice of approximately 10 KB */
+  public static final String ATTACHMENT_PEPPOL_INVOICE_XML = "external/peppol-invoice.xml";
 
   // CEF
   public static final String CEF_INITIATOR_ID = "CEF-Initiator";
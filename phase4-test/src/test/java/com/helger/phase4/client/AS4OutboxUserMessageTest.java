@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.helger.commons.concurrent.ThreadHelper;
+import com.helger.commons.io.file.FileOperations;
+import com.helger.phase4.AS4TestConstants;
+import com.helger.phase4.CAS4;
+import com.helger.phase4.attachment.AS4OutgoingAttachment;
+import com.helger.phase4.ebms3header.Ebms3Property;
+import com.helger.phase4.http.HttpRetrySettings;
+import com.helger.phase4.messaging.domain.MessageHelperMethods;
+import com.helger.phase4.mgr.MetaAS4Manager;
+import com.helger.phase4.model.pmode.PMode;
+import com.helger.phase4.model.pmode.PModeReceptionAwareness;
+import com.helger.phase4.profile.cef.AS4CEFProfileRegistarSPI;
+import com.helger.phase4.sender.AS4Sender;
+import com.helger.phase4.sender.AbstractAS4UserMessageBuilder.ESimpleUserMessageSendResult;
+import com.helger.phase4.sender.outbox.AS4Outbox;
+import com.helger.phase4.server.AbstractAS4TestSetUp;
+import com.helger.phase4.server.MockJettySetup;
+import com.helger.phase4.server.MockPModeGenerator;
+import com.helger.phase4.soap.ESoapVersion;
+
+/**
+ * Test sending user messages via an {@link AS4Outbox} against the local mock
+ * AP.
+ *
+ * @author Philip Helger
+ */
+public final class AS4OutboxUserMessageTest extends AbstractAS4TestSetUp
+{
+  private static final File BASE_DIR = new File ("target/outbox-user-message-test");
+
+  @BeforeClass
+  public static void beforeClass () throws Exception
+  {
+    MockJettySetup.startServer ();
+    MetaAS4Manager.getProfileMgr ().setDefaultProfileID (AS4CEFProfileRegistarSPI.AS4_PROFILE_ID_FOUR_CORNER);
+  }
+
+  @AfterClass
+  public static void afterClass () throws Exception
+  {
+    MockJettySetup.shutDownServer ();
+  }
+
+  @After
+  public void cleanup ()
+  {
+    FileOperations.deleteDirRecursiveIfExisting (BASE_DIR);
+  }
+
+  @Test
+  public void testReceiptedMessageIsDeliveredAfterOneAttempt () throws Exception
+  {
+    final PMode aPMode = MockPModeGenerator.getTestPModeWithSecurity (ESoapVersion.SOAP_12);
+    aPMode.setReceptionAwareness (PModeReceptionAwareness.createDefault ());
+    assertTrue (aPMode.getReceptionAwareness ().isReceptionAwareness ());
+
+    try (final AS4Outbox aOutbox = new AS4Outbox (BASE_DIR))
+    {
+      aOutbox.start ();
+
+      final AS4Sender.BuilderUserMessage aBuilder = AS4Sender.builderUserMessage ()
+                                                             .pmode (aPMode)
+                                                             .service ("MyServiceType", "OrderPaper")
+                                                             .action ("AnAction")
+                                                             .agreementRef ("urn:as4:agreements:so-that-we-have-a-non-empty-value")
+                                                             .conversationID (MessageHelperMethods.createRandomConversationID ())
+                                                             .fromRole (CAS4.DEFAULT_ROLE)
+                                                             .fromPartyID ("OutboxSender")
+                                                             .toRole (CAS4.DEFAULT_ROLE)
+                                                             .toPartyID ("OutboxReceiver")
+                                                             .payload (AS4OutgoingAttachment.builder ()
+                                                                                            .data ("<Test/>".getBytes (StandardCharsets.UTF_8))
+                                                                                            .mimeTypeXML ())
+                                                             .httpRetrySettings (new HttpRetrySettings ().setMaxRetries (2)
+                                                                                                         .setDurationBeforeRetry (Duration.ofMinutes (1)))
+                                                             .endpointURL (MockJettySetup.getServerAddressFromSettings ())
+                                                             .outbox (aOutbox);
+      for (final Ebms3Property aProp : AS4TestConstants.getEBMSProperties ())
+        aBuilder.addMessageProperty (aProp);
+
+      final ESimpleUserMessageSendResult eResult = aBuilder.sendMessageAndCheckForReceipt ();
+      assertEquals (ESimpleUserMessageSendResult.QUEUED, eResult);
+
+      // The builder provided the handler that recognizes the receipt
+      assertNotNull (aOutbox.getResponseHandler ());
+
+      final long nEnd = System.currentTimeMillis () + 30_000;
+      while (aOutbox.getDeliveredCount () == 0 && aOutbox.getFailedCount () == 0)
+      {
+        assertTrue ("Timeout waiting for the delivery", System.currentTimeMillis () < nEnd);
+        ThreadHelper.sleep (50);
+      }
+
+      // Finished with the synchronous receipt - no retries
+      assertEquals (1, aOutbox.getDeliveredCount ());
+      assertEquals (0, aOutbox.getFailedCount ());
+      assertEquals (1, aOutbox.getAttemptCount ());
+      assertEquals (0, aOutbox.getMessageCount ());
+    }
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.embedded;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collection;
+
+import javax.annotation.Nonnull;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import com.helger.commons.collection.CollectionHelper;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.http.CHttp;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.phase4.AS4TestConstants;
+import com.helger.phase4.attachment.AS4OutgoingAttachment;
+import com.helger.phase4.attachment.WSS4JAttachment;
+import com.helger.phase4.http.HttpMimeMessageEntity;
+import com.helger.phase4.http.HttpXMLEntity;
+import com.helger.phase4.messaging.domain.AS4UserMessage;
+import com.helger.phase4.messaging.mime.AS4MimeMessage;
+import com.helger.phase4.messaging.mime.MimeMessageCreator;
+import com.helger.phase4.server.message.AbstractUserMessageTestSetUp;
+import com.helger.phase4.server.message.MockMessages;
+import com.helger.phase4.soap.ESoapVersion;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Test class for class {@link AS4EmbeddedServer}.
+ *
+ * @author Philip Helger
+ */
+@RunWith (Parameterized.class)
+public final class AS4EmbeddedServerTest extends AbstractUserMessageTestSetUp
+{
+  private static AS4EmbeddedServer s_aServer;
+
+  @Parameters (name = "{index}: {0}")
+  public static Collection <Object []> data ()
+  {
+    return CollectionHelper.newListMapped (ESoapVersion.values (), x -> new Object [] { x });
+  }
+
+  private final ESoapVersion m_eSoapVersion;
+
+  public AS4EmbeddedServerTest (@Nonnull final ESoapVersion eSOAPVersion)
+  {
+    m_eSoapVersion = eSOAPVersion;
+  }
+
+  @BeforeClass
+  public static void startEmbeddedServer () throws Exception
+  {
+    // The global scope is already present - use an arbitrary free port
+    s_aServer = new AS4EmbeddedServer ().setHost ("localhost").setPort (0).setWorkerCount (2).start ();
+  }
+
+  @AfterClass
+  public static void stopEmbeddedServer ()
+  {
+    if (s_aServer != null)
+    {
+      s_aServer.stop ();
+      s_aServer = null;
+    }
+  }
+
+  @Override
+  protected String getServerAddress ()
+  {
+    return "http://localhost:" + s_aServer.getPort () + s_aServer.getContextPath ();
+  }
+
+  @Test
+  public void testSendUnsignedMessageSuccess () throws Exception
+  {
+    final Node aPayload = DOMReader.readXMLDOM (new ClassPathResource (AS4TestConstants.TEST_SOAP_BODY_PAYLOAD_XML));
+    final Document aDoc = MockMessages.createUserMessageNotSigned (m_eSoapVersion, aPayload, null)
+                                      .getAsSoapDocument (aPayload);
+    final String sResponse = sendPlainMessage (new HttpXMLEntity (aDoc, m_eSoapVersion.getMimeType ()), true, null);
+
+    assertTrue (sResponse.contains (AS4TestConstants.RECEIPT_ASSERTCHECK));
+  }
+
+  @Test
+  public void testUserMessageOneAttachmentMimeSuccess () throws Exception
+  {
+    final ICommonsList <WSS4JAttachment> aAttachments = new CommonsArrayList <> ();
+    aAttachments.add (WSS4JAttachment.createOutgoingFileAttachment (AS4OutgoingAttachment.builder ()
+                                                                                            .data (ClassPathResource.getAsFile (AS4TestConstants.TEST_SOAP_BODY_PAYLOAD_XML))
+                                                                                            .mimeTypeXML ()
+                                                                                            .build (),
+                                                                    s_aResMgr));
+
+    final AS4UserMessage aMsg = MockMessages.createUserMessageNotSigned (m_eSoapVersion, null, aAttachments);
+    final AS4MimeMessage aMimeMsg = MimeMessageCreator.generateMimeMessage (m_eSoapVersion,
+                                                                            aMsg.getAsSoapDocument (),
+                                                                            aAttachments);
+
+    final String sResponse = sendMimeMessage (HttpMimeMessageEntity.create (aMimeMsg), true, null);
+
+    assertTrue (sResponse.contains (AS4TestConstants.RECEIPT_ASSERTCHECK));
+  }
+
+  @Test
+  public void testGetIsNotAllowed () throws Exception
+  {
+    final HttpURLConnection aConn = (HttpURLConnection) new URL (getServerAddress ()).openConnection ();
+    try
+    {
+      assertEquals (CHttp.HTTP_METHOD_NOT_ALLOWED, aConn.getResponseCode ());
+    }
+    finally
+    {
+      aConn.disconnect ();
+    }
+  }
+}
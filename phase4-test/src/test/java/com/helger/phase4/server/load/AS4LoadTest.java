@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.server.load;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.system.SystemProperties;
+import com.helger.httpclient.response.ResponseHandlerString;
+import com.helger.phase4.AS4TestConstants;
+import com.helger.phase4.CAS4;
+import com.helger.phase4.attachment.AS4OutgoingAttachment;
+import com.helger.phase4.attachment.WSS4JAttachment;
+import com.helger.phase4.client.AS4ClientUserMessage;
+import com.helger.phase4.crypto.AS4CryptoFactoryProperties;
+import com.helger.phase4.crypto.ECryptoAlgorithmCrypt;
+import com.helger.phase4.crypto.ECryptoAlgorithmSign;
+import com.helger.phase4.crypto.ECryptoAlgorithmSignDigest;
+import com.helger.phase4.crypto.IAS4CryptoFactory;
+import com.helger.phase4.messaging.domain.MessageHelperMethods;
+import com.helger.phase4.mgr.MetaAS4Manager;
+import com.helger.phase4.profile.cef.AS4CEFProfileRegistarSPI;
+import com.helger.phase4.server.AbstractAS4TestSetUp;
+import com.helger.phase4.server.MockJettySetup;
+import com.helger.phase4.soap.ESoapVersion;
+import com.helger.phase4.util.AS4ResourceHelper;
+
+/**
+ * End-to-end load test against the local mock AP. By default only a small
+ * smoke run is performed. Bigger runs can be configured with the following
+ * system properties:
+ * <ul>
+ * <li><code>phase4.loadtest.senders</code> - the number of concurrent
+ * senders</li>
+ * <li><code>phase4.loadtest.messages</code> - the number of messages per
+ * sender</li>
+ * <li><code>phase4.loadtest.warmup</code> - the number of warm up messages per
+ * sender</li>
+ * <li><code>phase4.loadtest.encrypt</code> - <code>true</code> to sign and
+ * encrypt (default), <code>false</code> to sign only</li>
+ * </ul>
+ * Example: <code>mvn test -Dtest=AS4LoadTest -Dphase4.loadtest.senders=16
+ * -Dphase4.loadtest.messages=500</code>
+ *
+ * @author Philip Helger
+ */
+public final class AS4LoadTest extends AbstractAS4TestSetUp
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4LoadTest.class);
+  private static final String SERVER_URL = MockJettySetup.getServerAddressFromSettings ();
+
+  @BeforeClass
+  public static void beforeClass () throws Exception
+  {
+    MockJettySetup.startServer ();
+    MetaAS4Manager.getProfileMgr ().setDefaultProfileID (AS4CEFProfileRegistarSPI.AS4_PROFILE_ID_FOUR_CORNER);
+  }
+
+  @AfterClass
+  public static void afterClass () throws Exception
+  {
+    MockJettySetup.shutDownServer ();
+  }
+
+  private static int _getIntProperty (final String sName, final int nDefault)
+  {
+    final String sValue = SystemProperties.getPropertyValueOrNull (sName);
+    return sValue == null ? nDefault : Integer.parseInt (sValue.trim ());
+  }
+
+  private static boolean _sendMessage (final IAS4CryptoFactory aCryptoFactory,
+                                       final boolean bEncrypt,
+                                       final byte [] aPayload) throws Exception
+  {
+    try (final AS4ResourceHelper aResHelper = new AS4ResourceHelper ())
+    {
+      final AS4ClientUserMessage aClient = new AS4ClientUserMessage (aResHelper);
+      aClient.setSoapVersion (ESoapVersion.SOAP_12);
+      aClient.setAS4CryptoFactory (aCryptoFactory);
+      aClient.setAction ("AnAction");
+      aClient.setServiceType ("MyServiceType");
+      aClient.setServiceValue ("OrderPaper");
+      aClient.setConversationID (MessageHelperMethods.createRandomConversationID ());
+      aClient.setAgreementRefValue ("urn:as4:agreements:so-that-we-have-a-non-empty-value");
+      aClient.setFromRole (CAS4.DEFAULT_ROLE);
+      aClient.setFromPartyID ("LoadTestSender");
+      aClient.setToRole (CAS4.DEFAULT_ROLE);
+      aClient.setToPartyID ("LoadTestReceiver");
+      aClient.ebms3Properties ().setAll (AS4TestConstants.getEBMSProperties ());
+      aClient.addAttachment (WSS4JAttachment.createOutgoingFileAttachment (AS4OutgoingAttachment.builder ()
+                                                                                                .data (aPayload)
+                                                                                                .mimeTypeXML ()
+                                                                                                .compressionGZIP ()
+                                                                                                .build (),
+                                                                           aResHelper));
+
+      aClient.signingParams ()
+             .setAlgorithmSign (ECryptoAlgorithmSign.RSA_SHA_256)
+             .setAlgorithmSignDigest (ECryptoAlgorithmSignDigest.DIGEST_SHA_256);
+      if (bEncrypt)
+        aClient.cryptParams ().setAlgorithmCrypt (ECryptoAlgorithmCrypt.AES_128_GCM).setAlias ("ph-as4");
+
+      final String sResponse = aClient.sendMessageWithRetries (SERVER_URL, new ResponseHandlerString (), null, null, null)
+                                      .getResponse ();
+      return sResponse != null && sResponse.contains (AS4TestConstants.RECEIPT_ASSERTCHECK);
+    }
+  }
+
+  @Test
+  public void testLoad ()
+  {
+    final int nSenders = _getIntProperty ("phase4.loadtest.senders", 2);
+    final int nMessages = _getIntProperty ("phase4.loadtest.messages", 5);
+    final int nWarmup = _getIntProperty ("phase4.loadtest.warmup", 1);
+    final boolean bEncrypt = !"false".equals (SystemProperties.getPropertyValueOrNull ("phase4.loadtest.encrypt"));
+    final IAS4CryptoFactory aCryptoFactory = AS4CryptoFactoryProperties.getDefaultInstance ();
+
+    // Roughly the distribution of business documents: mostly small invoices,
+    // some bigger ones with embedded attachments
+    final AS4LoadTestResult aResult = new AS4LoadTestRunner ().setSenderCount (nSenders)
+                                                              .setMessagesPerSender (nMessages)
+                                                              .setWarmupMessagesPerSender (nWarmup)
+                                                              .addPayloadSize (10 * 1024, 70)
+                                                              .addPayloadSize (100 * 1024, 25)
+                                                              .addPayloadSize (1024 * 1024, 5)
+                                                              .run (aPayload -> _sendMessage (aCryptoFactory,
+                                                                                              bEncrypt,
+                                                                                              aPayload));
+    LOGGER.info ("Load test result (" + (bEncrypt ? "sign+encrypt" : "sign") + "): " + aResult.getAsSummaryString ());
+
+    assertEquals (0, aResult.getErrorCount ());
+    assertEquals (nSenders * nMessages, aResult.getSuccessCount ());
+    assertTrue (aResult.getMessagesPerSecond () > 0);
+    assertTrue (aResult.getLatencyPercentileMillis (50) <= aResult.getLatencyPercentileMillis (99.9));
+  }
+}
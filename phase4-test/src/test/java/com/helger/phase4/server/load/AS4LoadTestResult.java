@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.server.load;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * The result of a single {@link AS4LoadTestRunner} run.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class AS4LoadTestResult
+{
+  private final int m_nSenderCount;
+  private final int m_nSuccessCount;
+  private final int m_nErrorCount;
+  private final long m_nDurationNanos;
+  private final long m_nTotalBytes;
+  // Sorted ascending
+  private final long [] m_aLatenciesNanos;
+  private final long m_nGCCount;
+  private final long m_nGCMillis;
+  private final long m_nHeapPeakBytes;
+
+  AS4LoadTestResult (@Nonnegative final int nSenderCount,
+                     @Nonnegative final int nSuccessCount,
+                     @Nonnegative final int nErrorCount,
+                     @Nonnegative final long nDurationNanos,
+                     @Nonnegative final long nTotalBytes,
+                     @Nonnull final long [] aLatenciesNanos,
+                     @Nonnegative final long nGCCount,
+                     @Nonnegative final long nGCMillis,
+                     @Nonnegative final long nHeapPeakBytes)
+  {
+    ValueEnforcer.notNull (aLatenciesNanos, "LatenciesNanos");
+    m_nSenderCount = nSenderCount;
+    m_nSuccessCount = nSuccessCount;
+    m_nErrorCount = nErrorCount;
+    m_nDurationNanos = nDurationNanos;
+    m_nTotalBytes = nTotalBytes;
+    m_aLatenciesNanos = aLatenciesNanos.clone ();
+    Arrays.sort (m_aLatenciesNanos);
+    m_nGCCount = nGCCount;
+    m_nGCMillis = nGCMillis;
+    m_nHeapPeakBytes = nHeapPeakBytes;
+  }
+
+  @Nonnegative
+  public int getSenderCount ()
+  {
+    return m_nSenderCount;
+  }
+
+  /**
+   * @return The number of messages that were sent and answered with a receipt.
+   */
+  @Nonnegative
+  public int getSuccessCount ()
+  {
+    return m_nSuccessCount;
+  }
+
+  /**
+   * @return The number of messages that failed to send or that were not
+   *         answered with a receipt.
+   */
+  @Nonnegative
+  public int getErrorCount ()
+  {
+    return m_nErrorCount;
+  }
+
+  @Nonnegative
+  public long getDurationMillis ()
+  {
+    return m_nDurationNanos / 1_000_000L;
+  }
+
+  /**
+   * @return The total number of payload bytes of all successfully sent
+   *         messages.
+   */
+  @Nonnegative
+  public long getTotalPayloadBytes ()
+  {
+    return m_nTotalBytes;
+  }
+
+  /**
+   * @return The number of successfully sent messages per second.
+   */
+  public double getMessagesPerSecond ()
+  {
+    if (m_nDurationNanos == 0)
+      return 0;
+    return m_nSuccessCount * 1_000_000_000d / m_nDurationNanos;
+  }
+
+  /**
+   * Get the latency for the provided percentile, using the nearest rank
+   * method.
+   *
+   * @param dPercentile
+   *        The percentile to use. Must be &gt; 0 and &le; 100.
+   * @return The latency in milliseconds or 0 if no message was sent.
+   */
+  public double getLatencyPercentileMillis (final double dPercentile)
+  {
+    ValueEnforcer.isTrue (dPercentile > 0 && dPercentile <= 100, "Percentile must be in the range (0, 100]");
+    if (m_aLatenciesNanos.length == 0)
+      return 0;
+    final int nIndex = (int) Math.ceil (dPercentile / 100d * m_aLatenciesNanos.length) - 1;
+    return m_aLatenciesNanos[Math.max (nIndex, 0)] / 1_000_000d;
+  }
+
+  /**
+   * @return The number of garbage collections that happened during the run.
+   */
+  @Nonnegative
+  public long getGCCount ()
+  {
+    return m_nGCCount;
+  }
+
+  /**
+   * @return The accumulated garbage collection time in milliseconds during
+   *         the run.
+   */
+  @Nonnegative
+  public long getGCMillis ()
+  {
+    return m_nGCMillis;
+  }
+
+  /**
+   * @return The sum of the peak usages of all heap memory pools during the
+   *         run. This is an upper bound of the heap high-water mark.
+   */
+  @Nonnegative
+  public long getHeapPeakBytes ()
+  {
+    return m_nHeapPeakBytes;
+  }
+
+  /**
+   * @return A single line summary, suitable for logging and for comparing
+   *         different runs.
+   */
+  @Nonnull
+  public String getAsSummaryString ()
+  {
+    return String.format ("senders=%d; ok=%d; errors=%d; duration=%d ms; %.1f msgs/s; p50=%.1f ms; p99=%.1f ms; p999=%.1f ms; gc=%d (%d ms); heap-peak=%d MB",
+                          Integer.valueOf (m_nSenderCount),
+                          Integer.valueOf (m_nSuccessCount),
+                          Integer.valueOf (m_nErrorCount),
+                          Long.valueOf (getDurationMillis ()),
+                          Double.valueOf (getMessagesPerSecond ()),
+                          Double.valueOf (getLatencyPercentileMillis (50)),
+                          Double.valueOf (getLatencyPercentileMillis (99)),
+                          Double.valueOf (getLatencyPercentileMillis (99.9)),
+                          Long.valueOf (m_nGCCount),
+                          Long.valueOf (m_nGCMillis),
+                          Long.valueOf (m_nHeapPeakBytes / (1024 * 1024)));
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (null).append ("SenderCount", m_nSenderCount)
+                                       .append ("SuccessCount", m_nSuccessCount)
+                                       .append ("ErrorCount", m_nErrorCount)
+                                       .append ("DurationNanos", m_nDurationNanos)
+                                       .append ("TotalBytes", m_nTotalBytes)
+                                       .append ("GCCount", m_nGCCount)
+                                       .append ("GCMillis", m_nGCMillis)
+                                       .append ("HeapPeakBytes", m_nHeapPeakBytes)
+                                       .getToString ();
+  }
+}
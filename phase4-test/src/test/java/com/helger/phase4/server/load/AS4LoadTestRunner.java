@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.server.load;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+
+/**
+ * A simple load test driver: N concurrent senders send a fixed number of
+ * messages each, with payload sizes taken from a weighted distribution. The
+ * latency of every message is measured together with the garbage collection
+ * activity and the heap high-water mark of the whole run.
+ *
+ * @author Philip Helger
+ */
+public final class AS4LoadTestRunner
+{
+  /**
+   * Callback to send a single message.
+   */
+  @FunctionalInterface
+  public interface ISender
+  {
+    /**
+     * Send a single message synchronously.
+     *
+     * @param aPayload
+     *        The payload to send. Never <code>null</code>.
+     * @return <code>true</code> if the message was sent and a positive
+     *         response was received, <code>false</code> otherwise.
+     * @throws Exception
+     *         In case of error
+     */
+    boolean sendMessage (@Nonnull byte [] aPayload) throws Exception;
+  }
+
+  private static final class PayloadSize
+  {
+    private final int m_nWeight;
+    private final byte [] m_aPayload;
+
+    PayloadSize (@Nonnegative final int nBytes, @Nonnegative final int nWeight)
+    {
+      m_nWeight = nWeight;
+      m_aPayload = createPayload (nBytes);
+    }
+  }
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4LoadTestRunner.class);
+
+  private int m_nSenderCount = 4;
+  private int m_nMessagesPerSender = 10;
+  private int m_nWarmupMessagesPerSender = 2;
+  private final ICommonsList <PayloadSize> m_aPayloadSizes = new CommonsArrayList <> ();
+  private int m_nTotalWeight = 0;
+
+  public AS4LoadTestRunner ()
+  {}
+
+  @Nonnull
+  public AS4LoadTestRunner setSenderCount (@Nonnegative final int nSenderCount)
+  {
+    ValueEnforcer.isGT0 (nSenderCount, "SenderCount");
+    m_nSenderCount = nSenderCount;
+    return this;
+  }
+
+  @Nonnull
+  public AS4LoadTestRunner setMessagesPerSender (@Nonnegative final int nMessagesPerSender)
+  {
+    ValueEnforcer.isGT0 (nMessagesPerSender, "MessagesPerSender");
+    m_nMessagesPerSender = nMessagesPerSender;
+    return this;
+  }
+
+  @Nonnull
+  public AS4LoadTestRunner setWarmupMessagesPerSender (@Nonnegative final int nWarmupMessagesPerSender)
+  {
+    ValueEnforcer.isGE0 (nWarmupMessagesPerSender, "WarmupMessagesPerSender");
+    m_nWarmupMessagesPerSender = nWarmupMessagesPerSender;
+    return this;
+  }
+
+  /**
+   * Add a payload size to the distribution.
+   *
+   * @param nBytes
+   *        The approximate payload size in bytes. Must be &gt; 0.
+   * @param nWeight
+   *        The relative weight of this payload size. Must be &gt; 0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public AS4LoadTestRunner addPayloadSize (@Nonnegative final int nBytes, @Nonnegative final int nWeight)
+  {
+    ValueEnforcer.isGT0 (nBytes, "Bytes");
+    ValueEnforcer.isGT0 (nWeight, "Weight");
+    m_aPayloadSizes.add (new PayloadSize (nBytes, nWeight));
+    m_nTotalWeight += nWeight;
+    return this;
+  }
+
+  /**
+   * Create an XML payload of approximately the provided size, made of
+   * repeated, slightly varying lines like a real business document.
+   *
+   * @param nBytes
+   *        The approximate payload size in bytes.
+   * @return The UTF-8 encoded XML payload. Never <code>null</code>.
+   */
+  @Nonnull
+  public static byte [] createPayload (@Nonnegative final int nBytes)
+  {
+    final StringBuilder aSB = new StringBuilder (nBytes + 128);
+    aSB.append ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Invoice xmlns=\"urn:com:helger:phase4:loadtest\">");
+    int nLine = 0;
+    while (aSB.length () < nBytes)
+    {
+      aSB.append ("<InvoiceLine><ID>")
+         .append (nLine)
+         .append ("</ID><Note>Load test line ")
+         .append (nLine)
+         .append ("</Note><Amount currencyID=\"EUR\">")
+         .append (nLine * 17 % 1000)
+         .append (".00</Amount></InvoiceLine>");
+      nLine++;
+    }
+    aSB.append ("</Invoice>");
+    return aSB.toString ().getBytes (StandardCharsets.UTF_8);
+  }
+
+  @Nonnull
+  private byte [] _getRandomPayload ()
+  {
+    int nRandom = ThreadLocalRandom.current ().nextInt (m_nTotalWeight);
+    for (final PayloadSize aPS : m_aPayloadSizes)
+    {
+      nRandom -= aPS.m_nWeight;
+      if (nRandom < 0)
+        return aPS.m_aPayload;
+    }
+    throw new IllegalStateException ("Weights are inconsistent");
+  }
+
+  private static long _getGCCount ()
+  {
+    long ret = 0;
+    for (final GarbageCollectorMXBean aGC : ManagementFactory.getGarbageCollectorMXBeans ())
+      ret += Math.max (aGC.getCollectionCount (), 0);
+    return ret;
+  }
+
+  private static long _getGCMillis ()
+  {
+    long ret = 0;
+    for (final GarbageCollectorMXBean aGC : ManagementFactory.getGarbageCollectorMXBeans ())
+      ret += Math.max (aGC.getCollectionTime (), 0);
+    return ret;
+  }
+
+  private static void _resetHeapPeak ()
+  {
+    for (final MemoryPoolMXBean aPool : ManagementFactory.getMemoryPoolMXBeans ())
+      if (aPool.getType () == MemoryType.HEAP)
+        aPool.resetPeakUsage ();
+  }
+
+  private static long _getHeapPeak ()
+  {
+    long ret = 0;
+    for (final MemoryPoolMXBean aPool : ManagementFactory.getMemoryPoolMXBeans ())
+      if (aPool.getType () == MemoryType.HEAP)
+      {
+        final MemoryUsage aUsage = aPool.getPeakUsage ();
+        if (aUsage != null)
+          ret += aUsage.getUsed ();
+      }
+    return ret;
+  }
+
+  private void _runPhase (@Nonnull final ISender aSender,
+                          @Nonnegative final int nMessagesPerSender,
+                          @Nonnull final long [] aLatencies,
+                          @Nonnull final AtomicInteger aSuccessCount,
+                          @Nonnull final AtomicInteger aErrorCount,
+                          @Nonnull final AtomicLong aTotalBytes)
+  {
+    final ExecutorService aES = Executors.newFixedThreadPool (m_nSenderCount,
+                                                              new BasicThreadFactory.Builder ().namingPattern ("phase4-loadtest-%d")
+                                                                                               .daemon (true)
+                                                                                               .build ());
+    final AtomicInteger aIndex = new AtomicInteger (0);
+    for (int nSender = 0; nSender < m_nSenderCount; ++nSender)
+      aES.submit ( () -> {
+        for (int i = 0; i < nMessagesPerSender; ++i)
+        {
+          final byte [] aPayload = _getRandomPayload ();
+          final long nStart = System.nanoTime ();
+          boolean bSuccess;
+          try
+          {
+            bSuccess = aSender.sendMessage (aPayload);
+          }
+          catch (final Exception ex)
+          {
+            if (aErrorCount.get () == 0)
+              LOGGER.warn ("Failed to send load test message", ex);
+            bSuccess = false;
+          }
+          final long nDuration = System.nanoTime () - nStart;
+          if (bSuccess)
+          {
+            aLatencies[aIndex.getAndIncrement ()] = nDuration;
+            aSuccessCount.incrementAndGet ();
+            aTotalBytes.addAndGet (aPayload.length);
+          }
+          else
+            aErrorCount.incrementAndGet ();
+        }
+      });
+    ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (aES, 1, TimeUnit.HOURS);
+  }
+
+  /**
+   * Run the load test. First the warm up messages are sent, after that all
+   * measured messages.
+   *
+   * @param aSender
+   *        The sender to use. Must be usable from multiple threads
+   *        concurrently. May not be <code>null</code>.
+   * @return The result of the measured phase. Never <code>null</code>.
+   */
+  @Nonnull
+  public AS4LoadTestResult run (@Nonnull final ISender aSender)
+  {
+    ValueEnforcer.notNull (aSender, "Sender");
+    if (m_aPayloadSizes.isEmpty ())
+      throw new IllegalStateException ("No payload size was added");
+
+    if (m_nWarmupMessagesPerSender > 0)
+    {
+      LOGGER.info ("Warming up with " + m_nSenderCount + " x " + m_nWarmupMessagesPerSender + " messages");
+      _runPhase (aSender,
+                 m_nWarmupMessagesPerSender,
+                 new long [m_nSenderCount * m_nWarmupMessagesPerSender],
+                 new AtomicInteger (),
+                 new AtomicInteger (),
+                 new AtomicLong ());
+    }
+
+    LOGGER.info ("Starting load test with " + m_nSenderCount + " x " + m_nMessagesPerSender + " messages");
+    final long [] aLatencies = new long [m_nSenderCount * m_nMessagesPerSender];
+    final AtomicInteger aSuccessCount = new AtomicInteger ();
+    final AtomicInteger aErrorCount = new AtomicInteger ();
+    final AtomicLong aTotalBytes = new AtomicLong ();
+
+    _resetHeapPeak ();
+    final long nGCCountBefore = _getGCCount ();
+    final long nGCMillisBefore = _getGCMillis ();
+    final long nStart = System.nanoTime ();
+    _runPhase (aSender, m_nMessagesPerSender, aLatencies, aSuccessCount, aErrorCount, aTotalBytes);
+    final long nDuration = System.nanoTime () - nStart;
+
+    final int nSuccessCount = aSuccessCount.get ();
+    final long [] aSuccessLatencies = new long [nSuccessCount];
+    System.arraycopy (aLatencies, 0, aSuccessLatencies, 0, nSuccessCount);
+    return new AS4LoadTestResult (m_nSenderCount,
+                                  nSuccessCount,
+                                  aErrorCount.get (),
+                                  nDuration,
+                                  aTotalBytes.get (),
+                                  aSuccessLatencies,
+                                  _getGCCount () - nGCCountBefore,
+                                  _getGCMillis () - nGCMillisBefore,
+                                  _getHeapPeak ());
+  }
+}
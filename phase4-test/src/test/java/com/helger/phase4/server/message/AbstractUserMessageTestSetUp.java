@@ -38,6 +38,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.OverrideOnDemand;
 import com.helger.commons.collection.ArrayHelper;
 import com.helger.commons.concurrent.ThreadHelper;
 import com.helger.commons.http.CHttp;
@@ -104,10 +105,21 @@ public abstract class AbstractUserMessageTestSetUp extends AbstractAS4TestSetUp
     MockJettySetup.shutDownServer ();
   }
 
+  /**
+   * @return The URL of the AS4 server to send the messages to. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  @OverrideOnDemand
+  protected String getServerAddress ()
+  {
+    return MockJettySetup.getServerAddressFromSettings ();
+  }
+
   @Nonnull
   private HttpPost _createPost ()
   {
-    final String sURL = MockJettySetup.getServerAddressFromSettings ();
+    final String sURL = getServerAddress ();
 
     LOGGER.info ("The following test case will only work if there is a local AS4 server running @ " + sURL);
     return new HttpPost (sURL);
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.server.message;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.OutputStream;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.collection.attr.StringMap;
+import com.helger.commons.collection.impl.CommonsEnumMap;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.io.stream.NullOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.wrapper.Wrapper;
+import com.helger.httpclient.response.ResponseHandlerString;
+import com.helger.phase4.AS4TestConstants;
+import com.helger.phase4.CAS4;
+import com.helger.phase4.ScopedConfig;
+import com.helger.phase4.attachment.AS4OutgoingAttachment;
+import com.helger.phase4.attachment.WSS4JAttachment;
+import com.helger.phase4.client.AS4ClientUserMessage;
+import com.helger.phase4.config.AS4Configuration;
+import com.helger.phase4.crypto.ECryptoAlgorithmCrypt;
+import com.helger.phase4.crypto.ECryptoAlgorithmSign;
+import com.helger.phase4.crypto.ECryptoAlgorithmSignDigest;
+import com.helger.phase4.dump.AS4DumpManager;
+import com.helger.phase4.dump.IAS4IncomingDumper;
+import com.helger.phase4.messaging.IAS4IncomingMessageMetadata;
+import com.helger.phase4.messaging.domain.MessageHelperMethods;
+import com.helger.phase4.metrics.AS4AllocationTracker;
+import com.helger.phase4.metrics.AS4StageTimings;
+import com.helger.phase4.metrics.EAS4MetricsStage;
+import com.helger.phase4.soap.ESoapVersion;
+import com.helger.phase4.util.AS4ResourceHelper;
+
+/**
+ * Checks the bytes allocated per processing stage for a signed, encrypted and
+ * compressed round trip of a reference 10 KB Peppol invoice against fixed
+ * budgets, to detect allocation regressions. The budgets contain generous
+ * head room, so that they are stable across JVMs and GC configurations.
+ *
+ * @author Philip Helger
+ */
+public final class UserMessageAllocationBudgetTest extends AbstractUserMessageTestSetUp
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (UserMessageAllocationBudgetTest.class);
+
+  private static final long KB = 1024;
+  private static final long MB = 1024 * KB;
+
+  // Budget per stage in bytes - roughly three times the measured values
+  private static final ICommonsMap <EAS4MetricsStage, Long> BUDGETS = new CommonsEnumMap <> (EAS4MetricsStage.class);
+  static
+  {
+    BUDGETS.put (EAS4MetricsStage.OUTGOING_BUILD, Long.valueOf (2 * MB));
+    BUDGETS.put (EAS4MetricsStage.OUTGOING_SIGN, Long.valueOf (768 * KB));
+    BUDGETS.put (EAS4MetricsStage.OUTGOING_ENCRYPT, Long.valueOf (1 * MB));
+    BUDGETS.put (EAS4MetricsStage.OUTGOING_HTTP, Long.valueOf (1 * MB));
+    BUDGETS.put (EAS4MetricsStage.INCOMING_MIME_PARSE, Long.valueOf (1 * MB));
+    BUDGETS.put (EAS4MetricsStage.INCOMING_SECURITY, Long.valueOf (1536 * KB));
+    BUDGETS.put (EAS4MetricsStage.INCOMING_PMODE_RESOLUTION, Long.valueOf (64 * KB));
+    BUDGETS.put (EAS4MetricsStage.INCOMING_DUPLICATE_CHECK, Long.valueOf (64 * KB));
+    BUDGETS.put (EAS4MetricsStage.INCOMING_SPI_PROCESSING, Long.valueOf (512 * KB));
+    BUDGETS.put (EAS4MetricsStage.INCOMING_RESPONSE_SIGNING, Long.valueOf (1536 * KB));
+  }
+
+  @Nonnull
+  private AS4StageTimings _sendInvoice (@Nonnull final byte [] aInvoice) throws Exception
+  {
+    try (final AS4ResourceHelper aResHelper = new AS4ResourceHelper ())
+    {
+      final AS4ClientUserMessage aClient = new AS4ClientUserMessage (aResHelper);
+      aClient.setSoapVersion (ESoapVersion.SOAP_12);
+      aClient.setAS4CryptoFactory (m_aCryptoFactory);
+      aClient.setAction ("AnAction");
+      aClient.setServiceType ("MyServiceType");
+      aClient.setServiceValue ("OrderPaper");
+      aClient.setConversationID (MessageHelperMethods.createRandomConversationID ());
+      aClient.setAgreementRefValue ("urn:as4:agreements:so-that-we-have-a-non-empty-value");
+      aClient.setFromRole (CAS4.DEFAULT_ROLE);
+      aClient.setFromPartyID (DEFAULT_PARTY_ID);
+      aClient.setToRole (CAS4.DEFAULT_ROLE);
+      aClient.setToPartyID (DEFAULT_PARTY_ID);
+      aClient.ebms3Properties ().setAll (AS4TestConstants.getEBMSProperties ());
+      aClient.addAttachment (WSS4JAttachment.createOutgoingFileAttachment (AS4OutgoingAttachment.builder ()
+                                                                                                .data (aInvoice)
+                                                                                                .mimeTypeXML ()
+                                                                                                .compressionGZIP ()
+                                                                                                .build (),
+                                                                           aResHelper));
+      aClient.signingParams ()
+             .setAlgorithmSign (ECryptoAlgorithmSign.RSA_SHA_256)
+             .setAlgorithmSignDigest (ECryptoAlgorithmSignDigest.DIGEST_SHA_256);
+      aClient.cryptParams ().setAlgorithmCrypt (ECryptoAlgorithmCrypt.AES_128_GCM).setAlias ("ph-as4");
+
+      final AS4StageTimings aTimings = new AS4StageTimings (true);
+      aClient.setStageTimings (aTimings);
+      final String sResponse = aClient.sendMessageWithRetries (getServerAddress (),
+                                                               new ResponseHandlerString (),
+                                                               null,
+                                                               null,
+                                                               null)
+                                      .getResponse ();
+      assertTrue (sResponse, sResponse.contains (AS4TestConstants.RECEIPT_ASSERTCHECK));
+      return aTimings;
+    }
+  }
+
+  private static void _checkBudgets (@Nonnull final AS4StageTimings aTimings, final boolean bIncoming)
+  {
+    for (final Map.Entry <EAS4MetricsStage, Long> aEntry : BUDGETS.entrySet ())
+    {
+      final EAS4MetricsStage eStage = aEntry.getKey ();
+      if (eStage.isIncoming () == bIncoming)
+      {
+        final long nAllocated = aTimings.getStageAllocatedBytes (eStage);
+        assertTrue ("Stage " + eStage.getID () + " was not recorded: " + aTimings.getAsString (), nAllocated >= 0);
+        assertTrue ("Stage " +
+                    eStage.getID () +
+                    " allocated " +
+                    nAllocated +
+                    " bytes, but the budget is " +
+                    aEntry.getValue () +
+                    " bytes",
+                    nAllocated <= aEntry.getValue ().longValue ());
+      }
+    }
+  }
+
+  @Test
+  public void testAllocationBudgets () throws Exception
+  {
+    Assume.assumeTrue (AS4AllocationTracker.isSupported ());
+
+    final byte [] aInvoice = StreamHelper.getAllBytes (new ClassPathResource (AS4TestConstants.ATTACHMENT_PEPPOL_INVOICE_XML));
+    assertNotNull (aInvoice);
+
+    final Wrapper <AS4StageTimings> aIncomingTimingsKeeper = new Wrapper <> ();
+    AS4DumpManager.setIncomingDumper (new IAS4IncomingDumper ()
+    {
+      public OutputStream onNewRequest (final IAS4IncomingMessageMetadata aMessageMetadata,
+                                        final HttpHeaderMap aHttpHeaderMap)
+      {
+        return new NullOutputStream ();
+      }
+
+      @Override
+      public void onEndRequest (final IAS4IncomingMessageMetadata aMessageMetadata)
+      {
+        aIncomingTimingsKeeper.set (aMessageMetadata.getStageTimings ());
+      }
+    });
+    // Track the allocations of every incoming message
+    try (final ScopedConfig aSC = ScopedConfig.createTestConfig (new StringMap (AS4Configuration.PROPERTY_PHASE4_DIAGNOSTICS_ALLOCATION_SAMPLERATE,
+                                                                                "1")))
+    {
+      // Warm up, so that one-time initializations are not counted
+      for (int i = 0; i < 3; ++i)
+        _sendInvoice (aInvoice);
+
+      final AS4StageTimings aOutgoingTimings = _sendInvoice (aInvoice);
+      final AS4StageTimings aIncomingTimings = aIncomingTimingsKeeper.get ();
+      assertNotNull (aIncomingTimings);
+      assertTrue (aIncomingTimings.isTrackAllocations ());
+
+      LOGGER.info ("Outgoing allocations: " + aOutgoingTimings.getAsString ());
+      LOGGER.info ("Incoming allocations: " + aIncomingTimings.getAsString ());
+
+      _checkBudgets (aOutgoingTimings, false);
+      _checkBudgets (aIncomingTimings, true);
+    }
+    finally
+    {
+      AS4DumpManager.setIncomingDumper (null);
+    }
+  }
+}
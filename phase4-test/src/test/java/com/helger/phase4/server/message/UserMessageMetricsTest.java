@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.server.message;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.OutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsHashSet;
+import com.helger.commons.collection.impl.ICommonsSet;
+import com.helger.commons.http.HttpHeaderMap;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.io.stream.NullOutputStream;
+import com.helger.commons.wrapper.Wrapper;
+import com.helger.phase4.AS4TestConstants;
+import com.helger.phase4.dump.AS4DumpManager;
+import com.helger.phase4.dump.IAS4IncomingDumper;
+import com.helger.phase4.http.HttpXMLEntity;
+import com.helger.phase4.messaging.IAS4IncomingMessageMetadata;
+import com.helger.phase4.metrics.AS4MetricsManager;
+import com.helger.phase4.metrics.AS4MetricsTags;
+import com.helger.phase4.metrics.AS4StageTimings;
+import com.helger.phase4.metrics.EAS4MetricsCounter;
+import com.helger.phase4.metrics.EAS4MetricsStage;
+import com.helger.phase4.metrics.IAS4MetricsRecorder;
+import com.helger.phase4.soap.ESoapVersion;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Test that the incoming processing pipeline reports the metrics and the stage
+ * timings of all stages.
+ *
+ * @author Philip Helger
+ */
+public final class UserMessageMetricsTest extends AbstractUserMessageTestSetUp
+{
+  private final ICommonsSet <EAS4MetricsStage> m_aSuccessStages = new CommonsHashSet <> ();
+  private final ICommonsSet <String> m_aPModeIDs = new CommonsHashSet <> ();
+
+  @Before
+  public void before ()
+  {
+    AS4MetricsManager.setRecorder (new IAS4MetricsRecorder ()
+    {
+      public void recordStage (final EAS4MetricsStage eStage,
+                               final AS4MetricsTags aTags,
+                               final boolean bSuccess,
+                               final long nDurationNanos)
+      {
+        synchronized (m_aSuccessStages)
+        {
+          if (bSuccess)
+            m_aSuccessStages.add (eStage);
+          if (aTags.hasPModeID ())
+            m_aPModeIDs.add (aTags.getPModeID ());
+        }
+      }
+
+      public void incrementCounter (final EAS4MetricsCounter eCounter, final AS4MetricsTags aTags)
+      {}
+    });
+  }
+
+  @After
+  public void after ()
+  {
+    AS4MetricsManager.setRecorder (null);
+  }
+
+  @Test
+  public void testSignedUserMessage () throws Exception
+  {
+    final ESoapVersion eSoapVersion = ESoapVersion.SOAP_12;
+    final Node aPayload = DOMReader.readXMLDOM (new ClassPathResource (AS4TestConstants.TEST_SOAP_BODY_PAYLOAD_XML));
+    final Document aDoc = MockMessages.createUserMessageSigned (eSoapVersion,
+                                                                aPayload,
+                                                                new CommonsArrayList <> (),
+                                                                s_aResMgr);
+    final String sResponse = sendPlainMessage (new HttpXMLEntity (aDoc, eSoapVersion.getMimeType ()), true, null);
+    assertTrue (sResponse.contains (AS4TestConstants.RECEIPT_ASSERTCHECK));
+
+    synchronized (m_aSuccessStages)
+    {
+      for (final EAS4MetricsStage eStage : new EAS4MetricsStage [] { EAS4MetricsStage.INCOMING_MIME_PARSE,
+                                                                     EAS4MetricsStage.INCOMING_SECURITY,
+                                                                     EAS4MetricsStage.INCOMING_PMODE_RESOLUTION,
+                                                                     EAS4MetricsStage.INCOMING_DUPLICATE_CHECK,
+                                                                     EAS4MetricsStage.INCOMING_SPI_PROCESSING,
+                                                                     EAS4MetricsStage.INCOMING_RESPONSE_SIGNING })
+        assertTrue (eStage + " not in " + m_aSuccessStages, m_aSuccessStages.contains (eStage));
+      assertTrue (m_aPModeIDs.isNotEmpty ());
+    }
+  }
+
+  @Test
+  public void testStageTimingsAvailableToDumper () throws Exception
+  {
+    final Wrapper <AS4StageTimings> aTimingsKeeper = new Wrapper <> ();
+    AS4DumpManager.setIncomingDumper (new IAS4IncomingDumper ()
+    {
+      public OutputStream onNewRequest (final IAS4IncomingMessageMetadata aMessageMetadata,
+                                        final HttpHeaderMap aHttpHeaderMap)
+      {
+        return new NullOutputStream ();
+      }
+
+      @Override
+      public void onEndRequest (final IAS4IncomingMessageMetadata aMessageMetadata)
+      {
+        aTimingsKeeper.set (aMessageMetadata.getStageTimings ());
+      }
+    });
+    try
+    {
+      final ESoapVersion eSoapVersion = ESoapVersion.SOAP_12;
+      final Node aPayload = DOMReader.readXMLDOM (new ClassPathResource (AS4TestConstants.TEST_SOAP_BODY_PAYLOAD_XML));
+      final Document aDoc = MockMessages.createUserMessageSigned (eSoapVersion,
+                                                                  aPayload,
+                                                                  new CommonsArrayList <> (),
+                                                                  s_aResMgr);
+      final String sResponse = sendPlainMessage (new HttpXMLEntity (aDoc, eSoapVersion.getMimeType ()), true, null);
+      assertTrue (sResponse.contains (AS4TestConstants.RECEIPT_ASSERTCHECK));
+    }
+    finally
+    {
+      AS4DumpManager.setIncomingDumper (null);
+    }
+
+    final AS4StageTimings aTimings = aTimingsKeeper.get ();
+    assertNotNull (aTimings);
+    assertTrue (aTimings.getAsString (), aTimings.hasStage (EAS4MetricsStage.INCOMING_MIME_PARSE));
+    assertTrue (aTimings.getAsString (), aTimings.hasStage (EAS4MetricsStage.INCOMING_SECURITY));
+    assertTrue (aTimings.getAsString (), aTimings.hasStage (EAS4MetricsStage.INCOMING_SPI_PROCESSING));
+    assertFalse (aTimings.hasStage (EAS4MetricsStage.OUTGOING_HTTP));
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015-2023 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.phase4.server.message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.concurrent.ThreadHelper;
+import com.helger.commons.io.file.FileOperations;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.phase4.AS4TestConstants;
+import com.helger.phase4.client.AS4ClientBuiltMessage;
+import com.helger.phase4.http.HttpRetrySettings;
+import com.helger.phase4.http.HttpXMLEntity;
+import com.helger.phase4.messaging.domain.MessageHelperMethods;
+import com.helger.phase4.sender.outbox.AS4Outbox;
+import com.helger.phase4.soap.ESoapVersion;
+import com.helger.phase4.tracing.AS4TracingManager;
+import com.helger.phase4.tracing.EAS4SpanKind;
+import com.helger.phase4.tracing.IAS4Span;
+import com.helger.phase4.tracing.MockAS4Tracer;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Test that the trace context of the enqueuing thread is propagated to the
+ * sending attempts of an {@link AS4Outbox} and from there to the receiver.
+ *
+ * @author Philip Helger
+ */
+public final class UserMessageOutboxTracingTest extends AbstractUserMessageTestSetUp
+{
+  private static final File BASE_DIR = new File ("target/outbox-tracing-test");
+
+  private final MockAS4Tracer m_aTracer = new MockAS4Tracer ();
+
+  @Before
+  public void before ()
+  {
+    AS4TracingManager.setTracer (m_aTracer);
+  }
+
+  @After
+  public void after ()
+  {
+    AS4TracingManager.setTracer (null);
+    FileOperations.deleteDirRecursiveIfExisting (BASE_DIR);
+  }
+
+  @Test
+  public void testContextPropagation () throws Exception
+  {
+    final ESoapVersion eSoapVersion = ESoapVersion.SOAP_12;
+    final Node aPayload = DOMReader.readXMLDOM (new ClassPathResource (AS4TestConstants.TEST_SOAP_BODY_PAYLOAD_XML));
+    final Document aDoc = MockMessages.createUserMessageSigned (eSoapVersion,
+                                                                aPayload,
+                                                                new CommonsArrayList <> (),
+                                                                s_aResMgr);
+    final AS4ClientBuiltMessage aBuiltMsg = new AS4ClientBuiltMessage (MessageHelperMethods.createRandomMessageID (),
+                                                                       new HttpXMLEntity (aDoc,
+                                                                                          eSoapVersion.getMimeType ()));
+
+    try (final AS4Outbox aOutbox = new AS4Outbox (BASE_DIR))
+    {
+      aOutbox.start ();
+
+      // The attempt runs on an outbox thread after the span was closed
+      try (final IAS4Span aSpan = AS4TracingManager.startSpan ("test", EAS4SpanKind.INTERNAL))
+      {
+        aOutbox.enqueue (aBuiltMsg, getServerAddress (), new HttpRetrySettings ().setMaxRetries (0), false);
+      }
+
+      final long nEnd = System.currentTimeMillis () + 30_000;
+      while (aOutbox.getDeliveredCount () == 0 && aOutbox.getFailedCount () == 0)
+      {
+        assertTrue ("Timeout waiting for the delivery", System.currentTimeMillis () < nEnd);
+        ThreadHelper.sleep (50);
+      }
+      assertEquals (1, aOutbox.getDeliveredCount ());
+    }
+
+    final ICommonsList <String> aSpans = m_aTracer.getAllSpans ();
+    assertTrue (aSpans.toString (), aSpans.contains ("test<-null"));
+    assertTrue (aSpans.toString (), aSpans.contains (AS4TracingManager.SPAN_OUTBOX_ATTEMPT + "<-test"));
+    assertTrue (aSpans.toString (),
+                aSpans.contains (AS4TracingManager.SPAN_HTTP_POST + "<-" + AS4TracingManager.SPAN_OUTBOX_ATTEMPT));
+    assertTrue (aSpans.toString (),
+                aSpans.contains (AS4TracingManager.SPAN_RECEIVE + "<-" + AS4TracingManager.SPAN_HTTP_POST));
+  }
+}
@@ -16,8 +16,13 @@
  */
 package com.helger.phase4.server.servlet;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.nio.charset.StandardCharsets;
+
 import org.apache.hc.core5.http.HttpEntity;
 import org.junit.Test;
 import org.w3c.dom.Document;
@@ -25,8 +30,14 @@ import org.w3c.dom.Document;
 import com.helger.commons.collection.impl.CommonsArrayList;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.wrapper.Wrapper;
 import com.helger.phase4.AS4TestConstants;
+import com.helger.phase4.attachment.IAS4IncomingAttachmentFactory;
+import com.helger.phase4.attachment.WSS4JAttachment;
 import com.helger.phase4.crypto.AS4SigningParams;
+import com.helger.phase4.ebms3header.Ebms3SignalMessage;
+import com.helger.phase4.ebms3header.Ebms3UserMessage;
 import com.helger.phase4.error.EEbmsError;
 import com.helger.phase4.http.HttpXMLEntity;
 import com.helger.phase4.messaging.crypto.AS4Signer;
@@ -34,6 +45,8 @@ import com.helger.phase4.messaging.domain.AS4PullRequestMessage;
 import com.helger.phase4.messaging.domain.MessageHelperMethods;
 import com.helger.phase4.mgr.MetaAS4Manager;
 import com.helger.phase4.model.mpc.MPC;
+import com.helger.phase4.sender.AS4PullRequestPoller;
+import com.helger.phase4.sender.AS4Sender;
 import com.helger.phase4.server.spi.MockMessageProcessorSPI;
 import com.helger.phase4.soap.ESoapVersion;
 import com.helger.xml.serialize.read.DOMReader;
@@ -83,6 +96,73 @@ public final class PullRequestTest extends AbstractUserMessageTestSetUpExt
     sendPlainMessageAndWait (aEntity, false, EEbmsError.EBMS_EMPTY_MESSAGE_PARTITION_CHANNEL.getErrorCode ());
   }
 
+  @Test
+  public void testSendPullRequestEmptyViaSender () throws Exception
+  {
+    // Special MPC name handled in MockMessageProcessorSPI
+    final String sFailure = MockMessageProcessorSPI.MPC_EMPTY;
+    final MPC aMPC = new MPC (sFailure);
+    if (MetaAS4Manager.getMPCMgr ().getMPCOfID (sFailure) == null)
+      MetaAS4Manager.getMPCMgr ().createMPC (aMPC);
+
+    // The response is parsed while it is read and contains an error
+    final Wrapper <Ebms3UserMessage> aUserMsg = new Wrapper <> ();
+    final Wrapper <Ebms3SignalMessage> aSignalMsg = new Wrapper <> ();
+    assertTrue (AS4Sender.builderPullRequest ()
+                         .soapVersion (m_eSoapVersion)
+                         .cryptoFactory (m_aCryptoFactory)
+                         .mpc (sFailure)
+                         .endpointURL (getServerAddress ())
+                         .userMsgConsumer (aUserMsg::set)
+                         .signalMsgConsumer (aSignalMsg::set)
+                         .sendMessage ()
+                         .isSuccess ());
+    assertNull (aUserMsg.get ());
+    assertNotNull (aSignalMsg.get ());
+    assertTrue (AS4PullRequestPoller.isEmptyMPC (aSignalMsg.get ()));
+  }
+
+  @Test
+  public void testSendPullRequestWithAttachmentViaSender () throws Exception
+  {
+    // Special MPC name handled in MockMessageProcessorSPI
+    final String sMPC = MockMessageProcessorSPI.MPC_ATTACHMENTS;
+    final MPC aMPC = new MPC (sMPC);
+    if (MetaAS4Manager.getMPCMgr ().getMPCOfID (sMPC) == null)
+      MetaAS4Manager.getMPCMgr ().createMPC (aMPC);
+
+    // The MIME response is parsed while it is read
+    final ICommonsList <WSS4JAttachment> aAttachments = new CommonsArrayList <> ();
+    final Wrapper <Ebms3UserMessage> aUserMsg = new Wrapper <> ();
+    final Wrapper <String> aAttachmentContent = new Wrapper <> ();
+    assertTrue (AS4Sender.builderPullRequest ()
+                         .soapVersion (m_eSoapVersion)
+                         .cryptoFactory (m_aCryptoFactory)
+                         .mpc (sMPC)
+                         .endpointURL (getServerAddress ())
+                         .incomingAttachmentFactory ( (aBodyPart, aResHelper) -> {
+                           final WSS4JAttachment ret = IAS4IncomingAttachmentFactory.DEFAULT_INSTANCE.createAttachment (aBodyPart,
+                                                                                                                         aResHelper);
+                           aAttachments.add (ret);
+                           return ret;
+                         })
+                         .userMsgConsumer (x -> {
+                           aUserMsg.set (x);
+                           // The attachments are only available while sending
+                           if (aAttachments.isNotEmpty ())
+                             aAttachmentContent.set (StreamHelper.getAllBytesAsString (aAttachments.getFirst ()
+                                                                                                   .getSourceStream (),
+                                                                                       StandardCharsets.UTF_8));
+                         })
+                         .sendMessage ()
+                         .isSuccess ());
+    assertNotNull (aUserMsg.get ());
+    assertEquals (sMPC, aUserMsg.get ().getMpc ());
+    assertEquals (1, aUserMsg.get ().getPayloadInfo ().getPartInfoCount ());
+    assertEquals (1, aAttachments.size ());
+    assertEquals (MockMessageProcessorSPI.ATTACHMENT_CONTENT, aAttachmentContent.get ());
+  }
+
   @Test
   public void testSendPullRequestFailure () throws Exception
   {
@@ -16,15 +16,20 @@
  */
 package com.helger.phase4.server.spi;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import org.w3c.dom.Node;
 
 import com.helger.commons.annotation.IsSPIImplementation;
+import com.helger.commons.collection.impl.CommonsArrayList;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.http.HttpHeaderMap;
 import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.mime.CMimeType;
 import com.helger.phase4.AS4TestConstants;
 import com.helger.phase4.CAS4;
 import com.helger.phase4.attachment.WSS4JAttachment;
@@ -59,6 +64,8 @@ public class MockMessageProcessorSPI implements IAS4ServletMessageProcessorSPI
 {
   public static final String MPC_FAILURE = "failure";
   public static final String MPC_EMPTY = "empty";
+  public static final String MPC_ATTACHMENTS = "attachments";
+  public static final String ATTACHMENT_CONTENT = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><Pulled>attachment</Pulled>";
   private static final String DEFAULT_AGREEMENT = "urn:as4:agreements:so-that-we-have-a-non-empty-value";
 
   @Nonnull
@@ -124,8 +131,33 @@ public class MockMessageProcessorSPI implements IAS4ServletMessageProcessorSPI
 
     final Ebms3MessageInfo aMessageInfo = aSignalMessage.getMessageInfo ();
 
-    final Ebms3MessageInfo aEbms3MessageInfo = MessageHelperMethods.createEbms3MessageInfo (aMessageInfo.getMessageId ());
-    final Ebms3PayloadInfo aEbms3PayloadInfo = MessageHelperMethods.createEbms3PayloadInfo (aPayload != null, null);
+    // Pulled message with a MIME attachment
+    final boolean bWithAttachment = aPullRequest != null && aPullRequest.getMpc ().equals (MPC_ATTACHMENTS);
+    final ICommonsList <WSS4JAttachment> aAttachments = new CommonsArrayList <> ();
+    if (bWithAttachment)
+    {
+      try
+      {
+        aAttachments.add (WSS4JAttachment.createOutgoingFileAttachment (ATTACHMENT_CONTENT.getBytes (StandardCharsets.UTF_8),
+                                                                        null,
+                                                                        "pulled.xml",
+                                                                        CMimeType.APPLICATION_XML,
+                                                                        null,
+                                                                        null,
+                                                                        aState.getResourceHelper ()));
+      }
+      catch (final IOException ex)
+      {
+        return AS4SignalMessageProcessorResult.createFailure ("Failed to create the attachment: " + ex.getMessage ());
+      }
+    }
+
+    // The pulled message with attachment is a new message and no reply, so
+    // that it is processed with leg 1 by the pulling side
+    final Ebms3MessageInfo aEbms3MessageInfo = bWithAttachment ? MessageHelperMethods.createEbms3MessageInfo ()
+                                                               : MessageHelperMethods.createEbms3MessageInfo (aMessageInfo.getMessageId ());
+    final boolean bHasSoapPayload = aPayload != null && !bWithAttachment;
+    final Ebms3PayloadInfo aEbms3PayloadInfo = MessageHelperMethods.createEbms3PayloadInfo (bHasSoapPayload, aAttachments);
 
     final Ebms3CollaborationInfo aEbms3CollaborationInfo;
     final Ebms3PartyInfo aEbms3PartyInfo;
@@ -151,6 +183,6 @@ public class MockMessageProcessorSPI implements IAS4ServletMessageProcessorSPI
     if (aPullRequest != null)
       aUserMessage.setMpc (aPullRequest.getMpc ());
 
-    return AS4SignalMessageProcessorResult.createSuccess (null, null, aUserMessage);
+    return AS4SignalMessageProcessorResult.createSuccess (aAttachments, null, aUserMessage);
   }
 }